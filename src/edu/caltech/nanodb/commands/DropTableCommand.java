@@ -8,6 +8,9 @@ import org.apache.log4j.Logger;
 import edu.caltech.nanodb.server.NanoDBServer;
 import edu.caltech.nanodb.storage.TableManager;
 import edu.caltech.nanodb.storage.StorageManager;
+import edu.caltech.nanodb.transactions.LockMode;
+import edu.caltech.nanodb.transactions.TransactionException;
+import edu.caltech.nanodb.transactions.TransactionManager;
 
 
 /** This Command class represents the <tt>DROP TABLE</tt> SQL command. */
@@ -85,6 +88,18 @@ public class DropTableCommand extends Command {
             }
         }
 
+        // Wait for other transactions to finish with the table.
+        TransactionManager txnMgr = storageManager.getTransactionManager();
+        if (txnMgr != null) {
+            try {
+                txnMgr.lockTable(tableName, LockMode.X);
+            }
+            catch (TransactionException e) {
+                throw new ExecutionException("Could not lock table \"" +
+                    tableName + "\".", e);
+            }
+        }
+
         try {
             tableManager.dropTable(tableName);
         }
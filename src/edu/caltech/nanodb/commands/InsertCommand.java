@@ -11,6 +11,7 @@ import edu.caltech.nanodb.expressions.TupleLiteral;
 import edu.caltech.nanodb.queryeval.Planner;
 import edu.caltech.nanodb.queryeval.PlannerFactory;
 import edu.caltech.nanodb.queryeval.TupleProcessor;
+import edu.caltech.nanodb.queryast.BaseTableCollector;
 import edu.caltech.nanodb.queryast.SelectClause;
 import edu.caltech.nanodb.relations.Schema;
 import edu.caltech.nanodb.relations.SchemaNameException;
@@ -21,6 +22,9 @@ import edu.caltech.nanodb.server.NanoDBServer;
 import edu.caltech.nanodb.storage.TableManager;
 import edu.caltech.nanodb.storage.TupleFile;
 import edu.caltech.nanodb.storage.StorageManager;
+import edu.caltech.nanodb.transactions.LockMode;
+import edu.caltech.nanodb.transactions.TransactionException;
+import edu.caltech.nanodb.transactions.TransactionManager;
 
 
 /**
@@ -183,6 +187,18 @@ public class InsertCommand extends QueryCommand {
         throws ExecutionException {
 
         StorageManager storageManager = server.getStorageManager();
+
+        TransactionManager txnMgr = storageManager.getTransactionManager();
+        if (txnMgr != null) {
+            try {
+                lockTables(txnMgr);
+            }
+            catch (TransactionException e) {
+                throw new ExecutionException("Could not lock table \"" +
+                    tableName + "\".", e);
+            }
+        }
+
         TableManager tableManager = storageManager.getTableManager();
         try {
             tableInfo = tableManager.openTable(tableName);
@@ -225,6 +241,22 @@ public class InsertCommand extends QueryCommand {
     }
 
 
+    @Override
+    protected void lockTables(TransactionManager txnMgr)
+        throws TransactionException {
+
+        txnMgr.lockTable(tableName, LockMode.X);
+
+        if (selClause != null) {
+            BaseTableCollector collector = new BaseTableCollector();
+            collector.collect(selClause);
+
+            for (String selTableName : collector.getTableNames())
+                txnMgr.lockTable(selTableName, LockMode.S);
+        }
+    }
+
+
     @Override
     protected void prepareQueryPlan(StorageManager storageManager)
         throws IOException, SchemaNameException {
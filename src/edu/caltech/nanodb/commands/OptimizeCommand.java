@@ -1,15 +1,25 @@
 package edu.caltech.nanodb.commands;
 
 
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.LinkedHashSet;
 
+import edu.caltech.nanodb.indexes.IndexInfo;
+import edu.caltech.nanodb.indexes.IndexManager;
+import edu.caltech.nanodb.relations.TableInfo;
+import edu.caltech.nanodb.relations.TableSchema;
 import edu.caltech.nanodb.server.NanoDBServer;
+import edu.caltech.nanodb.storage.StorageManager;
+import edu.caltech.nanodb.storage.TableManager;
 
 
 /**
  * This Command class represents the <tt>OPTIMIZE</tt> SQL command, which
  * optimizes a table's representation (along with any indexes) to improve access
  * performance and space utilization.  This is not a standard SQL command.
+ * Currently only the table's indexes are optimized, since heap files don't
+ * support optimization yet.
  */
 public class OptimizeCommand extends Command {
 
@@ -58,7 +68,47 @@ public class OptimizeCommand extends Command {
 
     @Override
     public void execute(NanoDBServer server) throws ExecutionException {
-        throw new ExecutionException("Not yet implemented!");
+
+        // Make sure that all the tables are valid.
+
+        StorageManager storageManager = server.getStorageManager();
+        TableManager tableManager = storageManager.getTableManager();
+        IndexManager indexManager = storageManager.getIndexManager();
+
+        ArrayList<TableInfo> tableInfos = new ArrayList<>();
+
+        for (String table : tableNames) {
+            try {
+                TableInfo tableInfo = tableManager.openTable(table);
+                tableInfos.add(tableInfo);
+            }
+            catch (IOException ioe) {
+                throw new ExecutionException("Could not open table " + table, ioe);
+            }
+        }
+
+        // Now, optimize the indexes on each table.
+
+        for (TableInfo tableInfo : tableInfos) {
+            String tableName = tableInfo.getTableName();
+            try {
+                out.println("Optimizing table " + tableName);
+
+                TableSchema schema = tableInfo.getSchema();
+                for (String indexName : schema.getIndexNames()) {
+                    IndexInfo indexInfo = indexManager.openIndex(tableInfo, indexName);
+
+                    out.println("Optimizing index " + indexName +
+                        " on table " + tableName);
+                    indexManager.optimizeIndex(indexInfo);
+                }
+            }
+            catch (IOException ioe) {
+                throw new ExecutionException("Could not optimize table " +
+                    tableName, ioe);
+            }
+        }
+        out.println("Optimization complete.");
     }
 
 
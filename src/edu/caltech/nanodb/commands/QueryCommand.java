@@ -8,12 +8,15 @@ import org.apache.log4j.Logger;
 
 import edu.caltech.nanodb.plannodes.PlanNode;
 import edu.caltech.nanodb.queryeval.EvalStats;
+import edu.caltech.nanodb.queryeval.ExecutionProperties;
 import edu.caltech.nanodb.queryeval.QueryEvaluator;
 import edu.caltech.nanodb.queryeval.TupleProcessor;
 import edu.caltech.nanodb.relations.SchemaNameException;
 import edu.caltech.nanodb.server.EventDispatcher;
 import edu.caltech.nanodb.server.NanoDBServer;
 import edu.caltech.nanodb.storage.StorageManager;
+import edu.caltech.nanodb.transactions.TransactionException;
+import edu.caltech.nanodb.transactions.TransactionManager;
 
 
 /**
@@ -85,6 +88,13 @@ public abstract class QueryCommand extends Command {
         throws ExecutionException {
 
         try {
+            // Lock the tables before planning, since planning reads their
+            // schemas and statistics.
+            TransactionManager txnMgr =
+                server.getStorageManager().getTransactionManager();
+            if (txnMgr != null)
+                lockTables(txnMgr);
+
             prepareQueryPlan(server.getStorageManager());
 
             if (!explain) {
@@ -108,7 +118,13 @@ public abstract class QueryCommand extends Command {
                 TupleProcessor processor =
                     getTupleProcessor(server.getEventDispatcher());
 
-                EvalStats stats = QueryEvaluator.executePlan(plan, processor);
+                // Only SELECT queries are executed in batches, since the
+                // other commands modify the tuples that the plan produces.
+                boolean useBatches = (queryType == Type.SELECT) &&
+                    ExecutionProperties.isVectorizedExecutionEnabled();
+
+                EvalStats stats =
+                    QueryEvaluator.executePlan(plan, processor, useBatches);
 
                 // Print out the evaluation statistics.
 
@@ -166,6 +182,21 @@ public abstract class QueryCommand extends Command {
     }
 
 
+    /**
+     * Locks the tables that this query command reads and writes, for the
+     * current transaction.  The locks are held until the transaction commits
+     * or rolls back.  This method is only called when transaction processing
+     * is enabled.
+     *
+     * @param txnMgr the transaction manager to lock the tables with
+     *
+     * @throws TransactionException if a lock couldn't be acquired, for
+     *         example because the transaction was chosen as a deadlock victim
+     */
+    protected abstract void lockTables(TransactionManager txnMgr)
+        throws TransactionException;
+
+
     /**
      * Prepares an execution plan for generating the tuples that this query
      * command will operate on.  Since the specific plan to generate depends
@@ -6,6 +6,7 @@ import java.io.IOException;
 import org.apache.log4j.Logger;
 
 import edu.caltech.nanodb.client.SessionState;
+import edu.caltech.nanodb.queryast.BaseTableCollector;
 import edu.caltech.nanodb.queryast.SelectClause;
 import edu.caltech.nanodb.queryeval.Planner;
 import edu.caltech.nanodb.queryeval.PlannerFactory;
@@ -16,6 +17,9 @@ import edu.caltech.nanodb.relations.SchemaNameException;
 import edu.caltech.nanodb.server.EventDispatcher;
 import edu.caltech.nanodb.storage.TableManager;
 import edu.caltech.nanodb.storage.StorageManager;
+import edu.caltech.nanodb.transactions.LockMode;
+import edu.caltech.nanodb.transactions.TransactionException;
+import edu.caltech.nanodb.transactions.TransactionManager;
 
 
 /**
@@ -67,6 +71,18 @@ public class SelectCommand extends QueryCommand {
      * schema details of the statement, and then preparing an execution plan
      * for the statement.
      */
+    @Override
+    protected void lockTables(TransactionManager txnMgr)
+        throws TransactionException {
+
+        BaseTableCollector collector = new BaseTableCollector();
+        collector.collect(selClause);
+
+        for (String tableName : collector.getTableNames())
+            txnMgr.lockTable(tableName, LockMode.S);
+    }
+
+
     protected void prepareQueryPlan(StorageManager storageManager)
         throws IOException, SchemaNameException {
 
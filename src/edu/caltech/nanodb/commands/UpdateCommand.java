@@ -11,6 +11,7 @@ import edu.caltech.nanodb.expressions.Environment;
 import edu.caltech.nanodb.expressions.Expression;
 
 import edu.caltech.nanodb.expressions.TupleLiteral;
+import edu.caltech.nanodb.queryast.BaseTableCollector;
 import edu.caltech.nanodb.queryeval.Planner;
 import edu.caltech.nanodb.queryeval.PlannerFactory;
 import edu.caltech.nanodb.queryeval.TupleProcessor;
@@ -24,6 +25,9 @@ import edu.caltech.nanodb.server.EventDispatcher;
 import edu.caltech.nanodb.storage.TableManager;
 import edu.caltech.nanodb.storage.TupleFile;
 import edu.caltech.nanodb.storage.StorageManager;
+import edu.caltech.nanodb.transactions.LockMode;
+import edu.caltech.nanodb.transactions.TransactionException;
+import edu.caltech.nanodb.transactions.TransactionManager;
 
 
 /**
@@ -193,6 +197,21 @@ public class UpdateCommand extends QueryCommand {
     }
 
 
+    @Override
+    protected void lockTables(TransactionManager txnMgr)
+        throws TransactionException {
+
+        txnMgr.lockTable(tableName, LockMode.X);
+
+        // Subqueries in the WHERE clause may read other tables.
+        BaseTableCollector collector = new BaseTableCollector();
+        collector.collect(whereExpr);
+
+        for (String whereTableName : collector.getTableNames())
+            txnMgr.lockTable(whereTableName, LockMode.S);
+    }
+
+
     protected void prepareQueryPlan(StorageManager storageManager)
         throws IOException, SchemaNameException {
 
@@ -0,0 +1,73 @@
+package edu.caltech.nanodb.expressions;
+
+
+import edu.caltech.nanodb.relations.Schema;
+
+
+/**
+ * <p>
+ * This expression-processor implementation binds every {@link ColumnValue}
+ * in an expression to the position of the tuple and the index of the column
+ * that it refers to, given the schemas of the tuples the expression will be
+ * evaluated against.  This allows column references to be evaluated with a
+ * simple array lookup, instead of searching the schemas for the column name
+ * for every tuple.  (See {@link ColumnValue#bind} for details.)
+ * </p>
+ * <p>
+ * Subqueries within the expression are not traversed, since they are
+ * evaluated against their own environments; their plans bind their own
+ * column references when they are prepared.
+ * </p>
+ */
+public class ColumnBinder implements ExpressionProcessor {
+
+    /** The schemas of the tuples that the expression is evaluated against. */
+    private Schema[] schemas;
+
+
+    /**
+     * Constructs a column binder for the specified schemas.
+     *
+     * @param schemas the schemas of the tuples that will be in the
+     *        environment when the expression is evaluated, in the order
+     *        they are added to the environment
+     */
+    public ColumnBinder(Schema... schemas) {
+        if (schemas == null)
+            throw new IllegalArgumentException("schemas cannot be null");
+
+        this.schemas = schemas;
+    }
+
+
+    /**
+     * Binds all column references in the specified expression to the
+     * specified schemas.  The expression may be {@code null}, in which case
+     * nothing happens.
+     *
+     * @param expr the expression to bind
+     *
+     * @param schemas the schemas of the tuples that will be in the
+     *        environment when the expression is evaluated
+     */
+    public static void bindColumns(Expression expr, Schema... schemas) {
+        if (expr != null)
+            expr.traverse(new ColumnBinder(schemas));
+    }
+
+
+    @Override
+    public void enter(Expression node) {
+        // Nothing to do when entering a node.
+    }
+
+
+    @Override
+    public Expression leave(Expression node) {
+        // This processor never changes the node that is traversed.
+        if (node instanceof ColumnValue)
+            ((ColumnValue) node).bind(schemas);
+
+        return node;
+    }
+}
@@ -5,6 +5,7 @@ import java.util.List;
 import java.util.SortedMap;
 
 import edu.caltech.nanodb.relations.ColumnInfo;
+import edu.caltech.nanodb.relations.ColumnType;
 import edu.caltech.nanodb.relations.Schema;
 import edu.caltech.nanodb.relations.SchemaNameException;
 import edu.caltech.nanodb.relations.Tuple;
@@ -21,6 +22,21 @@ public class ColumnValue extends Expression {
     private ColumnName columnName;
 
 
+    /**
+     * If the column reference has been bound with {@link #bind}, this is the
+     * list of schemas it was bound against; otherwise it is <tt>null</tt>.
+     */
+    private Schema[] boundSchemas;
+
+
+    /** The position of the tuple that the column was bound to. */
+    private int boundTupleIndex;
+
+
+    /** The index of the column in the tuple that it was bound to. */
+    private int boundColumnIndex;
+
+
     /**
      * Initialize a new column-value expression object with the specified
      * column-name.
@@ -59,6 +75,89 @@ public class ColumnValue extends Expression {
      */
     public void setColumnName(ColumnName columnName) {
         this.columnName = columnName;
+        boundSchemas = null;
+    }
+
+
+    /**
+     * Resolves this column reference against the schemas of the tuples that
+     * it will be evaluated against, so that evaluation can retrieve the
+     * column value by position instead of looking up the column name for
+     * every tuple.  The binding is only used when the evaluation environment
+     * holds tuples with exactly these schemas (compared by identity), in the
+     * same order; otherwise the column is resolved by name as usual.
+     * <p>
+     * If the column name is a wildcard, or if it is not found or is
+     * ambiguous in the specified schemas, the column reference is left
+     * unbound, so that evaluation reports the error or consults a parent
+     * environment, as before.
+     *
+     * @param schemas the schemas of the tuples that will be in the
+     *        environment when this expression is evaluated, in the order
+     *        they are added to the environment
+     *
+     * @return true if the column reference was bound, or false if it was
+     *         left unbound
+     */
+    public boolean bind(Schema... schemas) {
+        boundSchemas = null;
+
+        if (columnName.isColumnWildcard())
+            return false;
+
+        int tupleIndex = -1;
+        int columnIndex = -1;
+
+        for (int i = 0; i < schemas.length; i++) {
+            SortedMap<Integer, ColumnInfo> cols =
+                schemas[i].findColumns(columnName);
+            if (cols.isEmpty())
+                continue;
+
+            if (tupleIndex != -1 || cols.size() > 1) {
+                // Ambiguous column name.
+                return false;
+            }
+
+            tupleIndex = i;
+            columnIndex = cols.firstKey();
+        }
+
+        if (tupleIndex == -1)
+            return false;
+
+        boundSchemas = schemas.clone();
+        boundTupleIndex = tupleIndex;
+        boundColumnIndex = columnIndex;
+        return true;
+    }
+
+
+    /**
+     * Returns true if this column reference has been bound to a tuple
+     * position and column index with {@link #bind}.
+     *
+     * @return true if this column reference is bound
+     */
+    public boolean isBound() {
+        return boundSchemas != null;
+    }
+
+
+    /**
+     * Returns the type of the column that this column reference is bound to,
+     * or <tt>null</tt> if the column reference is not bound.  This is used
+     * by {@link ExpressionCompiler} to specialize the evaluation of
+     * expressions for the types of their columns.
+     *
+     * @return the type of the bound column, or <tt>null</tt>
+     */
+    ColumnType getBoundColumnType() {
+        if (boundSchemas == null)
+            return null;
+
+        return boundSchemas[boundTupleIndex].getColumnInfo(
+            boundColumnIndex).getType();
     }
 
 
@@ -94,6 +193,12 @@ public class ColumnValue extends Expression {
             return tuples.get(0);
         }
 
+        if (boundSchemas != null) {
+            Tuple tuple = env.getBoundTuple(boundSchemas, boundTupleIndex);
+            if (tuple != null)
+                return tuple.getColumnValue(boundColumnIndex);
+        }
+
         return env.getColumnValue(columnName);
     }
 
@@ -90,13 +90,7 @@ public class CompareOperator extends Expression {
      * either the left-hand or right-hand expression evaluates to
      * <code>null</code> (representing the SQL <tt>NULL</tt> value), then the
      * expression's result is always <code>FALSE</code>.
-     *
-     * @design (Donnie) We have to suppress "unchecked operation" warnings on
-     *         this code, since {@link Comparable} is a generic (and thus allows
-     *         us to specify the type of object being compared), but we want to
-     *         use it without specifying any types.
      */
-    @SuppressWarnings("unchecked")
     public Object evaluate(Environment env) throws ExpressionException {
 
         // Evaluate the left and right subexpressions.
@@ -108,6 +102,34 @@ public class CompareOperator extends Expression {
         if (lhsValue == null || rhsValue == null)
             return null;
 
+        return Boolean.valueOf(
+            testComparison(type, compareValues(lhsValue, rhsValue)));
+    }
+
+
+    /**
+     * Compares two non-<tt>NULL</tt> values, coercing them to the same type
+     * first.  This is the comparison performed by {@link #evaluate}, and it
+     * is also used by {@link ExpressionCompiler} when the values' types don't
+     * match the types that a compiled comparison was specialized for.
+     *
+     * @param lhsValue the left value to compare; must not be <tt>null</tt>
+     *
+     * @param rhsValue the right value to compare; must not be <tt>null</tt>
+     *
+     * @return a negative number, zero, or a positive number, as the left
+     *         value is less than, equal to, or greater than the right value
+     *
+     * @throws TypeCastException if the values cannot be coerced to the same
+     *         type
+     *
+     * @design (Donnie) We have to suppress "unchecked operation" warnings on
+     *         this code, since {@link Comparable} is a generic (and thus allows
+     *         us to specify the type of object being compared), but we want to
+     *         use it without specifying any types.
+     */
+    @SuppressWarnings("unchecked")
+    static int compareValues(Object lhsValue, Object rhsValue) {
         // Coerce the values to have the same type, then do the comparison.
 
         TypeConverter.Pair coerced =
@@ -116,40 +138,44 @@ public class CompareOperator extends Expression {
         Comparable lhsComp = (Comparable) coerced.value1;
         Comparable rhsComp = (Comparable) coerced.value2;
 
-        int compResult = lhsComp.compareTo(rhsComp);
+        return lhsComp.compareTo(rhsComp);
+    }
 
-        boolean result;
 
+    /**
+     * Returns true if the result of comparing two values satisfies the
+     * specified kind of comparison.
+     *
+     * @param type the kind of comparison
+     *
+     * @param compResult the result of comparing the two values, as produced
+     *        by {@link Comparable#compareTo}
+     *
+     * @return true if the comparison is satisfied
+     */
+    static boolean testComparison(Type type, int compResult) {
         switch (type) {
         case EQUALS:
-            result = (compResult == 0);
-            break;
+            return (compResult == 0);
 
         case NOT_EQUALS:
-            result = (compResult != 0);
-            break;
+            return (compResult != 0);
 
         case LESS_THAN:
-            result = (compResult < 0);
-            break;
+            return (compResult < 0);
 
         case GREATER_THAN:
-            result = (compResult > 0);
-            break;
+            return (compResult > 0);
 
         case LESS_OR_EQUAL:
-            result = (compResult <= 0);
-            break;
+            return (compResult <= 0);
 
         case GREATER_OR_EQUAL:
-            result = (compResult >= 0);
-            break;
+            return (compResult >= 0);
 
         default:
             throw new ExpressionException("Unrecognized comparison type " + type);
         }
-
-        return Boolean.valueOf(result);
     }
 
 
@@ -0,0 +1,53 @@
+package edu.caltech.nanodb.expressions;
+
+
+/**
+ * This class represents an expression that has been compiled by the
+ * {@link ExpressionCompiler} into a tree of evaluators that are specialized
+ * for the operators and value types in the expression.  A compiled
+ * expression produces exactly the same results as the {@link Expression} it
+ * was compiled from, but avoids much of the type-dispatch and coercion work
+ * that the interpreter performs for every tuple.
+ * <p>
+ * A compiled expression refers to the column references in the original
+ * expression, so it must be recompiled if the expression is changed or its
+ * column references are bound again.
+ */
+public abstract class CompiledExpression {
+
+    /**
+     * Evaluates the compiled expression within the specified environment.
+     *
+     * @param env the environment to look up symbol-values from, when
+     *        evaluating the expression
+     *
+     * @return the result of the expression evaluation
+     *
+     * @throws ExpressionException if the expression cannot be evaluated for
+     *         some reason.
+     */
+    public abstract Object evaluate(Environment env)
+        throws ExpressionException;
+
+
+    /**
+     * Evaluates the compiled expression as a Boolean predicate.  Subclasses
+     * that produce Boolean values override this method to avoid creating
+     * <tt>Boolean</tt> objects.
+     *
+     * @param env the environment that the predicate is evaluated within
+     *
+     * @return the result of the evaluation, converted to a Boolean value
+     *
+     * @throws ExpressionException if an error occurred during evaluation
+     */
+    public boolean evaluatePredicate(Environment env)
+        throws ExpressionException {
+
+        Object result = evaluate(env);
+        if (result == null)
+            return false;   // TODO:  This is UNKNOWN, not FALSE.
+        else
+            return TypeConverter.getBooleanValue(result);
+    }
+}
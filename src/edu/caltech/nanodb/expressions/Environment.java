@@ -129,6 +129,37 @@ public class Environment {
     }
 
 
+    /**
+     * Returns the current tuple at the specified position, if the environment
+     * currently holds tuples with exactly the specified schemas.  Schemas are
+     * compared by identity, so this check is cheap enough to perform for
+     * every column reference.  This is used to evaluate column references
+     * that were bound to a tuple position and column index before
+     * evaluation; if the environment doesn't match the schemas that the
+     * reference was bound against, <tt>null</tt> is returned and the column
+     * must be resolved by name.
+     *
+     * @param schemas the schemas that the column reference was bound against
+     *
+     * @param index the position of the tuple to return
+     *
+     * @return the current tuple at the specified position, or <tt>null</tt>
+     *         if the environment's schemas don't match
+     */
+    public Tuple getBoundTuple(Schema[] schemas, int index) {
+        int numTuples = currentSchemas.size();
+        if (numTuples != schemas.length)
+            return null;
+
+        for (int i = 0; i < numTuples; i++) {
+            if (currentSchemas.get(i) != schemas[i])
+                return null;
+        }
+
+        return currentTuples.get(index);
+    }
+
+
     /**
      * Get the actual value at the specified column.
      *
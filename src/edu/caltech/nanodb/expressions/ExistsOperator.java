@@ -2,6 +2,7 @@ package edu.caltech.nanodb.expressions;
 
 
 import java.io.IOException;
+import java.util.List;
 
 import edu.caltech.nanodb.plannodes.PlanNode;
 import edu.caltech.nanodb.queryast.SelectClause;
@@ -22,6 +23,10 @@ import edu.caltech.nanodb.relations.Tuple;
  * The <tt>NOT EXISTS (subquery)</tt> clause is translated into
  * <tt>NOT (EXISTS (subquery))</tt> by the parser, as expected.
  * </p>
+ * <p>
+ * If the subquery's result cache is enabled, the subquery is only evaluated
+ * once for each combination of correlated values.
+ * </p>
  */
 public class ExistsOperator extends SubqueryOperator {
 
@@ -46,6 +51,10 @@ public class ExistsOperator extends SubqueryOperator {
         if (subqueryPlan == null)
             throw new IllegalStateException("No execution plan for subquery");
 
+        List<Object> key = getCacheKey(env);
+        if (hasCachedResult(key))
+            return getCachedResult(key);
+
         try {
             subqueryPlan.initialize();
 
@@ -56,7 +65,9 @@ public class ExistsOperator extends SubqueryOperator {
 
             subqueryPlan.cleanUp();
 
-            return Boolean.valueOf(tuple != null);
+            Boolean result = Boolean.valueOf(tuple != null);
+            cacheResult(key, result);
+            return result;
         }
         catch (IOException e) {
             throw new ExpressionException("Error while evaluating subquery", e);
@@ -0,0 +1,508 @@
+package edu.caltech.nanodb.expressions;
+
+
+import org.apache.log4j.Logger;
+
+import edu.caltech.nanodb.relations.ColumnType;
+
+
+/**
+ * <p>
+ * This class compiles expressions into {@link CompiledExpression} objects.
+ * Each node of the expression tree is turned into an evaluator that is
+ * specialized for the kind of operator and, where they can be determined,
+ * the types of its operands.  For example, a comparison between an
+ * <tt>INTEGER</tt> column and an integer literal is compiled into an
+ * evaluator that compares two <tt>int</tt> values directly, rather than
+ * coercing the values and comparing them through the {@link Comparable}
+ * interface; and <tt>AND</tt>, <tt>OR</tt> and <tt>NOT</tt> expressions are
+ * evaluated without creating <tt>Boolean</tt> objects for their terms.
+ * </p>
+ * <p>
+ * The operand types are taken from literal values, and from the column
+ * types of column references that have been bound with
+ * {@link ColumnValue#bind}, so expressions should be bound before they are
+ * compiled.  Since the values that are actually produced may not match the
+ * types that an evaluator was specialized for, each specialized evaluator
+ * checks the types of its operands, and falls back to the same code that
+ * the interpreter uses when they don't match.
+ * </p>
+ * <p>
+ * Expression nodes that the compiler doesn't handle, such as function calls
+ * and subqueries, are simply evaluated by the interpreter, so every
+ * expression can be compiled.
+ * </p>
+ */
+public class ExpressionCompiler {
+
+    /** A logging object for reporting anything interesting that happens. */
+    private static Logger logger = Logger.getLogger(ExpressionCompiler.class);
+
+
+    /**
+     * This evaluator simply evaluates an expression with the interpreter.
+     * It is used for expression nodes that the compiler doesn't handle.
+     */
+    private static class InterpretedExpression extends CompiledExpression {
+        private final Expression expr;
+
+        InterpretedExpression(Expression expr) {
+            this.expr = expr;
+        }
+
+        @Override
+        public Object evaluate(Environment env) {
+            return expr.evaluate(env);
+        }
+
+        @Override
+        public boolean evaluatePredicate(Environment env) {
+            return expr.evaluatePredicate(env);
+        }
+    }
+
+
+    /** This evaluator produces a constant value. */
+    private static class ConstantExpression extends CompiledExpression {
+        private final Object value;
+
+        ConstantExpression(Object value) {
+            this.value = value;
+        }
+
+        @Override
+        public Object evaluate(Environment env) {
+            return value;
+        }
+    }
+
+
+    /**
+     * This is the base class of comparison evaluators.  Subclasses implement
+     * the comparison of two non-<tt>NULL</tt> values.
+     */
+    private abstract static class CompareExpression extends CompiledExpression {
+        private final CompareOperator.Type type;
+
+        private final CompiledExpression lhs;
+
+        private final CompiledExpression rhs;
+
+        CompareExpression(CompareOperator.Type type, CompiledExpression lhs,
+                          CompiledExpression rhs) {
+            this.type = type;
+            this.lhs = lhs;
+            this.rhs = rhs;
+        }
+
+        /**
+         * Compares two non-<tt>NULL</tt> values, returning a negative
+         * number, zero, or a positive number, as the left value is less
+         * than, equal to, or greater than the right value.
+         */
+        abstract int compare(Object lhsValue, Object rhsValue);
+
+        @Override
+        public Object evaluate(Environment env) {
+            Object lhsValue = lhs.evaluate(env);
+            Object rhsValue = rhs.evaluate(env);
+
+            // If either value is NULL then the comparison's result is NULL.
+            if (lhsValue == null || rhsValue == null)
+                return null;
+
+            return Boolean.valueOf(CompareOperator.testComparison(type,
+                compare(lhsValue, rhsValue)));
+        }
+
+        @Override
+        public boolean evaluatePredicate(Environment env) {
+            Object lhsValue = lhs.evaluate(env);
+            Object rhsValue = rhs.evaluate(env);
+
+            if (lhsValue == null || rhsValue == null)
+                return false;   // TODO:  This is UNKNOWN, not FALSE.
+
+            return CompareOperator.testComparison(type,
+                compare(lhsValue, rhsValue));
+        }
+    }
+
+
+    /** This evaluator computes an <tt>AND</tt> of its terms. */
+    private static class AndExpression extends CompiledExpression {
+        private final CompiledExpression[] terms;
+
+        AndExpression(CompiledExpression[] terms) {
+            this.terms = terms;
+        }
+
+        @Override
+        public Object evaluate(Environment env) {
+            return Boolean.valueOf(evaluatePredicate(env));
+        }
+
+        @Override
+        public boolean evaluatePredicate(Environment env) {
+            for (CompiledExpression term : terms) {
+                if (!term.evaluatePredicate(env))
+                    return false;
+            }
+            return true;
+        }
+    }
+
+
+    /** This evaluator computes an <tt>OR</tt> of its terms. */
+    private static class OrExpression extends CompiledExpression {
+        private final CompiledExpression[] terms;
+
+        OrExpression(CompiledExpression[] terms) {
+            this.terms = terms;
+        }
+
+        @Override
+        public Object evaluate(Environment env) {
+            return Boolean.valueOf(evaluatePredicate(env));
+        }
+
+        @Override
+        public boolean evaluatePredicate(Environment env) {
+            for (CompiledExpression term : terms) {
+                if (term.evaluatePredicate(env))
+                    return true;
+            }
+            return false;
+        }
+    }
+
+
+    /** This evaluator computes the <tt>NOT</tt> of its term. */
+    private static class NotExpression extends CompiledExpression {
+        private final CompiledExpression term;
+
+        NotExpression(CompiledExpression term) {
+            this.term = term;
+        }
+
+        @Override
+        public Object evaluate(Environment env) {
+            return Boolean.valueOf(evaluatePredicate(env));
+        }
+
+        @Override
+        public boolean evaluatePredicate(Environment env) {
+            // A NULL term is treated as FALSE, so NOT NULL is TRUE.
+            return !term.evaluatePredicate(env);
+        }
+    }
+
+
+    /**
+     * This evaluator computes an arithmetic operation.  Addition,
+     * subtraction and multiplication of two <tt>Integer</tt>s, two
+     * <tt>Long</tt>s, or two <tt>Double</tt>s are computed directly;
+     * everything else is computed by
+     * {@link ArithmeticOperator#evalObjects}.
+     */
+    private static class ArithmeticExpression extends CompiledExpression {
+        private final ArithmeticOperator.Type type;
+
+        private final CompiledExpression lhs;
+
+        private final CompiledExpression rhs;
+
+        ArithmeticExpression(ArithmeticOperator.Type type,
+                             CompiledExpression lhs, CompiledExpression rhs) {
+            this.type = type;
+            this.lhs = lhs;
+            this.rhs = rhs;
+        }
+
+        @Override
+        public Object evaluate(Environment env) {
+            Object lhsValue = lhs.evaluate(env);
+            Object rhsValue = rhs.evaluate(env);
+
+            // If either value is NULL then the result is NULL.
+            if (lhsValue == null || rhsValue == null)
+                return null;
+
+            if (lhsValue instanceof Integer && rhsValue instanceof Integer) {
+                int a = (Integer) lhsValue;
+                int b = (Integer) rhsValue;
+                switch (type) {
+                case ADD:
+                    return Integer.valueOf(a + b);
+                case SUBTRACT:
+                    return Integer.valueOf(a - b);
+                case MULTIPLY:
+                    return Integer.valueOf(a * b);
+                }
+            }
+            else if (lhsValue instanceof Long && rhsValue instanceof Long) {
+                long a = (Long) lhsValue;
+                long b = (Long) rhsValue;
+                switch (type) {
+                case ADD:
+                    return Long.valueOf(a + b);
+                case SUBTRACT:
+                    return Long.valueOf(a - b);
+                case MULTIPLY:
+                    return Long.valueOf(a * b);
+                }
+            }
+            else if (lhsValue instanceof Double && rhsValue instanceof Double) {
+                double a = (Double) lhsValue;
+                double b = (Double) rhsValue;
+                switch (type) {
+                case ADD:
+                    return Double.valueOf(a + b);
+                case SUBTRACT:
+                    return Double.valueOf(a - b);
+                case MULTIPLY:
+                    return Double.valueOf(a * b);
+                }
+            }
+
+            return ArithmeticOperator.evalObjects(type, lhsValue, rhsValue);
+        }
+    }
+
+
+    private ExpressionCompiler() {
+        throw new UnsupportedOperationException(
+            "This class should not be instantiated.");
+    }
+
+
+    /**
+     * Compiles the specified expression.  The expression's column references
+     * should already be bound, so that the compiled expression can be
+     * specialized for the column types.
+     *
+     * @param expr the expression to compile, or {@code null}
+     *
+     * @return the compiled expression, or {@code null} if the expression is
+     *         {@code null}
+     */
+    public static CompiledExpression compile(Expression expr) {
+        if (expr == null)
+            return null;
+
+        CompiledExpression compiled = compileNode(expr);
+        logger.debug("Compiled expression " + expr);
+        return compiled;
+    }
+
+
+    /** Compiles an expression node and its subexpressions. */
+    private static CompiledExpression compileNode(Expression expr) {
+        if (expr instanceof LiteralValue)
+            return new ConstantExpression(expr.evaluate());
+
+        if (expr instanceof CompareOperator)
+            return compileCompare((CompareOperator) expr);
+
+        if (expr instanceof BooleanOperator)
+            return compileBoolean((BooleanOperator) expr);
+
+        if (expr instanceof ArithmeticOperator) {
+            ArithmeticOperator arith = (ArithmeticOperator) expr;
+            return new ArithmeticExpression(arith.type,
+                compileNode(arith.leftExpr), compileNode(arith.rightExpr));
+        }
+
+        // Column references already use their binding when they are
+        // evaluated, and everything else is left to the interpreter.
+        return new InterpretedExpression(expr);
+    }
+
+
+    /**
+     * Compiles a comparison, specializing it if both operands are known to
+     * have the same type.  If one operand is a literal, it is converted to
+     * the type of the other operand where the interpreter would perform the
+     * same conversion, so that it doesn't have to be coerced for every
+     * comparison.
+     */
+    private static CompiledExpression compileCompare(CompareOperator cmp) {
+        Class<?> lhsClass = getValueClass(cmp.leftExpr);
+        Class<?> rhsClass = getValueClass(cmp.rightExpr);
+
+        CompiledExpression lhs;
+        CompiledExpression rhs;
+
+        if (cmp.leftExpr instanceof LiteralValue && rhsClass != null) {
+            Object value = widenLiteral(cmp.leftExpr.evaluate(), rhsClass);
+            lhs = new ConstantExpression(value);
+            if (value != null)
+                lhsClass = value.getClass();
+        }
+        else {
+            lhs = compileNode(cmp.leftExpr);
+        }
+
+        if (cmp.rightExpr instanceof LiteralValue && lhsClass != null) {
+            Object value = widenLiteral(cmp.rightExpr.evaluate(), lhsClass);
+            rhs = new ConstantExpression(value);
+            if (value != null)
+                rhsClass = value.getClass();
+        }
+        else {
+            rhs = compileNode(cmp.rightExpr);
+        }
+
+        CompareOperator.Type type = cmp.type;
+
+        if (lhsClass != null && lhsClass == rhsClass) {
+            if (lhsClass == Integer.class) {
+                return new CompareExpression(type, lhs, rhs) {
+                    @Override
+                    int compare(Object lhsValue, Object rhsValue) {
+                        if (lhsValue instanceof Integer &&
+                            rhsValue instanceof Integer) {
+                            return Integer.compare((Integer) lhsValue,
+                                (Integer) rhsValue);
+                        }
+                        return CompareOperator.compareValues(lhsValue, rhsValue);
+                    }
+                };
+            }
+            else if (lhsClass == Long.class) {
+                return new CompareExpression(type, lhs, rhs) {
+                    @Override
+                    int compare(Object lhsValue, Object rhsValue) {
+                        if (lhsValue instanceof Long &&
+                            rhsValue instanceof Long) {
+                            return Long.compare((Long) lhsValue,
+                                (Long) rhsValue);
+                        }
+                        return CompareOperator.compareValues(lhsValue, rhsValue);
+                    }
+                };
+            }
+            else if (lhsClass == Double.class) {
+                return new CompareExpression(type, lhs, rhs) {
+                    @Override
+                    int compare(Object lhsValue, Object rhsValue) {
+                        if (lhsValue instanceof Double &&
+                            rhsValue instanceof Double) {
+                            return Double.compare((Double) lhsValue,
+                                (Double) rhsValue);
+                        }
+                        return CompareOperator.compareValues(lhsValue, rhsValue);
+                    }
+                };
+            }
+            else if (lhsClass == String.class) {
+                return new CompareExpression(type, lhs, rhs) {
+                    @Override
+                    int compare(Object lhsValue, Object rhsValue) {
+                        if (lhsValue instanceof String &&
+                            rhsValue instanceof String) {
+                            return ((String) lhsValue).compareTo(
+                                (String) rhsValue);
+                        }
+                        return CompareOperator.compareValues(lhsValue, rhsValue);
+                    }
+                };
+            }
+        }
+
+        // The operand types are unknown, or differ, so use the same
+        // comparison as the interpreter.
+        return new CompareExpression(type, lhs, rhs) {
+            @Override
+            int compare(Object lhsValue, Object rhsValue) {
+                return CompareOperator.compareValues(lhsValue, rhsValue);
+            }
+        };
+    }
+
+
+    /** Compiles an <tt>AND</tt>, <tt>OR</tt> or <tt>NOT</tt> expression. */
+    private static CompiledExpression compileBoolean(BooleanOperator bool) {
+        int numTerms = bool.getNumTerms();
+        BooleanOperator.Type type = bool.getType();
+
+        // Malformed expressions are left to the interpreter, which reports
+        // the error when the expression is evaluated.
+        if (numTerms == 0 || (type == BooleanOperator.Type.NOT_EXPR &&
+                              numTerms != 1)) {
+            return new InterpretedExpression(bool);
+        }
+
+        CompiledExpression[] terms = new CompiledExpression[numTerms];
+        for (int i = 0; i < numTerms; i++)
+            terms[i] = compileNode(bool.getTerm(i));
+
+        switch (type) {
+        case AND_EXPR:
+            return new AndExpression(terms);
+
+        case OR_EXPR:
+            return new OrExpression(terms);
+
+        default:
+            assert type == BooleanOperator.Type.NOT_EXPR;
+            return new NotExpression(terms[0]);
+        }
+    }
+
+
+    /**
+     * Returns the Java class of the values that an expression produces, if
+     * it can be determined before the expression is evaluated, or
+     * {@code null} otherwise.  Only literals and bound column references of
+     * the types that comparisons are specialized for are recognized.
+     */
+    private static Class<?> getValueClass(Expression expr) {
+        if (expr instanceof LiteralValue) {
+            Object value = expr.evaluate();
+            return (value != null) ? value.getClass() : null;
+        }
+
+        if (expr instanceof ColumnValue) {
+            ColumnType colType = ((ColumnValue) expr).getBoundColumnType();
+            if (colType == null)
+                return null;
+
+            switch (colType.getBaseType()) {
+            case INTEGER:
+                return Integer.class;
+
+            case BIGINT:
+                return Long.class;
+
+            case DOUBLE:
+                return Double.class;
+
+            case CHAR:
+            case VARCHAR:
+                return String.class;
+            }
+        }
+
+        return null;
+    }
+
+
+    /**
+     * Converts a literal value to the specified class, if the interpreter
+     * would convert it to that class when comparing it to a value of that
+     * class.  Only widening numeric conversions are performed; otherwise
+     * the value is returned unchanged.
+     */
+    private static Object widenLiteral(Object value, Class<?> cls) {
+        if (cls == Long.class && value instanceof Integer)
+            return Long.valueOf(((Integer) value).longValue());
+
+        if (cls == Double.class && (value instanceof Integer ||
+            value instanceof Long || value instanceof Float)) {
+            return Double.valueOf(((Number) value).doubleValue());
+        }
+
+        return value;
+    }
+}
@@ -2,6 +2,9 @@ package edu.caltech.nanodb.expressions;
 
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
 
 import edu.caltech.nanodb.queryast.SelectClause;
 import edu.caltech.nanodb.relations.ColumnInfo;
@@ -21,6 +24,12 @@ import edu.caltech.nanodb.relations.Tuple;
  * The <tt>expr NOT IN (...)</tt> operator is translated into <tt>NOT (expr IN
  * (...))</tt> by the parser.
  * </p>
+ * <p>
+ * If the subquery's result cache is enabled, the subquery's values are
+ * materialized into a hash set the first time they are needed (for each
+ * combination of correlated values), and the left-hand value is then looked
+ * up in the set instead of rerunning the subquery.
+ * </p>
  */
 public class InSubqueryOperator extends SubqueryOperator {
     /**
@@ -42,6 +51,16 @@ public class InSubqueryOperator extends SubqueryOperator {
     }
 
 
+    /**
+     * Returns the expression that is checked against the subquery's values.
+     *
+     * @return the expression that is checked against the subquery's values
+     */
+    public Expression getExpression() {
+        return expr;
+    }
+
+
     public ColumnInfo getColumnInfo(Schema schema) throws SchemaNameException {
         // Comparisons always return Boolean values, so just pass a Boolean
         // value in to the TypeConverter to get out the corresponding SQL type.
@@ -51,6 +70,55 @@ public class InSubqueryOperator extends SubqueryOperator {
     }
 
 
+    /**
+     * The materialized values produced by the subquery.  Values that have
+     * the same class as the left-hand value are looked up in a hash set;
+     * since equal values of the same class are compared with
+     * {@link Object#equals}, this gives the same answer as
+     * {@link CompareOperator#areObjectsEqual}.  Otherwise the values are
+     * compared one by one, so that type coercion is still applied.
+     */
+    private static class SubqueryValues {
+        /** The non-<tt>NULL</tt> values produced by the subquery. */
+        ArrayList<Object> values = new ArrayList<>();
+
+        /** The same values as {@link #values}, in a hash set. */
+        HashSet<Object> valueSet = new HashSet<>();
+
+        /**
+         * The class of all the values, or {@code null} if the values have
+         * different classes (or there are no values).
+         */
+        Class<?> valueClass;
+
+
+        void add(Object value) {
+            if (value == null)
+                return;
+
+            if (values.isEmpty())
+                valueClass = value.getClass();
+            else if (valueClass != value.getClass())
+                valueClass = null;
+
+            values.add(value);
+            valueSet.add(value);
+        }
+
+
+        boolean contains(Object value) {
+            if (value.getClass() == valueClass)
+                return valueSet.contains(value);
+
+            for (Object v : values) {
+                if (CompareOperator.areObjectsEqual(value, v))
+                    return true;
+            }
+            return false;
+        }
+    }
+
+
     /**
      * Evaluates this comparison expression and returns either
      * {@link java.lang.Boolean#TRUE} or {@link java.lang.Boolean#FALSE}.  If
@@ -72,6 +140,19 @@ public class InSubqueryOperator extends SubqueryOperator {
         if (subqueryPlan == null)
             throw new IllegalStateException("No execution plan for subquery");
 
+        if (isResultCacheEnabled()) {
+            List<Object> key = getCacheKey(env);
+            SubqueryValues values;
+            if (hasCachedResult(key)) {
+                values = (SubqueryValues) getCachedResult(key);
+            }
+            else {
+                values = materializeValues();
+                cacheResult(key, values);
+            }
+            return Boolean.valueOf(values.contains(exprObj));
+        }
+
         try {
             subqueryPlan.initialize();
             while (true) {
@@ -95,6 +176,32 @@ public class InSubqueryOperator extends SubqueryOperator {
     }
 
 
+    /**
+     * Runs the subquery to completion, and collects the values it produces.
+     *
+     * @return the values produced by the subquery
+     */
+    private SubqueryValues materializeValues() {
+        SubqueryValues values = new SubqueryValues();
+        try {
+            subqueryPlan.initialize();
+            while (true) {
+                Tuple tup = subqueryPlan.getNextTuple();
+                if (tup == null)
+                    break;
+
+                values.add(tup.getColumnValue(0));
+                tup.unpin();
+            }
+            subqueryPlan.cleanUp();
+        }
+        catch (IOException e) {
+            throw new ExpressionException("Error while evaluating subquery", e);
+        }
+        return values;
+    }
+
+
     @Override
     public Expression traverse(ExpressionProcessor p) {
         p.enter(this);
@@ -2,6 +2,7 @@ package edu.caltech.nanodb.expressions;
 
 
 import java.io.IOException;
+import java.util.List;
 
 import edu.caltech.nanodb.queryast.SelectClause;
 import edu.caltech.nanodb.relations.ColumnInfo;
@@ -12,27 +13,16 @@ import edu.caltech.nanodb.relations.Tuple;
 
 /**
  * This class represents a scalar subquery embedded in another query's
- * predicate.
+ * predicate.  If the subquery's result cache is enabled, the subquery is only
+ * evaluated once for each combination of correlated values.
  */
 public class ScalarSubquery extends SubqueryOperator {
-    /** The cached result of evaluating the scalar subquery. */
-    Object result;
-
-
-    /**
-     * A flag indicating whether the subquery has been evaluated, and
-     * therefore whether {@link #result} is valid or not.
-     */
-    boolean evaluated;
-
 
     public ScalarSubquery(SelectClause subquery) {
         if (subquery == null)
             throw new IllegalArgumentException("subquery cannot be null");
 
         this.subquery = subquery;
-
-        this.evaluated = false;
     }
 
 
@@ -55,46 +45,52 @@ public class ScalarSubquery extends SubqueryOperator {
         if (subqueryPlan == null)
             throw new IllegalStateException("No execution plan for subquery");
 
-        if (!evaluated) {
-            // Initialize the subquery plan so that it can be evaluated.
-            subqueryPlan.initialize();
-
-            try {
-                // Get the first tuple from the subquery, and make sure it has
-                // exactly one row and one column.
-
-                Tuple t1 = subqueryPlan.getNextTuple();
-                if (t1 == null) {
-                    throw new ExpressionException(
-                        "Scalar subquery must produce exactly one row (got 0)");
-                }
-
-                int numCols = t1.getColumnCount();
-                if (numCols != 1) {
-                    t1.unpin();
-                    throw new ExpressionException(
-                        "Scalar subquery must produce exactly one column (got " +
-                            numCols + " instead)");
-                }
-
-                // Make sure the subquery plan doesn't generate a second tuple!
-
-                Tuple t2 = subqueryPlan.getNextTuple();
-                if (t2 != null) {
-                    t1.unpin();
-                    t2.unpin();
-                    throw new ExpressionException(
-                        "Scalar subquery must produce exactly one row (got > 1)");
-                }
-
-                result = t1.getColumnValue(0);
+        List<Object> key = getCacheKey(env);
+        if (hasCachedResult(key))
+            return getCachedResult(key);
+
+        Object result;
+
+        // Initialize the subquery plan so that it can be evaluated.
+        subqueryPlan.initialize();
+
+        try {
+            // Get the first tuple from the subquery, and make sure it has
+            // exactly one row and one column.
+
+            Tuple t1 = subqueryPlan.getNextTuple();
+            if (t1 == null) {
+                throw new ExpressionException(
+                    "Scalar subquery must produce exactly one row (got 0)");
+            }
+
+            int numCols = t1.getColumnCount();
+            if (numCols != 1) {
                 t1.unpin();
+                throw new ExpressionException(
+                    "Scalar subquery must produce exactly one column (got " +
+                        numCols + " instead)");
             }
-            catch (IOException e) {
-                throw new ExpressionException("Error while evaluating subquery", e);
+
+            // Make sure the subquery plan doesn't generate a second tuple!
+
+            Tuple t2 = subqueryPlan.getNextTuple();
+            if (t2 != null) {
+                t1.unpin();
+                t2.unpin();
+                throw new ExpressionException(
+                    "Scalar subquery must produce exactly one row (got > 1)");
             }
+
+            result = t1.getColumnValue(0);
+            t1.unpin();
+            subqueryPlan.cleanUp();
+        }
+        catch (IOException e) {
+            throw new ExpressionException("Error while evaluating subquery", e);
         }
 
+        cacheResult(key, result);
         return result;
     }
 
@@ -1,5 +1,11 @@
 package edu.caltech.nanodb.expressions;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
 import edu.caltech.nanodb.queryast.SelectClause;
 import edu.caltech.nanodb.plannodes.PlanNode;
 
@@ -25,6 +31,14 @@ import edu.caltech.nanodb.plannodes.PlanNode;
  * to schemas that only make sense in the context of the subquery; thus,
  * the subquery should be processed separately from the expression traversal.
  * </p>
+ * <p>
+ * If the planner enables the result cache, the results of evaluating the
+ * subquery are remembered, keyed on the values of the columns the subquery
+ * is correlated with.  An uncorrelated subquery is therefore only executed
+ * once, and a correlated subquery is only executed once for each distinct
+ * combination of outer values.  The planner must only enable the cache if
+ * the subquery's results depend on nothing but these values.
+ * </p>
  *
  * @see edu.caltech.nanodb.queryast.SubquerySchemaComputer
  */
@@ -45,6 +59,29 @@ public abstract class SubqueryOperator extends Expression {
     protected PlanNode subqueryPlan;
 
 
+    /**
+     * The maximum number of subquery results that are cached for different
+     * correlated values.  When the cache is full, the least recently used
+     * result is discarded.
+     */
+    public static final int MAX_CACHED_RESULTS = 1000;
+
+
+    /**
+     * The columns from enclosing queries whose values the subquery's results
+     * depend on, or {@code null} if the result cache is disabled.
+     */
+    private ArrayList<ColumnValue> cacheKeyColumns;
+
+
+    /**
+     * The cached results of the subquery, keyed on the values of
+     * {@link #cacheKeyColumns}, or {@code null} if the result cache is
+     * disabled.
+     */
+    private LinkedHashMap<List<Object>, Object> resultCache;
+
+
     /**
      * Returns the parsed representation of the subquery that is used by this
      * operator.
@@ -75,4 +112,115 @@ public abstract class SubqueryOperator extends Expression {
     public PlanNode getSubqueryPlan() {
         return subqueryPlan;
     }
+
+
+    /**
+     * Enables caching the subquery's results, keyed on the values of the
+     * specified columns from enclosing queries.  The collection is empty if
+     * the subquery is uncorrelated.
+     *
+     * @param correlatedColumns the columns from enclosing queries whose
+     *        values the subquery's results depend on
+     */
+    public void enableResultCache(Collection<ColumnName> correlatedColumns) {
+        cacheKeyColumns = new ArrayList<>();
+        for (ColumnName colName : correlatedColumns)
+            cacheKeyColumns.add(new ColumnValue(colName));
+
+        resultCache = new LinkedHashMap<List<Object>, Object>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<List<Object>, Object> e) {
+                return size() > MAX_CACHED_RESULTS;
+            }
+        };
+    }
+
+
+    /**
+     * Returns true if the subquery's results are cached.
+     *
+     * @return true if the subquery's results are cached
+     */
+    public boolean isResultCacheEnabled() {
+        return (resultCache != null);
+    }
+
+
+    /**
+     * Computes the key that the subquery's result is cached under, from the
+     * values of the correlated columns in the specified environment.
+     *
+     * @param env the environment to evaluate the correlated columns in
+     *
+     * @return the cache key, or {@code null} if the result cache is disabled
+     */
+    protected List<Object> getCacheKey(Environment env) {
+        if (resultCache == null)
+            return null;
+
+        ArrayList<Object> key = new ArrayList<>(cacheKeyColumns.size());
+        for (ColumnValue colValue : cacheKeyColumns)
+            key.add(colValue.evaluate(env));
+
+        return key;
+    }
+
+
+    /**
+     * Returns true if a result is cached under the specified key.  Since
+     * results may be {@code null}, this must be checked before calling
+     * {@link #getCachedResult}.
+     *
+     * @param key the cache key, which may be {@code null} if the result
+     *        cache is disabled
+     *
+     * @return true if a result is cached under the key
+     */
+    protected boolean hasCachedResult(List<Object> key) {
+        return key != null && resultCache.containsKey(key);
+    }
+
+
+    /**
+     * Returns the result cached under the specified key.
+     *
+     * @param key the cache key
+     *
+     * @return the cached result
+     */
+    protected Object getCachedResult(List<Object> key) {
+        return resultCache.get(key);
+    }
+
+
+    /**
+     * Caches the subquery's result under the specified key, if the result
+     * cache is enabled.
+     *
+     * @param key the cache key, which may be {@code null} if the result
+     *        cache is disabled
+     *
+     * @param result the result to cache
+     */
+    protected void cacheResult(List<Object> key, Object result) {
+        if (key != null)
+            resultCache.put(key, result);
+    }
+
+
+    /**
+     * Creates a copy of the expression.  The copy shares the subquery plan,
+     * but gets its own result cache.
+     */
+    @Override
+    protected Object clone() throws CloneNotSupportedException {
+        SubqueryOperator op = (SubqueryOperator) super.clone();
+        if (resultCache != null) {
+            List<ColumnName> colNames = new ArrayList<>();
+            for (ColumnValue colValue : cacheKeyColumns)
+                colNames.add(colValue.getColumnName());
+            op.enableResultCache(colNames);
+        }
+        return op;
+    }
 }
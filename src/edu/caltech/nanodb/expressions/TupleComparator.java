@@ -65,6 +65,11 @@ public class TupleComparator implements Comparator<Tuple> {
 
         this.schema = schema;
         this.orderSpec = new ArrayList<OrderByExpression>(orderSpec);
+
+        // Resolve the order-by expressions' column references once, rather
+        // than for every comparison.
+        for (OrderByExpression obExpr : orderSpec)
+            ColumnBinder.bindColumns(obExpr.getExpression(), schema);
     }
 
 
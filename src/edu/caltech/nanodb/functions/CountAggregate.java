@@ -53,6 +53,25 @@ public class CountAggregate extends AggregateFunction {
     }
 
 
+    /** Returns true if this aggregate only counts distinct values. */
+    public boolean isDistinct() {
+        return distinct;
+    }
+
+
+    /**
+     * Creates a copy of the aggregate, with its own set of the values seen
+     * so far.
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public Object clone() throws CloneNotSupportedException {
+        CountAggregate aggregate = (CountAggregate) super.clone();
+        aggregate.valuesSeen = (HashSet<Object>) valuesSeen.clone();
+        return aggregate;
+    }
+
+
     @Override
     public void clearResult() {
         count = -1;
@@ -38,6 +38,12 @@ public class MinMaxAggregate extends AggregateFunction {
     }
 
 
+    /** Returns true if this aggregate computes the minimum value. */
+    public boolean isMinimum() {
+        return minimumSwitch > 0;
+    }
+
+
     @Override
     public void clearResult() {
         result = null;
@@ -49,6 +49,32 @@ public class SumAvgAggregate extends AggregateFunction {
     }
 
 
+    /** Returns true if this aggregate computes an average, not a sum. */
+    public boolean computesAverage() {
+        return computeAverage;
+    }
+
+
+    /** Returns true if this aggregate only includes distinct values. */
+    public boolean isDistinct() {
+        return distinct;
+    }
+
+
+    /**
+     * Creates a copy of the aggregate, with its own set of the distinct
+     * values seen so far.
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public Object clone() throws CloneNotSupportedException {
+        SumAvgAggregate aggregate = (SumAvgAggregate) super.clone();
+        if (set != null)
+            aggregate.set = (HashSet<Object>) set.clone();
+        return aggregate;
+    }
+
+
     @Override
     public void clearResult() {
         sum = null;
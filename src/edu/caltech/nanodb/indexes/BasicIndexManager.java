@@ -8,12 +8,15 @@ import java.util.List;
 
 import org.apache.log4j.Logger;
 
+import edu.caltech.nanodb.expressions.TupleComparator;
 import edu.caltech.nanodb.expressions.TupleLiteral;
+import edu.caltech.nanodb.queryeval.ExecutionProperties;
 import edu.caltech.nanodb.relations.ColumnRefs;
 import edu.caltech.nanodb.relations.KeyColumnRefs;
 import edu.caltech.nanodb.relations.TableConstraintType;
 import edu.caltech.nanodb.relations.TableInfo;
 import edu.caltech.nanodb.relations.TableSchema;
+import edu.caltech.nanodb.relations.Tuple;
 import edu.caltech.nanodb.storage.DBFile;
 import edu.caltech.nanodb.storage.DBFileType;
 import edu.caltech.nanodb.storage.FileManager;
@@ -21,6 +24,9 @@ import edu.caltech.nanodb.storage.PageTuple;
 import edu.caltech.nanodb.storage.TupleFile;
 import edu.caltech.nanodb.storage.StorageManager;
 import edu.caltech.nanodb.storage.TupleFileManager;
+import edu.caltech.nanodb.storage.TupleSorter;
+import edu.caltech.nanodb.storage.btreefile.BTreeBulkLoader;
+import edu.caltech.nanodb.storage.btreefile.BTreeTupleFile;
 
 
 public class BasicIndexManager implements IndexManager {
@@ -165,6 +171,12 @@ public class BasicIndexManager implements IndexManager {
         TupleFile tableTupleFile = srcTableInfo.getTupleFile();
         TupleFile indexTupleFile = newIndexInfo.getTupleFile();
 
+        if (indexTupleFile instanceof BTreeTupleFile) {
+            bulkLoadIndex(tableTupleFile, (BTreeTupleFile) indexTupleFile,
+                columnRefs, unique);
+            return;
+        }
+
         // Traverse the tuples in the table, so we can populate the index.
         PageTuple curTuple = (PageTuple) tableTupleFile.getFirstTuple();
         while (curTuple != null) {
@@ -195,6 +207,81 @@ public class BasicIndexManager implements IndexManager {
     }
 
 
+    /**
+     * Populates a new B<sup>+</sup> tree index by sorting the index tuples
+     * for all rows in the table, and then building the index bottom-up with
+     * a {@link BTreeBulkLoader}.  This is much faster than inserting the
+     * index tuples one by one.  If the index is unique, the sorted tuples are
+     * also checked for repeated key values.
+     *
+     * @param tableTupleFile the tuple file of the table being indexed
+     *
+     * @param indexTupleFile the new, empty index file
+     *
+     * @param columnRefs the table columns that the index is built on
+     *
+     * @param unique true if the index must not contain repeated key values
+     *
+     * @throws IOException if an IO error occurs while sorting the tuples or
+     *         while writing the index
+     *
+     * @throws IllegalStateException if the index is unique, and the table
+     *         contains repeated key values
+     */
+    private void bulkLoadIndex(TupleFile tableTupleFile,
+                               BTreeTupleFile indexTupleFile,
+                               ColumnRefs columnRefs, boolean unique)
+        throws IOException {
+
+        TupleSorter sorter = new TupleSorter(storageManager,
+            indexTupleFile.getSchema(), BTreeTupleFile.TUPLE_ORDER,
+            ExecutionProperties.getWorkMemSize());
+
+        try {
+            PageTuple curTuple = (PageTuple) tableTupleFile.getFirstTuple();
+            while (curTuple != null) {
+                sorter.addTuple(IndexUtils.makeTableSearchKey(columnRefs,
+                    curTuple, /* findExactTuple */ true));
+
+                curTuple = (PageTuple) tableTupleFile.getNextTuple(curTuple);
+            }
+            sorter.finish();
+
+            // Since the index tuples are sorted on the key columns first,
+            // any repeated key values will be adjacent.
+            int numKeyCols = columnRefs.size();
+            TupleLiteral prevKey = null;
+
+            BTreeBulkLoader loader = indexTupleFile.getBulkLoader();
+            while (true) {
+                Tuple idxTup = sorter.getNextTuple();
+                if (idxTup == null)
+                    break;
+
+                if (unique) {
+                    TupleLiteral key = new TupleLiteral();
+                    for (int i = 0; i < numKeyCols; i++)
+                        key.addValue(idxTup.getColumnValue(i));
+
+                    if (prevKey != null &&
+                        TupleComparator.compareTuples(key, prevKey) == 0) {
+                        // Adding this row would violate the unique index.
+                        throw new IllegalStateException("Unique index " +
+                            "already contains a tuple with this value.");
+                    }
+                    prevKey = key;
+                }
+
+                loader.addTuple(idxTup);
+            }
+            loader.finish();
+        }
+        finally {
+            sorter.delete();
+        }
+    }
+
+
     /**
      * Creates a new index file with the index name, table name, and column list
      * specified in the passed-in <tt>IndexInfo</tt> object.  Additional
@@ -421,7 +508,7 @@ public class BasicIndexManager implements IndexManager {
 
     @Override
     public void optimizeIndex(IndexInfo idxFileInfo) throws IOException {
-        throw new UnsupportedOperationException("NYI");
+        idxFileInfo.getTupleFile().optimize();
     }
 
     @Override
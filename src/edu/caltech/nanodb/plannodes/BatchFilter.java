@@ -0,0 +1,436 @@
+package edu.caltech.nanodb.plannodes;
+
+
+import java.util.ArrayList;
+import java.util.SortedMap;
+
+import edu.caltech.nanodb.expressions.BooleanOperator;
+import edu.caltech.nanodb.expressions.ColumnValue;
+import edu.caltech.nanodb.expressions.CompareOperator;
+import edu.caltech.nanodb.expressions.CompiledExpression;
+import edu.caltech.nanodb.expressions.Environment;
+import edu.caltech.nanodb.expressions.Expression;
+import edu.caltech.nanodb.expressions.LiteralValue;
+import edu.caltech.nanodb.relations.ColumnInfo;
+import edu.caltech.nanodb.relations.Schema;
+import edu.caltech.nanodb.relations.TupleBatch;
+
+
+/**
+ * <p>
+ * This class applies a selection predicate to the rows of a
+ * {@link TupleBatch}, removing the rows that don't satisfy the predicate.
+ * </p>
+ * <p>
+ * The predicate is split into its conjuncts.  Each conjunct that compares an
+ * <tt>INTEGER</tt>, <tt>BIGINT</tt> or <tt>DOUBLE</tt> column to a numeric
+ * literal is evaluated with a loop over the column's primitive values, in
+ * the same domain that the expression interpreter would coerce the values
+ * to.  The remaining conjuncts are evaluated one row at a time, only for the
+ * rows that satisfy the vectorized conjuncts, using the plan node's compiled
+ * predicate if it has one.
+ * </p>
+ */
+class BatchFilter {
+
+    /**
+     * A comparison between a primitive column and a constant, evaluated over
+     * a batch.  A row satisfies the comparison if its value is not
+     * <tt>NULL</tt>, and the result of comparing the value to the constant
+     * is one that the comparison accepts.
+     */
+    private static class VectorCondition {
+        /** The index of the column being compared. */
+        int colIndex;
+
+        /** The comparison is satisfied if the value is less than the constant. */
+        boolean acceptLess;
+
+        /** The comparison is satisfied if the value equals the constant. */
+        boolean acceptEqual;
+
+        /** The comparison is satisfied if the value exceeds the constant. */
+        boolean acceptGreater;
+
+        /** The constant, if the comparison is done on <tt>int</tt> values. */
+        int intConst;
+
+        /** The constant, if the comparison is done on <tt>long</tt> values. */
+        long longConst;
+
+        /** The constant, if the comparison is done on <tt>double</tt> values. */
+        double doubleConst;
+
+        /** The kind of comparison:  'I'nt, 'L'ong or 'D'ouble. */
+        char domain;
+
+        /** The comparison that this condition evaluates. */
+        Expression conjunct;
+
+        /**
+         * Clears the flags of the rows that don't satisfy the condition.
+         * Returns false if the column's values aren't stored in a primitive
+         * vector, in which case the condition must be evaluated one row at
+         * a time.
+         */
+        boolean apply(TupleBatch batch, int fromRow, boolean[] keep) {
+            TupleBatch.ColumnVector column = batch.getColumn(colIndex);
+            boolean[] nulls = column.nulls;
+            int size = batch.size();
+
+            if (column instanceof TupleBatch.IntVector && domain == 'I') {
+                int[] values = ((TupleBatch.IntVector) column).values;
+                for (int row = fromRow; row < size; row++) {
+                    if (keep[row]) {
+                        int v = values[row];
+                        keep[row] = !nulls[row] && (v < intConst ? acceptLess :
+                            (v == intConst ? acceptEqual : acceptGreater));
+                    }
+                }
+            }
+            else if (column instanceof TupleBatch.IntVector && domain == 'L') {
+                int[] values = ((TupleBatch.IntVector) column).values;
+                for (int row = fromRow; row < size; row++) {
+                    if (keep[row]) {
+                        long v = values[row];
+                        keep[row] = !nulls[row] && (v < longConst ? acceptLess :
+                            (v == longConst ? acceptEqual : acceptGreater));
+                    }
+                }
+            }
+            else if (column instanceof TupleBatch.LongVector && domain == 'L') {
+                long[] values = ((TupleBatch.LongVector) column).values;
+                for (int row = fromRow; row < size; row++) {
+                    if (keep[row]) {
+                        long v = values[row];
+                        keep[row] = !nulls[row] && (v < longConst ? acceptLess :
+                            (v == longConst ? acceptEqual : acceptGreater));
+                    }
+                }
+            }
+            else if (domain == 'D' && column instanceof TupleBatch.IntVector) {
+                int[] values = ((TupleBatch.IntVector) column).values;
+                for (int row = fromRow; row < size; row++) {
+                    if (keep[row]) {
+                        keep[row] = !nulls[row] &&
+                            testCompare(Double.compare(values[row], doubleConst));
+                    }
+                }
+            }
+            else if (domain == 'D' && column instanceof TupleBatch.LongVector) {
+                long[] values = ((TupleBatch.LongVector) column).values;
+                for (int row = fromRow; row < size; row++) {
+                    if (keep[row]) {
+                        keep[row] = !nulls[row] &&
+                            testCompare(Double.compare(values[row], doubleConst));
+                    }
+                }
+            }
+            else if (domain == 'D' && column instanceof TupleBatch.DoubleVector) {
+                double[] values = ((TupleBatch.DoubleVector) column).values;
+                for (int row = fromRow; row < size; row++) {
+                    if (keep[row]) {
+                        keep[row] = !nulls[row] &&
+                            testCompare(Double.compare(values[row], doubleConst));
+                    }
+                }
+            }
+            else {
+                // The column's values were stored as objects.
+                return false;
+            }
+
+            return true;
+        }
+
+        boolean testCompare(int cmp) {
+            return cmp < 0 ? acceptLess : (cmp == 0 ? acceptEqual : acceptGreater);
+        }
+    }
+
+
+    /** The schema of the batches being filtered. */
+    private Schema schema;
+
+
+    /** The conjuncts that are evaluated over whole columns. */
+    private ArrayList<VectorCondition> conditions = new ArrayList<>();
+
+
+    /**
+     * The conjuncts that are evaluated one row at a time, or {@code null} if
+     * there are none.
+     */
+    private Expression residual;
+
+
+    /** The compiled form of {@link #residual}, or {@code null}. */
+    private CompiledExpression compiledResidual;
+
+
+    /**
+     * The plan node's environment, which is used to evaluate the conjuncts
+     * that aren't vectorized, so that they can refer to the environments of
+     * enclosing queries.
+     */
+    private Environment environment;
+
+
+    /** A flag for each row of a batch, recording whether it is kept. */
+    private boolean[] keep;
+
+
+    /**
+     * Constructs a filter for the specified predicate.
+     *
+     * @param predicate the predicate, whose column references are bound to
+     *        the specified schema
+     *
+     * @param compiledPredicate the compiled form of the predicate, or
+     *        {@code null} if it is interpreted
+     *
+     * @param schema the schema of the batches that will be filtered
+     *
+     * @param environment the plan node's environment
+     */
+    BatchFilter(Expression predicate, CompiledExpression compiledPredicate,
+                Schema schema, Environment environment) {
+        this.schema = schema;
+        this.environment = environment;
+
+        ArrayList<Expression> conjuncts = new ArrayList<>();
+        if (predicate instanceof BooleanOperator &&
+            ((BooleanOperator) predicate).getType() ==
+                BooleanOperator.Type.AND_EXPR) {
+            BooleanOperator andOp = (BooleanOperator) predicate;
+            for (int i = 0; i < andOp.getNumTerms(); i++)
+                conjuncts.add(andOp.getTerm(i));
+        }
+        else {
+            conjuncts.add(predicate);
+        }
+
+        ArrayList<Expression> residualTerms = new ArrayList<>();
+        for (Expression conjunct : conjuncts) {
+            VectorCondition cond = makeCondition(conjunct);
+            if (cond != null)
+                conditions.add(cond);
+            else
+                residualTerms.add(conjunct);
+        }
+
+        if (residualTerms.size() == conjuncts.size()) {
+            // Nothing could be vectorized, so use the whole predicate.
+            residual = predicate;
+            compiledResidual = compiledPredicate;
+        }
+        else if (residualTerms.size() == 1) {
+            residual = residualTerms.get(0);
+            if (compiledPredicate != null)
+                compiledResidual = PlanNode.compileExpression(residual);
+        }
+        else if (residualTerms.size() > 1) {
+            residual = new BooleanOperator(BooleanOperator.Type.AND_EXPR,
+                residualTerms);
+            if (compiledPredicate != null)
+                compiledResidual = PlanNode.compileExpression(residual);
+        }
+    }
+
+
+    /**
+     * Removes the rows from <tt>fromRow</tt> onward that don't satisfy the
+     * predicate from the batch.
+     *
+     * @param batch the batch to filter
+     *
+     * @param fromRow the first row to filter; earlier rows have already
+     *        been filtered
+     */
+    void filter(TupleBatch batch, int fromRow) {
+        int size = batch.size();
+        if (fromRow >= size)
+            return;
+
+        if (keep == null || keep.length < batch.getCapacity())
+            keep = new boolean[batch.getCapacity()];
+
+        for (int row = fromRow; row < size; row++)
+            keep[row] = true;
+
+        for (VectorCondition cond : conditions) {
+            if (!cond.apply(batch, fromRow, keep))
+                evaluateRows(batch, fromRow, cond.conjunct, null);
+        }
+
+        if (residual != null)
+            evaluateRows(batch, fromRow, residual, compiledResidual);
+
+        batch.retainRows(fromRow, keep);
+    }
+
+
+    /**
+     * Evaluates an expression against each row of the batch that is still
+     * kept, clearing the flags of the rows that don't satisfy it.
+     */
+    private void evaluateRows(TupleBatch batch, int fromRow, Expression expr,
+                              CompiledExpression compiled) {
+        int size = batch.size();
+        for (int row = fromRow; row < size; row++) {
+            if (!keep[row])
+                continue;
+
+            environment.clear();
+            environment.addTuple(schema, batch.getTuple(row));
+
+            if (compiled != null)
+                keep[row] = compiled.evaluatePredicate(environment);
+            else
+                keep[row] = expr.evaluatePredicate(environment);
+        }
+    }
+
+
+    /**
+     * Returns a vectorized form of a comparison between a numeric column and
+     * a numeric literal, or {@code null} if the expression isn't such a
+     * comparison.
+     */
+    private VectorCondition makeCondition(Expression expr) {
+        if (!(expr instanceof CompareOperator))
+            return null;
+
+        CompareOperator cmp = (CompareOperator) expr;
+        Expression lhs = cmp.getLeftExpression();
+        Expression rhs = cmp.getRightExpression();
+        CompareOperator.Type type = cmp.getType();
+
+        if (lhs instanceof LiteralValue && rhs instanceof ColumnValue) {
+            // Swap the operands, so the column is on the left.
+            Expression tmp = lhs;
+            lhs = rhs;
+            rhs = tmp;
+            type = flip(type);
+        }
+
+        if (!(lhs instanceof ColumnValue && rhs instanceof LiteralValue))
+            return null;
+
+        SortedMap<Integer, ColumnInfo> found =
+            schema.findColumns(((ColumnValue) lhs).getColumnName());
+        if (found.size() != 1)
+            return null;
+
+        int colIndex = found.firstKey();
+        Object constant = rhs.evaluate();
+
+        VectorCondition cond = new VectorCondition();
+        cond.colIndex = colIndex;
+        cond.conjunct = expr;
+
+        // Determine the domain the interpreter would compare the values in.
+        switch (found.get(colIndex).getType().getBaseType()) {
+        case INTEGER:
+            if (constant instanceof Integer) {
+                cond.domain = 'I';
+                cond.intConst = (Integer) constant;
+            }
+            else if (constant instanceof Long) {
+                cond.domain = 'L';
+                cond.longConst = (Long) constant;
+            }
+            else if (constant instanceof Double) {
+                cond.domain = 'D';
+                cond.doubleConst = (Double) constant;
+            }
+            else {
+                return null;
+            }
+            break;
+
+        case BIGINT:
+            if (constant instanceof Integer || constant instanceof Long) {
+                cond.domain = 'L';
+                cond.longConst = ((Number) constant).longValue();
+            }
+            else if (constant instanceof Double) {
+                cond.domain = 'D';
+                cond.doubleConst = (Double) constant;
+            }
+            else {
+                return null;
+            }
+            break;
+
+        case DOUBLE:
+            if (constant instanceof Integer || constant instanceof Long ||
+                constant instanceof Float || constant instanceof Double) {
+                cond.domain = 'D';
+                cond.doubleConst = ((Number) constant).doubleValue();
+            }
+            else {
+                return null;
+            }
+            break;
+
+        default:
+            return null;
+        }
+
+        switch (type) {
+        case EQUALS:
+            cond.acceptEqual = true;
+            break;
+
+        case NOT_EQUALS:
+            cond.acceptLess = true;
+            cond.acceptGreater = true;
+            break;
+
+        case LESS_THAN:
+            cond.acceptLess = true;
+            break;
+
+        case GREATER_THAN:
+            cond.acceptGreater = true;
+            break;
+
+        case LESS_OR_EQUAL:
+            cond.acceptLess = true;
+            cond.acceptEqual = true;
+            break;
+
+        case GREATER_OR_EQUAL:
+            cond.acceptGreater = true;
+            cond.acceptEqual = true;
+            break;
+
+        default:
+            return null;
+        }
+
+        return cond;
+    }
+
+
+    /** Returns the comparison with its operands swapped. */
+    private static CompareOperator.Type flip(CompareOperator.Type type) {
+        switch (type) {
+        case LESS_THAN:
+            return CompareOperator.Type.GREATER_THAN;
+
+        case GREATER_THAN:
+            return CompareOperator.Type.LESS_THAN;
+
+        case LESS_OR_EQUAL:
+            return CompareOperator.Type.GREATER_OR_EQUAL;
+
+        case GREATER_OR_EQUAL:
+            return CompareOperator.Type.LESS_OR_EQUAL;
+
+        default:
+            return type;
+        }
+    }
+}
@@ -15,8 +15,11 @@ import edu.caltech.nanodb.queryeval.SelectivityEstimator;
 import edu.caltech.nanodb.queryeval.TableStats;
 import edu.caltech.nanodb.relations.TableInfo;
 import edu.caltech.nanodb.relations.Tuple;
+import edu.caltech.nanodb.relations.TupleBatch;
 import edu.caltech.nanodb.storage.FilePointer;
+import edu.caltech.nanodb.storage.SequentialTupleFile;
 import edu.caltech.nanodb.storage.TupleFile;
+import edu.caltech.nanodb.storage.heapfile.HeapTupleFile;
 import edu.caltech.nanodb.storage.InvalidFilePointerException;
 
 import edu.caltech.nanodb.expressions.Expression;
@@ -71,6 +74,25 @@ public class FileScanNode extends SelectNode {
     private boolean jumpToMarkedTuple;
 
 
+    /**
+     * Applies the predicate to the batches produced by {@link #getNextBatch},
+     * or {@code null} if it hasn't been created yet.
+     */
+    private BatchFilter batchFilter;
+
+
+    /**
+     * If this node is one of the workers of a parallel scan, this is where
+     * it claims the ranges of pages to scan; otherwise it is {@code null},
+     * and the node scans the whole file.
+     */
+    private PageMorsels morsels;
+
+
+    /** The page after the last page of the current morsel. */
+    private int morselEndPageNo;
+
+
     /**
      * Construct a file scan node that traverses a table file.
      *
@@ -107,6 +129,52 @@ public class FileScanNode extends SelectNode {
     }
 
 
+    /**
+     * Returns the table being scanned.
+     *
+     * @return the table being scanned, or {@code null} if the node is
+     *         performing a scan over an index
+     */
+    public TableInfo getTableInfo() {
+        return tableInfo;
+    }
+
+
+    /**
+     * Returns true if this node scans a heap file, which can be split into
+     * ranges of pages that are scanned in parallel.
+     */
+    public boolean isParallelScannable() {
+        return tableInfo != null && tupleFile instanceof HeapTupleFile;
+    }
+
+
+    /**
+     * Returns the number of pages in the heap file this node scans.
+     *
+     * @throws IOException if the file's size can't be determined
+     * @throws IllegalStateException if the node doesn't scan a heap file
+     */
+    public int getNumPages() throws IOException {
+        if (!isParallelScannable())
+            throw new IllegalStateException("Not scanning a heap file");
+
+        return ((HeapTupleFile) tupleFile).getNumPages();
+    }
+
+
+    /**
+     * Makes this node one of the workers of a parallel scan, scanning only
+     * the ranges of pages it claims from the specified morsels.
+     */
+    void setMorsels(PageMorsels morsels) {
+        if (!isParallelScannable())
+            throw new IllegalStateException("Not scanning a heap file");
+
+        this.morsels = morsels;
+    }
+
+
     /**
      * Returns true if the passed-in object is a <tt>FileScanNode</tt> with
      * the same predicate and table.
@@ -159,6 +227,10 @@ public class FileScanNode extends SelectNode {
         // The tuple file doesn't need to be copied since it's immutable.
         node.tupleFile = tupleFile;
 
+        // The batch filter refers to the original predicate.
+        node.batchFilter = null;
+        node.morsels = null;
+
         return node;
     }
 
@@ -190,12 +262,14 @@ public class FileScanNode extends SelectNode {
 
 
     /**
-     * Currently we will always say that the file-scan node produces unsorted
-     * results.  In actuality, a file scan's results will be sorted if the table
-     * file uses a sequential format, but currently we don't have any sequential
-     * file formats.
+     * A file scan's results are sorted if the tuple file uses a sequential
+     * format, such as a B<sup>+</sup> tree file; in that case the file's
+     * ordering is reported.  Otherwise the results are unsorted.
      */
     public List<OrderByExpression> resultsOrderedBy() {
+        if (tupleFile instanceof SequentialTupleFile)
+            return ((SequentialTupleFile) tupleFile).getOrderSpec();
+
         return null;
     }
 
@@ -235,6 +309,11 @@ public class FileScanNode extends SelectNode {
         //        the predicate, but that's too complicated, so we'll leave
         //        them unchanged for now.
         stats = fileStats;
+
+        // Resolve the predicate's column references once, rather than for
+        // every tuple, and compile it.
+        preparePredicate();
+        batchFilter = null;
     }
 
 
@@ -252,6 +331,45 @@ public class FileScanNode extends SelectNode {
     }
 
 
+    /**
+     * Reads tuples from the tuple file directly into a batch, then applies
+     * the predicate to the whole batch.  Reading continues until the batch
+     * is full of tuples that satisfy the predicate, or the end of the file
+     * is reached.
+     */
+    @Override
+    public TupleBatch getNextBatch() throws IOException {
+        if (done)
+            return null;
+
+        if (predicate != null && batchFilter == null)
+            batchFilter = new BatchFilter(predicate, compiledPredicate, schema,
+                environment);
+
+        TupleBatch batch = getOutputBatch();
+        while (!done && !batch.isFull()) {
+            int fromRow = batch.size();
+
+            while (!batch.isFull()) {
+                advanceCurrentTuple();
+                if (currentTuple == null) {
+                    done = true;
+                    break;
+                }
+
+                batch.addTuple(currentTuple);
+                if (currentTuple.isPinned())
+                    currentTuple.unpin();
+            }
+
+            if (batchFilter != null)
+                batchFilter.filter(batch, fromRow);
+        }
+
+        return batch.isEmpty() ? null : batch;
+    }
+
+
     /**
      * Advances the current tuple forward for a file scan. Grabs the first tuple
      * if current is null. Otherwise gets the next tuple.
@@ -274,6 +392,11 @@ public class FileScanNode extends SelectNode {
             return;
         }
 
+        if (morsels != null) {
+            advanceInMorsels();
+            return;
+        }
+
         if (currentTuple == null)   // Get the first tuple.
             currentTuple = tupleFile.getFirstTuple();
         else                        // Get the next tuple.
@@ -281,6 +404,29 @@ public class FileScanNode extends SelectNode {
     }
 
 
+    /**
+     * Advances the current tuple within the current morsel, claiming more
+     * morsels until a tuple is found or all morsels have been claimed.
+     */
+    private void advanceInMorsels() throws IOException {
+        HeapTupleFile heapFile = (HeapTupleFile) tupleFile;
+
+        if (currentTuple != null)
+            currentTuple = heapFile.getNextTupleInPages(currentTuple,
+                morselEndPageNo);
+
+        while (currentTuple == null) {
+            int startPageNo = morsels.claim();
+            if (startPageNo == -1)
+                return;
+
+            morselEndPageNo = morsels.getMorselEnd(startPageNo);
+            currentTuple = heapFile.getFirstTupleInPages(startPageNo,
+                morselEndPageNo);
+        }
+    }
+
+
     public void markCurrentPosition() {
         if (currentTuple == null)
             throw new IllegalStateException("There is no current tuple!");
@@ -296,5 +442,9 @@ public class FileScanNode extends SelectNode {
 
         logger.debug("Resetting to previously marked position in tuple-stream.");
         jumpToMarkedTuple = true;
+
+        // The scan may have reached the end of the file since the mark was
+        // set, so make sure it continues from the marked tuple.
+        done = false;
     }
 }
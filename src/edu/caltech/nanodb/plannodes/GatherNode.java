@@ -0,0 +1,489 @@
+package edu.caltech.nanodb.plannodes;
+
+
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+import edu.caltech.nanodb.expressions.OrderByExpression;
+import edu.caltech.nanodb.expressions.TupleLiteral;
+
+import edu.caltech.nanodb.queryeval.ExecutionProperties;
+import edu.caltech.nanodb.queryeval.PlanCost;
+
+import edu.caltech.nanodb.relations.Tuple;
+import edu.caltech.nanodb.relations.TupleBatch;
+
+
+/**
+ * <p>
+ * This plan node runs several copies of its subplan in parallel, each on its
+ * own worker thread, and gathers their results into a single stream of
+ * tuples.  The subplan is a pipeline over a {@link FileScanNode} on a heap
+ * file, such as a filter, a projection or a partial aggregate over the scan.
+ * The pages of the heap file are split into small ranges (see
+ * {@link PageMorsels}), which the workers' scans claim one at a time, so
+ * every page is scanned by exactly one worker.
+ * </p>
+ * <p>
+ * Each worker copies its results into batches of {@link TupleLiteral}s and
+ * passes them to this node through a bounded queue, so the workers only run
+ * a little ahead of the node's consumer.  The order of the results depends
+ * on how the workers are scheduled.  Any expressions in the subplan must be
+ * safe to evaluate on another thread; in particular, they may not contain
+ * subqueries.
+ * </p>
+ */
+public class GatherNode extends PlanNode {
+
+    /** A logging object for reporting anything interesting that happens. */
+    private static Logger logger = Logger.getLogger(GatherNode.class);
+
+
+    /** The number of heap-file pages in each range claimed by a worker. */
+    public static final int MORSEL_PAGES = 8;
+
+
+    /** The number of tuples in each batch a worker hands to this node. */
+    private static final int BATCH_SIZE = 256;
+
+
+    /**
+     * The number of batches per worker that may be waiting in the queue
+     * before the workers must wait for this node to catch up.
+     */
+    private static final int QUEUED_BATCHES_PER_WORKER = 4;
+
+
+    /** The threads that run the workers of all parallel scans. */
+    private static ExecutorService workerPool = Executors.newCachedThreadPool(
+        new ThreadFactory() {
+            private AtomicInteger nextThreadNo = new AtomicInteger(1);
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r,
+                    "nanodb-scan-worker-" + nextThreadNo.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+
+    /**
+     * The state shared by this node and the workers of one execution of the
+     * subplan.  Each execution gets its own state, so that workers left over
+     * from an execution that was cut short can't affect the next one.
+     */
+    private static class ScanState {
+        /** Marks the end of the results, once all workers have finished. */
+        static final List<TupleLiteral> END = new ArrayList<>(0);
+
+        BlockingQueue<List<TupleLiteral>> queue;
+
+        /** The number of workers that haven't finished yet. */
+        AtomicInteger activeWorkers;
+
+        /** Set to make the workers stop early. */
+        volatile boolean cancelled;
+
+        /** The first error a worker encountered, if any. */
+        volatile Throwable error;
+
+        ScanState(int numWorkers) {
+            queue = new ArrayBlockingQueue<>(
+                numWorkers * QUEUED_BATCHES_PER_WORKER + 1);
+            activeWorkers = new AtomicInteger(numWorkers);
+        }
+
+        /**
+         * Adds a batch of results to the queue, waiting for space if
+         * necessary, unless the scan is cancelled.
+         */
+        void put(List<TupleLiteral> batch) throws InterruptedException {
+            while (!cancelled) {
+                if (queue.offer(batch, 100, TimeUnit.MILLISECONDS))
+                    return;
+            }
+        }
+    }
+
+
+    /** Runs one copy of the subplan, and queues up its results. */
+    private static class Worker implements Runnable {
+        private PlanNode pipeline;
+
+        private ScanState state;
+
+        Worker(PlanNode pipeline, ScanState state) {
+            this.pipeline = pipeline;
+            this.state = state;
+        }
+
+        @Override
+        public void run() {
+            try {
+                pipeline.initialize();
+
+                List<TupleLiteral> results = new ArrayList<>(BATCH_SIZE);
+                if (ExecutionProperties.isVectorizedExecutionEnabled()) {
+                    TupleBatch batch;
+                    while (!state.cancelled &&
+                           (batch = pipeline.getNextBatch()) != null) {
+                        for (int row = 0; row < batch.size(); row++)
+                            results.add(new TupleLiteral(batch.getTuple(row)));
+
+                        if (results.size() >= BATCH_SIZE) {
+                            state.put(results);
+                            results = new ArrayList<>(BATCH_SIZE);
+                        }
+                    }
+                }
+                else {
+                    Tuple tuple;
+                    while (!state.cancelled &&
+                           (tuple = pipeline.getNextTuple()) != null) {
+                        results.add(new TupleLiteral(tuple));
+                        if (tuple.isPinned())
+                            tuple.unpin();
+
+                        if (results.size() == BATCH_SIZE) {
+                            state.put(results);
+                            results = new ArrayList<>(BATCH_SIZE);
+                        }
+                    }
+                }
+
+                if (!results.isEmpty())
+                    state.put(results);
+            }
+            catch (Throwable t) {
+                logger.error("Parallel scan worker failed", t);
+                if (state.error == null)
+                    state.error = t;
+            }
+            finally {
+                pipeline.cleanUp();
+
+                if (state.activeWorkers.decrementAndGet() == 0) {
+                    try {
+                        state.put(ScanState.END);
+                    }
+                    catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }
+        }
+    }
+
+
+    /** The number of workers to run. */
+    private int parallelism;
+
+
+    /** The state of the current execution, or {@code null} if not started. */
+    private ScanState state;
+
+
+    /** The batch of results currently being returned. */
+    private List<TupleLiteral> currentBatch;
+
+
+    /** The index of the next tuple to return from {@link #currentBatch}. */
+    private int currentIndex;
+
+
+    private boolean done;
+
+
+    /**
+     * Constructs a gather node.
+     *
+     * @param subplan the pipeline to run in parallel, which must be a chain
+     *        of nodes supported by {@link #canParallelize} over a heap-file
+     *        scan
+     * @param parallelism the number of workers to run
+     */
+    public GatherNode(PlanNode subplan, int parallelism) {
+        super(OperationType.GATHER, subplan);
+
+        if (parallelism < 1)
+            throw new IllegalArgumentException("parallelism must be positive");
+
+        if (!canParallelize(subplan)) {
+            throw new IllegalArgumentException(
+                "Subplan can't be run in parallel:  " + subplan);
+        }
+
+        this.parallelism = parallelism;
+    }
+
+
+    /**
+     * Returns true if the plan is a chain of filters, projections and hashed
+     * grouping/aggregate nodes over a scan of a heap file, so that it can be
+     * run in parallel.  The caller must make sure that the plan's
+     * expressions don't contain subqueries.
+     */
+    public static boolean canParallelize(PlanNode plan) {
+        return findScan(plan) != null;
+    }
+
+
+    /**
+     * Returns the heap-file scan at the bottom of a parallelizable plan, or
+     * {@code null} if the plan can't be run in parallel.
+     */
+    private static FileScanNode findScan(PlanNode plan) {
+        while (plan instanceof SimpleFilterNode || plan instanceof ProjectNode ||
+               plan instanceof HashedGroupAggregateNode) {
+            plan = plan.leftChild;
+        }
+
+        if (plan instanceof FileScanNode &&
+            ((FileScanNode) plan).isParallelScannable()) {
+            return (FileScanNode) plan;
+        }
+
+        return null;
+    }
+
+
+    /** Returns the number of workers this node runs. */
+    public int getParallelism() {
+        return parallelism;
+    }
+
+
+    /** The order of the results depends on how the workers are scheduled. */
+    public List<OrderByExpression> resultsOrderedBy() {
+        return null;
+    }
+
+
+    /** This node doesn't support marking. */
+    public boolean supportsMarking() {
+        return false;
+    }
+
+
+    /** This node doesn't require any marking from either child. */
+    public boolean requiresLeftMarking() {
+        return false;
+    }
+
+
+    /** This node doesn't require any marking from either child. */
+    public boolean requiresRightMarking() {
+        return false;
+    }
+
+
+    // Inherit javadocs from base class.
+    public void prepare() {
+        leftChild.prepare();
+
+        // The schema and stats are the same as the subplan's.
+        schema = leftChild.getSchema();
+        stats = leftChild.getStats();
+
+        // The workers share the CPU cost of the subplan.
+        PlanCost childCost = leftChild.getCost();
+        if (childCost != null) {
+            cost = new PlanCost(childCost);
+            cost.cpuCost = childCost.cpuCost / parallelism +
+                childCost.numTuples;
+        }
+    }
+
+
+    public void initialize() {
+        super.initialize();
+
+        stopWorkers();
+        currentBatch = null;
+        currentIndex = 0;
+        done = false;
+    }
+
+
+    /** Starts the workers, each with its own copy of the subplan. */
+    private void startWorkers() throws IOException {
+        int numPages = findScan(leftChild).getNumPages();
+
+        // Page 0 is the heap file's header page.
+        PageMorsels morsels = new PageMorsels(1, numPages, MORSEL_PAGES);
+
+        // There is no point in starting more workers than there are morsels.
+        int numMorsels = Math.max(1, (numPages - 1 + MORSEL_PAGES - 1) /
+            MORSEL_PAGES);
+        int numWorkers = Math.min(parallelism, numMorsels);
+
+        logger.debug(String.format("Scanning %d pages with %d workers.",
+            numPages, numWorkers));
+
+        state = new ScanState(numWorkers);
+        for (int i = 0; i < numWorkers; i++) {
+            PlanNode pipeline = leftChild.duplicate();
+            pipeline.prepare();
+            findScan(pipeline).setMorsels(morsels);
+
+            workerPool.execute(new Worker(pipeline, state));
+        }
+    }
+
+
+    /** Makes any workers of the current execution stop early. */
+    private void stopWorkers() {
+        if (state != null) {
+            state.cancelled = true;
+            state = null;
+        }
+    }
+
+
+    /**
+     * Returns the next tuple produced by any of the workers, waiting for one
+     * if necessary.
+     *
+     * @throws IOException if a worker failed with an IO error
+     */
+    public Tuple getNextTuple() throws IllegalStateException, IOException {
+        if (done)
+            return null;
+
+        if (state == null)
+            startWorkers();
+
+        while (currentBatch == null || currentIndex == currentBatch.size()) {
+            List<TupleLiteral> batch;
+            try {
+                batch = state.queue.take();
+            }
+            catch (InterruptedException e) {
+                stopWorkers();
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for " +
+                    "parallel scan results", e);
+            }
+
+            checkWorkerError();
+
+            if (batch == ScanState.END) {
+                done = true;
+                currentBatch = null;
+                return null;
+            }
+
+            currentBatch = batch;
+            currentIndex = 0;
+        }
+
+        return currentBatch.get(currentIndex++);
+    }
+
+
+    /**
+     * Stops the scan and reports the error, if any of the workers failed.
+     */
+    private void checkWorkerError() throws IOException {
+        Throwable error = state.error;
+        if (error == null)
+            return;
+
+        stopWorkers();
+        done = true;
+
+        if (error instanceof IOException)
+            throw (IOException) error;
+        else if (error instanceof RuntimeException)
+            throw (RuntimeException) error;
+        else if (error instanceof Error)
+            throw (Error) error;
+        else
+            throw new IOException("Parallel scan worker failed", error);
+    }
+
+
+    /**
+     * The gather node doesn't support marking.
+     *
+     * @throws UnsupportedOperationException always.
+     */
+    public void markCurrentPosition() {
+        throw new UnsupportedOperationException(
+            "Gather node doesn't support marking");
+    }
+
+
+    /**
+     * The gather node doesn't support marking.
+     *
+     * @throws UnsupportedOperationException always.
+     */
+    public void resetToLastMark() {
+        throw new UnsupportedOperationException(
+            "Gather node doesn't support marking");
+    }
+
+
+    public void cleanUp() {
+        stopWorkers();
+        currentBatch = null;
+
+        leftChild.cleanUp();
+    }
+
+
+    /**
+     * Creates a copy of this plan node and its subtree.
+     */
+    @Override
+    protected PlanNode clone() throws CloneNotSupportedException {
+        GatherNode node = (GatherNode) super.clone();
+
+        // Don't share any evaluation state with the original node.
+        node.state = null;
+        node.currentBatch = null;
+
+        return node;
+    }
+
+
+    @Override
+    public String toString() {
+        return "Gather[workers:  " + parallelism + "]";
+    }
+
+
+    @Override
+    public boolean equals(Object obj) {
+        if (obj instanceof GatherNode) {
+            GatherNode other = (GatherNode) obj;
+            return parallelism == other.parallelism &&
+                   leftChild.equals(other.leftChild);
+        }
+
+        return false;
+    }
+
+
+    @Override
+    public int hashCode() {
+        int hash = 7;
+        hash = 31 * hash + parallelism;
+        hash = 31 * hash + leftChild.hashCode();
+        return hash;
+    }
+}
@@ -10,6 +10,7 @@ import edu.caltech.nanodb.expressions.ExpressionException;
 import edu.caltech.nanodb.expressions.TupleLiteral;
 import org.apache.log4j.Logger;
 
+import edu.caltech.nanodb.expressions.ColumnBinder;
 import edu.caltech.nanodb.expressions.ColumnName;
 import edu.caltech.nanodb.expressions.ColumnValue;
 import edu.caltech.nanodb.expressions.Expression;
@@ -171,6 +172,14 @@ public abstract class GroupAggregateNode extends PlanNode {
             schema.addColumnInfo(colInfo);
         }
 
+        // Resolve the column references of the grouping expressions and the
+        // aggregate arguments once, rather than for every input tuple.
+        for (Expression expr : groupByExprs)
+            ColumnBinder.bindColumns(expr, inputSchema);
+
+        for (FunctionCall call : aggregates.values())
+            ColumnBinder.bindColumns(call, inputSchema);
+
         estimatedNumTuples = numTuples;
 
         logger.info("Grouping/aggregate node schema:  " + schema);
@@ -0,0 +1,737 @@
+package edu.caltech.nanodb.plannodes;
+
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+
+import edu.caltech.nanodb.expressions.ArithmeticOperator;
+import edu.caltech.nanodb.expressions.FunctionCall;
+import edu.caltech.nanodb.expressions.TupleLiteral;
+
+import edu.caltech.nanodb.functions.AggregateFunction;
+import edu.caltech.nanodb.functions.CountAggregate;
+import edu.caltech.nanodb.functions.CountStar;
+import edu.caltech.nanodb.functions.Function;
+import edu.caltech.nanodb.functions.MinMaxAggregate;
+import edu.caltech.nanodb.functions.SumAvgAggregate;
+
+
+/**
+ * <p>
+ * A compact hash table of groups, used by the {@link HashedGroupAggregateNode}.
+ * The grouping values of each group are serialized into a single shared byte
+ * array, and groups are looked up by open addressing over an array of group
+ * numbers, so adding a group doesn't allocate any objects.  Groups are
+ * numbered from 0 in the order they are added.
+ * </p>
+ * <p>
+ * The aggregate values are kept in flat arrays indexed by the group number,
+ * with one {@link AggregateState} per aggregate function.  <tt>COUNT</tt>,
+ * <tt>SUM</tt> and <tt>AVG</tt> of integer and floating-point values are
+ * computed in primitive arrays.  Other aggregates, such as
+ * <tt>COUNT(DISTINCT ...)</tt>, fall back to a copy of the aggregate function
+ * for each group.
+ * </p>
+ * <p>
+ * To find or add a group, call {@link #startKey}, then {@link #addKeyValue}
+ * for each grouping value, then {@link #findGroup}, and if the group doesn't
+ * exist yet, {@link #addGroup}.
+ * </p>
+ */
+class HashGroupTable {
+
+    /** The number of groups space is initially allocated for. */
+    private static final int INITIAL_CAPACITY = 64;
+
+
+    /**
+     * An estimate of the memory used by each group, beyond its grouping
+     * values and aggregate values.
+     */
+    private static final int GROUP_OVERHEAD = 16;
+
+
+    /**
+     * An estimate of the memory used by each distinct grouping value that
+     * isn't a number or a string.
+     */
+    private static final int OTHER_VALUE_OVERHEAD = 48;
+
+
+    /* Tags identifying the type of each serialized grouping value. */
+    private static final byte TAG_NULL = 0;
+    private static final byte TAG_INTEGER = 1;
+    private static final byte TAG_LONG = 2;
+    private static final byte TAG_DOUBLE = 3;
+    private static final byte TAG_STRING = 4;
+    private static final byte TAG_OTHER = 5;
+
+
+    /** The number of grouping values in each group's key. */
+    private int numKeyValues;
+
+
+    /** The state of each aggregate, in the order the aggregates are output. */
+    private AggregateState[] states;
+
+
+    /** The serialized keys of all groups, one after another. */
+    private byte[] keyBytes;
+
+
+    /**
+     * The offset of each group's key in {@link #keyBytes}.  The entry after
+     * the last group is the total size of the keys.
+     */
+    private int[] keyOffsets;
+
+
+    /** The hash code of each group's key. */
+    private int[] keyHashes;
+
+
+    /**
+     * The open-addressed hash table.  Each slot holds a group number plus 1,
+     * or 0 if the slot is empty.  The size is always a power of 2.
+     */
+    private int[] slots;
+
+
+    /** The number of groups in the table. */
+    private int numGroups;
+
+
+    /**
+     * Grouping values that aren't numbers or strings are serialized as an
+     * index into the {@link #otherValues} list; this map provides the index
+     * of each value.
+     */
+    private HashMap<Object, Integer> otherValueIds = new HashMap<>();
+
+
+    private ArrayList<Object> otherValues = new ArrayList<>();
+
+
+    /** The serialized key being looked up. */
+    private byte[] probeKey = new byte[64];
+
+
+    private int probeKeyLength;
+
+
+    /** The hash code of the key being looked up, set by {@link #findGroup}. */
+    private int probeHash;
+
+
+    /**
+     * The empty slot {@link #findGroup} stopped at, which is where the key
+     * is added if it isn't in the table.
+     */
+    private int probeSlot;
+
+
+    /**
+     * Creates an empty group table.
+     *
+     * @param numKeyValues the number of grouping values in each key
+     *
+     * @param aggregates the aggregates to compute for each group
+     */
+    HashGroupTable(int numKeyValues, Collection<FunctionCall> aggregates) {
+        this.numKeyValues = numKeyValues;
+
+        states = new AggregateState[aggregates.size()];
+        int i = 0;
+        for (FunctionCall call : aggregates)
+            states[i++] = AggregateState.create(call);
+
+        keyBytes = new byte[INITIAL_CAPACITY * 8];
+        keyOffsets = new int[INITIAL_CAPACITY + 1];
+        keyHashes = new int[INITIAL_CAPACITY];
+        slots = new int[2 * INITIAL_CAPACITY];
+
+        for (AggregateState state : states)
+            state.ensureCapacity(INITIAL_CAPACITY);
+    }
+
+
+    /** Returns the number of groups in the table. */
+    int getNumGroups() {
+        return numGroups;
+    }
+
+
+    /** Starts serializing a new key to look up. */
+    void startKey() {
+        probeKeyLength = 0;
+    }
+
+
+    /** Appends a grouping value to the key being looked up. */
+    void addKeyValue(Object value) {
+        if (value == null) {
+            writeByte(TAG_NULL);
+        }
+        else if (value instanceof Integer) {
+            writeByte(TAG_INTEGER);
+            writeInt((Integer) value);
+        }
+        else if (value instanceof Long) {
+            writeByte(TAG_LONG);
+            writeLong((Long) value);
+        }
+        else if (value instanceof Double) {
+            writeByte(TAG_DOUBLE);
+            writeLong(Double.doubleToLongBits((Double) value));
+        }
+        else if (value instanceof String) {
+            String s = (String) value;
+            writeByte(TAG_STRING);
+            writeInt(s.length());
+            for (int i = 0; i < s.length(); i++) {
+                char ch = s.charAt(i);
+                writeByte((byte) (ch >>> 8));
+                writeByte((byte) ch);
+            }
+        }
+        else {
+            Integer id = otherValueIds.get(value);
+            if (id == null) {
+                id = otherValues.size();
+                otherValues.add(value);
+                otherValueIds.put(value, id);
+            }
+
+            writeByte(TAG_OTHER);
+            writeInt(id);
+        }
+    }
+
+
+    /**
+     * Looks up the key built by {@link #addKeyValue}.
+     *
+     * @return the group number of the key, or -1 if the key isn't in the
+     *         table
+     */
+    int findGroup() {
+        int h = 1;
+        for (int i = 0; i < probeKeyLength; i++)
+            h = 31 * h + probeKey[i];
+        probeHash = h;
+
+        int mask = slots.length - 1;
+        int slot = slotOf(h) & mask;
+        while (slots[slot] != 0) {
+            int group = slots[slot] - 1;
+            if (keyHashes[group] == h && keyEquals(group))
+                return group;
+
+            slot = (slot + 1) & mask;
+        }
+
+        probeSlot = slot;
+        return -1;
+    }
+
+
+    /**
+     * Returns the hash code of the last key looked up by {@link #findGroup},
+     * which callers can use to partition keys.
+     */
+    int getKeyHash() {
+        return probeHash;
+    }
+
+
+    /**
+     * Adds the key that {@link #findGroup} just failed to find as a new
+     * group, with empty aggregate values.
+     *
+     * @return the group number of the new group
+     */
+    int addGroup() {
+        if (numGroups == keyHashes.length)
+            growGroups();
+
+        if (2 * (numGroups + 1) > slots.length) {
+            rehash(2 * slots.length);
+
+            int mask = slots.length - 1;
+            probeSlot = slotOf(probeHash) & mask;
+            while (slots[probeSlot] != 0)
+                probeSlot = (probeSlot + 1) & mask;
+        }
+
+        int start = keyOffsets[numGroups];
+        if (start + probeKeyLength > keyBytes.length) {
+            keyBytes = Arrays.copyOf(keyBytes,
+                Math.max(2 * keyBytes.length, start + probeKeyLength));
+        }
+        System.arraycopy(probeKey, 0, keyBytes, start, probeKeyLength);
+
+        int group = numGroups;
+        keyHashes[group] = probeHash;
+        keyOffsets[group + 1] = start + probeKeyLength;
+        slots[probeSlot] = group + 1;
+        numGroups++;
+
+        return group;
+    }
+
+
+    /** Adds a value to one of a group's aggregates. */
+    void addValue(int group, int aggregate, Object value) {
+        states[aggregate].addValue(group, value);
+    }
+
+
+    /**
+     * Returns a tuple holding a group's grouping values, followed by its
+     * aggregate values.
+     */
+    TupleLiteral getGroupTuple(int group) {
+        TupleLiteral result = new TupleLiteral();
+
+        int pos = keyOffsets[group];
+        for (int i = 0; i < numKeyValues; i++) {
+            byte tag = keyBytes[pos++];
+            switch (tag) {
+                case TAG_NULL:
+                    result.addValue(null);
+                    break;
+
+                case TAG_INTEGER:
+                    result.addValue(readInt(pos));
+                    pos += 4;
+                    break;
+
+                case TAG_LONG:
+                    result.addValue(readLong(pos));
+                    pos += 8;
+                    break;
+
+                case TAG_DOUBLE:
+                    result.addValue(Double.longBitsToDouble(readLong(pos)));
+                    pos += 8;
+                    break;
+
+                case TAG_STRING:
+                    int length = readInt(pos);
+                    pos += 4;
+                    char[] chars = new char[length];
+                    for (int j = 0; j < length; j++) {
+                        chars[j] = (char) (((keyBytes[pos] & 0xff) << 8) |
+                            (keyBytes[pos + 1] & 0xff));
+                        pos += 2;
+                    }
+                    result.addValue(new String(chars));
+                    break;
+
+                default:
+                    result.addValue(otherValues.get(readInt(pos)));
+                    pos += 4;
+            }
+        }
+
+        for (AggregateState state : states)
+            result.addValue(state.getResult(group));
+
+        return result;
+    }
+
+
+    /** Returns an estimate of the memory used by the table. */
+    long estimateBytes() {
+        long bytesPerGroup = GROUP_OVERHEAD;
+        for (AggregateState state : states)
+            bytesPerGroup += state.bytesPerGroup();
+
+        return keyOffsets[numGroups] + 4L * slots.length +
+            numGroups * bytesPerGroup +
+            (long) otherValues.size() * OTHER_VALUE_OVERHEAD;
+    }
+
+
+    /** Mixes the bits of a key's hash code to choose its slot. */
+    private static int slotOf(int hash) {
+        hash ^= (hash >>> 16);
+        hash *= 0x85EBCA6B;
+        hash ^= (hash >>> 13);
+        return hash;
+    }
+
+
+    private boolean keyEquals(int group) {
+        int start = keyOffsets[group];
+        if (keyOffsets[group + 1] - start != probeKeyLength)
+            return false;
+
+        for (int i = 0; i < probeKeyLength; i++) {
+            if (keyBytes[start + i] != probeKey[i])
+                return false;
+        }
+        return true;
+    }
+
+
+    private void growGroups() {
+        int capacity = 2 * keyHashes.length;
+        keyOffsets = Arrays.copyOf(keyOffsets, capacity + 1);
+        keyHashes = Arrays.copyOf(keyHashes, capacity);
+
+        for (AggregateState state : states)
+            state.ensureCapacity(capacity);
+    }
+
+
+    private void rehash(int numSlots) {
+        slots = new int[numSlots];
+        int mask = numSlots - 1;
+
+        for (int group = 0; group < numGroups; group++) {
+            int slot = slotOf(keyHashes[group]) & mask;
+            while (slots[slot] != 0)
+                slot = (slot + 1) & mask;
+
+            slots[slot] = group + 1;
+        }
+    }
+
+
+    private void writeByte(byte b) {
+        if (probeKeyLength == probeKey.length)
+            probeKey = Arrays.copyOf(probeKey, 2 * probeKey.length);
+
+        probeKey[probeKeyLength++] = b;
+    }
+
+
+    private void writeInt(int value) {
+        writeByte((byte) (value >>> 24));
+        writeByte((byte) (value >>> 16));
+        writeByte((byte) (value >>> 8));
+        writeByte((byte) value);
+    }
+
+
+    private void writeLong(long value) {
+        writeInt((int) (value >>> 32));
+        writeInt((int) value);
+    }
+
+
+    private int readInt(int pos) {
+        return ((keyBytes[pos] & 0xff) << 24) |
+            ((keyBytes[pos + 1] & 0xff) << 16) |
+            ((keyBytes[pos + 2] & 0xff) << 8) |
+            (keyBytes[pos + 3] & 0xff);
+    }
+
+
+    private long readLong(int pos) {
+        return ((long) readInt(pos) << 32) | (readInt(pos + 4) & 0xffffffffL);
+    }
+
+
+    /**
+     * The values of one aggregate function for all groups in the table.  The
+     * values of groups that have just been added must be empty, which is
+     * what the arrays are filled with when they are allocated.
+     */
+    abstract static class AggregateState {
+
+        /** Creates the state for computing the specified aggregate. */
+        static AggregateState create(FunctionCall call) {
+            Function fn = call.getFunction();
+
+            if (fn instanceof CountStar)
+                return new CountState(/* countNulls */ true);
+
+            if (fn instanceof CountAggregate &&
+                !((CountAggregate) fn).isDistinct()) {
+                return new CountState(/* countNulls */ false);
+            }
+
+            if (fn instanceof SumAvgAggregate &&
+                !((SumAvgAggregate) fn).isDistinct()) {
+                return new SumAvgState(
+                    ((SumAvgAggregate) fn).computesAverage());
+            }
+
+            if (fn instanceof MinMaxAggregate)
+                return new MinMaxState(((MinMaxAggregate) fn).isMinimum());
+
+            return new FunctionState(call);
+        }
+
+
+        /** Makes room for the specified number of groups. */
+        abstract void ensureCapacity(int capacity);
+
+
+        /** Adds a value to the aggregate of a group. */
+        abstract void addValue(int group, Object value);
+
+
+        /** Returns the aggregate's result for a group. */
+        abstract Object getResult(int group);
+
+
+        /** Returns an estimate of the memory used for each group. */
+        abstract int bytesPerGroup();
+    }
+
+
+    /** Computes <tt>COUNT(*)</tt> or <tt>COUNT(...)</tt>. */
+    private static class CountState extends AggregateState {
+        /** True to count <tt>NULL</tt>s, for <tt>COUNT(*)</tt>. */
+        private boolean countNulls;
+
+        private int[] counts = new int[0];
+
+        CountState(boolean countNulls) {
+            this.countNulls = countNulls;
+        }
+
+        void ensureCapacity(int capacity) {
+            counts = Arrays.copyOf(counts, capacity);
+        }
+
+        void addValue(int group, Object value) {
+            if (value != null || countNulls)
+                counts[group]++;
+        }
+
+        Object getResult(int group) {
+            return Integer.valueOf(counts[group]);
+        }
+
+        int bytesPerGroup() {
+            return 4;
+        }
+    }
+
+
+    /**
+     * Computes <tt>SUM(...)</tt> or <tt>AVG(...)</tt>.  Sums of integers,
+     * longs and doubles are kept in primitive arrays, based on the type of
+     * the first value; if a value of any other type turns up, the sums are
+     * converted to objects and added with the {@link ArithmeticOperator},
+     * just like {@link SumAvgAggregate} does.
+     */
+    private static class SumAvgState extends AggregateState {
+        private static final int UNKNOWN = 0;
+        private static final int INTEGER = 1;
+        private static final int LONG = 2;
+        private static final int DOUBLE = 3;
+        private static final int OBJECT = 4;
+
+        private boolean computeAverage;
+
+        /** The kind of values being summed. */
+        private int kind = UNKNOWN;
+
+        /** The number of values added to each group, used for averages. */
+        private int[] counts = new int[0];
+
+        /** The sums for the INTEGER and LONG kinds. */
+        private long[] longSums;
+
+        private double[] doubleSums;
+
+        private Object[] objectSums;
+
+        SumAvgState(boolean computeAverage) {
+            this.computeAverage = computeAverage;
+        }
+
+        void ensureCapacity(int capacity) {
+            counts = Arrays.copyOf(counts, capacity);
+            if (longSums != null)
+                longSums = Arrays.copyOf(longSums, capacity);
+            if (doubleSums != null)
+                doubleSums = Arrays.copyOf(doubleSums, capacity);
+            if (objectSums != null)
+                objectSums = Arrays.copyOf(objectSums, capacity);
+        }
+
+        void addValue(int group, Object value) {
+            if (value == null)
+                return;
+
+            if (kind == UNKNOWN)
+                chooseKind(value);
+            else if (kind != OBJECT && kind != kindOf(value))
+                convertToObjects();
+
+            boolean first = (counts[group] == 0);
+            switch (kind) {
+                case INTEGER:
+                    // Wrap around just as adding two Integers does.
+                    int intValue = (Integer) value;
+                    longSums[group] = first ? intValue :
+                        (int) longSums[group] + intValue;
+                    break;
+
+                case LONG:
+                    longSums[group] = first ? (Long) value :
+                        longSums[group] + (Long) value;
+                    break;
+
+                case DOUBLE:
+                    doubleSums[group] = first ? (Double) value :
+                        doubleSums[group] + (Double) value;
+                    break;
+
+                default:
+                    objectSums[group] = first ? value :
+                        ArithmeticOperator.evalObjects(
+                            ArithmeticOperator.Type.ADD, objectSums[group], value);
+            }
+
+            counts[group]++;
+        }
+
+        Object getResult(int group) {
+            if (counts[group] == 0)
+                return null;
+
+            Object sum = getSum(group);
+            if (computeAverage) {
+                return ArithmeticOperator.evalObjects(
+                    ArithmeticOperator.Type.DIVIDE, sum,
+                    Integer.valueOf(counts[group]));
+            }
+            return sum;
+        }
+
+        int bytesPerGroup() {
+            return (kind == OBJECT) ? 28 : 12;
+        }
+
+        private static int kindOf(Object value) {
+            if (value instanceof Integer)
+                return INTEGER;
+            else if (value instanceof Long)
+                return LONG;
+            else if (value instanceof Double)
+                return DOUBLE;
+            else
+                return OBJECT;
+        }
+
+        private void chooseKind(Object value) {
+            kind = kindOf(value);
+            if (kind == INTEGER || kind == LONG)
+                longSums = new long[counts.length];
+            else if (kind == DOUBLE)
+                doubleSums = new double[counts.length];
+            else
+                objectSums = new Object[counts.length];
+        }
+
+        private Object getSum(int group) {
+            switch (kind) {
+                case INTEGER:
+                    return Integer.valueOf((int) longSums[group]);
+
+                case LONG:
+                    return Long.valueOf(longSums[group]);
+
+                case DOUBLE:
+                    return Double.valueOf(doubleSums[group]);
+
+                default:
+                    return objectSums[group];
+            }
+        }
+
+        private void convertToObjects() {
+            objectSums = new Object[counts.length];
+            for (int group = 0; group < counts.length; group++) {
+                if (counts[group] != 0)
+                    objectSums[group] = getSum(group);
+            }
+
+            kind = OBJECT;
+            longSums = null;
+            doubleSums = null;
+        }
+    }
+
+
+    /** Computes <tt>MIN(...)</tt> or <tt>MAX(...)</tt>. */
+    private static class MinMaxState extends AggregateState {
+        /** 1 to compute the minimum, or -1 to compute the maximum. */
+        private int minimumSwitch;
+
+        private Comparable[] results = new Comparable[0];
+
+        MinMaxState(boolean minimum) {
+            minimumSwitch = minimum ? 1 : -1;
+        }
+
+        void ensureCapacity(int capacity) {
+            results = Arrays.copyOf(results, capacity);
+        }
+
+        @SuppressWarnings("unchecked")
+        void addValue(int group, Object value) {
+            if (value == null)
+                return;
+
+            Comparable comparable = (Comparable) value;
+            Comparable result = results[group];
+            if (result == null || minimumSwitch * result.compareTo(comparable) > 0)
+                results[group] = comparable;
+        }
+
+        Object getResult(int group) {
+            return results[group];
+        }
+
+        int bytesPerGroup() {
+            return 32;
+        }
+    }
+
+
+    /**
+     * Computes any other aggregate with a copy of the aggregate function for
+     * each group.
+     */
+    private static class FunctionState extends AggregateState {
+        private FunctionCall call;
+
+        private AggregateFunction[] functions = new AggregateFunction[0];
+
+        FunctionState(FunctionCall call) {
+            this.call = call;
+        }
+
+        void ensureCapacity(int capacity) {
+            functions = Arrays.copyOf(functions, capacity);
+        }
+
+        void addValue(int group, Object value) {
+            if (functions[group] == null) {
+                // Aggregates keep some internal scratch space for
+                // computation, so each group needs its own copy.
+                FunctionCall groupCall = (FunctionCall) call.duplicate();
+                functions[group] = (AggregateFunction) groupCall.getFunction();
+            }
+            functions[group].addValue(value);
+        }
+
+        Object getResult(int group) {
+            return functions[group].getResult();
+        }
+
+        int bytesPerGroup() {
+            return 128;
+        }
+    }
+}
@@ -0,0 +1,947 @@
+package edu.caltech.nanodb.plannodes;
+
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+import edu.caltech.nanodb.expressions.ColumnBinder;
+import edu.caltech.nanodb.expressions.CompiledExpression;
+import edu.caltech.nanodb.expressions.Expression;
+import edu.caltech.nanodb.expressions.OrderByExpression;
+import edu.caltech.nanodb.expressions.TupleLiteral;
+import edu.caltech.nanodb.queryeval.ExecutionProperties;
+import edu.caltech.nanodb.queryeval.PlanCost;
+import edu.caltech.nanodb.relations.JoinType;
+import edu.caltech.nanodb.relations.Tuple;
+import edu.caltech.nanodb.storage.PageTuple;
+import edu.caltech.nanodb.storage.SpillFile;
+import edu.caltech.nanodb.storage.StorageManager;
+
+
+/**
+ * This plan node implements a hash join, which can only be used when the join
+ * predicate includes at least one equality condition between a column of the
+ * left input and a column of the right input (see {@link JoinKeys}).  The
+ * right input is the "build" input:  its tuples are loaded into a hash table
+ * keyed on the join columns.  The left input is the "probe" input:  each of
+ * its tuples is looked up in the hash table to find its matches.  For inner
+ * and full outer joins, the inputs are swapped if necessary so that the hash
+ * table is built on the smaller input.
+ * <p>
+ * If the build input doesn't fit in the working memory specified by
+ * {@link ExecutionProperties#PROP_WORK_MEM}, the node falls back to a Grace
+ * hash join:  both inputs are split into partitions by hashing the join
+ * columns, each partition is written to a {@link SpillFile}, and then each
+ * pair of partitions is joined separately.  A build partition that is still
+ * too large is partitioned again with a different hash function, up to a
+ * limited depth.
+ * <p>
+ * Inner, left/right outer, full outer, semi- and anti-joins are supported.
+ * As with the {@link NestedLoopJoinNode}, right outer joins are implemented
+ * by swapping the inputs and performing a left outer join.
+ */
+public class HashJoinNode extends ThetaJoinNode {
+
+    /** A logging object for reporting anything interesting that happens. */
+    private static Logger logger = Logger.getLogger(HashJoinNode.class);
+
+
+    /**
+     * An estimate of the memory used by each tuple in the hash table, beyond
+     * the size of the tuple's data.
+     */
+    private static final int TUPLE_OVERHEAD = 64;
+
+
+    /** The maximum number of partitions the inputs are split into. */
+    private static final int MAX_PARTITIONS = 64;
+
+
+    /**
+     * The number of times a partition may be partitioned again, if it is
+     * still too large to fit in memory.  Beyond this depth, the partition is
+     * loaded into memory regardless; this can happen if many tuples have the
+     * same join key, in which case further partitioning won't help.
+     */
+    private static final int MAX_PARTITION_DEPTH = 3;
+
+
+    /** A tuple in the hash table. */
+    private static class BuildEntry {
+        TupleLiteral tuple;
+
+        /** Set when the tuple joins with a probe tuple, for full outer joins. */
+        boolean matched;
+
+        BuildEntry(TupleLiteral tuple) {
+            this.tuple = tuple;
+        }
+    }
+
+
+    /** A pair of corresponding build and probe partitions. */
+    private static class Partition {
+        SpillFile buildFile;
+
+        SpillFile probeFile;
+
+        /** The number of times the inputs have been partitioned. */
+        int depth;
+
+        /** The estimated memory needed to load the build partition. */
+        long buildBytes;
+    }
+
+
+    /** The storage manager, used to create temporary files. */
+    private StorageManager storageManager;
+
+
+    /** The equijoin keys of the predicate, computed in {@link #prepare}. */
+    private JoinKeys joinKeys;
+
+
+    /**
+     * The compiled form of the residual predicate, or {@code null} if it is
+     * evaluated with the interpreter.
+     */
+    private CompiledExpression compiledResidual;
+
+
+    /** The amount of memory the hash table may use, in bytes. */
+    private long workMemSize;
+
+
+    /** The hash table of build tuples, keyed on the join columns. */
+    private HashMap<Object, ArrayList<BuildEntry>> hashTable;
+
+
+    /**
+     * For full outer joins, the build tuples whose join columns are
+     * <tt>NULL</tt>, which can never match a probe tuple.
+     */
+    private ArrayList<BuildEntry> nullKeyEntries;
+
+
+    /** The estimated memory used by the hash table, in bytes. */
+    private long hashTableBytes;
+
+
+    /** Partitions that have not yet been joined. */
+    private ArrayDeque<Partition> pendingPartitions;
+
+
+    /** The partition currently being joined, or {@code null}. */
+    private Partition currentPartition;
+
+
+    /** All spill files that have been created and not yet deleted. */
+    private ArrayList<SpillFile> spillFiles;
+
+
+    /** The probe tuple currently being joined. */
+    private Tuple probeTuple;
+
+
+    /** The remaining build tuples that match {@link #probeTuple}. */
+    private Iterator<BuildEntry> matchIter;
+
+
+    /** True if {@link #probeTuple} has matched at least one build tuple. */
+    private boolean probeMatched;
+
+
+    /**
+     * For full outer joins, the build tuples remaining to be output because
+     * they didn't match any probe tuple.
+     */
+    private Iterator<TupleLiteral> unmatchedBuildIter;
+
+
+    /** Set to true when the join has been started. */
+    private boolean started;
+
+
+    /** Set to true when we have produced all results. */
+    private boolean done;
+
+
+    /**
+     * Constructs a hash join node.
+     *
+     * @param leftChild the left input of the join
+     *
+     * @param rightChild the right input of the join
+     *
+     * @param joinType the type of join to perform
+     *
+     * @param predicate the join predicate, which must include at least one
+     *        equality condition between the left and right inputs
+     *
+     * @param storageManager the storage manager, used to create temporary
+     *        files if the join doesn't fit in memory
+     */
+    public HashJoinNode(PlanNode leftChild, PlanNode rightChild,
+        JoinType joinType, Expression predicate,
+        StorageManager storageManager) {
+
+        super(leftChild, rightChild, joinType, predicate);
+
+        if (predicate == null)
+            throw new IllegalArgumentException("predicate cannot be null");
+
+        if (joinType == JoinType.CROSS) {
+            throw new IllegalArgumentException(
+                "Hash join cannot perform a cross join");
+        }
+
+        this.storageManager = storageManager;
+
+        if (joinType == JoinType.RIGHT_OUTER)
+            swap();
+    }
+
+
+    /**
+     * Checks if the argument is a plan node tree with the same structure, but not
+     * necessarily the same references.
+     *
+     * @param obj the object to which we are comparing
+     */
+    @Override
+    public boolean equals(Object obj) {
+        if (obj instanceof HashJoinNode) {
+            HashJoinNode other = (HashJoinNode) obj;
+
+            return joinType == other.joinType &&
+                predicate.equals(other.predicate) &&
+                leftChild.equals(other.leftChild) &&
+                rightChild.equals(other.rightChild);
+        }
+
+        return false;
+    }
+
+
+    /** Computes the hash-code of the hash-join plan node. */
+    @Override
+    public int hashCode() {
+        int hash = 7;
+        hash = 31 * hash + joinType.hashCode();
+        hash = 31 * hash + predicate.hashCode();
+        hash = 31 * hash + leftChild.hashCode();
+        hash = 31 * hash + rightChild.hashCode();
+        return hash;
+    }
+
+
+    /**
+     * Returns a string representing this hash join's vital information.
+     *
+     * @return a string representing this plan-node.
+     */
+    @Override
+    public String toString() {
+        StringBuilder buf = new StringBuilder();
+
+        buf.append("HashJoin[");
+        if (joinType != JoinType.INNER)
+            buf.append(joinType).append(", ");
+
+        buf.append("pred:  ").append(predicate);
+
+        if (schemaSwapped)
+            buf.append(" (schema swapped)");
+
+        buf.append(']');
+
+        return buf.toString();
+    }
+
+
+    /**
+     * Creates a copy of this plan node and its subtrees.
+     */
+    @Override
+    protected PlanNode clone() throws CloneNotSupportedException {
+        HashJoinNode node = (HashJoinNode) super.clone();
+
+        node.predicate = predicate.duplicate();
+
+        // Don't share any evaluation state with the original node.
+        node.compiledPredicate = null;
+        node.compiledResidual = null;
+        node.hashTable = null;
+        node.nullKeyEntries = null;
+        node.pendingPartitions = null;
+        node.currentPartition = null;
+        node.spillFiles = null;
+        node.probeTuple = null;
+        node.matchIter = null;
+        node.unmatchedBuildIter = null;
+
+        return node;
+    }
+
+
+    /**
+     * The hash join doesn't order its results, since partitioning the inputs
+     * destroys any ordering of the probe input.
+     */
+    @Override
+    public List<OrderByExpression> resultsOrderedBy() {
+        return null;
+    }
+
+
+    /** The hash join doesn't support marking. */
+    public boolean supportsMarking() {
+        return false;
+    }
+
+
+    /** The hash join doesn't require marking from its children. */
+    public boolean requiresLeftMarking() {
+        return false;
+    }
+
+
+    /** The hash join doesn't require marking from its children. */
+    public boolean requiresRightMarking() {
+        return false;
+    }
+
+
+    /** Estimates the amount of memory needed to hold a subplan's results. */
+    private static float estimateBytes(PlanCost cost) {
+        return cost.numTuples * (cost.tupleSize + TUPLE_OVERHEAD);
+    }
+
+
+    @Override
+    public void prepare() {
+        leftChild.prepare();
+        rightChild.prepare();
+
+        // For inner and full outer joins, either input can be the build
+        // input, so build the hash table on the smaller one.  (The other
+        // join types need the left input to be the probe input.)
+        if ((joinType == JoinType.INNER || joinType == JoinType.FULL_OUTER) &&
+            estimateBytes(rightChild.getCost()) > estimateBytes(leftChild.getCost())) {
+            swap();
+        }
+
+        // Use the parent class' helper-function to prepare the schema.
+        prepareSchemaStats();
+
+        joinKeys = JoinKeys.extract(predicate, leftSchema, rightSchema);
+        if (joinKeys == null) {
+            throw new IllegalStateException("Hash join predicate " +
+                predicate + " doesn't have any equijoin conditions");
+        }
+        ColumnBinder.bindColumns(joinKeys.getResidualPredicate(),
+            leftSchema, rightSchema);
+        compiledResidual = compileExpression(joinKeys.getResidualPredicate());
+
+        PlanCost leftCost = leftChild.getCost();
+        PlanCost rightCost = rightChild.getCost();
+
+        float numTuples = estimateNumTuples(leftCost, rightCost);
+        float tupleSize = leftCost.tupleSize + rightCost.tupleSize;
+        if (joinType == JoinType.SEMIJOIN || joinType == JoinType.ANTIJOIN)
+            tupleSize = leftCost.tupleSize;
+
+        // Each input tuple is hashed once, and each result is produced once.
+        // Inserting a build tuple into the hash table is counted twice, since
+        // it is more work than probing the table.
+        float cpuCost = leftCost.cpuCost + rightCost.cpuCost +
+            leftCost.numTuples + 2 * rightCost.numTuples + numTuples;
+        long numBlockIOs = leftCost.numBlockIOs + rightCost.numBlockIOs;
+
+        // If the build input won't fit in memory then both inputs are
+        // written out to partitions and read back in again.
+        if (estimateBytes(rightCost) > ExecutionProperties.getWorkMemSize()) {
+            float spillBytes = leftCost.numTuples * leftCost.tupleSize +
+                rightCost.numTuples * rightCost.tupleSize;
+            numBlockIOs += 2 * (long) Math.ceil(spillBytes /
+                StorageManager.getCurrentPageSize());
+            cpuCost += leftCost.numTuples + rightCost.numTuples;
+        }
+
+        cost = new PlanCost(numTuples, tupleSize, cpuCost, numBlockIOs);
+    }
+
+
+    @Override
+    public void initialize() {
+        super.initialize();
+
+        deleteSpillFiles();
+
+        workMemSize = ExecutionProperties.getWorkMemSize();
+
+        hashTable = null;
+        nullKeyEntries = null;
+        hashTableBytes = 0;
+        pendingPartitions = new ArrayDeque<>();
+        currentPartition = null;
+        spillFiles = new ArrayList<>();
+
+        probeTuple = null;
+        matchIter = null;
+        unmatchedBuildIter = null;
+
+        started = false;
+        done = false;
+    }
+
+
+    /**
+     * Returns the next joined tuple that satisfies the join condition.
+     *
+     * @return the next joined tuple that satisfies the join condition.
+     *
+     * @throws IOException if a db file failed to open at some point
+     */
+    public Tuple getNextTuple() throws IOException {
+        if (done)
+            return null;
+
+        if (!started) {
+            started = true;
+            startJoin();
+            if (done)
+                return null;
+        }
+
+        while (true) {
+            if (probeTuple != null) {
+                Tuple result = nextMatch();
+                if (result != null)
+                    return result;
+
+                // The current probe tuple has no more matches.
+                if (!probeMatched)
+                    result = joinUnmatchedProbeTuple(probeTuple);
+
+                if (probeTuple.isPinned())
+                    probeTuple.unpin();
+
+                probeTuple = null;
+
+                if (result != null)
+                    return result;
+            }
+
+            if (unmatchedBuildIter != null) {
+                if (unmatchedBuildIter.hasNext()) {
+                    TupleLiteral nulls = new TupleLiteral(leftSchema.numColumns());
+                    return joinTuples(nulls, unmatchedBuildIter.next());
+                }
+
+                unmatchedBuildIter = null;
+                if (!nextPartition()) {
+                    done = true;
+                    return null;
+                }
+                continue;
+            }
+
+            probeTuple = nextProbeTuple();
+            if (probeTuple == null) {
+                // The probe input is finished.  For full outer joins, output
+                // the build tuples that didn't match anything; otherwise, go
+                // on to the next partition.
+                if (joinType == JoinType.FULL_OUTER) {
+                    unmatchedBuildIter = getUnmatchedBuildTuples().iterator();
+                }
+                else if (!nextPartition()) {
+                    done = true;
+                    return null;
+                }
+                continue;
+            }
+
+            probeMatched = false;
+            matchIter = null;
+
+            Object key = joinKeys.getLeftKey(probeTuple);
+            if (key != null) {
+                ArrayList<BuildEntry> bucket = hashTable.get(key);
+                if (bucket != null)
+                    matchIter = bucket.iterator();
+            }
+        }
+    }
+
+
+    /**
+     * Returns the next result of joining {@link #probeTuple} with its
+     * matching build tuples, or {@code null} if there are no more results
+     * for the probe tuple.
+     */
+    private Tuple nextMatch() {
+        if (matchIter == null)
+            return null;
+
+        while (matchIter.hasNext()) {
+            BuildEntry entry = matchIter.next();
+            if (!residualMatches(probeTuple, entry.tuple))
+                continue;
+
+            probeMatched = true;
+            entry.matched = true;
+
+            if (joinType == JoinType.SEMIJOIN) {
+                // Only output each probe tuple once.
+                matchIter = null;
+                return joinTuples(probeTuple, entry.tuple);
+            }
+            else if (joinType == JoinType.ANTIJOIN) {
+                // The probe tuple has a match, so it won't be output.
+                matchIter = null;
+                return null;
+            }
+
+            return joinTuples(probeTuple, entry.tuple);
+        }
+
+        matchIter = null;
+        return null;
+    }
+
+
+    /**
+     * Returns the result to produce for a probe tuple that didn't match any
+     * build tuple, or {@code null} if no result should be produced.
+     */
+    private Tuple joinUnmatchedProbeTuple(Tuple tuple) {
+        switch (joinType) {
+            case LEFT_OUTER:
+            case RIGHT_OUTER:
+            case FULL_OUTER:
+            case ANTIJOIN:
+                // For anti-joins, joinTuples() only includes the left tuple.
+                TupleLiteral nulls = new TupleLiteral(rightSchema.numColumns());
+                return joinTuples(tuple, nulls);
+
+            default:
+                return null;
+        }
+    }
+
+
+    /**
+     * Evaluates the conjuncts of the predicate that aren't equijoin keys
+     * against a pair of tuples with matching keys.
+     */
+    private boolean residualMatches(Tuple leftTuple, Tuple rightTuple) {
+        Expression residual = joinKeys.getResidualPredicate();
+        if (residual == null)
+            return true;
+
+        environment.clear();
+        environment.addTuple(leftSchema, leftTuple);
+        environment.addTuple(rightSchema, rightTuple);
+
+        if (compiledResidual != null)
+            return compiledResidual.evaluatePredicate(environment);
+
+        return residual.evaluatePredicate(environment);
+    }
+
+
+    /** Returns the build tuples that haven't matched any probe tuple. */
+    private ArrayList<TupleLiteral> getUnmatchedBuildTuples() {
+        ArrayList<TupleLiteral> unmatched = new ArrayList<>();
+        for (ArrayList<BuildEntry> bucket : hashTable.values()) {
+            for (BuildEntry entry : bucket) {
+                if (!entry.matched)
+                    unmatched.add(entry.tuple);
+            }
+        }
+
+        for (BuildEntry entry : nullKeyEntries)
+            unmatched.add(entry.tuple);
+
+        return unmatched;
+    }
+
+
+    /** Retrieves the next probe tuple from the current probe input. */
+    private Tuple nextProbeTuple() throws IOException {
+        if (currentPartition == null)
+            return leftChild.getNextTuple();
+
+        return currentPartition.probeFile.readTuple();
+    }
+
+
+    /**
+     * Makes an in-memory copy of a tuple from a child plan, and releases the
+     * child's tuple.
+     */
+    private static TupleLiteral copyTuple(Tuple tuple) {
+        TupleLiteral copy = new TupleLiteral(tuple);
+        if (tuple.isPinned())
+            tuple.unpin();
+
+        return copy;
+    }
+
+
+    /**
+     * Builds the hash table from the right child.  If the right child's
+     * results don't fit in memory, both children's results are partitioned
+     * and the first partition is loaded instead.
+     */
+    private void startJoin() throws IOException {
+        resetHashTable();
+
+        SpillFile[] buildParts = null;
+        long[] buildPartBytes = null;
+
+        Tuple tuple;
+        while ((tuple = rightChild.getNextTuple()) != null) {
+            TupleLiteral copy = copyTuple(tuple);
+
+            if (buildParts == null) {
+                addToHashTable(copy);
+
+                if (hashTableBytes > workMemSize) {
+                    int numPartitions = choosePartitionCount(
+                        (long) estimateBytes(rightChild.getCost()));
+
+                    logger.debug(String.format("Hash join build input " +
+                        "exceeds %d bytes; partitioning into %d partitions.",
+                        workMemSize, numPartitions));
+
+                    buildParts = createSpillFiles(numPartitions, true);
+                    buildPartBytes = new long[numPartitions];
+                    spillHashTable(buildParts, buildPartBytes, 0);
+                }
+            }
+            else {
+                addToPartition(copy, buildParts, buildPartBytes, 0);
+            }
+        }
+
+        if (buildParts != null) {
+            partitionProbeInput(null, buildParts, buildPartBytes, 0);
+            if (!nextPartition())
+                done = true;
+        }
+    }
+
+
+    /**
+     * Moves all tuples in the hash table out to the build partition files,
+     * and empties the hash table.
+     */
+    private void spillHashTable(SpillFile[] buildParts, long[] buildPartBytes,
+                                int depth) throws IOException {
+        for (ArrayList<BuildEntry> bucket : hashTable.values()) {
+            for (BuildEntry entry : bucket)
+                addToPartition(entry.tuple, buildParts, buildPartBytes, depth);
+        }
+
+        for (BuildEntry entry : nullKeyEntries)
+            addToPartition(entry.tuple, buildParts, buildPartBytes, depth);
+
+        resetHashTable();
+    }
+
+
+    /**
+     * Partitions the probe input to match the build partitions, and queues
+     * up each pair of partitions to be joined.
+     *
+     * @param probeFile the probe input to partition, or {@code null} to
+     *        partition the results of the left child
+     */
+    private void partitionProbeInput(SpillFile probeFile,
+        SpillFile[] buildParts, long[] buildPartBytes, int depth)
+        throws IOException {
+
+        SpillFile[] probeParts = createSpillFiles(buildParts.length, false);
+
+        Tuple tuple;
+        while (true) {
+            if (probeFile == null) {
+                tuple = leftChild.getNextTuple();
+                if (tuple != null)
+                    tuple = copyTuple(tuple);
+            }
+            else {
+                tuple = probeFile.readTuple();
+            }
+
+            if (tuple == null)
+                break;
+
+            Object key = joinKeys.getLeftKey(tuple);
+            probeParts[partitionOf(key, depth, probeParts.length)].addTuple(tuple);
+        }
+
+        for (int i = 0; i < buildParts.length; i++) {
+            boolean emptyBuild = (buildParts[i].getTupleCount() == 0);
+            boolean emptyProbe = (probeParts[i].getTupleCount() == 0);
+
+            // Skip partition pairs that can't produce any results.
+            boolean skip;
+            switch (joinType) {
+                case INNER:
+                case SEMIJOIN:
+                    skip = emptyBuild || emptyProbe;
+                    break;
+
+                case FULL_OUTER:
+                    skip = emptyBuild && emptyProbe;
+                    break;
+
+                default:
+                    skip = emptyProbe;
+            }
+
+            if (skip) {
+                deleteSpillFile(buildParts[i]);
+                deleteSpillFile(probeParts[i]);
+                continue;
+            }
+
+            Partition partition = new Partition();
+            partition.buildFile = buildParts[i];
+            partition.probeFile = probeParts[i];
+            partition.depth = depth;
+            partition.buildBytes = buildPartBytes[i];
+            pendingPartitions.push(partition);
+        }
+    }
+
+
+    /**
+     * Finishes the current partition, and loads the next partition's build
+     * tuples into the hash table.
+     *
+     * @return true if another partition was loaded, or false if all
+     *         partitions have been joined
+     */
+    private boolean nextPartition() throws IOException {
+        if (currentPartition != null) {
+            deleteSpillFile(currentPartition.buildFile);
+            deleteSpillFile(currentPartition.probeFile);
+            currentPartition = null;
+        }
+
+        resetHashTable();
+
+        while (!pendingPartitions.isEmpty()) {
+            Partition partition = pendingPartitions.pop();
+
+            if (partition.buildBytes > workMemSize &&
+                partition.depth < MAX_PARTITION_DEPTH) {
+                // The partition is still too big, so partition it again.
+                int depth = partition.depth + 1;
+                int numPartitions = choosePartitionCount(partition.buildBytes);
+
+                logger.debug(String.format("Hash join partition of %d " +
+                    "bytes is too large; partitioning into %d partitions " +
+                    "at depth %d.", partition.buildBytes, numPartitions, depth));
+
+                SpillFile[] buildParts = createSpillFiles(numPartitions, true);
+                long[] buildPartBytes = new long[numPartitions];
+
+                partition.buildFile.startReading();
+                TupleLiteral tuple;
+                while ((tuple = partition.buildFile.readTuple()) != null)
+                    addToPartition(tuple, buildParts, buildPartBytes, depth);
+
+                partition.probeFile.startReading();
+                partitionProbeInput(partition.probeFile, buildParts,
+                    buildPartBytes, depth);
+
+                deleteSpillFile(partition.buildFile);
+                deleteSpillFile(partition.probeFile);
+                continue;
+            }
+
+            if (partition.buildBytes > workMemSize) {
+                logger.warn(String.format("Hash join partition of %d bytes " +
+                    "exceeds the working memory size of %d bytes, but " +
+                    "can't be partitioned further.", partition.buildBytes,
+                    workMemSize));
+            }
+
+            partition.buildFile.startReading();
+            TupleLiteral tuple;
+            while ((tuple = partition.buildFile.readTuple()) != null)
+                addToHashTable(tuple);
+
+            partition.probeFile.startReading();
+            currentPartition = partition;
+            return true;
+        }
+
+        return false;
+    }
+
+
+    /** Empties the hash table. */
+    private void resetHashTable() {
+        hashTable = new HashMap<>();
+        nullKeyEntries = new ArrayList<>();
+        hashTableBytes = 0;
+    }
+
+
+    /** Adds a build tuple to the hash table. */
+    private void addToHashTable(TupleLiteral tuple) {
+        Object key = joinKeys.getRightKey(tuple);
+
+        // A tuple with a NULL key can't match anything, so it's only needed
+        // if it must be output as an unmatched tuple.
+        if (key == null && joinType != JoinType.FULL_OUTER)
+            return;
+
+        hashTableBytes += PageTuple.getTupleStorageSize(rightSchema, tuple) +
+            TUPLE_OVERHEAD;
+
+        if (key == null) {
+            nullKeyEntries.add(new BuildEntry(tuple));
+            return;
+        }
+
+        ArrayList<BuildEntry> bucket = hashTable.get(key);
+        if (bucket == null) {
+            bucket = new ArrayList<>(2);
+            hashTable.put(key, bucket);
+        }
+
+        bucket.add(new BuildEntry(tuple));
+    }
+
+
+    /** Adds a build tuple to the partition its join key hashes to. */
+    private void addToPartition(TupleLiteral tuple, SpillFile[] buildParts,
+        long[] buildPartBytes, int depth) throws IOException {
+
+        Object key = joinKeys.getRightKey(tuple);
+        if (key == null && joinType != JoinType.FULL_OUTER)
+            return;
+
+        int i = partitionOf(key, depth, buildParts.length);
+        buildParts[i].addTuple(tuple);
+        buildPartBytes[i] += PageTuple.getTupleStorageSize(rightSchema, tuple) +
+            TUPLE_OVERHEAD;
+    }
+
+
+    /**
+     * Chooses how many partitions to split an input of the specified size
+     * into, so that each partition should fit in memory.
+     */
+    private int choosePartitionCount(long inputBytes) {
+        // Aim for partitions that are half of the working memory, to leave
+        // room for estimation errors and uneven partitions.
+        long count = 2 * inputBytes / workMemSize + 1;
+        return (int) Math.max(2, Math.min(MAX_PARTITIONS, count));
+    }
+
+
+    /**
+     * Returns the partition that a join key belongs in.  The hash function
+     * depends on the partitioning depth, so that repartitioning a partition
+     * actually splits its tuples up.  <tt>NULL</tt> keys always go into
+     * partition 0.
+     */
+    private static int partitionOf(Object key, int depth, int numPartitions) {
+        if (key == null)
+            return 0;
+
+        int h = key.hashCode() * 0x9E3779B1 + depth;
+        h ^= (h >>> 16);
+        h *= 0x85EBCA6B;
+        h ^= (h >>> 13);
+
+        return (h & 0x7fffffff) % numPartitions;
+    }
+
+
+    /** Creates the specified number of spill files for the build or probe input. */
+    private SpillFile[] createSpillFiles(int count, boolean build)
+        throws IOException {
+
+        SpillFile[] files = new SpillFile[count];
+        for (int i = 0; i < count; i++) {
+            files[i] = new SpillFile(storageManager,
+                build ? rightSchema : leftSchema);
+            spillFiles.add(files[i]);
+        }
+
+        return files;
+    }
+
+
+    private void deleteSpillFile(SpillFile spillFile) throws IOException {
+        spillFiles.remove(spillFile);
+        spillFile.delete();
+    }
+
+
+    /** Deletes all spill files that haven't been deleted yet. */
+    private void deleteSpillFiles() {
+        if (spillFiles == null)
+            return;
+
+        for (SpillFile spillFile : spillFiles) {
+            try {
+                spillFile.delete();
+            }
+            catch (IOException e) {
+                logger.warn("Couldn't delete hash-join spill file", e);
+            }
+        }
+
+        spillFiles.clear();
+        pendingPartitions.clear();
+        currentPartition = null;
+    }
+
+
+    /**
+     * The hash join node doesn't support marking.
+     *
+     * @throws UnsupportedOperationException always.
+     */
+    public void markCurrentPosition() {
+        throw new UnsupportedOperationException(
+            "Hash join node doesn't support marking");
+    }
+
+
+    /**
+     * The hash join node doesn't support marking.
+     *
+     * @throws UnsupportedOperationException always.
+     */
+    public void resetToLastMark() {
+        throw new UnsupportedOperationException(
+            "Hash join node doesn't support marking");
+    }
+
+
+    public void cleanUp() {
+        deleteSpillFiles();
+        hashTable = null;
+        nullKeyEntries = null;
+
+        leftChild.cleanUp();
+        rightChild.cleanUp();
+    }
+}
@@ -3,25 +3,46 @@ package edu.caltech.nanodb.plannodes;
 
 import java.io.IOException;
 
-import java.util.Iterator;
-import java.util.LinkedHashMap;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 
 import org.apache.log4j.Logger;
 
 import edu.caltech.nanodb.expressions.Expression;
+import edu.caltech.nanodb.expressions.ExpressionException;
 import edu.caltech.nanodb.expressions.FunctionCall;
 import edu.caltech.nanodb.expressions.OrderByExpression;
 import edu.caltech.nanodb.expressions.TupleLiteral;
 
+import edu.caltech.nanodb.queryeval.ExecutionProperties;
 import edu.caltech.nanodb.queryeval.PlanCost;
 import edu.caltech.nanodb.relations.Tuple;
+import edu.caltech.nanodb.relations.TupleBatch;
+
+import edu.caltech.nanodb.storage.PageTuple;
+import edu.caltech.nanodb.storage.SpillFile;
+import edu.caltech.nanodb.storage.StorageManager;
 
 
 /**
+ * <p>
  * Implements grouping and aggregation by using hashing as a method to
- * identify groups.
+ * identify groups.  The groups are kept in a {@link HashGroupTable}, which
+ * stores the grouping values and most aggregate values in flat arrays rather
+ * than in an object per group.
+ * </p>
+ * <p>
+ * If the groups don't fit in the working memory (see
+ * {@link ExecutionProperties#getWorkMemSize}), the node switches to a hybrid
+ * hash aggregation:  tuples of the groups already in memory still update
+ * those groups, but tuples of any new group are written to one of several
+ * partitions, chosen by hashing the tuple's grouping values, so that all
+ * tuples of a group land in the same partition.  Once the in-memory groups
+ * have been output, each partition is aggregated in turn the same way, with
+ * a different hash function, up to a limited depth.
+ * </p>
  */
 public class HashedGroupAggregateNode extends GroupAggregateNode {
 
@@ -29,17 +50,95 @@ public class HashedGroupAggregateNode extends GroupAggregateNode {
     private static Logger logger = Logger.getLogger(HashedGroupAggregateNode.class);
 
 
-    private LinkedHashMap<TupleLiteral, Map<String, FunctionCall>> computedAggregates;
+    /**
+     * An estimate of the memory used by each input tuple in a partition,
+     * beyond the size of the tuple's data.
+     */
+    private static final int TUPLE_OVERHEAD = 64;
+
+
+    /** The maximum number of partitions the input is split into. */
+    private static final int MAX_PARTITIONS = 64;
+
+
+    /**
+     * The number of times a partition may be partitioned again, if its groups
+     * still don't fit in memory.  Beyond this depth, all of the partition's
+     * groups are kept in memory regardless.
+     */
+    private static final int MAX_PARTITION_DEPTH = 3;
+
+
+    /** A spilled partition of the input tuples. */
+    private static class Partition {
+        SpillFile file;
+
+        /** The number of times the input has been partitioned. */
+        int depth;
+
+        /** The estimated memory needed to hold the partition's tuples. */
+        long bytes;
+    }
+
+
+    /** The storage manager, used to create temporary files. */
+    private StorageManager storageManager;
+
+
+    /** The argument of each aggregate, in the order of {@link #aggregates}. */
+    private Expression[] aggregateArgs;
+
+
+    /** The maximum number of bytes the group table may use. */
+    private long workMemSize;
+
+
+    /** The groups of the input or partition currently being aggregated. */
+    private HashGroupTable groupTable;
+
+
+    /** The estimated size of the partition currently being aggregated. */
+    private long currentPartitionBytes;
+
+
+    /** The next group in {@link #groupTable} to output. */
+    private int nextGroup;
+
+
+    /**
+     * The partitions that tuples of new groups are written to once the group
+     * table is full, or {@code null} if the table isn't full.
+     */
+    private SpillFile[] spillParts;
 
-    private Iterator<TupleLiteral> groupIterator;
+
+    /** The estimated size of each of the {@link #spillParts}. */
+    private long[] spillPartBytes;
+
+
+    /** The partitions that haven't been aggregated yet. */
+    private ArrayDeque<Partition> pendingPartitions;
+
+
+    /** All spill files that haven't been deleted yet. */
+    private ArrayList<SpillFile> spillFiles;
+
+
+    private boolean started;
 
 
     private boolean done;
 
 
+    /**
+     * @param storageManager the storage manager, used to create temporary
+     *        files if the groups don't fit in memory
+     */
     public HashedGroupAggregateNode(PlanNode subplan,
-        List<Expression> groupByExprs, Map<String, FunctionCall> aggregates) {
+        List<Expression> groupByExprs, Map<String, FunctionCall> aggregates,
+        StorageManager storageManager) {
         super(subplan, groupByExprs, aggregates);
+        this.storageManager = storageManager;
     }
 
 
@@ -74,6 +173,26 @@ public class HashedGroupAggregateNode extends GroupAggregateNode {
     }
 
 
+    /**
+     * Creates a copy of this plan node and its subtree.
+     */
+    @Override
+    protected PlanNode clone() throws CloneNotSupportedException {
+        HashedGroupAggregateNode node =
+            (HashedGroupAggregateNode) super.clone();
+
+        // Don't share any evaluation state with the original node.
+        node.aggregateArgs = null;
+        node.groupTable = null;
+        node.spillParts = null;
+        node.spillPartBytes = null;
+        node.pendingPartitions = null;
+        node.spillFiles = null;
+
+        return node;
+    }
+
+
     /**
      * The hashed grouping/aggregate operation does not order its results in
      * any way.
@@ -124,78 +243,257 @@ public class HashedGroupAggregateNode extends GroupAggregateNode {
         if (done)
             return null;
 
-        TupleLiteral result = null;
-
-        if (computedAggregates == null) {
+        if (!started) {
+            started = true;
             computeAggregates();
-            groupIterator = computedAggregates.keySet().iterator();
         }
 
-        if (groupIterator.hasNext()) {
-            // Construct the result tuple from the group, and from the
-            // computed aggregate values.
-
-            TupleLiteral group = groupIterator.next();
-            Map<String, FunctionCall> groupAggregates = computedAggregates.get(group);
-            result = generateOutputTuple(group, groupAggregates);
-        }
-        else {
-            // No more groups.
-            done = true;
+        while (nextGroup == groupTable.getNumGroups()) {
+            // The groups in memory have all been output, so move on to the
+            // next partition, if there is one.
+            if (!nextPartition()) {
+                done = true;
+                groupTable = null;
+                return null;
+            }
         }
 
-        return result;
+        // Construct the result tuple from the group, and from the computed
+        // aggregate values.
+        return groupTable.getGroupTuple(nextGroup++);
     }
 
 
     /**
      * This helper function iterates through <u>all</u> tuples generated by
      * the subplan, using an internal hash table to compute the grouping and
-     * aggregate results that this plan-node will output.
+     * aggregate results that this plan-node will output.  If vectorized
+     * execution is enabled, the subplan's tuples are consumed a batch at a
+     * time.
      *
      * @throws IOException
      */
     private void computeAggregates() throws IOException {
-        Tuple inputTuple;
+        startGroupTable();
+
+        if (ExecutionProperties.isVectorizedExecutionEnabled()) {
+            // Pull batches from the left child until we run out.
+            TupleBatch batch;
+            while ((batch = leftChild.getNextBatch()) != null) {
+                for (int row = 0; row < batch.size(); row++)
+                    addToGroup(batch.getTuple(row), 0);
+            }
+        }
+        else {
+            // Pull tuples from the left child until we run out.
+            Tuple inputTuple;
+            while ((inputTuple = leftChild.getNextTuple()) != null) {
+                addToGroup(inputTuple, 0);
 
-        computedAggregates = new LinkedHashMap<>();
+                // Now that we are done with the current tuple, unpin it.
+                inputTuple.unpin();
+            }
+        }
 
-        // Pull tuples from the left child until we run out.
-        while ((inputTuple = leftChild.getNextTuple()) != null) {
-            environment.clear();
-            environment.addTuple(inputSchema, inputTuple);
+        finishGroupTable(0);
+    }
 
-            // Get the group values for the current row.
-            TupleLiteral groupValues = evaluateGroupByExprs();
 
-            // logger.debug("Group values = " + groupValues);
+    /**
+     * Finds the group that the input tuple belongs to, creating it if
+     * necessary, and updates the group's aggregates with the tuple.  If the
+     * group isn't in memory and the group table is full, the tuple is written
+     * to a partition instead.
+     *
+     * @param inputTuple a tuple produced by the subplan
+     *
+     * @param depth the number of times the input has been partitioned
+     */
+    private void addToGroup(Tuple inputTuple, int depth) throws IOException {
+        environment.clear();
+        environment.addTuple(inputSchema, inputTuple);
+
+        // Get the group values for the current row.
+        groupTable.startKey();
+        for (Expression expr : groupByExprs)
+            groupTable.addKeyValue(expr.evaluate(environment));
+
+        int group = groupTable.findGroup();
+        if (group == -1) {
+            if (spillParts != null) {
+                int i = partitionOf(groupTable.getKeyHash(), depth,
+                    spillParts.length);
+                spillParts[i].addTuple(inputTuple);
+                spillPartBytes[i] += PageTuple.getTupleStorageSize(
+                    inputSchema, inputTuple) + TUPLE_OVERHEAD;
+                return;
+            }
+
+            group = groupTable.addGroup();
+
+            if (depth < MAX_PARTITION_DEPTH &&
+                groupTable.estimateBytes() > workMemSize) {
+                // From now on, only the groups already in memory are
+                // updated.
+                startPartitioning(depth);
+            }
+        }
 
-            // Look up the collection of aggregate functions for this group,
-            // or create one if it doesn't already exist.
-            Map<String, FunctionCall> groupAggregates = computedAggregates.get(groupValues);
-            if (groupAggregates == null) {
-                groupAggregates = new LinkedHashMap<String, FunctionCall>();
+        // Now that we know the group, update each aggregate with the
+        // tuple's current value.
+        for (int i = 0; i < aggregateArgs.length; i++)
+            groupTable.addValue(group, i, aggregateArgs[i].evaluate(environment));
+    }
 
-                // logger.debug(" * Creating new computed aggregates for this group");
 
-                // Clone each aggregate function, since aggregates keep some
-                // internal scratch space for computation.
-                for (String name : aggregates.keySet()) {
-                    FunctionCall fnCall = aggregates.get(name);
-                    groupAggregates.put(name, (FunctionCall) fnCall.duplicate());
+    /** Starts aggregating with an empty group table. */
+    private void startGroupTable() {
+        if (aggregateArgs == null) {
+            aggregateArgs = new Expression[aggregates.size()];
+            int i = 0;
+            for (FunctionCall call : aggregates.values()) {
+                List<Expression> args = call.getArguments();
+                if (args.size() != 1) {
+                    throw new ExpressionException("Aggregate functions " +
+                        "currently require exactly one argument.");
                 }
+                aggregateArgs[i++] = args.get(0);
+            }
+        }
+
+        groupTable = new HashGroupTable(groupByExprs.size(),
+            aggregates.values());
+        nextGroup = 0;
+        spillParts = null;
+        spillPartBytes = null;
+    }
+
 
-                computedAggregates.put(groupValues, groupAggregates);
+    /**
+     * Creates the partitions that tuples of new groups are written to, once
+     * the group table is full.
+     */
+    private void startPartitioning(int depth) throws IOException {
+        long inputBytes;
+        if (depth == 0) {
+            PlanCost childCost = leftChild.getCost();
+            inputBytes = (childCost != null) ? (long) (childCost.numTuples *
+                (childCost.tupleSize + TUPLE_OVERHEAD)) : 0;
+        }
+        else {
+            inputBytes = currentPartitionBytes;
+        }
+
+        // Aim for partitions that are half of the working memory, to leave
+        // room for estimation errors and uneven partitions.
+        long count = 2 * inputBytes / workMemSize + 1;
+        int numPartitions = (int) Math.max(2, Math.min(MAX_PARTITIONS, count));
+
+        logger.debug(String.format("Hash aggregation groups exceed %d " +
+            "bytes; partitioning new groups into %d partitions at depth %d.",
+            workMemSize, numPartitions, depth));
+
+        spillParts = new SpillFile[numPartitions];
+        spillPartBytes = new long[numPartitions];
+        for (int i = 0; i < numPartitions; i++) {
+            spillParts[i] = new SpillFile(storageManager, inputSchema);
+            spillFiles.add(spillParts[i]);
+        }
+    }
+
+
+    /**
+     * Queues up the partitions written while aggregating the current input,
+     * if any, once the whole input has been read.
+     */
+    private void finishGroupTable(int depth) throws IOException {
+        if (spillParts == null)
+            return;
+
+        for (int i = 0; i < spillParts.length; i++) {
+            if (spillParts[i].getTupleCount() == 0) {
+                deleteSpillFile(spillParts[i]);
+                continue;
             }
 
-            // Now that we know the group, and we have aggregate functions to
-            // do the computation, update each aggregate with the tuple's
-            // current value.
-            updateAggregates(groupAggregates);
+            Partition partition = new Partition();
+            partition.file = spillParts[i];
+            partition.depth = depth;
+            partition.bytes = spillPartBytes[i];
+            pendingPartitions.push(partition);
+        }
+
+        spillParts = null;
+        spillPartBytes = null;
+    }
+
+
+    /**
+     * Aggregates the next pending partition into a new group table.
+     *
+     * @return true if a partition was aggregated, or false if there are no
+     *         more partitions
+     */
+    private boolean nextPartition() throws IOException {
+        if (pendingPartitions.isEmpty())
+            return false;
+
+        Partition partition = pendingPartitions.pop();
+        int depth = partition.depth + 1;
+        currentPartitionBytes = partition.bytes;
+
+        startGroupTable();
+
+        partition.file.startReading();
+        TupleLiteral tuple;
+        while ((tuple = partition.file.readTuple()) != null)
+            addToGroup(tuple, depth);
+
+        deleteSpillFile(partition.file);
+        finishGroupTable(depth);
+
+        return true;
+    }
+
+
+    /**
+     * Returns the partition that a group belongs in, based on the hash code
+     * of its grouping values.  The hash function depends on the partitioning
+     * depth, so that repartitioning a partition actually splits its groups
+     * up.
+     */
+    private static int partitionOf(int keyHash, int depth, int numPartitions) {
+        int h = keyHash * 0x9E3779B1 + depth;
+        h ^= (h >>> 16);
+        h *= 0x85EBCA6B;
+        h ^= (h >>> 13);
 
-            // Now that we are done with the current tuple, unpin it.
-            inputTuple.unpin();
+        return (h & 0x7fffffff) % numPartitions;
+    }
+
+
+    private void deleteSpillFile(SpillFile spillFile) throws IOException {
+        spillFiles.remove(spillFile);
+        spillFile.delete();
+    }
+
+
+    /** Deletes all spill files that haven't been deleted yet. */
+    private void deleteSpillFiles() {
+        if (spillFiles == null)
+            return;
+
+        for (SpillFile spillFile : spillFiles) {
+            try {
+                spillFile.delete();
+            }
+            catch (IOException e) {
+                logger.warn("Couldn't delete hash-aggregation spill file", e);
+            }
         }
+
+        spillFiles.clear();
+        pendingPartitions.clear();
     }
 
 
@@ -223,6 +521,16 @@ public class HashedGroupAggregateNode extends GroupAggregateNode {
 
             // Assume that computing each aggregate value costs one unit.
             cost.cpuCost += estimatedNumTuples * aggregates.size();
+
+            // If the groups won't fit in memory then most of the input is
+            // written out to partitions and read back in again.
+            float groupBytes = estimatedNumTuples *
+                (childCost.tupleSize + TUPLE_OVERHEAD);
+            if (groupBytes > ExecutionProperties.getWorkMemSize()) {
+                float spillBytes = childCost.numTuples * childCost.tupleSize;
+                cost.numBlockIOs += 2 * (long) Math.ceil(spillBytes /
+                    StorageManager.getCurrentPageSize());
+            }
         }
         else {
             logger.info(
@@ -242,8 +550,17 @@ public class HashedGroupAggregateNode extends GroupAggregateNode {
         super.initialize();
 
         // Clear our state.
-        computedAggregates = null;
-        groupIterator = null;
+        deleteSpillFiles();
+
+        workMemSize = ExecutionProperties.getWorkMemSize();
+
+        groupTable = null;
+        nextGroup = 0;
+        spillParts = null;
+        spillPartBytes = null;
+        pendingPartitions = new ArrayDeque<>();
+        spillFiles = new ArrayList<>();
+        started = false;
         done = false;
 
         leftChild.initialize();
@@ -278,8 +595,8 @@ public class HashedGroupAggregateNode extends GroupAggregateNode {
      */
     public void cleanUp() {
         // Clear our state.
-        computedAggregates = null;
-        groupIterator = null;
+        deleteSpillFiles();
+        groupTable = null;
         leftChild.cleanUp();
     }
 }
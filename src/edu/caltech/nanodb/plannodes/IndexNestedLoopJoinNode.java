@@ -0,0 +1,717 @@
+package edu.caltech.nanodb.plannodes;
+
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+import edu.caltech.nanodb.expressions.CompareOperator;
+import edu.caltech.nanodb.expressions.Expression;
+import edu.caltech.nanodb.expressions.OrderByExpression;
+import edu.caltech.nanodb.expressions.PredicateUtils;
+import edu.caltech.nanodb.expressions.TupleComparator;
+import edu.caltech.nanodb.expressions.TupleLiteral;
+import edu.caltech.nanodb.indexes.IndexInfo;
+import edu.caltech.nanodb.indexes.IndexManager;
+import edu.caltech.nanodb.queryeval.ExecutionProperties;
+import edu.caltech.nanodb.queryeval.PlanCost;
+import edu.caltech.nanodb.queryeval.SelectivityEstimator;
+import edu.caltech.nanodb.relations.ColumnRefs;
+import edu.caltech.nanodb.relations.JoinType;
+import edu.caltech.nanodb.relations.Tuple;
+import edu.caltech.nanodb.storage.FilePointer;
+import edu.caltech.nanodb.storage.InvalidFilePointerException;
+import edu.caltech.nanodb.storage.PageTuple;
+import edu.caltech.nanodb.storage.SequentialTupleFile;
+import edu.caltech.nanodb.storage.TupleFile;
+
+
+/**
+ * This plan node implements an index nested-loop join, which can be used
+ * when the right input is a table with an ordered index whose leading
+ * columns are compared for equality with columns of the left input (see
+ * {@link JoinKeys}).  Instead of scanning the whole right input for each
+ * left tuple, the index is probed with the left tuple's values of those
+ * columns, and only the table tuples it refers to are fetched.
+ * <p>
+ * The right child must be a scan of the entire indexed table, without a
+ * predicate, possibly under a {@link RenameNode}; it provides the schema and
+ * statistics of the right input, but it is never iterated over.  Any
+ * conditions on the right input must be included in the join predicate,
+ * which is evaluated against each pair of tuples found through the index.
+ * <p>
+ * The left input is read in batches that fill the working memory specified
+ * by {@link ExecutionProperties#PROP_WORK_MEM}, and each batch is sorted on
+ * the probe keys before the index is probed.  This way, probes for the same
+ * or nearby keys visit the same index and table pages one after another,
+ * which makes them much more likely to be in the buffer pool.  The sorting
+ * means that the join doesn't preserve the order of the left input.
+ * <p>
+ * Inner, left outer, semi- and anti-joins are supported.
+ */
+public class IndexNestedLoopJoinNode extends ThetaJoinNode {
+
+    /** A logging object for reporting anything interesting that happens. */
+    private static Logger logger = Logger.getLogger(IndexNestedLoopJoinNode.class);
+
+
+    /**
+     * An estimate of the memory used by each buffered left tuple, beyond
+     * the size of the tuple's data.
+     */
+    private static final int TUPLE_OVERHEAD = 64;
+
+
+    /** A buffered left tuple, along with the key used to probe the index. */
+    private static class ProbeEntry {
+        TupleLiteral tuple;
+
+        /** The probe key, or {@code null} if any of its values is NULL. */
+        TupleLiteral key;
+
+        ProbeEntry(TupleLiteral tuple, TupleLiteral key) {
+            this.tuple = tuple;
+            this.key = key;
+        }
+    }
+
+
+    /**
+     * Orders probe entries on their keys, with entries that have no key
+     * first.
+     */
+    private static final Comparator<ProbeEntry> KEY_ORDER =
+        new Comparator<ProbeEntry>() {
+            public int compare(ProbeEntry a, ProbeEntry b) {
+                if (a.key == null || b.key == null) {
+                    if (a.key == b.key)
+                        return 0;
+                    return (a.key == null) ? -1 : 1;
+                }
+
+                return TupleComparator.compareTuples(a.key, b.key);
+            }
+        };
+
+
+    /** The index used to find the right tuples that join with a left tuple. */
+    private IndexInfo indexInfo;
+
+
+    /** The index's tuple file. */
+    private SequentialTupleFile indexFile;
+
+
+    /** The tuple file of the indexed table. */
+    private TupleFile tableFile;
+
+
+    /** The index of the <tt>#TUPLE_PTR</tt> column in the index's schema. */
+    private int tuplePtrIndex;
+
+
+    /**
+     * The columns of the left input whose values make up the probe key, in
+     * the order of the index's columns.  Computed in {@link #prepare}.
+     */
+    private int[] probeColumns;
+
+
+    /** The amount of memory the batch of left tuples may use, in bytes. */
+    private long workMemSize;
+
+
+    /** The current batch of left tuples, sorted on their probe keys. */
+    private ArrayList<ProbeEntry> batch;
+
+
+    /** The index in {@link #batch} of the next left tuple to join. */
+    private int batchIndex;
+
+
+    /** The left tuple currently being joined. */
+    private ProbeEntry probeEntry;
+
+
+    /** True if the index has been probed for {@link #probeEntry}. */
+    private boolean probed;
+
+
+    /** True if {@link #probeEntry} has matched at least one right tuple. */
+    private boolean probeMatched;
+
+
+    /**
+     * The index entry for the last right tuple found for the current left
+     * tuple, or {@code null} if there are no more entries.
+     */
+    private Tuple indexTuple;
+
+
+    /** Set to true when the left input has been completely read. */
+    private boolean leftDone;
+
+
+    /** Set to true when we have produced all results. */
+    private boolean done;
+
+
+    /**
+     * Constructs an index nested-loop join node.
+     *
+     * @param leftChild the left input of the join
+     *
+     * @param rightChild a scan of the whole indexed table, which is used for
+     *        its schema and statistics
+     *
+     * @param indexInfo the index to probe for each left tuple
+     *
+     * @param joinType the type of join to perform
+     *
+     * @param predicate the join predicate, which must compare the leading
+     *        columns of the index for equality with columns of the left
+     *        input, and must also include any conditions on the right input
+     *
+     * @throws IllegalArgumentException if the index doesn't use an ordered
+     *         tuple file, or the join type isn't supported
+     */
+    public IndexNestedLoopJoinNode(PlanNode leftChild, PlanNode rightChild,
+        IndexInfo indexInfo, JoinType joinType, Expression predicate) {
+
+        super(leftChild, rightChild, joinType, predicate);
+
+        if (indexInfo == null)
+            throw new IllegalArgumentException("indexInfo cannot be null");
+
+        if (predicate == null)
+            throw new IllegalArgumentException("predicate cannot be null");
+
+        if (!supportsJoinType(joinType)) {
+            throw new IllegalArgumentException(
+                "Index nested-loop join cannot perform a " + joinType + " join");
+        }
+
+        if (!(indexInfo.getTupleFile() instanceof SequentialTupleFile)) {
+            throw new IllegalArgumentException("Index " +
+                indexInfo.getIndexName() + " isn't an ordered index");
+        }
+
+        this.indexInfo = indexInfo;
+
+        tableFile = indexInfo.getTableInfo().getTupleFile();
+        indexFile = (SequentialTupleFile) indexInfo.getTupleFile();
+
+        tuplePtrIndex = indexFile.getSchema().getColumnIndex(
+            IndexManager.COLNAME_TUPLEPTR);
+    }
+
+
+    /**
+     * Returns true if the index nested-loop join can perform the specified
+     * type of join.  Since the right input is only accessed through the
+     * index, right and full outer joins aren't supported.
+     *
+     * @param joinType the type of join
+     *
+     * @return true if the join type is supported
+     */
+    public static boolean supportsJoinType(JoinType joinType) {
+        return joinType == JoinType.INNER || joinType == JoinType.LEFT_OUTER ||
+            joinType == JoinType.SEMIJOIN || joinType == JoinType.ANTIJOIN;
+    }
+
+
+    /**
+     * Returns true if an index can be probed with the equijoin keys of a
+     * join predicate, i.e. if the index is ordered and the keys include
+     * its first column.
+     *
+     * @param indexInfo the index on the right input of the join
+     *
+     * @param joinKeys the equijoin keys of the join predicate, or
+     *        {@code null} if the predicate doesn't have any
+     *
+     * @return true if the index can be used to perform the join
+     */
+    public static boolean canUseIndex(IndexInfo indexInfo, JoinKeys joinKeys) {
+        return indexInfo.getTupleFile() instanceof SequentialTupleFile &&
+            findProbeColumns(indexInfo, joinKeys) != null;
+    }
+
+
+    /**
+     * Finds the left-input columns that are compared for equality with as
+     * many of the leading columns of the index as possible.
+     *
+     * @return the left-input columns in the order of the index's columns, or
+     *         {@code null} if the index's first column isn't a join key
+     */
+    private static int[] findProbeColumns(IndexInfo indexInfo,
+                                          JoinKeys joinKeys) {
+        if (joinKeys == null)
+            return null;
+
+        int[] leftIndexes = joinKeys.getLeftKeyIndexes();
+        int[] rightIndexes = joinKeys.getRightKeyIndexes();
+
+        ColumnRefs indexCols = indexInfo.getTableColumnRefs();
+        ArrayList<Integer> probeCols = new ArrayList<>();
+        for (int i = 0; i < indexCols.size(); i++) {
+            int key = findKey(rightIndexes, indexCols.getCol(i));
+            if (key == -1)
+                break;
+
+            probeCols.add(leftIndexes[key]);
+        }
+
+        if (probeCols.isEmpty())
+            return null;
+
+        int[] result = new int[probeCols.size()];
+        for (int i = 0; i < result.length; i++)
+            result[i] = probeCols.get(i);
+
+        return result;
+    }
+
+
+    /** Returns the position of a column in an array of key columns, or -1. */
+    private static int findKey(int[] keyIndexes, int colIndex) {
+        for (int i = 0; i < keyIndexes.length; i++) {
+            if (keyIndexes[i] == colIndex)
+                return i;
+        }
+        return -1;
+    }
+
+
+    /**
+     * Checks if the argument is a plan node tree with the same structure, but not
+     * necessarily the same references.
+     *
+     * @param obj the object to which we are comparing
+     */
+    @Override
+    public boolean equals(Object obj) {
+        if (obj instanceof IndexNestedLoopJoinNode) {
+            IndexNestedLoopJoinNode other = (IndexNestedLoopJoinNode) obj;
+
+            return joinType == other.joinType &&
+                indexInfo.getIndexName().equals(other.indexInfo.getIndexName()) &&
+                predicate.equals(other.predicate) &&
+                leftChild.equals(other.leftChild) &&
+                rightChild.equals(other.rightChild);
+        }
+
+        return false;
+    }
+
+
+    /** Computes the hash-code of the index nested-loop join plan node. */
+    @Override
+    public int hashCode() {
+        int hash = 7;
+        hash = 31 * hash + joinType.hashCode();
+        hash = 31 * hash + indexInfo.getIndexName().hashCode();
+        hash = 31 * hash + predicate.hashCode();
+        hash = 31 * hash + leftChild.hashCode();
+        hash = 31 * hash + rightChild.hashCode();
+        return hash;
+    }
+
+
+    /**
+     * Returns a string representing this join's vital information.
+     *
+     * @return a string representing this plan-node.
+     */
+    @Override
+    public String toString() {
+        StringBuilder buf = new StringBuilder();
+
+        buf.append("IndexNestedLoopJoin[");
+        if (joinType != JoinType.INNER)
+            buf.append(joinType).append(", ");
+
+        buf.append("index:  ").append(indexInfo.getIndexName());
+        buf.append(", pred:  ").append(predicate);
+        buf.append(']');
+
+        return buf.toString();
+    }
+
+
+    /**
+     * Creates a copy of this plan node and its subtrees.
+     */
+    @Override
+    protected PlanNode clone() throws CloneNotSupportedException {
+        IndexNestedLoopJoinNode node = (IndexNestedLoopJoinNode) super.clone();
+
+        node.predicate = predicate.duplicate();
+
+        // Don't share any evaluation state with the original node.
+        node.compiledPredicate = null;
+        node.batch = null;
+        node.probeEntry = null;
+        node.indexTuple = null;
+
+        return node;
+    }
+
+
+    /**
+     * The join doesn't order its results, since the left input is sorted on
+     * the probe keys in batches.
+     */
+    @Override
+    public List<OrderByExpression> resultsOrderedBy() {
+        return null;
+    }
+
+
+    /** The index nested-loop join doesn't support marking. */
+    public boolean supportsMarking() {
+        return false;
+    }
+
+
+    /** The index nested-loop join doesn't require marking from its children. */
+    public boolean requiresLeftMarking() {
+        return false;
+    }
+
+
+    /** The index nested-loop join doesn't require marking from its children. */
+    public boolean requiresRightMarking() {
+        return false;
+    }
+
+
+    @Override
+    public void prepare() {
+        leftChild.prepare();
+        rightChild.prepare();
+
+        // Use the parent class' helper-function to prepare the schema.
+        prepareSchemaStats();
+
+        JoinKeys joinKeys = JoinKeys.extract(predicate, leftSchema, rightSchema);
+        probeColumns = findProbeColumns(indexInfo, joinKeys);
+        if (probeColumns == null) {
+            throw new IllegalStateException("Join predicate " + predicate +
+                " doesn't compare the columns of index " +
+                indexInfo.getIndexName() + " with the left input");
+        }
+
+        PlanCost leftCost = leftChild.getCost();
+        PlanCost rightCost = rightChild.getCost();
+
+        float numTuples = estimateNumTuples(leftCost, rightCost);
+        float tupleSize = leftCost.tupleSize + rightCost.tupleSize;
+        if (joinType == JoinType.SEMIJOIN || joinType == JoinType.ANTIJOIN)
+            tupleSize = leftCost.tupleSize;
+
+        // Estimate how many index entries each probe finds, from the
+        // selectivity of the equality conditions on the index's columns.
+        ArrayList<Expression> keyConjuncts = new ArrayList<>();
+        ColumnRefs indexCols = indexInfo.getTableColumnRefs();
+        for (int i = 0; i < probeColumns.length; i++) {
+            int key = findKey(joinKeys.getRightKeyIndexes(), indexCols.getCol(i));
+            keyConjuncts.add(new CompareOperator(CompareOperator.Type.EQUALS,
+                joinKeys.getLeftKeyExpressions().get(key),
+                joinKeys.getRightKeyExpressions().get(key)));
+        }
+        float matchesPerProbe = rightCost.numTuples *
+            SelectivityEstimator.estimateSelectivity(
+                PredicateUtils.makePredicate(keyConjuncts), joinSchema, joinStats);
+
+        // Each probe reads down the index, and then reads one table tuple
+        // per matching entry, which may be on any page of the table.  Since
+        // the probes are sorted, the table's pages are unlikely to be read
+        // more than once, so the table reads are limited to its size.
+        float indexReads = leftCost.numTuples *
+            IndexScanNode.estimateIndexDepth(rightCost.numTuples);
+        float tableReads = leftCost.numTuples * matchesPerProbe;
+
+        float cpuCost = leftCost.cpuCost + indexReads + tableReads + numTuples;
+        long numBlockIOs = leftCost.numBlockIOs + (long) Math.ceil(indexReads +
+            Math.min(tableReads, rightCost.numBlockIOs));
+
+        cost = new PlanCost(numTuples, tupleSize, cpuCost, numBlockIOs);
+    }
+
+
+    @Override
+    public void initialize() {
+        super.initialize();
+
+        releaseIndexTuple();
+
+        workMemSize = ExecutionProperties.getWorkMemSize();
+
+        batch = new ArrayList<>();
+        batchIndex = 0;
+        probeEntry = null;
+
+        leftDone = false;
+        done = false;
+    }
+
+
+    /**
+     * Returns the next joined tuple that satisfies the join condition.
+     *
+     * @return the next joined tuple that satisfies the join condition.
+     *
+     * @throws IOException if a db file failed to open at some point
+     */
+    public Tuple getNextTuple() throws IOException {
+        if (done)
+            return null;
+
+        while (true) {
+            if (probeEntry == null) {
+                probeEntry = nextProbeEntry();
+                if (probeEntry == null) {
+                    done = true;
+                    return null;
+                }
+
+                probed = false;
+                probeMatched = false;
+            }
+
+            Tuple rightTuple = nextMatchingTuple();
+            if (rightTuple != null) {
+                probeMatched = true;
+
+                Tuple result = null;
+                if (joinType != JoinType.ANTIJOIN)
+                    result = joinTuples(probeEntry.tuple, rightTuple);
+
+                rightTuple.unpin();
+
+                // Semi- and anti-joins are decided by the first match.
+                if (joinType == JoinType.SEMIJOIN ||
+                    joinType == JoinType.ANTIJOIN) {
+                    releaseProbeEntry();
+                }
+
+                if (result != null)
+                    return result;
+
+                continue;
+            }
+
+            // The current left tuple has no more matches.
+            TupleLiteral leftTuple = probeEntry.tuple;
+            boolean matched = probeMatched;
+            releaseProbeEntry();
+
+            if (!matched) {
+                if (joinType == JoinType.LEFT_OUTER) {
+                    return joinTuples(leftTuple,
+                        new TupleLiteral(rightSchema.numColumns()));
+                }
+                else if (joinType == JoinType.ANTIJOIN) {
+                    return joinTuples(leftTuple, null);
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Returns the next left tuple to join, reading another batch from the
+     * left input if the current one is used up.
+     *
+     * @return the next left tuple, or {@code null} if there are no more
+     *
+     * @throws IOException if the left input can't be read
+     */
+    private ProbeEntry nextProbeEntry() throws IOException {
+        if (batchIndex >= batch.size()) {
+            if (!readBatch())
+                return null;
+        }
+
+        return batch.get(batchIndex++);
+    }
+
+
+    /**
+     * Reads as many tuples from the left input as fit in the working memory,
+     * and sorts them on their probe keys.
+     *
+     * @return true if any tuples were read, or false if the left input is
+     *         finished
+     *
+     * @throws IOException if the left input can't be read
+     */
+    private boolean readBatch() throws IOException {
+        batch.clear();
+        batchIndex = 0;
+
+        long batchBytes = 0;
+        while (!leftDone && batchBytes < workMemSize) {
+            Tuple tuple = leftChild.getNextTuple();
+            if (tuple == null) {
+                leftDone = true;
+                break;
+            }
+
+            TupleLiteral copy = new TupleLiteral(tuple);
+            if (tuple.isPinned())
+                tuple.unpin();
+
+            batchBytes += PageTuple.getTupleStorageSize(leftSchema, copy) +
+                TUPLE_OVERHEAD;
+            batch.add(new ProbeEntry(copy, makeProbeKey(copy)));
+        }
+
+        if (batch.isEmpty())
+            return false;
+
+        logger.debug(String.format("Probing index %s with a batch of %d tuples",
+            indexInfo.getIndexName(), batch.size()));
+
+        Collections.sort(batch, KEY_ORDER);
+        return true;
+    }
+
+
+    /**
+     * Makes the key for probing the index from a left tuple.
+     *
+     * @return the probe key, or {@code null} if any of its values is NULL,
+     *         in which case the tuple can't match any right tuple
+     */
+    private TupleLiteral makeProbeKey(Tuple tuple) {
+        TupleLiteral key = new TupleLiteral();
+        for (int col : probeColumns) {
+            Object value = tuple.getColumnValue(col);
+            if (value == null)
+                return null;
+
+            key.addValue(value);
+        }
+        return key;
+    }
+
+
+    /**
+     * Returns the next right tuple found through the index for the current
+     * left tuple that satisfies the join predicate.
+     *
+     * @return the next matching right tuple, or {@code null} if there are no
+     *         more
+     *
+     * @throws IOException if the index or table can't be read
+     */
+    private Tuple nextMatchingTuple() throws IOException {
+        if (probeEntry.key == null)
+            return null;
+
+        while (true) {
+            Tuple next;
+            if (!probed) {
+                probed = true;
+                next = indexFile.findFirstTupleEquals(probeEntry.key);
+            }
+            else if (indexTuple != null) {
+                next = indexFile.getNextTuple(indexTuple);
+                releaseIndexTuple();
+            }
+            else {
+                return null;
+            }
+
+            // The index entries are compared with the key on the key's
+            // columns only, so equal keys span several index columns.
+            if (next != null &&
+                TupleComparator.comparePartialTuples(next, probeEntry.key) != 0) {
+                next.unpin();
+                next = null;
+            }
+
+            indexTuple = next;
+            if (next == null)
+                return null;
+
+            Tuple rightTuple = fetchTableTuple(next);
+
+            environment.clear();
+            environment.addTuple(leftSchema, probeEntry.tuple);
+            environment.addTuple(rightSchema, rightTuple);
+            if (evaluatePredicate())
+                return rightTuple;
+
+            rightTuple.unpin();
+        }
+    }
+
+
+    /** Fetches the table tuple that an index entry refers to. */
+    private Tuple fetchTableTuple(Tuple entry) throws IOException {
+        FilePointer fptr = (FilePointer) entry.getColumnValue(tuplePtrIndex);
+        try {
+            return tableFile.getTuple(fptr);
+        }
+        catch (InvalidFilePointerException e) {
+            throw new IOException("Index " + indexInfo.getIndexName() +
+                " refers to a nonexistent tuple " + fptr, e);
+        }
+    }
+
+
+    /** Finishes joining the current left tuple. */
+    private void releaseProbeEntry() {
+        releaseIndexTuple();
+        probeEntry = null;
+    }
+
+
+    private void releaseIndexTuple() {
+        if (indexTuple != null) {
+            indexTuple.unpin();
+            indexTuple = null;
+        }
+    }
+
+
+    /**
+     * The index nested-loop join node doesn't support marking.
+     *
+     * @throws UnsupportedOperationException always.
+     */
+    public void markCurrentPosition() {
+        throw new UnsupportedOperationException(
+            "Index nested-loop join node doesn't support marking");
+    }
+
+
+    /**
+     * The index nested-loop join node doesn't support marking.
+     *
+     * @throws UnsupportedOperationException always.
+     */
+    public void resetToLastMark() {
+        throw new UnsupportedOperationException(
+            "Index nested-loop join node doesn't support marking");
+    }
+
+
+    public void cleanUp() {
+        releaseIndexTuple();
+        batch = null;
+        probeEntry = null;
+
+        leftChild.cleanUp();
+        rightChild.cleanUp();
+    }
+}
@@ -0,0 +1,808 @@
+package edu.caltech.nanodb.plannodes;
+
+
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+import edu.caltech.nanodb.expressions.ColumnName;
+import edu.caltech.nanodb.expressions.ColumnValue;
+import edu.caltech.nanodb.expressions.CompareOperator;
+import edu.caltech.nanodb.expressions.Expression;
+import edu.caltech.nanodb.expressions.LiteralValue;
+import edu.caltech.nanodb.expressions.OrderByExpression;
+import edu.caltech.nanodb.expressions.PredicateUtils;
+import edu.caltech.nanodb.expressions.TupleComparator;
+import edu.caltech.nanodb.expressions.TupleLiteral;
+import edu.caltech.nanodb.expressions.TypeConverter;
+
+import edu.caltech.nanodb.indexes.IndexInfo;
+import edu.caltech.nanodb.indexes.IndexManager;
+
+import edu.caltech.nanodb.queryeval.ColumnStats;
+import edu.caltech.nanodb.queryeval.PlanCost;
+import edu.caltech.nanodb.queryeval.SelectivityEstimator;
+import edu.caltech.nanodb.queryeval.TableStats;
+
+import edu.caltech.nanodb.relations.ColumnInfo;
+import edu.caltech.nanodb.relations.ColumnRefs;
+import edu.caltech.nanodb.relations.SQLDataType;
+import edu.caltech.nanodb.relations.Schema;
+import edu.caltech.nanodb.relations.TableInfo;
+import edu.caltech.nanodb.relations.Tuple;
+
+import edu.caltech.nanodb.storage.FilePointer;
+import edu.caltech.nanodb.storage.InvalidFilePointerException;
+import edu.caltech.nanodb.storage.SequentialTupleFile;
+import edu.caltech.nanodb.storage.TupleFile;
+
+
+/**
+ * <p>
+ * A select plan-node that uses an ordered index to find the tuples of a
+ * table whose key values fall within a range, fetching each tuple from the
+ * table through the index's <tt>#TUPLE_PTR</tt> column.  The range is
+ * specified by an <em>index predicate</em>:  a conjunction of comparisons
+ * between the index's columns and literal values, where the leading index
+ * columns are compared for equality and at most one subsequent column is
+ * compared with <tt>&lt;</tt>, <tt>&lt;=</tt>, <tt>&gt;</tt> or
+ * <tt>&gt;=</tt>.  The {@link #findIndexConjuncts} method chooses such a
+ * predicate from the conjuncts of a query.
+ * </p>
+ * <p>
+ * The optional predicate of the node is applied to the table's tuples after
+ * they are fetched, like the predicate of a {@link FileScanNode}, so it can
+ * simply be the entire predicate that was used to choose the index
+ * predicate.  Index entries with a <tt>NULL</tt> key value within the range
+ * columns are never produced, since no comparison is true for them.
+ * </p>
+ */
+public class IndexScanNode extends SelectNode {
+
+    /** A logging object for reporting anything interesting that happens. */
+    private static Logger logger = Logger.getLogger(IndexScanNode.class);
+
+
+    /**
+     * An estimate of the number of keys in each page of an index, used to
+     * estimate the number of pages read while navigating the index.
+     */
+    private static final int ESTIMATED_INDEX_FANOUT = 100;
+
+
+    /** The index used to find tuples. */
+    private IndexInfo indexInfo;
+
+
+    /** The table that the index is built against. */
+    private TableInfo tableInfo;
+
+
+    /** The conjuncts that specify the range of key values to scan. */
+    private Expression indexPredicate;
+
+
+    /** The tuple file holding the index's data. */
+    private SequentialTupleFile indexFile;
+
+
+    /** The tuple file holding the table's data. */
+    private TupleFile tableFile;
+
+
+    /** The index of the <tt>#TUPLE_PTR</tt> column in the index's schema. */
+    private int tuplePtrIndex;
+
+
+    /**
+     * The lowest key value to produce, or {@code null} if the scan starts at
+     * the beginning of the index.  This may specify fewer columns than the
+     * index has.
+     */
+    private TupleLiteral startKey;
+
+
+    /** True if tuples equal to {@link #startKey} are produced. */
+    private boolean startInclusive;
+
+
+    /**
+     * The highest key value to produce, or {@code null} if the scan continues
+     * to the end of the index.  This may specify fewer columns than the index
+     * has.
+     */
+    private TupleLiteral endKey;
+
+
+    /** True if tuples equal to {@link #endKey} are produced. */
+    private boolean endInclusive;
+
+
+    /**
+     * True if the scan is an equality lookup, i.e. {@link #startKey} and
+     * {@link #endKey} are the same, and both are inclusive.
+     */
+    private boolean equalityLookup;
+
+
+    /** The index entry referring to {@link #currentTuple}. */
+    private Tuple currentIndexTuple;
+
+
+    /** The index entry at which the tuple-stream was last marked. */
+    private FilePointer markedIndexTuple;
+
+
+    private boolean jumpToMarkedTuple;
+
+
+    /**
+     * Construct an index scan node.
+     *
+     * @param indexInfo the index to use for finding tuples
+     *
+     * @param indexPredicate the comparisons on the index's columns that
+     *        specify the range of key values to scan, as described in the
+     *        class documentation
+     *
+     * @param predicate an optional predicate applied to the table's tuples,
+     *        or {@code null} if all tuples in the range should be produced
+     *
+     * @throws IllegalArgumentException if the index doesn't use an ordered
+     *         tuple file, or the index predicate doesn't specify a range of
+     *         the index's keys
+     */
+    public IndexScanNode(IndexInfo indexInfo, Expression indexPredicate,
+                         Expression predicate) {
+        super(predicate);
+
+        if (indexInfo == null)
+            throw new IllegalArgumentException("indexInfo cannot be null");
+
+        if (indexPredicate == null)
+            throw new IllegalArgumentException("indexPredicate cannot be null");
+
+        if (!(indexInfo.getTupleFile() instanceof SequentialTupleFile)) {
+            throw new IllegalArgumentException("Index " +
+                indexInfo.getIndexName() + " isn't an ordered index");
+        }
+
+        this.indexInfo = indexInfo;
+        this.indexPredicate = indexPredicate;
+
+        tableInfo = indexInfo.getTableInfo();
+        tableFile = tableInfo.getTupleFile();
+        indexFile = (SequentialTupleFile) indexInfo.getTupleFile();
+
+        tuplePtrIndex = indexFile.getSchema().getColumnIndex(
+            IndexManager.COLNAME_TUPLEPTR);
+
+        computeKeyRange();
+    }
+
+
+    /**
+     * Chooses the conjuncts that an index can be used to evaluate, from a
+     * collection of conjuncts on the index's table:  equality comparisons
+     * on as many of the leading index columns as possible, and then any
+     * inequality comparisons on the next index column.  Only comparisons
+     * between a column and a non-<tt>NULL</tt> literal of a compatible type
+     * are used.
+     *
+     * @param indexInfo the index to evaluate conjuncts with
+     *
+     * @param tableName the name that the conjuncts use for the table, which
+     *        may be an alias, or {@code null} to accept any table name
+     *
+     * @param conjuncts the conjuncts to choose from
+     *
+     * @return the conjuncts the index can evaluate, rewritten to refer to
+     *         the table by its own name, with the column on the left; the
+     *         list is empty if the index isn't useful for the conjuncts
+     */
+    public static List<Expression> findIndexConjuncts(IndexInfo indexInfo,
+        String tableName, Collection<Expression> conjuncts) {
+
+        ArrayList<Expression> result = new ArrayList<>();
+
+        if (!(indexInfo.getTupleFile() instanceof SequentialTupleFile))
+            return result;
+
+        Schema tableSchema = indexInfo.getTableInfo().getSchema();
+        ColumnRefs colRefs = indexInfo.getTableColumnRefs();
+
+        for (int i = 0; i < colRefs.size(); i++) {
+            ColumnInfo colInfo = tableSchema.getColumnInfo(colRefs.getCol(i));
+
+            ArrayList<Expression> equalities = new ArrayList<>();
+            ArrayList<Expression> ranges = new ArrayList<>();
+
+            for (Expression conjunct : conjuncts) {
+                CompareOperator cmp = getKeyComparison(conjunct, colInfo,
+                    tableName);
+                if (cmp == null)
+                    continue;
+
+                if (cmp.getType() == CompareOperator.Type.EQUALS)
+                    equalities.add(cmp);
+                else
+                    ranges.add(cmp);
+            }
+
+            if (!equalities.isEmpty()) {
+                // One equality is enough to determine the key value.
+                result.add(equalities.get(0));
+                continue;
+            }
+
+            // The range comparisons are only useful on the column after the
+            // equality comparisons, so we stop here.
+            result.addAll(ranges);
+            break;
+        }
+
+        return result;
+    }
+
+
+    /**
+     * If the expression compares the specified column to a literal value,
+     * this method returns the comparison normalized so that the column is
+     * on the left, named as in the table's schema, and with the literal
+     * converted to the column's type.  Otherwise, {@code null} is returned.
+     */
+    private static CompareOperator getKeyComparison(Expression expr,
+        ColumnInfo colInfo, String tableName) {
+
+        if (!(expr instanceof CompareOperator))
+            return null;
+
+        CompareOperator cmp = (CompareOperator) expr.duplicate();
+        cmp.normalize();
+
+        if (cmp.getType() == CompareOperator.Type.NOT_EQUALS)
+            return null;
+
+        if (!(cmp.getLeftExpression() instanceof ColumnValue) ||
+            !(cmp.getRightExpression() instanceof LiteralValue)) {
+            return null;
+        }
+
+        ColumnName colName =
+            ((ColumnValue) cmp.getLeftExpression()).getColumnName();
+
+        if (!colInfo.getName().equals(colName.getColumnName()))
+            return null;
+
+        if (tableName != null && colName.getTableName() != null &&
+            !tableName.equals(colName.getTableName())) {
+            return null;
+        }
+
+        Object value = convertKeyValue(
+            cmp.getRightExpression().evaluate(), colInfo);
+        if (value == null)
+            return null;
+
+        return new CompareOperator(cmp.getType(),
+            new ColumnValue(colInfo.getColumnName()), new LiteralValue(value));
+    }
+
+
+    /**
+     * Converts a literal value to the type of a column, so that it may be
+     * compared with the column's values in an index.  Integer values may be
+     * widened; otherwise the value must already have the column's type.
+     *
+     * @return the converted value, or {@code null} if the value is
+     *         {@code NULL} or can't be converted exactly
+     */
+    private static Object convertKeyValue(Object value, ColumnInfo colInfo) {
+        if (value == null)
+            return null;
+
+        SQLDataType colType = colInfo.getType().getBaseType();
+        SQLDataType valueType = TypeConverter.getSQLType(value);
+
+        boolean integral = (value instanceof Byte || value instanceof Short ||
+            value instanceof Integer || value instanceof Long);
+
+        switch (colType) {
+        case INTEGER:
+            if (integral && !(value instanceof Long))
+                return TypeConverter.getIntegerValue(value);
+            break;
+
+        case BIGINT:
+            if (integral)
+                return TypeConverter.getLongValue(value);
+            break;
+
+        case CHAR:
+        case VARCHAR:
+            if (value instanceof String)
+                return value;
+            break;
+
+        default:
+            if (valueType == colType)
+                return value;
+        }
+
+        return null;
+    }
+
+
+    /**
+     * Computes the start and end keys of the scan from the index predicate.
+     */
+    private void computeKeyRange() {
+        ArrayList<Expression> conjuncts = new ArrayList<>();
+        PredicateUtils.collectConjuncts(indexPredicate, conjuncts);
+
+        Schema tableSchema = tableInfo.getSchema();
+        ColumnRefs colRefs = indexInfo.getTableColumnRefs();
+
+        ArrayList<Object> prefix = new ArrayList<>();
+        Object lower = null;
+        Object upper = null;
+        boolean lowerInclusive = true;
+        boolean upperInclusive = true;
+
+        int used = 0;
+        for (int i = 0; i < colRefs.size(); i++) {
+            ColumnInfo colInfo = tableSchema.getColumnInfo(colRefs.getCol(i));
+
+            Object equalValue = null;
+            boolean hasRange = false;
+            for (Expression conjunct : conjuncts) {
+                CompareOperator cmp = getKeyComparison(conjunct, colInfo, null);
+                if (cmp == null)
+                    continue;
+
+                used++;
+                Object value = cmp.getRightExpression().evaluate();
+
+                switch (cmp.getType()) {
+                case EQUALS:
+                    equalValue = value;
+                    break;
+
+                case GREATER_THAN:
+                case GREATER_OR_EQUAL:
+                    hasRange = true;
+                    boolean gtInclusive =
+                        (cmp.getType() == CompareOperator.Type.GREATER_OR_EQUAL);
+                    int c = (lower == null) ? 1 : compareValues(value, lower);
+                    if (c > 0 || (c == 0 && !gtInclusive)) {
+                        lower = value;
+                        lowerInclusive = gtInclusive;
+                    }
+                    break;
+
+                case LESS_THAN:
+                case LESS_OR_EQUAL:
+                    hasRange = true;
+                    boolean ltInclusive =
+                        (cmp.getType() == CompareOperator.Type.LESS_OR_EQUAL);
+                    c = (upper == null) ? -1 : compareValues(value, upper);
+                    if (c < 0 || (c == 0 && !ltInclusive)) {
+                        upper = value;
+                        upperInclusive = ltInclusive;
+                    }
+                    break;
+
+                default:
+                    throw new IllegalStateException(
+                        "Unexpected comparison " + cmp);
+                }
+            }
+
+            if (equalValue != null) {
+                if (hasRange) {
+                    throw new IllegalArgumentException("Index predicate " +
+                        indexPredicate + " compares column " + colInfo +
+                        " for both equality and inequality");
+                }
+
+                prefix.add(equalValue);
+                continue;
+            }
+
+            break;
+        }
+
+        if (used != conjuncts.size()) {
+            throw new IllegalArgumentException("Index predicate " +
+                indexPredicate + " isn't a range of index " +
+                indexInfo.getIndexName());
+        }
+
+        equalityLookup = (lower == null && upper == null);
+
+        if (lower != null) {
+            startKey = makeKey(prefix, lower);
+            startInclusive = lowerInclusive;
+        }
+        else if (!prefix.isEmpty()) {
+            startKey = makeKey(prefix, null);
+            startInclusive = true;
+        }
+
+        if (upper != null) {
+            endKey = makeKey(prefix, upper);
+            endInclusive = upperInclusive;
+        }
+        else if (!prefix.isEmpty()) {
+            endKey = makeKey(prefix, null);
+            endInclusive = true;
+        }
+
+        if (startKey == null && endKey == null) {
+            throw new IllegalArgumentException("Index predicate " +
+                indexPredicate + " doesn't constrain the first column of " +
+                "index " + indexInfo.getIndexName());
+        }
+    }
+
+
+    private static TupleLiteral makeKey(List<Object> prefix, Object last) {
+        TupleLiteral key = new TupleLiteral();
+        for (Object value : prefix)
+            key.addValue(value);
+
+        if (last != null)
+            key.addValue(last);
+
+        return key;
+    }
+
+
+    @SuppressWarnings("unchecked")
+    private static int compareValues(Object a, Object b) {
+        return ((Comparable) a).compareTo(b);
+    }
+
+
+    /**
+     * Returns true if the index entry has a <tt>NULL</tt> value in one of
+     * the columns that the scan's range is specified on.
+     */
+    private boolean hasNullKey(Tuple indexTuple) {
+        int numKeyCols = Math.max(
+            (startKey != null) ? startKey.getColumnCount() : 0,
+            (endKey != null) ? endKey.getColumnCount() : 0);
+
+        for (int i = 0; i < numKeyCols; i++) {
+            if (indexTuple.isNullValue(i))
+                return true;
+        }
+        return false;
+    }
+
+
+    /**
+     * Returns true if the index entry is beyond the end of the scan's range,
+     * so that no more entries need to be examined.
+     */
+    private boolean isPastEnd(Tuple indexTuple) {
+        if (endKey == null)
+            return false;
+
+        int c = TupleComparator.comparePartialTuples(indexTuple, endKey);
+        return c > 0 || (c == 0 && !endInclusive);
+    }
+
+
+    /**
+     * Returns true if the index entry is before the start of the scan's
+     * range.
+     */
+    private boolean isBeforeStart(Tuple indexTuple) {
+        if (startKey == null)
+            return false;
+
+        int c = TupleComparator.comparePartialTuples(indexTuple, startKey);
+        return c < 0 || (c == 0 && !startInclusive);
+    }
+
+
+    /**
+     * Returns true if the passed-in object is an <tt>IndexScanNode</tt> with
+     * the same index, index predicate, and predicate.
+     *
+     * @param obj the object to check for equality
+     *
+     * @return true if the passed-in object is equal to this object; false
+     *         otherwise
+     */
+    @Override
+    public boolean equals(Object obj) {
+        if (obj instanceof IndexScanNode) {
+            IndexScanNode other = (IndexScanNode) obj;
+            return indexFile.equals(other.indexFile) &&
+                   indexPredicate.equals(other.indexPredicate) &&
+                   (predicate != null ? predicate.equals(other.predicate) :
+                                        other.predicate == null);
+        }
+
+        return false;
+    }
+
+
+    /**
+     * Computes the hashcode of a PlanNode.  This method is used to see if two
+     * plan nodes CAN be equal.
+     **/
+    public int hashCode() {
+        int hash = 7;
+        hash = 31 * hash + (predicate != null ? predicate.hashCode() : 0);
+        hash = 31 * hash + indexPredicate.hashCode();
+        hash = 31 * hash + indexFile.hashCode();
+        return hash;
+    }
+
+
+    /**
+     * Creates a copy of this index scan node.  This method is used by
+     * {@link PlanNode#duplicate} to copy a plan tree.
+     */
+    @Override
+    protected PlanNode clone() throws CloneNotSupportedException {
+        IndexScanNode node = (IndexScanNode) super.clone();
+
+        node.indexPredicate = indexPredicate.duplicate();
+
+        // The tuple files and keys don't need to be copied since they are
+        // not modified.
+        node.currentIndexTuple = null;
+        node.markedIndexTuple = null;
+
+        return node;
+    }
+
+
+    @Override
+    public String toString() {
+        StringBuilder buf = new StringBuilder();
+
+        buf.append("IndexScan[index:  ").append(indexInfo.getTableName());
+        buf.append('.').append(indexInfo.getIndexName());
+        buf.append(", range:  ").append(indexPredicate);
+
+        if (predicate != null)
+            buf.append(", pred:  ").append(predicate.toString());
+
+        buf.append("]");
+
+        return buf.toString();
+    }
+
+
+    /**
+     * An index scan produces its results in the order of the index's
+     * columns, since the index entries are ordered on them.
+     */
+    public List<OrderByExpression> resultsOrderedBy() {
+        Schema tableSchema = tableInfo.getSchema();
+        ColumnRefs colRefs = indexInfo.getTableColumnRefs();
+
+        ArrayList<OrderByExpression> orderSpec = new ArrayList<>();
+        for (int i = 0; i < colRefs.size(); i++) {
+            ColumnInfo colInfo = tableSchema.getColumnInfo(colRefs.getCol(i));
+            orderSpec.add(new OrderByExpression(
+                new ColumnValue(colInfo.getColumnName())));
+        }
+
+        return orderSpec;
+    }
+
+
+    /** This node supports marking. */
+    public boolean supportsMarking() {
+        return true;
+    }
+
+
+    /** This node has no children so of course it doesn't require marking. */
+    public boolean requiresLeftMarking() {
+        return false;
+    }
+
+
+    /** This node has no children so of course it doesn't require marking. */
+    public boolean requiresRightMarking() {
+        return false;
+    }
+
+
+    // Inherit javadocs from base class.
+    public void prepare() {
+        schema = tableFile.getSchema();
+
+        TableStats tableStats = tableFile.getStats();
+        ArrayList<ColumnStats> fileStats = tableStats.getAllColumnStats();
+
+        // Estimate the number of index entries in the scanned range.  Each
+        // one requires a table tuple to be fetched, which may be on any page
+        // of the table.
+        float numMatched = tableStats.numTuples *
+            SelectivityEstimator.estimateSelectivity(indexPredicate, schema,
+                fileStats);
+
+        Expression pred = (predicate != null) ? predicate : indexPredicate;
+        float numTuples = tableStats.numTuples *
+            SelectivityEstimator.estimateSelectivity(pred, schema, fileStats);
+
+        long depth = estimateIndexDepth(tableStats.numTuples);
+
+        cost = new PlanCost(numTuples, tableStats.avgTupleSize, numMatched,
+            depth + (long) Math.ceil(numMatched));
+
+        stats = fileStats;
+
+        // Resolve the predicate's column references once, rather than for
+        // every tuple, and compile it.
+        preparePredicate();
+    }
+
+
+    /**
+     * Estimates the number of index pages read to find the first entry for a
+     * key, from the number of tuples in the indexed table.
+     *
+     * @param numTuples the number of tuples in the indexed table
+     *
+     * @return the estimated depth of the index
+     */
+    static long estimateIndexDepth(float numTuples) {
+        long depth = 1;
+        if (numTuples > 1) {
+            depth += (long) Math.ceil(Math.log(numTuples) /
+                                      Math.log(ESTIMATED_INDEX_FANOUT));
+        }
+        return depth;
+    }
+
+
+    /**
+     * Returns true if the scan is a lookup of specific values of the index's
+     * columns, as opposed to a range of values.
+     *
+     * @return true if the scan is an equality lookup
+     */
+    public boolean isEqualityLookup() {
+        return equalityLookup;
+    }
+
+
+    /**
+     * Returns the index that this node scans.
+     *
+     * @return the index that this node scans
+     */
+    public IndexInfo getIndexInfo() {
+        return indexInfo;
+    }
+
+
+    public void initialize() {
+        super.initialize();
+
+        releaseIndexTuple();
+
+        // Reset our marking state.
+        markedIndexTuple = null;
+        jumpToMarkedTuple = false;
+    }
+
+
+    public void cleanUp() {
+        releaseIndexTuple();
+    }
+
+
+    private void releaseIndexTuple() {
+        if (currentIndexTuple != null) {
+            currentIndexTuple.unpin();
+            currentIndexTuple = null;
+        }
+    }
+
+
+    /**
+     * Advances to the next index entry in the scan's range, and fetches the
+     * table tuple it refers to.
+     *
+     * @throws java.io.IOException if the index or table can't be read
+     */
+    protected void advanceCurrentTuple() throws IOException {
+        Tuple indexTuple;
+
+        if (jumpToMarkedTuple) {
+            logger.debug("Resuming at previously marked tuple.");
+            releaseIndexTuple();
+            try {
+                indexTuple = indexFile.getTuple(markedIndexTuple);
+            }
+            catch (InvalidFilePointerException e) {
+                throw new IOException(
+                    "Couldn't resume at previously marked tuple!", e);
+            }
+            jumpToMarkedTuple = false;
+        }
+        else if (currentIndexTuple == null) {
+            // Find the first entry in the range.  Entries are compared with
+            // the start key on the key's columns only, so "greater than"
+            // skips all entries that start with the key's values.
+            if (startKey == null) {
+                indexTuple = indexFile.getFirstTuple();
+            }
+            else {
+                indexTuple = null;
+                if (startInclusive)
+                    indexTuple = indexFile.findFirstTupleEquals(startKey);
+
+                if (indexTuple == null && !equalityLookup)
+                    indexTuple = indexFile.findFirstTupleGreaterThan(startKey);
+            }
+        }
+        else {
+            indexTuple = indexFile.getNextTuple(currentIndexTuple);
+            releaseIndexTuple();
+        }
+
+        // Skip entries with NULL keys, which are at the start of the index
+        // if the start of the range is unbounded.
+        while (indexTuple != null &&
+               (hasNullKey(indexTuple) || isBeforeStart(indexTuple))) {
+            Tuple next = indexFile.getNextTuple(indexTuple);
+            indexTuple.unpin();
+            indexTuple = next;
+        }
+
+        if (indexTuple != null && isPastEnd(indexTuple)) {
+            indexTuple.unpin();
+            indexTuple = null;
+        }
+
+        currentIndexTuple = indexTuple;
+        if (indexTuple == null) {
+            currentTuple = null;
+            return;
+        }
+
+        FilePointer fptr =
+            (FilePointer) indexTuple.getColumnValue(tuplePtrIndex);
+        try {
+            currentTuple = tableFile.getTuple(fptr);
+        }
+        catch (InvalidFilePointerException e) {
+            throw new IOException("Index " + indexInfo.getIndexName() +
+                " refers to a nonexistent tuple " + fptr, e);
+        }
+    }
+
+
+    public void markCurrentPosition() {
+        if (currentIndexTuple == null)
+            throw new IllegalStateException("There is no current tuple!");
+
+        logger.debug("Marking current position in tuple-stream.");
+        markedIndexTuple = currentIndexTuple.getExternalReference();
+    }
+
+
+    public void resetToLastMark() {
+        if (markedIndexTuple == null)
+            throw new IllegalStateException("There is no last-marked tuple!");
+
+        logger.debug("Resetting to previously marked position in tuple-stream.");
+        jumpToMarkedTuple = true;
+        done = false;
+    }
+}
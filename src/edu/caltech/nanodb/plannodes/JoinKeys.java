@@ -0,0 +1,323 @@
+package edu.caltech.nanodb.plannodes;
+
+
+import java.util.ArrayList;
+import java.util.List;
+
+import edu.caltech.nanodb.expressions.BooleanOperator;
+import edu.caltech.nanodb.expressions.ColumnValue;
+import edu.caltech.nanodb.expressions.CompareOperator;
+import edu.caltech.nanodb.expressions.Expression;
+import edu.caltech.nanodb.expressions.TupleLiteral;
+import edu.caltech.nanodb.relations.Schema;
+import edu.caltech.nanodb.relations.SchemaNameException;
+import edu.caltech.nanodb.relations.Tuple;
+
+
+/**
+ * This class describes the equality conditions in a join predicate that
+ * compare a column of the left input to a column of the right input, such as
+ * <tt>t1.a = t2.b</tt>.  These "equijoin keys" allow the join to be computed
+ * by matching up tuples with equal key values (e.g. by hashing or sorting),
+ * instead of comparing every pair of tuples.  Any other conjuncts of the
+ * predicate are kept as a residual predicate that must still be evaluated
+ * against each matching pair of tuples.
+ * <p>
+ * A conjunct is only used as a key if both columns have the same SQL type,
+ * so that equal values are also equal (and have equal hash codes) as Java
+ * objects.
+ */
+public class JoinKeys {
+
+    /** The indexes of the key columns in the left input's schema. */
+    private int[] leftKeyIndexes;
+
+
+    /** The indexes of the key columns in the right input's schema. */
+    private int[] rightKeyIndexes;
+
+
+    /** The key columns of the left input, in key order. */
+    private List<Expression> leftKeyExprs;
+
+
+    /** The key columns of the right input, in key order. */
+    private List<Expression> rightKeyExprs;
+
+
+    /**
+     * The conjuncts of the join predicate that are not equijoin keys, or
+     * {@code null} if all conjuncts are keys.
+     */
+    private Expression residualPredicate;
+
+
+    private JoinKeys() {
+        // Instances are created by extract().
+    }
+
+
+    /**
+     * Analyzes a join predicate to find its equijoin keys.
+     *
+     * @param predicate the join predicate, which may be {@code null}
+     *
+     * @param leftSchema the schema of the join's left input
+     *
+     * @param rightSchema the schema of the join's right input
+     *
+     * @return the equijoin keys of the predicate, or {@code null} if the
+     *         predicate has no conjuncts that can be used as keys
+     */
+    public static JoinKeys extract(Expression predicate, Schema leftSchema,
+                                   Schema rightSchema) {
+        if (predicate == null)
+            return null;
+
+        ArrayList<Expression> conjuncts = new ArrayList<>();
+        if (predicate instanceof BooleanOperator &&
+            ((BooleanOperator) predicate).getType() == BooleanOperator.Type.AND_EXPR) {
+            BooleanOperator bool = (BooleanOperator) predicate;
+            for (int i = 0; i < bool.getNumTerms(); i++)
+                conjuncts.add(bool.getTerm(i));
+        }
+        else {
+            conjuncts.add(predicate);
+        }
+
+        ArrayList<Integer> leftIndexes = new ArrayList<>();
+        ArrayList<Integer> rightIndexes = new ArrayList<>();
+        JoinKeys keys = new JoinKeys();
+        keys.leftKeyExprs = new ArrayList<>();
+        keys.rightKeyExprs = new ArrayList<>();
+        ArrayList<Expression> residual = new ArrayList<>();
+
+        for (Expression conjunct : conjuncts) {
+            if (!addKey(conjunct, leftSchema, rightSchema, keys,
+                        leftIndexes, rightIndexes)) {
+                residual.add(conjunct);
+            }
+        }
+
+        if (leftIndexes.isEmpty())
+            return null;
+
+        keys.leftKeyIndexes = toIntArray(leftIndexes);
+        keys.rightKeyIndexes = toIntArray(rightIndexes);
+
+        if (residual.isEmpty())
+            keys.residualPredicate = null;
+        else if (residual.size() == 1)
+            keys.residualPredicate = residual.get(0);
+        else
+            keys.residualPredicate =
+                new BooleanOperator(BooleanOperator.Type.AND_EXPR, residual);
+
+        return keys;
+    }
+
+
+    /**
+     * If the conjunct is an equality comparison between a column of the left
+     * schema and a column of the right schema with the same type, this
+     * helper records the two columns as a key and returns true.
+     */
+    private static boolean addKey(Expression conjunct, Schema leftSchema,
+        Schema rightSchema, JoinKeys keys, List<Integer> leftIndexes,
+        List<Integer> rightIndexes) {
+
+        if (!(conjunct instanceof CompareOperator))
+            return false;
+
+        CompareOperator cmp = (CompareOperator) conjunct;
+        if (cmp.getType() != CompareOperator.Type.EQUALS)
+            return false;
+
+        if (!(cmp.getLeftExpression() instanceof ColumnValue) ||
+            !(cmp.getRightExpression() instanceof ColumnValue)) {
+            return false;
+        }
+
+        ColumnValue lhs = (ColumnValue) cmp.getLeftExpression();
+        ColumnValue rhs = (ColumnValue) cmp.getRightExpression();
+
+        int lhsLeft = findColumn(leftSchema, lhs);
+        int rhsRight = findColumn(rightSchema, rhs);
+        if (lhsLeft == -1 || rhsRight == -1) {
+            // Maybe the comparison is written the other way around.
+            ColumnValue tmp = lhs;
+            lhs = rhs;
+            rhs = tmp;
+
+            lhsLeft = findColumn(leftSchema, lhs);
+            rhsRight = findColumn(rightSchema, rhs);
+            if (lhsLeft == -1 || rhsRight == -1)
+                return false;
+        }
+
+        // Make sure each column only appears on one side of the join, or
+        // else it isn't clear which input the column refers to.
+        if (findColumn(rightSchema, lhs) != -1 ||
+            findColumn(leftSchema, rhs) != -1) {
+            return false;
+        }
+
+        if (leftSchema.getColumnInfo(lhsLeft).getType().getBaseType() !=
+            rightSchema.getColumnInfo(rhsRight).getType().getBaseType()) {
+            return false;
+        }
+
+        leftIndexes.add(lhsLeft);
+        rightIndexes.add(rhsRight);
+        keys.leftKeyExprs.add(lhs);
+        keys.rightKeyExprs.add(rhs);
+
+        return true;
+    }
+
+
+    /**
+     * Returns the index of the column in the schema, or -1 if the column
+     * doesn't appear in the schema or is ambiguous.
+     */
+    private static int findColumn(Schema schema, ColumnValue colValue) {
+        try {
+            return schema.getColumnIndex(colValue.getColumnName());
+        }
+        catch (SchemaNameException e) {
+            return -1;
+        }
+    }
+
+
+    private static int[] toIntArray(List<Integer> list) {
+        int[] result = new int[list.size()];
+        for (int i = 0; i < result.length; i++)
+            result[i] = list.get(i);
+
+        return result;
+    }
+
+
+    /**
+     * Returns the number of key columns.
+     *
+     * @return the number of key columns
+     */
+    public int size() {
+        return leftKeyIndexes.length;
+    }
+
+
+    /**
+     * Returns the indexes of the key columns in the left input's schema.
+     *
+     * @return the indexes of the key columns in the left input's schema
+     */
+    public int[] getLeftKeyIndexes() {
+        return leftKeyIndexes;
+    }
+
+
+    /**
+     * Returns the indexes of the key columns in the right input's schema.
+     *
+     * @return the indexes of the key columns in the right input's schema
+     */
+    public int[] getRightKeyIndexes() {
+        return rightKeyIndexes;
+    }
+
+
+    /**
+     * Returns the key columns of the left input, in key order.
+     *
+     * @return the key columns of the left input
+     */
+    public List<Expression> getLeftKeyExpressions() {
+        return leftKeyExprs;
+    }
+
+
+    /**
+     * Returns the key columns of the right input, in key order.
+     *
+     * @return the key columns of the right input
+     */
+    public List<Expression> getRightKeyExpressions() {
+        return rightKeyExprs;
+    }
+
+
+    /**
+     * Returns the conjuncts of the join predicate that are not equijoin keys,
+     * or {@code null} if all of the conjuncts are keys.
+     *
+     * @return the residual join predicate, or {@code null}
+     */
+    public Expression getResidualPredicate() {
+        return residualPredicate;
+    }
+
+
+    /**
+     * Returns a new object describing the same keys with the left and right
+     * inputs exchanged.
+     *
+     * @return a new object describing the same keys for the swapped join
+     */
+    public JoinKeys swap() {
+        JoinKeys swapped = new JoinKeys();
+        swapped.leftKeyIndexes = rightKeyIndexes;
+        swapped.rightKeyIndexes = leftKeyIndexes;
+        swapped.leftKeyExprs = rightKeyExprs;
+        swapped.rightKeyExprs = leftKeyExprs;
+        swapped.residualPredicate = residualPredicate;
+        return swapped;
+    }
+
+
+    /**
+     * Returns the key of a tuple from the left input.
+     *
+     * @param tuple a tuple from the left input
+     *
+     * @return the key value (a single value, or a {@link TupleLiteral} for
+     *         multi-column keys), or {@code null} if any key column is
+     *         <tt>NULL</tt>, since such a tuple cannot match any other tuple
+     */
+    public Object getLeftKey(Tuple tuple) {
+        return getKey(tuple, leftKeyIndexes);
+    }
+
+
+    /**
+     * Returns the key of a tuple from the right input.
+     *
+     * @param tuple a tuple from the right input
+     *
+     * @return the key value (a single value, or a {@link TupleLiteral} for
+     *         multi-column keys), or {@code null} if any key column is
+     *         <tt>NULL</tt>, since such a tuple cannot match any other tuple
+     */
+    public Object getRightKey(Tuple tuple) {
+        return getKey(tuple, rightKeyIndexes);
+    }
+
+
+    private static Object getKey(Tuple tuple, int[] indexes) {
+        if (indexes.length == 1)
+            return tuple.getColumnValue(indexes[0]);
+
+        TupleLiteral key = new TupleLiteral(indexes.length);
+        for (int i = 0; i < indexes.length; i++) {
+            Object value = tuple.getColumnValue(indexes[i]);
+            if (value == null)
+                return null;
+
+            key.setColumnValue(i, value);
+        }
+
+        return key;
+    }
+}
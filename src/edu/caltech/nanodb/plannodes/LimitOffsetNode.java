@@ -0,0 +1,252 @@
+package edu.caltech.nanodb.plannodes;
+
+
+import java.io.IOException;
+
+import java.util.List;
+
+import edu.caltech.nanodb.expressions.OrderByExpression;
+
+import edu.caltech.nanodb.queryeval.PlanCost;
+
+import edu.caltech.nanodb.relations.Tuple;
+
+
+/**
+ * This plan node implements the <tt>LIMIT</tt> and <tt>OFFSET</tt> clauses
+ * of a <tt>SELECT</tt> query.  The first <tt>offset</tt> tuples produced by
+ * the child plan are skipped, and then at most <tt>limit</tt> tuples are
+ * passed through.  Once the limit has been reached, the node stops pulling
+ * tuples from its child, so the rest of the child's results are never
+ * computed.
+ */
+public class LimitOffsetNode extends PlanNode {
+
+    /**
+     * The maximum number of tuples to produce, or 0 if the number of tuples
+     * is not limited.
+     */
+    private int limit;
+
+
+    /** The number of tuples to skip before producing any tuples. */
+    private int offset;
+
+
+    /** The number of tuples that have been produced so far. */
+    private int numProduced;
+
+
+    /** True once the child's first <tt>offset</tt> tuples have been skipped. */
+    private boolean skippedOffset;
+
+
+    /** True if this node has finished producing tuples. */
+    private boolean done;
+
+
+    /**
+     * Constructs a limit/offset node.
+     *
+     * @param subplan the subplan that produces the tuples
+     * @param limit the maximum number of tuples to produce, or 0 if the
+     *        number of tuples is not limited
+     * @param offset the number of tuples to skip before producing any tuples
+     */
+    public LimitOffsetNode(PlanNode subplan, int limit, int offset) {
+        super(OperationType.LIMIT_OFFSET, subplan);
+
+        if (limit < 0)
+            throw new IllegalArgumentException("limit cannot be negative");
+
+        if (offset < 0)
+            throw new IllegalArgumentException("offset cannot be negative");
+
+        this.limit = limit;
+        this.offset = offset;
+    }
+
+
+    /**
+     * Returns the maximum number of tuples this node will produce.
+     *
+     * @return the maximum number of tuples, or 0 if it is not limited
+     */
+    public int getLimit() {
+        return limit;
+    }
+
+
+    /**
+     * Returns the number of tuples this node skips.
+     *
+     * @return the number of tuples skipped before any are produced
+     */
+    public int getOffset() {
+        return offset;
+    }
+
+
+    /** This node's results are sorted if its subplan produces sorted results. */
+    public List<OrderByExpression> resultsOrderedBy() {
+        return leftChild.resultsOrderedBy();
+    }
+
+
+    /** This node doesn't support marking. */
+    public boolean supportsMarking() {
+        return false;
+    }
+
+
+    /** This node doesn't require any marking from either child. */
+    public boolean requiresLeftMarking() {
+        return false;
+    }
+
+
+    /** This node doesn't require any marking from either child. */
+    public boolean requiresRightMarking() {
+        return false;
+    }
+
+
+    // Inherit javadocs from base class.
+    public void prepare() {
+        // Need to prepare the left child-node before we can do our own work.
+        leftChild.prepare();
+
+        // The schema and stats are the same as the child's.
+        schema = leftChild.getSchema();
+        stats = leftChild.getStats();
+
+        PlanCost childCost = leftChild.getCost();
+        if (childCost != null) {
+            cost = new PlanCost(childCost);
+
+            float numTuples = Math.max(0, childCost.numTuples - offset);
+            if (limit > 0)
+                numTuples = Math.min(numTuples, limit);
+
+            cost.numTuples = numTuples;
+        }
+    }
+
+
+    public void initialize() {
+        super.initialize();
+
+        numProduced = 0;
+        skippedOffset = false;
+        done = false;
+
+        leftChild.initialize();
+    }
+
+
+    /**
+     * Returns the next tuple from the child, after skipping the first
+     * <tt>offset</tt> tuples, until <tt>limit</tt> tuples have been
+     * produced.
+     */
+    public Tuple getNextTuple() throws IllegalStateException, IOException {
+        if (done)
+            return null;
+
+        if (!skippedOffset) {
+            for (int i = 0; i < offset; i++) {
+                Tuple tup = leftChild.getNextTuple();
+                if (tup == null) {
+                    done = true;
+                    return null;
+                }
+
+                if (tup.isPinned())
+                    tup.unpin();
+            }
+
+            skippedOffset = true;
+        }
+
+        if (limit > 0 && numProduced >= limit) {
+            done = true;
+            return null;
+        }
+
+        Tuple tup = leftChild.getNextTuple();
+        if (tup == null) {
+            done = true;
+            return null;
+        }
+
+        numProduced++;
+        return tup;
+    }
+
+
+    /**
+     * The limit/offset node doesn't support marking.
+     *
+     * @throws UnsupportedOperationException always.
+     */
+    public void markCurrentPosition() {
+        throw new UnsupportedOperationException(
+            "Limit/offset node doesn't support marking");
+    }
+
+
+    /**
+     * The limit/offset node doesn't support marking.
+     *
+     * @throws UnsupportedOperationException always.
+     */
+    public void resetToLastMark() {
+        throw new UnsupportedOperationException(
+            "Limit/offset node doesn't support marking");
+    }
+
+
+    public void cleanUp() {
+        leftChild.cleanUp();
+    }
+
+
+    @Override
+    public String toString() {
+        StringBuilder buf = new StringBuilder("LimitOffset[");
+        if (limit > 0)
+            buf.append("limit:  ").append(limit);
+
+        if (offset > 0) {
+            if (limit > 0)
+                buf.append(", ");
+
+            buf.append("offset:  ").append(offset);
+        }
+
+        buf.append(']');
+        return buf.toString();
+    }
+
+
+    @Override
+    public boolean equals(Object obj) {
+        if (obj instanceof LimitOffsetNode) {
+            LimitOffsetNode other = (LimitOffsetNode) obj;
+            return limit == other.limit && offset == other.offset &&
+                   leftChild.equals(other.leftChild);
+        }
+
+        return false;
+    }
+
+
+    @Override
+    public int hashCode() {
+        int hash = 7;
+        hash = 31 * hash + limit;
+        hash = 31 * hash + offset;
+        hash = 31 * hash + leftChild.hashCode();
+        return hash;
+    }
+}
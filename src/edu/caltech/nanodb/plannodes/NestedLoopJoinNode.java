@@ -135,6 +135,9 @@ public class NestedLoopJoinNode extends ThetaJoinNode {
         else
             node.predicate = null;
 
+        // The copy must be prepared again to compile its own predicate.
+        node.compiledPredicate = null;
+
         return node;
     }
 
@@ -198,7 +201,7 @@ public class NestedLoopJoinNode extends ThetaJoinNode {
         if (joinType == JoinType.INNER || joinType == JoinType.RIGHT_OUTER || joinType == JoinType.LEFT_OUTER
                 || joinType == JoinType.FULL_OUTER || joinType == JoinType.SEMIJOIN || joinType == JoinType.ANTIJOIN){
             cost.numTuples = leftChildCost.numTuples * rightChildCost.numTuples *
-                    SelectivityEstimator.estimateSelectivity(predicate, schema, stats);
+                    SelectivityEstimator.estimateSelectivity(predicate, joinSchema, joinStats);
             cost.tupleSize = leftChildCost.tupleSize + rightChildCost.tupleSize;
         }
 
@@ -240,6 +243,9 @@ public class NestedLoopJoinNode extends ThetaJoinNode {
         if (done)
             return null;
 
+        if (joinType == JoinType.SEMIJOIN || joinType == JoinType.ANTIJOIN)
+            return getNextSemiOrAntiJoinTuple();
+
         while (getTuplesToJoin()) {
 
             if(emptyOuterJoinTable) {
@@ -271,6 +277,35 @@ public class NestedLoopJoinNode extends ThetaJoinNode {
     }
 
 
+    /**
+     * Returns the next left tuple that has a matching right tuple (for a
+     * semijoin) or doesn't have one (for an antijoin).  The right subplan is
+     * only scanned until the first match is found.
+     *
+     * @return the next left tuple to produce, or {@code null} if there are
+     *         no more tuples
+     *
+     * @throws IOException if a db file failed to open at some point
+     */
+    private Tuple getNextSemiOrAntiJoinTuple() throws IOException {
+        while (true) {
+            leftTuple = leftChild.getNextTuple();
+            if (leftTuple == null) {
+                done = true;
+                return null;
+            }
+
+            boolean matches = false;
+            rightChild.initialize();
+            while (!matches && (rightTuple = rightChild.getNextTuple()) != null)
+                matches = canJoinTuples();
+
+            if (matches == (joinType == JoinType.SEMIJOIN))
+                return joinTuples(leftTuple, rightTuple);
+        }
+    }
+
+
     /**
      * This helper function implements the logic that sets {@link #leftTuple}
      * and {@link #rightTuple} based on the nested-loop logic.
@@ -355,7 +390,7 @@ public class NestedLoopJoinNode extends ThetaJoinNode {
         environment.addTuple(leftSchema, leftTuple);
         environment.addTuple(rightSchema, rightTuple);
 
-        return predicate.evaluatePredicate(environment);
+        return evaluatePredicate();
     }
 
 
@@ -0,0 +1,60 @@
+package edu.caltech.nanodb.plannodes;
+
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * Hands out the data pages of a heap file in small ranges, or "morsels," to
+ * the workers of a parallel scan.  Each worker claims a new morsel when it
+ * finishes the previous one, so a worker that is slowed down (e.g. by
+ * reading pages that aren't cached) simply ends up scanning fewer morsels.
+ */
+class PageMorsels {
+
+    /** The next page to hand out. */
+    private AtomicInteger nextPageNo;
+
+
+    /** The page after the last page to hand out. */
+    private int endPageNo;
+
+
+    /** The number of pages in each morsel. */
+    private int morselPages;
+
+
+    /**
+     * @param startPageNo the first page to scan
+     *
+     * @param endPageNo the page after the last page to scan
+     *
+     * @param morselPages the number of pages in each morsel
+     */
+    PageMorsels(int startPageNo, int endPageNo, int morselPages) {
+        if (morselPages < 1)
+            throw new IllegalArgumentException("morselPages must be positive");
+
+        nextPageNo = new AtomicInteger(startPageNo);
+        this.endPageNo = endPageNo;
+        this.morselPages = morselPages;
+    }
+
+
+    /**
+     * Claims the next morsel.
+     *
+     * @return the first page of the morsel, or -1 if all pages have been
+     *         handed out
+     */
+    int claim() {
+        int pageNo = nextPageNo.getAndAdd(morselPages);
+        return (pageNo < endPageNo) ? pageNo : -1;
+    }
+
+
+    /** Returns the page after the last page of the morsel starting at a page. */
+    int getMorselEnd(int startPageNo) {
+        return Math.min(startPageNo + morselPages, endPageNo);
+    }
+}
@@ -9,14 +9,19 @@ import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
 import java.util.List;
 
+import edu.caltech.nanodb.expressions.CompiledExpression;
 import edu.caltech.nanodb.expressions.Environment;
+import edu.caltech.nanodb.expressions.Expression;
+import edu.caltech.nanodb.expressions.ExpressionCompiler;
 import edu.caltech.nanodb.expressions.OrderByExpression;
 
 import edu.caltech.nanodb.queryeval.ColumnStats;
+import edu.caltech.nanodb.queryeval.ExecutionProperties;
 import edu.caltech.nanodb.queryeval.PlanCost;
 
 import edu.caltech.nanodb.relations.Schema;
 import edu.caltech.nanodb.relations.Tuple;
+import edu.caltech.nanodb.relations.TupleBatch;
 
 
 /**
@@ -45,8 +50,14 @@ public abstract class PlanNode implements Cloneable {
         /** Sorting operator. */
         SORT,
 
+        /** An operator that limits the number of rows produced. */
+        LIMIT_OFFSET,
+
         /** A materialize plan-node. */
-        MATERIALIZE
+        MATERIALIZE,
+
+        /** Gathers the results of a subplan that is run in parallel. */
+        GATHER
     }
 
 
@@ -104,6 +115,21 @@ public abstract class PlanNode implements Cloneable {
     protected Environment environment = new Environment();
 
 
+    /**
+     * The batch returned by the default implementation of
+     * {@link #getNextBatch}, or by subclasses that produce batches of their
+     * own.  It is reused for each batch the node produces.
+     */
+    private TupleBatch outputBatch;
+
+
+    /**
+     * Set by the default implementation of {@link #getNextBatch} once
+     * {@link #getNextTuple} has returned <tt>null</tt>.
+     */
+    private boolean batchInputDone;
+
+
     /**
      * Constructs a PlanNode with a given operation type.  This method will be
      * called by subclass constructors.
@@ -265,6 +291,29 @@ public abstract class PlanNode implements Cloneable {
     }
 
 
+    /**
+     * Returns the left child of this plan node, or its only child if it has
+     * one child.
+     *
+     * @return the left child of this plan node, or {@code null} if the node
+     *         has no children
+     */
+    public PlanNode getLeftChild() {
+        return leftChild;
+    }
+
+
+    /**
+     * Returns the right child of this plan node.
+     *
+     * @return the right child of this plan node, or {@code null} if the node
+     *         has fewer than two children
+     */
+    public PlanNode getRightChild() {
+        return rightChild;
+    }
+
+
     /**
      * Returns the environment that this plan node uses during query
      * evaluation.
@@ -320,7 +369,7 @@ public abstract class PlanNode implements Cloneable {
      * must be sure to call their parent class' implementation as well.
      */
     public void initialize() {
-        // Do nothing.
+        batchInputDone = false;
     }
 
 
@@ -340,6 +389,69 @@ public abstract class PlanNode implements Cloneable {
         throws IllegalStateException, IOException;
 
 
+    /**
+     * <p>
+     * Gets the next batch of tuples that this plan node produces.  This is
+     * an alternative to {@link #getNextTuple} that allows plan nodes to
+     * process many tuples at a time; a consumer of a plan node must use one
+     * method or the other for the entire evaluation of the node, and plan
+     * nodes that produce batches don't support marking.
+     * </p>
+     * <p>
+     * The returned batch is only valid until the next call to this method,
+     * since plan nodes reuse their batches.  The caller may modify the batch;
+     * for example, a filter may remove the rows that don't satisfy its
+     * predicate.
+     * </p>
+     * <p>
+     * The default implementation collects tuples from {@link #getNextTuple}
+     * into a batch, so that every plan node can produce batches.  Plan nodes
+     * that can produce batches more efficiently override this method.
+     * </p>
+     *
+     * @return the next batch of tuples, which is never empty, or
+     *         <tt>null</tt> if the plan has finished generating tuples.
+     *
+     * @throws IOException if a db file failed to open at some point
+     */
+    public TupleBatch getNextBatch() throws IOException {
+        if (batchInputDone)
+            return null;
+
+        TupleBatch batch = getOutputBatch();
+        while (!batch.isFull()) {
+            Tuple tuple = getNextTuple();
+            if (tuple == null) {
+                batchInputDone = true;
+                break;
+            }
+
+            batch.addTuple(tuple);
+            if (tuple.isPinned())
+                tuple.unpin();
+        }
+
+        return batch.isEmpty() ? null : batch;
+    }
+
+
+    /**
+     * Returns an empty batch with this node's schema, for subclasses to
+     * produce their results into.  The same batch object is returned each
+     * time this method is called.
+     *
+     * @return an empty batch with this node's schema
+     */
+    protected TupleBatch getOutputBatch() {
+        if (outputBatch == null || outputBatch.getSchema() != schema)
+            outputBatch = new TupleBatch(schema);
+        else
+            outputBatch.clear();
+
+        return outputBatch;
+    }
+
+
     /**
      * Marks the current tuple in the tuple-stream produced by this node.  The
      * {@link #resetToLastMark} method can be used to return to this tuple.
@@ -482,6 +594,28 @@ public abstract class PlanNode implements Cloneable {
     }
 
 
+    /**
+     * This helper method can be used by the {@link #prepare} method in
+     * subclasses, to compile an expression that the node evaluates for every
+     * tuple.  The expression's column references should be bound first.  If
+     * expression compilation is turned off with the
+     * {@link ExecutionProperties#PROP_COMPILE_EXPRESSIONS} property, or the
+     * expression is {@code null}, this method returns {@code null} and the
+     * node should evaluate the expression with the interpreter.
+     *
+     * @param expr the expression to compile, or {@code null}
+     *
+     * @return the compiled expression, or {@code null} if the expression
+     *         should be interpreted
+     */
+    protected static CompiledExpression compileExpression(Expression expr) {
+        if (expr == null || !ExecutionProperties.isExpressionCompilationEnabled())
+            return null;
+
+        return ExpressionCompiler.compile(expr);
+    }
+
+
     /**
      * Checks if the argument is a plan node tree with the same structure,
      * but not necesarily the same references.
@@ -521,6 +655,7 @@ public abstract class PlanNode implements Cloneable {
 
         // Environment is used for execution.
         node.environment = new Environment();
+        node.outputBatch = null;
 
         // Copy the children if applicable.
         if (this.leftChild != null)
@@ -1,8 +1,14 @@
 package edu.caltech.nanodb.plannodes;
 
 
+import java.util.List;
+
 import edu.caltech.nanodb.expressions.BooleanOperator;
+import edu.caltech.nanodb.expressions.ColumnValue;
 import edu.caltech.nanodb.expressions.Expression;
+import edu.caltech.nanodb.expressions.OrderByExpression;
+import edu.caltech.nanodb.relations.Schema;
+import edu.caltech.nanodb.relations.SchemaNameException;
 
 
 /**
@@ -90,4 +96,53 @@ public class PlanUtils {
 
         return plan;
     }
+
+
+    /**
+     * This helper function reports whether a plan's results are sorted in
+     * ascending order on the specified columns.  This is true if the first
+     * expressions of the plan's {@link PlanNode#resultsOrderedBy} ordering
+     * are ascending references to the same columns, in the same order.  Any
+     * further ordering expressions the plan reports are ignored.
+     *
+     * @param plan the plan to examine, which must already be prepared
+     *
+     * @param columns the columns the results must be ordered by; these must
+     *        all be {@link ColumnValue} expressions
+     *
+     * @return true if the plan's results are ordered by the specified
+     *         columns, false otherwise
+     */
+    public static boolean isOrderedBy(PlanNode plan,
+                                      List<Expression> columns) {
+        List<OrderByExpression> order = plan.resultsOrderedBy();
+        if (order == null || order.size() < columns.size())
+            return false;
+
+        Schema schema = plan.getSchema();
+        for (int i = 0; i < columns.size(); i++) {
+            OrderByExpression orderExpr = order.get(i);
+            if (!orderExpr.isAscending() ||
+                !(orderExpr.getExpression() instanceof ColumnValue)) {
+                return false;
+            }
+
+            // Compare the columns by their positions in the plan's schema,
+            // since one may be qualified by a table name and the other not.
+            try {
+                ColumnValue orderCol = (ColumnValue) orderExpr.getExpression();
+                ColumnValue col = (ColumnValue) columns.get(i);
+                int index = schema.getColumnIndex(col.getColumnName());
+                if (index == -1 ||
+                    index != schema.getColumnIndex(orderCol.getColumnName())) {
+                    return false;
+                }
+            }
+            catch (SchemaNameException e) {
+                return false;
+            }
+        }
+
+        return true;
+    }
 }
@@ -9,6 +9,7 @@ import edu.caltech.nanodb.queryeval.ColumnStats;
 import edu.caltech.nanodb.queryeval.PlanCost;
 import edu.caltech.nanodb.relations.Schema;
 import edu.caltech.nanodb.relations.Tuple;
+import edu.caltech.nanodb.relations.TupleBatch;
 import edu.caltech.nanodb.relations.ColumnInfo;
 
 import edu.caltech.nanodb.queryast.SelectValue;
@@ -59,6 +60,39 @@ public class ProjectNode extends PlanNode {
     private List<ColumnInfo> nonWildcardColumnInfos;
 
 
+    /**
+     * This collection holds the compiled form of each non-wildcard
+     * expression, in the same order as {@link #nonWildcardColumnInfos}.  An
+     * element is {@code null} if that expression is evaluated with the
+     * interpreter.
+     */
+    private List<CompiledExpression> compiledExpressions;
+
+
+    /**
+     * For each column of this node's schema, the index of the input column
+     * that it is copied from, or -1 if the column is computed from an
+     * expression.  This is used by {@link #getNextBatch} to copy whole
+     * columns at a time.
+     */
+    private int[] batchSourceColumns;
+
+
+    /**
+     * For each column of this node's schema that is computed from an
+     * expression, the expression; the other elements are {@code null}.
+     */
+    private Expression[] batchExpressions;
+
+
+    /**
+     * For each column of this node's schema that is computed from an
+     * expression, the compiled form of the expression, or {@code null} if it
+     * is evaluated with the interpreter.
+     */
+    private CompiledExpression[] batchCompiledExpressions;
+
+
     /** Current tuple the node is projecting (in NON-projected form). */
     private Tuple currentTuple;
 
@@ -99,6 +133,12 @@ public class ProjectNode extends PlanNode {
     }
 
 
+    /** Returns the select values that this node computes. */
+    public List<SelectValue> getProjectionSpec() {
+        return projectionSpec;
+    }
+
+
     /**
      * This helper method sets the {@link #projectIsTrivial} flag based on
      * whether the passed-in projection specification is a single wildcard
@@ -187,9 +227,15 @@ public class ProjectNode extends PlanNode {
 
         schema = new Schema();
         nonWildcardColumnInfos = new ArrayList<ColumnInfo>();
+        compiledExpressions = new ArrayList<CompiledExpression>();
 
         stats = new ArrayList<ColumnStats>();
 
+        ArrayList<Integer> sourceColumns = new ArrayList<Integer>();
+        ArrayList<Expression> exprs = new ArrayList<Expression>();
+        ArrayList<CompiledExpression> compiledExprs =
+            new ArrayList<CompiledExpression>();
+
         for (SelectValue selVal : projectionSpec) {
             if (selVal.isWildcard()) {
                 ColumnName wildcard = selVal.getWildcard();
@@ -201,14 +247,23 @@ public class ProjectNode extends PlanNode {
 
                     // Add each column that was found, as well as its stats.
                     schema.append(found.values());
-                    for (Integer idx : found.keySet())
+                    for (Integer idx : found.keySet()) {
                         stats.add(inputStats.get(idx));
+                        sourceColumns.add(idx);
+                        exprs.add(null);
+                        compiledExprs.add(null);
+                    }
                 }
                 else {
                     // No table is specified, so this is all columns in the
                     // child schema.
                     schema.append(inputSchema);
                     stats.addAll(inputStats);
+                    for (int i = 0; i < inputSchema.numColumns(); i++) {
+                        sourceColumns.add(i);
+                        exprs.add(null);
+                        compiledExprs.add(null);
+                    }
                 }
             }
             else if (selVal.isExpression()) {
@@ -258,12 +313,38 @@ public class ProjectNode extends PlanNode {
 
                 schema.addColumnInfo(colInfo);
                 nonWildcardColumnInfos.add(colInfo);
+
+                // Resolve the expression's column references once, rather
+                // than for every tuple, and compile it.
+                ColumnBinder.bindColumns(expr, inputSchema);
+                CompiledExpression compiled = compileExpression(expr);
+                compiledExpressions.add(compiled);
+
+                if (expr instanceof ColumnValue) {
+                    sourceColumns.add(inputSchema.getColumnIndex(
+                        ((ColumnValue) expr).getColumnName()));
+                    exprs.add(null);
+                    compiledExprs.add(null);
+                }
+                else {
+                    sourceColumns.add(-1);
+                    exprs.add(expr);
+                    compiledExprs.add(compiled);
+                }
             }
             else if (selVal.isScalarSubquery()) {
                 throw new UnsupportedOperationException(
                     "Scalar subquery support is currently incomplete.");
             }
         }
+
+        batchSourceColumns = new int[sourceColumns.size()];
+        for (int i = 0; i < batchSourceColumns.length; i++)
+            batchSourceColumns[i] = sourceColumns.get(i);
+
+        batchExpressions = exprs.toArray(new Expression[exprs.size()]);
+        batchCompiledExpressions =
+            compiledExprs.toArray(new CompiledExpression[compiledExprs.size()]);
     }
 
 
@@ -329,6 +410,59 @@ public class ProjectNode extends PlanNode {
     }
 
 
+    /**
+     * Projects a whole batch of tuples from the subplan at a time.  Columns
+     * that are simply copied from the input are copied as whole column
+     * vectors; computed columns are evaluated one row at a time.
+     */
+    @Override
+    public TupleBatch getNextBatch() throws IOException {
+        // A leaf project node only generates a single tuple.
+        if (leftChild == null)
+            return super.getNextBatch();
+
+        if (done)
+            return null;
+
+        TupleBatch input = leftChild.getNextBatch();
+        if (input == null) {
+            done = true;
+            return null;
+        }
+
+        if (isTrivial())
+            return input;
+
+        TupleBatch batch = getOutputBatch();
+        int size = input.size();
+        batch.setSize(size);
+
+        for (int iCol = 0; iCol < batchSourceColumns.length; iCol++) {
+            if (batchSourceColumns[iCol] != -1) {
+                batch.copyColumn(input, batchSourceColumns[iCol], iCol);
+                continue;
+            }
+
+            Expression expr = batchExpressions[iCol];
+            CompiledExpression compiled = batchCompiledExpressions[iCol];
+            for (int row = 0; row < size; row++) {
+                environment.clear();
+                environment.addTuple(inputSchema, input.getTuple(row));
+
+                Object result;
+                if (compiled != null)
+                    result = compiled.evaluate(environment);
+                else
+                    result = expr.evaluate(environment);
+
+                batch.setValue(row, iCol, result);
+            }
+        }
+
+        return batch;
+    }
+
+
     /** Helper function that advances the current tuple reference in the node.
      *
      * @throws java.lang.IllegalStateException if this is a node no child.
@@ -367,6 +501,10 @@ public class ProjectNode extends PlanNode {
         Iterator<ColumnInfo> iterNonWildcardCols =
             nonWildcardColumnInfos.iterator();
 
+        Iterator<CompiledExpression> iterCompiledExprs = null;
+        if (compiledExpressions != null)
+            iterCompiledExprs = compiledExpressions.iterator();
+
         for (SelectValue selVal : projectionSpec) {
             if (selVal.isWildcard()) {
                 // This value is a wildcard.  Find the columns that match the
@@ -398,7 +536,15 @@ public class ProjectNode extends PlanNode {
 
                 // Get the result of the projection for this value.
 
-                Object result = expr.evaluate(environment);
+                CompiledExpression compiled = null;
+                if (iterCompiledExprs != null)
+                    compiled = iterCompiledExprs.next();
+
+                Object result;
+                if (compiled != null)
+                    result = compiled.evaluate(environment);
+                else
+                    result = expr.evaluate(environment);
                 ColumnInfo colInfo = iterNonWildcardCols.next();
 
                 logger.debug(String.format(
@@ -522,6 +668,13 @@ public class ProjectNode extends PlanNode {
         }
         node.projectionSpec = newList;
 
+        // The compiled expressions refer to the original select values, so
+        // the copy must be prepared again to compile its own expressions.
+        node.compiledExpressions = null;
+        node.batchSourceColumns = null;
+        node.batchExpressions = null;
+        node.batchCompiledExpressions = null;
+
         return node;
     }
 }
@@ -39,20 +39,39 @@ public class RenameNode extends PlanNode {
         this.resultTableName = resultTableName;
     }
 
+    /**
+     * Returns the table name that this node gives to its results.
+     *
+     * @return the result table-name
+     */
+    public String getResultTableName() {
+        return resultTableName;
+    }
+
     @Override
     public List<OrderByExpression> resultsOrderedBy() {
+        List<OrderByExpression> childOrder = leftChild.resultsOrderedBy();
+        if (childOrder == null)
+            return null;
+
         List<OrderByExpression> resultsOrderedBy = new ArrayList<OrderByExpression>();
 
         logger.debug("Renaming table name in ORDER BY expression");
 
-        for (OrderByExpression orderByExpr : leftChild.resultsOrderedBy()) {
+        for (OrderByExpression orderByExpr : childOrder) {
+            // Only simple column references can be renamed; the results are
+            // still ordered by the columns before the first other expression.
+            if (!(orderByExpr.getExpression() instanceof ColumnValue))
+                break;
+
             Expression expr = orderByExpr.getExpression().duplicate();
 
             ((ColumnValue) expr).setColumnName(new ColumnName(
                     resultTableName,
                     expr.getColumnInfo(leftChild.getSchema()).getName()));
 
-            resultsOrderedBy.add(new OrderByExpression(expr));
+            resultsOrderedBy.add(
+                new OrderByExpression(expr, orderByExpr.isAscending()));
         }
 
         return resultsOrderedBy;
@@ -5,6 +5,8 @@ import java.io.IOException;
 
 import edu.caltech.nanodb.relations.Tuple;
 
+import edu.caltech.nanodb.expressions.ColumnBinder;
+import edu.caltech.nanodb.expressions.CompiledExpression;
 import edu.caltech.nanodb.expressions.Expression;
 
 
@@ -18,12 +20,19 @@ public abstract class SelectNode extends PlanNode {
     public Expression predicate;
 
 
+    /**
+     * The compiled form of the predicate, or {@code null} if the predicate
+     * is evaluated with the interpreter.
+     */
+    protected CompiledExpression compiledPredicate;
+
+
     /** The current tuple that the node is selecting. */
     protected Tuple currentTuple;
 
 
     /** True if we have finished scanning or pulling tuples from children. */
-    private boolean done;
+    protected boolean done;
 
 
     /**
@@ -57,6 +66,10 @@ public abstract class SelectNode extends PlanNode {
         else
             node.predicate = null;
 
+        // The compiled predicate refers to the original predicate, so the
+        // copy must be prepared again to compile its own predicate.
+        node.compiledPredicate = null;
+
         return node;
     }
 
@@ -122,6 +135,18 @@ public abstract class SelectNode extends PlanNode {
         throws IllegalStateException, IOException;
 
 
+    /**
+     * This helper method can be used by the {@link #prepare} method in
+     * subclasses, once the node's schema has been computed.  It resolves the
+     * predicate's column references once, rather than for every tuple, and
+     * then compiles the predicate if expression compilation is enabled.
+     */
+    protected void preparePredicate() {
+        ColumnBinder.bindColumns(predicate, schema);
+        compiledPredicate = compileExpression(predicate);
+    }
+
+
     protected boolean isTupleSelected(Tuple tuple) {
         // If the predicate was not set, return true.
         if (predicate == null)
@@ -131,6 +156,10 @@ public abstract class SelectNode extends PlanNode {
 
         environment.clear();
         environment.addTuple(schema, tuple);
+
+        if (compiledPredicate != null)
+            return compiledPredicate.evaluatePredicate(environment);
+
         return predicate.evaluatePredicate(environment);
     }
 }
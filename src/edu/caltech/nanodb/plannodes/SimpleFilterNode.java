@@ -11,6 +11,7 @@ import edu.caltech.nanodb.expressions.OrderByExpression;
 import edu.caltech.nanodb.queryeval.ColumnStats;
 import edu.caltech.nanodb.queryeval.PlanCost;
 import edu.caltech.nanodb.queryeval.SelectivityEstimator;
+import edu.caltech.nanodb.relations.TupleBatch;
 
 
 /**
@@ -19,6 +20,13 @@ import edu.caltech.nanodb.queryeval.SelectivityEstimator;
  */
 public class SimpleFilterNode extends SelectNode {
 
+    /**
+     * Applies the predicate to the batches produced by {@link #getNextBatch},
+     * or {@code null} if it hasn't been created yet.
+     */
+    private BatchFilter batchFilter;
+
+
     public SimpleFilterNode(PlanNode child, Expression predicate) {
         super(child, predicate);
     }
@@ -68,6 +76,9 @@ public class SimpleFilterNode extends SelectNode {
         // Copy the subtree.
         node.leftChild = leftChild.duplicate();
 
+        // The batch filter refers to the original predicate.
+        node.batchFilter = null;
+
         return node;
     }
 
@@ -124,6 +135,11 @@ public class SimpleFilterNode extends SelectNode {
         //        the predicate, but that's too complicated, so we'll leave
         //        them unchanged for now.
         stats = childStats;
+
+        // Resolve the predicate's column references once, rather than for
+        // every tuple, and compile it.
+        preparePredicate();
+        batchFilter = null;
     }
 
 
@@ -139,6 +155,34 @@ public class SimpleFilterNode extends SelectNode {
     }
 
 
+    /**
+     * Applies the predicate to each batch produced by the subplan, removing
+     * the rows that don't satisfy it.  Batches with no remaining rows are
+     * skipped.
+     */
+    @Override
+    public TupleBatch getNextBatch() throws IOException {
+        if (done)
+            return null;
+
+        if (batchFilter == null)
+            batchFilter = new BatchFilter(predicate, compiledPredicate, schema,
+                environment);
+
+        while (true) {
+            TupleBatch batch = leftChild.getNextBatch();
+            if (batch == null) {
+                done = true;
+                return null;
+            }
+
+            batchFilter.filter(batch, 0);
+            if (!batch.isEmpty())
+                return batch;
+        }
+    }
+
+
     protected void advanceCurrentTuple() throws IOException {
         currentTuple = leftChild.getNextTuple();
     }
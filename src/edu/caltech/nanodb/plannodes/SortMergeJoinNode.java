@@ -0,0 +1,533 @@
+package edu.caltech.nanodb.plannodes;
+
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+import edu.caltech.nanodb.expressions.ColumnBinder;
+import edu.caltech.nanodb.expressions.CompiledExpression;
+import edu.caltech.nanodb.expressions.Expression;
+import edu.caltech.nanodb.expressions.OrderByExpression;
+import edu.caltech.nanodb.expressions.TupleComparator;
+import edu.caltech.nanodb.expressions.TupleLiteral;
+import edu.caltech.nanodb.queryeval.PlanCost;
+import edu.caltech.nanodb.relations.JoinType;
+import edu.caltech.nanodb.relations.Tuple;
+
+
+/**
+ * This plan node implements a sort-merge join, which can only be used when
+ * the join predicate includes at least one equality condition between a
+ * column of the left input and a column of the right input (see
+ * {@link JoinKeys}).  Both inputs must produce their tuples in ascending
+ * order on the join columns, in key order; the
+ * {@link PlanUtils#isOrderedBy} method can be used to tell whether a plan
+ * already produces its results in this order, and if not, a
+ * {@link SortNode} can be placed above it.  The two sorted inputs are then
+ * merged in a single pass over each input.
+ * <p>
+ * When several tuples of the left input have the same join key, each of them
+ * must be joined with the same run of right tuples.  The join marks the
+ * start of each run of matching right tuples, and rewinds the right input to
+ * the mark for each left tuple with the same key.  Therefore the right input
+ * must support marking.
+ * <p>
+ * Inner, left/right outer, semi- and anti-joins are supported.  As with the
+ * {@link NestedLoopJoinNode}, right outer joins are implemented by swapping
+ * the inputs and performing a left outer join.  Full outer joins are not
+ * supported, since right tuples that are rewound and read again can't be
+ * tracked individually.
+ */
+public class SortMergeJoinNode extends ThetaJoinNode {
+
+    /** A logging object for reporting anything interesting that happens. */
+    private static Logger logger = Logger.getLogger(SortMergeJoinNode.class);
+
+
+    /** The equijoin keys of the predicate, computed in {@link #prepare}. */
+    private JoinKeys joinKeys;
+
+
+    /**
+     * The compiled form of the residual predicate, or {@code null} if it is
+     * evaluated with the interpreter.
+     */
+    private CompiledExpression compiledResidual;
+
+
+    /** The current tuple from the left input. */
+    private Tuple leftTuple;
+
+
+    /** The join key of {@link #leftTuple}. */
+    private Object leftKey;
+
+
+    /** The current tuple from the right input. */
+    private Tuple rightTuple;
+
+
+    /** The join key of {@link #rightTuple}. */
+    private Object rightKey;
+
+
+    /**
+     * True if the right input is positioned within the run of tuples whose
+     * join key matches {@link #leftKey}.  The start of the run is marked on
+     * the right input.
+     */
+    private boolean inRun;
+
+
+    /**
+     * True if {@link #leftTuple} is finished with the current run, even
+     * though there may be more tuples in the run.  This is used for semi-
+     * and anti-joins, where only the first match matters.
+     */
+    private boolean leftFinished;
+
+
+    /** True if {@link #leftTuple} has matched at least one right tuple. */
+    private boolean leftMatched;
+
+
+    /** Set to true when the join has been started. */
+    private boolean started;
+
+
+    /** Set to true when we have produced all results. */
+    private boolean done;
+
+
+    /**
+     * Constructs a sort-merge join node.
+     *
+     * @param leftChild the left input of the join, which must be sorted on
+     *        the join columns
+     *
+     * @param rightChild the right input of the join, which must be sorted on
+     *        the join columns and support marking
+     *
+     * @param joinType the type of join to perform
+     *
+     * @param predicate the join predicate, which must include at least one
+     *        equality condition between the left and right inputs
+     */
+    public SortMergeJoinNode(PlanNode leftChild, PlanNode rightChild,
+                             JoinType joinType, Expression predicate) {
+
+        super(leftChild, rightChild, joinType, predicate);
+
+        if (predicate == null)
+            throw new IllegalArgumentException("predicate cannot be null");
+
+        if (joinType == JoinType.CROSS || joinType == JoinType.FULL_OUTER) {
+            throw new IllegalArgumentException(
+                "Sort-merge join cannot perform a " + joinType + " join");
+        }
+
+        if (joinType == JoinType.RIGHT_OUTER)
+            swap();
+    }
+
+
+    /**
+     * Checks if the argument is a plan node tree with the same structure, but not
+     * necessarily the same references.
+     *
+     * @param obj the object to which we are comparing
+     */
+    @Override
+    public boolean equals(Object obj) {
+        if (obj instanceof SortMergeJoinNode) {
+            SortMergeJoinNode other = (SortMergeJoinNode) obj;
+
+            return joinType == other.joinType &&
+                predicate.equals(other.predicate) &&
+                leftChild.equals(other.leftChild) &&
+                rightChild.equals(other.rightChild);
+        }
+
+        return false;
+    }
+
+
+    /** Computes the hash-code of the sort-merge join plan node. */
+    @Override
+    public int hashCode() {
+        int hash = 11;
+        hash = 31 * hash + joinType.hashCode();
+        hash = 31 * hash + predicate.hashCode();
+        hash = 31 * hash + leftChild.hashCode();
+        hash = 31 * hash + rightChild.hashCode();
+        return hash;
+    }
+
+
+    /**
+     * Returns a string representing this sort-merge join's vital information.
+     *
+     * @return a string representing this plan-node.
+     */
+    @Override
+    public String toString() {
+        StringBuilder buf = new StringBuilder();
+
+        buf.append("SortMergeJoin[");
+        if (joinType != JoinType.INNER)
+            buf.append(joinType).append(", ");
+
+        buf.append("pred:  ").append(predicate);
+
+        if (schemaSwapped)
+            buf.append(" (schema swapped)");
+
+        buf.append(']');
+
+        return buf.toString();
+    }
+
+
+    /**
+     * Creates a copy of this plan node and its subtrees.
+     */
+    @Override
+    protected PlanNode clone() throws CloneNotSupportedException {
+        SortMergeJoinNode node = (SortMergeJoinNode) super.clone();
+
+        node.predicate = predicate.duplicate();
+
+        // Don't share any evaluation state with the original node.
+        node.compiledPredicate = null;
+        node.compiledResidual = null;
+        node.leftTuple = null;
+        node.rightTuple = null;
+        node.leftKey = null;
+        node.rightKey = null;
+
+        return node;
+    }
+
+
+    /**
+     * The results of the sort-merge join are ordered by the left input's
+     * join columns, since the left input is only read once, in order.  If
+     * the schema is swapped, the output's column order doesn't match the
+     * inputs' order, so no ordering is reported.
+     */
+    @Override
+    public List<OrderByExpression> resultsOrderedBy() {
+        if (joinKeys == null || schemaSwapped)
+            return null;
+
+        ArrayList<OrderByExpression> order = new ArrayList<>();
+        for (Expression expr : joinKeys.getLeftKeyExpressions())
+            order.add(new OrderByExpression(expr));
+
+        return order;
+    }
+
+
+    /** The sort-merge join doesn't support marking. */
+    public boolean supportsMarking() {
+        return false;
+    }
+
+
+    /** The sort-merge join doesn't require marking from its left child. */
+    public boolean requiresLeftMarking() {
+        return false;
+    }
+
+
+    /**
+     * The sort-merge join requires marking from its right child, so that it
+     * can rewind to the start of a run of tuples with the same join key.
+     */
+    public boolean requiresRightMarking() {
+        return true;
+    }
+
+
+    @Override
+    public void prepare() {
+        leftChild.prepare();
+        rightChild.prepare();
+
+        // Use the parent class' helper-function to prepare the schema.
+        prepareSchemaStats();
+
+        joinKeys = JoinKeys.extract(predicate, leftSchema, rightSchema);
+        if (joinKeys == null) {
+            throw new IllegalStateException("Sort-merge join predicate " +
+                predicate + " doesn't have any equijoin conditions");
+        }
+        ColumnBinder.bindColumns(joinKeys.getResidualPredicate(),
+            leftSchema, rightSchema);
+        compiledResidual = compileExpression(joinKeys.getResidualPredicate());
+
+        if (!PlanUtils.isOrderedBy(leftChild, joinKeys.getLeftKeyExpressions()) ||
+            !PlanUtils.isOrderedBy(rightChild, joinKeys.getRightKeyExpressions())) {
+            throw new IllegalStateException("Sort-merge join inputs must be " +
+                "sorted on the join columns " + joinKeys.getLeftKeyExpressions() +
+                " and " + joinKeys.getRightKeyExpressions());
+        }
+
+        if (!rightChild.supportsMarking()) {
+            throw new IllegalStateException(
+                "Sort-merge join requires a right input that supports marking");
+        }
+
+        PlanCost leftCost = leftChild.getCost();
+        PlanCost rightCost = rightChild.getCost();
+
+        float numTuples = estimateNumTuples(leftCost, rightCost);
+        float tupleSize = leftCost.tupleSize + rightCost.tupleSize;
+        if (joinType == JoinType.SEMIJOIN || joinType == JoinType.ANTIJOIN)
+            tupleSize = leftCost.tupleSize;
+
+        // Each input tuple is compared once during the merge, and each result
+        // is produced once.  (Rewinding over runs of duplicate keys is
+        // already counted in the number of results.)
+        float cpuCost = leftCost.cpuCost + rightCost.cpuCost +
+            leftCost.numTuples + rightCost.numTuples + numTuples;
+        long numBlockIOs = leftCost.numBlockIOs + rightCost.numBlockIOs;
+
+        cost = new PlanCost(numTuples, tupleSize, cpuCost, numBlockIOs);
+    }
+
+
+    @Override
+    public void initialize() {
+        super.initialize();
+
+        leftTuple = null;
+        leftKey = null;
+        rightTuple = null;
+        rightKey = null;
+
+        inRun = false;
+        leftFinished = false;
+        leftMatched = false;
+
+        started = false;
+        done = false;
+    }
+
+
+    /**
+     * Returns the next joined tuple that satisfies the join condition.
+     *
+     * @return the next joined tuple that satisfies the join condition.
+     *
+     * @throws IOException if a db file failed to open at some point
+     */
+    public Tuple getNextTuple() throws IOException {
+        if (done)
+            return null;
+
+        if (!started) {
+            started = true;
+            advanceLeft();
+            advanceRight();
+        }
+
+        while (leftTuple != null) {
+            Tuple result = null;
+
+            if (inRun) {
+                // A right key with a NULL column can sort between runs of
+                // non-NULL keys; it never matches, so it ends the run.
+                if (!leftFinished && rightTuple != null && rightKey != null &&
+                    compareKeys(leftKey, rightKey) == 0) {
+                    // The right tuple is in the run that matches the left
+                    // tuple's key.
+                    if (residualMatches(leftTuple, rightTuple)) {
+                        leftMatched = true;
+
+                        if (joinType == JoinType.SEMIJOIN) {
+                            result = joinTuples(leftTuple, rightTuple);
+                            leftFinished = true;
+                        }
+                        else if (joinType == JoinType.ANTIJOIN) {
+                            leftFinished = true;
+                        }
+                        else {
+                            result = joinTuples(leftTuple, rightTuple);
+                        }
+                    }
+
+                    if (!leftFinished)
+                        advanceRight();
+                }
+                else {
+                    // The left tuple is finished with the run.  If the next
+                    // left tuple has the same key, rewind to the start of
+                    // the run; otherwise, continue merging from here.
+                    if (!leftMatched)
+                        result = joinUnmatchedLeftTuple();
+
+                    Object runKey = leftKey;
+                    advanceLeft();
+
+                    if (leftTuple != null && leftKey != null &&
+                        compareKeys(leftKey, runKey) == 0) {
+                        logger.debug("Rewinding to start of run for key " +
+                            runKey);
+                        rewindRight();
+                    }
+                    else {
+                        inRun = false;
+                    }
+
+                    leftFinished = false;
+                    leftMatched = false;
+                }
+            }
+            else if (leftKey == null) {
+                // A left tuple with a NULL join column can't match anything.
+                result = joinUnmatchedLeftTuple();
+                advanceLeft();
+            }
+            else {
+                // Skip right tuples that are before the left tuple.  Right
+                // tuples with a NULL join column can't match anything.
+                while (rightTuple != null &&
+                       (rightKey == null || compareKeys(rightKey, leftKey) < 0)) {
+                    advanceRight();
+                }
+
+                if (rightTuple != null && compareKeys(leftKey, rightKey) == 0) {
+                    // Found the start of a run of matching right tuples.
+                    rightChild.markCurrentPosition();
+                    inRun = true;
+                }
+                else {
+                    // The left tuple doesn't match any right tuple.
+                    result = joinUnmatchedLeftTuple();
+                    advanceLeft();
+                }
+            }
+
+            if (result != null)
+                return result;
+        }
+
+        done = true;
+        return null;
+    }
+
+
+    /**
+     * Returns the result to produce for the current left tuple if it didn't
+     * match any right tuple, or {@code null} if no result should be produced.
+     */
+    private Tuple joinUnmatchedLeftTuple() {
+        switch (joinType) {
+            case LEFT_OUTER:
+            case RIGHT_OUTER:
+            case ANTIJOIN:
+                // For anti-joins, joinTuples() only includes the left tuple.
+                TupleLiteral nulls = new TupleLiteral(rightSchema.numColumns());
+                return joinTuples(leftTuple, nulls);
+
+            default:
+                return null;
+        }
+    }
+
+
+    /**
+     * Evaluates the conjuncts of the predicate that aren't equijoin keys
+     * against a pair of tuples with matching keys.
+     */
+    private boolean residualMatches(Tuple left, Tuple right) {
+        Expression residual = joinKeys.getResidualPredicate();
+        if (residual == null)
+            return true;
+
+        environment.clear();
+        environment.addTuple(leftSchema, left);
+        environment.addTuple(rightSchema, right);
+
+        if (compiledResidual != null)
+            return compiledResidual.evaluatePredicate(environment);
+
+        return residual.evaluatePredicate(environment);
+    }
+
+
+    /**
+     * Compares two non-<tt>NULL</tt> join keys.  Keys with several columns
+     * are compared column by column, as in a {@link SortNode}.
+     */
+    @SuppressWarnings("unchecked")
+    private static int compareKeys(Object key1, Object key2) {
+        if (key1 instanceof TupleLiteral) {
+            return TupleComparator.compareTuples((TupleLiteral) key1,
+                (TupleLiteral) key2);
+        }
+
+        return ((Comparable) key1).compareTo(key2);
+    }
+
+
+    /** Advances to the next tuple of the left input. */
+    private void advanceLeft() throws IOException {
+        if (leftTuple != null && leftTuple.isPinned())
+            leftTuple.unpin();
+
+        leftTuple = leftChild.getNextTuple();
+        leftKey = (leftTuple != null) ? joinKeys.getLeftKey(leftTuple) : null;
+    }
+
+
+    /** Advances to the next tuple of the right input. */
+    private void advanceRight() throws IOException {
+        if (rightTuple != null && rightTuple.isPinned())
+            rightTuple.unpin();
+
+        rightTuple = rightChild.getNextTuple();
+        rightKey = (rightTuple != null) ? joinKeys.getRightKey(rightTuple) : null;
+    }
+
+
+    /** Rewinds the right input to the start of the current run. */
+    private void rewindRight() throws IOException {
+        rightChild.resetToLastMark();
+        advanceRight();
+    }
+
+
+    /** The sort-merge join doesn't support marking. */
+    public void markCurrentPosition() {
+        throw new UnsupportedOperationException(
+            "Sort-merge join plan-node doesn't support marking.");
+    }
+
+
+    /** The sort-merge join doesn't support marking. */
+    public void resetToLastMark() {
+        throw new UnsupportedOperationException(
+            "Sort-merge join plan-node doesn't support marking.");
+    }
+
+
+    @Override
+    public void cleanUp() {
+        if (leftTuple != null && leftTuple.isPinned())
+            leftTuple.unpin();
+
+        if (rightTuple != null && rightTuple.isPinned())
+            rightTuple.unpin();
+
+        leftTuple = null;
+        rightTuple = null;
+
+        leftChild.cleanUp();
+        rightChild.cleanUp();
+    }
+}
@@ -5,7 +5,9 @@ import java.io.IOException;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
+import java.util.PriorityQueue;
 
 import org.apache.log4j.Logger;
 
@@ -13,36 +15,141 @@ import edu.caltech.nanodb.expressions.OrderByExpression;
 import edu.caltech.nanodb.expressions.TupleComparator;
 import edu.caltech.nanodb.expressions.TupleLiteral;
 
+import edu.caltech.nanodb.queryeval.ExecutionProperties;
 import edu.caltech.nanodb.queryeval.PlanCost;
 
 import edu.caltech.nanodb.relations.Tuple;
 
+import edu.caltech.nanodb.storage.SpillFile;
+import edu.caltech.nanodb.storage.StorageManager;
+import edu.caltech.nanodb.storage.TupleSorter;
+
 
 /**
- * This plan node provides a simple in-memory sort operation for use in
- * ORDER BY clauses.
+ * <p>
+ * This plan node provides a sort operation for use in ORDER BY clauses, and
+ * for producing sorted inputs for the {@link SortMergeJoinNode}.  If the
+ * child's results fit in the working memory specified by
+ * {@link ExecutionProperties#PROP_WORK_MEM}, they are simply sorted in
+ * memory.
+ * </p>
+ * <p>
+ * Otherwise the node performs an external merge sort with a
+ * {@link TupleSorter}.  Each time the buffered tuples fill the working
+ * memory, they are sorted and written out to a {@link SpillFile} as a sorted
+ * "run", and the runs are then merged together.  The final merge produces the
+ * node's results directly, without writing them out again.
+ * </p>
+ * <p>
+ * The node supports marking.  For an in-memory sort this is trivial.  For an
+ * external sort, the tuples produced since the last mark are kept in memory
+ * so that they can be produced again, so marking is only efficient if the
+ * mark is moved forward regularly, as the sort-merge join does.
+ * </p>
+ * <p>
+ * If only the first <em>k</em> tuples of the sorted results are needed, as
+ * for <tt>ORDER BY ... LIMIT k</tt>, the node can be constructed to produce
+ * at most <em>k</em> tuples.  It then keeps the <em>k</em> smallest tuples
+ * seen so far in a bounded heap, which takes O(<em>N</em> log <em>k</em>)
+ * time and O(<em>k</em>) memory, and never spills to disk.  Tuples that
+ * compare as equal keep the order they were received in.
+ * </p>
  */
 public class SortNode extends PlanNode {
     /** A logging object for reporting anything interesting that happens. */
     private static Logger logger = Logger.getLogger(SortNode.class);
 
+
+    /**
+     * In a top-N sort, this class records the order in which a tuple was
+     * received from the child, so that equal tuples keep their input order.
+     */
+    private static class RankedTuple {
+        Tuple tuple;
+
+        long seqNo;
+
+        RankedTuple(Tuple tuple, long seqNo) {
+            this.tuple = tuple;
+            this.seqNo = seqNo;
+        }
+    }
+
+
     /** A specification of the ordering of the results of this plan node. */
     private List<OrderByExpression> orderByExprs;
 
+
     /**
-     * This array receives all tuples from the child plan node, and then they
-     * are sorted and passed along to the parent from this array.
+     * The maximum number of tuples this node produces, or 0 if it produces
+     * all of its child's tuples.
      */
-    private ArrayList<Tuple> sortedResults;
+    private int maxTuples;
+
+
+    /**
+     * The storage manager, used to create temporary files for an external
+     * sort.  If this is {@code null}, the sort is always done in memory.
+     */
+    private StorageManager storageManager;
+
+
+    /**
+     * For an in-memory sort, this array receives all tuples from the child
+     * plan node, and then they are sorted and passed along to the parent
+     * from this array.
+     */
+    private List<Tuple> sortedResults;
+
 
     /**
      * The comparator that imposes the ordering specification of the sort node.
      */
     private TupleComparator comparator;
 
+
     /** The index of the current tuple in the sorted results. */
     private int currentTupleIndex;
 
+
+    /** The index of the marked tuple in the sorted results, or -1. */
+    private int markedTupleIndex;
+
+
+    /**
+     * The sorter that sorts the child's tuples, or {@code null} if the
+     * child's tuples have not been sorted yet.
+     */
+    private TupleSorter sorter;
+
+
+    /**
+     * For an external sort, the sorter that merges the sorted runs to
+     * produce the results; {@code null} for an in-memory sort.
+     */
+    private TupleSorter merger;
+
+
+    /**
+     * For an external sort, the tuples that have been produced since the
+     * last mark, starting with the marked tuple, or {@code null} if no mark
+     * has been set.
+     */
+    private ArrayList<Tuple> markBuffer;
+
+
+    /**
+     * For an external sort, the index in {@link #markBuffer} of the next
+     * tuple to produce.  If this is the size of the buffer, the next tuple
+     * comes from the merge.
+     */
+    private int markBufferIndex;
+
+
+    /** For an external sort, the most recently produced tuple. */
+    private Tuple currentTuple;
+
+
     /**
      * A flag indicating whether the sort node has generate all of its output or not.
      */
@@ -50,13 +157,28 @@ public class SortNode extends PlanNode {
 
 
     /**
-     * Constructs a PlanNode with a given operation type.  This method will be
-     * called by subclass constructors.
+     * Constructs a sort node that always sorts its input in memory.
      *
      * @param subplan the subplan that produces the results to sort
      * @param orderByExprs a specification of how the results should be ordered
      */
     public SortNode(PlanNode subplan, List<OrderByExpression> orderByExprs) {
+        this(subplan, orderByExprs, null);
+    }
+
+
+    /**
+     * Constructs a sort node that performs an external sort if its input
+     * doesn't fit in memory.
+     *
+     * @param subplan the subplan that produces the results to sort
+     * @param orderByExprs a specification of how the results should be ordered
+     * @param storageManager the storage manager, used to create temporary
+     *        files for the sorted runs, or {@code null} if the sort must be
+     *        done in memory
+     */
+    public SortNode(PlanNode subplan, List<OrderByExpression> orderByExprs,
+                    StorageManager storageManager) {
         super(PlanNode.OperationType.SORT, subplan);
 
         if (orderByExprs == null)
@@ -68,6 +190,41 @@ public class SortNode extends PlanNode {
         }
 
         this.orderByExprs = orderByExprs;
+        this.storageManager = storageManager;
+    }
+
+
+    /**
+     * Constructs a sort node that only produces the first
+     * <tt>maxTuples</tt> tuples of the sorted results.
+     *
+     * @param subplan the subplan that produces the results to sort
+     * @param orderByExprs a specification of how the results should be ordered
+     * @param storageManager the storage manager, used to create temporary
+     *        files for the sorted runs, or {@code null} if the sort must be
+     *        done in memory
+     * @param maxTuples the maximum number of tuples to produce, or 0 if all
+     *        tuples should be produced
+     */
+    public SortNode(PlanNode subplan, List<OrderByExpression> orderByExprs,
+                    StorageManager storageManager, int maxTuples) {
+        this(subplan, orderByExprs, storageManager);
+
+        if (maxTuples < 0)
+            throw new IllegalArgumentException("maxTuples cannot be negative");
+
+        this.maxTuples = maxTuples;
+    }
+
+
+    /**
+     * Returns the maximum number of tuples this node produces.
+     *
+     * @return the maximum number of tuples, or 0 if the node produces all
+     *         of its child's tuples
+     */
+    public int getMaxTuples() {
+        return maxTuples;
     }
 
 
@@ -76,9 +233,9 @@ public class SortNode extends PlanNode {
     }
 
 
-    /** The sort plan-node doesn't support marking. */
+    /** The sort plan-node supports marking. */
     public boolean supportsMarking() {
-        return false;
+        return true;
     }
 
 
@@ -117,8 +274,38 @@ public class SortNode extends PlanNode {
         if (childCost != null) {
             cost = new PlanCost(childCost);
 
-            // Sorting in memory is an N*log(N) operation.
-            cost.cpuCost += cost.numTuples * (float) Math.log(cost.numTuples);
+            if (maxTuples > 0) {
+                // A top-N sort is an N*log(k) operation, and always fits in
+                // memory.
+                if (maxTuples > 1)
+                    cost.cpuCost += cost.numTuples * (float) Math.log(maxTuples);
+
+                cost.numTuples = Math.min(cost.numTuples, maxTuples);
+            }
+            else if (cost.numTuples > 1) {
+                // Sorting in memory is an N*log(N) operation.  (Guard against
+                // log(0), which would make the cost NaN.)
+                cost.cpuCost += cost.numTuples * (float) Math.log(cost.numTuples);
+            }
+
+            // If the input doesn't fit in memory, each merge pass writes out
+            // and reads back all of the data.
+            if (storageManager != null && maxTuples == 0) {
+                long workMem = ExecutionProperties.getWorkMemSize();
+                float bytes = cost.numTuples *
+                    (cost.tupleSize + TupleSorter.TUPLE_OVERHEAD);
+                if (bytes > workMem) {
+                    int numRuns = (int) Math.ceil(bytes / workMem);
+                    int fanIn = TupleSorter.getMergeFanIn(workMem);
+                    int passes = (int) Math.ceil(
+                        Math.log(numRuns) / Math.log(fanIn));
+
+                    float dataPages = cost.numTuples * cost.tupleSize /
+                        StorageManager.getCurrentPageSize();
+                    cost.numBlockIOs +=
+                        2 * Math.max(1, passes) * (long) Math.ceil(dataPages);
+                }
+            }
         }
         else {
             logger.info(
@@ -139,7 +326,14 @@ public class SortNode extends PlanNode {
     public void initialize() {
         super.initialize();
 
+        deleteRuns();
+
         sortedResults = null;
+        markedTupleIndex = -1;
+        markBuffer = null;
+        markBufferIndex = 0;
+        currentTuple = null;
+
         done = false;
 
         leftChild.initialize();
@@ -162,11 +356,29 @@ public class SortNode extends PlanNode {
         if (done)
             return null;
 
-        if (sortedResults == null)
+        if (sortedResults == null && merger == null)
             prepareSortedResults();
 
         Tuple tup = null;
-        if (currentTupleIndex < sortedResults.size()) {
+        if (merger != null) {
+            if (markBuffer != null && markBufferIndex < markBuffer.size()) {
+                // Produce the tuples since the mark again.
+                tup = markBuffer.get(markBufferIndex);
+                markBufferIndex++;
+            }
+            else {
+                tup = merger.getNextTuple();
+                if (tup != null && markBuffer != null) {
+                    markBuffer.add(tup);
+                    markBufferIndex = markBuffer.size();
+                }
+            }
+
+            currentTuple = tup;
+            if (tup == null)
+                done = true;
+        }
+        else if (currentTupleIndex < sortedResults.size()) {
             tup = sortedResults.get(currentTupleIndex);
             currentTupleIndex++;
         }
@@ -178,8 +390,21 @@ public class SortNode extends PlanNode {
     }
 
 
+    /**
+     * Reads all of the child's tuples and sorts them.  If the tuples fit in
+     * the working memory, they are left in {@link #sortedResults};
+     * otherwise they are written out as sorted runs, and {@link #merger} is
+     * set up to merge the runs.
+     */
     private void prepareSortedResults() throws IOException {
-        sortedResults = new ArrayList<Tuple>();
+        if (maxTuples > 0) {
+            prepareTopNResults();
+            return;
+        }
+
+        sorter = new TupleSorter(storageManager, schema, comparator,
+                                 ExecutionProperties.getWorkMemSize());
+
         while (true) {
             // Get the next tuple.  If it's not cacheable then make a copy
             // of it before storing it away.  (This is cheating; we are
@@ -196,33 +421,151 @@ public class SortNode extends PlanNode {
                 tup = copy;
             }
 
-            sortedResults.add(tup);
+            sorter.addTuple(tup);
+        }
+
+        sorter.finish();
+
+        if (sorter.isExternal()) {
+            merger = sorter;
+        }
+        else {
+            // Everything fit in memory.
+            sortedResults = sorter.getSortedTuples();
+            currentTupleIndex = 0;
+        }
+    }
+
+
+    /**
+     * Reads all of the child's tuples, keeping only the first
+     * {@link #maxTuples} tuples of the sorted results in a bounded heap.
+     * The heap's root is the largest tuple kept so far, so each new tuple
+     * only needs to be compared with the root to see if it should replace
+     * it.  The kept tuples are left in {@link #sortedResults}.
+     */
+    private void prepareTopNResults() throws IOException {
+        // Order the tuples by the sort specification, and equal tuples by
+        // the order they were received in.
+        final Comparator<RankedTuple> rankComparator =
+            new Comparator<RankedTuple>() {
+                @Override
+                public int compare(RankedTuple a, RankedTuple b) {
+                    int cmp = comparator.compare(a.tuple, b.tuple);
+                    if (cmp == 0)
+                        cmp = Long.compare(a.seqNo, b.seqNo);
+
+                    return cmp;
+                }
+            };
+
+        PriorityQueue<RankedTuple> heap = new PriorityQueue<>(maxTuples,
+            Collections.reverseOrder(rankComparator));
+
+        long seqNo = 0;
+        while (true) {
+            Tuple tup = leftChild.getNextTuple();
+            if (tup == null)
+                break;
+
+            // Since this tuple arrived after every tuple in the heap, it
+            // only replaces the largest one if it is strictly smaller.
+            if (heap.size() == maxTuples &&
+                comparator.compare(tup, heap.peek().tuple) >= 0) {
+                if (tup.isPinned())
+                    tup.unpin();
+
+                seqNo++;
+                continue;
+            }
+
+            if (tup.isDiskBacked()) {
+                Tuple copy = new TupleLiteral(tup);
+                tup.unpin();
+                tup = copy;
+            }
+
+            if (heap.size() == maxTuples)
+                heap.poll();
+
+            heap.add(new RankedTuple(tup, seqNo));
+            seqNo++;
         }
 
-        Collections.sort(sortedResults, comparator);
+        ArrayList<RankedTuple> ranked = new ArrayList<>(heap);
+        Collections.sort(ranked, rankComparator);
+
+        sortedResults = new ArrayList<>(ranked.size());
+        for (RankedTuple rt : ranked)
+            sortedResults.add(rt.tuple);
 
         currentTupleIndex = 0;
     }
 
 
-    /** The sort plan-node doesn't support marking. */
+    /** Deletes any runs of an external sort. */
+    private void deleteRuns() {
+        if (sorter == null)
+            return;
+
+        sorter.delete();
+        sorter = null;
+        merger = null;
+    }
+
+
     public void markCurrentPosition() {
-        throw new UnsupportedOperationException(
-            "Sort plan-node doesn't support marking.");
+        if (merger != null) {
+            if (currentTuple == null)
+                throw new IllegalStateException("There is no current tuple!");
+
+            if (markBuffer == null) {
+                markBuffer = new ArrayList<>();
+                markBuffer.add(currentTuple);
+            }
+            else {
+                // The current tuple is the last one produced from the
+                // buffer; discard everything before it.
+                markBuffer.subList(0, markBufferIndex - 1).clear();
+            }
+            markBufferIndex = 1;
+
+            return;
+        }
+
+        if (sortedResults == null || currentTupleIndex == 0 || done)
+            throw new IllegalStateException("There is no current tuple!");
+
+        markedTupleIndex = currentTupleIndex - 1;
     }
 
 
-    /** The sort plan-node doesn't support marking. */
     public void resetToLastMark() {
-        throw new UnsupportedOperationException(
-            "Sort plan-node doesn't support marking.");
+        if (merger != null) {
+            if (markBuffer == null)
+                throw new IllegalStateException("There is no last-marked tuple!");
+
+            markBufferIndex = 0;
+            done = false;
+            return;
+        }
+
+        if (markedTupleIndex == -1)
+            throw new IllegalStateException("There is no last-marked tuple!");
+
+        currentTupleIndex = markedTupleIndex;
+        done = false;
     }
 
 
     /** Clean up after evaluation of the sort plan-node. */
     public void cleanUp() {
-        // Allow this collection to be garbage-collected.
+        // Allow these collections to be garbage-collected.
         sortedResults = null;
+        markBuffer = null;
+        merger = null;
+
+        deleteRuns();
 
         leftChild.cleanUp();
     }
@@ -230,10 +573,31 @@ public class SortNode extends PlanNode {
 
     @Override
     public String toString() {
+        if (maxTuples > 0)
+            return "Sort[" + orderByExprs + ", top:  " + maxTuples + "]";
+
         return "Sort[" + orderByExprs + "]";
     }
 
 
+    /**
+     * Creates a copy of this sort node and its subtree.  The copy doesn't
+     * share any evaluation state with this node.
+     */
+    @Override
+    protected PlanNode clone() throws CloneNotSupportedException {
+        SortNode node = (SortNode) super.clone();
+
+        node.sortedResults = null;
+        node.sorter = null;
+        node.merger = null;
+        node.markBuffer = null;
+        node.currentTuple = null;
+
+        return node;
+    }
+
+
     /**
      * Checks if the argument is a plan node tree with the same structure,
      * but not necesarily the same references.
@@ -248,6 +612,7 @@ public class SortNode extends PlanNode {
             SortNode other = (SortNode) obj;
 
             return orderByExprs.equals(other.orderByExprs) &&
+                   maxTuples == other.maxTuples &&
                    leftChild.equals(other.leftChild);
         }
         return false;
@@ -265,6 +630,7 @@ public class SortNode extends PlanNode {
     public int hashCode() {
         int hash = 17;
         hash = 31 * hash + orderByExprs.hashCode();
+        hash = 31 * hash + maxTuples;
         hash = 31 * hash + leftChild.hashCode();
         return hash;
     }
@@ -1,10 +1,14 @@
 package edu.caltech.nanodb.plannodes;
 
 
+import edu.caltech.nanodb.expressions.ColumnBinder;
+import edu.caltech.nanodb.expressions.CompiledExpression;
 import edu.caltech.nanodb.expressions.Expression;
 import edu.caltech.nanodb.expressions.TupleLiteral;
 
 import edu.caltech.nanodb.queryeval.ColumnStats;
+import edu.caltech.nanodb.queryeval.PlanCost;
+import edu.caltech.nanodb.queryeval.SelectivityEstimator;
 import edu.caltech.nanodb.relations.JoinType;
 import edu.caltech.nanodb.relations.Schema;
 import edu.caltech.nanodb.relations.Tuple;
@@ -26,6 +30,13 @@ public abstract class ThetaJoinNode extends PlanNode {
     public Expression predicate;
 
 
+    /**
+     * The compiled form of the join condition, or {@code null} if the join
+     * condition is evaluated with the interpreter.
+     */
+    protected CompiledExpression compiledPredicate;
+
+
     /**
      * The cached schema of the left subplan, used for join-predicate
      * evaluation.
@@ -48,6 +59,21 @@ public abstract class ThetaJoinNode extends PlanNode {
     protected ArrayList<ColumnStats> rightStats;
 
 
+    /**
+     * The schema of the joined left and right tuples, which the join
+     * condition refers to.  This is the same as the output schema, except
+     * for semijoins and antijoins, which only output the left tuples.
+     */
+    protected Schema joinSchema;
+
+
+    /**
+     * The statistics of the columns in {@link #joinSchema}, used for
+     * estimating the selectivity of the join condition.
+     */
+    protected ArrayList<ColumnStats> joinStats;
+
+
     /**
      * True if the output schema of this node is swapped.  If this flag is true
      * then tuples from the left subplan will be on the right of joined results
@@ -144,22 +170,96 @@ public abstract class ThetaJoinNode extends PlanNode {
         leftStats = leftChild.getStats();
         rightStats = rightChild.getStats();
 
-        stats = new ArrayList<ColumnStats>();
+        joinStats = new ArrayList<ColumnStats>();
 
-        schema = new Schema();
+        joinSchema = new Schema();
         if (!schemaSwapped) {
-            schema.append(leftSchema);
-            schema.append(rightSchema);
+            joinSchema.append(leftSchema);
+            joinSchema.append(rightSchema);
+
+            joinStats.addAll(leftStats);
+            joinStats.addAll(rightStats);
+        }
+        else {
+            joinSchema.append(rightSchema);
+            joinSchema.append(leftSchema);
+
+            joinStats.addAll(rightStats);
+            joinStats.addAll(leftStats);
+        }
 
-            stats.addAll(leftStats);
-            stats.addAll(rightStats);
+        // Semijoins and antijoins only produce the left tuples.
+        if (joinType == JoinType.SEMIJOIN || joinType == JoinType.ANTIJOIN) {
+            schema = new Schema();
+            schema.append(schemaSwapped ? rightSchema : leftSchema);
+            stats = new ArrayList<>(schemaSwapped ? rightStats : leftStats);
         }
         else {
-            schema.append(rightSchema);
-            schema.append(leftSchema);
+            schema = joinSchema;
+            stats = joinStats;
+        }
+
+        // The predicate is evaluated with the left tuple followed by the
+        // right tuple, regardless of the order of the output schema.  Resolve
+        // its column references once, rather than for every pair of tuples,
+        // and compile it.
+        ColumnBinder.bindColumns(predicate, leftSchema, rightSchema);
+        compiledPredicate = compileExpression(predicate);
+    }
 
-            stats.addAll(rightStats);
-            stats.addAll(leftStats);
+
+    /**
+     * Evaluates the join condition against the tuples in the node's
+     * environment, using the compiled join condition if there is one.  The
+     * join condition must not be {@code null}.
+     *
+     * @return true if the tuples in the environment satisfy the join
+     *         condition
+     */
+    protected boolean evaluatePredicate() {
+        if (compiledPredicate != null)
+            return compiledPredicate.evaluatePredicate(environment);
+
+        return predicate.evaluatePredicate(environment);
+    }
+
+
+    /**
+     * This helper method can be used by the {@link #prepare} method in
+     * subclasses, to estimate the number of tuples the join produces from
+     * the join type and the selectivity of the join predicate.  It must be
+     * called after {@link #prepareSchemaStats}.
+     *
+     * @param leftCost the cost of the left subplan
+     *
+     * @param rightCost the cost of the right subplan
+     *
+     * @return the estimated number of tuples the join produces
+     */
+    protected float estimateNumTuples(PlanCost leftCost, PlanCost rightCost) {
+        float selectivity = SelectivityEstimator.estimateSelectivity(
+            predicate, joinSchema, joinStats);
+        float innerTuples = leftCost.numTuples * rightCost.numTuples * selectivity;
+
+        switch (joinType) {
+            case SEMIJOIN:
+                return Math.min(innerTuples, leftCost.numTuples);
+
+            case ANTIJOIN:
+                return leftCost.numTuples -
+                    Math.min(innerTuples, leftCost.numTuples);
+
+            case LEFT_OUTER:
+            case RIGHT_OUTER:
+                // Right outer joins have been swapped into left outer joins.
+                return Math.max(innerTuples, leftCost.numTuples);
+
+            case FULL_OUTER:
+                return Math.max(innerTuples, leftCost.numTuples) +
+                    rightCost.numTuples;
+
+            default:
+                return innerTuples;
         }
     }
 
@@ -0,0 +1,100 @@
+package edu.caltech.nanodb.queryast;
+
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import edu.caltech.nanodb.expressions.Expression;
+import edu.caltech.nanodb.expressions.ExpressionProcessor;
+import edu.caltech.nanodb.expressions.SubqueryOperator;
+
+
+/**
+ * This class collects the names of the base tables that a query reads,
+ * including the tables read by its derived tables and by subqueries in its
+ * expressions.  It is used to lock the tables before the query is planned.
+ * Unlike the schema computation, this traversal doesn't need the tables to
+ * be opened.
+ */
+public class BaseTableCollector implements ExpressionProcessor {
+
+    /** The names of the base tables found, in the order they were found. */
+    private LinkedHashSet<String> tableNames = new LinkedHashSet<>();
+
+
+    /**
+     * Adds the base tables read by the specified query to the collection.
+     *
+     * @param selClause the query to collect the base tables of
+     */
+    public void collect(SelectClause selClause) {
+        FromClause fromClause = selClause.getFromClause();
+        if (fromClause != null)
+            collect(fromClause);
+
+        for (SelectValue selVal : selClause.getSelectValues()) {
+            if (!selVal.isWildcard())
+                collect(selVal.getExpression());
+        }
+
+        collect(selClause.getWhereExpr());
+        collect(selClause.getHavingExpr());
+    }
+
+
+    /**
+     * Adds the base tables read by subqueries in the specified expression to
+     * the collection.
+     *
+     * @param expr the expression to collect the base tables of; this may be
+     *        {@code null}
+     */
+    public void collect(Expression expr) {
+        if (expr != null)
+            expr.traverse(this);
+    }
+
+
+    private void collect(FromClause fromClause) {
+        if (fromClause.isBaseTable()) {
+            tableNames.add(fromClause.getTableName());
+        }
+        else if (fromClause.isDerivedTable()) {
+            collect(fromClause.getSelectClause());
+        }
+        else {
+            collect(fromClause.getLeftChild());
+            collect(fromClause.getRightChild());
+            collect(fromClause.getOnExpression());
+        }
+    }
+
+
+    public Set<String> getTableNames() {
+        return tableNames;
+    }
+
+
+    /**
+     * This method identifies {@link SubqueryOperator} objects, and collects
+     * the base tables of their subqueries.
+     *
+     * @param e the expression node being entered
+     */
+    public void enter(Expression e) {
+        if (e instanceof SubqueryOperator)
+            collect(((SubqueryOperator) e).getSubquery());
+    }
+
+
+    /**
+     * This method is a no-op for this expression processor.
+     *
+     * @param e the expression node being left
+     *
+     * @return the passed-in expression {@code e}.
+     */
+    public Expression leave(Expression e) {
+        return e;
+    }
+}
@@ -11,6 +11,10 @@ import edu.caltech.nanodb.queryast.SelectClause;
 import edu.caltech.nanodb.queryast.SelectValue;
 import edu.caltech.nanodb.expressions.Expression;
 import edu.caltech.nanodb.expressions.FunctionCall;
+import edu.caltech.nanodb.expressions.OrderByExpression;
+import edu.caltech.nanodb.plannodes.LimitOffsetNode;
+import edu.caltech.nanodb.plannodes.PlanNode;
+import edu.caltech.nanodb.plannodes.SortNode;
 import edu.caltech.nanodb.storage.StorageManager;
 
 
@@ -34,4 +38,42 @@ public abstract class AbstractPlannerImpl implements Planner {
     public void setStorageManager(StorageManager storageManager) {
         this.storageManager = storageManager;
     }
+
+
+    /**
+     * Adds the plan nodes for the <tt>ORDER BY</tt>, <tt>LIMIT</tt> and
+     * <tt>OFFSET</tt> clauses of a query on top of the plan for the rest of
+     * the query.  If the query is sorted and limited, the sort node only
+     * keeps the tuples that can appear in the results.
+     *
+     * @param plan the plan for the rest of the query
+     * @param selClause the query being planned
+     *
+     * @return the plan with sorting and limiting applied, or the passed-in
+     *         plan if the query has none of these clauses
+     */
+    protected PlanNode makeOrderByLimitPlan(PlanNode plan,
+                                            SelectClause selClause) {
+        int limit = selClause.getLimit();
+        int offset = selClause.getOffset();
+
+        List<OrderByExpression> orderByExprs = selClause.getOrderByExprs();
+        if (!orderByExprs.isEmpty()) {
+            // Only the first limit + offset sorted tuples are needed.  (If
+            // that overflows, sort everything.)
+            int maxTuples = 0;
+            if (limit > 0 && limit + offset > 0)
+                maxTuples = limit + offset;
+
+            plan = new SortNode(plan, orderByExprs, storageManager, maxTuples);
+            plan.prepare();
+        }
+
+        if (limit > 0 || offset > 0) {
+            plan = new LimitOffsetNode(plan, limit, offset);
+            plan.prepare();
+        }
+
+        return plan;
+    }
 }
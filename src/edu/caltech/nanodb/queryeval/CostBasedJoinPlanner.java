@@ -8,10 +8,17 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import edu.caltech.nanodb.expressions.*;
+import edu.caltech.nanodb.functions.CountAggregate;
+import edu.caltech.nanodb.functions.CountStar;
+import edu.caltech.nanodb.functions.Function;
+import edu.caltech.nanodb.functions.MinMaxAggregate;
+import edu.caltech.nanodb.functions.SumAvgAggregate;
 import edu.caltech.nanodb.plannodes.*;
 import edu.caltech.nanodb.queryast.SelectValue;
 import edu.caltech.nanodb.relations.JoinType;
@@ -19,6 +26,8 @@ import org.apache.log4j.Logger;
 
 import edu.caltech.nanodb.queryast.FromClause;
 import edu.caltech.nanodb.queryast.SelectClause;
+import edu.caltech.nanodb.indexes.IndexInfo;
+import edu.caltech.nanodb.indexes.IndexManager;
 import edu.caltech.nanodb.relations.TableInfo;
 
 
@@ -145,46 +154,12 @@ public class CostBasedJoinPlanner extends AbstractPlannerImpl {
         // various kinds of subqueries, queries without a FROM clause, etc.,
         // can all be incorporated into this sketch relatively easily.
 
-        // Decorrelate Query with SEMI_JOIN
+        // Decorrelate EXISTS and IN subqueries into semijoins and antijoins
+        if (enclosingSelects == null && decorrelateSubqueries(selClause))
+            return makePlan(selClause, null);
+
         Expression whereExpr = selClause.getWhereExpr();
-        if (whereExpr instanceof InSubqueryOperator && enclosingSelects == null) {
-            InSubqueryOperator sub = (InSubqueryOperator) whereExpr;
-            // Collect subquery SelectClause and the parent SelectClause
-            SelectClause subSelect = sub.getSubquery();
-            SelectClause encloseSelect = subSelect.getParentSelect();
-            if (encloseSelect.getWhereExpr().equals(whereExpr) && subSelect.isCorrelated() &&
-                    subSelect.getWhereExpr() != null && subSelect.getFromClause().isBaseTable()) {
-                // Prepare for Decorrelation with elimination of initial whereClauses
-                encloseSelect.setWhereExpr(null);
-                Expression correlatedWhere = subSelect.getWhereExpr();
-                String subqueryTableName = subSelect.getFromClause().getResultName();
-                subSelect.setWhereExpr(null);
-                // Edit Left and Right Select Clauses
-                SelectClause newRightSelect = new SelectClause();
-                for (SelectValue sv : subSelect.getSelectValues()){
-                    newRightSelect.addSelectValue(sv);
-                }
-                newRightSelect.setFromClause(subSelect.getFromClause());
-                // Create new FromClause with SEMIJOIN (subquery creates DerivedTable FromClause)
-                FromClause newFrom = new FromClause(encloseSelect.getFromClause(), new FromClause(newRightSelect,
-                        subqueryTableName), JoinType.SEMIJOIN);
-                // Change the name of the column from the subquery's WHERE expression to fit into JOIN
-                // of overall enclosing query.
-                SubqueryPlanner.DecorrelationExpressionProcessor decorrelator =
-                        new SubqueryPlanner.DecorrelationExpressionProcessor();
-                decorrelator.setCorrelatedColumnsSet(subSelect.getCorrelatedColumns());
-                decorrelator.setTableName(subqueryTableName);
-                correlatedWhere.traverse(decorrelator);
-                // Add fixed predicate to final query
-                newFrom.setConditionType(FromClause.JoinConditionType.JOIN_ON_EXPR);
-                newFrom.setOnExpression(correlatedWhere);
-                newFrom.computeSchema(storageManager.getTableManager());
-                // Finalize decorrelation
-                encloseSelect.setFromClause(newFrom);
-                return makePlan(encloseSelect, null);
-            }
-        }
-    
+
         // First, create Subquery Planner object to prepare for possible subqueries
         SubqueryPlanner subqueryPlanner = new SubqueryPlanner(this);
 
@@ -245,7 +220,7 @@ public class CostBasedJoinPlanner extends AbstractPlannerImpl {
                 subqueryPlanner.planSubqueryInExpression(sv.getExpression(), enclosingSelectsIncludingThis,
                         projNode);
             }
-            return projNode;
+            return makeOrderByLimitPlan(projNode, selClause);
         }
 
         HashSet<Expression> whereConjuncts = new HashSet<Expression>();
@@ -308,11 +283,11 @@ public class CostBasedJoinPlanner extends AbstractPlannerImpl {
                 HashedGroupAggregateNode aggregateNode;
                 if (processor.getAggFunct() == null) {
                     HashMap<String, FunctionCall> empty_agg = new HashMap<String, FunctionCall>();
-                    aggregateNode = new HashedGroupAggregateNode(curNode,
-                            selClause.getGroupByExprs(), empty_agg);
+                    aggregateNode = makeAggregateNode(curNode,
+                            selClause.getGroupByExprs(), empty_agg, enclosingSelects);
                 } else {
-                    aggregateNode = new HashedGroupAggregateNode(curNode,
-                            selClause.getGroupByExprs(), processor.getAggFunct());
+                    aggregateNode = makeAggregateNode(curNode,
+                            selClause.getGroupByExprs(), processor.getAggFunct(), enclosingSelects);
                 }
                 aggregateNode.prepare();
                 if (havingConjuncts.size() > 0) {
@@ -337,19 +312,9 @@ public class CostBasedJoinPlanner extends AbstractPlannerImpl {
                     subqueryPlanner.planSubqueryInExpression(sv.getExpression(), enclosingSelectsIncludingThis,
                             projNode);
                 }
-                if (!selClause.getOrderByExprs().isEmpty()) {
-                    SortNode orderByNode = new SortNode(projNode, selClause.getOrderByExprs());
-                    orderByNode.prepare();
-                    return orderByNode;
-                }
-                return projNode;
+                return makeOrderByLimitPlan(parallelizeScan(projNode, enclosingSelects), selClause);
             } else {
-                if (!selClause.getOrderByExprs().isEmpty()) {
-                    SortNode orderByNode = new SortNode(finalNode, selClause.getOrderByExprs());
-                    orderByNode.prepare();
-                    return orderByNode;
-                }
-                return finalNode;
+                return makeOrderByLimitPlan(parallelizeScan(finalNode, enclosingSelects), selClause);
             }
         } else { // No predicates to apply in this node, all were previously applied
             PlanNode finalNode;
@@ -357,11 +322,11 @@ public class CostBasedJoinPlanner extends AbstractPlannerImpl {
                 HashedGroupAggregateNode aggregateNode;
                 if (processor.getAggFunct() == null) {
                     HashMap<String, FunctionCall> empty_agg = new HashMap<String, FunctionCall>();
-                    aggregateNode = new HashedGroupAggregateNode(curNode,
-                            selClause.getGroupByExprs(), empty_agg);
+                    aggregateNode = makeAggregateNode(curNode,
+                            selClause.getGroupByExprs(), empty_agg, enclosingSelects);
                 } else {
-                    aggregateNode = new HashedGroupAggregateNode(curNode,
-                            selClause.getGroupByExprs(), processor.getAggFunct());
+                    aggregateNode = makeAggregateNode(curNode,
+                            selClause.getGroupByExprs(), processor.getAggFunct(), enclosingSelects);
                 }
                 aggregateNode.prepare();
                 if (havingConjuncts.size() > 0) {
@@ -386,19 +351,9 @@ public class CostBasedJoinPlanner extends AbstractPlannerImpl {
                             projNode);
                 }
                 projNode.prepare();
-                if (!selClause.getOrderByExprs().isEmpty()) {
-                    SortNode orderByNode = new SortNode(projNode, selClause.getOrderByExprs());
-                    orderByNode.prepare();
-                    return orderByNode;
-                }
-                return projNode;
+                return makeOrderByLimitPlan(parallelizeScan(projNode, enclosingSelects), selClause);
             } else {
-                if (!selClause.getOrderByExprs().isEmpty()) {
-                    SortNode orderByNode = new SortNode(finalNode, selClause.getOrderByExprs());
-                    orderByNode.prepare();
-                    return orderByNode;
-                }
-                return finalNode;
+                return makeOrderByLimitPlan(parallelizeScan(finalNode, enclosingSelects), selClause);
             }
         }
     }
@@ -497,7 +452,7 @@ public class CostBasedJoinPlanner extends AbstractPlannerImpl {
         }
         if (fromClause.isJoinExpr()) {
             // Outer Join is also considered to be a leaf clause
-            if (fromClause.isOuterJoin() || fromClause.getJoinType() == JoinType.SEMIJOIN) {
+            if (fromClause.isOuterJoin() || isSemiOrAntiJoin(fromClause)) {
                 leafFromClauses.add(fromClause);
             } else {
                 // Handle the non-leaf clause Inner Join case
@@ -626,13 +581,20 @@ public class CostBasedJoinPlanner extends AbstractPlannerImpl {
         if (fromClause.isBaseTable()){
             if (fromClause.getResultName() != fromClause.getTableName()){
                 // Must use RenameNode for Aliasing
-                PlanNode tempNode = new RenameNode(
-                        makeSimpleSelect(fromClause.getTableName(), null, null),
-                        fromClause.getResultName());
+                PlanNode scanNode = makeSimpleSelect(fromClause.getTableName(), null, null);
+                PlanNode tempNode = new RenameNode(scanNode, fromClause.getResultName());
                 tempNode.prepare();
                 PredicateUtils.findExprsUsingSchemas(conjuncts, false, leafConjuncts, tempNode.getSchema());
                 Expression leafPred = PredicateUtils.makePredicate(leafConjuncts);
                 if (leafPred != null){
+                    // Use an index under the RenameNode if it is cheaper; the
+                    // predicate refers to the alias, so it stays in the filter
+                    PlanNode indexNode = chooseIndexScan(fromClause.getTableName(),
+                            fromClause.getResultName(), leafConjuncts, null, scanNode);
+                    if (indexNode != scanNode) {
+                        tempNode = new RenameNode(indexNode, fromClause.getResultName());
+                        tempNode.prepare();
+                    }
                     // Add SimpleFilterNode on top of RenameNode if predicate can be passed down
                     finalNode = new SimpleFilterNode(tempNode, leafPred);
                     finalNode.prepare();
@@ -654,6 +616,9 @@ public class CostBasedJoinPlanner extends AbstractPlannerImpl {
                             finalNode);
                     finalNode = PlanUtils.addPredicateToPlan(finalNode, leafPred);
                     finalNode.prepare();
+                    // Use an index to find the rows if it is cheaper
+                    finalNode = chooseIndexScan(fromClause.getTableName(),
+                            fromClause.getTableName(), leafConjuncts, leafPred, finalNode);
                 }
             }
         }
@@ -673,14 +638,15 @@ public class CostBasedJoinPlanner extends AbstractPlannerImpl {
                 finalNode.prepare();
             }
         }
-        if (fromClause.isJoinExpr() && (fromClause.isOuterJoin() || fromClause.getJoinType() == JoinType.SEMIJOIN) ){
+        if (fromClause.isJoinExpr() && (fromClause.isOuterJoin() || isSemiOrAntiJoin(fromClause))) {
             PlanNode leftNode = makeJoinPlan(fromClause.getLeftChild(), null,
                     null).joinPlan;
             PlanNode rightNode = makeJoinPlan(fromClause.getRightChild(), null,
                     null).joinPlan;
-            // If this is left outer join, we check to see if we can push any conjuncts down to the
-            // left plan node.
-            if (fromClause.hasOuterJoinOnLeft() && !fromClause.hasOuterJoinOnRight()){
+            // If this is left outer join, semijoin or antijoin, we check to see if we can push
+            // any conjuncts down to the left plan node.
+            if ((fromClause.hasOuterJoinOnLeft() && !fromClause.hasOuterJoinOnRight()) ||
+                    isSemiOrAntiJoin(fromClause)){
                 leftNode.prepare();
                 rightNode.prepare();
                 PredicateUtils.findExprsUsingSchemas(conjuncts, false, leafConjuncts, leftNode.getSchema());
@@ -710,9 +676,29 @@ public class CostBasedJoinPlanner extends AbstractPlannerImpl {
                     rightNode.prepare();
                 }
             }
+            leftNode.prepare();
+            rightNode.prepare();
+            Expression joinExpr = fromClause.getComputedJoinExpr();
+            // Semijoins and antijoins only check whether a right tuple matches, so the
+            // join conditions that only use the right plan node can filter it instead.
+            if (isSemiOrAntiJoin(fromClause)){
+                ArrayList<Expression> joinConjuncts = new ArrayList<>();
+                PredicateUtils.collectConjuncts(joinExpr, joinConjuncts);
+                ArrayList<Expression> rightConjuncts = new ArrayList<>();
+                PredicateUtils.findExprsUsingSchemas(joinConjuncts, true, rightConjuncts,
+                        rightNode.getSchema());
+                Expression rightPred = PredicateUtils.makePredicate(rightConjuncts);
+                if (rightPred != null){
+                    rightNode = PlanUtils.addPredicateToPlan(rightNode, rightPred);
+                    rightNode.prepare();
+                    joinExpr = PredicateUtils.makePredicate(joinConjuncts);
+                }
+            }
             finalNode = new NestedLoopJoinNode(leftNode, rightNode,
-                    fromClause.getJoinType(), fromClause.getComputedJoinExpr());
+                    fromClause.getJoinType(), joinExpr);
             finalNode.prepare();
+            finalNode = chooseJoinPlan(leftNode, rightNode,
+                    fromClause.getJoinType(), joinExpr, finalNode);
             }
             if (finalNode == null){
                 throw new IllegalArgumentException("From clause has unrecognized type");
@@ -721,6 +707,73 @@ public class CostBasedJoinPlanner extends AbstractPlannerImpl {
         }
 
 
+    /**
+     * This helper method considers using each of a table's ordered indexes
+     * to evaluate conjuncts on the table, instead of scanning the whole
+     * table, and returns the cheapest plan.  If the table has statistics,
+     * an index scan is chosen when it is estimated to read fewer blocks than
+     * the file scan.  Without statistics the costs mean nothing, so an index
+     * scan is only chosen for an equality lookup, which is rarely worse.
+     *
+     * @param tableName the name of the table being scanned
+     *
+     * @param resultName the name the conjuncts use for the table, which may
+     *        be an alias
+     *
+     * @param conjuncts the conjuncts that apply to the table
+     *
+     * @param predicate the predicate for an index scan to apply to the
+     *        table's tuples, or {@code null} if it is applied elsewhere
+     *
+     * @param fileScan a file scan of the table, with the same predicate,
+     *        which has already been prepared
+     *
+     * @return the chosen plan, which has been prepared
+     *
+     * @throws IOException if an index can't be opened
+     */
+    private PlanNode chooseIndexScan(String tableName, String resultName,
+        Collection<Expression> conjuncts, Expression predicate,
+        PlanNode fileScan) throws IOException {
+
+        TableInfo tableInfo =
+            storageManager.getTableManager().openTable(tableName);
+        IndexManager indexManager = storageManager.getIndexManager();
+
+        boolean haveStats =
+            tableInfo.getTupleFile().getStats().numTuples > 0;
+
+        PlanNode bestPlan = fileScan;
+        for (String indexName : tableInfo.getSchema().getIndexes().keySet()) {
+            IndexInfo indexInfo = indexManager.openIndex(tableInfo, indexName);
+
+            List<Expression> indexConjuncts =
+                IndexScanNode.findIndexConjuncts(indexInfo, resultName, conjuncts);
+            if (indexConjuncts.isEmpty())
+                continue;
+
+            IndexScanNode indexScan = new IndexScanNode(indexInfo,
+                PredicateUtils.makePredicate(indexConjuncts), predicate);
+            indexScan.setEnvironment(fileScan.getEnvironment());
+            indexScan.prepare();
+
+            boolean cheaper;
+            if (haveStats) {
+                cheaper = indexScan.getCost().numBlockIOs <
+                          bestPlan.getCost().numBlockIOs;
+            }
+            else {
+                cheaper = indexScan.isEqualityLookup() && bestPlan == fileScan;
+            }
+
+            if (cheaper)
+                bestPlan = indexScan;
+        }
+
+        return bestPlan;
+    }
+
+
     /**
      * This helper method builds up a full join-plan using a dynamic programming
      * approach.  The implementation maintains a collection of optimal
@@ -793,11 +846,14 @@ public class CostBasedJoinPlanner extends AbstractPlannerImpl {
                     Expression predicate = PredicateUtils.makePredicate(nextConjunctsUsed);
                     // Only call prepare() if necessary
                     if (predicate != null){
+                        nextJoinPlan = PlanUtils.addPredicateToPlan(nextJoinPlan, predicate);
+                        nextJoinPlan.prepare();
+                        nextJoinPlan = chooseJoinPlan(planN.joinPlan,
+                                leaf.joinPlan, JoinType.INNER, predicate, nextJoinPlan);
+
                         // Handle Applicable Subqueries in WHERE and HAVING clause
                         subqueryPlanner.planSubqueryInExpression(predicate, enclosingSelects,
                                 nextJoinPlan);
-                        nextJoinPlan = PlanUtils.addPredicateToPlan(nextJoinPlan, predicate);
-                        nextJoinPlan.prepare();
                     }
 
                     nextConjunctsUsed.addAll(conjunctsUnion);
@@ -824,6 +880,527 @@ public class CostBasedJoinPlanner extends AbstractPlannerImpl {
     }
 
 
+    /**
+     * This helper method chooses how to perform a join of two plans with a
+     * join predicate.  The nested-loop join always works; if the predicate
+     * has equijoin conditions then a hash join and a sort-merge join are
+     * also considered, and the cheapest of the plans is chosen.  The
+     * sort-merge join only sorts the inputs that aren't already ordered on
+     * the join columns, so it is cheapest when the inputs are already
+     * sorted, e.g. when they are scans of B<sup>+</sup> tree files.  If
+     * the right plan scans a table with an index on the join columns, an
+     * index nested-loop join is also considered; it is only chosen if it is
+     * estimated to be cheaper in both CPU and block IOs, since its costs
+     * depend heavily on the statistics.
+     *
+     * @param leftPlan the left input of the join, which has been prepared
+     *
+     * @param rightPlan the right input of the join, which has been prepared
+     *
+     * @param joinType the type of join to perform
+     *
+     * @param predicate the join predicate
+     *
+     * @param nestedLoopPlan a nested-loop plan for the join, with the join
+     *        predicate applied, which has already been prepared
+     *
+     * @return the chosen plan, which has been prepared
+     *
+     * @throws IOException if an index can't be opened
+     */
+    private PlanNode chooseJoinPlan(PlanNode leftPlan, PlanNode rightPlan,
+        JoinType joinType, Expression predicate, PlanNode nestedLoopPlan)
+        throws IOException {
+
+        PlanNode bestPlan = nestedLoopPlan;
+
+        JoinKeys keys = JoinKeys.extract(predicate, leftPlan.getSchema(),
+                                         rightPlan.getSchema());
+        if (keys == null)
+            return bestPlan;
+
+        // If the costs are the same (e.g. because there are no statistics),
+        // prefer the hash join, since the nested-loop join is quadratic.
+        PlanNode hashJoin = new HashJoinNode(leftPlan, rightPlan, joinType,
+            predicate, storageManager);
+        hashJoin.prepare();
+        if (hashJoin.getCost().cpuCost <= bestPlan.getCost().cpuCost)
+            bestPlan = hashJoin;
+
+        if (joinType != JoinType.FULL_OUTER) {
+            // For right outer joins the sort-merge join swaps its inputs, so
+            // the left plan is the one that must support marking.
+            boolean rightOuter = (joinType == JoinType.RIGHT_OUTER);
+            PlanNode leftInput = makeSortedInput(leftPlan,
+                keys.getLeftKeyExpressions(), rightOuter);
+            PlanNode rightInput = makeSortedInput(rightPlan,
+                keys.getRightKeyExpressions(), !rightOuter);
+
+            PlanNode mergeJoin = new SortMergeJoinNode(leftInput, rightInput,
+                joinType, predicate);
+            mergeJoin.prepare();
+            if (mergeJoin.getCost().cpuCost < bestPlan.getCost().cpuCost)
+                bestPlan = mergeJoin;
+        }
+
+        if (IndexNestedLoopJoinNode.supportsJoinType(joinType)) {
+            PlanNode indexJoin =
+                makeIndexJoin(leftPlan, rightPlan, joinType, predicate);
+            if (indexJoin != null &&
+                indexJoin.getCost().cpuCost < bestPlan.getCost().cpuCost &&
+                indexJoin.getCost().numBlockIOs <= bestPlan.getCost().numBlockIOs) {
+                bestPlan = indexJoin;
+            }
+        }
+
+        return bestPlan;
+    }
+
+
+    /**
+     * This helper method constructs the cheapest index nested-loop join of
+     * two plans, if the right plan reads a single table that has an index
+     * on the join columns.  The right plan may rename the table, and may
+     * apply a predicate to it; the predicate is folded into the join
+     * predicate, since the index join reads the whole table through the
+     * index instead of running the right plan.  Predicates with subqueries
+     * aren't folded, since their subplans are attached to the right plan.
+     *
+     * @param leftPlan the left input of the join, which has been prepared
+     *
+     * @param rightPlan the right input of the join, which has been prepared
+     *
+     * @param joinType the type of join to perform
+     *
+     * @param predicate the join predicate
+     *
+     * @return the cheapest index join, which has been prepared, or
+     *         {@code null} if an index join can't be used
+     *
+     * @throws IOException if an index can't be opened
+     */
+    private PlanNode makeIndexJoin(PlanNode leftPlan, PlanNode rightPlan,
+        JoinType joinType, Expression predicate) throws IOException {
+
+        ArrayList<Expression> rightConjuncts = new ArrayList<>();
+
+        PlanNode node = rightPlan;
+        if (node instanceof SimpleFilterNode) {
+            PredicateUtils.collectConjuncts(((SelectNode) node).predicate,
+                rightConjuncts);
+            node = node.getLeftChild();
+        }
+
+        String resultName = null;
+        if (node instanceof RenameNode) {
+            resultName = ((RenameNode) node).getResultTableName();
+            node = node.getLeftChild();
+        }
+
+        // An index scan of the table is replaced too, as long as its range
+        // is implied by a predicate that is folded into the join predicate.
+        TableInfo tableInfo;
+        if (node instanceof FileScanNode) {
+            tableInfo = ((FileScanNode) node).getTableInfo();
+        }
+        else if (node instanceof IndexScanNode &&
+                 (((SelectNode) node).predicate != null ||
+                  !rightConjuncts.isEmpty())) {
+            tableInfo = ((IndexScanNode) node).getIndexInfo().getTableInfo();
+        }
+        else {
+            return null;
+        }
+
+        if (tableInfo == null)
+            return null;
+
+        // A predicate under a rename refers to the table's own name, so it
+        // can't be evaluated against the renamed tuples.
+        Expression scanPred = ((SelectNode) node).predicate;
+        if (scanPred != null) {
+            if (resultName != null)
+                return null;
+
+            PredicateUtils.collectConjuncts(scanPred, rightConjuncts);
+        }
+
+        for (Expression conjunct : rightConjuncts) {
+            if (ExpressionFinder.hasSubquery(conjunct))
+                return null;
+        }
+
+        // Without statistics the costs mean nothing, so don't bother.
+        if (tableInfo.getTupleFile().getStats().numTuples <= 0)
+            return null;
+
+        PlanNode innerPlan = new FileScanNode(tableInfo, null);
+        if (resultName != null)
+            innerPlan = new RenameNode(innerPlan, resultName);
+        innerPlan.prepare();
+
+        ArrayList<Expression> conjuncts = new ArrayList<>();
+        PredicateUtils.collectConjuncts(predicate, conjuncts);
+        conjuncts.addAll(rightConjuncts);
+        Expression joinPred = PredicateUtils.makePredicate(conjuncts);
+
+        JoinKeys keys = JoinKeys.extract(joinPred, leftPlan.getSchema(),
+                                         innerPlan.getSchema());
+        if (keys == null)
+            return null;
+
+        IndexManager indexManager = storageManager.getIndexManager();
+
+        PlanNode bestPlan = null;
+        for (String indexName : tableInfo.getSchema().getIndexes().keySet()) {
+            IndexInfo indexInfo = indexManager.openIndex(tableInfo, indexName);
+            if (!IndexNestedLoopJoinNode.canUseIndex(indexInfo, keys))
+                continue;
+
+            PlanNode indexJoin = new IndexNestedLoopJoinNode(leftPlan,
+                innerPlan, indexInfo, joinType, joinPred);
+            indexJoin.prepare();
+
+            if (bestPlan == null ||
+                indexJoin.getCost().cpuCost < bestPlan.getCost().cpuCost) {
+                bestPlan = indexJoin;
+            }
+        }
+
+        return bestPlan;
+    }
+
+
+    /**
+     * This helper method rewrites the correlated subqueries in the top-level
+     * conjuncts of a query's <tt>WHERE</tt> clause into joins, where it can.
+     * Each <tt>EXISTS</tt> or <tt>expr IN</tt> subquery becomes a semijoin,
+     * and each <tt>NOT EXISTS</tt> subquery becomes an antijoin, of the
+     * query's from-clause and the subquery's from-clause.  The join
+     * condition is the subquery's <tt>WHERE</tt> predicate, and for an
+     * <tt>IN</tt> subquery, the comparison of the expression to the
+     * subquery's value.  (<tt>NOT IN</tt> is not rewritten, since it handles
+     * <tt>NULL</tt>s differently from an antijoin.)  Uncorrelated
+     * subqueries are left alone, since they are only evaluated once.
+     *
+     * @param selClause the query to rewrite, which is modified in place
+     *
+     * @return true if any subqueries were rewritten into joins
+     *
+     * @throws IOException if the new from-clause's schema can't be computed
+     */
+    private boolean decorrelateSubqueries(SelectClause selClause)
+        throws IOException {
+
+        FromClause fromClause = selClause.getFromClause();
+        Expression whereExpr = selClause.getWhereExpr();
+        if (fromClause == null || whereExpr == null)
+            return false;
+
+        ArrayList<Expression> conjuncts = new ArrayList<>();
+        PredicateUtils.collectConjuncts(whereExpr, conjuncts);
+
+        HashSet<String> tableNames =
+            new HashSet<>(selClause.getFromSchema().getTableNames());
+
+        ArrayList<Expression> remaining = new ArrayList<>();
+        boolean decorrelated = false;
+        for (Expression conjunct : conjuncts) {
+            JoinType joinType = JoinType.SEMIJOIN;
+            Expression term = conjunct;
+            if (term instanceof BooleanOperator) {
+                BooleanOperator bool = (BooleanOperator) term;
+                if (bool.getType() == BooleanOperator.Type.NOT_EXPR &&
+                    bool.getTerm(0) instanceof ExistsOperator) {
+                    joinType = JoinType.ANTIJOIN;
+                    term = bool.getTerm(0);
+                }
+            }
+
+            if (!(term instanceof ExistsOperator ||
+                  term instanceof InSubqueryOperator) ||
+                !canDecorrelate((SubqueryOperator) term, tableNames)) {
+                remaining.add(conjunct);
+                continue;
+            }
+
+            SelectClause subquery = ((SubqueryOperator) term).getSubquery();
+            Expression joinExpr = subquery.getWhereExpr();
+            if (term instanceof InSubqueryOperator) {
+                Expression value =
+                    subquery.getSelectValues().get(0).getExpression();
+                joinExpr = PredicateUtils.makePredicate(joinExpr,
+                    new CompareOperator(CompareOperator.Type.EQUALS,
+                        ((InSubqueryOperator) term).getExpression(), value));
+            }
+
+            fromClause = new FromClause(fromClause, subquery.getFromClause(),
+                                        joinType);
+            fromClause.setConditionType(FromClause.JoinConditionType.JOIN_ON_EXPR);
+            fromClause.setOnExpression(joinExpr);
+
+            tableNames.addAll(subquery.getFromSchema().getTableNames());
+            decorrelated = true;
+        }
+
+        if (!decorrelated)
+            return false;
+
+        fromClause.computeSchema(storageManager.getTableManager());
+        selClause.setFromClause(fromClause);
+        selClause.setWhereExpr(PredicateUtils.makePredicate(remaining));
+
+        logger.debug("Decorrelated subqueries into from-clause " + fromClause);
+
+        return true;
+    }
+
+
+    /**
+     * This helper method returns true if an <tt>EXISTS</tt> or <tt>IN</tt>
+     * subquery can be rewritten into a join.  The subquery must be
+     * correlated only through its <tt>WHERE</tt> predicate, must not
+     * contain grouping, aggregates, limits or nested subqueries, and its
+     * table names must not clash with the names already being joined.  An
+     * <tt>IN</tt> subquery must simply select one of its own columns.
+     *
+     * @param sub the subquery operator to check
+     *
+     * @param tableNames the table names produced by the from-clause the
+     *        subquery would be joined with
+     *
+     * @return true if the subquery can be rewritten into a join
+     */
+    private static boolean canDecorrelate(SubqueryOperator sub,
+                                          Set<String> tableNames) {
+        SelectClause subquery = sub.getSubquery();
+        if (!subquery.isCorrelated() || subquery.getFromClause() == null ||
+            subquery.getWhereExpr() == null ||
+            !subquery.getGroupByExprs().isEmpty() ||
+            subquery.getHavingExpr() != null ||
+            subquery.getLimit() != 0 || subquery.getOffset() != 0 ||
+            SubqueryPlanner.hasNestedSubquery(subquery)) {
+            return false;
+        }
+
+        for (SelectValue sv : subquery.getSelectValues()) {
+            if (sv.isExpression() &&
+                ExpressionFinder.hasAggregate(sv.getExpression())) {
+                return false;
+            }
+        }
+
+        if (sub instanceof InSubqueryOperator) {
+            List<SelectValue> values = subquery.getSelectValues();
+            if (values.size() != 1 || !values.get(0).isExpression() ||
+                !(values.get(0).getExpression() instanceof ColumnValue) ||
+                ExpressionFinder.hasSubquery(
+                    ((InSubqueryOperator) sub).getExpression())) {
+                return false;
+            }
+
+            ColumnValue value = (ColumnValue) values.get(0).getExpression();
+            if (subquery.getCorrelatedColumns().contains(value.getColumnName()))
+                return false;
+        }
+
+        Set<String> subTableNames = subquery.getFromSchema().getTableNames();
+        for (String tableName : subTableNames) {
+            if (tableNames.contains(tableName))
+                return false;
+        }
+
+        return true;
+    }
+
+
+    /** Returns true if a from-clause is a semijoin or an antijoin. */
+    private static boolean isSemiOrAntiJoin(FromClause fromClause) {
+        return fromClause.getJoinType() == JoinType.SEMIJOIN ||
+               fromClause.getJoinType() == JoinType.ANTIJOIN;
+    }
+
+
+    /**
+     * If parallel scans are enabled, runs a plan that filters and projects a
+     * single heap-file scan on several workers, under a {@link GatherNode}.
+     * Otherwise the plan is returned unchanged.
+     *
+     * @param plan the plan to parallelize, which has been prepared
+     *
+     * @param enclosingSelects the enclosing queries, if the plan is for a
+     *        subquery; subqueries are never parallelized
+     *
+     * @return a prepared plan that produces the same results
+     */
+    private PlanNode parallelizeScan(PlanNode plan,
+        List<SelectClause> enclosingSelects) throws IOException {
+
+        if (!canRunInParallel(plan, enclosingSelects))
+            return plan;
+
+        GatherNode gather = new GatherNode(plan,
+            ExecutionProperties.getParallelism());
+        gather.prepare();
+        return gather;
+    }
+
+
+    /**
+     * Creates a hashed grouping/aggregate node over the specified input.  If
+     * the input can be run in parallel, and all aggregates can be computed
+     * from partial aggregates (<tt>COUNT</tt>, <tt>SUM</tt>, <tt>MIN</tt> and
+     * <tt>MAX</tt>), each worker aggregates its part of the input, and the
+     * returned node combines the workers' partial aggregates.
+     *
+     * @return the grouping/aggregate node, which has not been prepared
+     */
+    private HashedGroupAggregateNode makeAggregateNode(PlanNode input,
+        List<Expression> groupByExprs, Map<String, FunctionCall> aggregates,
+        List<SelectClause> enclosingSelects) throws IOException {
+
+        Map<String, FunctionCall> finalAggregates = null;
+        if (canRunInParallel(input, enclosingSelects))
+            finalAggregates = makeFinalAggregates(aggregates);
+
+        if (finalAggregates == null) {
+            return new HashedGroupAggregateNode(input, groupByExprs,
+                aggregates, storageManager);
+        }
+
+        HashedGroupAggregateNode partialNode = new HashedGroupAggregateNode(
+            input, groupByExprs, aggregates, storageManager);
+        GatherNode gather = new GatherNode(partialNode,
+            ExecutionProperties.getParallelism());
+        gather.prepare();
+
+        // The grouping expressions are bound to the input schema, so the
+        // final aggregate needs its own copies.
+        ArrayList<Expression> finalGroupByExprs = new ArrayList<>();
+        for (Expression expr : groupByExprs)
+            finalGroupByExprs.add(expr.duplicate());
+
+        return new HashedGroupAggregateNode(gather, finalGroupByExprs,
+            finalAggregates, storageManager);
+    }
+
+
+    /**
+     * Returns the aggregates that combine the partial results of the
+     * specified aggregates, each computed over the partial aggregate's
+     * column, or {@code null} if some aggregate can't be combined this way.
+     */
+    private static Map<String, FunctionCall> makeFinalAggregates(
+        Map<String, FunctionCall> aggregates) {
+
+        LinkedHashMap<String, FunctionCall> finalAggregates =
+            new LinkedHashMap<>();
+
+        for (Map.Entry<String, FunctionCall> entry : aggregates.entrySet()) {
+            String name = entry.getKey();
+            Function fn = entry.getValue().getFunction();
+
+            String finalFunction;
+            if (fn instanceof CountStar ||
+                fn instanceof CountAggregate && !((CountAggregate) fn).isDistinct()) {
+                finalFunction = "SUM";
+            }
+            else if (fn instanceof SumAvgAggregate &&
+                     !((SumAvgAggregate) fn).isDistinct() &&
+                     !((SumAvgAggregate) fn).computesAverage()) {
+                finalFunction = "SUM";
+            }
+            else if (fn instanceof MinMaxAggregate) {
+                finalFunction = ((MinMaxAggregate) fn).isMinimum() ? "MIN" : "MAX";
+            }
+            else {
+                return null;
+            }
+
+            finalAggregates.put(name, new FunctionCall(finalFunction, false,
+                new ColumnValue(new ColumnName(name))));
+        }
+
+        return finalAggregates;
+    }
+
+
+    /**
+     * Returns true if parallel scans are enabled and the plan is a chain of
+     * filters and projections without subqueries over a heap-file scan large
+     * enough to be worth splitting up.
+     */
+    private static boolean canRunInParallel(PlanNode plan,
+        List<SelectClause> enclosingSelects) throws IOException {
+
+        if (ExecutionProperties.getParallelism() < 2 || enclosingSelects != null)
+            return false;
+
+        PlanNode node = plan;
+        while (node instanceof SimpleFilterNode || node instanceof ProjectNode) {
+            if (node instanceof SimpleFilterNode) {
+                Expression pred = ((SimpleFilterNode) node).predicate;
+                if (ExpressionFinder.hasSubquery(pred))
+                    return false;
+            }
+            else {
+                for (SelectValue sv : ((ProjectNode) node).getProjectionSpec()) {
+                    if (sv.isExpression() &&
+                        ExpressionFinder.hasSubquery(sv.getExpression())) {
+                        return false;
+                    }
+                }
+            }
+            node = node.getLeftChild();
+        }
+
+        if (!(node instanceof FileScanNode))
+            return false;
+
+        FileScanNode scan = (FileScanNode) node;
+        if (!scan.isParallelScannable() ||
+            ExpressionFinder.hasSubquery(scan.predicate)) {
+            return false;
+        }
+
+        // Small tables aren't worth starting workers for.
+        return scan.getNumPages() > 2 * GatherNode.MORSEL_PAGES;
+    }
+
+
+    /**
+     * This helper method returns a plan that produces the results of the
+     * specified plan in ascending order on the specified columns.  If the
+     * plan's results are already in this order (and the plan supports
+     * marking, if necessary), the plan itself is returned; otherwise a
+     * {@link SortNode} is added above the plan.
+     *
+     * @param plan the plan whose results must be sorted, which has been
+     *        prepared
+     *
+     * @param columns the columns to sort the results on
+     *
+     * @param needsMarking true if the returned plan must support marking
+     *
+     * @return a prepared plan that produces the sorted results
+     */
+    private PlanNode makeSortedInput(PlanNode plan, List<Expression> columns,
+                                     boolean needsMarking) {
+        if (PlanUtils.isOrderedBy(plan, columns) &&
+            (!needsMarking || plan.supportsMarking())) {
+            return plan;
+        }
+
+        ArrayList<OrderByExpression> orderSpec = new ArrayList<>();
+        for (Expression column : columns)
+            orderSpec.add(new OrderByExpression(column));
+
+        PlanNode sortNode = new SortNode(plan, orderSpec, storageManager);
+        sortNode.prepare();
+        return sortNode;
+    }
+
+
     /**
      * Constructs a simple select plan that reads directly from a table, with
      * an optional predicate for selecting rows.
@@ -0,0 +1,318 @@
+package edu.caltech.nanodb.queryeval;
+
+
+import org.apache.log4j.Logger;
+
+import edu.caltech.nanodb.expressions.TypeCastException;
+import edu.caltech.nanodb.expressions.TypeConverter;
+import edu.caltech.nanodb.server.properties.PropertyHandler;
+import edu.caltech.nanodb.server.properties.ReadOnlyPropertyException;
+import edu.caltech.nanodb.server.properties.UnrecognizedPropertyException;
+
+
+/**
+ * This class holds properties that control how query plans are executed,
+ * such as how much memory plan nodes may use before they must spill
+ * intermediate results to disk.
+ */
+public class ExecutionProperties {
+
+    /** A logging object for reporting anything interesting that happens. */
+    private static Logger logger = Logger.getLogger(ExecutionProperties.class);
+
+
+    /**
+     * This property specifies the maximum amount of memory, in bytes, that a
+     * single memory-intensive plan node (such as a hash join) may use for its
+     * in-memory data structures.  When this limit is exceeded, the plan node
+     * spills some of its data to temporary files.
+     */
+    public static final String PROP_WORK_MEM = "nanodb.exec.workmem";
+
+
+    /** The default amount of working memory for a plan node is 4MB. */
+    public static final long DEFAULT_WORK_MEM = 4 * 1024 * 1024;
+
+
+    /**
+     * The smallest amount of working memory a plan node may be configured
+     * to use.
+     */
+    public static final long MIN_WORK_MEM = 64 * 1024;
+
+
+    /**
+     * This property specifies whether plan nodes compile their predicates
+     * and projection expressions with the
+     * {@link edu.caltech.nanodb.expressions.ExpressionCompiler}, or evaluate
+     * them with the expression interpreter.  Turning compilation off is
+     * mainly useful for comparing the two.
+     */
+    public static final String PROP_COMPILE_EXPRESSIONS =
+        "nanodb.exec.compileExpressions";
+
+
+    /** By default, expressions are compiled. */
+    public static final boolean DEFAULT_COMPILE_EXPRESSIONS = true;
+
+
+    /**
+     * This property specifies whether <tt>SELECT</tt> queries are executed
+     * a batch of tuples at a time, using
+     * {@link edu.caltech.nanodb.plannodes.PlanNode#getNextBatch}, or a
+     * single tuple at a time.
+     */
+    public static final String PROP_VECTORIZED = "nanodb.exec.vectorized";
+
+
+    /** By default, queries are executed a batch of tuples at a time. */
+    public static final boolean DEFAULT_VECTORIZED = true;
+
+
+    /**
+     * This property specifies how many worker threads may scan a heap file
+     * in parallel.  Each worker claims ranges of the file's pages and runs
+     * its own copy of the scan's filters, projections and partial
+     * aggregates, and a
+     * {@link edu.caltech.nanodb.plannodes.GatherNode} collects the workers'
+     * results.  A value of 1 turns parallel scans off.
+     */
+    public static final String PROP_PARALLELISM = "nanodb.exec.parallelism";
+
+
+    /** By default, tables are scanned by a single thread. */
+    public static final int DEFAULT_PARALLELISM = 1;
+
+
+    /** The largest number of workers a parallel scan may use. */
+    public static final int MAX_PARALLELISM = 64;
+
+
+    public static class ExecutionPropertyHandler implements PropertyHandler {
+
+        @Override
+        public Object getPropertyValue(String propertyName)
+                throws UnrecognizedPropertyException {
+
+            if (PROP_WORK_MEM.equals(propertyName)) {
+                return getWorkMemSize();
+            }
+            else if (PROP_COMPILE_EXPRESSIONS.equals(propertyName)) {
+                return isExpressionCompilationEnabled();
+            }
+            else if (PROP_VECTORIZED.equals(propertyName)) {
+                return isVectorizedExecutionEnabled();
+            }
+            else if (PROP_PARALLELISM.equals(propertyName)) {
+                return getParallelism();
+            }
+            else {
+                throw new UnrecognizedPropertyException("No property named " +
+                        propertyName);
+            }
+        }
+
+        @Override
+        public void setPropertyValue(String propertyName, Object value)
+                throws UnrecognizedPropertyException, ReadOnlyPropertyException,
+                TypeCastException {
+
+            if (PROP_WORK_MEM.equals(propertyName)) {
+                setWorkMemSize(TypeConverter.getLongValue(value));
+            }
+            else if (PROP_COMPILE_EXPRESSIONS.equals(propertyName)) {
+                setExpressionCompilationEnabled(
+                    TypeConverter.getBooleanValue(value));
+            }
+            else if (PROP_VECTORIZED.equals(propertyName)) {
+                setVectorizedExecutionEnabled(
+                    TypeConverter.getBooleanValue(value));
+            }
+            else if (PROP_PARALLELISM.equals(propertyName)) {
+                setParallelism(TypeConverter.getIntegerValue(value));
+            }
+            else {
+                throw new UnrecognizedPropertyException("No property named " +
+                        propertyName);
+            }
+        }
+    }
+
+
+    private ExecutionProperties() {
+        throw new UnsupportedOperationException(
+            "This class should not be instantiated.");
+    }
+
+
+    /**
+     * Returns the maximum amount of memory, in bytes, that a single
+     * memory-intensive plan node may use.  If the property is unset or
+     * invalid then {@link #DEFAULT_WORK_MEM} is returned.
+     *
+     * @return the working-memory size for plan nodes, in bytes
+     */
+    public static long getWorkMemSize() {
+        String str = System.getProperty(PROP_WORK_MEM);
+        if (str == null)
+            return DEFAULT_WORK_MEM;
+
+        try {
+            long size = Long.parseLong(str.trim());
+            if (size >= MIN_WORK_MEM)
+                return size;
+        }
+        catch (NumberFormatException e) {
+            // Fall through to the warning below.
+        }
+
+        logger.warn(String.format("Invalid value \"%s\" for %s; using " +
+            "default value of %d.", str, PROP_WORK_MEM, DEFAULT_WORK_MEM));
+
+        return DEFAULT_WORK_MEM;
+    }
+
+
+    /**
+     * Sets the maximum amount of memory, in bytes, that a single
+     * memory-intensive plan node may use.
+     *
+     * @param size the working-memory size for plan nodes, in bytes
+     *
+     * @throws IllegalArgumentException if the size is less than
+     *         {@link #MIN_WORK_MEM}
+     */
+    public static void setWorkMemSize(long size) {
+        if (size < MIN_WORK_MEM) {
+            throw new IllegalArgumentException(PROP_WORK_MEM +
+                " must be at least " + MIN_WORK_MEM + ", got " + size);
+        }
+
+        System.setProperty(PROP_WORK_MEM, Long.toString(size));
+    }
+
+
+    /**
+     * Returns true if plan nodes should compile their expressions, or false
+     * if they should use the expression interpreter.  If the property is
+     * unset or invalid then {@link #DEFAULT_COMPILE_EXPRESSIONS} is returned.
+     *
+     * @return true if expressions should be compiled
+     */
+    public static boolean isExpressionCompilationEnabled() {
+        String str = System.getProperty(PROP_COMPILE_EXPRESSIONS);
+        if (str == null)
+            return DEFAULT_COMPILE_EXPRESSIONS;
+
+        str = str.trim();
+        if ("true".equalsIgnoreCase(str))
+            return true;
+        else if ("false".equalsIgnoreCase(str))
+            return false;
+
+        logger.warn(String.format("Invalid value \"%s\" for %s; using " +
+            "default value of %s.", str, PROP_COMPILE_EXPRESSIONS,
+            DEFAULT_COMPILE_EXPRESSIONS));
+
+        return DEFAULT_COMPILE_EXPRESSIONS;
+    }
+
+
+    /**
+     * Sets whether plan nodes should compile their expressions.  The
+     * setting applies to plans that are prepared after it is changed.
+     *
+     * @param enabled true if expressions should be compiled, or false if
+     *        they should be interpreted
+     */
+    public static void setExpressionCompilationEnabled(boolean enabled) {
+        System.setProperty(PROP_COMPILE_EXPRESSIONS, Boolean.toString(enabled));
+    }
+
+
+    /**
+     * Returns true if <tt>SELECT</tt> queries should be executed a batch of
+     * tuples at a time.  If the property is unset or invalid then
+     * {@link #DEFAULT_VECTORIZED} is returned.
+     *
+     * @return true if queries should be executed in batches
+     */
+    public static boolean isVectorizedExecutionEnabled() {
+        String str = System.getProperty(PROP_VECTORIZED);
+        if (str == null)
+            return DEFAULT_VECTORIZED;
+
+        str = str.trim();
+        if ("true".equalsIgnoreCase(str))
+            return true;
+        else if ("false".equalsIgnoreCase(str))
+            return false;
+
+        logger.warn(String.format("Invalid value \"%s\" for %s; using " +
+            "default value of %s.", str, PROP_VECTORIZED, DEFAULT_VECTORIZED));
+
+        return DEFAULT_VECTORIZED;
+    }
+
+
+    /**
+     * Sets whether <tt>SELECT</tt> queries should be executed a batch of
+     * tuples at a time.
+     *
+     * @param enabled true if queries should be executed in batches, or false
+     *        if they should be executed a tuple at a time
+     */
+    public static void setVectorizedExecutionEnabled(boolean enabled) {
+        System.setProperty(PROP_VECTORIZED, Boolean.toString(enabled));
+    }
+
+
+    /**
+     * Returns the number of worker threads that may scan a table in
+     * parallel.  If the property is unset or invalid then
+     * {@link #DEFAULT_PARALLELISM} is returned.
+     *
+     * @return the number of workers for parallel scans, or 1 if parallel
+     *         scans are turned off
+     */
+    public static int getParallelism() {
+        String str = System.getProperty(PROP_PARALLELISM);
+        if (str == null)
+            return DEFAULT_PARALLELISM;
+
+        try {
+            int parallelism = Integer.parseInt(str.trim());
+            if (parallelism >= 1 && parallelism <= MAX_PARALLELISM)
+                return parallelism;
+        }
+        catch (NumberFormatException e) {
+            // Fall through to the warning below.
+        }
+
+        logger.warn(String.format("Invalid value \"%s\" for %s; using " +
+            "default value of %d.", str, PROP_PARALLELISM, DEFAULT_PARALLELISM));
+
+        return DEFAULT_PARALLELISM;
+    }
+
+
+    /**
+     * Sets the number of worker threads that may scan a table in parallel.
+     * The setting applies to plans that are created after it is changed.
+     *
+     * @param parallelism the number of workers for parallel scans, or 1 to
+     *        turn parallel scans off
+     *
+     * @throws IllegalArgumentException if the value is less than 1 or
+     *         greater than {@link #MAX_PARALLELISM}
+     */
+    public static void setParallelism(int parallelism) {
+        if (parallelism < 1 || parallelism > MAX_PARALLELISM) {
+            throw new IllegalArgumentException(PROP_PARALLELISM +
+                " must be between 1 and " + MAX_PARALLELISM + ", got " +
+                parallelism);
+        }
+
+        System.setProperty(PROP_PARALLELISM, Integer.toString(parallelism));
+    }
+}
@@ -0,0 +1,87 @@
+package edu.caltech.nanodb.queryeval;
+
+
+import edu.caltech.nanodb.expressions.Expression;
+import edu.caltech.nanodb.expressions.ExpressionProcessor;
+import edu.caltech.nanodb.expressions.FunctionCall;
+import edu.caltech.nanodb.expressions.SubqueryOperator;
+import edu.caltech.nanodb.functions.AggregateFunction;
+
+
+/**
+ * This expression processor reports whether an expression contains a node
+ * of interest to the planners, such as a subquery or an aggregate function.
+ * Subclasses specify which nodes they are looking for by implementing
+ * {@link #matches}.
+ */
+abstract class ExpressionFinder implements ExpressionProcessor {
+
+    /** True if a matching node has been found. */
+    private boolean found;
+
+
+    /**
+     * Returns true if the specified expression node is one that this finder
+     * is looking for.
+     *
+     * @param e the expression node to check
+     *
+     * @return true if the node matches
+     */
+    protected abstract boolean matches(Expression e);
+
+
+    /**
+     * Returns true if the specified expression contains a matching node.
+     *
+     * @param expr the expression to search; this may be {@code null}
+     *
+     * @return true if the expression contains a matching node
+     */
+    public boolean findIn(Expression expr) {
+        found = false;
+        if (expr != null)
+            expr.traverse(this);
+
+        return found;
+    }
+
+
+    public void enter(Expression e) {
+        if (matches(e))
+            found = true;
+    }
+
+
+    /**
+     * This method is a no-op for this expression processor.
+     *
+     * @param e the expression node being left
+     *
+     * @return the passed-in expression {@code e}.
+     */
+    public Expression leave(Expression e) {
+        return e;
+    }
+
+
+    /** Returns true if an expression contains a subquery. */
+    static boolean hasSubquery(Expression expr) {
+        return new ExpressionFinder() {
+            protected boolean matches(Expression e) {
+                return e instanceof SubqueryOperator;
+            }
+        }.findIn(expr);
+    }
+
+
+    /** Returns true if an expression contains an aggregate function. */
+    static boolean hasAggregate(Expression expr) {
+        return new ExpressionFinder() {
+            protected boolean matches(Expression e) {
+                return e instanceof FunctionCall &&
+                    ((FunctionCall) e).getFunction() instanceof AggregateFunction;
+            }
+        }.findIn(expr);
+    }
+}
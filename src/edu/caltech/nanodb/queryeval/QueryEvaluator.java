@@ -5,6 +5,7 @@ import edu.caltech.nanodb.plannodes.PlanNode;
 
 import edu.caltech.nanodb.relations.Schema;
 import edu.caltech.nanodb.relations.Tuple;
+import edu.caltech.nanodb.relations.TupleBatch;
 
 
 public class QueryEvaluator {
@@ -24,6 +25,33 @@ public class QueryEvaluator {
      */
     public static EvalStats executePlan(PlanNode plan, TupleProcessor processor)
         throws Exception {
+        return executePlan(plan, processor, false);
+    }
+
+
+    /**
+     * Executes the specified query plan, and feeds the results to the specified
+     * tuple processor.  The plan may be executed a batch of tuples at a time;
+     * the tuples passed to the processor are then only valid until the
+     * processor returns, so this should only be done if the processor copies
+     * any tuples it keeps, and doesn't need the tuples to be backed by a
+     * tuple file.
+     *
+     * @param plan the query plan to execute
+     *
+     * @param processor the tuple-processor to receive the results
+     *
+     * @param useBatches true if the plan should be executed using
+     *        {@link PlanNode#getNextBatch}, or false if it should be executed
+     *        a tuple at a time
+     *
+     * @return An object containing statistics about the plan evaluation.
+     *
+     * @throws Exception if an error occurs during query evaluation or during
+     *         tuple-processing.
+     */
+    public static EvalStats executePlan(PlanNode plan, TupleProcessor processor,
+                                        boolean useBatches) throws Exception {
 
         // Execute the plan, and record some basic statistics as we go.
 
@@ -36,19 +64,31 @@ public class QueryEvaluator {
 
         int rowsProduced = 0;
         try {
-            Tuple tuple;
-            while (true) {
-                // Get the next tuple.  If there aren't anymore, we're done!
-                tuple = plan.getNextTuple();
-                if (tuple == null)
-                    break;
-
-                rowsProduced++;
-
-                // Do whatever we're supposed to do with the tuple.
-                processor.process(tuple);
-                if (tuple.isPinned()) {
-                    tuple.unpin();
+            if (useBatches) {
+                TupleBatch batch;
+                while ((batch = plan.getNextBatch()) != null) {
+                    rowsProduced += batch.size();
+
+                    // Do whatever we're supposed to do with each tuple.
+                    for (int row = 0; row < batch.size(); row++)
+                        processor.process(batch.getTuple(row));
+                }
+            }
+            else {
+                Tuple tuple;
+                while (true) {
+                    // Get the next tuple.  If there aren't anymore, we're done!
+                    tuple = plan.getNextTuple();
+                    if (tuple == null)
+                        break;
+
+                    rowsProduced++;
+
+                    // Do whatever we're supposed to do with the tuple.
+                    processor.process(tuple);
+                    if (tuple.isPinned()) {
+                        tuple.unpin();
+                    }
                 }
             }
         }
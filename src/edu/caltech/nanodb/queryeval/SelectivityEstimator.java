@@ -316,6 +316,9 @@ public class SelectivityEstimator {
 
         // Pull out the critical values for making the estimates.
         int colIndex = exprSchema.getColumnIndex(columnValue.getColumnName());
+        if (colIndex == -1)
+            return selectivity;  // A column of an enclosing query.
+
         ColumnInfo colInfo = exprSchema.getColumnInfo(colIndex);
         SQLDataType sqlType = colInfo.getType().getBaseType();
         ColumnStats colStats = stats.get(colIndex);
@@ -432,6 +435,10 @@ public class SelectivityEstimator {
         int colOneIndex = exprSchema.getColumnIndex(columnOne.getColumnName());
         int colTwoIndex = exprSchema.getColumnIndex(columnTwo.getColumnName());
 
+        // A column of an enclosing query (in a correlated subquery) isn't in
+        // the schema, so nothing is known about its values.
+        if (colOneIndex == -1 || colTwoIndex == -1)
+            return selectivity;
 
         ColumnStats colOneStats = stats.get(colOneIndex);
         ColumnStats colTwoStats = stats.get(colTwoIndex);
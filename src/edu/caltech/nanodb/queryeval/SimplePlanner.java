@@ -248,18 +248,13 @@ public class SimplePlanner extends AbstractPlannerImpl {
         if (fromClause == null) {
             ProjectNode projNode = new ProjectNode(selClause.getSelectValues());
             projNode.prepare();
-            return projNode;
+            return makeOrderByLimitPlan(projNode, selClause);
         }
         else if (fromClause.getClauseType() == FromClause.ClauseType.JOIN_EXPR){
             PlanNode joinNode = makeJoinPlan(fromClause);
             if (!selClause.isTrivialProject()) {
                 if (selClause.getWhereExpr() == null){
-                    if (!selClause.getOrderByExprs().isEmpty()){
-                        SortNode orderByNode = new SortNode(joinNode, selClause.getOrderByExprs());
-                        orderByNode.prepare();
-                        return orderByNode;
-                    }
-                    return joinNode;
+                    return makeOrderByLimitPlan(joinNode, selClause);
                 }
                 SimpleFilterNode whereNode = new SimpleFilterNode(joinNode,
                         selClause.getWhereExpr());
@@ -270,10 +265,10 @@ public class SimplePlanner extends AbstractPlannerImpl {
                     if (processor.getAggFunct() == null){
                         HashMap<String, FunctionCall> empty_agg = new HashMap<String, FunctionCall>();
                         aggregateNode = new HashedGroupAggregateNode(whereNode,
-                                selClause.getGroupByExprs(),empty_agg);
+                                selClause.getGroupByExprs(),empty_agg,storageManager);
                     } else {
                         aggregateNode = new HashedGroupAggregateNode(whereNode,
-                                selClause.getGroupByExprs(),processor.getAggFunct());
+                                selClause.getGroupByExprs(),processor.getAggFunct(),storageManager);
                     }
                     aggregateNode.prepare();
                     if(selClause.getHavingExpr() != null) {
@@ -288,20 +283,10 @@ public class SimplePlanner extends AbstractPlannerImpl {
                     projNode = new ProjectNode(whereNode, selClause.getSelectValues());
                 }
                 projNode.prepare();
-                if (!selClause.getOrderByExprs().isEmpty()){
-                    SortNode orderByNode = new SortNode(projNode, selClause.getOrderByExprs());
-                    orderByNode.prepare();
-                    return orderByNode;
-                }
-                return projNode;
+                return makeOrderByLimitPlan(projNode, selClause);
             } else {
                 if (selClause.getWhereExpr() == null){
-                    if (!selClause.getOrderByExprs().isEmpty()){
-                        SortNode orderByNode = new SortNode(joinNode, selClause.getOrderByExprs());
-                        orderByNode.prepare();
-                        return orderByNode;
-                    }
-                    return joinNode;
+                    return makeOrderByLimitPlan(joinNode, selClause);
                 }
                 SimpleFilterNode whereNode = new SimpleFilterNode(joinNode,
                         selClause.getWhereExpr());
@@ -311,35 +296,20 @@ public class SimplePlanner extends AbstractPlannerImpl {
                     if (processor.getAggFunct() == null){
                         HashMap<String, FunctionCall> empty_agg = new HashMap<String, FunctionCall>();
                         aggregateNode = new HashedGroupAggregateNode(whereNode,
-                                selClause.getGroupByExprs(),empty_agg);
+                                selClause.getGroupByExprs(),empty_agg,storageManager);
                     } else {
                         aggregateNode = new HashedGroupAggregateNode(whereNode,
-                                selClause.getGroupByExprs(),processor.getAggFunct());
+                                selClause.getGroupByExprs(),processor.getAggFunct(),storageManager);
                     }
                     aggregateNode.prepare();
                     if (selClause.getHavingExpr() != null) {
                         SimpleFilterNode havingNode = new SimpleFilterNode(aggregateNode, selClause.getHavingExpr());
                         havingNode.prepare();
-                        if (!selClause.getOrderByExprs().isEmpty()){
-                            SortNode orderByNode = new SortNode(havingNode, selClause.getOrderByExprs());
-                            orderByNode.prepare();
-                            return orderByNode;
-                        }
-                        return havingNode;
+                        return makeOrderByLimitPlan(havingNode, selClause);
                 }
-                    if (!selClause.getOrderByExprs().isEmpty()){
-                        SortNode orderByNode = new SortNode(aggregateNode, selClause.getOrderByExprs());
-                        orderByNode.prepare();
-                        return orderByNode;
-                    }
-                    return aggregateNode;
-                }
-                if (!selClause.getOrderByExprs().isEmpty()){
-                    SortNode orderByNode = new SortNode(whereNode, selClause.getOrderByExprs());
-                    orderByNode.prepare();
-                    return orderByNode;
+                    return makeOrderByLimitPlan(aggregateNode, selClause);
                 }
-                return whereNode;
+                return makeOrderByLimitPlan(whereNode, selClause);
             }
         }
 
@@ -358,10 +328,10 @@ public class SimplePlanner extends AbstractPlannerImpl {
                         if (processor.getAggFunct() == null){
                             HashMap<String, FunctionCall> empty_agg = new HashMap<String, FunctionCall>();
                             aggregateNode = new HashedGroupAggregateNode(renameNode,
-                                    selClause.getGroupByExprs(),empty_agg);
+                                    selClause.getGroupByExprs(),empty_agg,storageManager);
                         } else {
                             aggregateNode = new HashedGroupAggregateNode(renameNode,
-                                    selClause.getGroupByExprs(),processor.getAggFunct());
+                                    selClause.getGroupByExprs(),processor.getAggFunct(),storageManager);
                         }
                         aggregateNode.prepare();
                         if(selClause.getHavingExpr() != null) {
@@ -382,10 +352,10 @@ public class SimplePlanner extends AbstractPlannerImpl {
                         if (processor.getAggFunct() == null){
                             HashMap<String, FunctionCall> empty_agg = new HashMap<String, FunctionCall>();
                             aggregateNode = new HashedGroupAggregateNode(fileScanNode,
-                                    selClause.getGroupByExprs(),empty_agg);
+                                    selClause.getGroupByExprs(),empty_agg,storageManager);
                         } else {
                             aggregateNode = new HashedGroupAggregateNode(fileScanNode,
-                                    selClause.getGroupByExprs(),processor.getAggFunct());
+                                    selClause.getGroupByExprs(),processor.getAggFunct(),storageManager);
                         }
                         aggregateNode.prepare();
                         if (selClause.getHavingExpr() != null) {
@@ -401,12 +371,7 @@ public class SimplePlanner extends AbstractPlannerImpl {
                     }
                 }
                 projNode.prepare();
-                if (!selClause.getOrderByExprs().isEmpty()){
-                    SortNode orderByNode = new SortNode(projNode, selClause.getOrderByExprs());
-                    orderByNode.prepare();
-                    return orderByNode;
-                }
-                return projNode;
+                return makeOrderByLimitPlan(projNode, selClause);
             } else {
                 SelectNode selectNode = makeSimpleSelect(fromClause.getTableName(),
                         selClause.getWhereExpr(), null);
@@ -415,35 +380,20 @@ public class SimplePlanner extends AbstractPlannerImpl {
                     if (processor.getAggFunct() == null){
                         HashMap<String, FunctionCall> empty_agg = new HashMap<String, FunctionCall>();
                         aggregateNode = new HashedGroupAggregateNode(selectNode,
-                                selClause.getGroupByExprs(),empty_agg);
+                                selClause.getGroupByExprs(),empty_agg,storageManager);
                     } else {
                         aggregateNode = new HashedGroupAggregateNode(selectNode,
-                                selClause.getGroupByExprs(),processor.getAggFunct());
+                                selClause.getGroupByExprs(),processor.getAggFunct(),storageManager);
                     }
                     aggregateNode.prepare();
                     if(selClause.getHavingExpr() != null) {
                         SimpleFilterNode havingNode = new SimpleFilterNode(aggregateNode, selClause.getHavingExpr());
                         havingNode.prepare();
-                        if (!selClause.getOrderByExprs().isEmpty()){
-                            SortNode orderByNode = new SortNode(havingNode, selClause.getOrderByExprs());
-                            orderByNode.prepare();
-                            return orderByNode;
-                        }
-                        return havingNode;
-                    }
-                    if (!selClause.getOrderByExprs().isEmpty()){
-                        SortNode orderByNode = new SortNode(aggregateNode, selClause.getOrderByExprs());
-                        orderByNode.prepare();
-                        return orderByNode;
+                        return makeOrderByLimitPlan(havingNode, selClause);
                     }
-                    return aggregateNode;
+                    return makeOrderByLimitPlan(aggregateNode, selClause);
                 }
-                if (!selClause.getOrderByExprs().isEmpty()){
-                    SortNode orderByNode = new SortNode(selectNode, selClause.getOrderByExprs());
-                    orderByNode.prepare();
-                    return orderByNode;
-                }
-                return selectNode;
+                return makeOrderByLimitPlan(selectNode, selClause);
             }
         }
         if (fromClause != null && fromClause.getSelectClause() != null){
@@ -464,10 +414,10 @@ public class SimplePlanner extends AbstractPlannerImpl {
                         if (processor.getAggFunct() == null){
                             HashMap<String, FunctionCall> empty_agg = new HashMap<String, FunctionCall>();
                             aggregateNode = new HashedGroupAggregateNode(whereNode,
-                                    selClause.getGroupByExprs(),empty_agg);
+                                    selClause.getGroupByExprs(),empty_agg,storageManager);
                         } else {
                             aggregateNode = new HashedGroupAggregateNode(whereNode,
-                                    selClause.getGroupByExprs(),processor.getAggFunct());
+                                    selClause.getGroupByExprs(),processor.getAggFunct(),storageManager);
                         }
                         aggregateNode.prepare();
                         if(selClause.getHavingExpr() != null) {
@@ -483,49 +433,28 @@ public class SimplePlanner extends AbstractPlannerImpl {
                         projNode = new ProjectNode(whereNode, selClause.getSelectValues());
                     }
                     projNode.prepare();
-                    if (!selClause.getOrderByExprs().isEmpty()){
-                        SortNode orderByNode = new SortNode(projNode, selClause.getOrderByExprs());
-                        orderByNode.prepare();
-                        return orderByNode;
-                    }
-                    return projNode;
+                    return makeOrderByLimitPlan(projNode, selClause);
                 } else {
                     if (processor.getAggFunct() != null || !selClause.getGroupByExprs().isEmpty()) {
                         HashedGroupAggregateNode aggregateNode;
                         if (processor.getAggFunct() == null) {
                             HashMap<String, FunctionCall> empty_agg = new HashMap<String, FunctionCall>();
                             aggregateNode = new HashedGroupAggregateNode(whereNode,
-                                    selClause.getGroupByExprs(), empty_agg);
+                                    selClause.getGroupByExprs(), empty_agg, storageManager);
                         } else {
                             aggregateNode = new HashedGroupAggregateNode(whereNode,
-                                    selClause.getGroupByExprs(), processor.getAggFunct());
+                                    selClause.getGroupByExprs(), processor.getAggFunct(), storageManager);
                         }
                         aggregateNode.prepare();
                         if (selClause.getHavingExpr() != null) {
                             SimpleFilterNode havingNode = new SimpleFilterNode(aggregateNode,
                                     selClause.getHavingExpr());
                             havingNode.prepare();
-                            if (!selClause.getOrderByExprs().isEmpty()) {
-                                SortNode orderByNode = new SortNode(havingNode, selClause.getOrderByExprs());
-                                orderByNode.prepare();
-                                return orderByNode;
-                            }
-
-                            return havingNode;
+                            return makeOrderByLimitPlan(havingNode, selClause);
                         }
-                        if (!selClause.getOrderByExprs().isEmpty()) {
-                            SortNode orderByNode = new SortNode(aggregateNode, selClause.getOrderByExprs());
-                            orderByNode.prepare();
-                            return orderByNode;
-                        }
-                        return aggregateNode;
-                    }
-                    if (!selClause.getOrderByExprs().isEmpty()) {
-                        SortNode orderByNode = new SortNode(whereNode, selClause.getOrderByExprs());
-                        orderByNode.prepare();
-                        return orderByNode;
+                        return makeOrderByLimitPlan(aggregateNode, selClause);
                     }
-                    return whereNode;
+                    return makeOrderByLimitPlan(whereNode, selClause);
                     }
                 } else {
                 if (!selClause.isTrivialProject()) {
@@ -535,10 +464,10 @@ public class SimplePlanner extends AbstractPlannerImpl {
                         if (processor.getAggFunct() == null){
                             HashMap<String, FunctionCall> empty_agg = new HashMap<String, FunctionCall>();
                             aggregateNode = new HashedGroupAggregateNode(fromSelNode,
-                                    selClause.getGroupByExprs(),empty_agg);
+                                    selClause.getGroupByExprs(),empty_agg,storageManager);
                         } else {
                             aggregateNode = new HashedGroupAggregateNode(fromSelNode,
-                                    selClause.getGroupByExprs(),processor.getAggFunct());
+                                    selClause.getGroupByExprs(),processor.getAggFunct(),storageManager);
                         }
                         aggregateNode.prepare();
                         if(selClause.getHavingExpr() != null) {
@@ -554,49 +483,28 @@ public class SimplePlanner extends AbstractPlannerImpl {
                         projNode = new ProjectNode(fromSelNode, selClause.getSelectValues());
                     }
                     projNode.prepare();
-                    if (!selClause.getOrderByExprs().isEmpty()){
-                        SortNode orderByNode = new SortNode(projNode, selClause.getOrderByExprs());
-                        orderByNode.prepare();
-                        return orderByNode;
-                    }
-                    return projNode;
+                    return makeOrderByLimitPlan(projNode, selClause);
                 } else {
                     if (processor.getAggFunct() != null || !selClause.getGroupByExprs().isEmpty()) {
                         HashedGroupAggregateNode aggregateNode;
                         if (processor.getAggFunct() == null) {
                             HashMap<String, FunctionCall> empty_agg = new HashMap<String, FunctionCall>();
                             aggregateNode = new HashedGroupAggregateNode(fromSelNode,
-                                    selClause.getGroupByExprs(), empty_agg);
+                                    selClause.getGroupByExprs(), empty_agg, storageManager);
                         } else {
                             aggregateNode = new HashedGroupAggregateNode(fromSelNode,
-                                    selClause.getGroupByExprs(), processor.getAggFunct());
+                                    selClause.getGroupByExprs(), processor.getAggFunct(), storageManager);
                         }
                         aggregateNode.prepare();
                         if (selClause.getHavingExpr() != null) {
                             SimpleFilterNode havingNode = new SimpleFilterNode(aggregateNode,
                                     selClause.getHavingExpr());
                             havingNode.prepare();
-                            if (!selClause.getOrderByExprs().isEmpty()) {
-                                SortNode orderByNode = new SortNode(havingNode, selClause.getOrderByExprs());
-                                orderByNode.prepare();
-                                return orderByNode;
-                            }
-
-                            return havingNode;
+                            return makeOrderByLimitPlan(havingNode, selClause);
                         }
-                        if (!selClause.getOrderByExprs().isEmpty()) {
-                            SortNode orderByNode = new SortNode(aggregateNode, selClause.getOrderByExprs());
-                            orderByNode.prepare();
-                            return orderByNode;
-                        }
-                        return aggregateNode;
-                    }
-                    if (!selClause.getOrderByExprs().isEmpty()) {
-                        SortNode orderByNode = new SortNode(fromSelNode, selClause.getOrderByExprs());
-                        orderByNode.prepare();
-                        return orderByNode;
+                        return makeOrderByLimitPlan(aggregateNode, selClause);
                     }
-                    return fromSelNode;
+                    return makeOrderByLimitPlan(fromSelNode, selClause);
                 }
             }
         }
@@ -60,43 +60,6 @@ public class SubqueryPlanner {
     }
 
 
-    public static class DecorrelationExpressionProcessor implements ExpressionProcessor {
-        /* This is the set of the names of correlated columns within the entire WHERE
-         * expression being processed. These values are ignored in this processor. */
-        private Set<ColumnName> correlatedNames;
-
-        /* The name of the base table of the subquery being decorrelated */
-        private String tableName;
-
-        public void enter(Expression e){};
-
-
-        public void setCorrelatedColumnsSet (Set<ColumnName> columnsSet){
-            correlatedNames = columnsSet;
-        }
-
-        public void setTableName (String inputTableName){
-            tableName = inputTableName;
-        }
-
-        public Expression leave(Expression e) {
-            // This function never changes the node that is traversed.
-            if (e instanceof ColumnValue){
-                ColumnValue colV = (ColumnValue) e;
-                String prevName = colV.getColumnName().getColumnName();
-                // Adds tableName to columnValue object's columnName value, to avoid
-                // errors from an uninitialized table name.
-                if (!correlatedNames.contains(colV.getColumnName())){
-                    ColumnName colN = new ColumnName(tableName, prevName);
-                    colV.setColumnName(colN);
-                }
-                Expression finalExp = colV;
-                return finalExp;
-            }
-            return e;
-        }
-    }
-
     /**
      * Since ExpressionProcessor cannot call planSubqueryOperatorExpression,
      * we store the expressions in this list and process later, inside the
@@ -165,6 +128,7 @@ public class SubqueryPlanner {
             subqueryNode.addParentEnvironmentToPlanTree(subqueryEnvironment);
             subqueryNode.prepare();
             sub.setSubqueryPlan(subqueryNode);
+            enableResultCache(sub);
         }
         if (e instanceof InSubqueryOperator){
             InSubqueryOperator sub = (InSubqueryOperator) e;
@@ -173,6 +137,7 @@ public class SubqueryPlanner {
             subqueryNode.addParentEnvironmentToPlanTree(subqueryEnvironment);
             subqueryNode.prepare();
             sub.setSubqueryPlan(subqueryNode);
+            enableResultCache(sub);
         }
         if (e instanceof ExistsOperator){
             ExistsOperator sub = (ExistsOperator) e;
@@ -181,10 +146,56 @@ public class SubqueryPlanner {
             subqueryNode.addParentEnvironmentToPlanTree(subqueryEnvironment);
             subqueryNode.prepare();
             sub.setSubqueryPlan(subqueryNode);
+            enableResultCache(sub);
         }
 
     }
 
+    /**
+     * Enables the result cache of a subquery operator, if the subquery's
+     * results only depend on the values of the columns it is correlated
+     * with.  Subqueries that contain subqueries of their own are not cached,
+     * since the nested subqueries may refer to further columns of the
+     * enclosing queries.
+     *
+     * @param sub the subquery operator, whose subquery has been planned
+     */
+    private void enableResultCache(SubqueryOperator sub) {
+        SelectClause subquery = sub.getSubquery();
+        if (!hasNestedSubquery(subquery))
+            sub.enableResultCache(subquery.getCorrelatedColumns());
+    }
+
+
+    /** Returns true if any clause of a query contains a subquery. */
+    static boolean hasNestedSubquery(SelectClause selClause) {
+        for (SelectValue sv : selClause.getSelectValues()) {
+            if (sv.isExpression() &&
+                ExpressionFinder.hasSubquery(sv.getExpression())) {
+                return true;
+            }
+        }
+
+        return ExpressionFinder.hasSubquery(selClause.getWhereExpr()) ||
+            ExpressionFinder.hasSubquery(selClause.getHavingExpr()) ||
+            hasNestedSubquery(selClause.getFromClause());
+    }
+
+
+    /** Returns true if a from-clause contains a subquery. */
+    private static boolean hasNestedSubquery(FromClause fromClause) {
+        if (fromClause == null || fromClause.isBaseTable())
+            return false;
+
+        if (fromClause.isDerivedTable())
+            return hasNestedSubquery(fromClause.getSelectClause());
+
+        return ExpressionFinder.hasSubquery(fromClause.getOnExpression()) ||
+            hasNestedSubquery(fromClause.getLeftChild()) ||
+            hasNestedSubquery(fromClause.getRightChild());
+    }
+
+
     /**
      * Processes an expression and plans all subqueries.
      *
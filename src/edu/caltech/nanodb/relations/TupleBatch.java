@@ -0,0 +1,634 @@
+package edu.caltech.nanodb.relations;
+
+
+import java.util.Arrays;
+
+import edu.caltech.nanodb.storage.FilePointer;
+import edu.caltech.nanodb.storage.PageTuple;
+
+
+/**
+ * <p>
+ * This class holds a batch of tuples in columnar form, so that plan nodes
+ * can process many tuples at a time with tight loops over the values of
+ * each column, instead of producing and consuming one tuple at a time.
+ * Each column of the batch is stored in a {@link ColumnVector}.  Columns of
+ * type <tt>INTEGER</tt>, <tt>BIGINT</tt> and <tt>DOUBLE</tt> are stored in
+ * arrays of primitive values, with a separate array of <tt>NULL</tt> flags;
+ * all other columns are stored as arrays of objects.
+ * </p>
+ * <p>
+ * A primitive column vector only holds values of the corresponding Java
+ * type.  If a value of some other type is stored into the column (for
+ * example, because an expression's result type was estimated incorrectly),
+ * the column is converted into an object vector, so that a batch always
+ * reproduces exactly the values that were stored into it.
+ * </p>
+ * <p>
+ * The rows of a batch are numbered from 0 to {@link #size} - 1.  The
+ * {@link #getTuple} method returns a view of a single row that implements
+ * the {@link Tuple} interface, so that batches can be consumed by code that
+ * processes individual tuples.
+ * </p>
+ */
+public class TupleBatch {
+
+    /** The default number of rows that a batch can hold. */
+    public static final int DEFAULT_CAPACITY = 1024;
+
+
+    /**
+     * This is the base class of the column vectors that store the values of
+     * one column of a batch.
+     */
+    public abstract static class ColumnVector {
+        /** A flag for each row, recording whether its value is NULL. */
+        public final boolean[] nulls;
+
+        protected ColumnVector(int capacity) {
+            nulls = new boolean[capacity];
+        }
+
+        /** Returns true if the value in the specified row is NULL. */
+        public boolean isNull(int row) {
+            return nulls[row];
+        }
+
+        /** Returns the value in the specified row as an object. */
+        public abstract Object get(int row);
+
+        /**
+         * Returns true if the vector can store the specified value without
+         * changing its type.
+         */
+        public abstract boolean accepts(Object value);
+
+        /**
+         * Stores a value into the specified row.  The value must be
+         * accepted by the vector.
+         */
+        public abstract void set(int row, Object value);
+
+        /** Copies the value in one row of the vector to another row. */
+        public abstract void copyRow(int fromRow, int toRow);
+
+        /**
+         * Copies the values in the first <tt>numRows</tt> rows of another
+         * vector of the same class into this vector.
+         */
+        public abstract void copyFrom(ColumnVector src, int numRows);
+    }
+
+
+    /** A column vector of <tt>int</tt> values. */
+    public static class IntVector extends ColumnVector {
+        public final int[] values;
+
+        public IntVector(int capacity) {
+            super(capacity);
+            values = new int[capacity];
+        }
+
+        @Override
+        public Object get(int row) {
+            return nulls[row] ? null : Integer.valueOf(values[row]);
+        }
+
+        @Override
+        public boolean accepts(Object value) {
+            return value == null || value instanceof Integer;
+        }
+
+        @Override
+        public void set(int row, Object value) {
+            nulls[row] = (value == null);
+            if (value != null)
+                values[row] = (Integer) value;
+        }
+
+        @Override
+        public void copyRow(int fromRow, int toRow) {
+            nulls[toRow] = nulls[fromRow];
+            values[toRow] = values[fromRow];
+        }
+
+        @Override
+        public void copyFrom(ColumnVector src, int numRows) {
+            System.arraycopy(src.nulls, 0, nulls, 0, numRows);
+            System.arraycopy(((IntVector) src).values, 0, values, 0, numRows);
+        }
+    }
+
+
+    /** A column vector of <tt>long</tt> values. */
+    public static class LongVector extends ColumnVector {
+        public final long[] values;
+
+        public LongVector(int capacity) {
+            super(capacity);
+            values = new long[capacity];
+        }
+
+        @Override
+        public Object get(int row) {
+            return nulls[row] ? null : Long.valueOf(values[row]);
+        }
+
+        @Override
+        public boolean accepts(Object value) {
+            return value == null || value instanceof Long;
+        }
+
+        @Override
+        public void set(int row, Object value) {
+            nulls[row] = (value == null);
+            if (value != null)
+                values[row] = (Long) value;
+        }
+
+        @Override
+        public void copyRow(int fromRow, int toRow) {
+            nulls[toRow] = nulls[fromRow];
+            values[toRow] = values[fromRow];
+        }
+
+        @Override
+        public void copyFrom(ColumnVector src, int numRows) {
+            System.arraycopy(src.nulls, 0, nulls, 0, numRows);
+            System.arraycopy(((LongVector) src).values, 0, values, 0, numRows);
+        }
+    }
+
+
+    /** A column vector of <tt>double</tt> values. */
+    public static class DoubleVector extends ColumnVector {
+        public final double[] values;
+
+        public DoubleVector(int capacity) {
+            super(capacity);
+            values = new double[capacity];
+        }
+
+        @Override
+        public Object get(int row) {
+            return nulls[row] ? null : Double.valueOf(values[row]);
+        }
+
+        @Override
+        public boolean accepts(Object value) {
+            return value == null || value instanceof Double;
+        }
+
+        @Override
+        public void set(int row, Object value) {
+            nulls[row] = (value == null);
+            if (value != null)
+                values[row] = (Double) value;
+        }
+
+        @Override
+        public void copyRow(int fromRow, int toRow) {
+            nulls[toRow] = nulls[fromRow];
+            values[toRow] = values[fromRow];
+        }
+
+        @Override
+        public void copyFrom(ColumnVector src, int numRows) {
+            System.arraycopy(src.nulls, 0, nulls, 0, numRows);
+            System.arraycopy(((DoubleVector) src).values, 0, values, 0,
+                numRows);
+        }
+    }
+
+
+    /** A column vector of arbitrary objects. */
+    public static class ObjectVector extends ColumnVector {
+        public final Object[] values;
+
+        public ObjectVector(int capacity) {
+            super(capacity);
+            values = new Object[capacity];
+        }
+
+        @Override
+        public Object get(int row) {
+            return values[row];
+        }
+
+        @Override
+        public boolean accepts(Object value) {
+            return true;
+        }
+
+        @Override
+        public void set(int row, Object value) {
+            nulls[row] = (value == null);
+            values[row] = value;
+        }
+
+        @Override
+        public void copyRow(int fromRow, int toRow) {
+            nulls[toRow] = nulls[fromRow];
+            values[toRow] = values[fromRow];
+        }
+
+        @Override
+        public void copyFrom(ColumnVector src, int numRows) {
+            System.arraycopy(src.nulls, 0, nulls, 0, numRows);
+            System.arraycopy(((ObjectVector) src).values, 0, values, 0,
+                numRows);
+        }
+    }
+
+
+    /**
+     * A view of one row of a batch, as a tuple.  The view reads its values
+     * from the batch, so it is only valid until the batch is changed.  It is
+     * not a {@link edu.caltech.nanodb.expressions.TupleLiteral}, so code that
+     * holds onto tuples will copy it.
+     */
+    private class Row implements Tuple {
+        private final int row;
+
+        Row(int row) {
+            this.row = row;
+        }
+
+        @Override
+        public boolean isDiskBacked() {
+            return false;
+        }
+
+        @Override
+        public int getColumnCount() {
+            return columns.length;
+        }
+
+        @Override
+        public boolean isNullValue(int colIndex) {
+            return columns[colIndex].isNull(row);
+        }
+
+        @Override
+        public Object getColumnValue(int colIndex) {
+            return columns[colIndex].get(row);
+        }
+
+        @Override
+        public void setColumnValue(int colIndex, Object value) {
+            setValue(row, colIndex, value);
+        }
+
+        @Override
+        public FilePointer getExternalReference() {
+            return null;
+        }
+
+        @Override
+        public void pin() {
+            // Rows of a batch are not disk-backed, so they aren't pinned.
+        }
+
+        @Override
+        public void unpin() {
+            // Rows of a batch are not disk-backed, so they aren't pinned.
+        }
+
+        @Override
+        public int getPinCount() {
+            return 0;
+        }
+
+        @Override
+        public boolean isPinned() {
+            return false;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder buf = new StringBuilder("BR[");
+            for (int i = 0; i < columns.length; i++) {
+                if (i > 0)
+                    buf.append(',');
+
+                Object value = getColumnValue(i);
+                buf.append(value != null ? value : "NULL");
+            }
+            buf.append(']');
+            return buf.toString();
+        }
+    }
+
+
+    /** The schema of the tuples in the batch. */
+    private Schema schema;
+
+
+    /** The column vectors that hold the batch's values. */
+    private ColumnVector[] columns;
+
+
+    /** The number of rows that the batch can hold. */
+    private int capacity;
+
+
+    /** The number of rows currently in the batch. */
+    private int size;
+
+
+    /**
+     * Constructs an empty batch with the default capacity.
+     *
+     * @param schema the schema of the tuples in the batch
+     */
+    public TupleBatch(Schema schema) {
+        this(schema, DEFAULT_CAPACITY);
+    }
+
+
+    /**
+     * Constructs an empty batch.
+     *
+     * @param schema the schema of the tuples in the batch
+     *
+     * @param capacity the number of rows the batch can hold
+     */
+    public TupleBatch(Schema schema, int capacity) {
+        if (schema == null)
+            throw new IllegalArgumentException("schema cannot be null");
+
+        if (capacity <= 0) {
+            throw new IllegalArgumentException(
+                "capacity must be positive, got " + capacity);
+        }
+
+        this.schema = schema;
+        this.capacity = capacity;
+
+        int numCols = schema.numColumns();
+        columns = new ColumnVector[numCols];
+        for (int i = 0; i < numCols; i++) {
+            switch (schema.getColumnInfo(i).getType().getBaseType()) {
+            case INTEGER:
+                columns[i] = new IntVector(capacity);
+                break;
+
+            case BIGINT:
+                columns[i] = new LongVector(capacity);
+                break;
+
+            case DOUBLE:
+                columns[i] = new DoubleVector(capacity);
+                break;
+
+            default:
+                columns[i] = new ObjectVector(capacity);
+            }
+        }
+    }
+
+
+    public Schema getSchema() {
+        return schema;
+    }
+
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+
+    /**
+     * Returns the number of rows in the batch.
+     *
+     * @return the number of rows in the batch
+     */
+    public int size() {
+        return size;
+    }
+
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+
+    public boolean isFull() {
+        return size == capacity;
+    }
+
+
+    /** Removes all rows from the batch. */
+    public void clear() {
+        // Release references to the objects in the batch.
+        for (ColumnVector column : columns) {
+            if (column instanceof ObjectVector)
+                Arrays.fill(((ObjectVector) column).values, 0, size, null);
+        }
+
+        size = 0;
+    }
+
+
+    /**
+     * Sets the number of rows in the batch.  If the batch grows, the caller
+     * must set every column of the new rows.
+     *
+     * @param size the new number of rows in the batch
+     */
+    public void setSize(int size) {
+        if (size < 0 || size > capacity) {
+            throw new IllegalArgumentException("size must be in range [0, " +
+                capacity + "], got " + size);
+        }
+
+        this.size = size;
+    }
+
+
+    /**
+     * Returns the number of columns in the batch.
+     *
+     * @return the number of columns in the batch
+     */
+    public int getColumnCount() {
+        return columns.length;
+    }
+
+
+    /**
+     * Returns the vector holding the values of the specified column.  Note
+     * that storing a value of an unexpected type into a column replaces its
+     * vector, so callers shouldn't hold onto a vector while storing values.
+     *
+     * @param colIndex the index of the column
+     *
+     * @return the vector holding the column's values
+     */
+    public ColumnVector getColumn(int colIndex) {
+        return columns[colIndex];
+    }
+
+
+    /**
+     * Adds a new row to the end of the batch, and returns its index.  The
+     * caller must set every column of the new row.
+     *
+     * @return the index of the new row
+     *
+     * @throws IllegalStateException if the batch is full
+     */
+    public int addRow() {
+        if (size == capacity)
+            throw new IllegalStateException("Batch is full");
+
+        return size++;
+    }
+
+
+    /**
+     * Adds a copy of the specified tuple to the end of the batch.  Values of
+     * primitive columns are read directly from {@link PageTuple}s, without
+     * creating an object for each value.
+     *
+     * @param tuple the tuple to add
+     *
+     * @throws IllegalStateException if the batch is full
+     */
+    public void addTuple(Tuple tuple) {
+        int row = addRow();
+
+        if (tuple instanceof PageTuple) {
+            PageTuple pageTuple = (PageTuple) tuple;
+            for (int i = 0; i < columns.length; i++) {
+                ColumnVector column = columns[i];
+                if (pageTuple.isNullValue(i)) {
+                    column.set(row, null);
+                }
+                else if (column instanceof IntVector) {
+                    column.nulls[row] = false;
+                    ((IntVector) column).values[row] =
+                        pageTuple.getIntColumnValue(i);
+                }
+                else if (column instanceof LongVector) {
+                    column.nulls[row] = false;
+                    ((LongVector) column).values[row] =
+                        pageTuple.getLongColumnValue(i);
+                }
+                else if (column instanceof DoubleVector) {
+                    column.nulls[row] = false;
+                    ((DoubleVector) column).values[row] =
+                        pageTuple.getDoubleColumnValue(i);
+                }
+                else {
+                    setValue(row, i, pageTuple.getColumnValue(i));
+                }
+            }
+        }
+        else {
+            for (int i = 0; i < columns.length; i++)
+                setValue(row, i, tuple.getColumnValue(i));
+        }
+    }
+
+
+    /**
+     * Stores a value into the specified row and column.  If the column's
+     * vector can't hold the value, it is converted into an object vector.
+     *
+     * @param row the index of the row
+     *
+     * @param colIndex the index of the column
+     *
+     * @param value the value to store
+     */
+    public void setValue(int row, int colIndex, Object value) {
+        ColumnVector column = columns[colIndex];
+        if (!column.accepts(value)) {
+            ObjectVector objColumn = new ObjectVector(capacity);
+            for (int i = 0; i < size; i++)
+                objColumn.set(i, column.get(i));
+
+            columns[colIndex] = objColumn;
+            column = objColumn;
+        }
+
+        column.set(row, value);
+    }
+
+
+    /**
+     * Copies the first {@link #size} rows of a column of another batch into
+     * a column of this batch.  This batch must have the same number of rows
+     * as the other batch.
+     *
+     * @param src the batch to copy the column from
+     *
+     * @param srcColIndex the index of the column to copy
+     *
+     * @param colIndex the index of the column to copy into
+     */
+    public void copyColumn(TupleBatch src, int srcColIndex, int colIndex) {
+        ColumnVector srcColumn = src.columns[srcColIndex];
+        if (srcColumn.getClass() == columns[colIndex].getClass()) {
+            columns[colIndex].copyFrom(srcColumn, size);
+        }
+        else {
+            for (int row = 0; row < size; row++)
+                setValue(row, colIndex, srcColumn.get(row));
+        }
+    }
+
+
+    /**
+     * Removes rows from the batch, keeping the rows before
+     * <tt>fromRow</tt>, and the rows from <tt>fromRow</tt> onward whose
+     * flags in <tt>keep</tt> are true.  The remaining rows keep their
+     * relative order.
+     *
+     * @param fromRow the first row that may be removed
+     *
+     * @param keep a flag for each row, indicating whether it is kept
+     */
+    public void retainRows(int fromRow, boolean[] keep) {
+        int dest = fromRow;
+        for (int row = fromRow; row < size; row++) {
+            if (!keep[row])
+                continue;
+
+            if (dest != row) {
+                for (ColumnVector column : columns)
+                    column.copyRow(row, dest);
+            }
+            dest++;
+        }
+
+        if (dest < size) {
+            // Release references to objects in the removed rows.
+            for (ColumnVector column : columns) {
+                if (column instanceof ObjectVector)
+                    Arrays.fill(((ObjectVector) column).values, dest, size, null);
+            }
+        }
+
+        size = dest;
+    }
+
+
+    /**
+     * Returns a view of the specified row as a tuple.  The view is only
+     * valid until the batch is changed.
+     *
+     * @param row the index of the row
+     *
+     * @return a view of the row
+     */
+    public Tuple getTuple(int row) {
+        if (row < 0 || row >= size) {
+            throw new IndexOutOfBoundsException("Row must be in range [0, " +
+                size + "), got " + row);
+        }
+
+        return new Row(row);
+    }
+}
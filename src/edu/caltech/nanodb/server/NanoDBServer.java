@@ -7,6 +7,7 @@ import java.util.ArrayList;
 import java.util.List;
 import java.io.File;
 
+import edu.caltech.nanodb.queryeval.ExecutionProperties;
 import edu.caltech.nanodb.queryeval.PlannerFactory;
 import edu.caltech.nanodb.server.properties.PropertyRegistry;
 import org.apache.log4j.Logger;
@@ -14,11 +15,16 @@ import org.apache.log4j.Logger;
 import antlr.RecognitionException;
 import antlr.TokenStreamException;
 
+import edu.caltech.nanodb.client.SessionState;
 import edu.caltech.nanodb.commands.Command;
 import edu.caltech.nanodb.commands.SelectCommand;
 import edu.caltech.nanodb.sqlparse.NanoSqlLexer;
 import edu.caltech.nanodb.sqlparse.NanoSqlParser;
 import edu.caltech.nanodb.storage.StorageManager;
+import edu.caltech.nanodb.transactions.DeadlockException;
+import edu.caltech.nanodb.transactions.TransactionException;
+import edu.caltech.nanodb.transactions.TransactionManager;
+import edu.caltech.nanodb.transactions.TransactionState;
 
 
 /**
@@ -73,6 +79,13 @@ public class NanoDBServer {
         propertyRegistry.registerProperties(
             new PlannerFactory.PlannerFactoryPropertyHandler(),
             PlannerFactory.PROP_PLANNER_CLASS);
+
+        propertyRegistry.registerProperties(
+            new ExecutionProperties.ExecutionPropertyHandler(),
+            ExecutionProperties.PROP_WORK_MEM,
+            ExecutionProperties.PROP_COMPILE_EXPRESSIONS,
+            ExecutionProperties.PROP_VECTORIZED,
+            ExecutionProperties.PROP_PARALLELISM);
     }
 
 
@@ -106,6 +119,13 @@ public class NanoDBServer {
         propertyRegistry.registerProperties(
             new PlannerFactory.PlannerFactoryPropertyHandler(),
             PlannerFactory.PROP_PLANNER_CLASS);
+
+        propertyRegistry.registerProperties(
+            new ExecutionProperties.ExecutionPropertyHandler(),
+            ExecutionProperties.PROP_WORK_MEM,
+            ExecutionProperties.PROP_COMPILE_EXPRESSIONS,
+            ExecutionProperties.PROP_VECTORIZED,
+            ExecutionProperties.PROP_PARALLELISM);
     }
 
 
@@ -195,6 +215,8 @@ public class NanoDBServer {
         catch (Exception e) {
             logger.error("Command threw an exception!", e);
             result.recordFailure(e);
+
+            rollbackFailedTransaction(e);
         }
         result.endExecution();
 
@@ -215,6 +237,47 @@ public class NanoDBServer {
     }
 
 
+    /**
+     * Rolls back the current session's transaction after a command fails, if
+     * the transaction was chosen as a deadlock victim, or if it was started
+     * automatically for the failed command.  Either way, the transaction's
+     * locks must be released so that other sessions aren't left waiting for
+     * them.  A transaction that the user started is otherwise left open, so
+     * that the user can decide whether to commit it.
+     *
+     * @param e the exception that the command failed with
+     */
+    private void rollbackFailedTransaction(Exception e) {
+        TransactionManager txnMgr = storageManager.getTransactionManager();
+        if (txnMgr == null)
+            return;
+
+        TransactionState txnState = SessionState.get().getTxnState();
+        if (!txnState.isTxnInProgress())
+            return;
+
+        boolean deadlock = false;
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (t instanceof DeadlockException) {
+                deadlock = true;
+                break;
+            }
+        }
+
+        if (!deadlock && txnState.getUserStartedTxn())
+            return;
+
+        logger.info("Rolling back transaction " +
+            txnState.getTransactionID() + " after the command failed.");
+        try {
+            txnMgr.rollbackTransaction();
+        }
+        catch (TransactionException te) {
+            logger.error("Couldn't roll back the failed transaction!", te);
+        }
+    }
+
+
     /**
      * This method encapsulates all of the operations necessary for cleanly
      * shutting down the NanoDB server.
@@ -42,12 +42,39 @@ public class PerformanceCounters {
     public static final String STORAGE_PAGES_WRITTEN = "storage.pagesWritten";
 
 
+    public static final String STORAGE_PAGES_PREFETCHED = "storage.pagesPrefetched";
+
+
     public static final String STORAGE_BYTES_READ = "storage.bytesRead";
 
 
     public static final String STORAGE_BYTES_WRITTEN = "storage.bytesWritten";
 
 
+    public static final String TXNS_GROUP_COMMITS = "txns.groupCommits";
+
+
+    public static final String TXNS_GROUP_COMMIT_BATCHES = "txns.groupCommitBatches";
+
+
+    public static final String TXNS_CHECKPOINTS = "txns.checkpoints";
+
+
+    public static final String WAL_FLUSHES = "wal.flushes";
+
+
+    public static final String WAL_BYTES_WRITTEN = "wal.bytesWritten";
+
+
+    public static final String LOCKS_ACQUIRED = "locks.acquired";
+
+
+    public static final String LOCK_WAITS = "locks.waits";
+
+
+    public static final String LOCK_DEADLOCKS = "locks.deadlocks";
+
+
     private static ConcurrentHashMap<String, AtomicLong> counters =
         new ConcurrentHashMap<>();
 
@@ -5,29 +5,55 @@ import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashMap;
+import java.util.Comparator;
 import java.util.HashSet;
 import java.util.Iterator;
-import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.log4j.Logger;
 
 import edu.caltech.nanodb.client.SessionState;
 
 import edu.caltech.nanodb.expressions.TypeCastException;
+import edu.caltech.nanodb.expressions.TypeConverter;
 
 import edu.caltech.nanodb.server.NanoDBServer;
 import edu.caltech.nanodb.server.properties.PropertyHandler;
 import edu.caltech.nanodb.server.properties.ReadOnlyPropertyException;
 import edu.caltech.nanodb.server.properties.UnrecognizedPropertyException;
 
+import edu.caltech.nanodb.storage.writeahead.LogSequenceNumber;
+
 
 /**
  * The buffer manager reduces the number of disk IO operations by managing an
  * in-memory cache of data pages.  It also imposes a limit on the maximum
  * amount of space that can be used for data pages in the database.
+ * <p>
+ * The buffer manager may be used concurrently by many client threads (e.g.
+ * from the {@link edu.caltech.nanodb.server.SharedServer}).  To keep lookups
+ * from serializing on a single lock, the page table is split into a number
+ * of independent stripes, each guarded by its own monitor.  A page is always
+ * mapped to the same stripe based on its file and page number, so lookups of
+ * different pages rarely contend with each other.  Pages are pinned while the
+ * stripe's monitor is held, so that an evicting thread (which also holds the
+ * monitor) can never reclaim a page that another thread has just looked up.
+ * <p>
+ * The buffers holding page data are recycled through a {@link FramePool}:
+ * when a page is evicted its buffer goes back into the pool, and the next
+ * page that is loaded reuses it, so a cache miss does not allocate memory
+ * once the cache has filled up.
+ * <p>
+ * A {@link PagePrefetcher} reads pages ahead of sequential scans into the
+ * cache on a background thread.  Since it reads pages without holding any
+ * stripe, the buffer manager counts the dirty pages it removes from the page
+ * table, so that a prefetched copy of a page is never added after a newer
+ * version of the page was evicted while the prefetcher was reading it.
  *
  * @todo Eventually add integrity checks, e.g. to make sure every cached
  *       page's file appears in the collection of cached files.
@@ -46,7 +72,15 @@ public class BufferManager {
 
     /**
      * The system property that can be used to specify the page replacement
-     * policy in the buffer manager.
+     * policy in the buffer manager.  The recognized values are
+     * <tt>"lru"</tt>, <tt>"fifo"</tt>, <tt>"clock"</tt> and <tt>"2q"</tt>.
+     * The CLOCK and 2Q policies are scan-resistant, so they are good choices
+     * when large sequential scans share the cache with frequently-used pages
+     * such as index inner pages.
+     *
+     * @see LinkedReplacementPolicy
+     * @see ClockReplacementPolicy
+     * @see TwoQueueReplacementPolicy
      */
     public static final String PROP_PAGECACHE_POLICY = "nanodb.pagecache.policy";
 
@@ -54,6 +88,29 @@ public class BufferManager {
     public static final String DEFAULT_PAGECACHE_POLICY = "lru";
 
 
+    /**
+     * The number of stripes that the page table is divided into.  This must
+     * be a power of two so that a page's stripe can be computed by masking
+     * its hash-code.
+     */
+    private static final int PAGE_TABLE_STRIPES = 16;
+
+
+    /**
+     * The number of times {@link #allocBuffer} will try to make room for a
+     * buffer before giving up.  More than one attempt may be needed when
+     * several threads are competing for the last space in the cache.
+     */
+    private static final int MAX_ALLOC_ATTEMPTS = 10;
+
+
+    /**
+     * The largest number of consecutive dirty pages that are written to a
+     * file with a single gathering write.
+     */
+    private static final int MAX_WRITE_RUN_PAGES = 64;
+
+
     private static class DBPageID {
         private File file;
 
@@ -141,6 +198,25 @@ public class BufferManager {
     }
 
 
+    /**
+     * One stripe of the page table.  Each stripe holds the cached pages whose
+     * {@link CachedPageInfo} hashes to the stripe, and all access to the
+     * stripe's collection must be performed while holding the stripe's
+     * monitor.
+     */
+    private static class PageTableStripe {
+        /**
+         * The pages cached in this stripe.  The replacement policy also
+         * decides the order in which the stripe's pages are evicted.
+         */
+        public PageReplacementPolicy<CachedPageInfo> pages;
+
+        public PageTableStripe(PageReplacementPolicy<CachedPageInfo> pages) {
+            this.pages = pages;
+        }
+    }
+
+
     private class BufferManagerPropertyHandler implements PropertyHandler {
 
         @Override
@@ -153,6 +229,9 @@ public class BufferManager {
             else if (PROP_PAGECACHE_POLICY.equals(propertyName)) {
                 return replacementPolicy;
             }
+            else if (PagePrefetcher.PROP_READAHEAD_PAGES.equals(propertyName)) {
+                return prefetcher.getReadAheadPages();
+            }
             else {
                 throw new UnrecognizedPropertyException("No property named " +
                         propertyName);
@@ -172,6 +251,10 @@ public class BufferManager {
                 throw new ReadOnlyPropertyException(propertyName +
                         " is read-only");
             }
+            else if (PagePrefetcher.PROP_READAHEAD_PAGES.equals(propertyName)) {
+                prefetcher.setReadAheadPages(
+                    TypeConverter.getIntegerValue(value));
+            }
             else {
                 throw new UnrecognizedPropertyException("No property named " +
                         propertyName);
@@ -184,6 +267,16 @@ public class BufferManager {
     private static Logger logger = Logger.getLogger(BufferManager.class);
 
 
+    /** Orders pages by their page number, for writing files sequentially. */
+    private static final Comparator<DBPage> PAGE_NUMBER_ORDER =
+        new Comparator<DBPage>() {
+            @Override
+            public int compare(DBPage p1, DBPage p2) {
+                return Integer.compare(p1.getPageNo(), p2.getPageNo());
+            }
+        };
+
+
     private FileManager fileManager;
 
 
@@ -194,15 +287,24 @@ public class BufferManager {
      * This collection holds the {@link DBFile} objects corresponding to various
      * opened files the database is currently using.
      */
-    private LinkedHashMap<String, DBFile> cachedFiles;
+    private ConcurrentHashMap<String, DBFile> cachedFiles;
 
 
     /**
      * This collection holds database pages (not WAL pages) that the database
      * is currently working with, so that they don't continually need to be
-     * reloaded.
+     * reloaded.  The pages are spread across {@link #PAGE_TABLE_STRIPES}
+     * independently-locked stripes.
      */
-    private LinkedHashMap<CachedPageInfo, DBPage> cachedPages;
+    private PageTableStripe[] pageTable;
+
+
+    /**
+     * The index of the next stripe that {@link #ensureSpaceAvailable} will
+     * try to evict pages from.  Eviction visits the stripes round-robin so
+     * that no single stripe is drained while others stay full.
+     */
+    private AtomicInteger nextEvictionStripe;
 
 
     /**
@@ -210,7 +312,7 @@ public class BufferManager {
      * session has pinned, so that we can forcibly unpin pages used by a
      * given session when the session is done with the current command.
      */
-    private HashMap<Integer, HashMap<DBPageID, SessionPinCount>> sessionPinCounts;
+    private ConcurrentHashMap<Integer, Map<DBPageID, SessionPinCount>> sessionPinCounts;
 
 
     /**
@@ -224,7 +326,16 @@ public class BufferManager {
 
 
     /** This field records how many bytes are currently cached, in total. */
-    private long totalBytesCached;
+    private AtomicLong totalBytesCached;
+
+
+    /**
+     * The free page frames, which are reused for new pages instead of
+     * allocating a new buffer for every page that is loaded.  Frames in the
+     * pool are not counted in {@link #totalBytesCached}, but the total of
+     * cached and free bytes is kept within {@link #maxCacheSize}.
+     */
+    private FramePool framePool;
 
 
     /** This field records the maximum allowed cache size. */
@@ -233,11 +344,32 @@ public class BufferManager {
 
     /**
      * A string indicating the buffer manager's page replacement policy.
-     * Currently it can be "lru" or "fifo".
+     * Currently it can be "lru", "fifo", "clock" or "2q".
      */
     private String replacementPolicy;
 
 
+    /** Reads pages ahead of sequential scans into the cache. */
+    private PagePrefetcher prefetcher;
+
+
+    /**
+     * The number of dirty pages that have been removed from the page table.
+     * This is only incremented while holding the stripe of the removed page.
+     *
+     * @see #getPrefetchStamp
+     */
+    private AtomicLong dirtyPagesRemoved;
+
+
+    /**
+     * The number of dirty pages that have been removed from the page table
+     * but have not been written out yet.  While this is nonzero, the file
+     * may hold an older version of a page than the one that was cached.
+     */
+    private AtomicInteger unwrittenPages;
+
+
     public BufferManager(NanoDBServer server, FileManager fileManager) {
         this.fileManager = fileManager;
 
@@ -245,21 +377,31 @@ public class BufferManager {
 
         configureMaxCacheSize();
 
-        cachedFiles = new LinkedHashMap<>();
+        cachedFiles = new ConcurrentHashMap<>();
 
         replacementPolicy = configureReplacementPolicy();
-        cachedPages = new LinkedHashMap<>(16, 0.75f, "lru".equals(replacementPolicy));
+        pageTable = new PageTableStripe[PAGE_TABLE_STRIPES];
+        for (int i = 0; i < pageTable.length; i++)
+            pageTable[i] = new PageTableStripe(createReplacementPolicy());
+
+        nextEvictionStripe = new AtomicInteger();
 
-        totalBytesCached = 0;
+        totalBytesCached = new AtomicLong();
+        framePool = new FramePool(maxCacheSize);
         allocatedBuffers = new HashSet<>();
 
-        sessionPinCounts = new HashMap<>();
+        sessionPinCounts = new ConcurrentHashMap<>();
+
+        dirtyPagesRemoved = new AtomicLong();
+        unwrittenPages = new AtomicInteger();
+        prefetcher = new PagePrefetcher(this, fileManager, maxCacheSize);
 
         if (server != null) {
             // Register properties that the Buffer Manager exposes.
             server.getPropertyRegistry().registerProperties(
                 new BufferManagerPropertyHandler(),
-                PROP_PAGECACHE_POLICY, PROP_PAGECACHE_SIZE);
+                PROP_PAGECACHE_POLICY, PROP_PAGECACHE_SIZE,
+                PagePrefetcher.PROP_READAHEAD_PAGES);
         }
     }
 
@@ -312,17 +454,69 @@ public class BufferManager {
 
         str = str.trim().toLowerCase();
 
-        if (!("lru".equals(str) || "fifo".equals(str))) {
+        if (!("lru".equals(str) || "fifo".equals(str) ||
+              "clock".equals(str) || "2q".equals(str))) {
             logger.error(String.format(
                 "Unrecognized value \"%s\" for page-cache replacement " +
                 "policy; using default value of LRU.",
                 System.getProperty(PROP_PAGECACHE_POLICY)));
+
+            str = DEFAULT_PAGECACHE_POLICY;
         }
 
         return str;
     }
 
 
+    /**
+     * Creates a new instance of the replacement policy specified by
+     * {@link #replacementPolicy}, for one stripe of the page table.
+     *
+     * @return a new replacement policy instance
+     */
+    private PageReplacementPolicy<CachedPageInfo> createReplacementPolicy() {
+        switch (replacementPolicy) {
+            case "clock":
+                return new ClockReplacementPolicy<>();
+
+            case "2q":
+                return new TwoQueueReplacementPolicy<>();
+
+            case "fifo":
+                return new LinkedReplacementPolicy<>(/* accessOrder */ false);
+
+            default:
+                return new LinkedReplacementPolicy<>(/* accessOrder */ true);
+        }
+    }
+
+
+    /**
+     * Returns the page-table stripe that the specified page is stored in.
+     *
+     * @param cpi the file and page number of the page
+     *
+     * @return the stripe that holds the page, if it is cached
+     */
+    private PageTableStripe getStripe(CachedPageInfo cpi) {
+        // Spread the hash bits a bit, since page numbers are sequential.
+        int h = cpi.hashCode();
+        h ^= (h >>> 16);
+        return pageTable[h & (PAGE_TABLE_STRIPES - 1)];
+    }
+
+
+    /**
+     * Returns the prefetcher that reads pages ahead of sequential scans into
+     * this buffer manager's cache.
+     *
+     * @return the prefetcher for this buffer manager
+     */
+    public PagePrefetcher getPrefetcher() {
+        return prefetcher;
+    }
+
+
     /**
      * Add another observer to the buffer manager.
      *
@@ -339,6 +533,8 @@ public class BufferManager {
     /**
      * This method attempts to allocate a buffer of the specified size,
      * possibly evicting some existing buffers in order to make space.
+     * Buffers are recycled from the Buffer Manager's pool of free frames
+     * whenever possible, so the returned buffer may contain arbitrary data.
      *
      * @param size the size of the buffer to allocate
      *
@@ -349,21 +545,31 @@ public class BufferManager {
      *         persistent storage.
      */
     public byte[] allocBuffer(int size) throws IOException {
-        if (size <= 0)
-            throw new IllegalArgumentException("size must be > 0, got " + size);
-
-        ensureSpaceAvailable(size);
+        // Reserve the space before allocating, so that concurrent callers
+        // can't both squeeze into the last bit of room in the cache.
+        reserveSpace(size);
+
+        // Normally the space we just made came from evicting pages, so there
+        // is a free frame we can reuse.  If not, the cache is still warming
+        // up or this is a new page size, so allocate a new frame; but first,
+        // discard free frames of other sizes if they would push the cache
+        // over its size limit.
+        byte[] buffer = framePool.take(size);
+        if (buffer == null) {
+            long excess = totalBytesCached.get() + framePool.getFreeBytes() -
+                maxCacheSize;
+            if (excess > 0)
+                framePool.trim(framePool.getFreeBytes() - excess, size);
 
-        if (totalBytesCached + size > maxCacheSize) {
-            throw new IllegalStateException(
-                "Not enough room to allocate a buffer of " + size + " bytes!");
+            try {
+                buffer = new byte[size];
+            }
+            catch (OutOfMemoryError e) {
+                totalBytesCached.addAndGet(-size);
+                throw e;
+            }
         }
 
-        // Perform the allocation so that we know the JVM also has space...
-        // Then update the total bytes in use by the buffer manager.
-        byte[] buffer = new byte[size];
-        totalBytesCached += size;
-
         // Record the identity of the buffer that we allocated, so that
         // releaseBuffer() can verify that it came from the buffer manager.
         // TODO:  System.identityHashCode() is not guaranteed to return a
@@ -375,6 +581,54 @@ public class BufferManager {
     }
 
 
+    /**
+     * This method reserves the specified amount of space in the cache without
+     * allocating a buffer, possibly evicting some existing pages in order to
+     * make space.  It is used for pages whose data is memory-mapped, so that
+     * they still count against the cache size.  The space is released with
+     * {@link #releaseSpace}.
+     *
+     * @param size the amount of space to reserve, in bytes
+     *
+     * @throws IOException if a dirty page must be evicted from the buffer
+     *         manager, and an IO error occurred while writing the page to
+     *         persistent storage.
+     */
+    public void reserveSpace(int size) throws IOException {
+        if (size <= 0)
+            throw new IllegalArgumentException("size must be > 0, got " + size);
+
+        // If another thread took the space we just made, try again a few
+        // times.
+        int attempts = 0;
+        while (true) {
+            ensureSpaceAvailable(size);
+
+            if (totalBytesCached.addAndGet(size) <= maxCacheSize)
+                break;
+
+            totalBytesCached.addAndGet(-size);
+            attempts++;
+            if (attempts == MAX_ALLOC_ATTEMPTS) {
+                throw new IllegalStateException("Not enough room to " +
+                    "allocate a buffer of " + size + " bytes!");
+            }
+
+            Thread.yield();
+        }
+    }
+
+
+    /**
+     * Releases space that was reserved with {@link #reserveSpace}.
+     *
+     * @param size the amount of space to release, in bytes
+     */
+    public void releaseSpace(int size) {
+        totalBytesCached.addAndGet(-size);
+    }
+
+
     public void releaseBuffer(byte[] buffer) {
         // Verify that this was a buffer we allocated?
         // TODO:  System.identityHashCode() is not guaranteed to return a
@@ -387,8 +641,10 @@ public class BufferManager {
         }
         */
 
-        // Record that the buffer's space is now available.
-        totalBytesCached -= buffer.length;
+        // Record that the buffer's space is now available, and keep the
+        // buffer around for reuse.
+        totalBytesCached.addAndGet(-buffer.length);
+        framePool.give(buffer);
     }
 
 
@@ -420,17 +676,16 @@ public class BufferManager {
             throw new IllegalArgumentException("dbFile cannot be null");
 
         String filename = dbFile.getDataFile().getName();
-        if (cachedFiles.containsKey(filename)) {
-            throw new IllegalStateException(
-                "File cache already contains file " + filename);
-        }
 
         // NOTE:  If we want to keep a cap on how many files are opened, we
         //        would do that here.
 
         logger.debug(String.format( "Adding file %s to file-cache.", filename));
 
-        cachedFiles.put(filename, dbFile);
+        if (cachedFiles.putIfAbsent(filename, dbFile) != null) {
+            throw new IllegalStateException(
+                "File cache already contains file " + filename);
+        }
     }
 
 
@@ -444,11 +699,13 @@ public class BufferManager {
     public void recordPagePinned(DBPage dbPage) {
         int sessionID = SessionState.get().getSessionID();
 
-        // Retrieve the set of pages pinned by the current session.
-        HashMap<DBPageID, SessionPinCount> pinnedBySession =
+        // Retrieve the set of pages pinned by the current session.  Only the
+        // session's own thread adds to this collection, but other threads
+        // may remove pages from it when they evict or invalidate pages.
+        Map<DBPageID, SessionPinCount> pinnedBySession =
             sessionPinCounts.get(sessionID);
         if (pinnedBySession == null) {
-            pinnedBySession = new HashMap<>();
+            pinnedBySession = new ConcurrentHashMap<>();
             sessionPinCounts.put(sessionID, pinnedBySession);
         }
 
@@ -475,7 +732,7 @@ public class BufferManager {
         int sessionID = SessionState.get().getSessionID();
 
         // Retrieve the set of pages pinned by the current session.
-        HashMap<DBPageID, SessionPinCount> pinnedBySession =
+        Map<DBPageID, SessionPinCount> pinnedBySession =
             sessionPinCounts.get(sessionID);
         if (pinnedBySession == null) {
             logger.error(String.format("DBPage %d is being unpinned by " +
@@ -519,7 +776,7 @@ public class BufferManager {
         int sessionID = SessionState.get().getSessionID();
 
         // Retrieve the set of pages pinned by the current session.
-        HashMap<DBPageID, SessionPinCount> pinnedBySession =
+        Map<DBPageID, SessionPinCount> pinnedBySession =
             sessionPinCounts.get(sessionID);
 
         if (pinnedBySession == null) {
@@ -559,9 +816,10 @@ public class BufferManager {
                 "it has a pin-count of %d", pageNo, dbPage.getPinCount()));
         }
 
-        for (int sessionID : sessionPinCounts.keySet()) {
-            HashMap<DBPageID, SessionPinCount> pinnedBySession =
-                sessionPinCounts.get(sessionID);
+        for (Map.Entry<Integer, Map<DBPageID, SessionPinCount>> entry :
+             sessionPinCounts.entrySet()) {
+            int sessionID = entry.getKey();
+            Map<DBPageID, SessionPinCount> pinnedBySession = entry.getValue();
 
             SessionPinCount spc = pinnedBySession.remove(pageID);
             if (spc != null) {
@@ -583,22 +841,48 @@ public class BufferManager {
      * @return the requested {@code DBPage}, or {@code null} if not found
      */
     public DBPage getPage(DBFile dbFile, int pageNo) {
-        DBPage dbPage = cachedPages.get(new CachedPageInfo(dbFile, pageNo));
+        CachedPageInfo cpi = new CachedPageInfo(dbFile, pageNo);
+        PageTableStripe stripe = getStripe(cpi);
+
+        DBPage dbPage;
+        synchronized (stripe) {
+            dbPage = stripe.pages.get(cpi, /* recordAccess */ true);
+            if (dbPage != null) {
+                // Make sure this page is pinned by the session so that we
+                // don't flush it until the session is done with it.  This
+                // must happen while we hold the stripe, so that an evicting
+                // thread can't reclaim the page before we pin it.
+                dbPage.pin();
+            }
+        }
 
         logger.debug(String.format(
             "Requested page [%s,%d] is%s in page-cache.",
             dbFile, pageNo, (dbPage != null ? "" : " NOT")));
 
-        if (dbPage != null) {
-            // Make sure this page is pinned by the session so that we don't
-            // flush it until the session is done with it.
-            dbPage.pin();
-        }
-
         return dbPage;
     }
 
 
+    /**
+     * Returns {@code true} if the specified page is currently buffered.  The
+     * page is not pinned, and its access isn't recorded with the replacement
+     * policy.
+     *
+     * @param dbFile the file containing the page
+     * @param pageNo the page number in the {@code DBFile}
+     * @return {@code true} if the page is buffered, {@code false} otherwise
+     */
+    public boolean containsPage(DBFile dbFile, int pageNo) {
+        CachedPageInfo cpi = new CachedPageInfo(dbFile, pageNo);
+        PageTableStripe stripe = getStripe(cpi);
+
+        synchronized (stripe) {
+            return stripe.pages.get(cpi, /* recordAccess */ false) != null;
+        }
+    }
+
+
     /**
      * <p>
      * Adds a new, previously unbuffered {@code DBPage} to the Buffer Manager.
@@ -615,6 +899,28 @@ public class BufferManager {
      *         Manager.
      */
     public void addPage(DBPage dbPage) throws IOException {
+        if (addPageIfAbsent(dbPage) != null) {
+            throw new IllegalStateException(String.format(
+                "Page cache already contains page [%s,%d]",
+                dbPage.getDBFile(), dbPage.getPageNo()));
+        }
+    }
+
+
+    /**
+     * Adds a new {@code DBPage} to the Buffer Manager, unless another thread
+     * has already added a page for the same file and page number.  This
+     * allows several threads that miss on the same page at the same time to
+     * agree on a single copy of the page.
+     *
+     * @param dbPage the page to add to the Buffer Manager
+     *
+     * @return {@code null} if {@code dbPage} was added to the Buffer Manager
+     *         (in which case it is pinned), or the page that was already
+     *         cached (in which case that page is pinned instead, and the
+     *         caller should invalidate {@code dbPage}).
+     */
+    public DBPage addPageIfAbsent(DBPage dbPage) {
         if (dbPage == null)
             throw new IllegalArgumentException("dbPage cannot be null");
 
@@ -622,20 +928,80 @@ public class BufferManager {
         int pageNo = dbPage.getPageNo();
 
         CachedPageInfo cpi = new CachedPageInfo(dbFile, pageNo);
-        if (cachedPages.containsKey(cpi)) {
-            throw new IllegalStateException(String.format(
-                "Page cache already contains page [%s,%d]", dbFile, pageNo));
+        PageTableStripe stripe = getStripe(cpi);
+
+        synchronized (stripe) {
+            DBPage existing = stripe.pages.get(cpi, /* recordAccess */ true);
+            if (existing != null) {
+                existing.pin();
+                return existing;
+            }
+
+            logger.debug(String.format("Adding page [%s,%d] to page-cache.",
+                dbFile, pageNo));
+
+            // Make sure this page is pinned by the session so that we don't
+            // flush it until the session is done with it.  We do that before
+            // adding it to the cached-pages collection, so that another
+            // thread can't reclaim the page out from under us.
+            dbPage.pin();
+            stripe.pages.put(cpi, dbPage);
         }
 
-        logger.debug(String.format("Adding page [%s,%d] to page-cache.",
-            dbFile, pageNo));
+        return null;
+    }
+
 
-        // Make sure this page is pinned by the session so that we don't flush
-        // it until the session is done with it.  We do that before adding it
-        // to the cached-pages collection, so that another thread can't
-        // reclaim the page out from under us.
-        dbPage.pin();
-        cachedPages.put(cpi, dbPage);
+    /**
+     * Returns a stamp that must be taken before prefetched pages are read
+     * from disk, and then passed to {@link #addPrefetchedPage}.  If a dirty
+     * page is evicted after the stamp is taken, the page may have been
+     * written out after it was read, so the prefetched copy could be stale.
+     *
+     * @return the stamp to pass to {@link #addPrefetchedPage}, or -1 if dirty
+     *         pages are currently being written out, in which case nothing
+     *         should be prefetched
+     */
+    public long getPrefetchStamp() {
+        // The stamp must be read before the unwritten-page count, since a
+        // page is counted as unwritten before it is counted as removed.
+        long stamp = dirtyPagesRemoved.get();
+        if (unwrittenPages.get() > 0)
+            return -1;
+
+        return stamp;
+    }
+
+
+    /**
+     * Adds a page that was read ahead of a scan to the Buffer Manager,
+     * unless the page is already cached or a dirty page has been evicted
+     * since the page's data was read.  Unlike {@link #addPageIfAbsent}, the
+     * page is not pinned, since no session is using it yet.
+     *
+     * @param dbPage the prefetched page
+     *
+     * @param stamp the value of {@link #getPrefetchStamp} from before the
+     *        page's data was read
+     *
+     * @return {@code true} if the page was added, or {@code false} if the
+     *         caller should invalidate the page
+     */
+    public boolean addPrefetchedPage(DBPage dbPage, long stamp) {
+        CachedPageInfo cpi =
+            new CachedPageInfo(dbPage.getDBFile(), dbPage.getPageNo());
+        PageTableStripe stripe = getStripe(cpi);
+
+        synchronized (stripe) {
+            if (dirtyPagesRemoved.get() != stamp ||
+                stripe.pages.get(cpi, /* recordAccess */ false) != null) {
+                return false;
+            }
+
+            stripe.pages.put(cpi, dbPage);
+        }
+
+        return true;
     }
 
 
@@ -643,6 +1009,15 @@ public class BufferManager {
      * This helper function ensures that the buffer manager has the specified
      * amount of space available.  This is done by removing pages out of the
      * buffer manager's cache
+     * <p>
+     * Eviction proceeds in two phases.  Clean, unpinned pages are removed
+     * from the page table and invalidated immediately.  Dirty, unpinned pages
+     * are left in the page table while they are written out (so that another
+     * thread that needs one of them will find it rather than reading a stale
+     * version from disk), and are only removed afterward if nobody pinned or
+     * dirtied them in the meantime.  No stripe is locked while pages are being
+     * written, since writing may require the WAL to be forced, which will
+     * itself use the buffer manager.
      *
      * @param bytesRequired the amount of space that should be made available
      *        in the cache, in bytes
@@ -652,55 +1027,113 @@ public class BufferManager {
      */
     private void ensureSpaceAvailable(int bytesRequired) throws IOException {
         // If we already have enough space, return without doing anything.
-        if (bytesRequired + totalBytesCached <= maxCacheSize)
+        if (bytesRequired + totalBytesCached.get() <= maxCacheSize)
             return;
 
         // We don't currently have enough space in the cache.  Try to solve
-        // this problem by evicting pages.  We collect together the pages to
-        // evict, so that we can update the write-ahead log before flushing
-        // the pages.
+        // this problem by evicting pages.  We collect together the dirty
+        // pages to evict, so that we can update the write-ahead log before
+        // flushing the pages.
 
         ArrayList<DBPage> dirtyPages = new ArrayList<>();
+        long dirtyBytes = 0;
+
+        for (int i = 0; i < PAGE_TABLE_STRIPES &&
+             bytesRequired + totalBytesCached.get() - dirtyBytes > maxCacheSize;
+             i++) {
+
+            int stripeNo = nextEvictionStripe.getAndIncrement() &
+                (PAGE_TABLE_STRIPES - 1);
+            PageTableStripe stripe = pageTable[stripeNo];
+
+            synchronized (stripe) {
+                Iterator<Map.Entry<CachedPageInfo, DBPage>> entries =
+                    stripe.pages.evictionCandidates();
+
+                while (entries.hasNext() && bytesRequired +
+                       totalBytesCached.get() - dirtyBytes > maxCacheSize) {
+                    Map.Entry<CachedPageInfo, DBPage> entry = entries.next();
+
+                    DBPage oldPage = entry.getValue();
+
+                    if (oldPage.isPinned())  // Can't flush pages that are in use.
+                        continue;
+
+                    // If the page is dirty, we need to write its data to disk
+                    // before invalidating it.  Otherwise, just invalidate it.
+                    // Dirty pages are pinned while they are written, so that
+                    // another thread making space doesn't also choose them,
+                    // and invalidate them while we are writing them.
+                    if (oldPage.isDirty()) {
+                        logger.debug(String.format("    Evicted page [%s,%d] " +
+                            "is dirty; must save to disk.", oldPage.getDBFile(),
+                            oldPage.getPageNo()));
+                        oldPage.pin();
+                        dirtyPages.add(oldPage);
+                        dirtyBytes += oldPage.getPageSize();
+                    }
+                    else {
+                        logger.debug(String.format(
+                            "    Evicting page [%s,%d] from page-cache to make room.",
+                            oldPage.getDBFile(), oldPage.getPageNo()));
+
+                        entries.remove();
+                        oldPage.invalidate();
+                    }
+                }
+            }
+        }
 
-        if (!cachedPages.isEmpty()) {
-            // The cache will be too large after adding this page.
-
-            Iterator<Map.Entry<CachedPageInfo, DBPage>> entries =
-                cachedPages.entrySet().iterator();
+        if (!dirtyPages.isEmpty()) {
+            // If we have any dirty data pages, they need to be flushed to
+            // disk.  Then, remove any of them that are still evictable.
+            try {
+                writePinnedPages(dirtyPages);
+            }
+            finally {
+                for (DBPage oldPage : dirtyPages)
+                    oldPage.unpin();
+            }
 
-            while (entries.hasNext() &&
-                bytesRequired + totalBytesCached > maxCacheSize) {
-                Map.Entry<CachedPageInfo, DBPage> entry = entries.next();
+            for (DBPage oldPage : dirtyPages)
+                evictWrittenPage(oldPage);
+        }
 
-                DBPage oldPage = entry.getValue();
+        if (bytesRequired + totalBytesCached.get() > maxCacheSize)
+            logger.warn("Buffer manager is currently using too much space.");
+    }
 
-                if (oldPage.isPinned())  // Can't flush pages that are in use.
-                    continue;
 
-                logger.debug(String.format(
-                    "    Evicting page [%s,%d] from page-cache to make room.",
-                    oldPage.getDBFile(), oldPage.getPageNo()));
+    /**
+     * This helper method removes a page that was just written out by
+     * {@link #ensureSpaceAvailable}, as long as no other thread has pinned or
+     * modified it since it was chosen for eviction.
+     *
+     * @param oldPage the page to evict
+     */
+    private void evictWrittenPage(DBPage oldPage) {
+        DBFile dbFile = oldPage.getDBFile();
+        if (dbFile == null)  // Already invalidated by someone else.
+            return;
 
-                entries.remove();
-                totalBytesCached -= oldPage.getPageSize();
+        CachedPageInfo cpi = new CachedPageInfo(dbFile, oldPage.getPageNo());
+        PageTableStripe stripe = getStripe(cpi);
 
-                // If the page is dirty, we need to write its data to disk before
-                // invalidating it.  Otherwise, just invalidate it.
-                if (oldPage.isDirty()) {
-                    logger.debug("    Evicted page is dirty; must save to disk.");
-                    dirtyPages.add(oldPage);
-                }
-                else {
-                    oldPage.invalidate();
-                }
+        synchronized (stripe) {
+            if (stripe.pages.get(cpi, /* recordAccess */ false) != oldPage ||
+                oldPage.isPinned() ||
+                oldPage.isDirty()) {
+                return;
             }
-        }
 
-        // If we have any dirty data pages, they need to be flushed to disk.
-        writeDirtyPages(dirtyPages, /* invalidate */ true);
+            logger.debug(String.format(
+                "    Evicting page [%s,%d] from page-cache to make room.",
+                dbFile, oldPage.getPageNo()));
 
-        if (bytesRequired + totalBytesCached > maxCacheSize)
-            logger.warn("Buffer manager is currently using too much space.");
+            stripe.pages.remove(cpi);
+            dirtyPagesRemoved.incrementAndGet();
+            oldPage.invalidate();
+        }
     }
 
 
@@ -718,29 +1151,224 @@ public class BufferManager {
     private void writeDirtyPages(List<DBPage> dirtyPages, boolean invalidate)
         throws IOException {
 
-        if (!dirtyPages.isEmpty()) {
-            // Pass the observers a read-only version of the pages so they
-            // can't change things.
-            List<DBPage> readOnlyPages =
-                Collections.unmodifiableList(dirtyPages);
+        writePages(dirtyPages);
+
+        for (DBPage dbPage : dirtyPages) {
+            dbPage.setDirty(false);
+
+            if (invalidate)
+                dbPage.invalidate();
+        }
+    }
 
-            for (BufferManagerObserver obs : observers)
-                obs.beforeWriteDirtyPages(readOnlyPages);
 
-            // Finally, we can write out each dirty page.
-            for (DBPage dbPage : dirtyPages) {
-                fileManager.savePage(dbPage.getDBFile(), dbPage.getPageNo(),
-                                     dbPage.getPageData());
+    /**
+     * This helper method writes out dirty pages that are still in the page
+     * table, and that the caller has pinned once each.  Other sessions may
+     * pin and change these pages while they are being written, so a page is
+     * only marked clean if nobody else has it pinned afterward, and no
+     * change to it was logged while it was being written.  Otherwise the
+     * page stays dirty, so that its old data and recovery LSN are kept for
+     * the change in progress, and it will be written again later.
+     *
+     * @param pinnedPages the list of pinned dirty pages to write
+     *
+     * @throws IOException if an IO error occurs while flushing dirty pages
+     */
+    private void writePinnedPages(List<DBPage> pinnedPages)
+        throws IOException {
+
+        ArrayList<LogSequenceNumber> pageLSNs =
+            new ArrayList<>(pinnedPages.size());
+        for (DBPage dbPage : pinnedPages)
+            pageLSNs.add(dbPage.getPageLSN());
+
+        writePages(pinnedPages);
 
-                dbPage.setDirty(false);
+        for (int i = 0; i < pinnedPages.size(); i++) {
+            DBPage dbPage = pinnedPages.get(i);
 
-                if (invalidate)
-                    dbPage.invalidate();
+            CachedPageInfo cpi =
+                new CachedPageInfo(dbPage.getDBFile(), dbPage.getPageNo());
+            PageTableStripe stripe = getStripe(cpi);
+
+            // Sessions pin pages while holding the stripe's lock, so no
+            // session can start using the page while it is being marked
+            // clean.
+            synchronized (stripe) {
+                if (dbPage.getPinCount() == 1 &&
+                    Objects.equals(dbPage.getPageLSN(), pageLSNs.get(i))) {
+                    dbPage.setDirty(false);
+                }
+                else {
+                    logger.debug(String.format("Page [%s,%d] was used while " +
+                        "it was being written; leaving it dirty.",
+                        dbPage.getDBFile(), dbPage.getPageNo()));
+                }
             }
         }
     }
 
 
+    /**
+     * This helper method writes out a list of pages, after letting the
+     * observers enforce the write-ahead-logging rule.  Runs of consecutive
+     * pages from the same file are written together.
+     *
+     * @param pages the list of pages to write
+     *
+     * @throws IOException if an IO error occurs while writing the pages
+     */
+    private void writePages(List<DBPage> pages) throws IOException {
+        if (pages.isEmpty())
+            return;
+
+        // Pass the observers a read-only version of the pages so they can't
+        // change things.
+        List<DBPage> readOnlyPages = Collections.unmodifiableList(pages);
+
+        for (BufferManagerObserver obs : observers)
+            obs.beforeWriteDirtyPages(readOnlyPages);
+
+        int start = 0;
+        while (start < pages.size()) {
+            int end = findRunEnd(pages, start);
+            writePageRun(pages.subList(start, end));
+            start = end;
+        }
+    }
+
+
+    /**
+     * This helper method finds the end of the run of consecutive pages from
+     * the same file that starts at the specified index of a list of pages.
+     *
+     * @param pages the list of pages
+     * @param start the index of the first page in the run
+     *
+     * @return the index after the last page in the run
+     */
+    private int findRunEnd(List<DBPage> pages, int start) {
+        DBPage first = pages.get(start);
+
+        int end = start + 1;
+        while (end < pages.size() && end - start < MAX_WRITE_RUN_PAGES) {
+            DBPage dbPage = pages.get(end);
+            if (!first.getDBFile().equals(dbPage.getDBFile()) ||
+                dbPage.getPageNo() != first.getPageNo() + (end - start)) {
+                break;
+            }
+            end++;
+        }
+
+        return end;
+    }
+
+
+    /**
+     * This helper method writes a run of consecutive pages from the same
+     * file, using a single gathering write if there is more than one page.
+     *
+     * @param run the pages to write, in order of page number
+     *
+     * @throws IOException if an IO error occurs while writing the pages
+     */
+    private void writePageRun(List<DBPage> run) throws IOException {
+        DBPage first = run.get(0);
+        if (run.size() == 1) {
+            fileManager.savePage(first.getDBFile(), first.getPageNo(),
+                                 first.getPageData());
+            return;
+        }
+
+        byte[][] buffers = new byte[run.size()][];
+        for (int i = 0; i < buffers.length; i++)
+            buffers[i] = run.get(i).getPageData();
+
+        fileManager.savePages(first.getDBFile(), first.getPageNo(), buffers);
+    }
+
+
+    /**
+     * This helper method collects the cached pages that satisfy the specified
+     * criteria, optionally removing them from the page table as well.
+     *
+     * @param dbFile if not {@code null}, only pages from this file are
+     *        collected
+     *
+     * @param minPageNo pages with a page-number less than this value are not
+     *        collected
+     *
+     * @param maxPageNo pages with a page-number greater than this value are
+     *        not collected
+     *
+     * @param dirtyOnly if true, only dirty pages are collected
+     *
+     * @param remove if true, the collected pages are removed from the page
+     *        table and their space is released; clean pages are invalidated
+     *        immediately
+     *
+     * @return the collected pages; if {@code remove} is true, only the dirty
+     *         collected pages are returned, since the clean ones have already
+     *         been invalidated, and the caller must subtract them from
+     *         {@link #unwrittenPages} once they have been written or dropped
+     */
+    private ArrayList<DBPage> collectPages(DBFile dbFile, int minPageNo,
+        int maxPageNo, boolean dirtyOnly, boolean remove) {
+
+        ArrayList<DBPage> result = new ArrayList<>();
+
+        for (PageTableStripe stripe : pageTable) {
+            synchronized (stripe) {
+                Iterator<Map.Entry<CachedPageInfo, DBPage>> entries =
+                    stripe.pages.iterator();
+
+                while (entries.hasNext()) {
+                    Map.Entry<CachedPageInfo, DBPage> entry = entries.next();
+
+                    CachedPageInfo info = entry.getKey();
+                    if (dbFile != null && !dbFile.equals(info.dbFile))
+                        continue;
+
+                    if (info.pageNo < minPageNo || info.pageNo > maxPageNo)
+                        continue;
+
+                    DBPage oldPage = entry.getValue();
+                    if (dirtyOnly && !oldPage.isDirty())
+                        continue;
+
+                    if (remove) {
+                        logger.debug(String.format(
+                            "    Evicting page [%s,%d] from page-cache.",
+                            oldPage.getDBFile(), oldPage.getPageNo()));
+
+                        // Remove the page from the cache.
+                        entries.remove();
+
+                        // If the page is dirty, we need to write its data to
+                        // disk before invalidating it.  Otherwise, just
+                        // invalidate it.
+                        if (oldPage.isDirty()) {
+                            logger.debug("    Evicted page is dirty; must save to disk.");
+                            unwrittenPages.incrementAndGet();
+                            dirtyPagesRemoved.incrementAndGet();
+                            result.add(oldPage);
+                        }
+                        else {
+                            oldPage.invalidate();
+                        }
+                    }
+                    else {
+                        result.add(oldPage);
+                    }
+                }
+            }
+        }
+
+        return result;
+    }
+
+
     /**
      * This method writes all dirty pages in the specified file, optionally
      * syncing the file after performing the write.  The pages are not removed
@@ -769,30 +1397,13 @@ public class BufferManager {
         logger.info(String.format("Writing all dirty pages for file %s to disk%s.",
             dbFile, (sync ? " (with sync)" : "")));
 
-        Iterator<Map.Entry<CachedPageInfo, DBPage>> entries =
-            cachedPages.entrySet().iterator();
-
-        ArrayList<DBPage> dirtyPages = new ArrayList<>();
-
-        while (entries.hasNext()) {
-            Map.Entry<CachedPageInfo, DBPage> entry = entries.next();
-
-            CachedPageInfo info = entry.getKey();
-            if (dbFile.equals(info.dbFile)) {
-                DBPage oldPage = entry.getValue();
-                if (!oldPage.isDirty())
-                    continue;
+        ArrayList<DBPage> dirtyPages = collectPages(dbFile, minPageNo,
+            maxPageNo, /* dirtyOnly */ true, /* remove */ false);
 
-                int pageNo = oldPage.getPageNo();
-                if (pageNo < minPageNo || pageNo > maxPageNo)
-                    continue;
-
-                logger.debug(String.format("    Saving page [%s,%d] to disk.",
-                    oldPage.getDBFile(), oldPage.getPageNo()));
-
-                dirtyPages.add(oldPage);
-            }
-        }
+        // Write the pages out in file order, to keep the disk access as
+        // sequential as possible, and so that runs of consecutive pages can
+        // be written with a single gathering write.
+        Collections.sort(dirtyPages, PAGE_NUMBER_ORDER);
         writeDirtyPages(dirtyPages, /* invalidate */ false);
 
         if (sync) {
@@ -839,19 +1450,11 @@ public class BufferManager {
     public void writeAll(boolean sync) throws IOException {
         logger.info("Writing ALL dirty pages in the Buffer Manager to disk.");
 
-        Iterator<Map.Entry<CachedPageInfo, DBPage>> entries =
-            cachedPages.entrySet().iterator();
-
-        ArrayList<DBPage> dirtyPages = new ArrayList<>();
+        ArrayList<DBPage> dirtyPages = collectPages(null, 0, Integer.MAX_VALUE,
+            /* dirtyOnly */ true, /* remove */ false);
         HashSet<DBFile> dirtyFiles = new HashSet<>();
 
-        while (entries.hasNext()) {
-            Map.Entry<CachedPageInfo, DBPage> entry = entries.next();
-
-            DBPage oldPage = entry.getValue();
-            if (!oldPage.isDirty())
-                continue;
-
+        for (DBPage oldPage : dirtyPages) {
             DBFile dbFile = oldPage.getDBFile();
             DBFileType type = dbFile.getType();
             if (type != DBFileType.WRITE_AHEAD_LOG_FILE &&
@@ -861,8 +1464,6 @@ public class BufferManager {
 
             logger.debug(String.format("    Saving page [%s,%d] to disk.",
                 dbFile, oldPage.getPageNo()));
-
-            dirtyPages.add(oldPage);
         }
 
         writeDirtyPages(dirtyPages, /* invalidate */ false);
@@ -874,6 +1475,96 @@ public class BufferManager {
         }
     }
 
+    /**
+     * Returns the dirty pages that are currently in the buffer manager.  The
+     * pages remain in the cache, so they may be written out, or changed
+     * again, at any time after this method returns.
+     *
+     * @return the dirty pages in the buffer manager
+     */
+    public List<DBPage> getDirtyPages() {
+        return collectPages(null, 0, Integer.MAX_VALUE, /* dirtyOnly */ true,
+            /* remove */ false);
+    }
+
+
+    /**
+     * This method writes out the dirty pages whose first logged change
+     * precedes the specified log sequence number.  Checkpoints use this to
+     * write out pages that have stayed dirty for a long time, so that
+     * recovery doesn't have to start further and further back in the
+     * write-ahead log.  The pages are not removed from the buffer manager,
+     * and the files are not synced.
+     *
+     * @param lsn dirty pages whose recovery LSN is before this value are
+     *        written out
+     *
+     * @throws IOException if an IO error occurs while updating the write-ahead
+     *         log, or while writing the files' contents.
+     */
+    public void writeDirtyPagesBefore(LogSequenceNumber lsn)
+        throws IOException {
+
+        // Pages that are pinned may be in the middle of being changed, so
+        // they are left for a later checkpoint.  The chosen pages are pinned
+        // so that they aren't evicted while they are being written.
+        ArrayList<DBPage> oldPages = new ArrayList<>();
+        for (PageTableStripe stripe : pageTable) {
+            synchronized (stripe) {
+                Iterator<Map.Entry<CachedPageInfo, DBPage>> entries =
+                    stripe.pages.iterator();
+
+                while (entries.hasNext()) {
+                    DBPage dbPage = entries.next().getValue();
+                    if (!dbPage.isDirty() || dbPage.isPinned())
+                        continue;
+
+                    LogSequenceNumber recoveryLSN = dbPage.getRecoveryLSN();
+                    if (recoveryLSN != null && recoveryLSN.compareTo(lsn) < 0) {
+                        dbPage.pin();
+                        oldPages.add(dbPage);
+                    }
+                }
+            }
+        }
+
+        logger.info(String.format("Writing %d dirty pages changed before " +
+            "LSN %s to disk.", oldPages.size(), lsn));
+
+        try {
+            writePinnedPages(oldPages);
+        }
+        finally {
+            for (DBPage dbPage : oldPages)
+                dbPage.unpin();
+        }
+    }
+
+
+    /**
+     * This method syncs every file that the buffer manager has open, with
+     * the exception of WAL files and the transaction-state file, so that all
+     * pages written to those files so far are on the disk.
+     *
+     * @throws IOException if an IO error occurs while syncing a file
+     */
+    public void syncDataFiles() throws IOException {
+        for (DBFile dbFile : cachedFiles.values()) {
+            DBFileType type = dbFile.getType();
+            if (type == DBFileType.WRITE_AHEAD_LOG_FILE ||
+                type == DBFileType.TXNSTATE_FILE ||
+                type == DBFileType.TEMP_FILE) {
+                continue;
+            }
+
+            // Files that have been closed were already synced when they were
+            // closed.
+            if (dbFile.getFileContents().getChannel().isOpen())
+                fileManager.syncDBFile(dbFile);
+        }
+    }
+
+
     /**
      * This method removes all cached pages in the specified file from the
      * buffer manager, writing out any dirty pages in the process.  This method
@@ -892,39 +1583,19 @@ public class BufferManager {
         logger.info("Flushing all pages for file " + dbFile +
             " from the Buffer Manager.");
 
-        Iterator<Map.Entry<CachedPageInfo, DBPage>> entries =
-            cachedPages.entrySet().iterator();
-
-        ArrayList<DBPage> dirtyPages = new ArrayList<>();
-
-        while (entries.hasNext()) {
-            Map.Entry<CachedPageInfo, DBPage> entry = entries.next();
-
-            CachedPageInfo info = entry.getKey();
-            if (dbFile.equals(info.dbFile)) {
-                DBPage oldPage = entry.getValue();
-
-                logger.debug(String.format(
-                    "    Evicting page [%s,%d] from page-cache.",
-                    oldPage.getDBFile(), oldPage.getPageNo()));
+        // Don't let the prefetcher bring pages of the file back in.
+        prefetcher.cancel(dbFile);
 
-                // Remove the page from the cache.
-                entries.remove();
-                totalBytesCached -= oldPage.getPageSize();
+        ArrayList<DBPage> dirtyPages = collectPages(dbFile, 0,
+            Integer.MAX_VALUE, /* dirtyOnly */ false, /* remove */ true);
+        Collections.sort(dirtyPages, PAGE_NUMBER_ORDER);
 
-                // If the page is dirty, we need to write its data to disk before
-                // invalidating it.  Otherwise, just invalidate it.
-                if (oldPage.isDirty()) {
-                    logger.debug("    Evicted page is dirty; must save to disk.");
-                    dirtyPages.add(oldPage);
-                }
-                else {
-                    oldPage.invalidate();
-                }
-            }
+        try {
+            writeDirtyPages(dirtyPages, /* invalidate */ true);
+        }
+        finally {
+            unwrittenPages.addAndGet(-dirtyPages.size());
         }
-
-        writeDirtyPages(dirtyPages, /* invalidate */ true);
     }
 
 
@@ -944,39 +1615,17 @@ public class BufferManager {
     public void flushAll() throws IOException {
         logger.info("Flushing ALL database pages from the Buffer Manager.");
 
-        Iterator<Map.Entry<CachedPageInfo, DBPage>> entries =
-            cachedPages.entrySet().iterator();
-
-        ArrayList<DBPage> dirtyPages = new ArrayList<>();
-
-        while (entries.hasNext()) {
-            Map.Entry<CachedPageInfo, DBPage> entry = entries.next();
-
-            DBPage oldPage = entry.getValue();
+        ArrayList<DBPage> dirtyPages = collectPages(null, 0,
+            Integer.MAX_VALUE, /* dirtyOnly */ false, /* remove */ true);
 
-            logger.debug(String.format(
-                "    Evicting page [%s,%d] from page-cache.",
-                oldPage.getDBFile(), oldPage.getPageNo()));
-
-            // Remove the page from the cache.
-            entries.remove();
-            totalBytesCached -= oldPage.getPageSize();
-
-            // If the page is dirty, we need to write its data to disk before
-            // invalidating it.  Otherwise, just invalidate it.
-            if (oldPage.isDirty()) {
-                logger.debug("    Evicted page is dirty; must save to disk.");
-                dirtyPages.add(oldPage);
-            }
-            else {
-                oldPage.invalidate();
-            }
+        try {
+            writeDirtyPages(dirtyPages, /* invalidate */ true);
+        }
+        finally {
+            unwrittenPages.addAndGet(-dirtyPages.size());
         }
-
-        writeDirtyPages(dirtyPages, /* invalidate */ true);
     }
 
-
     /**
      * This method removes a file from the cache, first flushing all pages from
      * the file out of the cache.  This operation is used by the Storage Manager
@@ -993,6 +1642,32 @@ public class BufferManager {
     }
 
 
+    /**
+     * This method removes a file from the cache <em>without</em> writing out
+     * any of its dirty pages.  This is only appropriate for temporary files
+     * that are about to be deleted, since their contents will never be read
+     * again.
+     *
+     * @param dbFile the file to remove from the cache.
+     */
+    public void discardDBFile(DBFile dbFile) {
+        logger.debug("Discarding DBFile " + dbFile + " from buffer manager");
+
+        prefetcher.cancel(dbFile);
+
+        ArrayList<DBPage> dirtyPages = collectPages(dbFile, 0,
+            Integer.MAX_VALUE, /* dirtyOnly */ false, /* remove */ true);
+
+        for (DBPage dbPage : dirtyPages)
+            dbPage.invalidate();
+
+        // The dirty pages will never be written, since the file is going away.
+        unwrittenPages.addAndGet(-dirtyPages.size());
+
+        cachedFiles.remove(dbFile.getDataFile().getName());
+    }
+
+
     /**
      * This method removes ALL files from the cache, first flushing all pages
      * from the cache so that any dirty pages will be saved to disk (possibly
@@ -0,0 +1,191 @@
+package edu.caltech.nanodb.storage;
+
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.apache.log4j.Logger;
+
+
+/**
+ * This file manager performs page IO through each data file's
+ * {@link FileChannel} instead of its {@link RandomAccessFile}.  Single pages
+ * are read and written with positional operations, which don't move the
+ * file pointer, so concurrent accesses to the same file don't need to hold
+ * the file's monitor and each page access is a single system call.  Runs of
+ * consecutive pages are transferred with one scattering read or gathering
+ * write.
+ * <p>
+ * This file manager is selected by setting the
+ * {@link StorageManager#PROP_FILE_IO} property to <tt>"channel"</tt>.
+ *
+ * @design The scattering and gathering operations on {@link FileChannel} use
+ *         the channel's position, which is the same as the file pointer of
+ *         the {@code RandomAccessFile}, so those operations still hold the
+ *         file's monitor while they position the channel and transfer the
+ *         pages.
+ *
+ * @design A {@code FileChannel} is closed if a thread is interrupted while
+ *         it is blocked in an IO operation on the channel, so threads that
+ *         access data files must not be interrupted when this file manager is
+ *         in use.
+ */
+public class ChannelFileManager extends FileManagerImpl {
+
+    /** A logging object for reporting anything interesting that happens. */
+    private static Logger logger = Logger.getLogger(ChannelFileManager.class);
+
+
+    /**
+     * Create a file-manager instance that uses the specified base directory.
+     *
+     * @param baseDir the base-directory that the file-manager should use
+     */
+    public ChannelFileManager(File baseDir) {
+        super(baseDir);
+    }
+
+
+    @Override
+    public void loadPage(DBFile dbFile, int pageNo, byte[] buffer,
+                         boolean create) throws IOException {
+
+        if (buffer.length != dbFile.getPageSize()) {
+            throw new IllegalArgumentException("Buffer has a different size" +
+                " from the specified DBFile page-size");
+        }
+
+        long pageStart = getPageStart(dbFile, pageNo);
+
+        // Update our file-IO performance counters
+        updateFileIOPerfStats(dbFile, pageNo, /* read */ true, buffer.length);
+
+        FileChannel channel = dbFile.getFileContents().getChannel();
+        ByteBuffer buf = ByteBuffer.wrap(buffer);
+        while (buf.hasRemaining()) {
+            if (channel.read(buf, pageStart + buf.position()) < 0) {
+                if (create) {
+                    // Caller wants to create the page if it doesn't already
+                    // exist yet.
+                    createPage(dbFile, pageNo, buffer);
+                    return;
+                }
+
+                throw new EOFException("Page " + pageNo +
+                    " is past the end of file " + dbFile);
+            }
+        }
+    }
+
+
+    @Override
+    public int loadPages(DBFile dbFile, int firstPageNo, byte[][] buffers)
+        throws IOException {
+
+        checkBuffers(dbFile, buffers);
+
+        int pageSize = dbFile.getPageSize();
+        long pageStart = getPageStart(dbFile, firstPageNo);
+
+        int numPages;
+        RandomAccessFile fileContents = dbFile.getFileContents();
+        FileChannel channel = fileContents.getChannel();
+        synchronized (fileContents) {
+            long available = (channel.size() - pageStart) / pageSize;
+            numPages = (int) Math.max(0, Math.min(buffers.length, available));
+            if (numPages == 0)
+                return 0;
+
+            ByteBuffer[] bufs = wrapBuffers(buffers, numPages);
+            channel.position(pageStart);
+
+            long remaining = (long) numPages * pageSize;
+            while (remaining > 0) {
+                long read = channel.read(bufs);
+                if (read < 0) {
+                    throw new EOFException("File " + dbFile +
+                        " was truncated while pages were being read");
+                }
+                remaining -= read;
+            }
+        }
+
+        // Update our file-IO performance counters
+        for (int i = 0; i < numPages; i++)
+            updateFileIOPerfStats(dbFile, firstPageNo + i, /* read */ true, pageSize);
+
+        return numPages;
+    }
+
+
+    @Override
+    public void savePage(DBFile dbFile, int pageNo, byte[] buffer)
+        throws IOException {
+
+        if (buffer.length != dbFile.getPageSize()) {
+            throw new IllegalArgumentException("Buffer has a different size" +
+                " from the specified DBFile page-size");
+        }
+
+        long pageStart = getPageStart(dbFile, pageNo);
+
+        // Update our file-IO performance counters
+        updateFileIOPerfStats(dbFile, pageNo, /* read */ false, buffer.length);
+
+        FileChannel channel = dbFile.getFileContents().getChannel();
+        ByteBuffer buf = ByteBuffer.wrap(buffer);
+        while (buf.hasRemaining())
+            channel.write(buf, pageStart + buf.position());
+    }
+
+
+    @Override
+    public void savePages(DBFile dbFile, int firstPageNo, byte[][] buffers)
+        throws IOException {
+
+        checkBuffers(dbFile, buffers);
+
+        int pageSize = dbFile.getPageSize();
+        long pageStart = getPageStart(dbFile, firstPageNo);
+
+        // Update our file-IO performance counters
+        for (int i = 0; i < buffers.length; i++)
+            updateFileIOPerfStats(dbFile, firstPageNo + i, /* read */ false, pageSize);
+
+        ByteBuffer[] bufs = wrapBuffers(buffers, buffers.length);
+
+        RandomAccessFile fileContents = dbFile.getFileContents();
+        FileChannel channel = fileContents.getChannel();
+        synchronized (fileContents) {
+            channel.position(pageStart);
+
+            long remaining = (long) buffers.length * pageSize;
+            while (remaining > 0)
+                remaining -= channel.write(bufs);
+        }
+    }
+
+
+    /** Wraps the first {@code count} buffers for a multi-page transfer. */
+    private ByteBuffer[] wrapBuffers(byte[][] buffers, int count) {
+        ByteBuffer[] bufs = new ByteBuffer[count];
+        for (int i = 0; i < count; i++)
+            bufs[i] = ByteBuffer.wrap(buffers[i]);
+
+        return bufs;
+    }
+
+
+    @Override
+    public void syncDBFile(DBFile dbFile) throws IOException {
+        logger.info("Synchronizing database file to disk:  " + dbFile);
+
+        // Only the file's data and size need to be durable, not its other
+        // metadata such as the modification time.
+        dbFile.getFileContents().getChannel().force(/* metaData */ false);
+    }
+}
@@ -0,0 +1,228 @@
+package edu.caltech.nanodb.storage;
+
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+
+/**
+ * This page-replacement policy implements the CLOCK algorithm (also called
+ * "second chance").  Cached pages are arranged in a ring, and each page has a
+ * "referenced" bit that is set whenever the page is accessed.  To find a
+ * victim, a clock hand sweeps around the ring; pages whose referenced bit is
+ * set have the bit cleared and are passed over, and the first page whose bit
+ * is already clear is the victim.
+ * <p>
+ * Newly added pages start with their referenced bit clear, and are inserted
+ * just behind the clock hand so that they survive for one full sweep.  A page
+ * that is only touched once, e.g. by a large sequential scan, is therefore
+ * evicted on the next sweep, while pages that are accessed repeatedly (such
+ * as B<sup>+</sup> tree inner pages) keep getting a second chance.
+ *
+ * @param <K> the type of key used to identify cached pages
+ */
+class ClockReplacementPolicy<K> implements PageReplacementPolicy<K> {
+
+    /** A frame in the clock ring. */
+    private static class Frame<K> implements Map.Entry<K, DBPage> {
+        K key;
+
+        DBPage dbPage;
+
+        /** Set when the page is accessed, cleared when the hand passes. */
+        boolean referenced;
+
+        Frame<K> prev;
+
+        Frame<K> next;
+
+        Frame(K key, DBPage dbPage) {
+            this.key = key;
+            this.dbPage = dbPage;
+        }
+
+        @Override
+        public K getKey() {
+            return key;
+        }
+
+        @Override
+        public DBPage getValue() {
+            return dbPage;
+        }
+
+        @Override
+        public DBPage setValue(DBPage value) {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+
+    /** This collection maps keys to their frames in the ring. */
+    private HashMap<K, Frame<K>> frames = new HashMap<>();
+
+
+    /**
+     * The clock hand, which refers to the next frame to examine, or
+     * {@code null} if the ring is empty.
+     */
+    private Frame<K> hand;
+
+
+    @Override
+    public DBPage get(K key, boolean recordAccess) {
+        Frame<K> frame = frames.get(key);
+        if (frame == null)
+            return null;
+
+        if (recordAccess)
+            frame.referenced = true;
+
+        return frame.dbPage;
+    }
+
+
+    @Override
+    public void put(K key, DBPage dbPage) {
+        if (frames.containsKey(key))
+            throw new IllegalStateException("Policy already contains page " + key);
+
+        Frame<K> frame = new Frame<>(key, dbPage);
+        frames.put(key, frame);
+
+        if (hand == null) {
+            frame.prev = frame;
+            frame.next = frame;
+            hand = frame;
+        }
+        else {
+            // Insert the frame just behind the hand, so that it is the last
+            // frame the hand will reach.
+            frame.prev = hand.prev;
+            frame.next = hand;
+            hand.prev.next = frame;
+            hand.prev = frame;
+        }
+    }
+
+
+    @Override
+    public DBPage remove(K key) {
+        Frame<K> frame = frames.remove(key);
+        if (frame == null)
+            return null;
+
+        unlink(frame);
+        return frame.dbPage;
+    }
+
+
+    /**
+     * Removes a frame from the ring, advancing the hand if it currently
+     * refers to the frame.
+     */
+    private void unlink(Frame<K> frame) {
+        if (frame.next == frame) {
+            hand = null;
+        }
+        else {
+            frame.prev.next = frame.next;
+            frame.next.prev = frame.prev;
+            if (hand == frame)
+                hand = frame.next;
+        }
+
+        frame.prev = null;
+        frame.next = null;
+    }
+
+
+    @Override
+    public int size() {
+        return frames.size();
+    }
+
+
+    @Override
+    public Iterator<Map.Entry<K, DBPage>> iterator() {
+        final Iterator<Frame<K>> iter = frames.values().iterator();
+
+        return new Iterator<Map.Entry<K, DBPage>>() {
+            private Frame<K> current;
+
+            @Override
+            public boolean hasNext() {
+                return iter.hasNext();
+            }
+
+            @Override
+            public Map.Entry<K, DBPage> next() {
+                current = iter.next();
+                return current;
+            }
+
+            @Override
+            public void remove() {
+                iter.remove();
+                unlink(current);
+            }
+        };
+    }
+
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The returned iterator sweeps the clock hand around the ring, clearing
+     * referenced bits as it goes.  It stops after two full rotations, at
+     * which point every page has been offered as a candidate at least once.
+     */
+    @Override
+    public Iterator<Map.Entry<K, DBPage>> evictionCandidates() {
+        return new Iterator<Map.Entry<K, DBPage>>() {
+            private int stepsLeft = 2 * frames.size();
+
+            private Frame<K> nextFrame;
+
+            private Frame<K> current;
+
+            @Override
+            public boolean hasNext() {
+                while (nextFrame == null && stepsLeft > 0 && hand != null) {
+                    Frame<K> frame = hand;
+                    hand = hand.next;
+                    stepsLeft--;
+
+                    if (frame.referenced)
+                        frame.referenced = false;  // Second chance.
+                    else
+                        nextFrame = frame;
+                }
+
+                return nextFrame != null;
+            }
+
+            @Override
+            public Map.Entry<K, DBPage> next() {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+
+                current = nextFrame;
+                nextFrame = null;
+                return current;
+            }
+
+            @Override
+            public void remove() {
+                if (current == null)
+                    throw new IllegalStateException();
+
+                frames.remove(current.key);
+                unlink(current);
+                current = null;
+            }
+        };
+    }
+}
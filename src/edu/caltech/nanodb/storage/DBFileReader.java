@@ -170,20 +170,27 @@ public class DBFileReader {
         if (dbPage != null && dbPage.getPageNo() == pageNo)
             return;
 
+        // Unpin the page we were using, so that it can be evicted.  Without
+        // this, reading through a file larger than the buffer manager's
+        // cache (such as a long write-ahead log during recovery) would fill
+        // the cache with pinned pages.
+        releasePage();
+
         // Need to load the required DBPage.
         dbPage = storageManager.loadDBPage(dbFile, pageNo, extendFile);
     }
 
 
     /**
-     * This method causes the writer to set the current {@link DBPage} to
-     * {@code null}, so that the reader doesn't hold on to a page that might
-     * need to be flushed out of the buffer manager.
-     *
-     * @todo Once we have page-pinning, this will also need to unpin the page.
+     * This method causes the writer to unpin the current {@link DBPage} and
+     * set it to {@code null}, so that the reader doesn't hold on to a page
+     * that might need to be flushed out of the buffer manager.
      */
     public void releasePage() {
-        dbPage = null;
+        if (dbPage != null) {
+            dbPage.unpin();
+            dbPage = null;
+        }
     }
 
 
@@ -34,7 +34,15 @@ public enum DBFileType {
      * Represents a write-ahead log file used for transaction processing and
      * recovery.
      */
-    WRITE_AHEAD_LOG_FILE(21);
+    WRITE_AHEAD_LOG_FILE(21),
+
+    /**
+     * Represents a temporary file used during query evaluation, to hold
+     * intermediate results that don't fit in memory.  These files are not
+     * recorded in the write-ahead log, and are deleted when the operation that
+     * created them is finished with them.
+     */
+    TEMP_FILE(30);
 
 
     private int id;
@@ -3,7 +3,9 @@ package edu.caltech.nanodb.storage;
 
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.log4j.Logger;
 
@@ -26,6 +28,14 @@ import edu.caltech.nanodb.storage.writeahead.LogSequenceNumber;
  * byte (MSB) stored at the lowest index, and the least significant byte (LSB)
  * stored at the highest index.  (This is also the network byte order specified
  * by the Internet Protocol.)
+ * <p>
+ * A page's data is normally held in a buffer allocated from the
+ * {@link BufferManager}.  When the file manager memory-maps the file, the
+ * page may instead read its data directly from the mapped region of the
+ * file, without copying it into a buffer.  Such a page is copied into a
+ * buffer the first time it is marked dirty (or when {@link #getPageData} is
+ * called), so changes are never made to the mapped region, and writes still
+ * go through the normal dirty-page and write-ahead logging path.
  *
  * @see PageReader
  * @see PageWriter
@@ -63,9 +73,10 @@ public class DBPage implements Pinnable, AutoCloseable {
     /**
      * The pin-count of this page.  When nonzero, the page is not allowed to be
      * flushed from the buffer manager since the page is being used by at least
-     * one session.
+     * one session.  The count is atomic since sessions on different threads
+     * may pin and unpin the same page concurrently.
      */
-    private int pinCount;
+    private final AtomicInteger pinCount = new AtomicInteger();
 
 
     /** This flag is true if this page has been modified in memory. */
@@ -82,10 +93,31 @@ public class DBPage implements Pinnable, AutoCloseable {
     private LogSequenceNumber pageLSN;
 
 
-    /** The actual data for the table-page. */
+    /**
+     * For dirty pages, this field is set to the Log Sequence Number of the
+     * write-ahead log record corresponding to the first write to the page
+     * since it was last clean.  Recovery never needs to redo changes to the
+     * page from before this point, so checkpoints record this value for each
+     * dirty page.
+     */
+    private LogSequenceNumber recoveryLSN;
+
+
+    /**
+     * The actual data for the table-page, or {@code null} if the page's data
+     * is read from {@link #mappedData}.
+     */
     private byte[] pageData;
 
 
+    /**
+     * If the page was loaded from a memory-mapped file, this is a read-only
+     * view of the page's region of the file.  It is only used while
+     * {@link #pageData} is {@code null}.
+     */
+    private ByteBuffer mappedData;
+
+
     /**
      * When the page is marked dirty, this gets set to the original version of
      * the page, so that we can properly record changes to the write-ahead log.
@@ -130,7 +162,6 @@ public class DBPage implements Pinnable, AutoCloseable {
         // buffers.  This means that the buffer allocated for this page
         // cannot be freed until the DBPage is actually registered with the
         // Buffer Manager (which it won't be until it is fully loaded).
-        pinCount = 0;
 
         // This operation could fail with an IOException, because more
         // space must be allocated to keep track of the original page data,
@@ -149,6 +180,53 @@ public class DBPage implements Pinnable, AutoCloseable {
     }
 
 
+    /**
+     * Constructs a table-page whose data is read directly from a
+     * memory-mapped region of the database file.  The page still takes up
+     * its size in the Buffer Manager's cache, so that the number of cached
+     * pages stays bounded, but no buffer is allocated for its data until
+     * the page is changed.
+     *
+     * @param dbFile The database file that this page is contained within.
+     *
+     * @param pageNo The page number within the database file.
+     *
+     * @param mappedData a read-only view of the page's region of the file,
+     *        positioned at the start of the page
+     *
+     * @throws IOException if space can't be made for the page in the cache
+     */
+    public DBPage(BufferManager bufferManager, DBFile dbFile, int pageNo,
+                  ByteBuffer mappedData) throws IOException {
+        if (bufferManager == null)
+            throw new IllegalArgumentException("bufferManager cannot be null");
+
+        if (dbFile == null)
+            throw new IllegalArgumentException("dbFile cannot be null");
+
+        if (pageNo < 0) {
+            throw new IllegalArgumentException("pageNo must be >= 0 (got " +
+                pageNo + ")");
+        }
+
+        if (mappedData.remaining() != dbFile.getPageSize()) {
+            throw new IllegalArgumentException("Mapped region has a " +
+                "different size from the specified DBFile page-size");
+        }
+
+        this.bufferManager = bufferManager;
+        this.dbFile = dbFile;
+        this.pageNo = pageNo;
+        dirty = false;
+        pageLSN = null;
+
+        bufferManager.reserveSpace(dbFile.getPageSize());
+        this.mappedData = mappedData.slice();
+        pageData = null;
+        oldPageData = null;
+    }
+
+
     /**
      * Returns the database file that this page is contained within.
      *
@@ -188,13 +266,13 @@ public class DBPage implements Pinnable, AutoCloseable {
      * @return the page-size in bytes
      */
     public int getPageSize() {
-        return pageData.length;
+        return (pageData != null) ? pageData.length : mappedData.capacity();
     }
 
 
     @Override
     public void pin() {
-        pinCount++;
+        pinCount.incrementAndGet();
 
         // To facilitate debugging of pinned-page leaks!
         bufferManager.recordPagePinned(this);
@@ -203,15 +281,16 @@ public class DBPage implements Pinnable, AutoCloseable {
 
     @Override
     public void unpin() {
-        if (pinCount <= 0) {
+        int count = pinCount.get();
+        if (count <= 0) {
             throw new IllegalStateException(
-                "pinCount is not positive (value is " + pinCount + ")");
+                "pinCount is not positive (value is " + count + ")");
         }
 
         // To facilitate debugging of pinned-page leaks!
         bufferManager.recordPageUnpinned(this);
 
-        pinCount--;
+        pinCount.decrementAndGet();
 
         // Don't do anything else to the data page, because at this point,
         // it may still contain dirty data that needs to be flushed to disk
@@ -221,13 +300,24 @@ public class DBPage implements Pinnable, AutoCloseable {
 
     @Override
     public int getPinCount() {
-        return pinCount;
+        return pinCount.get();
     }
 
 
     @Override
     public boolean isPinned() {
-        return (pinCount > 0);
+        return (pinCount.get() > 0);
+    }
+
+
+    /**
+     * Returns {@code true} if the page's data is currently read directly from
+     * a memory-mapped region of its file, rather than from a buffer.
+     *
+     * @return {@code true} if the page's data is memory-mapped
+     */
+    public boolean isMapped() {
+        return pageData == null && mappedData != null;
     }
 
 
@@ -235,14 +325,43 @@ public class DBPage implements Pinnable, AutoCloseable {
      * Returns the byte-array of the page's data.  <b>Note that if any changes
      * are made to the page's data, the dirty-flag must be updated
      * appropriately or else the data will not be written back to the file.</b>
+     * If the page's data is memory-mapped, it is copied into a buffer first.
      *
      * @return a byte-array containing the page's data
      */
     public byte[] getPageData() {
+        if (pageData == null && mappedData != null)
+            copyMappedData();
+
         return pageData;
     }
 
 
+    /**
+     * Copies the data of a memory-mapped page into a buffer, so that the
+     * page can be changed.  The space the page had reserved in the Buffer
+     * Manager is handed over to the buffer.
+     */
+    private void copyMappedData() {
+        // As in the constructor, allocation failures are wrapped with a
+        // RuntimeException since callers can't handle an IOException.
+        byte[] data;
+        try {
+            data = bufferManager.allocBuffer(mappedData.capacity());
+        }
+        catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+
+        ByteBuffer src = mappedData.duplicate();
+        src.clear();
+        src.get(data);
+
+        pageData = data;
+        bufferManager.releaseSpace(data.length);
+    }
+
+
     /**
      * Returns the byte-array of the page's data at the last point when the page
      * became dirty, or <tt>null</tt> if the page is currently clean.
@@ -292,6 +411,10 @@ public class DBPage implements Pinnable, AutoCloseable {
         if (!this.dirty && dirty) {
             // Page is being changed from clean to dirty.  Duplicate the current
             // data so that we have it when updating the write-ahead log.
+            // Memory-mapped pages are never changed in place, so copy the
+            // page's data into a buffer first.
+            if (pageData == null)
+                copyMappedData();
 
             // This operation could fail with an IOException, because more
             // space must be allocated to keep track of the original page data,
@@ -313,8 +436,9 @@ public class DBPage implements Pinnable, AutoCloseable {
             bufferManager.releaseBuffer(oldPageData);
             oldPageData = null;
 
-            // Clear out the page-LSN value as well.
+            // Clear out the page-LSN values as well.
             pageLSN = null;
+            recoveryLSN = null;
         }
 
         this.dirty = dirty;
@@ -328,6 +452,21 @@ public class DBPage implements Pinnable, AutoCloseable {
 
     public void setPageLSN(LogSequenceNumber lsn) {
         pageLSN = lsn;
+
+        if (recoveryLSN == null)
+            recoveryLSN = lsn;
+    }
+
+
+    /**
+     * Returns the LSN of the first write-ahead log record that changed this
+     * page since it was last clean, or {@code null} if the page is clean or
+     * its changes haven't been logged yet.
+     *
+     * @return the LSN of the first logged change to the dirty page
+     */
+    public LogSequenceNumber getRecoveryLSN() {
+        return recoveryLSN;
     }
 
 
@@ -347,6 +486,10 @@ public class DBPage implements Pinnable, AutoCloseable {
             bufferManager.releaseBuffer(pageData);
             pageData = null;
         }
+        else if (mappedData != null) {
+            bufferManager.releaseSpace(mappedData.capacity());
+        }
+        mappedData = null;
 
         if (oldPageData != null) {
             bufferManager.releaseBuffer(oldPageData);
@@ -373,6 +516,13 @@ public class DBPage implements Pinnable, AutoCloseable {
      * @param len the number of bytes to transfer to the destination buffer
      */
     public void read(int position, byte[] b, int off, int len) {
+        if (pageData == null) {
+            ByteBuffer src = mappedData.duplicate();
+            src.position(position);
+            src.get(b, off, len);
+            return;
+        }
+
         System.arraycopy(pageData, position, b, off, len);
     }
 
@@ -462,7 +612,7 @@ public class DBPage implements Pinnable, AutoCloseable {
      * @return the Boolean value
      */
     public boolean readBoolean(int position) {
-        return (pageData[position] != 0);
+        return (readByte(position) != 0);
     }
 
     /**
@@ -488,6 +638,9 @@ public class DBPage implements Pinnable, AutoCloseable {
      * @return the signed byte value
      */
     public byte readByte(int position) {
+        if (pageData == null)
+            return mappedData.get(position);
+
         return pageData[position];
     }
 
@@ -517,7 +670,7 @@ public class DBPage implements Pinnable, AutoCloseable {
      * @return the unsigned byte value, as an integer
      */
     public int readUnsignedByte(int position) {
-        return pageData[position] & 0xFF;
+        return readByte(position) & 0xFF;
     }
 
 
@@ -531,6 +684,9 @@ public class DBPage implements Pinnable, AutoCloseable {
      * @return the unsigned short value, as an integer
      */
     public int readUnsignedShort(int position) {
+        if (pageData == null)
+            return mappedData.getShort(position) & 0xFFFF;
+
         int value = ((pageData[position++] & 0xFF) <<  8)
                   | ((pageData[position  ] & 0xFF)      );
 
@@ -546,6 +702,9 @@ public class DBPage implements Pinnable, AutoCloseable {
      * @return the signed short value
      */
     public short readShort(int position) {
+        if (pageData == null)
+            return mappedData.getShort(position);
+
         // Don't chop off high-order bits.  When byte is cast to int, the sign
         // will be extended, so if original byte is negative, the resulting
         // int will be too.
@@ -582,6 +741,9 @@ public class DBPage implements Pinnable, AutoCloseable {
      */
     public char readChar(int position)
     {
+        if (pageData == null)
+            return mappedData.getChar(position);
+
         // NOTE:  Exactly like readShort(), but result is cast to a different
         // type.
 
@@ -618,6 +780,11 @@ public class DBPage implements Pinnable, AutoCloseable {
      * @return the unsigned integer value, as a long
      */
     public long readUnsignedInt(int position) {
+        // This matches the result of the computation below, which
+        // sign-extends the value.
+        if (pageData == null)
+            return mappedData.getInt(position);
+
         long value = ((pageData[position++] & 0xFF) << 24)
                    | ((pageData[position++] & 0xFF) << 16)
                    | ((pageData[position++] & 0xFF) <<  8)
@@ -635,6 +802,9 @@ public class DBPage implements Pinnable, AutoCloseable {
      * @return the signed int value
      */
     public int readInt(int position) {
+        if (pageData == null)
+            return mappedData.getInt(position);
+
         int value = ((pageData[position++] & 0xFF) << 24)
                   | ((pageData[position++] & 0xFF) << 16)
                   | ((pageData[position++] & 0xFF) <<  8)
@@ -669,6 +839,9 @@ public class DBPage implements Pinnable, AutoCloseable {
      * @return the signed long value
      */
     public long readLong(int position) {
+        if (pageData == null)
+            return mappedData.getLong(position);
+
         long value = ((long) (pageData[position++] & 0xFF) << 56)
                    | ((long) (pageData[position++] & 0xFF) << 48)
                    | ((long) (pageData[position++] & 0xFF) << 40)
@@ -742,7 +915,7 @@ public class DBPage implements Pinnable, AutoCloseable {
         String str = null;
 
         try {
-            str = new String(pageData, position, len, "US-ASCII");
+            str = decodeASCII(position, len);
         }
         catch (UnsupportedEncodingException e) {
             // According to the Java docs, the US-ASCII character-encoding is
@@ -754,6 +927,27 @@ public class DBPage implements Pinnable, AutoCloseable {
         return str;
     }
 
+    /**
+     * Decodes a US-ASCII string from the specified range of the page.
+     *
+     * @param position the location of the string's first byte
+     * @param len the number of bytes in the string
+     *
+     * @return the decoded string
+     */
+    private String decodeASCII(int position, int len)
+        throws UnsupportedEncodingException {
+
+        if (pageData == null) {
+            byte[] bytes = new byte[len];
+            read(position, bytes);
+            return new String(bytes, "US-ASCII");
+        }
+
+        return new String(pageData, position, len, "US-ASCII");
+    }
+
+
     /**
      * This method stores a variable-length string whose maximum length is
      * 255 bytes.  The string is expected to be in US-ASCII encoding, so
@@ -816,7 +1010,7 @@ public class DBPage implements Pinnable, AutoCloseable {
         String str = null;
 
         try {
-            str = new String(pageData, position, len, "US-ASCII");
+            str = decodeASCII(position, len);
         }
         catch (UnsupportedEncodingException e) {
             // According to the Java docs, the US-ASCII character-encoding is
@@ -897,11 +1091,11 @@ public class DBPage implements Pinnable, AutoCloseable {
 
         // Fixed-size strings are padded with 0-bytes, so trim these off the
         // end of the string value.
-        while (len > 0 && pageData[position + len - 1] == 0)
+        while (len > 0 && readByte(position + len - 1) == 0)
             len--;
 
         try {
-            str = new String(pageData, position, len, "US-ASCII");
+            str = decodeASCII(position, len);
         }
         catch (UnsupportedEncodingException e) {
             // According to the Java docs, the US-ASCII character-encoding is
@@ -1168,7 +1362,7 @@ public class DBPage implements Pinnable, AutoCloseable {
             if (i % 32 == 0)
                 buf.append("\n                ");
 
-            buf.append(String.format(" %02X", pageData[i]));
+            buf.append(String.format(" %02X", readByte(i)));
         }
 
         if (oldPageData != null) {
@@ -4,6 +4,7 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 
 
 /**
@@ -120,6 +121,48 @@ public interface FileManager {
     void loadPage(DBFile dbFile, int pageNo, byte[] buffer)
         throws IOException;
 
+    /**
+     * Loads a run of consecutive pages from the underlying data file into
+     * the specified buffers, one page per buffer.  The pages are read as a
+     * single sequential operation, rather than as one random access per page.
+     * Unlike {@link #loadPage}, reaching the end of the file is not an error;
+     * the pages that exist are loaded, and the rest of the buffers are left
+     * unchanged.
+     * <p>
+     * <em>This function does no page caching whatsoever.</em>
+     *
+     * @param dbFile the database file to load the pages from
+     * @param firstPageNo the number of the first page to load
+     * @param buffers the buffers to load the pages into
+     *
+     * @return the number of pages that were loaded, which is less than the
+     *         number of buffers if the file ends first
+     *
+     * @throws IllegalArgumentException if the page number is negative, or if
+     *         a buffer is not the same length as the file's page-size.
+     */
+    int loadPages(DBFile dbFile, int firstPageNo, byte[][] buffers)
+        throws IOException;
+
+    /**
+     * Returns a read-only view of the specified page of the DB file that is
+     * backed by a memory mapping of the file, or {@code null} if the page
+     * cannot be mapped, either because the file manager doesn't map files of
+     * this kind, or because the page is past the end of the file.  The view's
+     * position is zero and its limit is the file's page-size.
+     * <p>
+     * <em>This function does no page caching whatsoever.</em>
+     *
+     * @param dbFile the database file to map the page from
+     * @param pageNo the number of the page to map
+     *
+     * @return a view of the page's contents, or {@code null} if the page
+     *         must be loaded with {@link #loadPage} instead
+     *
+     * @throws IOException if an error occurs while mapping the file
+     */
+    ByteBuffer mapPage(DBFile dbFile, int pageNo) throws IOException;
+
     /**
      * Saves a page to the DB file, and then clears the page's dirty flag.
      * Note that the data might not actually be written to disk until a sync
@@ -137,6 +180,24 @@ public interface FileManager {
     void savePage(DBFile dbFile, int pageNo, byte[] buffer)
         throws IOException;
 
+    /**
+     * Saves a run of consecutive pages to the DB file, one page per buffer.
+     * The pages are written as a single sequential operation, rather than as
+     * one random access per page.  Note that the data might not actually be
+     * written to disk until a sync operation is performed.
+     *
+     * @param dbFile the data file to write to
+     * @param firstPageNo the page number to write the first buffer to
+     * @param buffers the data to write back to the pages
+     *
+     * @throws IllegalArgumentException if the page number is negative, or if
+     *         a buffer is not the same length as the file's page-size.
+     *
+     * @throws IOException if an error occurs while writing the pages to disk
+     */
+    void savePages(DBFile dbFile, int firstPageNo, byte[][] buffers)
+        throws IOException;
+
     /**
      * This method ensures that all file-writes on the specified DB-file have
      * actually been synchronized to the disk.  Note that even after a call to
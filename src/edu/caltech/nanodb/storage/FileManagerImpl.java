@@ -8,6 +8,8 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 import edu.caltech.nanodb.server.performance.PerformanceCounters;
 
@@ -24,10 +26,12 @@ import edu.caltech.nanodb.server.performance.PerformanceCounters;
  *         provide higher-level operations on the Storage Manager so that we
  *         can provide global buffering capabilities in one place.
  *
- * @design This class includes no multithreading support.  It maintains no
- *         internal state, so there isn't anything that needs to be guarded,
- *         but still, other classes using this class need to be careful to
- *         maintain proper multithreading.
+ * @design This class maintains almost no internal state, so there isn't
+ *         much that needs to be guarded.  However, since a page access is a
+ *         seek followed by a read or write against the file's shared
+ *         {@link RandomAccessFile}, each page access holds the file's monitor
+ *         so that concurrent accesses to the same file don't interleave.
+ *         {@link ChannelFileManager} avoids this by using positional IO.
  */
 public class FileManagerImpl implements FileManager {
 
@@ -88,8 +92,8 @@ public class FileManagerImpl implements FileManager {
     }
 
     // Update our file-IO performance counters
-    void updateFileIOPerfStats(DBFile dbFile, int pageNo, boolean read,
-                               int bufSize) {
+    synchronized void updateFileIOPerfStats(DBFile dbFile, int pageNo,
+                                            boolean read, int bufSize) {
         if (lastFileAccessed == null || !dbFile.equals(lastFileAccessed)) {
             PerformanceCounters.inc(PerformanceCounters.STORAGE_FILE_CHANGES);
             lastPageNoAccessed = 0;
@@ -130,7 +134,7 @@ public class FileManagerImpl implements FileManager {
      *
      * @throws IllegalArgumentException if the page number is negative
      */
-    private long getPageStart(DBFile dbFile, int pageNo) {
+    protected long getPageStart(DBFile dbFile, int pageNo) {
         if (pageNo < 0)
             throw new IllegalArgumentException("pageNo must be >= 0, got " + pageNo);
 
@@ -236,40 +240,17 @@ public class FileManagerImpl implements FileManager {
         long pageStart = getPageStart(dbFile, pageNo);
 
         RandomAccessFile fileContents = dbFile.getFileContents();
-        fileContents.seek(pageStart);
         try {
-            fileContents.readFully(buffer);
+            synchronized (fileContents) {
+                fileContents.seek(pageStart);
+                fileContents.readFully(buffer);
+            }
         }
         catch (EOFException e) {
             if (create) {
                 // Caller wants to create the page if it doesn't already exist
                 // yet.  Don't let the exception propagate.
-
-                logger.debug(String.format(
-                    "Requested page %d doesn't yet exist in file %s; creating.",
-                    pageNo, dbFile.getDataFile().getName()));
-
-                // ...of course, we don't propagate the exception, but we also
-                // don't actually extend the file's size until the page is
-                // stored back to the file...
-                long newLength = (1L + (long) pageNo) * (long) dbFile.getPageSize();
-
-                // This check is just for safety.  It would be highly irregular
-                // to get an EOF exception and then have the file actually be
-                // longer than we expect.  But, if it happens, we'll scream.
-                long oldLength = fileContents.length();
-                if (oldLength < newLength) {
-                    fileContents.setLength(newLength);
-                    logger.debug("Set file " + dbFile + " length to " + newLength);
-                }
-                else {
-                    String msg = "Expected DB file to be less than " +
-                        newLength + " bytes long, but it's " + oldLength +
-                        " bytes long!";
-
-                    logger.error(msg);
-                    throw new IOException(msg);
-                }
+                createPage(dbFile, pageNo, buffer);
             }
             else {
                 // Caller expected the page to exist!  Let the exception propagate.
@@ -279,6 +260,57 @@ public class FileManagerImpl implements FileManager {
     }
 
 
+    /**
+     * This helper function handles a request to load a page that is past the
+     * end of the file, when the caller asked for the page to be created.  The
+     * buffer is zeroed out, and the file is extended to include the page.
+     *
+     * @param dbFile the database file to create the page in
+     * @param pageNo the number of the page that doesn't exist yet
+     * @param buffer the buffer to hold the new page's data
+     *
+     * @throws IOException if the file is unexpectedly already long enough to
+     *         contain the page, or if the file can't be extended
+     */
+    protected void createPage(DBFile dbFile, int pageNo, byte[] buffer)
+        throws IOException {
+
+        logger.debug(String.format(
+            "Requested page %d doesn't yet exist in file %s; creating.",
+            pageNo, dbFile.getDataFile().getName()));
+
+        // The buffer may be a recycled page frame, so clear out any
+        // old data in it; new pages always start out zeroed.
+        Arrays.fill(buffer, (byte) 0);
+
+        // ...of course, we don't propagate the exception, but we also
+        // don't actually extend the file's size until the page is
+        // stored back to the file...
+        long newLength = (1L + (long) pageNo) * (long) dbFile.getPageSize();
+
+        // This check is just for safety.  It would be highly irregular
+        // to get an EOF exception and then have the file actually be
+        // longer than we expect.  But, if it happens, we'll scream.
+        RandomAccessFile fileContents = dbFile.getFileContents();
+        synchronized (fileContents) {
+            long oldLength = fileContents.length();
+            if (oldLength < newLength) {
+                fileContents.setLength(newLength);
+                logger.debug("Set file " + dbFile + " length to " +
+                    newLength);
+            }
+            else {
+                String msg = "Expected DB file to be less than " +
+                    newLength + " bytes long, but it's " + oldLength +
+                    " bytes long!";
+
+                logger.error(msg);
+                throw new IOException(msg);
+            }
+        }
+    }
+
+
     @Override
     public void loadPage(DBFile dbFile, int pageNo, byte[] buffer)
         throws IOException {
@@ -286,6 +318,60 @@ public class FileManagerImpl implements FileManager {
     }
 
 
+    /**
+     * This helper function checks that all of the buffers for a multi-page
+     * operation are the same size as the file's pages.
+     *
+     * @param dbFile the database file the pages are from
+     * @param buffers the buffers holding the pages' data
+     *
+     * @throws IllegalArgumentException if a buffer is not the same length as
+     *         the file's page-size
+     */
+    protected void checkBuffers(DBFile dbFile, byte[][] buffers) {
+        for (byte[] buffer : buffers) {
+            if (buffer.length != dbFile.getPageSize()) {
+                throw new IllegalArgumentException("Buffer has a different " +
+                    "size from the specified DBFile page-size");
+            }
+        }
+    }
+
+
+    @Override
+    public int loadPages(DBFile dbFile, int firstPageNo, byte[][] buffers)
+        throws IOException {
+
+        checkBuffers(dbFile, buffers);
+
+        checkBuffers(dbFile, buffers);
+
+        int pageSize = dbFile.getPageSize();
+        long pageStart = getPageStart(dbFile, firstPageNo);
+
+        int numPages;
+        RandomAccessFile fileContents = dbFile.getFileContents();
+        synchronized (fileContents) {
+            long available = (fileContents.length() - pageStart) / pageSize;
+            numPages = (int) Math.max(0, Math.min(buffers.length, available));
+
+            // RandomAccessFile can't scatter a read into several buffers, but
+            // the pages are at least read back to back after a single seek.
+            if (numPages > 0) {
+                fileContents.seek(pageStart);
+                for (int i = 0; i < numPages; i++)
+                    fileContents.readFully(buffers[i]);
+            }
+        }
+
+        // Update our file-IO performance counters
+        for (int i = 0; i < numPages; i++)
+            updateFileIOPerfStats(dbFile, firstPageNo + i, /* read */ true, pageSize);
+
+        return numPages;
+    }
+
+
     @Override
     public void savePage(DBFile dbFile, int pageNo, byte[] buffer)
         throws IOException {
@@ -306,8 +392,42 @@ public class FileManagerImpl implements FileManager {
         long pageStart = getPageStart(dbFile, pageNo);
 
         RandomAccessFile fileContents = dbFile.getFileContents();
-        fileContents.seek(pageStart);
-        fileContents.write(buffer);
+        synchronized (fileContents) {
+            fileContents.seek(pageStart);
+            fileContents.write(buffer);
+        }
+    }
+
+
+    /**
+     * This file manager doesn't memory-map files, so this method always
+     * returns {@code null}.
+     */
+    @Override
+    public ByteBuffer mapPage(DBFile dbFile, int pageNo) throws IOException {
+        return null;
+    }
+
+
+    @Override
+    public void savePages(DBFile dbFile, int firstPageNo, byte[][] buffers)
+        throws IOException {
+
+        checkBuffers(dbFile, buffers);
+
+        // Update our file-IO performance counters
+        int pageSize = dbFile.getPageSize();
+        for (int i = 0; i < buffers.length; i++)
+            updateFileIOPerfStats(dbFile, firstPageNo + i, /* read */ false, pageSize);
+
+        long pageStart = getPageStart(dbFile, firstPageNo);
+
+        RandomAccessFile fileContents = dbFile.getFileContents();
+        synchronized (fileContents) {
+            fileContents.seek(pageStart);
+            for (byte[] buffer : buffers)
+                fileContents.write(buffer);
+        }
     }
 
 
@@ -0,0 +1,194 @@
+package edu.caltech.nanodb.storage;
+
+
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * This class holds the free page frames of the {@link BufferManager}, so
+ * that the byte-arrays used for page data can be recycled instead of being
+ * allocated for every page load and left for the garbage collector when the
+ * page is evicted.
+ * <p>
+ * Frames are pooled by size.  Since valid page sizes are powers of two (see
+ * {@link DBFile#isValidPageSize}), each size has its own free-list, indexed
+ * by the base-2 logarithm of the size.  Each free-list is a fixed-capacity
+ * stack of frames, so that taking and returning frames never allocates
+ * anything.  Buffers whose size is not a valid page size are not pooled.
+ * <p>
+ * The pool does not enforce the page-cache size itself; the Buffer Manager
+ * is responsible for keeping the total of in-use and free frames within its
+ * limit, using {@link #getFreeBytes} and {@link #trim}.
+ */
+class FramePool {
+
+    /** A fixed-capacity stack of free frames that all have the same size. */
+    private static class FrameStack {
+        /** The maximum number of free frames the stack can hold. */
+        final int capacity;
+
+        /**
+         * The free frames; only the first {@link #count} are valid.  This is
+         * allocated the first time a frame is returned to the stack, since
+         * most databases only use one or two page sizes.
+         */
+        byte[][] frames;
+
+        /** The number of free frames in the stack. */
+        int count;
+
+        FrameStack(int capacity) {
+            this.capacity = capacity;
+        }
+    }
+
+
+    /** The free-lists, indexed by the base-2 logarithm of the frame size. */
+    private final FrameStack[] freeLists;
+
+
+    /** The total size of all frames currently held in the pool. */
+    private final AtomicLong freeBytes = new AtomicLong();
+
+
+    /**
+     * Creates a frame pool for a page cache of the specified size.  Each
+     * free-list can hold enough frames to fill the entire page cache.
+     *
+     * @param maxCacheSize the maximum size of the page cache, in bytes
+     */
+    public FramePool(long maxCacheSize) {
+        freeLists =
+            new FrameStack[Integer.numberOfTrailingZeros(DBFile.MAX_PAGESIZE) + 1];
+        for (int size = DBFile.MIN_PAGESIZE; size <= DBFile.MAX_PAGESIZE;
+             size *= 2) {
+            long capacity = Math.min(Integer.MAX_VALUE - 8, maxCacheSize / size);
+            freeLists[Integer.numberOfTrailingZeros(size)] =
+                new FrameStack((int) Math.max(1, capacity));
+        }
+    }
+
+
+    /**
+     * Returns the free-list for frames of the specified size, or
+     * {@code null} if frames of that size are not pooled.
+     */
+    private FrameStack getFreeList(int size) {
+        if (!DBFile.isValidPageSize(size))
+            return null;
+
+        return freeLists[Integer.numberOfTrailingZeros(size)];
+    }
+
+
+    /**
+     * Takes a free frame of the specified size from the pool.  Note that the
+     * frame still holds whatever data it held when it was returned to the
+     * pool.
+     *
+     * @param size the size of the frame to take
+     *
+     * @return a free frame of the specified size, or {@code null} if the
+     *         pool has no free frames of that size
+     */
+    public byte[] take(int size) {
+        FrameStack stack = getFreeList(size);
+        if (stack == null)
+            return null;
+
+        byte[] frame = null;
+        synchronized (stack) {
+            if (stack.count > 0) {
+                stack.count--;
+                frame = stack.frames[stack.count];
+                stack.frames[stack.count] = null;
+            }
+        }
+
+        if (frame != null)
+            freeBytes.addAndGet(-size);
+
+        return frame;
+    }
+
+
+    /**
+     * Returns a frame to the pool, so that it can be reused.
+     *
+     * @param frame the frame to return to the pool
+     *
+     * @return true if the pool kept the frame, or false if the frame's size
+     *         is not pooled or the pool is full
+     */
+    public boolean give(byte[] frame) {
+        FrameStack stack = getFreeList(frame.length);
+        if (stack == null)
+            return false;
+
+        synchronized (stack) {
+            if (stack.frames == null)
+                stack.frames = new byte[stack.capacity][];
+
+            if (stack.count == stack.capacity)
+                return false;
+
+            stack.frames[stack.count] = frame;
+            stack.count++;
+        }
+
+        freeBytes.addAndGet(frame.length);
+        return true;
+    }
+
+
+    /**
+     * Returns the total size of all frames currently held in the pool.
+     *
+     * @return the total size of all frames currently held in the pool
+     */
+    public long getFreeBytes() {
+        return freeBytes.get();
+    }
+
+
+    /**
+     * Discards free frames whose size is not {@code keepSize}, until at most
+     * {@code maxFreeBytes} bytes of free frames remain or there are no more
+     * frames of other sizes.  This is used when the database accesses files
+     * with different page sizes, so that free frames of one size don't keep
+     * frames of another size from being allocated.
+     *
+     * @param maxFreeBytes the target for the total size of free frames
+     *
+     * @param keepSize the size of frames that should not be discarded
+     *
+     * @return the number of bytes of frames that were discarded
+     */
+    public long trim(long maxFreeBytes, int keepSize) {
+        FrameStack keepStack = getFreeList(keepSize);
+        long discarded = 0;
+
+        for (FrameStack stack : freeLists) {
+            if (stack == null || stack == keepStack)
+                continue;
+
+            synchronized (stack) {
+                while (stack.count > 0 &&
+                       freeBytes.get() - discarded > maxFreeBytes) {
+                    stack.count--;
+                    discarded += stack.frames[stack.count].length;
+                    stack.frames[stack.count] = null;
+                }
+            }
+        }
+
+        freeBytes.addAndGet(-discarded);
+        return discarded;
+    }
+
+
+    /** Discards all free frames in the pool. */
+    public void clear() {
+        trim(0, 0);
+    }
+}
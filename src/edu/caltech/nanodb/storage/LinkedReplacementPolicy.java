@@ -0,0 +1,81 @@
+package edu.caltech.nanodb.storage;
+
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+/**
+ * This page-replacement policy implements least-recently-used (LRU) or
+ * first-in-first-out (FIFO) replacement on top of a {@link LinkedHashMap}.
+ * In LRU mode the map is kept in access order, otherwise it is kept in
+ * insertion order; either way, the first entry in the map is the best
+ * candidate for eviction.
+ * <p>
+ * Neither of these policies is scan-resistant:  a large sequential scan will
+ * push every other page out of the cache.
+ *
+ * @param <K> the type of key used to identify cached pages
+ */
+class LinkedReplacementPolicy<K> implements PageReplacementPolicy<K> {
+
+    /** The cached pages, in eviction order. */
+    private LinkedHashMap<K, DBPage> pages;
+
+
+    /**
+     * Creates a new LRU or FIFO policy.
+     *
+     * @param accessOrder true for LRU replacement, false for FIFO replacement
+     */
+    public LinkedReplacementPolicy(boolean accessOrder) {
+        pages = new LinkedHashMap<>(16, 0.75f, accessOrder);
+    }
+
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Note that for LRU replacement, {@link LinkedHashMap} has no way to
+     * look up an entry without moving it to the end of the access order, so
+     * every lookup counts as an access regardless of {@code recordAccess}.
+     */
+    @Override
+    public DBPage get(K key, boolean recordAccess) {
+        return pages.get(key);
+    }
+
+
+    @Override
+    public void put(K key, DBPage dbPage) {
+        if (pages.containsKey(key))
+            throw new IllegalStateException("Policy already contains page " + key);
+
+        pages.put(key, dbPage);
+    }
+
+
+    @Override
+    public DBPage remove(K key) {
+        return pages.remove(key);
+    }
+
+
+    @Override
+    public int size() {
+        return pages.size();
+    }
+
+
+    @Override
+    public Iterator<Map.Entry<K, DBPage>> iterator() {
+        return pages.entrySet().iterator();
+    }
+
+
+    @Override
+    public Iterator<Map.Entry<K, DBPage>> evictionCandidates() {
+        return pages.entrySet().iterator();
+    }
+}
@@ -0,0 +1,156 @@
+package edu.caltech.nanodb.storage;
+
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+
+/**
+ * This file manager memory-maps table files, so that pages of tables can be
+ * read directly from the operating system's page cache instead of being
+ * copied into a buffer first.  The Storage Manager asks for a mapped view of
+ * each table page it loads with {@link #mapPage}, and constructs a
+ * {@link DBPage} that reads from the view.  Changes are never made through
+ * the mapping; a page is copied into a buffer before it is changed, and
+ * dirty pages are written with the positional writes inherited from
+ * {@link ChannelFileManager}.  Since the mapping and the writes both go
+ * through the operating system's page cache, the mapping always reflects
+ * the pages that have been written.
+ * <p>
+ * Only heap and B<sup>+</sup> tree tuple files are mapped.  Other files,
+ * such as the write-ahead log and temporary files, are mostly written
+ * rather than read, so they are accessed in the usual way.
+ * <p>
+ * This file manager is selected by setting the
+ * {@link StorageManager#PROP_FILE_IO} property to <tt>"mmap"</tt>.
+ *
+ * @design Each file is mapped in fixed-size segments, since a single
+ *         mapping can't be larger than 2GB.  Pages never cross a segment
+ *         boundary, because the segment size is a multiple of every page
+ *         size.  A segment that doesn't reach the end of the file yet is
+ *         mapped again, at its larger size, when a page past its end is
+ *         requested.  The old mappings are released when they are garbage
+ *         collected.
+ */
+public class MappedFileManager extends ChannelFileManager {
+
+    /** A logging object for reporting anything interesting that happens. */
+    private static Logger logger = Logger.getLogger(MappedFileManager.class);
+
+
+    /** The size of each mapped segment of a file. */
+    private static final int SEGMENT_SIZE = 64 * 1024 * 1024;
+
+
+    /** The mapped segments of a single file. */
+    private static class FileMapping {
+        /** The segments, some of which may not be mapped yet. */
+        MappedByteBuffer[] segments = new MappedByteBuffer[0];
+    }
+
+
+    /**
+     * The mappings of the files that have been mapped.  The files are keyed
+     * by identity, since a {@link DBFile}'s hash-code changes if the file is
+     * renamed.
+     */
+    private Map<DBFile, FileMapping> mappings =
+        Collections.synchronizedMap(new IdentityHashMap<DBFile, FileMapping>());
+
+
+    /**
+     * Create a file-manager instance that uses the specified base directory.
+     *
+     * @param baseDir the base-directory that the file-manager should use
+     */
+    public MappedFileManager(File baseDir) {
+        super(baseDir);
+    }
+
+
+    /**
+     * Returns {@code true} if pages of the specified file should be read
+     * through a memory mapping.
+     */
+    private boolean isMappable(DBFile dbFile) {
+        DBFileType type = dbFile.getType();
+        return type == DBFileType.HEAP_TUPLE_FILE ||
+               type == DBFileType.BTREE_TUPLE_FILE;
+    }
+
+
+    @Override
+    public ByteBuffer mapPage(DBFile dbFile, int pageNo) throws IOException {
+        if (!isMappable(dbFile))
+            return null;
+
+        int pageSize = dbFile.getPageSize();
+        long pageStart = getPageStart(dbFile, pageNo);
+        int segmentNo = (int) (pageStart / SEGMENT_SIZE);
+        int offset = (int) (pageStart % SEGMENT_SIZE);
+
+        FileMapping mapping = mappings.get(dbFile);
+        if (mapping == null) {
+            mapping = new FileMapping();
+            mappings.put(dbFile, mapping);
+        }
+
+        MappedByteBuffer segment;
+        synchronized (mapping) {
+            if (segmentNo >= mapping.segments.length) {
+                mapping.segments =
+                    Arrays.copyOf(mapping.segments, segmentNo + 1);
+            }
+
+            segment = mapping.segments[segmentNo];
+            if (segment == null || segment.capacity() < offset + pageSize) {
+                FileChannel channel = dbFile.getFileContents().getChannel();
+
+                // Pages past the end of the file are created in the usual
+                // way, and can be mapped once they have been written.
+                long fileSize = channel.size();
+                if (pageStart + pageSize > fileSize)
+                    return null;
+
+                long segmentStart = (long) segmentNo * SEGMENT_SIZE;
+                long length = Math.min(SEGMENT_SIZE, fileSize - segmentStart);
+
+                logger.debug(String.format("Mapping %d bytes of file %s " +
+                    "starting at offset %d.", length, dbFile, segmentStart));
+
+                segment = channel.map(FileChannel.MapMode.READ_ONLY,
+                    segmentStart, length);
+                mapping.segments[segmentNo] = segment;
+            }
+        }
+
+        // Make a view of just the page's region of the segment.
+        ByteBuffer view = segment.duplicate();
+        view.position(offset);
+        view.limit(offset + pageSize);
+        return view.slice();
+    }
+
+
+    @Override
+    public void closeDBFile(DBFile dbFile) throws IOException {
+        mappings.remove(dbFile);
+        super.closeDBFile(dbFile);
+    }
+
+
+    @Override
+    public void deleteDBFile(DBFile dbFile) throws IOException {
+        mappings.remove(dbFile);
+        super.deleteDBFile(dbFile);
+    }
+}
@@ -0,0 +1,446 @@
+package edu.caltech.nanodb.storage;
+
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import edu.caltech.nanodb.server.performance.PerformanceCounters;
+
+
+/**
+ * This class implements asynchronous read-ahead for sequential page access.
+ * The Storage Manager reports every page it loads to {@link #recordAccess};
+ * once a file has been read sequentially for a few pages, the prefetcher
+ * asks a background I/O thread to read the next several pages of the file
+ * into the Buffer Manager, so that a scan can keep evaluating tuples while
+ * the pages it will need next are being read.
+ * <p>
+ * Prefetched pages are added to the Buffer Manager unpinned, so they can be
+ * evicted like any other page if they aren't used.  Pages that are already
+ * cached are never read again, and consecutive uncached pages are read with
+ * a single {@link FileManager#loadPages} call.
+ *
+ * @design The I/O thread holds {@link #ioLock} while it works on a request,
+ *         and {@link #cancel} acquires the same lock, so once {@code cancel}
+ *         returns the prefetcher won't add any more pages of the file to the
+ *         Buffer Manager.  This keeps pages from being prefetched into the
+ *         cache after a file has been flushed out of it to be closed.
+ */
+public class PagePrefetcher {
+    /** A logging object for reporting anything interesting that happens. */
+    private static Logger logger = Logger.getLogger(PagePrefetcher.class);
+
+
+    /**
+     * The system property that can be used to specify how many pages ahead
+     * of a sequential scan the prefetcher reads.  A value of 0 disables
+     * read-ahead.
+     */
+    public static final String PROP_READAHEAD_PAGES =
+        "nanodb.pagecache.readahead";
+
+    /** The default number of pages to read ahead. */
+    public static final int DEFAULT_READAHEAD_PAGES = 32;
+
+    /** The maximum number of pages to read ahead. */
+    public static final int MAX_READAHEAD_PAGES = 1024;
+
+
+    /**
+     * The number of consecutive page-to-page steps that must be seen in a
+     * file before it is considered to be read sequentially.
+     */
+    private static final int SEQUENTIAL_THRESHOLD = 2;
+
+
+    /**
+     * Read-ahead is limited to this fraction of the page cache, so that
+     * prefetched pages don't push out the pages that are actually in use.
+     */
+    private static final int MAX_CACHE_FRACTION = 4;
+
+
+    /** The maximum number of requests waiting for the I/O thread. */
+    private static final int MAX_QUEUED_REQUESTS = 32;
+
+
+    /** How long the I/O thread waits for a request before checking again. */
+    private static final long POLL_MILLIS = 100;
+
+
+    /** Records the recent page accesses against a single file. */
+    private static class AccessState {
+        /** The page that was accessed most recently. */
+        int lastPageNo = -1;
+
+        /** The number of sequential steps leading up to the last page. */
+        int sequentialRun;
+
+        /** The page after the last page that read-ahead was requested for. */
+        int prefetchedUpTo;
+
+        /**
+         * Set when the file is being removed from the Buffer Manager, so
+         * that queued requests against it are dropped.  This is only
+         * accessed while holding {@link #ioLock}.
+         */
+        boolean cancelled;
+    }
+
+
+    /** A request to read a range of pages of a file into the cache. */
+    private static class Request {
+        DBFile dbFile;
+
+        AccessState state;
+
+        int startPageNo;
+
+        int endPageNo;
+
+        Request(DBFile dbFile, AccessState state, int startPageNo,
+                int endPageNo) {
+            this.dbFile = dbFile;
+            this.state = state;
+            this.startPageNo = startPageNo;
+            this.endPageNo = endPageNo;
+        }
+    }
+
+
+    private BufferManager bufferManager;
+
+
+    private FileManager fileManager;
+
+
+    /** The maximum size of the page cache, in bytes. */
+    private long maxCacheSize;
+
+
+    /** The number of pages to read ahead of a sequential scan. */
+    private volatile int readAheadPages;
+
+
+    /** The access pattern of each file that has been read recently. */
+    private ConcurrentHashMap<DBFile, AccessState> accessStates;
+
+
+    /** Read-ahead requests that are waiting for the I/O thread. */
+    private ArrayBlockingQueue<Request> requests;
+
+
+    /** Held by the I/O thread while it works on a request. */
+    private final Object ioLock = new Object();
+
+
+    /**
+     * The background thread that performs read-ahead, or {@code null} if it
+     * hasn't been started yet.
+     */
+    private Thread ioThread;
+
+
+    /** Set when the prefetcher is shut down. */
+    private volatile boolean shutDown;
+
+
+    public PagePrefetcher(BufferManager bufferManager, FileManager fileManager,
+                          long maxCacheSize) {
+        this.bufferManager = bufferManager;
+        this.fileManager = fileManager;
+        this.maxCacheSize = maxCacheSize;
+
+        accessStates = new ConcurrentHashMap<>();
+        requests = new ArrayBlockingQueue<>(MAX_QUEUED_REQUESTS);
+
+        readAheadPages = configureReadAheadPages();
+    }
+
+
+    private int configureReadAheadPages() {
+        String str = System.getProperty(PROP_READAHEAD_PAGES);
+        if (str == null)
+            return DEFAULT_READAHEAD_PAGES;
+
+        try {
+            int pages = Integer.parseInt(str.trim());
+            if (pages >= 0 && pages <= MAX_READAHEAD_PAGES)
+                return pages;
+        }
+        catch (NumberFormatException e) {
+            // Fall through to the error below.
+        }
+
+        logger.error(String.format("Invalid value \"%s\" for %s; using " +
+            "default value of %d pages.", str, PROP_READAHEAD_PAGES,
+            DEFAULT_READAHEAD_PAGES));
+
+        return DEFAULT_READAHEAD_PAGES;
+    }
+
+
+    /**
+     * Returns the number of pages that are read ahead of a sequential scan.
+     *
+     * @return the number of pages that are read ahead, or 0 if read-ahead is
+     *         disabled
+     */
+    public int getReadAheadPages() {
+        return readAheadPages;
+    }
+
+
+    /**
+     * Sets the number of pages that are read ahead of a sequential scan.
+     *
+     * @param pages the number of pages to read ahead, or 0 to disable
+     *        read-ahead
+     *
+     * @throws IllegalArgumentException if the number of pages is negative or
+     *         larger than {@link #MAX_READAHEAD_PAGES}
+     */
+    public void setReadAheadPages(int pages) {
+        if (pages < 0 || pages > MAX_READAHEAD_PAGES) {
+            throw new IllegalArgumentException(PROP_READAHEAD_PAGES +
+                " must be in the range [0, " + MAX_READAHEAD_PAGES + "], got " +
+                pages);
+        }
+
+        readAheadPages = pages;
+    }
+
+
+    /**
+     * Records that a page of a file was just loaded.  If the file is being
+     * read sequentially and the read-ahead window is running low, this method
+     * asks the I/O thread to read the next pages of the file.
+     *
+     * @param dbFile the file that the page was loaded from
+     *
+     * @param pageNo the page that was loaded
+     */
+    public void recordAccess(DBFile dbFile, int pageNo) {
+        AccessState state = accessStates.get(dbFile);
+        if (state == null) {
+            accessStates.putIfAbsent(dbFile, new AccessState());
+            state = accessStates.get(dbFile);
+            if (state == null)  // The file was cancelled in the meantime.
+                return;
+        }
+
+        Request request;
+        synchronized (state) {
+            if (pageNo == state.lastPageNo)
+                return;
+
+            if (pageNo == state.lastPageNo + 1) {
+                state.sequentialRun++;
+            }
+            else {
+                state.sequentialRun = 0;
+                state.prefetchedUpTo = 0;
+            }
+            state.lastPageNo = pageNo;
+
+            int window = getWindowPages(dbFile);
+            if (state.sequentialRun < SEQUENTIAL_THRESHOLD || window == 0)
+                return;
+
+            // Top the window back up once half of it has been consumed.
+            if (state.prefetchedUpTo - pageNo > window / 2)
+                return;
+
+            int startPageNo = Math.max(state.prefetchedUpTo, pageNo + 1);
+            int endPageNo = pageNo + 1 + window;
+
+            request = new Request(dbFile, state, startPageNo, endPageNo);
+            if (!requests.offer(request)) {
+                // The I/O thread is falling behind; don't pile up more work.
+                return;
+            }
+
+            state.prefetchedUpTo = endPageNo;
+        }
+
+        startIOThread();
+    }
+
+
+    /**
+     * Returns the number of pages to read ahead in the specified file, which
+     * is limited by the size of the page cache.
+     */
+    private int getWindowPages(DBFile dbFile) {
+        long cachePages = maxCacheSize / dbFile.getPageSize();
+        return (int) Math.min(readAheadPages, cachePages / MAX_CACHE_FRACTION);
+    }
+
+
+    /** Starts the I/O thread if it isn't already running. */
+    private synchronized void startIOThread() {
+        if (ioThread != null || shutDown)
+            return;
+
+        ioThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runIOThread();
+            }
+        }, "nanodb-readahead");
+        ioThread.setDaemon(true);
+        ioThread.start();
+    }
+
+
+    private void runIOThread() {
+        while (!shutDown) {
+            Request request;
+            try {
+                request = requests.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+            }
+            catch (InterruptedException e) {
+                break;
+            }
+
+            if (request == null)
+                continue;
+
+            synchronized (ioLock) {
+                if (request.state.cancelled || shutDown)
+                    continue;
+
+                try {
+                    prefetch(request);
+                }
+                catch (IOException | RuntimeException e) {
+                    // Read-ahead is only an optimization; the scan will read
+                    // the pages itself, and report any real problem.
+                    logger.warn(String.format("Couldn't read ahead pages " +
+                        "[%d, %d) of file %s", request.startPageNo,
+                        request.endPageNo, request.dbFile), e);
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Reads the requested pages that aren't already cached into the Buffer
+     * Manager, a run of consecutive pages at a time.
+     */
+    private void prefetch(Request request) throws IOException {
+        DBFile dbFile = request.dbFile;
+        int endPageNo = Math.min(request.endPageNo, dbFile.getNumPages());
+
+        int pageNo = request.startPageNo;
+        while (pageNo < endPageNo && !shutDown) {
+            if (bufferManager.containsPage(dbFile, pageNo)) {
+                pageNo++;
+                continue;
+            }
+
+            int runEndPageNo = pageNo + 1;
+            while (runEndPageNo < endPageNo &&
+                   !bufferManager.containsPage(dbFile, runEndPageNo)) {
+                runEndPageNo++;
+            }
+
+            prefetchRun(dbFile, pageNo, runEndPageNo);
+            pageNo = runEndPageNo;
+        }
+    }
+
+
+    /** Reads a run of uncached pages into the Buffer Manager. */
+    private void prefetchRun(DBFile dbFile, int startPageNo, int endPageNo)
+        throws IOException {
+
+        DBPage[] pages = new DBPage[endPageNo - startPageNo];
+        int numAdded = 0;
+        try {
+            // Allocate all the pages before taking the stamp, since making
+            // room for them may cause other pages to be evicted.
+            byte[][] buffers = new byte[pages.length][];
+            for (int i = 0; i < pages.length; i++) {
+                pages[i] = new DBPage(bufferManager, dbFile, startPageNo + i);
+                buffers[i] = pages[i].getPageData();
+            }
+
+            long stamp = bufferManager.getPrefetchStamp();
+            if (stamp < 0)  // Dirty pages are being written out right now.
+                return;
+
+            int numRead = fileManager.loadPages(dbFile, startPageNo, buffers);
+            for (int i = 0; i < numRead; i++) {
+                if (bufferManager.addPrefetchedPage(pages[i], stamp)) {
+                    pages[i] = null;
+                    numAdded++;
+                }
+            }
+        }
+        finally {
+            // Release the pages that weren't added to the Buffer Manager.
+            for (DBPage dbPage : pages) {
+                if (dbPage != null)
+                    dbPage.invalidate();
+            }
+        }
+
+        logger.debug(String.format("Read ahead %d of pages [%d, %d) of " +
+            "file %s.", numAdded, startPageNo, endPageNo, dbFile));
+
+        PerformanceCounters.add(PerformanceCounters.STORAGE_PAGES_PREFETCHED,
+            numAdded);
+    }
+
+
+    /**
+     * Stops reading ahead in the specified file.  Once this method returns,
+     * no more pages of the file will be added to the Buffer Manager until
+     * the file is accessed again.
+     *
+     * @param dbFile the file to stop reading ahead in
+     */
+    public void cancel(DBFile dbFile) {
+        AccessState state = accessStates.remove(dbFile);
+        if (state == null)
+            return;
+
+        // Wait for any request that is in progress to finish.
+        synchronized (ioLock) {
+            state.cancelled = true;
+        }
+    }
+
+
+    /**
+     * Stops the I/O thread.  Read-ahead requests that haven't been started
+     * yet are dropped.
+     */
+    public void shutdown() {
+        Thread thread;
+        synchronized (this) {
+            shutDown = true;
+            thread = ioThread;
+        }
+
+        // The thread is not interrupted, since interrupting a thread that is
+        // reading from a file channel closes the channel.
+        if (thread != null) {
+            try {
+                thread.join();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        requests.clear();
+        accessStates.clear();
+    }
+}
@@ -0,0 +1,91 @@
+package edu.caltech.nanodb.storage;
+
+
+import java.util.Iterator;
+import java.util.Map;
+
+
+/**
+ * This interface specifies the operations that a page-replacement policy
+ * must provide to the {@link BufferManager}.  A policy holds a collection of
+ * cached pages, keyed by some identifier of the page, and also decides the
+ * order in which unpinned pages should be considered for eviction.
+ * <p>
+ * Implementations do not need to be thread-safe; the Buffer Manager only
+ * calls a policy while holding the monitor of the page-table stripe that
+ * owns the policy.
+ *
+ * @param <K> the type of key used to identify cached pages
+ */
+interface PageReplacementPolicy<K> {
+
+    /**
+     * Returns the page with the specified key, or {@code null} if the page
+     * is not held by the policy.
+     *
+     * @param key the key of the page to retrieve
+     *
+     * @param recordAccess if true, the lookup is counted as an access to the
+     *        page for the purposes of the replacement policy
+     *
+     * @return the page with the specified key, or {@code null}
+     */
+    DBPage get(K key, boolean recordAccess);
+
+
+    /**
+     * Adds a page that is not currently held by the policy.
+     *
+     * @param key the key of the page to add
+     *
+     * @param dbPage the page to add
+     *
+     * @throws IllegalStateException if a page with this key is already held
+     *         by the policy
+     */
+    void put(K key, DBPage dbPage);
+
+
+    /**
+     * Removes the page with the specified key.  This is not considered to be
+     * an eviction, so it does not affect any history the policy keeps about
+     * evicted pages.
+     *
+     * @param key the key of the page to remove
+     *
+     * @return the removed page, or {@code null} if no page had the key
+     */
+    DBPage remove(K key);
+
+
+    /**
+     * Returns the number of pages held by the policy.
+     *
+     * @return the number of pages held by the policy
+     */
+    int size();
+
+
+    /**
+     * Returns an iterator over all pages held by the policy, in no particular
+     * order.  The iterator's {@code remove()} method is supported, and has the
+     * same effect as {@link #remove}.
+     *
+     * @return an iterator over all pages held by the policy
+     */
+    Iterator<Map.Entry<K, DBPage>> iterator();
+
+
+    /**
+     * Returns an iterator over the pages held by the policy, with the best
+     * candidates for eviction first.  The caller will skip over pages that
+     * cannot be evicted (e.g. because they are pinned), and will call the
+     * iterator's {@code remove()} method on the pages that it does evict.
+     * Each step of the iteration must take constant (amortized) time.
+     * Policies may update their internal state as a side effect of iterating,
+     * e.g. to advance a clock hand.
+     *
+     * @return an iterator over the pages in eviction order
+     */
+    Iterator<Map.Entry<K, DBPage>> evictionCandidates();
+}
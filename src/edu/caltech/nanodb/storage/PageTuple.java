@@ -130,7 +130,7 @@ public abstract class PageTuple implements Tuple {
      * @return {@code true} since page tuples are backed by disk pages.
      */
     public boolean isDiskBacked() {
-        return false;
+        return true;
     }
 
 
@@ -450,6 +450,76 @@ public abstract class PageTuple implements Tuple {
     }
 
 
+    /**
+     * Returns the value of an <tt>INTEGER</tt> column as an <tt>int</tt>,
+     * reading it directly from the page without creating an
+     * {@link Integer} object.  The column must not be <tt>NULL</tt>.
+     *
+     * @param colIndex the index of the column to read
+     *
+     * @return the column's value
+     *
+     * @throws IllegalStateException if the column is <tt>NULL</tt>
+     */
+    public int getIntColumnValue(int colIndex) {
+        return dbPage.readInt(getPrimitiveValueOffset(colIndex,
+            SQLDataType.INTEGER));
+    }
+
+
+    /**
+     * Returns the value of a <tt>BIGINT</tt> column as a <tt>long</tt>,
+     * reading it directly from the page without creating a {@link Long}
+     * object.  The column must not be <tt>NULL</tt>.
+     *
+     * @param colIndex the index of the column to read
+     *
+     * @return the column's value
+     *
+     * @throws IllegalStateException if the column is <tt>NULL</tt>
+     */
+    public long getLongColumnValue(int colIndex) {
+        return dbPage.readLong(getPrimitiveValueOffset(colIndex,
+            SQLDataType.BIGINT));
+    }
+
+
+    /**
+     * Returns the value of a <tt>DOUBLE</tt> column as a <tt>double</tt>,
+     * reading it directly from the page without creating a {@link Double}
+     * object.  The column must not be <tt>NULL</tt>.
+     *
+     * @param colIndex the index of the column to read
+     *
+     * @return the column's value
+     *
+     * @throws IllegalStateException if the column is <tt>NULL</tt>
+     */
+    public double getDoubleColumnValue(int colIndex) {
+        return dbPage.readDouble(getPrimitiveValueOffset(colIndex,
+            SQLDataType.DOUBLE));
+    }
+
+
+    /**
+     * Checks that a column has the expected type and is not <tt>NULL</tt>,
+     * and returns the offset of its value in the page.
+     */
+    private int getPrimitiveValueOffset(int colIndex, SQLDataType type) {
+        checkColumnIndex(colIndex);
+
+        assert schema.getColumnInfo(colIndex).getType().getBaseType() == type;
+
+        int offset = valueOffsets[colIndex];
+        if (offset == NULL_OFFSET) {
+            throw new IllegalStateException("Column " + colIndex +
+                " is NULL");
+        }
+
+        return offset;
+    }
+
+
     /**
      * Sets the column to the specified value, or <tt>NULL</tt> if the value is
      * the Java <tt>null</tt> value.
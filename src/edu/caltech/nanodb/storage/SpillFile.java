@@ -0,0 +1,269 @@
+package edu.caltech.nanodb.storage;
+
+
+import java.io.IOException;
+
+import org.apache.log4j.Logger;
+
+import edu.caltech.nanodb.expressions.TupleLiteral;
+import edu.caltech.nanodb.relations.Schema;
+import edu.caltech.nanodb.relations.Tuple;
+
+
+/**
+ * This class provides a simple sequential tuple file, for query-evaluation
+ * operations that need to "spill" intermediate results to disk when they
+ * don't fit in memory.  Tuples are appended to the end of the file, and then
+ * read back in the same order; there is no support for updating or deleting
+ * individual tuples.  The file is stored in a temporary file created by
+ * {@link StorageManager#createTempDBFile}, and its pages are cached by the
+ * Buffer Manager, so small spill files may never actually reach the disk.
+ * <p>
+ * Page 0 of the file is the usual file header.  Each data page starts with an
+ * unsigned short recording the number of tuples in the page, followed by the
+ * tuples themselves, packed one after the other using the {@link PageTuple}
+ * storage format.  A tuple cannot span pages, so a tuple must fit within a
+ * single data page.
+ */
+public class SpillFile {
+
+    /** A logging object for reporting anything interesting that happens. */
+    private static Logger logger = Logger.getLogger(SpillFile.class);
+
+
+    /** The offset in each data page of the page's tuple count. */
+    private static final int OFFSET_NUM_TUPLES = 0;
+
+
+    /** The offset in each data page where tuple data starts. */
+    private static final int OFFSET_FIRST_TUPLE = 2;
+
+
+    /**
+     * A page-tuple implementation for reading tuples back out of the spill
+     * file.  Spilled tuples are never modified in place, so the operations
+     * for changing a tuple's size are not supported.
+     */
+    private static class SpillPageTuple extends PageTuple {
+        public SpillPageTuple(DBPage dbPage, int pageOffset, Schema schema) {
+            super(dbPage, pageOffset, schema);
+        }
+
+        @Override
+        protected void insertTupleDataRange(int off, int len) {
+            throw new UnsupportedOperationException(
+                "Spilled tuples cannot be modified");
+        }
+
+        @Override
+        protected void deleteTupleDataRange(int off, int len) {
+            throw new UnsupportedOperationException(
+                "Spilled tuples cannot be modified");
+        }
+    }
+
+
+    /** The storage manager used to access the file's pages. */
+    private StorageManager storageManager;
+
+
+    /** The temporary file holding the spilled tuples. */
+    private DBFile dbFile;
+
+
+    /** The schema of the tuples in the spill file. */
+    private Schema schema;
+
+
+    /** The total number of tuples written to the file. */
+    private long numTuples;
+
+
+    /**
+     * The page that tuples are currently being written to or read from, or
+     * {@code null} if there is no current page.  The current page is kept
+     * pinned.
+     */
+    private DBPage currentPage;
+
+
+    /** The offset in the current page to write or read the next tuple at. */
+    private int currentOffset;
+
+
+    /**
+     * When reading, the number of tuples left to read from the current
+     * page.
+     */
+    private int tuplesLeftInPage;
+
+
+    /** True if the file is being read, false if it is being written. */
+    private boolean reading;
+
+
+    /**
+     * Creates a new, empty spill file for tuples with the specified schema.
+     *
+     * @param storageManager the storage manager to create the file with
+     *
+     * @param schema the schema of the tuples to store in the file
+     *
+     * @throws IOException if an IO error occurs while creating the file
+     */
+    public SpillFile(StorageManager storageManager, Schema schema)
+        throws IOException {
+
+        if (storageManager == null)
+            throw new IllegalArgumentException("storageManager cannot be null");
+
+        if (schema == null)
+            throw new IllegalArgumentException("schema cannot be null");
+
+        this.storageManager = storageManager;
+        this.schema = schema;
+
+        dbFile = storageManager.createTempDBFile();
+        logger.debug("Created spill file " + dbFile);
+    }
+
+
+    /**
+     * Returns the schema of the tuples in the spill file.
+     *
+     * @return the schema of the tuples in the spill file
+     */
+    public Schema getSchema() {
+        return schema;
+    }
+
+
+    /**
+     * Returns the number of tuples written to the spill file.
+     *
+     * @return the number of tuples written to the spill file
+     */
+    public long getTupleCount() {
+        return numTuples;
+    }
+
+
+    /**
+     * Appends a tuple to the end of the spill file.  Tuples cannot be added
+     * once {@link #startReading} has been called.
+     *
+     * @param tuple the tuple to append
+     *
+     * @throws IOException if an IO error occurs while writing the tuple
+     *
+     * @throws IllegalStateException if the file is being read
+     */
+    public void addTuple(Tuple tuple) throws IOException {
+        if (reading)
+            throw new IllegalStateException("Spill file is being read");
+
+        int tupSize = PageTuple.getTupleStorageSize(schema, tuple);
+        int maxTupSize = dbFile.getPageSize() - OFFSET_FIRST_TUPLE;
+        if (tupSize > maxTupSize) {
+            throw new IllegalArgumentException("Tuple size " + tupSize +
+                " is larger than maximum allowed size " + maxTupSize);
+        }
+
+        if (currentPage == null ||
+            currentOffset + tupSize > dbFile.getPageSize()) {
+            // Start a new page at the end of the file.
+            if (currentPage != null)
+                currentPage.unpin();
+
+            currentPage = storageManager.loadDBPage(dbFile,
+                dbFile.getNumPages(), /* create */ true);
+            currentPage.writeShort(OFFSET_NUM_TUPLES, 0);
+            currentOffset = OFFSET_FIRST_TUPLE;
+        }
+
+        currentOffset = PageTuple.storeTuple(currentPage, currentOffset,
+            schema, tuple);
+        currentPage.writeShort(OFFSET_NUM_TUPLES,
+            currentPage.readUnsignedShort(OFFSET_NUM_TUPLES) + 1);
+
+        numTuples++;
+    }
+
+
+    /**
+     * Prepares the spill file to be read from the start.  Once this method
+     * is called, no more tuples can be added to the file.  It may be called
+     * again to reread the file from the start.
+     */
+    public void startReading() {
+        if (currentPage != null) {
+            currentPage.unpin();
+            currentPage = null;
+        }
+
+        reading = true;
+        tuplesLeftInPage = 0;
+    }
+
+
+    /**
+     * Returns the next tuple in the spill file, or {@code null} if all
+     * tuples have been read.  The tuple is copied out of the file's pages,
+     * so it remains valid after later calls to this method.
+     *
+     * @return the next tuple in the spill file, or {@code null} if all tuples
+     *         have been read
+     *
+     * @throws IOException if an IO error occurs while reading the tuple
+     *
+     * @throws IllegalStateException if {@link #startReading} has not been
+     *         called
+     */
+    public TupleLiteral readTuple() throws IOException {
+        if (!reading)
+            throw new IllegalStateException("startReading() was not called");
+
+        while (tuplesLeftInPage == 0) {
+            int nextPageNo = 1;
+            if (currentPage != null) {
+                nextPageNo = currentPage.getPageNo() + 1;
+                currentPage.unpin();
+                currentPage = null;
+            }
+
+            if (nextPageNo >= dbFile.getNumPages())
+                return null;
+
+            currentPage = storageManager.loadDBPage(dbFile, nextPageNo);
+            tuplesLeftInPage = currentPage.readUnsignedShort(OFFSET_NUM_TUPLES);
+            currentOffset = OFFSET_FIRST_TUPLE;
+        }
+
+        SpillPageTuple pageTup =
+            new SpillPageTuple(currentPage, currentOffset, schema);
+
+        TupleLiteral result = new TupleLiteral(pageTup);
+        currentOffset = pageTup.getEndOffset();
+        tuplesLeftInPage--;
+        pageTup.unpin();
+
+        return result;
+    }
+
+
+    /**
+     * Deletes the spill file.  The object cannot be used after this method
+     * is called.
+     *
+     * @throws IOException if an IO error occurs while deleting the file
+     */
+    public void delete() throws IOException {
+        if (currentPage != null) {
+            currentPage.unpin();
+            currentPage = null;
+        }
+
+        logger.debug("Deleting spill file " + dbFile);
+        storageManager.deleteTempDBFile(dbFile);
+    }
+}
@@ -3,12 +3,15 @@ package edu.caltech.nanodb.storage;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.log4j.Logger;
 
 import edu.caltech.nanodb.expressions.TypeCastException;
+import edu.caltech.nanodb.expressions.TypeConverter;
 
 import edu.caltech.nanodb.indexes.BasicIndexManager;
 import edu.caltech.nanodb.indexes.DatabaseConstraintEnforcer;
@@ -62,6 +65,54 @@ public class StorageManager {
     public static final String PROP_PAGESIZE = "nanodb.pagesize";
 
 
+    /**
+     * The system property that specifies how full the bulk loader packs the
+     * pages of B<sup>+</sup> tree files, as a fraction of the page size.
+     * Leaving some space free in each page allows later inserts to be made
+     * without immediately splitting pages.
+     */
+    public static final String PROP_BTREE_FILLFACTOR = "nanodb.btree.fillfactor";
+
+
+    /** The default fill factor for bulk-loaded B<sup>+</sup> tree pages. */
+    public static final float DEFAULT_BTREE_FILLFACTOR = 0.9f;
+
+
+    /**
+     * The smallest fill factor for bulk-loaded B<sup>+</sup> tree pages.
+     * Pages that are less than half full would be coalesced by the first
+     * delete that touches them.
+     */
+    public static final float MIN_BTREE_FILLFACTOR = 0.5f;
+
+
+    /**
+     * The system property that selects how the file manager performs page
+     * IO.  The recognized values are <tt>"raf"</tt>, which seeks and then
+     * reads or writes through each file's {@link java.io.RandomAccessFile},
+     * <tt>"channel"</tt>, which uses positional and vectored
+     * {@link java.nio.channels.FileChannel} operations, and <tt>"mmap"</tt>,
+     * which also reads table pages through memory mappings of the table
+     * files.
+     *
+     * @see FileManagerImpl
+     * @see ChannelFileManager
+     * @see MappedFileManager
+     */
+    public static final String PROP_FILE_IO = "nanodb.fileio";
+
+
+    /** The default file IO mode is to use <tt>RandomAccessFile</tt>. */
+    public static final String DEFAULT_FILE_IO = "raf";
+
+
+    /**
+     * The prefix of the filenames of temporary files created by
+     * {@link #createTempDBFile}.
+     */
+    private static final String TEMP_FILE_PREFIX = "temp_";
+
+
     /**
      * The default base-directory path used by the storage manager.  This
      * value is set to "<tt>./datafiles</tt>" (or "<tt>.\datafiles</tt>"
@@ -105,6 +156,100 @@ public class StorageManager {
     }
 
 
+    /**
+     * Returns the fill factor that the bulk loader packs B<sup>+</sup> tree
+     * pages to.  If the <tt>nanodb.btree.fillfactor</tt> system property is
+     * unset or invalid then {@link #DEFAULT_BTREE_FILLFACTOR} is returned.
+     *
+     * @return the fill factor for bulk-loaded B<sup>+</sup> tree pages
+     */
+    public static float getBTreeFillFactor() {
+        String str = System.getProperty(PROP_BTREE_FILLFACTOR);
+        if (str == null)
+            return DEFAULT_BTREE_FILLFACTOR;
+
+        try {
+            float fillFactor = Float.parseFloat(str.trim());
+            if (fillFactor >= MIN_BTREE_FILLFACTOR && fillFactor <= 1.0f)
+                return fillFactor;
+        }
+        catch (NumberFormatException e) {
+            // Fall through to the warning below.
+        }
+
+        logger.warn(String.format("Invalid value \"%s\" for %s; using " +
+            "default value of %f.", str, PROP_BTREE_FILLFACTOR,
+            DEFAULT_BTREE_FILLFACTOR));
+
+        return DEFAULT_BTREE_FILLFACTOR;
+    }
+
+
+    /**
+     * Sets the fill factor that the bulk loader packs B<sup>+</sup> tree
+     * pages to.
+     *
+     * @param fillFactor the fraction of each page to fill
+     *
+     * @throws IllegalArgumentException if the fill factor is not in the
+     *         range [{@link #MIN_BTREE_FILLFACTOR}, 1]
+     */
+    public static void setBTreeFillFactor(float fillFactor) {
+        if (fillFactor < MIN_BTREE_FILLFACTOR || fillFactor > 1.0f) {
+            throw new IllegalArgumentException(PROP_BTREE_FILLFACTOR +
+                " must be in the range [" + MIN_BTREE_FILLFACTOR + ", 1], " +
+                "got " + fillFactor);
+        }
+
+        System.setProperty(PROP_BTREE_FILLFACTOR, Float.toString(fillFactor));
+    }
+
+
+    /**
+     * Returns the file IO mode specified by the <tt>nanodb.fileio</tt>
+     * system property.  If the property is unset or unrecognized then
+     * {@link #DEFAULT_FILE_IO} is returned.
+     *
+     * @return the file IO mode to use
+     */
+    public static String getFileIOMode() {
+        String str = System.getProperty(PROP_FILE_IO);
+        if (str == null)
+            return DEFAULT_FILE_IO;
+
+        str = str.trim().toLowerCase();
+        if ("raf".equals(str) || "channel".equals(str) || "mmap".equals(str))
+            return str;
+
+        logger.warn(String.format("Unrecognized value \"%s\" for %s; using " +
+            "default value of \"%s\".", System.getProperty(PROP_FILE_IO),
+            PROP_FILE_IO, DEFAULT_FILE_IO));
+
+        return DEFAULT_FILE_IO;
+    }
+
+
+    /**
+     * Creates a file manager that performs page IO in the specified mode.
+     *
+     * @param mode the file IO mode, as returned by {@link #getFileIOMode}
+     *
+     * @param baseDir the base directory that the file manager uses
+     *
+     * @return a file manager using the specified base directory
+     */
+    private static FileManager createFileManager(String mode, File baseDir) {
+        logger.info("Using file IO mode \"" + mode + "\"");
+
+        if ("channel".equals(mode))
+            return new ChannelFileManager(baseDir);
+        else if ("mmap".equals(mode))
+            return new MappedFileManager(baseDir);
+
+        return new FileManagerImpl(baseDir);
+    }
+
+
     private class StoragePropertyHandler implements PropertyHandler {
 
         @Override
@@ -117,6 +262,12 @@ public class StorageManager {
             else if (PROP_BASEDIR.equals(propertyName)) {
                 return getBaseDir().toString();
             }
+            else if (PROP_BTREE_FILLFACTOR.equals(propertyName)) {
+                return getBTreeFillFactor();
+            }
+            else if (PROP_FILE_IO.equals(propertyName)) {
+                return fileIOMode;
+            }
             else {
                 throw new UnrecognizedPropertyException("No property named " +
                     propertyName);
@@ -136,6 +287,13 @@ public class StorageManager {
                 throw new ReadOnlyPropertyException(propertyName +
                         " is read-only");
             }
+            else if (PROP_BTREE_FILLFACTOR.equals(propertyName)) {
+                setBTreeFillFactor(TypeConverter.getFloatValue(value));
+            }
+            else if (PROP_FILE_IO.equals(propertyName)) {
+                throw new ReadOnlyPropertyException(propertyName +
+                    " is read-only");
+            }
             else {
                 throw new UnrecognizedPropertyException("No property named " +
                     propertyName);
@@ -168,6 +326,13 @@ public class StorageManager {
     private boolean initialized = false;
 
 
+    /**
+     * The file IO mode that the file manager was created with, since the
+     * mode can't be changed once the storage manager is running.
+     */
+    private String fileIOMode;
+
+
     /** The buffer manager stores data pages in memory, to avoid disk IOs. */
     private BufferManager bufferManager;
 
@@ -200,6 +365,10 @@ public class StorageManager {
         new HashMap<>();
 
 
+    /** The number used to name the next temporary file. */
+    private AtomicInteger nextTempFileNo = new AtomicInteger();
+
+
     /**
      * This method initializes the storage manager.  It should only be called
      * once.
@@ -245,9 +414,11 @@ public class StorageManager {
 
         // Register properties that the Storage Manager exposes.
         server.getPropertyRegistry().registerProperties(
-            new StoragePropertyHandler(), PROP_PAGESIZE, PROP_BASEDIR);
+            new StoragePropertyHandler(), PROP_PAGESIZE, PROP_BASEDIR,
+            PROP_BTREE_FILLFACTOR, PROP_FILE_IO);
 
-        fileManager = new FileManagerImpl(baseDir);
+        fileIOMode = getFileIOMode();
+        fileManager = createFileManager(fileIOMode, baseDir);
         bufferManager = new BufferManager(server, fileManager);
 
         tupleFileManagers.put(DBFileType.HEAP_TUPLE_FILE,
@@ -300,8 +471,12 @@ public class StorageManager {
                 "Storage manager is not initialized.");
         }
 
-        if (transactionManager != null)
+        if (transactionManager != null) {
+            transactionManager.shutdown();
             transactionManager.forceWAL();
+        }
+
+        bufferManager.getPrefetcher().shutdown();
 
         List<DBFile> dbFiles = bufferManager.removeAll();
         for (DBFile dbFile : dbFiles)
@@ -309,7 +484,7 @@ public class StorageManager {
 
         // Register properties that the Storage Manager exposes.
         server.getPropertyRegistry().unregisterProperties(
-            PROP_PAGESIZE, PROP_BASEDIR);
+            PROP_PAGESIZE, PROP_BASEDIR, PROP_BTREE_FILLFACTOR, PROP_FILE_IO);
 
         initialized = false;
     }
@@ -357,6 +532,62 @@ public class StorageManager {
     }
 
 
+    /**
+     * Creates a new temporary file, for holding intermediate results during
+     * query evaluation.  Pages of temporary files are cached by the Buffer
+     * Manager like any other file's pages, but changes to them are not
+     * logged.  The file should be deleted with {@link #deleteTempDBFile} when
+     * it is no longer needed.
+     *
+     * @return the new temporary file
+     *
+     * @throws IOException if an IO error occurs while creating the file
+     */
+    public DBFile createTempDBFile() throws IOException {
+        String filename;
+        while (true) {
+            filename = TEMP_FILE_PREFIX + nextTempFileNo.getAndIncrement() +
+                ".tbl";
+
+            if (bufferManager.getFile(filename) != null)
+                continue;
+
+            // Any file already on disk with this name is left over from a
+            // previous run of the database, so it can be thrown away.
+            if (fileManager.fileExists(filename))
+                fileManager.deleteDBFile(filename);
+
+            break;
+        }
+
+        return createDBFile(filename, DBFileType.TEMP_FILE);
+    }
+
+
+    /**
+     * Deletes a temporary file created by {@link #createTempDBFile}.  Any
+     * pages of the file in the Buffer Manager are discarded without being
+     * written out.
+     *
+     * @param dbFile the temporary file to delete
+     *
+     * @throws IOException if an IO error occurs while deleting the file
+     */
+    public void deleteTempDBFile(DBFile dbFile) throws IOException {
+        if (dbFile.getType() != DBFileType.TEMP_FILE) {
+            throw new IllegalArgumentException("File " + dbFile +
+                " is not a temporary file");
+        }
+
+        bufferManager.discardDBFile(dbFile);
+
+        // No need to sync the file before closing it, since it is about to
+        // be deleted anyway.
+        dbFile.getFileContents().close();
+        fileManager.deleteDBFile(dbFile);
+    }
+
+
     public DBFile openDBFile(String filename) throws IOException {
         DBFile dbFile = bufferManager.getFile(filename);
         if (dbFile == null) {
@@ -454,11 +685,21 @@ public class StorageManager {
         DBPage dbPage = bufferManager.getPage(dbFile, pageNo);
         if (dbPage == null) {
             // Buffer manager didn't have it.  Read the page directly from
-            // the file, then add it to the buffer manager.
-            dbPage = new DBPage(bufferManager, dbFile, pageNo);
+            // the file, or use a mapping of the file if the file manager
+            // maps it, then add it to the buffer manager.
+            ByteBuffer mapped = fileManager.mapPage(dbFile, pageNo);
+            if (mapped != null)
+                dbPage = new DBPage(bufferManager, dbFile, pageNo, mapped);
+            else
+                dbPage = new DBPage(bufferManager, dbFile, pageNo);
+
+            DBPage existing;
             try {
-                fileManager.loadPage(dbFile, pageNo, dbPage.getPageData(), create);
-                bufferManager.addPage(dbPage);
+                if (!dbPage.isMapped()) {
+                    fileManager.loadPage(dbFile, pageNo, dbPage.getPageData(),
+                                         create);
+                }
+                existing = bufferManager.addPageIfAbsent(dbPage);
             }
             catch (IOException e) {
                 // Make sure to release the DBPage's buffer, or else we will
@@ -466,8 +707,20 @@ public class StorageManager {
                 dbPage.invalidate();
                 throw e;
             }
+
+            if (existing != null) {
+                // Another thread loaded the same page while we were reading
+                // it.  Use that copy, and release the one we just read.
+                dbPage.invalidate();
+                dbPage = existing;
+            }
         }
 
+        // Let the prefetcher read ahead if the file is being scanned.  Mapped
+        // pages are read ahead by the operating system instead.
+        if (!dbPage.isMapped())
+            bufferManager.getPrefetcher().recordAccess(dbFile, pageNo);
+
         return dbPage;
     }
 
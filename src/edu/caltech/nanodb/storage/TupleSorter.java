@@ -0,0 +1,427 @@
+package edu.caltech.nanodb.storage;
+
+
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+import edu.caltech.nanodb.expressions.TupleLiteral;
+import edu.caltech.nanodb.relations.Schema;
+import edu.caltech.nanodb.relations.Tuple;
+
+
+/**
+ * <p>
+ * This class sorts a collection of tuples, spilling to disk if the tuples
+ * don't fit in a specified amount of memory.  Tuples are added with
+ * {@link #addTuple}, then {@link #finish} is called, and then the tuples are
+ * retrieved in sorted order with {@link #getNextTuple}.
+ * </p>
+ * <p>
+ * If the tuples fit in memory, they are simply sorted in memory.  Otherwise,
+ * each time the buffered tuples fill the memory, they are sorted and written
+ * out to a {@link SpillFile} as a sorted "run".  The runs are then merged
+ * together, using a loser tree to choose the next tuple among the runs.  If
+ * there are too many runs to merge at once, groups of runs are merged into
+ * longer runs first.  The final merge produces the sorted tuples directly,
+ * without writing them out again.
+ * </p>
+ */
+public class TupleSorter {
+    /** A logging object for reporting anything interesting that happens. */
+    private static Logger logger = Logger.getLogger(TupleSorter.class);
+
+
+    /**
+     * An estimate of the memory used by each buffered tuple, beyond the size
+     * of the tuple's data.
+     */
+    public static final int TUPLE_OVERHEAD = 64;
+
+
+    /** The maximum number of runs that are merged at once. */
+    private static final int MAX_MERGE_FANIN = 64;
+
+
+    /**
+     * This class merges a collection of sorted runs into a single sorted
+     * sequence of tuples, using a loser tree.  Each internal node of the tree
+     * records the run that "lost" the comparison at that node, and the
+     * overall winner is stored at index 0, so that after each tuple is
+     * produced, only the path from that run's leaf to the root must be
+     * replayed:  <em>log<sub>2</sub>(k)</em> comparisons for <em>k</em>
+     * runs.  A run that is exhausted loses to every other run.
+     */
+    private static class RunMerger {
+        /** The runs being merged. */
+        private final List<SpillFile> runs;
+
+        /** The current tuple of each run, or {@code null} if exhausted. */
+        private final TupleLiteral[] heads;
+
+        /**
+         * The loser tree.  Entries 1 through <em>k</em> - 1 are the
+         * internal nodes; the leaf for run <em>i</em> is at the virtual
+         * index <em>k</em> + <em>i</em>.  Entry 0 holds the winner.
+         */
+        private final int[] tree;
+
+        /** The comparator that imposes the sort order. */
+        private final Comparator<? super Tuple> comparator;
+
+        RunMerger(List<SpillFile> runs, Comparator<? super Tuple> comparator)
+            throws IOException {
+
+            this.runs = runs;
+            this.comparator = comparator;
+
+            int k = runs.size();
+            heads = new TupleLiteral[k];
+            tree = new int[k];
+
+            for (int i = 0; i < k; i++) {
+                SpillFile run = runs.get(i);
+                run.startReading();
+                heads[i] = run.readTuple();
+            }
+
+            // Insert each run into the tree.  A run stops at the first empty
+            // node it reaches; the run that finds no empty node on the way
+            // up is the overall winner.
+            for (int i = 0; i < k; i++)
+                tree[i] = -1;
+
+            for (int i = 0; i < k; i++)
+                replay(i, true);
+        }
+
+        /**
+         * Returns true if run <tt>a</tt> should be produced before run
+         * <tt>b</tt>.  Ties are broken by run index, so that the merge is
+         * stable.
+         */
+        private boolean beats(int a, int b) {
+            if (heads[a] == null)
+                return false;
+
+            if (heads[b] == null)
+                return true;
+
+            int cmp = comparator.compare(heads[a], heads[b]);
+            return cmp < 0 || (cmp == 0 && a < b);
+        }
+
+        /**
+         * Moves run <tt>r</tt> from its leaf towards the root, leaving the
+         * loser of the comparison at each node.
+         */
+        private void replay(int r, boolean building) {
+            int k = heads.length;
+            for (int node = (r + k) / 2; node > 0; node /= 2) {
+                if (tree[node] == -1) {
+                    // Only happens while the tree is being built.
+                    assert building;
+                    tree[node] = r;
+                    return;
+                }
+
+                if (beats(tree[node], r)) {
+                    int winner = tree[node];
+                    tree[node] = r;
+                    r = winner;
+                }
+            }
+            tree[0] = r;
+        }
+
+        /**
+         * Returns the next tuple in sorted order, or {@code null} if all
+         * runs are exhausted.
+         */
+        TupleLiteral next() throws IOException {
+            int winner = tree[0];
+            TupleLiteral tuple = heads[winner];
+            if (tuple == null)
+                return null;
+
+            heads[winner] = runs.get(winner).readTuple();
+            replay(winner, false);
+
+            return tuple;
+        }
+    }
+
+
+    /**
+     * The storage manager, used to create temporary files for an external
+     * sort.  If this is {@code null}, the sort is always done in memory.
+     */
+    private StorageManager storageManager;
+
+
+    /** The schema of the tuples being sorted. */
+    private Schema schema;
+
+
+    /** The comparator that imposes the sort order. */
+    private Comparator<? super Tuple> comparator;
+
+
+    /** The amount of memory, in bytes, that buffered tuples may use. */
+    private long memSize;
+
+
+    /** The tuples buffered in memory. */
+    private ArrayList<Tuple> buffer;
+
+
+    /** An estimate of the memory used by the buffered tuples, in bytes. */
+    private long bufferBytes;
+
+
+    /** For an in-memory sort, the index of the next tuple to produce. */
+    private int bufferIndex;
+
+
+    /** For an external sort, the sorted runs that have not been deleted. */
+    private ArrayList<SpillFile> runs;
+
+
+    /** For an external sort, the merge that produces the results. */
+    private RunMerger merger;
+
+
+    /** True once {@link #finish} has been called. */
+    private boolean finished;
+
+
+    /**
+     * Constructs a tuple sorter.
+     *
+     * @param storageManager the storage manager, used to create temporary
+     *        files for the sorted runs, or {@code null} if the sort must be
+     *        done in memory
+     *
+     * @param schema the schema of the tuples to sort
+     *
+     * @param comparator the comparator that imposes the sort order
+     *
+     * @param memSize the amount of memory, in bytes, that buffered tuples
+     *        may use before they are written out to a sorted run
+     */
+    public TupleSorter(StorageManager storageManager, Schema schema,
+                       Comparator<? super Tuple> comparator, long memSize) {
+        if (schema == null)
+            throw new IllegalArgumentException("schema cannot be null");
+
+        if (comparator == null)
+            throw new IllegalArgumentException("comparator cannot be null");
+
+        this.storageManager = storageManager;
+        this.schema = schema;
+        this.comparator = comparator;
+        this.memSize = memSize;
+
+        buffer = new ArrayList<>();
+    }
+
+
+    /**
+     * Returns the number of runs that may be merged at once.  Each run being
+     * read keeps one page pinned in the Buffer Manager, so this is limited by
+     * the available memory.
+     *
+     * @param memSize the amount of memory available for the sort, in bytes
+     *
+     * @return the number of runs that may be merged at once
+     */
+    public static int getMergeFanIn(long memSize) {
+        long fanIn = memSize / StorageManager.getCurrentPageSize();
+        return (int) Math.max(2, Math.min(MAX_MERGE_FANIN, fanIn));
+    }
+
+
+    /**
+     * Adds a tuple to the sorter.  The tuple is stored as-is, so it must not
+     * be disk-backed; callers should copy disk-backed tuples into a
+     * {@link TupleLiteral} first.
+     *
+     * @param tuple the tuple to add
+     *
+     * @throws IOException if an IO error occurs while writing out a sorted
+     *         run
+     *
+     * @throws IllegalStateException if {@link #finish} has been called
+     */
+    public void addTuple(Tuple tuple) throws IOException {
+        if (finished)
+            throw new IllegalStateException("Sorter is already finished");
+
+        buffer.add(tuple);
+
+        if (storageManager != null) {
+            bufferBytes += PageTuple.getTupleStorageSize(schema, tuple) +
+                TUPLE_OVERHEAD;
+
+            if (bufferBytes > memSize) {
+                // The buffer is full, so write it out as a sorted run.
+                writeRun();
+            }
+        }
+    }
+
+
+    /**
+     * Sorts the tuples that have been added.  Once this method is called, no
+     * more tuples can be added, and the sorted tuples can be retrieved.
+     *
+     * @throws IOException if an IO error occurs while writing or merging
+     *         sorted runs
+     */
+    public void finish() throws IOException {
+        if (finished)
+            return;
+
+        finished = true;
+
+        if (runs == null) {
+            // Everything fit in memory.
+            Collections.sort(buffer, comparator);
+            bufferIndex = 0;
+            return;
+        }
+
+        if (!buffer.isEmpty())
+            writeRun();
+
+        buffer = null;
+
+        // Merge groups of runs until the remaining runs can be merged at
+        // once.  The oldest runs are merged first, so that each pass
+        // merges runs of similar sizes.
+        int fanIn = getMergeFanIn(memSize);
+        logger.debug(String.format("External sort produced %d runs; " +
+            "merging with fan-in %d", runs.size(), fanIn));
+
+        while (runs.size() > fanIn) {
+            List<SpillFile> group = new ArrayList<>(runs.subList(0, fanIn));
+            runs.subList(0, fanIn).clear();
+
+            SpillFile merged = new SpillFile(storageManager, schema);
+            runs.add(merged);
+
+            RunMerger groupMerger = new RunMerger(group, comparator);
+            while (true) {
+                TupleLiteral tup = groupMerger.next();
+                if (tup == null)
+                    break;
+
+                merged.addTuple(tup);
+            }
+
+            for (SpillFile run : group)
+                run.delete();
+        }
+
+        merger = new RunMerger(runs, comparator);
+    }
+
+
+    /**
+     * Returns true if the tuples didn't fit in memory, so that the sort was
+     * performed externally.  This is only meaningful after {@link #finish}
+     * has been called.
+     *
+     * @return true if the sort was performed externally
+     */
+    public boolean isExternal() {
+        return runs != null;
+    }
+
+
+    /**
+     * For an in-memory sort, returns the sorted tuples; for an external
+     * sort, returns {@code null}.  This is only meaningful after
+     * {@link #finish} has been called.
+     *
+     * @return the sorted tuples, or {@code null} if the sort was performed
+     *         externally
+     */
+    public List<Tuple> getSortedTuples() {
+        return isExternal() ? null : buffer;
+    }
+
+
+    /**
+     * Returns the next tuple in sorted order, or {@code null} if all tuples
+     * have been produced.
+     *
+     * @return the next tuple in sorted order, or {@code null}
+     *
+     * @throws IOException if an IO error occurs while reading a sorted run
+     *
+     * @throws IllegalStateException if {@link #finish} has not been called
+     */
+    public Tuple getNextTuple() throws IOException {
+        if (!finished)
+            throw new IllegalStateException("finish() was not called");
+
+        if (merger != null)
+            return merger.next();
+
+        if (bufferIndex < buffer.size())
+            return buffer.get(bufferIndex++);
+
+        return null;
+    }
+
+
+    /** Sorts the buffered tuples and writes them out to a new run. */
+    private void writeRun() throws IOException {
+        Collections.sort(buffer, comparator);
+
+        if (runs == null)
+            runs = new ArrayList<>();
+
+        SpillFile run = new SpillFile(storageManager, schema);
+        runs.add(run);
+
+        for (Tuple tup : buffer)
+            run.addTuple(tup);
+
+        logger.debug(String.format("Wrote sorted run %d with %d tuples",
+            runs.size(), buffer.size()));
+
+        buffer.clear();
+        bufferBytes = 0;
+    }
+
+
+    /**
+     * Deletes any runs of an external sort, and releases the buffered
+     * tuples.  The sorter cannot be used after this method is called.
+     */
+    public void delete() {
+        buffer = null;
+        merger = null;
+
+        if (runs == null)
+            return;
+
+        for (SpillFile run : runs) {
+            try {
+                run.delete();
+            }
+            catch (IOException e) {
+                logger.warn("Couldn't delete sorted run", e);
+            }
+        }
+
+        runs = null;
+    }
+}
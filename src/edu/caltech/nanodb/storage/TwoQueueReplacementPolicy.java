@@ -0,0 +1,219 @@
+package edu.caltech.nanodb.storage;
+
+
+import java.util.AbstractMap;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+
+/**
+ * This page-replacement policy implements the "full" version of the 2Q
+ * algorithm from Johnson and Shasha, "2Q: A Low Overhead High Performance
+ * Buffer Management Replacement Algorithm" (VLDB 1994).
+ * <p>
+ * Pages are kept in one of two queues.  A page that is loaded for the first
+ * time goes into the <em>A1in</em> FIFO queue.  If it is evicted from there,
+ * its key is remembered in the <em>A1out</em> "ghost" queue.  If the page is
+ * loaded again while its key is still in A1out, the page has clearly been
+ * used more than once, so it goes into the <em>Am</em> LRU queue.  Victims
+ * come from A1in while it is larger than its target size, and from Am
+ * otherwise.
+ * <p>
+ * Since a large sequential scan only touches each page once, its pages never
+ * make it out of A1in, and frequently-used pages in Am are not disturbed.
+ *
+ * @param <K> the type of key used to identify cached pages
+ */
+class TwoQueueReplacementPolicy<K> implements PageReplacementPolicy<K> {
+
+    /** The target size of A1in, as a fraction of the resident pages. */
+    private static final double A1IN_FRACTION = 0.25;
+
+
+    /** The maximum size of A1out, as a fraction of the resident pages. */
+    private static final double A1OUT_FRACTION = 0.5;
+
+
+    /** A lower bound on the size of A1out, for very small caches. */
+    private static final int MIN_A1OUT_SIZE = 8;
+
+
+    /** All resident pages, for lookups. */
+    private HashMap<K, DBPage> pages = new HashMap<>();
+
+
+    /** The keys of resident pages that have been loaded once, in FIFO order. */
+    private LinkedHashSet<K> a1in = new LinkedHashSet<>();
+
+
+    /** The keys of resident pages that are known to be hot, in LRU order. */
+    private LinkedHashSet<K> am = new LinkedHashSet<>();
+
+
+    /** The keys of pages recently evicted from A1in, in FIFO order. */
+    private LinkedHashSet<K> a1out = new LinkedHashSet<>();
+
+
+    /**
+     * The largest number of resident pages seen so far, used to size the
+     * A1out queue so that it doesn't shrink as pages are evicted.
+     */
+    private int maxResident;
+
+
+    @Override
+    public DBPage get(K key, boolean recordAccess) {
+        DBPage dbPage = pages.get(key);
+
+        // Hits in A1in are deliberately ignored; correlated references
+        // shortly after a page is loaded don't make it hot.
+        if (dbPage != null && recordAccess && am.remove(key))
+            am.add(key);
+
+        return dbPage;
+    }
+
+
+    @Override
+    public void put(K key, DBPage dbPage) {
+        if (pages.containsKey(key))
+            throw new IllegalStateException("Policy already contains page " + key);
+
+        pages.put(key, dbPage);
+        maxResident = Math.max(maxResident, pages.size());
+
+        if (a1out.remove(key))
+            am.add(key);
+        else
+            a1in.add(key);
+    }
+
+
+    @Override
+    public DBPage remove(K key) {
+        DBPage dbPage = pages.remove(key);
+        if (dbPage != null) {
+            if (!a1in.remove(key))
+                am.remove(key);
+        }
+        return dbPage;
+    }
+
+
+    @Override
+    public int size() {
+        return pages.size();
+    }
+
+
+    /** Records that a page was evicted, updating the A1out queue. */
+    private void recordEviction(K key, boolean fromA1in) {
+        pages.remove(key);
+
+        if (fromA1in) {
+            a1out.add(key);
+
+            int maxA1out = Math.max(MIN_A1OUT_SIZE,
+                (int) (A1OUT_FRACTION * maxResident));
+
+            Iterator<K> iter = a1out.iterator();
+            while (a1out.size() > maxA1out) {
+                iter.next();
+                iter.remove();
+            }
+        }
+    }
+
+
+    @Override
+    public Iterator<Map.Entry<K, DBPage>> iterator() {
+        final Iterator<Map.Entry<K, DBPage>> iter = pages.entrySet().iterator();
+
+        return new Iterator<Map.Entry<K, DBPage>>() {
+            private K currentKey;
+
+            @Override
+            public boolean hasNext() {
+                return iter.hasNext();
+            }
+
+            @Override
+            public Map.Entry<K, DBPage> next() {
+                Map.Entry<K, DBPage> entry = iter.next();
+                currentKey = entry.getKey();
+                return entry;
+            }
+
+            @Override
+            public void remove() {
+                iter.remove();
+                if (!a1in.remove(currentKey))
+                    am.remove(currentKey);
+            }
+        };
+    }
+
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * If A1in is over its target size, its pages are offered first (oldest
+     * first), followed by the pages in Am (least recently used first).
+     * Otherwise, the pages in Am are offered first.  Either way, the other
+     * queue follows, so that every unpinned page can be reclaimed if the
+     * cache is under pressure.
+     */
+    @Override
+    public Iterator<Map.Entry<K, DBPage>> evictionCandidates() {
+        int a1inTarget = Math.max(1, (int) (A1IN_FRACTION * pages.size()));
+        final boolean a1inFirst = (a1in.size() > a1inTarget);
+
+        return new Iterator<Map.Entry<K, DBPage>>() {
+            private int queueNo = 0;
+
+            private Iterator<K> queueIter =
+                (a1inFirst ? a1in : am).iterator();
+
+            private K currentKey;
+
+            private boolean currentFromA1in;
+
+            private boolean isA1in(int queueNo) {
+                return (queueNo == 0) == a1inFirst;
+            }
+
+            @Override
+            public boolean hasNext() {
+                while (!queueIter.hasNext() && queueNo == 0) {
+                    queueNo = 1;
+                    queueIter = (isA1in(1) ? a1in : am).iterator();
+                }
+                return queueIter.hasNext();
+            }
+
+            @Override
+            public Map.Entry<K, DBPage> next() {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+
+                currentKey = queueIter.next();
+                currentFromA1in = isA1in(queueNo);
+                return new AbstractMap.SimpleImmutableEntry<>(currentKey,
+                    pages.get(currentKey));
+            }
+
+            @Override
+            public void remove() {
+                if (currentKey == null)
+                    throw new IllegalStateException();
+
+                queueIter.remove();
+                recordEviction(currentKey, currentFromA1in);
+                currentKey = null;
+            }
+        };
+    }
+}
@@ -0,0 +1,373 @@
+package edu.caltech.nanodb.storage.btreefile;
+
+
+import java.io.IOException;
+import java.util.ArrayList;
+
+import org.apache.log4j.Logger;
+
+import edu.caltech.nanodb.expressions.TupleComparator;
+import edu.caltech.nanodb.expressions.TupleLiteral;
+import edu.caltech.nanodb.relations.Schema;
+import edu.caltech.nanodb.relations.Tuple;
+import edu.caltech.nanodb.storage.DBFile;
+import edu.caltech.nanodb.storage.DBPage;
+import edu.caltech.nanodb.storage.PageTuple;
+import edu.caltech.nanodb.storage.StorageManager;
+
+
+/**
+ * <p>
+ * This class builds a B<sup>+</sup> tree bottom-up from tuples that are
+ * supplied in sorted order.  This is much faster than inserting the tuples
+ * one by one, since each tuple is simply appended to the current leaf, and
+ * no pages are ever split.  The loader can only be used on a
+ * B<sup>+</sup> tree file that is currently empty.
+ * </p>
+ * <p>
+ * Leaf pages are filled up to the fill factor specified when the loader is
+ * created, and then a new leaf is started.  The inner levels of the tree are
+ * built at the same time:  each time a page is started at some level, its
+ * page number and smallest key are added to the current page at the next
+ * level up, so only one page per level is ever being filled.  Leaving some
+ * free space in each page means that later insertions won't immediately
+ * cause pages to split.
+ * </p>
+ * <p>
+ * Usage is simple:  call {@link #addTuple} for each tuple, in increasing
+ * order, and then call {@link #finish} to complete the upper levels of the
+ * tree and record the root page in the file's header page.
+ * </p>
+ */
+public class BTreeBulkLoader {
+    /** A logging object for reporting anything interesting that happens. */
+    private static Logger logger = Logger.getLogger(BTreeBulkLoader.class);
+
+
+    /**
+     * The state of one inner level of the tree being built.  A level holds
+     * at most one page that is being filled.  When a page is full, the next
+     * child at that level is held as a "pending" child until a second child
+     * arrives, since an inner page must have at least two pointers.
+     */
+    private static class InnerLevel {
+        /** The inner page currently being filled, or {@code null}. */
+        InnerPage page;
+
+        /** The smallest key in the subtree of {@link #page}. */
+        Tuple lowKey;
+
+        /** A child that will become the first pointer of the next page. */
+        int pendingPageNo = -1;
+
+        /** The smallest key in the subtree of the pending child. */
+        Tuple pendingLowKey;
+
+        /** The page number of the last page completed at this level. */
+        int lastCompletedPageNo;
+
+        /** The number of pages completed at this level. */
+        int numCompleted;
+    }
+
+
+    /** The storage manager to use for loading and unpinning pages. */
+    private StorageManager storageManager;
+
+
+    /** The B<sup>+</sup> tree file being loaded. */
+    private DBFile dbFile;
+
+
+    /** The schema of the tuples in the file. */
+    private Schema schema;
+
+
+    /** Used to allocate new data pages in the file. */
+    private FileOperations fileOps;
+
+
+    /** The number of bytes of each page that the loader will fill. */
+    private int pageFillLimit;
+
+
+    /** The leaf page currently being filled, or {@code null}. */
+    private LeafPage curLeaf;
+
+
+    /** The page number of the first leaf page, or 0 if there are none. */
+    private int firstLeafPageNo;
+
+
+    /** The last tuple added to the loader, to check the tuples' order. */
+    private TupleLiteral lastTuple;
+
+
+    /** The states of the inner levels, starting just above the leaves. */
+    private ArrayList<InnerLevel> innerLevels = new ArrayList<>();
+
+
+    /** True once {@link #finish} has been called. */
+    private boolean finished;
+
+
+    /**
+     * Constructs a bulk-loader for the specified B<sup>+</sup> tree file.
+     * The file must not contain any tuples.
+     *
+     * @param storageManager the storage manager to use for page access
+     *
+     * @param dbFile the B<sup>+</sup> tree file to load
+     *
+     * @param schema the schema of the tuples in the file
+     *
+     * @param fileOps used to allocate new data pages in the file
+     *
+     * @param fillFactor the fraction of each page to fill, in the range
+     *        (0, 1]
+     *
+     * @throws IOException if the file's header page cannot be read
+     *
+     * @throws IllegalStateException if the file already has a root page
+     */
+    BTreeBulkLoader(StorageManager storageManager, DBFile dbFile,
+                    Schema schema, FileOperations fileOps, float fillFactor)
+        throws IOException {
+
+        if (fillFactor <= 0 || fillFactor > 1) {
+            throw new IllegalArgumentException(
+                "fillFactor must be in the range (0, 1], got " + fillFactor);
+        }
+
+        this.storageManager = storageManager;
+        this.dbFile = dbFile;
+        this.schema = schema;
+        this.fileOps = fileOps;
+
+        DBPage dbpHeader = storageManager.loadDBPage(dbFile, 0);
+        int rootPageNo = HeaderPage.getRootPageNo(dbpHeader);
+        dbpHeader.unpin();
+
+        if (rootPageNo != 0) {
+            throw new IllegalStateException("Can only bulk-load an empty " +
+                "B+ tree file, but " + dbFile + " has root page " +
+                rootPageNo);
+        }
+
+        pageFillLimit = (int) (dbFile.getPageSize() * fillFactor);
+    }
+
+
+    /**
+     * Adds a tuple to the B<sup>+</sup> tree.  Tuples must be added in
+     * strictly increasing order.
+     *
+     * @param tup the tuple to add
+     *
+     * @throws IOException if an IO error occurs while allocating or
+     *         writing pages
+     *
+     * @throws IllegalArgumentException if the tuple is not greater than the
+     *         previous tuple, or if it is too large to store in a page
+     */
+    public void addTuple(Tuple tup) throws IOException {
+        if (finished)
+            throw new IllegalStateException("Bulk-load is already finished");
+
+        TupleLiteral tupLit = new TupleLiteral(tup);
+        int size = PageTuple.getTupleStorageSize(schema, tupLit);
+        tupLit.setStorageSize(size);
+
+        if (lastTuple != null &&
+            TupleComparator.compareTuples(lastTuple, tupLit) >= 0) {
+            throw new IllegalArgumentException("Tuples must be bulk-loaded " +
+                "in increasing order, but " + tupLit + " follows " +
+                lastTuple);
+        }
+
+        if (curLeaf == null || (curLeaf.getNumTuples() > 0 &&
+            curLeaf.getUsedSpace() + size + LeafPage.SLOT_SIZE > pageFillLimit)) {
+            startLeaf(tupLit);
+        }
+
+        curLeaf.addTuple(tupLit);
+        lastTuple = tupLit;
+    }
+
+
+    /**
+     * Starts a new leaf page, linking the previous leaf to it and adding it
+     * to the inner level above.
+     *
+     * @param firstTuple the first tuple that will be stored in the new leaf
+     */
+    private void startLeaf(TupleLiteral firstTuple) throws IOException {
+        DBPage dbPage = fileOps.getNewDataPage();
+        LeafPage leaf = LeafPage.init(dbPage, schema);
+
+        if (curLeaf != null) {
+            curLeaf.setNextPageNo(leaf.getPageNo());
+            curLeaf.getDBPage().unpin();
+        }
+        else {
+            firstLeafPageNo = leaf.getPageNo();
+        }
+
+        curLeaf = leaf;
+        addChild(0, leaf.getPageNo(), firstTuple);
+    }
+
+
+    /**
+     * Adds a child page to the specified inner level, starting a new page at
+     * that level if the current page is full.
+     *
+     * @param level the inner level, where 0 is the level just above the
+     *        leaves
+     *
+     * @param childPageNo the page number of the child page
+     *
+     * @param childLowKey the smallest key in the child's subtree
+     */
+    private void addChild(int level, int childPageNo, Tuple childLowKey)
+        throws IOException {
+
+        if (level == innerLevels.size())
+            innerLevels.add(new InnerLevel());
+
+        InnerLevel state = innerLevels.get(level);
+
+        if (state.page == null) {
+            if (state.pendingPageNo == -1) {
+                state.pendingPageNo = childPageNo;
+                state.pendingLowKey = childLowKey;
+            }
+            else {
+                DBPage dbPage = fileOps.getNewDataPage();
+                state.page = InnerPage.init(dbPage, schema,
+                    state.pendingPageNo, childLowKey, childPageNo);
+                state.lowKey = state.pendingLowKey;
+
+                state.pendingPageNo = -1;
+                state.pendingLowKey = null;
+            }
+            return;
+        }
+
+        InnerPage page = state.page;
+        int entrySize = PageTuple.getTupleStorageSize(schema, childLowKey) +
+            2 + InnerPage.SLOT_SIZE;
+
+        if (page.getUsedSpace() + entrySize <= pageFillLimit) {
+            page.addEntry(page.getPointer(page.getNumPointers() - 1),
+                childLowKey, childPageNo);
+        }
+        else {
+            // The current page is full.  Complete it, and hold onto the new
+            // child until another child arrives to start the next page.
+            completePage(level);
+
+            state.pendingPageNo = childPageNo;
+            state.pendingLowKey = childLowKey;
+        }
+    }
+
+
+    /**
+     * Completes the current page at the specified inner level, adding it to
+     * the level above.
+     */
+    private void completePage(int level) throws IOException {
+        InnerLevel state = innerLevels.get(level);
+        InnerPage page = state.page;
+
+        addChild(level + 1, page.getPageNo(), state.lowKey);
+
+        state.lastCompletedPageNo = page.getPageNo();
+        state.numCompleted++;
+        state.page = null;
+        state.lowKey = null;
+
+        page.getDBPage().unpin();
+    }
+
+
+    /**
+     * Completes the B<sup>+</sup> tree, building the remaining inner pages
+     * and recording the root page and the first leaf page in the file's
+     * header page.  No more tuples can be added after this method is called.
+     *
+     * @throws IOException if an IO error occurs while writing pages
+     */
+    public void finish() throws IOException {
+        if (finished)
+            return;
+
+        finished = true;
+
+        if (curLeaf == null) {
+            // No tuples were added, so the file stays empty.
+            return;
+        }
+
+        curLeaf.getDBPage().unpin();
+        curLeaf = null;
+
+        int rootPageNo = 0;
+        for (int level = 0; level < innerLevels.size(); level++) {
+            InnerLevel state = innerLevels.get(level);
+
+            if (state.numCompleted == 0) {
+                // This is the top of the tree.  If the level only holds a
+                // pending child, that child is the root.
+                if (state.page != null) {
+                    rootPageNo = state.page.getPageNo();
+                    state.page.getDBPage().unpin();
+                    state.page = null;
+                }
+                else {
+                    rootPageNo = state.pendingPageNo;
+                }
+                break;
+            }
+
+            if (state.page != null) {
+                completePage(level);
+            }
+            else {
+                // A single child is left over, but an inner page needs at
+                // least two pointers.  Move the last pointer of the previous
+                // page at this level into a new page with the child.
+                DBPage dbpPrev = storageManager.loadDBPage(dbFile,
+                    state.lastCompletedPageNo);
+                InnerPage prevPage = new InnerPage(dbpPrev, schema);
+
+                int numPointers = prevPage.getNumPointers();
+                int movedPageNo = prevPage.getPointer(numPointers - 1);
+                TupleLiteral movedLowKey =
+                    new TupleLiteral(prevPage.getKey(numPointers - 2));
+                prevPage.deletePointer(movedPageNo, false);
+                dbpPrev.unpin();
+
+                DBPage dbPage = fileOps.getNewDataPage();
+                InnerPage page = InnerPage.init(dbPage, schema, movedPageNo,
+                    state.pendingLowKey, state.pendingPageNo);
+
+                state.pendingPageNo = -1;
+                state.pendingLowKey = null;
+
+                addChild(level + 1, page.getPageNo(), movedLowKey);
+                dbPage.unpin();
+            }
+        }
+
+        DBPage dbpHeader = storageManager.loadDBPage(dbFile, 0);
+        HeaderPage.setRootPageNo(dbpHeader, rootPageNo);
+        HeaderPage.setFirstLeafPageNo(dbpHeader, firstLeafPageNo);
+        dbpHeader.unpin();
+
+        logger.debug(String.format("Bulk-loaded B+ tree file %s; first " +
+            "leaf page is %d, root page is %d", dbFile, firstLeafPageNo,
+            rootPageNo));
+    }
+}
@@ -4,15 +4,21 @@ package edu.caltech.nanodb.storage.btreefile;
 import java.io.EOFException;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
 
 import org.apache.log4j.Logger;
 
+import edu.caltech.nanodb.expressions.ColumnValue;
 import edu.caltech.nanodb.expressions.OrderByExpression;
 import edu.caltech.nanodb.expressions.TupleComparator;
 import edu.caltech.nanodb.expressions.TupleLiteral;
+import edu.caltech.nanodb.queryeval.ColumnStats;
+import edu.caltech.nanodb.queryeval.ColumnStatsCollector;
+import edu.caltech.nanodb.queryeval.ExecutionProperties;
 import edu.caltech.nanodb.queryeval.TableStats;
+import edu.caltech.nanodb.relations.ColumnInfo;
 import edu.caltech.nanodb.relations.TableSchema;
 import edu.caltech.nanodb.relations.Tuple;
 import edu.caltech.nanodb.storage.DBFile;
@@ -23,6 +29,7 @@ import edu.caltech.nanodb.storage.PageTuple;
 import edu.caltech.nanodb.storage.SequentialTupleFile;
 import edu.caltech.nanodb.storage.StorageManager;
 import edu.caltech.nanodb.storage.TupleFileManager;
+import edu.caltech.nanodb.storage.TupleSorter;
 
 import static edu.caltech.nanodb.storage.btreefile.BTreePageTypes.*;
 
@@ -69,6 +76,19 @@ public class BTreeTupleFile implements SequentialTupleFile {
     public static final boolean CLEAR_OLD_DATA = true;
 
 
+    /**
+     * A comparator that orders tuples the same way they are ordered in a
+     * B<sup>+</sup> tree file, so that tuples can be sorted before they are
+     * bulk-loaded into the file.
+     */
+    public static final Comparator<Tuple> TUPLE_ORDER = new Comparator<Tuple>() {
+        @Override
+        public int compare(Tuple t1, Tuple t2) {
+            return TupleComparator.compareTuples(t1, t2);
+        }
+    };
+
+
     /**
      * The storage manager to use for reading and writing file pages, pinning
      * and unpinning pages, write-ahead logging, and so forth.
@@ -172,9 +192,21 @@ public class BTreeTupleFile implements SequentialTupleFile {
     }
 
 
+    /**
+     * Tuples in a B<sup>+</sup> tree file are ordered by all of their
+     * columns, in the order the columns appear in the schema, since the
+     * tuples are compared with {@link TupleComparator#comparePartialTuples}.
+     * For index files this means the tuples are ordered on the index key,
+     * followed by the tuple-pointer column.
+     */
     @Override
     public List<OrderByExpression> getOrderSpec() {
-        throw new UnsupportedOperationException("NYI");
+        ArrayList<OrderByExpression> orderSpec = new ArrayList<>();
+        for (ColumnInfo colInfo : schema)
+            orderSpec.add(new OrderByExpression(
+                new ColumnValue(colInfo.getColumnName())));
+
+        return orderSpec;
     }
 
 
@@ -188,8 +220,14 @@ public class BTreeTupleFile implements SequentialTupleFile {
         TupleLiteral noTup = new TupleLiteral();
         LeafPage leaf = navigateToLeafPage(noTup, false, null);
 
-        if (leaf != null && leaf.getNumTuples() > 0)
-            tup = leaf.getTuple(0);
+        if (leaf != null) {
+            if (leaf.getNumTuples() > 0) {
+                tup = leaf.getTuple(0);
+                tup.pin();
+            }
+
+            leaf.getDBPage().unpin();
+        }
 
         return tup;
     }
@@ -222,6 +260,8 @@ public class BTreeTupleFile implements SequentialTupleFile {
                 }
 
                 nextTuple = leaf.getTuple(nextIndex);
+                nextTuple.pin();
+                dbPage.unpin();
             }
         }
         else {
@@ -240,6 +280,7 @@ public class BTreeTupleFile implements SequentialTupleFile {
             if (nextIndex < leaf.getNumTuples()) {
                 // Still more entries in this leaf.
                 nextTuple = leaf.getTuple(nextIndex);
+                nextTuple.pin();
             }
             else {
                 // No more entries in this leaf.  Must go to the next leaf.
@@ -250,6 +291,7 @@ public class BTreeTupleFile implements SequentialTupleFile {
                     leaf = new LeafPage(dbPage, schema);
                     if (leaf.getNumTuples() > 0) {
                         nextTuple = leaf.getTuple(0);
+                        nextTuple.pin();
                     }
                     else {
                         // This would be *highly* unusual.  Leaves are
@@ -257,6 +299,8 @@ public class BTreeTupleFile implements SequentialTupleFile {
                         logger.error(String.format(
                             "Next leaf node %d has no entries?!", nextPageNo));
                     }
+
+                    dbPage.unpin();
                 }
             }
         }
@@ -282,18 +326,16 @@ public class BTreeTupleFile implements SequentialTupleFile {
         // In the B+ tree file format, the file-pointer points to the actual
         // tuple itself.
 
-        int fpOffset = fptr.getOffset();
         LeafPage leaf = new LeafPage(dbPage, schema);
-        for (int i = 0; i < leaf.getNumTuples(); i++) {
-            BTreeFilePageTuple tup = leaf.getTuple(i);
-            if (tup.getOffset() == fpOffset)
-                return tup;
-
-            // Tuple offsets within a page will be monotonically increasing.
-            if (tup.getOffset() > fpOffset)
-                break;
+        int index = leaf.getTupleIndexAtOffset(fptr.getOffset());
+        if (index != -1) {
+            BTreeFilePageTuple tup = leaf.getTuple(index);
+            tup.pin();
+            dbPage.unpin();
+            return tup;
         }
 
+        dbPage.unpin();
         throw new InvalidFilePointerException("No tuple at offset " + fptr);
     }
 
@@ -310,30 +352,33 @@ public class BTreeTupleFile implements SequentialTupleFile {
         }
 
         logger.debug("Navigated to leaf page " + leaf.getPageNo());
-        if (leaf.getNumTuples() > 0) {
-            // We have at least one tuple to look at, so scan through to find
-            // the first tuple that equals what we are looking for.
-            for (int i = 0; i < leaf.getNumTuples(); i++) {
-                BTreeFilePageTuple tup = leaf.getTuple(i);
-                int cmp = TupleComparator.comparePartialTuples(tup, searchKey);
-                logger.debug("Comparing search key to tuple " + tup +
-                    ", got cmp = " + cmp);
 
-                if (cmp == 0) {
-                    // Found it!
-                    return tup;
-                }
-                else if (cmp > 0) {
-                    // Subsequent tuples will appear after the search key, so
-                    // there's no point in going on.
-                    leaf.getDBPage().unpin();
-                    return null;
-                }
+        // Binary search the leaf for the first tuple that is at least the
+        // search key.  If it isn't equal to the search key, then no tuple is.
+        int i = leaf.findFirstIndexAtLeast(searchKey);
+        if (i < leaf.getNumTuples()) {
+            BTreeFilePageTuple tup = leaf.getTuple(i);
+            if (TupleComparator.comparePartialTuples(tup, searchKey) == 0) {
+                // Found it!
+                tup.pin();
+                leaf.getDBPage().unpin();
+                return tup;
             }
+
+            leaf.getDBPage().unpin();
+            return null;
         }
 
-        leaf.getDBPage().unpin();
-        return null;
+        // Every tuple in the leaf is less than the search key, so the first
+        // match (if any) is at the start of the next leaf.
+        BTreeFilePageTuple tup = getFirstTupleOfNextLeaf(leaf);
+        if (tup != null &&
+            TupleComparator.comparePartialTuples(tup, searchKey) != 0) {
+            tup.unpin();
+            tup = null;
+        }
+
+        return tup;
     }
 
 
@@ -343,23 +388,69 @@ public class BTreeTupleFile implements SequentialTupleFile {
 
         LeafPage leaf = navigateToLeafPage(searchKey, false, null);
 
-        if (leaf != null && leaf.getNumTuples() > 0) {
-            // We have at least one tuple to look at, so scan through to find
-            // the first tuple that equals what we are looking for.
-            for (int i = 0; i < leaf.getNumTuples(); i++) {
+        while (leaf != null) {
+            // Binary search the leaf for the first tuple that is greater
+            // than what we are looking for.
+            int i = leaf.findFirstIndexGreaterThan(searchKey);
+            if (i < leaf.getNumTuples()) {
+                // Found it!
                 BTreeFilePageTuple tup = leaf.getTuple(i);
-                int cmp = TupleComparator.comparePartialTuples(tup, searchKey);
-                if (cmp > 0)
-                    return tup;  // Found it!
+                tup.pin();
+                leaf.getDBPage().unpin();
+                return tup;
             }
 
+            // Every tuple in the leaf is at most the search key.  For a
+            // partial search key, the tuples equal to it may continue into
+            // the following leaves, so keep going.
+            int nextPageNo = leaf.getNextPageNo();
             leaf.getDBPage().unpin();
+
+            if (nextPageNo == 0)
+                break;
+
+            leaf = new LeafPage(storageManager.loadDBPage(dbFile, nextPageNo),
+                                schema);
         }
 
         return null;
     }
 
 
+    /**
+     * Returns the first tuple of the leaf page following the specified leaf,
+     * pinned, or {@code null} if the leaf is the last one.  The specified
+     * leaf is unpinned.
+     *
+     * @param leaf the leaf page whose successor's first tuple is returned
+     *
+     * @return the first tuple of the next leaf page, or {@code null}
+     *
+     * @throws IOException if an IO error occurs while loading the next leaf
+     */
+    private BTreeFilePageTuple getFirstTupleOfNextLeaf(LeafPage leaf)
+        throws IOException {
+
+        int nextPageNo = leaf.getNextPageNo();
+        leaf.getDBPage().unpin();
+
+        if (nextPageNo == 0)
+            return null;
+
+        DBPage dbPage = storageManager.loadDBPage(dbFile, nextPageNo);
+        LeafPage nextLeaf = new LeafPage(dbPage, schema);
+
+        BTreeFilePageTuple tup = null;
+        if (nextLeaf.getNumTuples() > 0) {
+            tup = nextLeaf.getTuple(0);
+            tup.pin();
+        }
+
+        dbPage.unpin();
+        return tup;
+    }
+
+
     @Override
     public Tuple addTuple(Tuple tup) throws IOException {
         logger.debug("Adding tuple " + tup + " to BTree file " + dbFile);
@@ -378,7 +469,15 @@ public class BTreeTupleFile implements SequentialTupleFile {
             tupLit = new TupleLiteral(tup);
         tupLit.setStorageSize(PageTuple.getTupleStorageSize(schema, tupLit));
 
-        return leafPageOps.addTuple(leaf, tupLit, pagePath);
+        BTreeFilePageTuple result =
+            leafPageOps.addTuple(leaf, tupLit, pagePath);
+
+        // The caller is responsible for unpinning the returned tuple; the
+        // leaf we navigated to is no longer needed.
+        result.pin();
+        leaf.getDBPage().unpin();
+
+        return result;
     }
 
 
@@ -401,6 +500,8 @@ public class BTreeTupleFile implements SequentialTupleFile {
 
         leafPageOps.deleteTuple(leaf, tuple, pagePath);
         tuple.setDeleted();
+
+        leaf.getDBPage().unpin();
     }
 
 
@@ -445,8 +546,10 @@ public class BTreeTupleFile implements SequentialTupleFile {
             // The file doesn't have any data-pages at all yet.  Create one if
             // the caller wants it.
 
-            if (!createIfNeeded)
+            if (!createIfNeeded) {
+                dbpHeader.unpin();
                 return null;
+            }
 
             // We need to create a brand new leaf page and make it the root.
 
@@ -463,9 +566,11 @@ public class BTreeTupleFile implements SequentialTupleFile {
             LeafPage.init(dbpRoot, schema);
 
             logger.debug("New root pageNo is " + rootPageNo);
+            dbpHeader.unpin();
         } else {
             // The BTree file has a root page; load it.
             dbpRoot = storageManager.loadDBPage(dbFile, rootPageNo);
+            dbpHeader.unpin();
 
             logger.debug("BTree file root pageNo is " + rootPageNo);
         }
@@ -508,68 +613,29 @@ public class BTreeTupleFile implements SequentialTupleFile {
         }
 
         while (pageType == BTREE_INNER_PAGE) {
-            // End this while loop once we encounter a leaf page
-            int numPointers = curPage.getNumPointers();
-            int i = 0;
-            boolean pageChanged = false;
-
-            while (i < numPointers - 1) {
-                if (TupleComparator.comparePartialTuples(searchKey, curPage.getKey(i)) < 0) {
-                    // searchKey value is less than key in page at index i, set current page to pointer at i
-                    if (pagePath != null) {
-                        // Add this page to the pagePath if the original pagePath was not NULL
-                        pagePath.add(curPage.getPointer(i));
-                    }
-                    // Load in the next page in the tree, also updating the current pageType
-                    pageChanged = true;
-                    DBPage newPage = storageManager.loadDBPage(dbFile, curPage.getPointer(i));
-                    pageType = newPage.readByte(0);
-                    if (pageType == BTREE_LEAF_PAGE) {
-                        finalPage = new LeafPage(newPage, schema);
-                    } else if (pageType == BTREE_INNER_PAGE) {
-                        curPage = innerPageOps.loadPage(curPage.getPointer(i));
-                    }
-                    if (pageType != BTREE_INNER_PAGE && pageType != BTREE_LEAF_PAGE)
-                        throw new IOException("Invalid page type encountered:  " + pageType);
-
-                    break;
-                } else if (TupleComparator.comparePartialTuples(searchKey, curPage.getKey(i)) == 0) {
-                    // searchKey value is equal to key in page at index i, set current page to pointer at i + 1
-                    if (pagePath != null) {
-                        pagePath.add(curPage.getPointer(i + 1));
-                    }
-                    // Load in the next page in the tree, also updating the current pageType
-                    pageChanged = true;
-                    DBPage newPage = storageManager.loadDBPage(dbFile, curPage.getPointer(i + 1));
-                    pageType = newPage.readByte(0);
-                    if (pageType == BTREE_LEAF_PAGE) {
-                        finalPage = new LeafPage(newPage, schema);
-                    } else if (pageType == BTREE_INNER_PAGE) {
-                        curPage = innerPageOps.loadPage(curPage.getPointer(i + 1));
-                    }
-                    if (pageType != BTREE_INNER_PAGE && pageType != BTREE_LEAF_PAGE)
-                        throw new IOException("Invalid page type encountered:  " + pageType);
-                    break;
-                }
-                i++;
-            }
-            // searchKey value is greater than all keys in page, set current page to pointer at numPointers - 1, only if
-            // the curPage object was not already updated in the preceding inner while loop
-            if (i == numPointers - 1 && pageChanged == false) {
-                if (pagePath != null) {
-                    pagePath.add(curPage.getPointer(i));
-                }
-                DBPage newPage = storageManager.loadDBPage(dbFile, curPage.getPointer(i));
-                pageType = newPage.readByte(0);
-                if (pageType == BTREE_LEAF_PAGE) {
-                    finalPage = new LeafPage(newPage, schema);
-                } else if (pageType == BTREE_INNER_PAGE) {
-                    curPage = innerPageOps.loadPage(curPage.getPointer(i));
-                }
-                if (pageType != BTREE_INNER_PAGE && pageType != BTREE_LEAF_PAGE)
-                    throw new IOException("Invalid page type encountered:  " + pageType);
+            // End this while loop once we encounter a leaf page.  Binary
+            // search the inner page's keys for the pointer to follow.
+            int i = curPage.findPointerIndex(searchKey);
+            int childPageNo = curPage.getPointer(i);
+            if (pagePath != null)
+                pagePath.add(childPageNo);
+
+            // Inner pages are only needed while we navigate through them, so
+            // release each one as soon as we have moved to its child.
+            DBPage parentPage = curPage.getDBPage();
+
+            // Load in the next page in the tree, also updating the current
+            // pageType
+            DBPage newPage = storageManager.loadDBPage(dbFile, childPageNo);
+            pageType = newPage.readByte(0);
+            if (pageType == BTREE_LEAF_PAGE) {
+                finalPage = new LeafPage(newPage, schema);
+            } else if (pageType == BTREE_INNER_PAGE) {
+                curPage = new InnerPage(newPage, schema);
             }
-
+            parentPage.unpin();
+            if (pageType != BTREE_INNER_PAGE && pageType != BTREE_LEAF_PAGE)
+                throw new IOException("Invalid page type encountered:  " + pageType);
         }
 
 
@@ -580,7 +646,50 @@ public class BTreeTupleFile implements SequentialTupleFile {
 
     @Override
     public void analyze() throws IOException {
-        throw new UnsupportedOperationException("NYI");
+        // Scan through the tuples in the leaf pages, in order.  The leaf
+        // pages are counted as the file's data pages.
+
+        ColumnStatsCollector[] collectors =
+            new ColumnStatsCollector[schema.numColumns()];
+        for (int i = 0; i < collectors.length; i++) {
+            collectors[i] = new ColumnStatsCollector(
+                schema.getColumnInfo(i).getType().getBaseType());
+        }
+
+        float totalSize = 0;
+        int numTuples = 0;
+        int numDataPages = 0;
+        int lastPageNo = -1;
+
+        BTreeFilePageTuple tuple = (BTreeFilePageTuple) getFirstTuple();
+        while (tuple != null) {
+            numTuples++;
+            totalSize += tuple.getEndOffset() - tuple.getOffset();
+
+            int pageNo = tuple.getDBPage().getPageNo();
+            if (pageNo != lastPageNo) {
+                numDataPages++;
+                lastPageNo = pageNo;
+            }
+
+            for (int i = 0; i < collectors.length; i++)
+                collectors[i].addValue(tuple.getColumnValue(i));
+
+            BTreeFilePageTuple next = (BTreeFilePageTuple) getNextTuple(tuple);
+            tuple.unpin();
+            tuple = next;
+        }
+
+        float avgTupleSize = (numTuples > 0) ? totalSize / numTuples : 0;
+
+        ArrayList<ColumnStats> columnStats = new ArrayList<>();
+        for (ColumnStatsCollector collector : collectors)
+            columnStats.add(collector.getColumnStats());
+
+        stats = new TableStats(numDataPages, numTuples, avgTupleSize,
+            columnStats);
+
+        btreeFileManager.saveMetadata(this);
     }
 
 
@@ -593,8 +702,77 @@ public class BTreeTupleFile implements SequentialTupleFile {
     }
 
 
+    /**
+     * Returns a loader that builds the B<sup>+</sup> tree bottom-up from
+     * tuples supplied in sorted order, filling pages up to the fill factor
+     * specified by {@link StorageManager#getBTreeFillFactor}.  The file must
+     * currently be empty.
+     *
+     * @return a bulk-loader for this file
+     *
+     * @throws IOException if the file's header page cannot be read
+     *
+     * @throws IllegalStateException if the file is not empty
+     */
+    public BTreeBulkLoader getBulkLoader() throws IOException {
+        return new BTreeBulkLoader(storageManager, dbFile, schema, fileOps,
+            StorageManager.getBTreeFillFactor());
+    }
+
+
+    /**
+     * Rebuilds the B<sup>+</sup> tree with the bulk-loader.  The tuples are
+     * copied out of the file (spilling to disk if there are too many to hold
+     * in memory), all data pages are released, and then the tree is rebuilt
+     * so that the pages are filled to the configured fill factor and the
+     * leaves are laid out in order at the start of the file.
+     */
     @Override
     public void optimize() throws IOException {
-        throw new UnsupportedOperationException("NYI");
+        // The tuples are read out in order, but TupleSorter gives us a
+        // spillable buffer for them.
+        TupleSorter sorter = new TupleSorter(storageManager, schema,
+            TUPLE_ORDER, ExecutionProperties.getWorkMemSize());
+
+        try {
+            Tuple tuple = getFirstTuple();
+            while (tuple != null) {
+                sorter.addTuple(new TupleLiteral(tuple));
+
+                Tuple next = getNextTuple(tuple);
+                tuple.unpin();
+                tuple = next;
+            }
+            sorter.finish();
+
+            // Release every data page.  Releasing them from the end of the
+            // file means they are reused starting from the front of the file.
+            DBPage dbpHeader = storageManager.loadDBPage(dbFile, 0);
+            HeaderPage.setRootPageNo(dbpHeader, 0);
+            HeaderPage.setFirstLeafPageNo(dbpHeader, 0);
+            HeaderPage.setFirstEmptyPageNo(dbpHeader, 0);
+            dbpHeader.unpin();
+
+            for (int pageNo = dbFile.getNumPages() - 1; pageNo > 0; pageNo--) {
+                DBPage dbPage = storageManager.loadDBPage(dbFile, pageNo);
+                fileOps.releaseDataPage(dbPage);
+                dbPage.unpin();
+            }
+
+            BTreeBulkLoader loader = getBulkLoader();
+            while (true) {
+                tuple = sorter.getNextTuple();
+                if (tuple == null)
+                    break;
+
+                loader.addTuple(tuple);
+            }
+            loader.finish();
+        }
+        finally {
+            sorter.delete();
+        }
+
+        logger.debug("Optimized B+ tree file " + dbFile);
     }
 }
@@ -100,8 +100,41 @@ public class BTreeTupleFileManager implements TupleFileManager {
 
     @Override
     public void saveMetadata(TupleFile tupleFile) throws IOException {
-        // TODO
-        throw new UnsupportedOperationException("NYI:  deleteTupleFile()");
+
+        if (tupleFile == null)
+            throw new IllegalArgumentException("tupleFile cannot be null");
+
+        if (!(tupleFile instanceof BTreeTupleFile)) {
+            throw new IllegalArgumentException(
+                "tupleFile must be an instance of BTreeTupleFile");
+        }
+
+        DBFile dbFile = tupleFile.getDBFile();
+
+        TableSchema schema = tupleFile.getSchema();
+        TableStats stats = tupleFile.getStats();
+
+        // The schema and statistics are stored in the header page, after the
+        // B+ tree's own header fields.
+        DBPage headerPage = storageManager.loadDBPage(dbFile, 0);
+        PageWriter hpWriter = new PageWriter(headerPage);
+        hpWriter.setPosition(HeaderPage.OFFSET_SCHEMA_START);
+
+        SchemaWriter schemaWriter = new SchemaWriter();
+        schemaWriter.writeTableSchema(schema, hpWriter);
+
+        int schemaEndPos = hpWriter.getPosition();
+        int schemaSize = schemaEndPos - HeaderPage.OFFSET_SCHEMA_START;
+        HeaderPage.setSchemaSize(headerPage, schemaSize);
+
+        StatsWriter statsWriter = new StatsWriter();
+        statsWriter.writeTableStats(schema, stats, hpWriter);
+        int statsSize = hpWriter.getPosition() - schemaEndPos;
+        HeaderPage.setStatsSize(headerPage, statsSize);
+
+        // Log change to write-ahead log
+        storageManager.logDBPageWrite(headerPage);
+        headerPage.unpin();
     }
 
 
@@ -11,4 +11,13 @@ package edu.caltech.nanodb.storage.btreefile;
 public interface DataPage {
     /** The page type always occupies the first byte of the page. */
     public static final int OFFSET_PAGE_TYPE = 0;
+
+
+    /**
+     * Leaf and inner pages end with a slot directory that records the offset
+     * of each entry in the page, so that entries can be found by index
+     * without scanning the page.  The directory grows backward from the end
+     * of the page, and each slot is this many bytes.
+     */
+    public static final int SLOT_SIZE = 2;
 }
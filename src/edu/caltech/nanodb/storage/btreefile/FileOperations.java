@@ -62,6 +62,8 @@ class FileOperations {
             HeaderPage.setFirstEmptyPageNo(dbpHeader, nextEmptyPage);
         }
 
+        dbpHeader.unpin();
+
         logger.debug("Found data page to use:  page " + newPage.getPageNo());
 
         // TODO:  Increment the number of data pages?
@@ -102,5 +104,6 @@ class FileOperations {
 
         // Store the new "first empty page" value into the header.
         HeaderPage.setFirstEmptyPageNo(dbpHeader, dbPage.getPageNo());
+        dbpHeader.unpin();
     }
 }
@@ -8,6 +8,7 @@ import java.util.List;
 import edu.caltech.nanodb.relations.Schema;
 import org.apache.log4j.Logger;
 
+import edu.caltech.nanodb.expressions.TupleComparator;
 import edu.caltech.nanodb.expressions.TupleLiteral;
 import edu.caltech.nanodb.relations.Tuple;
 import edu.caltech.nanodb.storage.DBPage;
@@ -28,6 +29,12 @@ import static edu.caltech.nanodb.storage.btreefile.BTreePageTypes.*;
  * leaves and/or inner pages of the B<sup>+</sup> tree structure, are provided
  * by the {@link LeafPageOperations} and {@link InnerPageOperations} classes.
  * </p>
+ * <p>
+ * As with leaf pages, the end of the page holds a slot directory (see
+ * {@link DataPage#SLOT_SIZE}).  Slot <em>i</em> holds the offset of pointer
+ * <em>i</em>; key <em>i</em> immediately follows that pointer.  This allows
+ * the keys to be binary searched without scanning the page.
+ * </p>
  */
 public class InnerPage implements DataPage {
     /** A logging object for reporting anything interesting that happens. */
@@ -67,7 +74,11 @@ public class InnerPage implements DataPage {
     private int[] pointerOffsets;
 
 
-    /** An array of the tuples stored in this non-leaf page. */
+    /**
+     * An array of the tuples stored in this non-leaf page.  Keys are only
+     * loaded from the page when they are requested, so entries may be
+     * {@code null}.
+     */
     private BTreeFilePageTuple[] keys;
 
 
@@ -163,14 +174,32 @@ public class InnerPage implements DataPage {
 
         dbPage.writeShort(OFFSET_NUM_POINTERS, 2);
 
+        dbPage.writeShort(getSlotOffset(dbPage, 0), OFFSET_FIRST_POINTER);
+        dbPage.writeShort(getSlotOffset(dbPage, 1), offset);
+
         return new InnerPage(dbPage, schema);
     }
 
 
     /**
-     * This private helper scans through the inner page's contents and caches
-     * the contents of the inner page in a way that makes it easy to use and
-     * manipulate.
+     * Returns the offset within the page of the specified slot in the slot
+     * directory.
+     *
+     * @param dbPage the inner page
+     *
+     * @param index the index of the slot
+     *
+     * @return the offset of the slot within the page
+     */
+    private static int getSlotOffset(DBPage dbPage, int index) {
+        return dbPage.getPageSize() - (index + 1) * SLOT_SIZE;
+    }
+
+
+    /**
+     * This private helper reads the inner page's header and slot directory,
+     * and caches the contents of the inner page in a way that makes it easy
+     * to use and manipulate.  Keys are loaded as they are requested.
      */
     private void loadPageContents() {
         numPointers = dbPage.readUnsignedShort(OFFSET_NUM_POINTERS);
@@ -178,38 +207,10 @@ public class InnerPage implements DataPage {
             pointerOffsets = new int[numPointers];
             keys = new BTreeFilePageTuple[numPointers - 1];
 
-            // Handle first pointer + key separately since we know their offsets
-
-            pointerOffsets[0] = OFFSET_FIRST_POINTER;
+            for (int i = 0; i < numPointers; i++)
+                pointerOffsets[i] = dbPage.readUnsignedShort(getSlotOffset(dbPage, i));
 
-            if (numPointers == 1) {
-                // This will happen when we are deleting values from a page.
-                // No keys, just 1 pointer, done!
-                endOffset = OFFSET_FIRST_POINTER + 2;
-                return;
-            }
-
-            BTreeFilePageTuple key = new BTreeFilePageTuple(schema, dbPage,
-                OFFSET_FIRST_POINTER + 2, 0);
-            keys[0] = key;
-
-            // Handle all the pointer/key pairs.  This excludes the last
-            // pointer.
-
-            int keyEndOffset;
-            for (int i = 1; i < numPointers - 1; i++) {
-                // Next pointer starts where the previous key ends.
-                keyEndOffset = key.getEndOffset();
-                pointerOffsets[i] = keyEndOffset;
-                
-                // Next key starts after the next pointer.
-                key = new BTreeFilePageTuple(schema, dbPage, keyEndOffset + 2, i);
-                keys[i] = key;
-            }
-
-            keyEndOffset = key.getEndOffset();
-            pointerOffsets[numPointers - 1] = keyEndOffset;
-            endOffset = keyEndOffset + 2;
+            endOffset = pointerOffsets[numPointers - 1] + 2;
         }
         else {
             // There are no entries (pointers + keys).
@@ -220,6 +221,42 @@ public class InnerPage implements DataPage {
     }
 
 
+    /**
+     * This private helper scans through the inner page's pointers and keys
+     * to rewrite the slot directory, and then reloads the cached contents of
+     * the page.  It must be called after the entries in the page are
+     * changed.
+     *
+     * @throws IllegalStateException if the page's entries overlap the slot
+     *         directory
+     */
+    private void updateSlotDirectory() {
+        int count = dbPage.readUnsignedShort(OFFSET_NUM_POINTERS);
+
+        int offset = OFFSET_FIRST_POINTER;
+        for (int i = 0; i < count; i++) {
+            dbPage.writeShort(getSlotOffset(dbPage, i), offset);
+
+            // Skip the pointer, then the key that follows it (if any).
+            offset += 2;
+            if (i < count - 1) {
+                BTreeFilePageTuple key =
+                    new BTreeFilePageTuple(schema, dbPage, offset, i);
+                key.unpin();
+                offset = key.getEndOffset();
+            }
+        }
+
+        if (offset > getSlotOffset(dbPage, count - 1) + SLOT_SIZE) {
+            throw new IllegalStateException(String.format("Entries in " +
+                "inner page %d end at offset %d, overlapping the slot " +
+                "directory of %d slots", getPageNo(), offset, count));
+        }
+
+        loadPageContents();
+    }
+
+
     /**
      * Returns the {@code DBPage} that backs this leaf page.
      *
@@ -379,7 +416,7 @@ public class InnerPage implements DataPage {
      * @return the total amount of space used in this page, in bytes.
      */
     public int getUsedSpace() {
-        return endOffset;
+        return endOffset + numPointers * SLOT_SIZE;
     }
 
 
@@ -391,7 +428,7 @@ public class InnerPage implements DataPage {
      *         in bytes.
      */
     public int getSpaceUsedByEntries() {
-        return endOffset - OFFSET_FIRST_POINTER;
+        return endOffset - OFFSET_FIRST_POINTER + numPointers * SLOT_SIZE;
     }
 
 
@@ -401,7 +438,7 @@ public class InnerPage implements DataPage {
      * @return the amount of space available in this inner page, in bytes.
      */
     public int getFreeSpace() {
-        return dbPage.getPageSize() - endOffset;
+        return dbPage.getPageSize() - getUsedSpace();
     }
 
 
@@ -449,7 +486,52 @@ public class InnerPage implements DataPage {
      * @return the key at that index
      */
     public BTreeFilePageTuple getKey(int index) {
-        return keys[index];
+        BTreeFilePageTuple key = keys[index];
+        if (key == null) {
+            // As with leaf pages, the cached keys don't hold their own pins
+            // on the page; the page's loader is responsible for that.
+            key = new BTreeFilePageTuple(schema, dbPage,
+                                         pointerOffsets[index] + 2, index);
+            key.unpin();
+            keys[index] = key;
+        }
+        return key;
+    }
+
+
+    /**
+     * Returns the index of the pointer to follow when searching for the
+     * specified key, using a binary search over the keys in this page.  This
+     * is the index of the first key greater than the search key, or the
+     * index of the last pointer if there is no such key.  If the search key
+     * has fewer columns than the keys, and equals a key's leading columns,
+     * then tuples matching it may also be to the left of that key, so such a
+     * key is treated as greater than the search key.
+     *
+     * @param searchKey the key to search for
+     *
+     * @return the index of the pointer to follow
+     */
+    public int findPointerIndex(Tuple searchKey) {
+        int low = 0;
+        int high = getNumKeys();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            BTreeFilePageTuple key = getKey(mid);
+            int cmp = TupleComparator.comparePartialTuples(searchKey, key);
+
+            // A partial search key only compares the leading columns, so
+            // if it equals a prefix of the key, tuples matching it may be
+            // in the subtree to the left, too.
+            if (cmp == 0 && searchKey.getColumnCount() < key.getColumnCount())
+                cmp = -1;
+
+            if (cmp < 0)
+                high = mid;
+            else
+                low = mid + 1;
+        }
+        return low;
     }
 
 
@@ -473,15 +555,15 @@ public class InnerPage implements DataPage {
 
 
     public void replaceTuple(int index, Tuple key) {
-        int oldStart = keys[index].getOffset();
-        int oldLen = keys[index].getEndOffset() - oldStart;
+        int oldStart = getKey(index).getOffset();
+        int oldLen = getKey(index).getEndOffset() - oldStart;
 
         int newLen = PageTuple.getTupleStorageSize(schema, key);
         
         if (newLen != oldLen) {
             // Need to adjust the amount of space the key takes.
             
-            if (endOffset + newLen - oldLen > dbPage.getPageSize()) {
+            if (getUsedSpace() + newLen - oldLen > dbPage.getPageSize()) {
                 throw new IllegalArgumentException(
                     "New key-value is too large to fit in non-leaf page.");
             }
@@ -492,9 +574,8 @@ public class InnerPage implements DataPage {
 
         PageTuple.storeTuple(dbPage, oldStart, schema, key);
 
-        // Reload the page contents.
-        // TODO:  This is slow, but it should be fine for now.
-        loadPageContents();
+        // Update the slot directory and reload the page contents.
+        updateSlotDirectory();
     }
 
 
@@ -546,7 +627,7 @@ public class InnerPage implements DataPage {
         if (i < numPointers - 1) {
             // There's a key i associated with pointer i.  Use the key's offset,
             // since it's after the pointer.
-            oldKeyStart = keys[i].getOffset();
+            oldKeyStart = getKey(i).getOffset();
         }
         else {
             // The pageNo1 pointer is the last pointer in the sequence.  Use
@@ -556,11 +637,11 @@ public class InnerPage implements DataPage {
         int len = endOffset - oldKeyStart;
 
         // Compute the size of the new key and pointer, and make sure they fit
-        // into the page.
+        // into the page along with the pointer's slot.
 
         int newKeySize = PageTuple.getTupleStorageSize(schema, key1);
         int newEntrySize = newKeySize + 2;
-        if (endOffset + newEntrySize > dbPage.getPageSize()) {
+        if (getFreeSpace() < newEntrySize + SLOT_SIZE) {
             throw new IllegalArgumentException("New key-value and " +
                 "page-pointer are too large to fit in non-leaf page.");
         }
@@ -580,7 +661,7 @@ public class InnerPage implements DataPage {
 
         dbPage.writeShort(OFFSET_NUM_POINTERS, numPointers + 1);
 
-        loadPageContents();
+        updateSlotDirectory();
 
         if (logger.isTraceEnabled()) {
             logger.trace("Non-leaf page " + getPageNo() +
@@ -636,18 +717,18 @@ public class InnerPage implements DataPage {
         // Expand the data range that we are removing.
         if (removeRightKey) {
             // Remove the key to the right of the page-pointer.
-            end = keys[ptrIndex].getEndOffset();
+            end = getKey(ptrIndex).getEndOffset();
 
             logger.debug(String.format("Removing right key, with size %d." +
-                "  Range being removed is [%d, %d).", keys[ptrIndex].getSize(),
+                "  Range being removed is [%d, %d).", getKey(ptrIndex).getSize(),
                 start, end));
         }
         else {
             // Remove the key to the left of the page-pointer.
-            start = keys[ptrIndex - 1].getOffset();
+            start = getKey(ptrIndex - 1).getOffset();
 
             logger.debug(String.format("Removing left key, with size %d." +
-                "  Range being removed is [%d, %d).", keys[ptrIndex - 1].getSize(),
+                "  Range being removed is [%d, %d).", getKey(ptrIndex - 1).getSize(),
                 start, end));
         }
 
@@ -661,7 +742,7 @@ public class InnerPage implements DataPage {
         logger.debug("Loading altered page - had " + numPointers + 
             " pointers before delete.");
         // Load new page.
-        loadPageContents();
+        updateSlotDirectory();
         
         logger.debug("After loading, have " + numPointers + " pointers");
     }
@@ -974,7 +1055,7 @@ public class InnerPage implements DataPage {
             rightSibling.dbPage.writeShort(OFFSET_FIRST_POINTER, getPointer(getNumPointers() - count));
             rightSibling.dbPage.writeShort(OFFSET_NUM_POINTERS, 1);
             rightSibling.numPointers = 1;
-            rightSibling.loadPageContents();
+            rightSibling.updateSlotDirectory();
 
             // Add each additional key/pointer pair from current inner page to right sibling
             for (int i = 0; i < count - 1; i ++){
@@ -236,8 +236,9 @@ public class InnerPageOperations {
             else
                 index = numRelocated;
 
-            // Add two bytes to the key size for the page-pointer that follows
-            int entrySize = page.getKey(index).getSize() + 2;
+            // Add two bytes to the key size for the page-pointer that follows,
+            // and the pointer's slot
+            int entrySize = page.getKey(index).getSize() + 2 + InnerPage.SLOT_SIZE;
             logger.debug("Entry " + index + " is " + entrySize + " bytes");
 
             // Did we run out of space to move entries before we hit our goal?
@@ -285,9 +286,11 @@ public class InnerPageOperations {
     public void addTuple(InnerPage page, List<Integer> pagePath,
         int pagePtr1, Tuple key1, int pagePtr2) throws IOException {
 
-        // The new entry will be the key, plus 2 bytes for the page-pointer.
+        // The new entry will be the key, plus 2 bytes for the page-pointer,
+        // plus the pointer's slot.
         int newEntrySize =
-            PageTuple.getTupleStorageSize(tupleFile.getSchema(), key1) + 2;
+            PageTuple.getTupleStorageSize(tupleFile.getSchema(), key1) + 2 +
+            InnerPage.SLOT_SIZE;
 
         logger.debug(String.format("Adding new %d-byte entry to inner page %d",
             newEntrySize, page.getPageNo()));
@@ -874,7 +877,7 @@ public class InnerPageOperations {
             }
         }
 
-        int entrySize = 2 +
+        int entrySize = 2 + InnerPage.SLOT_SIZE +
             PageTuple.getTupleStorageSize(tupleFile.getSchema(), key1);
 
         if (page.getFreeSpace() >= entrySize) {
@@ -932,7 +935,8 @@ public class InnerPageOperations {
             // If the key we wanted to move into this page overflows the free
             // space in this page, back it up.
             // TODO:  IS THIS NECESSARY?
-            if (pageBytesFree < keyBytesMoved + 2 * numRelocated) {
+            if (pageBytesFree < keyBytesMoved +
+                (2 + InnerPage.SLOT_SIZE) * numRelocated) {
                 numRelocated--;
                 break;
             }
@@ -957,7 +961,8 @@ public class InnerPageOperations {
             // Since we don't yet know which page the new pointer will go into,
             // stop when we can put the pointer in either page.
             if (adjBytesFree <= halfFull &&
-                (pageBytesFree + keyBytesMoved + 2 * numRelocated) <= halfFull) {
+                (pageBytesFree + keyBytesMoved +
+                 (2 + InnerPage.SLOT_SIZE) * numRelocated) <= halfFull) {
                 break;
             }
         }
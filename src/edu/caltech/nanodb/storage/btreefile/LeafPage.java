@@ -3,7 +3,6 @@ package edu.caltech.nanodb.storage.btreefile;
 
 import java.io.IOException;
 
-import java.util.ArrayList;
 import java.util.List;
 
 import edu.caltech.nanodb.relations.Schema;
@@ -31,6 +30,14 @@ import static edu.caltech.nanodb.storage.btreefile.BTreePageTypes.*;
  * are provided by the {@link LeafPageOperations} and
  * {@link InnerPageOperations} classes.
  * </p>
+ * <p>
+ * Tuples are stored contiguously, in increasing order, starting at
+ * {@link #OFFSET_FIRST_TUPLE}.  The end of the page holds a slot directory
+ * with the offset of each tuple (see {@link DataPage#SLOT_SIZE}); slot 0 is
+ * in the last two bytes of the page, slot 1 precedes it, and so forth.  This
+ * allows tuples to be found by index, and therefore by binary search,
+ * without scanning the tuples that precede them.
+ * </p>
  */
 public class LeafPage implements DataPage {
     /** A logging object for reporting anything interesting that happens. */
@@ -67,8 +74,11 @@ public class LeafPage implements DataPage {
     private int numTuples;
 
 
-    /** A list of the tuples stored in this leaf page. */
-    private ArrayList<BTreeFilePageTuple> tuples;
+    /**
+     * The tuples stored in this leaf page.  Tuples are only loaded from the
+     * page when they are requested, so entries may be {@code null}.
+     */
+    private BTreeFilePageTuple[] tuples;
 
 
     /**
@@ -122,30 +132,17 @@ public class LeafPage implements DataPage {
 
 
     /**
-     * This private helper scans through the leaf page's contents and caches
-     * the contents of the leaf page in a way that makes it easy to use and
-     * manipulate.
+     * This private helper reads the leaf page's header and caches the
+     * contents of the leaf page in a way that makes it easy to use and
+     * manipulate.  Tuples are located through the slot directory, so only
+     * the last tuple is loaded, to find where the tuple data ends.
      */
     private void loadPageContents() {
         numTuples = dbPage.readUnsignedShort(OFFSET_NUM_TUPLES);
-        tuples = new ArrayList<BTreeFilePageTuple>(numTuples);
+        tuples = new BTreeFilePageTuple[numTuples];
 
         if (numTuples > 0) {
-            // Handle first tuple separately since we know its offset.
-
-            BTreeFilePageTuple tuple =
-                new BTreeFilePageTuple(schema, dbPage, OFFSET_FIRST_TUPLE, 0);
-
-            tuples.add(tuple);
-
-            // Handle remaining tuples.
-            for (int i = 1; i < numTuples; i++) {
-                int tupleEndOffset = tuple.getEndOffset();
-                tuple = new BTreeFilePageTuple(schema, dbPage, tupleEndOffset, i);
-                tuples.add(tuple);
-            }
-
-            endOffset = tuple.getEndOffset();
+            endOffset = getTuple(numTuples - 1).getEndOffset();
         }
         else {
             // There are no tuples in the leaf page.
@@ -154,6 +151,45 @@ public class LeafPage implements DataPage {
     }
 
 
+    /**
+     * Returns the offset within the page of the specified slot in the slot
+     * directory.
+     *
+     * @param index the index of the slot
+     *
+     * @return the offset of the slot within the page
+     */
+    private int getSlotOffset(int index) {
+        return dbPage.getPageSize() - (index + 1) * SLOT_SIZE;
+    }
+
+
+    /**
+     * Returns the offset of the tuple at the specified index, as recorded in
+     * the slot directory.
+     *
+     * @param index the index of the tuple
+     *
+     * @return the offset of the tuple within the page
+     */
+    private int readSlot(int index) {
+        return dbPage.readUnsignedShort(getSlotOffset(index));
+    }
+
+
+    /**
+     * Records the offset of the tuple at the specified index in the slot
+     * directory.
+     *
+     * @param index the index of the tuple
+     *
+     * @param offset the offset of the tuple within the page
+     */
+    private void writeSlot(int index, int offset) {
+        dbPage.writeShort(getSlotOffset(index), offset);
+    }
+
+
     /**
      * Returns the schema of tuples in this page.
      *
@@ -232,26 +268,29 @@ public class LeafPage implements DataPage {
      * @return the amount of space currently used in this leaf page, in bytes.
      */
     public int getUsedSpace() {
-        return endOffset;
+        return endOffset + numTuples * SLOT_SIZE;
     }
 
 
     /**
-     * Returns the amount of space used by tuples in this page, in bytes.
+     * Returns the amount of space used by tuples in this page, in bytes,
+     * including their slots in the slot directory.
      *
      * @return the amount of space used by tuples in this page, in bytes.
      */
     public int getSpaceUsedByTuples() {
-        return endOffset - OFFSET_FIRST_TUPLE;
+        return endOffset - OFFSET_FIRST_TUPLE + numTuples * SLOT_SIZE;
     }
 
     /**
      * Returns the amount of space available in this leaf page, in bytes.
+     * Note that adding a tuple to the page requires {@link #SLOT_SIZE} bytes
+     * beyond the tuple's own storage size.
      *
      * @return the amount of space available in this leaf page, in bytes.
      */
     public int getFreeSpace() {
-        return dbPage.getPageSize() - endOffset;
+        return dbPage.getPageSize() - getUsedSpace();
     }
 
 
@@ -273,23 +312,120 @@ public class LeafPage implements DataPage {
      * @return the tuple at that index
      */
     public BTreeFilePageTuple getTuple(int index) {
-        return tuples.get(index);
+        if (index < 0 || index >= numTuples) {
+            throw new IndexOutOfBoundsException("Tuple index " + index +
+                " is out of range [0, " + numTuples + ") in leaf page " +
+                getPageNo());
+        }
+
+        BTreeFilePageTuple tuple = tuples[index];
+        if (tuple == null) {
+            // The cached tuples don't hold their own pins on the page; the
+            // page is kept pinned by whoever loaded it for the lifetime of
+            // this object, and tuples handed out of the tuple file are
+            // pinned by the tuple file as they are returned.
+            tuple = new BTreeFilePageTuple(schema, dbPage, readSlot(index),
+                                           index);
+            tuple.unpin();
+            tuples[index] = tuple;
+        }
+        return tuple;
     }
 
 
     /**
-     * Returns the size of the tuple at the specified index, in bytes.
+     * Returns the size of the tuple at the specified index, in bytes.  This
+     * includes the tuple's slot in the slot directory, since that space is
+     * also freed when the tuple is moved out of the page.
      *
      * @param index the index of the tuple to get the size of
      *
      * @return the size of the specified tuple, in bytes
      */
     public int getTupleSize(int index) {
+        return getTupleDataSize(index) + SLOT_SIZE;
+    }
+
+
+    /**
+     * Returns the size of the specified tuple's data, in bytes.
+     *
+     * @param index the index of the tuple to get the size of
+     *
+     * @return the size of the specified tuple's data, in bytes
+     */
+    private int getTupleDataSize(int index) {
         BTreeFilePageTuple tuple = getTuple(index);
         return tuple.getEndOffset() - tuple.getOffset();
     }
 
 
+    /**
+     * Returns the index of the first tuple in this page that is greater than
+     * or equal to the search key, or the number of tuples in the page if
+     * every tuple is less than the search key.  Only the columns present in
+     * both the search key and the tuples are compared, so the search key may
+     * be a prefix of the tuples.
+     *
+     * @param searchKey the key to search for
+     *
+     * @return the index of the first tuple that is at least the search key
+     */
+    public int findFirstIndexAtLeast(Tuple searchKey) {
+        return binarySearch(searchKey, false);
+    }
+
+
+    /**
+     * Returns the index of the first tuple in this page that is greater than
+     * the search key, or the number of tuples in the page if every tuple is
+     * less than or equal to the search key.  As with
+     * {@link #findFirstIndexAtLeast}, the search key may be a prefix of the
+     * tuples.
+     *
+     * @param searchKey the key to search for
+     *
+     * @return the index of the first tuple that is greater than the search
+     *         key
+     */
+    public int findFirstIndexGreaterThan(Tuple searchKey) {
+        return binarySearch(searchKey, true);
+    }
+
+
+    /**
+     * This private helper implements the binary searches over the tuples in
+     * this page.
+     *
+     * @param searchKey the key to search for
+     *
+     * @param skipEqual if {@code true}, tuples equal to the search key are
+     *        treated as less than it
+     *
+     * @return the index of the first tuple greater than (or equal to, if
+     *         {@code skipEqual} is {@code false}) the search key
+     */
+    private int binarySearch(Tuple searchKey, boolean skipEqual) {
+        int low = 0;
+        int high = numTuples;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            int cmp = TupleComparator.comparePartialTuples(getTuple(mid),
+                                                           searchKey);
+
+            /* This gets REALLY verbose... */
+            logger.trace(mid + ":  compared " + searchKey + " to " +
+                getTuple(mid) + ", got cmp = " + cmp);
+
+            if (cmp < 0 || (cmp == 0 && skipEqual))
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        return low;
+    }
+
+
     /**
      * Given a leaf page in the B<sup>+</sup> tree file, returns the page
      * number of the left sibling, or -1 if there is no left sibling to this
@@ -377,12 +513,9 @@ public class LeafPage implements DataPage {
      *         isn't in the page.
      */
     public int getTupleIndex(Tuple tuple) {
-        int i;
-        for (i = 0; i < numTuples; i++) {
-            BTreeFilePageTuple pageTuple = tuples.get(i);
-
-            /* This gets REALLY verbose... */
-            logger.trace(i + ":  comparing " + tuple + " to " + pageTuple);
+        int i = findFirstIndexAtLeast(tuple);
+        if (i < numTuples) {
+            BTreeFilePageTuple pageTuple = getTuple(i);
 
             // Is this the key we're looking for?
             if (TupleComparator.comparePartialTuples(tuple, pageTuple) == 0) {
@@ -397,6 +530,33 @@ public class LeafPage implements DataPage {
     }
 
 
+    /**
+     * Returns the index of the tuple stored at the specified offset in this
+     * page.  Tuple offsets increase with the tuples' indexes, so the slot
+     * directory is binary searched.
+     *
+     * @param offset the offset of the tuple within the page
+     *
+     * @return the index of the tuple at that offset, or -1 if no tuple starts
+     *         at that offset
+     */
+    public int getTupleIndexAtOffset(int offset) {
+        int low = 0;
+        int high = numTuples - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int slotOffset = readSlot(mid);
+            if (slotOffset < offset)
+                low = mid + 1;
+            else if (slotOffset > offset)
+                high = mid - 1;
+            else
+                return mid;
+        }
+        return -1;
+    }
+
+
     /**
      * This method will delete a tuple from the leaf page.  The method takes
      * care of 'sliding' the remaining data to cover up the gap left.  The
@@ -418,13 +578,18 @@ public class LeafPage implements DataPage {
         }
 
         int tupleOffset = getTuple(index).getOffset();
-        int len = getTupleSize(index);
+        int len = getTupleDataSize(index);
 
         logger.debug("Moving leaf-page data in range [" + (tupleOffset+len) +
              ", " + endOffset + ") over by " + len + " bytes");
         dbPage.moveDataRange(tupleOffset + len, tupleOffset,
                              endOffset - tupleOffset - len);
 
+        // The following tuples' slots move down by one, and their offsets
+        // decrease by the size of the deleted tuple.
+        for (int i = index + 1; i < numTuples; i++)
+            writeSlot(i - 1, readSlot(i) - len);
+
         // Decrement the total number of entries.
         dbPage.writeShort(OFFSET_NUM_TUPLES, numTuples - 1);
 
@@ -463,50 +628,26 @@ public class LeafPage implements DataPage {
                 "must be computed before this method is called.");
         }
 
-        if (getFreeSpace() < newTuple.getStorageSize()) {
+        if (getFreeSpace() < newTuple.getStorageSize() + SLOT_SIZE) {
             throw new IllegalArgumentException(String.format(
                 "Not enough space in this node to store the new tuple " +
                 "(%d bytes free; %d bytes required)", getFreeSpace(),
-                newTuple.getStorageSize()));
+                newTuple.getStorageSize() + SLOT_SIZE));
         }
 
-        BTreeFilePageTuple result = null;
-
-        if (numTuples == 0) {
-            logger.debug("Leaf page is empty; storing new tuple at start.");
-            result = addTupleAtIndex(newTuple, 0);
+        // Find where the new tuple should go, then copy the tuple into the
+        // page.
+        int i = findFirstIndexAtLeast(newTuple);
+        if (i < numTuples &&
+            TupleComparator.compareTuples(newTuple, getTuple(i)) == 0) {
+            // TODO:  Currently we require all tuples to be unique,
+            //        but this isn't a realistic long-term constraint.
+            throw new IllegalStateException("Tuple " + newTuple +
+                " already appears in the index!");
         }
-        else {
-            int i;
-            for (i = 0; i < numTuples; i++) {
-                BTreeFilePageTuple tuple = tuples.get(i);
-
-                /* This gets REALLY verbose... */
-                logger.trace(i + ":  comparing " + newTuple + " to " + tuple);
-
-                // Compare the new tuple to the current tuple.  Once we find
-                // where the new tuple should go, copy the tuple into the page.
-                int cmp = TupleComparator.compareTuples(newTuple, tuple);
-                if (cmp < 0) {
-                    logger.debug("Storing new tuple at index " + i +
-                        " in the leaf page.");
-                    result = addTupleAtIndex(newTuple, i);
-                    break;
-                }
-                else if (cmp == 0) {
-                    // TODO:  Currently we require all tuples to be unique,
-                    //        but this isn't a realistic long-term constraint.
-                    throw new IllegalStateException("Tuple " + newTuple +
-                        " already appears in the index!");
-                }
-            }
 
-            if (i == numTuples) {
-                // The new tuple will go at the end of this page's entries.
-                logger.debug("Storing new tuple at end of leaf page.");
-                result = addTupleAtIndex(newTuple, numTuples);
-            }
-        }
+        logger.debug("Storing new tuple at index " + i + " in the leaf page.");
+        BTreeFilePageTuple result = addTupleAtIndex(newTuple, i);
 
         // The addTupleAtIndex() method updates the internal fields that cache
         // where keys live, etc.  So, we don't need to do that here.
@@ -569,12 +710,18 @@ public class LeafPage implements DataPage {
         // Write the tuple value into the page.
         PageTuple.storeTuple(dbPage, tupleOffset, schema, newTuple);
 
+        // The following tuples' slots move up by one, and their offsets
+        // increase by the size of the new tuple.  Go backward so that no
+        // slot is overwritten before it is read.
+        for (int i = numTuples - 1; i >= index; i--)
+            writeSlot(i + 1, readSlot(i) + len);
+
+        writeSlot(index, tupleOffset);
+
         // Increment the total number of tuples.
         dbPage.writeShort(OFFSET_NUM_TUPLES, numTuples + 1);
 
         // Reload the page contents now that we have a new tuple in the mix.
-        // TODO:  We could do this more efficiently, but this should be
-        //        sufficient for now.
         loadPageContents();
 
         logger.debug("Wrote new tuple to leaf-page at offset " + tupleOffset +
@@ -629,11 +776,19 @@ public class LeafPage implements DataPage {
         leftSibling.dbPage.writeShort(OFFSET_NUM_TUPLES,
             leftSibling.numTuples + count);    // Update the tuple-count
 
+        // Append slots for the moved tuples to the left sibling's directory.
+        int shift = leftSibling.endOffset - OFFSET_FIRST_TUPLE;
+        for (int i = 0; i < count; i++)
+            leftSibling.writeSlot(leftSibling.numTuples + i, readSlot(i) + shift);
+
         // Remove that range of tuple-data from this page.
         dbPage.moveDataRange(moveEndOffset, OFFSET_FIRST_TUPLE,
             endOffset - moveEndOffset);
         dbPage.writeShort(OFFSET_NUM_TUPLES, numTuples - count);
 
+        for (int i = count; i < numTuples; i++)
+            writeSlot(i - count, readSlot(i) - len);
+
         // Only erase the old data in the leaf page if we are trying to make
         // sure everything works properly.
         if (BTreeTupleFile.CLEAR_OLD_DATA)
@@ -690,6 +845,15 @@ public class LeafPage implements DataPage {
         rightSibling.dbPage.writeShort(OFFSET_NUM_TUPLES,
             rightSibling.numTuples + count);
 
+        // Shift the right sibling's existing slots to follow the moved
+        // tuples, then add slots for the moved tuples.
+        for (int i = rightSibling.numTuples - 1; i >= 0; i--)
+            rightSibling.writeSlot(i + count, rightSibling.readSlot(i) + len);
+
+        int shift = startOffset - OFFSET_FIRST_TUPLE;
+        for (int i = 0; i < count; i++)
+            rightSibling.writeSlot(i, readSlot(numTuples - count + i) - shift);
+
         // Remove that range of tuple-data from this page.
         dbPage.writeShort(OFFSET_NUM_TUPLES, numTuples - count);
 
@@ -388,17 +388,20 @@ public class LeafPageOperations {
 
             InnerPage parent =
                 innerPageOps.loadPage(pagePath.get(pagePath.size() - 2));
-            int index;
 
+            // The new key may be larger than the old one, so the inner-page
+            // operations are used to replace it, in case the parent page
+            // must be reorganized to make room.
+            pagePath.remove(pagePath.size() - 1);
             if (adjPage == leftSibling) {
                 adjPage.moveTuplesRight(leaf, tuplesToMove);
-                index = parent.getIndexOfPointer(adjPage.getPageNo());
-                parent.replaceTuple(index, leaf.getTuple(0));
+                innerPageOps.replaceTuple(parent, pagePath,
+                    adjPage.getPageNo(), leaf.getTuple(0), leaf.getPageNo());
             }
             else { // adjPage == right sibling
                 adjPage.moveTuplesLeft(leaf, tuplesToMove);
-                index = parent.getIndexOfPointer(leaf.getPageNo());
-                parent.replaceTuple(index, adjPage.getTuple(0));
+                innerPageOps.replaceTuple(parent, pagePath,
+                    leaf.getPageNo(), adjPage.getTuple(0), adjPage.getPageNo());
             }
         }
     }
@@ -424,9 +427,10 @@ public class LeafPageOperations {
 
         BTreeFilePageTuple result;
 
-        // Figure out where the new tuple-value goes in the leaf page.
+        // Figure out where the new tuple-value goes in the leaf page.  The
+        // tuple also needs a slot in the leaf's slot directory.
 
-        int newTupleSize = newTuple.getStorageSize();
+        int newTupleSize = newTuple.getStorageSize() + LeafPage.SLOT_SIZE;
         if (leaf.getFreeSpace() < newTupleSize) {
             // Try to relocate tuples from this leaf to either sibling,
             // or if that can't happen, split the leaf page into two.
@@ -469,7 +473,7 @@ public class LeafPageOperations {
         // See if we are able to relocate records either direction to free up
         // space for the new tuple.
 
-        int bytesRequired = tuple.getStorageSize();
+        int bytesRequired = tuple.getStorageSize() + LeafPage.SLOT_SIZE;
 
         int pathSize = pagePath.size();
         if (pathSize == 1)  // This node is also the root - no parent.
@@ -625,7 +629,7 @@ public class LeafPageOperations {
             // for it...
             logger.debug("Adding tuple to left leaf " + prevLeaf.getPageNo() +
                 " in pair");
-            if (prevLeaf.getFreeSpace() >= tuple.getStorageSize())
+            if (prevLeaf.getFreeSpace() >= tuple.getStorageSize() + LeafPage.SLOT_SIZE)
                 result = prevLeaf.addTuple(tuple);
         }
         else {
@@ -633,7 +637,7 @@ public class LeafPageOperations {
             // is room for it...
             logger.debug("Adding tuple to right leaf " + nextLeaf.getPageNo() +
                 " in pair");
-            if (nextLeaf.getFreeSpace() >= tuple.getStorageSize())
+            if (nextLeaf.getFreeSpace() >= tuple.getStorageSize() + LeafPage.SLOT_SIZE)
                 result = nextLeaf.addTuple(tuple);
         }
 
@@ -762,22 +766,7 @@ public class LeafPageOperations {
         LeafPage newLeaf = LeafPage.init(newDBPage, tupleFile.getSchema());
 
         // Find the index in the original leaf page at which this tuple would be inserted
-        int newIndex = -1;
-        for (int i = 0; i < leaf.getNumTuples(); i++) {
-             if (i == 0 && TupleComparator.compareTuples(tuple, leaf.getTuple(0)) < 0) {
-                newIndex = 0;
-                break;
-            }
-            else if (i == leaf.getNumTuples() - 1) {
-                newIndex = leaf.getNumTuples();
-                break;
-            }
-            else if (TupleComparator.compareTuples(leaf.getTuple(i), tuple) < 0 &&
-                    TupleComparator.compareTuples(leaf.getTuple(i + 1), tuple) >= 0) {
-                newIndex = i + 1;
-                break;
-            }
-        }
+        int newIndex = leaf.findFirstIndexAtLeast(tuple);
 
         // Update next leaf page pointers for the created page and the page being split
         newLeaf.setNextPageNo(leaf.getNextPageNo());
@@ -183,6 +183,96 @@ page_scan:  // So we can break out of the outer loop from inside the inner one
     }
 
 
+    /**
+     * Returns the number of pages in the table file, including the header
+     * page.  Data pages are numbered from 1 up to this value.
+     */
+    public int getNumPages() throws IOException {
+        return dbFile.getNumPages();
+    }
+
+
+    /**
+     * Returns the first tuple on the data pages from <tt>startPageNo</tt> up
+     * to but not including <tt>endPageNo</tt>, or <tt>null</tt> if there are
+     * no tuples on those pages.  Together with
+     * {@link #getNextTupleInPages}, this allows separate ranges of pages to
+     * be scanned independently, e.g. by different threads.
+     *
+     * @param startPageNo the first data page to scan, which must be at
+     *        least 1
+     *
+     * @param endPageNo the page after the last page to scan
+     */
+    public Tuple getFirstTupleInPages(int startPageNo, int endPageNo)
+        throws IOException {
+
+        if (startPageNo < 1)
+            throw new IllegalArgumentException("startPageNo must be at least 1");
+
+        return findTupleInPages(startPageNo, 0, endPageNo);
+    }
+
+
+    /**
+     * Returns the tuple that follows the specified tuple, or <tt>null</tt> if
+     * there are no more tuples before <tt>endPageNo</tt>.
+     *
+     * @param tup the "previous tuple" that specifies where to start looking
+     *        for the next tuple
+     *
+     * @param endPageNo the page after the last page to scan
+     */
+    public Tuple getNextTupleInPages(Tuple tup, int endPageNo)
+        throws IOException {
+
+        if (!(tup instanceof HeapFilePageTuple)) {
+            throw new IllegalArgumentException(
+                "Tuple must be of type HeapFilePageTuple; got " + tup.getClass());
+        }
+        HeapFilePageTuple ptup = (HeapFilePageTuple) tup;
+
+        return findTupleInPages(ptup.getDBPage().getPageNo(),
+            ptup.getSlot() + 1, endPageNo);
+    }
+
+
+    /**
+     * Finds the first tuple at or after the specified slot of the specified
+     * page, stopping at <tt>endPageNo</tt> or at the end of the file.
+     */
+    private HeapFilePageTuple findTupleInPages(int pageNo, int slot,
+        int endPageNo) throws IOException {
+
+        for (; pageNo < endPageNo; pageNo++, slot = 0) {
+            DBPage dbPage;
+            try {
+                dbPage = storageManager.loadDBPage(dbFile, pageNo);
+            }
+            catch (EOFException e) {
+                break;
+            }
+
+            try {
+                int numSlots = DataPage.getNumSlots(dbPage);
+                for (; slot < numSlots; slot++) {
+                    int offset = DataPage.getSlotValue(dbPage, slot);
+                    if (offset != DataPage.EMPTY_SLOT) {
+                        // Creating this tuple will pin the page a second time.
+                        return new HeapFilePageTuple(schema, dbPage, slot,
+                            offset);
+                    }
+                }
+            }
+            finally {
+                dbPage.unpin();
+            }
+        }
+
+        return null;
+    }
+
+
     /**
      * Returns the tuple corresponding to the specified file pointer.  This
      * method is used by many other operations in the database, such as
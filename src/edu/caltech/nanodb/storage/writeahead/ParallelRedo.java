@@ -0,0 +1,250 @@
+package edu.caltech.nanodb.storage.writeahead;
+
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import org.apache.log4j.Logger;
+
+import edu.caltech.nanodb.storage.DBFile;
+import edu.caltech.nanodb.storage.DBPage;
+import edu.caltech.nanodb.storage.StorageManager;
+
+
+/**
+ * This class applies the redo data of update records to data pages during
+ * recovery.  The write-ahead log is still read by a single thread, but the
+ * pages are loaded and changed by a set of worker threads.  The records are
+ * partitioned by the file and page they change, so all changes to a given
+ * page are applied by the same worker, in the order they appear in the log.
+ * Changes to different pages don't depend on each other, so they can be
+ * applied in any order.
+ * <p>
+ * With a single thread, the changes are applied directly by the thread that
+ * reads the log.
+ *
+ * @design The workers' queues are bounded, so that a large write-ahead log
+ *         doesn't have to fit in memory.  Workers are stopped by queuing a
+ *         special "end" change for each one, never by interrupting them,
+ *         since interrupting a thread that is reading a {@code FileChannel}
+ *         closes the channel.
+ */
+class ParallelRedo {
+    /** A logging object for reporting anything interesting that happens. */
+    private static Logger logger = Logger.getLogger(ParallelRedo.class);
+
+
+    /** The number of changes that may be waiting for each worker. */
+    private static final int QUEUE_SIZE = 256;
+
+
+    /** The redo data from a single update record. */
+    static class PageChange {
+        /** The file containing the page to change. */
+        DBFile dbFile;
+
+        /** The number of the page to change. */
+        int pageNo;
+
+        /** The LSN of the update record. */
+        LogSequenceNumber lsn;
+
+        /** The index within the page where each segment is written. */
+        int[] indexes;
+
+        /** The redo data of each segment. */
+        byte[][] segments;
+    }
+
+
+    /** Queued to each worker to tell it that there are no more changes. */
+    private static final PageChange END = new PageChange();
+
+
+    private StorageManager storageManager;
+
+
+    /** The queue of changes for each worker. */
+    private List<BlockingQueue<PageChange>> queues;
+
+
+    private List<Thread> workers;
+
+
+    /** The first error that a worker encountered, if any. */
+    private volatile Throwable failure;
+
+
+    /**
+     * Creates an object to apply redo changes with the specified number of
+     * worker threads, and starts the threads.
+     *
+     * @param storageManager the storage manager used to load data pages
+     *
+     * @param numThreads the number of worker threads.  If this is 1, no
+     *        threads are started and changes are applied by the caller.
+     */
+    ParallelRedo(StorageManager storageManager, int numThreads) {
+        this.storageManager = storageManager;
+
+        queues = new ArrayList<>();
+        workers = new ArrayList<>();
+
+        if (numThreads <= 1)
+            return;
+
+        for (int i = 0; i < numThreads; i++) {
+            final BlockingQueue<PageChange> queue =
+                new ArrayBlockingQueue<>(QUEUE_SIZE);
+            queues.add(queue);
+
+            Thread worker = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    runWorker(queue);
+                }
+            }, "nanodb-redo-" + i);
+            worker.setDaemon(true);
+            workers.add(worker);
+            worker.start();
+        }
+
+        logger.debug("Started " + numThreads + " redo worker threads.");
+    }
+
+
+    /**
+     * Applies the change to its page, either directly or by handing it to
+     * the worker for the page.
+     *
+     * @param change the change to apply
+     *
+     * @throws IOException if the change couldn't be applied, or a worker
+     *         has failed to apply an earlier change
+     */
+    void apply(PageChange change) throws IOException {
+        checkFailure();
+
+        if (queues.isEmpty()) {
+            applyChange(change);
+            return;
+        }
+
+        int hash = change.dbFile.getDataFile().getName().hashCode() * 31 +
+            change.pageNo;
+        int worker = (hash & Integer.MAX_VALUE) % queues.size();
+
+        putUninterruptibly(queues.get(worker), change);
+    }
+
+
+    /**
+     * Waits for the workers to apply all changes that have been queued, and
+     * then stops them.
+     *
+     * @throws IOException if a worker failed to apply a change
+     */
+    void finish() throws IOException {
+        for (BlockingQueue<PageChange> queue : queues)
+            putUninterruptibly(queue, END);
+
+        boolean interrupted = false;
+        for (Thread worker : workers) {
+            while (worker.isAlive()) {
+                try {
+                    worker.join();
+                }
+                catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+
+        if (interrupted)
+            Thread.currentThread().interrupt();
+
+        checkFailure();
+    }
+
+
+    private void checkFailure() throws IOException {
+        Throwable t = failure;
+        if (t == null)
+            return;
+
+        if (t instanceof IOException)
+            throw (IOException) t;
+
+        throw new IOException("Couldn't apply redo changes", t);
+    }
+
+
+    private void runWorker(BlockingQueue<PageChange> queue) {
+        while (true) {
+            PageChange change;
+            try {
+                change = queue.take();
+            }
+            catch (InterruptedException e) {
+                continue;
+            }
+
+            if (change == END)
+                break;
+
+            // After a failure, the remaining changes are only drained so
+            // that the log reader doesn't block.
+            if (failure != null)
+                continue;
+
+            try {
+                applyChange(change);
+            }
+            catch (Throwable t) {
+                logger.error("Couldn't redo the change at LSN " + change.lsn +
+                    " to page " + change.pageNo + " of file " + change.dbFile, t);
+                failure = t;
+            }
+        }
+    }
+
+
+    private void applyChange(PageChange change) throws IOException {
+        // The page may be past the end of the file, if it was created but
+        // never written out before the crash.
+        DBPage dbPage = storageManager.loadDBPage(change.dbFile, change.pageNo,
+            /* create */ true);
+        try {
+            for (int i = 0; i < change.indexes.length; i++)
+                dbPage.write(change.indexes[i], change.segments[i]);
+
+            // Set the page's LSN so the WAL rule is enforced if the page is
+            // evicted.
+            dbPage.setPageLSN(change.lsn);
+        }
+        finally {
+            dbPage.unpin();
+        }
+    }
+
+
+    private static void putUninterruptibly(BlockingQueue<PageChange> queue,
+                                           PageChange change) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                queue.put(change);
+                break;
+            }
+            catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+}
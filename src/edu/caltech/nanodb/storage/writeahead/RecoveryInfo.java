@@ -36,6 +36,22 @@ public class RecoveryInfo {
     public HashMap<Integer, LogSequenceNumber> incompleteTxns;
 
 
+    /**
+     * If recovery starts before the most recent checkpoint, this is the log
+     * sequence number of the checkpoint record; otherwise it is
+     * {@code null}.
+     */
+    public LogSequenceNumber checkpointLSN;
+
+
+    /**
+     * The dirty-page table recorded by the checkpoint at
+     * {@link #checkpointLSN}, mapping each filename to the pages of the file
+     * that were dirty, and the LSN of each page's first unwritten change.
+     */
+    private HashMap<String, HashMap<Integer, LogSequenceNumber>> checkpointDirtyPages;
+
+
     public RecoveryInfo(LogSequenceNumber firstLSN,
                         LogSequenceNumber nextLSN) {
 
@@ -45,6 +61,64 @@ public class RecoveryInfo {
         this.maxTransactionID = -1;
 
         incompleteTxns = new HashMap<Integer, LogSequenceNumber>();
+        checkpointDirtyPages =
+            new HashMap<String, HashMap<Integer, LogSequenceNumber>>();
+    }
+
+
+    /**
+     * Records a page from the dirty-page table of the checkpoint at
+     * {@link #checkpointLSN}.
+     *
+     * @param filename the name of the file containing the dirty page
+     *
+     * @param pageNo the number of the dirty page
+     *
+     * @param recoveryLSN the LSN of the first change to the page that might
+     *        not have been written to the file when the checkpoint was taken
+     */
+    public void addCheckpointDirtyPage(String filename, int pageNo,
+                                       LogSequenceNumber recoveryLSN) {
+        HashMap<Integer, LogSequenceNumber> pages =
+            checkpointDirtyPages.get(filename);
+
+        if (pages == null) {
+            pages = new HashMap<Integer, LogSequenceNumber>();
+            checkpointDirtyPages.put(filename, pages);
+        }
+
+        pages.put(pageNo, recoveryLSN);
+    }
+
+
+    /**
+     * Returns true if the change recorded at the specified log sequence
+     * number might be missing from the page on disk, and so must be redone.
+     * Changes recorded before the checkpoint are already on disk unless the
+     * checkpoint listed the page as dirty, with a recovery LSN no later than
+     * the change.
+     *
+     * @param filename the name of the file containing the changed page
+     *
+     * @param pageNo the number of the changed page
+     *
+     * @param lsn the log sequence number of the change
+     *
+     * @return true if the change must be redone, or false if it is already
+     *         reflected on disk
+     */
+    public boolean needsRedo(String filename, int pageNo,
+                             LogSequenceNumber lsn) {
+        if (checkpointLSN == null || lsn.compareTo(checkpointLSN) >= 0)
+            return true;
+
+        HashMap<Integer, LogSequenceNumber> pages =
+            checkpointDirtyPages.get(filename);
+        if (pages == null)
+            return false;
+
+        LogSequenceNumber recoveryLSN = pages.get(pageNo);
+        return recoveryLSN != null && lsn.compareTo(recoveryLSN) >= 0;
     }
 
 
@@ -0,0 +1,394 @@
+package edu.caltech.nanodb.storage.writeahead;
+
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+import edu.caltech.nanodb.server.performance.PerformanceCounters;
+import edu.caltech.nanodb.storage.DBFile;
+import edu.caltech.nanodb.storage.FileManager;
+
+
+/**
+ * This class buffers write-ahead log records in memory until they are
+ * written to the WAL files.  Records are copied into a preallocated ring
+ * buffer, and each record's LSN is reserved at the same time, so the order
+ * of the records in the buffer is the order of their LSNs.  When the buffer
+ * is flushed, each contiguous range of bytes destined for a WAL file is
+ * written with a single {@code FileChannel} write, instead of going through
+ * the Buffer Manager a page at a time.  This also keeps WAL data out of the
+ * Buffer Manager, where it would compete with table data for space.
+ * <p>
+ * The buffer is flushed when the write-ahead log is forced, and when it
+ * fills up.  When the log moves on to a new WAL file, the end of the
+ * previous file is recorded at the start of the new file, so that undo
+ * processing can find its way back to the previous file.
+ *
+ * @design Appending only holds this object's monitor while the LSN is
+ *         reserved and the record is copied, so the file IO of a flush
+ *         happens outside of it.  Flushes are serialized by
+ *         {@link #flushLock}.  A flush never writes bytes that are being
+ *         appended, since appenders wait for space in the part of the buffer
+ *         that has already been flushed.
+ */
+class WALBuffer {
+    /** A logging object for reporting anything interesting that happens. */
+    private static Logger logger = Logger.getLogger(WALBuffer.class);
+
+
+    /** The initial size of the ring buffer is 1MB. */
+    public static final int DEFAULT_BUFFER_SIZE = 1024 * 1024;
+
+
+    /**
+     * A range of buffered bytes that goes to a contiguous region of a
+     * single WAL file.
+     */
+    private static class FileRange {
+        int fileNo;
+
+        int fileOffset;
+
+        int length;
+
+        FileRange(int fileNo, int fileOffset, int length) {
+            this.fileNo = fileNo;
+            this.fileOffset = fileOffset;
+            this.length = length;
+        }
+    }
+
+
+    private WALManager walManager;
+
+
+    private FileManager fileManager;
+
+
+    /** The ring buffer holding the records that haven't been written yet. */
+    private byte[] buffer;
+
+
+    /**
+     * The total number of bytes ever appended to the buffer.  The next byte
+     * is stored at this value modulo the buffer size.
+     */
+    private long appendPos;
+
+
+    /** The total number of bytes ever written out of the buffer. */
+    private long flushPos;
+
+
+    /**
+     * The WAL file regions that the bytes between {@link #flushPos} and
+     * {@link #appendPos} go to, in order.
+     */
+    private ArrayList<FileRange> ranges = new ArrayList<>();
+
+
+    /** The log sequence number where the next record will be written. */
+    private LogSequenceNumber nextLSN;
+
+
+    /** Serializes flushes, so that each file is written in order. */
+    private final Object flushLock = new Object();
+
+
+    /**
+     * The WAL files that have been written to since they were last synced.
+     * This is only accessed while holding {@link #flushLock}.
+     */
+    private HashSet<DBFile> unsyncedFiles = new HashSet<>();
+
+
+    WALBuffer(WALManager walManager, FileManager fileManager) {
+        this.walManager = walManager;
+        this.fileManager = fileManager;
+
+        buffer = new byte[DEFAULT_BUFFER_SIZE];
+    }
+
+
+    /**
+     * Sets the location where the next record will be written.  This is
+     * only done during recovery, before any records are appended.
+     *
+     * @param lsn the location where the next record will be written
+     */
+    public synchronized void reset(LogSequenceNumber lsn) {
+        if (appendPos != flushPos)
+            throw new IllegalStateException("The WAL buffer isn't empty");
+
+        nextLSN = lsn;
+    }
+
+
+    public synchronized LogSequenceNumber getNextLSN() {
+        return nextLSN;
+    }
+
+
+    /**
+     * Appends a record to the buffer, and returns the LSN of the record.
+     * Some record types end with the file offset of the record's start, so
+     * that the log can be traversed backwards.  Since the caller doesn't know
+     * the offset until the record is appended, the offset is filled in by
+     * this method.
+     *
+     * @param record the serialized log record
+     *
+     * @param hasStartOffset if {@code true}, the record ends with a 4-byte
+     *        start offset, followed by the type byte; the offset is set to
+     *        the record's location
+     *
+     * @return the Log Sequence Number of the record, including its size
+     *
+     * @throws IOException if the buffer had to be flushed to make space for
+     *         the record, and the flush failed
+     */
+    public LogSequenceNumber append(byte[] record, boolean hasStartOffset)
+        throws IOException {
+
+        // If the record moves the log to a new file, the end of the current
+        // file is also written into the new file.
+        int needed = record.length + 4;
+
+        while (true) {
+            synchronized (this) {
+                if (appendPos + needed - flushPos <= buffer.length)
+                    return appendRecord(record, hasStartOffset);
+            }
+
+            if (needed > buffer.length)
+                growBuffer(needed);
+            else
+                flush(/* sync */ false);  // Write out the buffer to make space.
+        }
+    }
+
+
+    /**
+     * Replaces the buffer with one that is large enough to hold a record of
+     * the specified size.  The buffer is flushed first, since its contents
+     * can't be moved while a flush may be writing them.
+     */
+    private void growBuffer(int needed) throws IOException {
+        synchronized (flushLock) {
+            flush(/* sync */ false);
+
+            synchronized (this) {
+                // If another record was appended after the flush, the caller
+                // will simply try again.
+                if (appendPos != flushPos || needed <= buffer.length)
+                    return;
+
+                int newSize = buffer.length;
+                while (newSize < needed)
+                    newSize *= 2;
+
+                logger.info(String.format("Growing the WAL buffer from %d " +
+                    "to %d bytes for a %d-byte record.", buffer.length,
+                    newSize, needed));
+
+                buffer = new byte[newSize];
+            }
+        }
+    }
+
+
+    private LogSequenceNumber appendRecord(byte[] record,
+                                           boolean hasStartOffset) {
+        int fileNo = nextLSN.getLogFileNo();
+        int offset = nextLSN.getFileOffset();
+
+        if (hasStartOffset) {
+            int i = record.length - 5;
+            record[i    ] = (byte) (offset >>> 24);
+            record[i + 1] = (byte) (offset >>> 16);
+            record[i + 2] = (byte) (offset >>>  8);
+            record[i + 3] = (byte) (offset       );
+        }
+
+        copyIn(record);
+        addRange(fileNo, offset, record.length);
+
+        LogSequenceNumber lsn = new LogSequenceNumber(fileNo, offset);
+        lsn.setRecordSize(record.length);
+
+        int endOffset = offset + record.length;
+        nextLSN = WALManager.computeNextLSN(fileNo, endOffset);
+
+        if (nextLSN.getLogFileNo() != fileNo) {
+            // Record where this file ends at the start of the next file.
+            byte[] prevFileEnd = {
+                (byte) (endOffset >>> 24), (byte) (endOffset >>> 16),
+                (byte) (endOffset >>> 8), (byte) endOffset
+            };
+            copyIn(prevFileEnd);
+            addRange(nextLSN.getLogFileNo(), WALManager.OFFSET_PREV_FILE_END,
+                prevFileEnd.length);
+        }
+
+        return lsn;
+    }
+
+
+    private void copyIn(byte[] data) {
+        int start = (int) (appendPos % buffer.length);
+        int firstPart = Math.min(data.length, buffer.length - start);
+
+        System.arraycopy(data, 0, buffer, start, firstPart);
+        if (firstPart < data.length)
+            System.arraycopy(data, firstPart, buffer, 0, data.length - firstPart);
+
+        appendPos += data.length;
+    }
+
+
+    private void addRange(int fileNo, int fileOffset, int length) {
+        if (!ranges.isEmpty()) {
+            FileRange last = ranges.get(ranges.size() - 1);
+            if (last.fileNo == fileNo &&
+                last.fileOffset + last.length == fileOffset) {
+                last.length += length;
+                return;
+            }
+        }
+
+        ranges.add(new FileRange(fileNo, fileOffset, length));
+    }
+
+
+    /**
+     * Writes everything that has been appended to the buffer out to the WAL
+     * files, and optionally syncs the files that have been written.
+     *
+     * @param sync if {@code true}, the WAL files written since the last sync
+     *        are synced to disk
+     *
+     * @return the log sequence number just past the last record written
+     *
+     * @throws IOException if the WAL files couldn't be written or synced
+     */
+    public LogSequenceNumber flush(boolean sync) throws IOException {
+        synchronized (flushLock) {
+            List<FileRange> toWrite;
+            long start;
+            long end;
+            LogSequenceNumber flushedLSN;
+            synchronized (this) {
+                toWrite = ranges;
+                ranges = new ArrayList<>();
+                start = flushPos;
+                end = appendPos;
+                flushedLSN = nextLSN;
+            }
+
+            try {
+                long pos = start;
+                for (FileRange range : toWrite) {
+                    writeRange(range, pos);
+                    pos += range.length;
+                }
+                assert pos == end;
+            }
+            catch (IOException e) {
+                // Put the ranges back so that the buffer stays consistent.
+                synchronized (this) {
+                    toWrite.addAll(ranges);
+                    ranges = new ArrayList<>(toWrite);
+                }
+                throw e;
+            }
+
+            if (end > start) {
+                synchronized (this) {
+                    flushPos = end;
+                }
+
+                PerformanceCounters.inc(PerformanceCounters.WAL_FLUSHES);
+                PerformanceCounters.add(PerformanceCounters.WAL_BYTES_WRITTEN,
+                    end - start);
+            }
+
+            if (sync) {
+                for (DBFile walFile : unsyncedFiles) {
+                    // Files that have been closed were synced when closed.
+                    if (walFile.getFileContents().getChannel().isOpen())
+                        fileManager.syncDBFile(walFile);
+                }
+                unsyncedFiles.clear();
+            }
+
+            return flushedLSN;
+        }
+    }
+
+
+    /**
+     * Writes one range of the buffer to its WAL file, creating the file if
+     * the log has just moved on to it.
+     *
+     * @param range the range of the WAL file to write
+     *
+     * @param pos the position of the range's first byte in the buffer,
+     *        before taking it modulo the buffer size
+     */
+    private void writeRange(FileRange range, long pos) throws IOException {
+        DBFile walFile;
+        try {
+            walFile = walManager.openWALFile(range.fileNo);
+        }
+        catch (FileNotFoundException e) {
+            logger.debug("WAL file doesn't exist!  WAL is expanding into a new file.");
+            walFile = walManager.createWALFile(range.fileNo);
+        }
+
+        // The range may wrap around the end of the buffer.  Appenders can't
+        // change these bytes until flushPos moves past them.
+        int bufStart = (int) (pos % buffer.length);
+        int firstPart = Math.min(range.length, buffer.length - bufStart);
+
+        ByteBuffer[] srcs;
+        if (firstPart == range.length) {
+            srcs = new ByteBuffer[] {
+                ByteBuffer.wrap(buffer, bufStart, range.length)
+            };
+        }
+        else {
+            srcs = new ByteBuffer[] {
+                ByteBuffer.wrap(buffer, bufStart, firstPart),
+                ByteBuffer.wrap(buffer, 0, range.length - firstPart)
+            };
+        }
+
+        // WAL files must hold a whole number of pages, so extend the file to
+        // the end of the page that the range ends in.
+        FileChannel channel = walFile.getFileContents().getChannel();
+        long rangeEnd = (long) range.fileOffset + range.length;
+        if (rangeEnd > channel.size()) {
+            int pageSize = walFile.getPageSize();
+            long newLength = (rangeEnd + pageSize - 1) / pageSize * pageSize;
+            walFile.getFileContents().setLength(newLength);
+        }
+
+        channel.position(range.fileOffset);
+
+        long remaining = range.length;
+        while (remaining > 0)
+            remaining -= channel.write(srcs);
+
+        unsyncedFiles.add(walFile);
+
+        logger.debug(String.format("Wrote %d bytes to WAL file %d at " +
+            "offset %d.", range.length, range.fileNo, range.fileOffset));
+    }
+}
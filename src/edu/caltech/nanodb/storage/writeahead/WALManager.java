@@ -3,17 +3,17 @@ package edu.caltech.nanodb.storage.writeahead;
 
 import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
-import java.io.FileNotFoundException;
+import java.io.File;
 import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
 
 import org.apache.log4j.Logger;
 
 import edu.caltech.nanodb.client.SessionState;
 import edu.caltech.nanodb.storage.BufferManager;
 import edu.caltech.nanodb.storage.DBFile;
-import edu.caltech.nanodb.storage.DBFileReader;
 import edu.caltech.nanodb.storage.DBFileType;
-import edu.caltech.nanodb.storage.DBFileWriter;
 import edu.caltech.nanodb.storage.DBPage;
 import edu.caltech.nanodb.storage.StorageManager;
 import edu.caltech.nanodb.transactions.TransactionManager;
@@ -107,16 +107,26 @@ public class WALManager {
 
 
     /**
-     * This object holds the log sequence number where the next write-ahead log
-     * record will be written.
+     * Records are appended to this buffer, which also tracks the log sequence
+     * number where the next write-ahead log record will be written.
      */
-    private LogSequenceNumber nextLSN;
+    private WALBuffer walBuffer;
+
+
+    /**
+     * This object holds the log sequence number of the most recent checkpoint
+     * record, or {@code null} if no checkpoint has been taken since recovery
+     * was performed.
+     */
+    private LogSequenceNumber checkpointLSN;
 
 
     public WALManager(StorageManager storageManager,
                       BufferManager bufferManager) {
         this.storageManager = storageManager;
         this.bufferManager = bufferManager;
+
+        walBuffer = new WALBuffer(this, storageManager.getFileManager());
     }
 
 
@@ -173,8 +183,47 @@ public class WALManager {
     }
 
 
+    /**
+     * Sets the log sequence number where recovery would need to start from.
+     * This is advanced by checkpoints, once everything before the new value
+     * is reflected in the table files on disk.
+     *
+     * @param firstLSN the new starting point for recovery
+     */
+    public void setFirstLSN(LogSequenceNumber firstLSN) {
+        this.firstLSN = firstLSN;
+    }
+
+
+    public LogSequenceNumber getCheckpointLSN() {
+        return checkpointLSN;
+    }
+
+
+    public void setCheckpointLSN(LogSequenceNumber checkpointLSN) {
+        this.checkpointLSN = checkpointLSN;
+    }
+
+
     public LogSequenceNumber getNextLSN() {
-        return nextLSN;
+        return walBuffer.getNextLSN();
+    }
+
+
+    /**
+     * Writes all buffered write-ahead log records out to the WAL files, and
+     * optionally syncs the files.  The Transaction Manager uses this to force
+     * the WAL.
+     *
+     * @param sync if {@code true}, the WAL files that were written are synced
+     *        to disk
+     *
+     * @return the log sequence number just past the last record written
+     *
+     * @throws IOException if the WAL files couldn't be written or synced
+     */
+    public LogSequenceNumber flushWAL(boolean sync) throws IOException {
+        return walBuffer.flush(sync);
     }
 
 
@@ -186,6 +235,9 @@ public class WALManager {
      * @param storedFirstLSN the location of the write-ahead log record where
      *        recovery should start from
      *
+     * @param storedCheckpointLSN the location of the most recent checkpoint
+     *        record, or an LSN with a file-offset of 0 if there is none
+     *
      * @param storedNextLSN the location in the write-ahead log that is
      *        <em>just past</em> the last valid log record in the WAL
      *
@@ -195,21 +247,32 @@ public class WALManager {
      * @throws IOException if an IO error occurs during recovery processing
      */
     public RecoveryInfo doRecovery(LogSequenceNumber storedFirstLSN,
+        LogSequenceNumber storedCheckpointLSN,
         LogSequenceNumber storedNextLSN) throws IOException {
 
         firstLSN = storedFirstLSN;
-        nextLSN = storedNextLSN;
-        RecoveryInfo recoveryInfo = new RecoveryInfo(firstLSN, nextLSN);
+        walBuffer.reset(storedNextLSN);
+        checkpointLSN = null;
+        RecoveryInfo recoveryInfo = new RecoveryInfo(firstLSN, storedNextLSN);
 
-        if (firstLSN.equals(nextLSN)) {
+        if (firstLSN.equals(storedNextLSN)) {
             // No recovery necessary!  Just return the passed-in info.
             return recoveryInfo;
         }
 
+        // Changes from before the last checkpoint only need to be redone for
+        // the pages that the checkpoint found to be dirty.
+        if (storedCheckpointLSN.getFileOffset() >= OFFSET_FIRST_RECORD &&
+            storedCheckpointLSN.compareTo(firstLSN) >= 0 &&
+            storedCheckpointLSN.compareTo(storedNextLSN) < 0) {
+            readCheckpointRecord(storedCheckpointLSN, recoveryInfo);
+        }
+
         performRedo(recoveryInfo);
         performUndo(recoveryInfo);
 
         TransactionManager txnMgr = storageManager.getTransactionManager();
+        LogSequenceNumber nextLSN = walBuffer.getNextLSN();
 
         // Force the WAL out, up to the nextLSN value.  Then, write all dirty
         // data pages, and sync all of the affected files.
@@ -244,73 +307,114 @@ public class WALManager {
         logger.debug("Starting redo processing at LSN " + currLSN);
 
         LogSequenceNumber oldLSN = null;
-        DBFileReader walReader = null;
-
-        while (currLSN.compareTo(recoveryInfo.nextLSN) < 0) {
-            if (oldLSN == null || oldLSN.getLogFileNo() != currLSN.getLogFileNo())
-                walReader = getWALFileReader(currLSN);
-
-            // Read the parts of the log record that are always the same.
-            byte typeID = walReader.readByte();
-            WALRecordType type = WALRecordType.valueOf(typeID);
+        WALReader walReader = null;
+        int numSkipped = 0;
 
-            int transactionID = walReader.readInt();
-
-            logger.debug(String.format(
-                "Redo:  examining WAL record at %s.  Type = %s, TxnID = %d",
-                currLSN, type, transactionID));
+        // Changes to data pages are applied by worker threads, partitioned
+        // by page, while this thread reads the log.
+        ParallelRedo redo = new ParallelRedo(storageManager,
+            TransactionManager.getRedoThreads());
+        boolean finished = false;
 
-            switch (type) {
-                case START_TXN:
-                    // Add transaction as incomplete, move past end of start transaction
-                    recoveryInfo.updateInfo(transactionID, currLSN);
-                    // Move past end of start transaction
-                    walReader.readByte();
-                    break;
-                case COMMIT_TXN:
-                case ABORT_TXN:
-                    // Record this transaction as completed
-                    recoveryInfo.recordTxnCompleted(transactionID);
-                    // Skip past previous LSN information
-                    walReader.readShort();
-                    walReader.readInt();
-                    // Advance past end of commit/abort transaction
-                    walReader.readByte();
-                    break;
-                case UPDATE_PAGE:
-                case UPDATE_PAGE_REDO_ONLY:
-                    // Skip past previous LSN information
-                    walReader.readUnsignedShort();
-                    walReader.readInt();
-
-                    // Acquire this record's corresponding dbPage, read in number of segments
-                    String filename = walReader.readVarString255();
-                    DBFile dbFile = storageManager.getFileManager().openDBFile(filename);
-                    int page_no = walReader.readUnsignedShort();
-                    int numSegments = walReader.readUnsignedShort();
-                    DBPage dbPage = storageManager.loadDBPage(dbFile, page_no);
-
-                    // Replays all state changes stored in WAL
-                    applyRedo(type, walReader, dbPage, numSegments);
-
-                    // Reset Current LSN (prevents null LSN on restart)
-                    dbPage.setPageLSN(currLSN);
-
-                    // Advances past end of update/update-redo-only transaction
-                    walReader.readInt();
-                    walReader.readByte();
+        try {
+            while (currLSN.compareTo(recoveryInfo.nextLSN) < 0) {
+                if (oldLSN == null || oldLSN.getLogFileNo() != currLSN.getLogFileNo())
+                    walReader = getWALFileReader(currLSN);
+
+                // Read the parts of the log record that are always the same.
+                byte typeID = walReader.readByte();
+                WALRecordType type = WALRecordType.valueOf(typeID);
+
+                int transactionID = walReader.readInt();
+
+                logger.debug(String.format(
+                    "Redo:  examining WAL record at %s.  Type = %s, TxnID = %d",
+                    currLSN, type, transactionID));
+
+                switch (type) {
+                    case START_TXN:
+                        // Add transaction as incomplete, move past end of start transaction
+                        recoveryInfo.updateInfo(transactionID, currLSN);
+                        // Move past end of start transaction
+                        walReader.readByte();
+                        break;
+                    case COMMIT_TXN:
+                    case ABORT_TXN:
+                        // Record this transaction as completed
+                        recoveryInfo.recordTxnCompleted(transactionID);
+                        // Skip past previous LSN information
+                        walReader.readShort();
+                        walReader.readInt();
+                        // Advance past end of commit/abort transaction
+                        walReader.readByte();
+                        break;
+                    case UPDATE_PAGE:
+                    case UPDATE_PAGE_REDO_ONLY:
+                        // Skip past previous LSN information
+                        walReader.readUnsignedShort();
+                        walReader.readInt();
+
+                        // Acquire this record's corresponding dbPage, read in number of segments
+                        String filename = walReader.readVarString255();
+                        int page_no = walReader.readUnsignedShort();
+                        int numSegments = walReader.readUnsignedShort();
+
+                        if (recoveryInfo.needsRedo(filename, page_no, currLSN)) {
+                            // Open the file through the Storage Manager, so that
+                            // it is only opened once for all of its records.
+                            DBFile dbFile = storageManager.openDBFile(filename);
+
+                            // Replays all state changes stored in WAL
+                            redo.apply(readPageChange(type, walReader, dbFile,
+                                page_no, currLSN, numSegments));
+                        }
+                        else {
+                            // The last checkpoint showed that this change had
+                            // already been written to the page on disk.
+                            skipSegments(type, walReader, numSegments);
+                            numSkipped++;
+                        }
+
+                        // Advances past end of update/update-redo-only transaction
+                        walReader.readInt();
+                        walReader.readByte();
+
+                        // Update last LSN of incomplete transaction
+                        recoveryInfo.updateInfo(transactionID, currLSN);
+                        break;
+                    case CHECKPOINT:
+                        // The checkpoint's contents are only needed if it is the
+                        // most recent one, which was already read.
+                        readCheckpointTables(walReader, null);
+
+                        // Advances past end of checkpoint record
+                        walReader.readInt();
+                        walReader.readByte();
+                        break;
+                    default:
+                        throw new WALFileException("Encountered unrecognized WAL record type " +
+                                type + " at LSN " + currLSN +
+                                " during redo processing!");
+                }
 
-                    // Update last LSN of incomplete transaction
-                    recoveryInfo.updateInfo(transactionID, currLSN);
-                    break;
-                default:
-                    throw new WALFileException("Encountered unrecognized WAL record type " +
-                            type + " at LSN " + currLSN +
-                            " during redo processing!");
+                oldLSN = currLSN;
+                currLSN = computeNextLSN(currLSN.getLogFileNo(), walReader.getPosition());
             }
 
-            oldLSN = currLSN;
-            currLSN = computeNextLSN(currLSN.getLogFileNo(), walReader.getPosition());
+            redo.finish();
+            finished = true;
+        }
+        finally {
+            if (!finished) {
+                // Stop the workers; the error that got us here is more
+                // interesting than any error they report.
+                try {
+                    redo.finish();
+                }
+                catch (IOException e) {
+                    logger.warn("Redo worker also failed", e);
+                }
+            }
         }
 
         if (currLSN.compareTo(recoveryInfo.nextLSN) != 0) {
@@ -321,6 +425,11 @@ public class WALManager {
 
         logger.debug("Redo processing is complete.  There are " +
             recoveryInfo.incompleteTxns.size() + " incomplete transactions.");
+
+        if (numSkipped > 0) {
+            logger.info("Skipped " + numSkipped + " update records whose " +
+                "changes were already on disk at the last checkpoint.");
+        }
     }
 
 
@@ -338,7 +447,7 @@ public class WALManager {
         logger.debug("Starting undo processing at " + currLSN);
 
         LogSequenceNumber oldLSN = null;
-        DBFileReader walReader = null;
+        WALReader walReader = null;
         while (recoveryInfo.hasIncompleteTxns()) {
             // Compute LSN of previous WAL record.  Start by getting the last
             // byte of the previous WAL record.
@@ -407,6 +516,7 @@ public class WALManager {
 
             case UPDATE_PAGE:
             case UPDATE_PAGE_REDO_ONLY:
+            case CHECKPOINT:
                 // For these records, the WAL record's start offset is stored
                 // immediately before the last type-byte.  We go back 5 bytes
                 // because reading the type ID moves the position forward by
@@ -464,7 +574,7 @@ public class WALManager {
 
                     // Acquire this record's corresponding dbPage, read in number of segments
                     String filename = walReader.readVarString255();
-                    DBFile dbFile = storageManager.getFileManager().openDBFile(filename);
+                    DBFile dbFile = storageManager.openDBFile(filename);
                     int page_no = walReader.readUnsignedShort();
                     int numSegments = walReader.readUnsignedShort();
                     DBPage dbPage = storageManager.loadDBPage(dbFile, page_no);
@@ -481,6 +591,7 @@ public class WALManager {
                 case UPDATE_PAGE_REDO_ONLY:
                 case ABORT_TXN:
                 case COMMIT_TXN:
+                case CHECKPOINT:
                     break;
                 default:
                     throw new WALFileException(
@@ -527,54 +638,13 @@ public class WALManager {
 
     /**
      * This method opens the WAL file specified in the passed-in Log Sequence
-     * Number, wraps it with a {@link DBFileWriter} so that it can be read and
-     * written, and then seeks to the specified file offset.
-     *
-     * Because we are writing, the file may not yet exist.  In that case, this
-     * method will also create a new WAL file for the specified file number,
-     * initializing it with the proper values, and then seeking to the location
-     * where the first WAL record may be written.
-     *
-     * @param lsn The log sequence number specifying the WAL file and the offset
-     *            in the WAL file to go to.
-     *
-     * @return the WAL file, with the file position moved to the specified
-     *         offset.
-     *
-     * @throws IOException if the corresponding WAL file cannot be opened, or
-     *         if some other IO error occurs.
-     */
-    private DBFileWriter getWALFileWriter(LogSequenceNumber lsn)
-        throws IOException {
-
-        int fileNo = lsn.getLogFileNo();
-        int offset = lsn.getFileOffset();
-
-        DBFile walFile;
-        try {
-            walFile = openWALFile(fileNo);
-        }
-        catch (FileNotFoundException e) {
-            logger.debug("WAL file doesn't exist!  WAL is expanding into a new file.");
-            walFile = createWALFile(fileNo);
-            // TODO:  Write the previous WAL file's last file-offset into the new WAL file's start.
-        }
-
-        DBFileWriter writer = new DBFileWriter(walFile, storageManager);
-        writer.setPosition(offset);
-
-        return writer;
-    }
-
-
-    /**
-     * This method opens the WAL file specified in the passed-in Log Sequence
-     * Number, wraps it with a {@link DBFileReader} so that it can be read from,
+     * Number, wraps it with a {@link WALReader} so that it can be read from,
      * and then seeks to the specified file offset.
      *
      * Since we are reading, the expectation is that the file already
      * exists, so a {@link java.io.FileNotFoundException} will be thrown if it
-     * does not exist.
+     * does not exist.  Records that are still in the WAL buffer can't be read
+     * until the buffer is flushed.
      *
      * @param lsn The log sequence number specifying the WAL file and the offset
      *            in the WAL file to go to.
@@ -585,14 +655,14 @@ public class WALManager {
      * @throws IOException if an IO error occurs while opening the WAL file,
      *         such as the required file not actually existing.
      */
-    private DBFileReader getWALFileReader(LogSequenceNumber lsn)
+    private WALReader getWALFileReader(LogSequenceNumber lsn)
         throws IOException {
 
         int fileNo = lsn.getLogFileNo();
         int offset = lsn.getFileOffset();
 
         DBFile walFile = openWALFile(fileNo);
-        DBFileReader reader = new DBFileReader(walFile, storageManager);
+        WALReader reader = new WALReader(walFile);
         reader.setPosition(offset);
 
         return reader;
@@ -643,35 +713,27 @@ public class WALManager {
                 "prevLSN must be specified for records of type " + type);
         }
 
-        LogSequenceNumber lsn = nextLSN;
-
-        logger.debug("Writing a " + type + " record for transaction " +
-            transactionID + " at LSN " + lsn);
-
-        // Record the WAL record.  First thing to do:  figure out where it goes.
-
-        DBFileWriter walWriter = getWALFileWriter(lsn);
+        ByteArrayOutputStream recordBAOS = new ByteArrayOutputStream(12);
+        DataOutputStream walWriter = new DataOutputStream(recordBAOS);
 
         walWriter.writeByte(type.getID());
         walWriter.writeInt(transactionID);
 
         if (type == WALRecordType.START_TXN) {
-            walWriter.writeByte(type.getID());
-
             // TypeID (1B) + TransactionID (4B) + TypeID (1B)
-            lsn.setRecordSize(6);
+            walWriter.writeByte(type.getID());
         }
         else {
-            walWriter.writeShort(prevLSN.getLogFileNo());
-            walWriter.writeInt(prevLSN.getFileOffset());
-            walWriter.writeByte(type.getID());
-
             // TypeID (1B) + TransactionID (4B) + PrevLSN (6B) + TypeID (1B)
-            lsn.setRecordSize(12);
+            writeLSN(walWriter, prevLSN);
+            walWriter.writeByte(type.getID());
         }
 
-        nextLSN = computeNextLSN(nextLSN.getLogFileNo(), walWriter.getPosition());
-        logger.debug("Next-LSN value is now " + nextLSN);
+        LogSequenceNumber lsn = walBuffer.append(recordBAOS.toByteArray(),
+            /* hasStartOffset */ false);
+
+        logger.debug("Wrote a " + type + " record for transaction " +
+            transactionID + " at LSN " + lsn);
 
         return lsn;
     }
@@ -746,33 +808,11 @@ public class WALManager {
                 "No transaction is currently in progress!");
         }
 
-        LogSequenceNumber lsn = nextLSN;
-
-        logger.debug(String.format("Writing an %s record for transaction %d at LSN %s",
-            WALRecordType.UPDATE_PAGE, txnState.getTransactionID(), lsn));
-
-        // Record the WAL record.  First thing to do:  figure out where it goes.
-
-        DBFileWriter walWriter = getWALFileWriter(lsn);
-
-        walWriter.writeByte(WALRecordType.UPDATE_PAGE.getID());
-        walWriter.writeInt(txnState.getTransactionID());
-
-        // We need to store the previous log sequence number for this record.
-        LogSequenceNumber prevLSN = txnState.getLastLSN();
-        walWriter.writeShort(prevLSN.getLogFileNo());
-        walWriter.writeInt(prevLSN.getFileOffset());
+        // The segments are serialized first, since the record stores the
+        // number of segments before them.
+        ByteArrayOutputStream segmentsBAOS = new ByteArrayOutputStream();
+        DataOutputStream segWriter = new DataOutputStream(segmentsBAOS);
 
-        // Store the filename and page number that is being updated.
-        walWriter.writeVarString255(dbPage.getDBFile().getDataFile().getName());
-        walWriter.writeShort(dbPage.getPageNo());
-
-        // This offset is where we will store the number of data segments we
-        // need to record.  We don't know the value until later, so remember
-        // the position and fill it in later.
-        int segCountOffset = walWriter.getPosition();
-        walWriter.writeShort(-1);
-        
         byte[] oldData = dbPage.getOldPageData();
         byte[] newData = dbPage.getPageData();
         int pageSize = dbPage.getPageSize();
@@ -819,12 +859,12 @@ public class WALManager {
 
             // Write the starting index within the page, and the amount of
             // data that will be recorded at that index.
-            walWriter.writeShort(index);
-            walWriter.writeShort(size);
+            segWriter.writeShort(index);
+            segWriter.writeShort(size);
 
             // Write the old data (undo), and then the new data (redo).
-            walWriter.write(oldData, index, size);
-            walWriter.write(newData, index, size);
+            segWriter.write(oldData, index, size);
+            segWriter.write(newData, index, size);
 
             numSegments++;
 
@@ -832,21 +872,38 @@ public class WALManager {
         }
         assert index == pageSize;
 
-        // Now that we know how many segments were recorded, store that value
-        // at the appropriate location.
-        int currOffset = walWriter.getPosition();
-        walWriter.setPosition(segCountOffset);
+        ByteArrayOutputStream recordBAOS =
+            new ByteArrayOutputStream(segmentsBAOS.size() + 300);
+        DataOutputStream walWriter = new DataOutputStream(recordBAOS);
+
+        walWriter.writeByte(WALRecordType.UPDATE_PAGE.getID());
+        walWriter.writeInt(txnState.getTransactionID());
+
+        // We need to store the previous log sequence number for this record.
+        writeLSN(walWriter, txnState.getLastLSN());
+
+        // Store the filename and page number that is being updated, and the
+        // number of data segments that follow.
+        writeVarString255(walWriter,
+            dbPage.getDBFile().getDataFile().getName());
+        walWriter.writeShort(dbPage.getPageNo());
         walWriter.writeShort(numSegments);
-        walWriter.setPosition(currOffset);
+        segmentsBAOS.writeTo(walWriter);
 
         // Write the start of the update record at the end so that we can get
-        // back to the record's start when scanning the log backwards.
+        // back to the record's start when scanning the log backwards.  The
+        // WAL buffer fills in the offset when it assigns the record's LSN.
 
-        walWriter.writeInt(lsn.getFileOffset());
+        walWriter.writeInt(-1);
         walWriter.writeByte(WALRecordType.UPDATE_PAGE.getID());
 
+        LogSequenceNumber lsn = walBuffer.append(recordBAOS.toByteArray(),
+            /* hasStartOffset */ true);
+
+        logger.debug(String.format("Wrote an %s record for transaction %d at LSN %s",
+            WALRecordType.UPDATE_PAGE, txnState.getTransactionID(), lsn));
+
         // Store the LSN of the change on the page.
-        lsn.setRecordSize(walWriter.getPosition() - lsn.getFileOffset());
         dbPage.setPageLSN(lsn);
         dbPage.syncOldPageData();
 
@@ -854,20 +911,242 @@ public class WALManager {
         // transaction, update the "last LSN" value for the transaction.
         txnState.setLastLSN(lsn);
 
-        nextLSN = computeNextLSN(nextLSN.getLogFileNo(), walWriter.getPosition());
+        return lsn;
+    }
+
+
+    /**
+     * This method writes a checkpoint record to the write-ahead log.  The
+     * record lists the transactions that are in progress, with the first and
+     * last LSN of each, and the dirty pages whose changes have been logged,
+     * with the LSN of the first change to each page since it was last
+     * written.  The checkpoint is "fuzzy," in that pages aren't written out
+     * while the checkpoint is taken.
+     * <p>
+     * The caller must make sure that no other WAL records are written while
+     * this method gathers the pages' LSNs and writes the record.
+     *
+     * @param activeTxns the transactions that have written to the log and
+     *        haven't completed yet
+     *
+     * @param dirtyPages the dirty pages in the Buffer Manager
+     *
+     * @return the Log Sequence Number of the checkpoint record
+     *
+     * @throws IOException if the write-ahead log can't be updated for some
+     *         reason.
+     */
+    public LogSequenceNumber writeCheckpointRecord(
+        Collection<TransactionState> activeTxns, List<DBPage> dirtyPages)
+        throws IOException {
+
+        // Only pages whose changes have been logged need to be listed.  The
+        // recovery LSN is read once, since the page may be written out
+        // concurrently.
+        ArrayList<DBPage> loggedPages = new ArrayList<>();
+        ArrayList<LogSequenceNumber> recoveryLSNs = new ArrayList<>();
+        for (DBPage dbPage : dirtyPages) {
+            DBFileType type = dbPage.getDBFile().getType();
+            if (type == DBFileType.WRITE_AHEAD_LOG_FILE ||
+                type == DBFileType.TXNSTATE_FILE ||
+                type == DBFileType.TEMP_FILE) {
+                continue;
+            }
+
+            LogSequenceNumber recoveryLSN = dbPage.getRecoveryLSN();
+            if (recoveryLSN != null) {
+                loggedPages.add(dbPage);
+                recoveryLSNs.add(recoveryLSN);
+            }
+        }
+
+        ByteArrayOutputStream recordBAOS = new ByteArrayOutputStream();
+        DataOutputStream walWriter = new DataOutputStream(recordBAOS);
+
+        walWriter.writeByte(WALRecordType.CHECKPOINT.getID());
+        walWriter.writeInt(TransactionState.NO_TRANSACTION);
+
+        walWriter.writeInt(activeTxns.size());
+        for (TransactionState txnState : activeTxns) {
+            walWriter.writeInt(txnState.getTransactionID());
+            writeLSN(walWriter, txnState.getFirstLSN());
+            writeLSN(walWriter, txnState.getLastLSN());
+        }
+
+        walWriter.writeInt(loggedPages.size());
+        for (int i = 0; i < loggedPages.size(); i++) {
+            DBPage dbPage = loggedPages.get(i);
+            writeVarString255(walWriter,
+                dbPage.getDBFile().getDataFile().getName());
+            walWriter.writeShort(dbPage.getPageNo());
+            writeLSN(walWriter, recoveryLSNs.get(i));
+        }
+
+        // Write the start of the record at the end so that we can get back
+        // to the record's start when scanning the log backwards.
+        walWriter.writeInt(-1);
+        walWriter.writeByte(WALRecordType.CHECKPOINT.getID());
+
+        LogSequenceNumber lsn = walBuffer.append(recordBAOS.toByteArray(),
+            /* hasStartOffset */ true);
+
+        logger.debug(String.format("Wrote a %s record with %d active " +
+            "transactions and %d dirty pages at LSN %s",
+            WALRecordType.CHECKPOINT, activeTxns.size(), loggedPages.size(),
+            lsn));
 
         return lsn;
     }
 
 
+    private static void writeLSN(DataOutputStream walWriter,
+                                 LogSequenceNumber lsn) throws IOException {
+        walWriter.writeShort(lsn.getLogFileNo());
+        walWriter.writeInt(lsn.getFileOffset());
+    }
+
+
+    /**
+     * Writes a string of up to 255 US-ASCII characters, preceded by its
+     * length as a single byte.  This is the same format that
+     * {@link WALReader#readVarString255} reads.
+     */
+    private static void writeVarString255(DataOutputStream walWriter,
+                                          String value) throws IOException {
+        byte[] strBytes = value.getBytes("US-ASCII");
+        if (strBytes.length > 255)
+            throw new IllegalArgumentException("value must be 255 bytes or less");
+
+        walWriter.writeByte(strBytes.length);
+        walWriter.write(strBytes);
+    }
+
+
+    /**
+     * Reads the checkpoint record at the specified LSN, and records its
+     * dirty-page table in the recovery information, so that redo processing
+     * can skip changes that were already on disk when the checkpoint was
+     * taken.
+     */
+    private void readCheckpointRecord(LogSequenceNumber lsn,
+        RecoveryInfo recoveryInfo) throws IOException {
+
+        WALReader walReader = getWALFileReader(lsn);
+        WALRecordType type = WALRecordType.valueOf(walReader.readByte());
+        if (type != WALRecordType.CHECKPOINT) {
+            throw new WALFileException("Expected a checkpoint record at LSN " +
+                lsn + ", but found a record of type " + type);
+        }
+
+        // Skip the transaction ID, which isn't used by checkpoint records.
+        walReader.readInt();
+
+        recoveryInfo.checkpointLSN = lsn;
+        readCheckpointTables(walReader, recoveryInfo);
+
+        logger.debug("Recovery will use the dirty-page table of the " +
+            "checkpoint at LSN " + lsn);
+    }
+
+
     /**
-     * This helper function writes a sequence of redo-segments from an
+     * Reads the active-transaction and dirty-page tables of a checkpoint
+     * record, leaving the reader positioned just after them.  If recovery
+     * information is specified, the dirty pages are recorded into it.
+     */
+    private void readCheckpointTables(WALReader walReader,
+        RecoveryInfo recoveryInfo) throws IOException {
+
+        int numTxns = walReader.readInt();
+        for (int i = 0; i < numTxns; i++) {
+            int transactionID = walReader.readInt();
+            walReader.movePosition(12);  // First and last LSNs (2 x 6B)
+
+            if (recoveryInfo != null &&
+                transactionID > recoveryInfo.maxTransactionID) {
+                recoveryInfo.maxTransactionID = transactionID;
+            }
+        }
+
+        int numPages = walReader.readInt();
+        for (int i = 0; i < numPages; i++) {
+            String filename = walReader.readVarString255();
+            int pageNo = walReader.readUnsignedShort();
+            int fileNo = walReader.readUnsignedShort();
+            int offset = walReader.readInt();
+
+            if (recoveryInfo != null) {
+                recoveryInfo.addCheckpointDirtyPage(filename, pageNo,
+                    new LogSequenceNumber(fileNo, offset));
+            }
+        }
+    }
+
+
+    /**
+     * This method deletes the write-ahead log files that come before the
+     * file containing the current {@link #firstLSN}, since recovery will
+     * never need them again.
+     *
+     * @param oldFirstFileNo the file number of the previous first LSN, which
+     *        is the oldest WAL file that may still exist
+     *
+     * @throws IOException if a WAL file can't be deleted
+     */
+    public void deleteOldWALFiles(int oldFirstFileNo) throws IOException {
+        int fileNo = oldFirstFileNo;
+        while (fileNo != firstLSN.getLogFileNo()) {
+            String filename = getWALFileName(fileNo);
+
+            DBFile walFile = bufferManager.getFile(filename);
+            if (walFile != null) {
+                // Everything in the file is already on disk, and no longer
+                // needed, so its cached pages can simply be dropped.
+                bufferManager.discardDBFile(walFile);
+                walFile.getFileContents().close();
+            }
+
+            File f = new File(storageManager.getBaseDir(), filename);
+            if (f.exists()) {
+                logger.info("Deleting obsolete WAL file " + filename);
+                storageManager.getFileManager().deleteDBFile(f);
+            }
+
+            fileNo = (fileNo == MAX_WAL_FILE_NUMBER) ? 0 : fileNo + 1;
+        }
+    }
+
+
+    /**
+     * This helper function skips over the segments of an
      * {@link WALRecordType#UPDATE_PAGE} or
-     * {@link WALRecordType#UPDATE_PAGE_REDO_ONLY} record.  Note that the
-     * {@code walReader} argument is expected to be positioned at the start of
-     * the segments containing the old and new versions of the page data (or
-     * just the new versions, for redo-only records).  Additionally, the
-     * reader position will be advanced by this method.
+     * {@link WALRecordType#UPDATE_PAGE_REDO_ONLY} record without applying
+     * them to the data page.
+     */
+    private void skipSegments(WALRecordType type, WALReader walReader,
+                              int numSegments) throws IOException {
+        for (int iSeg = 0; iSeg < numSegments; iSeg++) {
+            walReader.readUnsignedShort();  // Index within the page
+            int size = walReader.readUnsignedShort();
+
+            // UPDATE_PAGE records hold both undo and redo data.
+            if (type == WALRecordType.UPDATE_PAGE)
+                walReader.movePosition(2 * size);
+            else
+                walReader.movePosition(size);
+        }
+    }
+
+
+    /**
+     * This helper function reads a sequence of redo-segments from an
+     * {@link WALRecordType#UPDATE_PAGE} or
+     * {@link WALRecordType#UPDATE_PAGE_REDO_ONLY} record, so that they can
+     * be applied to the data page.  Note that the {@code walReader} argument
+     * is expected to be positioned at the start of the segments containing
+     * the old and new versions of the page data (or just the new versions,
+     * for redo-only records).  Additionally, the reader position will be
+     * advanced by this method.
      *
      * @param type The record type, either {@link WALRecordType#UPDATE_PAGE}
      *        or {@link WALRecordType#UPDATE_PAGE_REDO_ONLY}.
@@ -876,13 +1155,19 @@ public class WALManager {
      *        to apply to the data page.  This method will advance the reader's
      *        position past this redo/undo data.
      *
-     * @param dbPage the page that the redo should be applied to
+     * @param dbFile the file containing the page that the redo applies to
+     * @param pageNo the number of the page that the redo applies to
+     * @param lsn the LSN of the update record
      * @param numSegments the number of segments containing redo[/undo] data;
      *        this value is expected to already be unpacked from the log record
+     *
+     * @return the redo data of the record
+     *
      * @throws IOException
      */
-    private void applyRedo(WALRecordType type, DBFileReader walReader,
-                           DBPage dbPage, int numSegments) throws IOException {
+    private ParallelRedo.PageChange readPageChange(WALRecordType type,
+        WALReader walReader, DBFile dbFile, int pageNo,
+        LogSequenceNumber lsn, int numSegments) throws IOException {
 
         if (type != WALRecordType.UPDATE_PAGE &&
             type != WALRecordType.UPDATE_PAGE_REDO_ONLY) {
@@ -890,8 +1175,15 @@ public class WALManager {
                 "used with UPDATE_PAGE and UPDATE_PAGE_REDO_ONLY records.");
         }
 
+        ParallelRedo.PageChange change = new ParallelRedo.PageChange();
+        change.dbFile = dbFile;
+        change.pageNo = pageNo;
+        change.lsn = lsn;
+        change.indexes = new int[numSegments];
+        change.segments = new byte[numSegments][];
+
         for (int iSeg = 0; iSeg < numSegments; iSeg++) {
-            // Write the starting index within the page, and the amount of
+            // Read the starting index within the page, and the amount of
             // data that will be recorded at that index.
             int index = walReader.readUnsignedShort();
             int size = walReader.readUnsignedShort();
@@ -900,11 +1192,15 @@ public class WALManager {
             if (type == WALRecordType.UPDATE_PAGE)
                 walReader.movePosition(size);
 
-            // Write the redo data into the page.
+            // Read the redo data for the page.
             byte[] redoData = new byte[size];
             walReader.read(redoData);
-            dbPage.write(index, redoData);
+
+            change.indexes[iSeg] = index;
+            change.segments[iSeg] = redoData;
         }
+
+        return change;
     }
 
 
@@ -928,7 +1224,7 @@ public class WALManager {
      * @throws IOException if an IO error occurs while applying the undo
      *         operation
      */
-    private byte[] applyUndoAndGenRedoOnlyData(DBFileReader walReader,
+    private byte[] applyUndoAndGenRedoOnlyData(WALReader walReader,
         DBPage dbPage, int numSegments) throws IOException {
 
         ByteArrayOutputStream redoOnlyBAOS = new ByteArrayOutputStream();
@@ -997,23 +1293,18 @@ public class WALManager {
         if (changes == null)
             throw new IllegalArgumentException("changes must be specified");
 
-        // Record the WAL record.  First thing to do:  figure out where it goes.
-
-        LogSequenceNumber lsn = nextLSN;
-        
-        logger.debug(String.format("Writing redo-only update record for " +
-            "transaction %d at LSN %s.  PrevLSN = %s", transactionID, lsn, prevLSN));
-
-        DBFileWriter walWriter = getWALFileWriter(lsn);
+        ByteArrayOutputStream recordBAOS =
+            new ByteArrayOutputStream(changes.length + 300);
+        DataOutputStream walWriter = new DataOutputStream(recordBAOS);
 
         walWriter.writeByte(WALRecordType.UPDATE_PAGE_REDO_ONLY.getID());
         walWriter.writeInt(transactionID);
 
         // We need to store the previous log sequence number for this record.
-        walWriter.writeShort(prevLSN.getLogFileNo());
-        walWriter.writeInt(prevLSN.getFileOffset());
+        writeLSN(walWriter, prevLSN);
 
-        walWriter.writeVarString255(dbPage.getDBFile().getDataFile().getName());
+        writeVarString255(walWriter,
+            dbPage.getDBFile().getDataFile().getName());
         walWriter.writeShort(dbPage.getPageNo());
 
         // Write the redo-only data.
@@ -1023,16 +1314,19 @@ public class WALManager {
         // Write the start of the update record at the end so that we can get
         // back to the record's start when scanning the log backwards.
 
-        walWriter.writeInt(lsn.getFileOffset());
+        walWriter.writeInt(-1);
         walWriter.writeByte(WALRecordType.UPDATE_PAGE_REDO_ONLY.getID());
 
+        LogSequenceNumber lsn = walBuffer.append(recordBAOS.toByteArray(),
+            /* hasStartOffset */ true);
+
+        logger.debug(String.format("Wrote redo-only update record for " +
+            "transaction %d at LSN %s.  PrevLSN = %s", transactionID, lsn, prevLSN));
+
         // Store the LSN of the change on the page.
-        lsn.setRecordSize(walWriter.getPosition() - lsn.getFileOffset());
         dbPage.setPageLSN(lsn);
         dbPage.syncOldPageData();
 
-        nextLSN = computeNextLSN(nextLSN.getLogFileNo(), walWriter.getPosition());
-
         return lsn;
     }
 
@@ -1104,11 +1398,24 @@ public class WALManager {
         logger.info("Rolling back transaction " + transactionID +
             ".  Last LSN = " + lsn);
 
+        // The transaction's most recent records may still be in the WAL
+        // buffer, and they must be in the WAL files to be read.
+        walBuffer.flush(/* sync */ false);
+
         // Scan backward through the log records for this transaction to roll
         // it back.
-        
+
+        WALReader walReader = null;
+        int readerFileNo = -1;
         while (true) {
-            DBFileReader walReader = getWALFileReader(lsn);
+            // Reuse the reader while the records are in the same file.
+            if (walReader == null || readerFileNo != lsn.getLogFileNo()) {
+                walReader = getWALFileReader(lsn);
+                readerFileNo = lsn.getLogFileNo();
+            }
+            else {
+                walReader.setPosition(lsn.getFileOffset());
+            }
 
             WALRecordType type = WALRecordType.valueOf(walReader.readByte());
             int recordTxnID = walReader.readInt();
@@ -1129,7 +1436,7 @@ public class WALManager {
 
                 // Acquire this record's corresponding dbPage, read in number of segments
                 String filename = walReader.readVarString255();
-                DBFile dbFile = storageManager.getFileManager().openDBFile(filename);
+                DBFile dbFile = storageManager.openDBFile(filename);
                 int page_no = walReader.readUnsignedShort();
                 int numSegments = walReader.readUnsignedShort();
                 DBPage dbPage = storageManager.loadDBPage(dbFile, page_no);
@@ -0,0 +1,169 @@
+package edu.caltech.nanodb.storage.writeahead;
+
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import edu.caltech.nanodb.storage.DBFile;
+
+
+/**
+ * This class reads the contents of a write-ahead log file directly from the
+ * file, rather than through the Buffer Manager, since WAL data is written
+ * by the {@link WALBuffer} without going through the Buffer Manager either.
+ * The reader keeps a window of the file in memory, and supports the same
+ * big-endian reads as {@link edu.caltech.nanodb.storage.DBFileReader}.
+ * <p>
+ * Only data that the {@link WALBuffer} has already flushed can be read, so
+ * the buffer should be flushed before a reader is created for recent
+ * records.
+ */
+class WALReader {
+
+    /** The size of the window of the file that is read at a time. */
+    private static final int WINDOW_SIZE = 64 * 1024;
+
+
+    private DBFile walFile;
+
+
+    private FileChannel channel;
+
+
+    /** The current position in the file. */
+    private int position;
+
+
+    /** The bytes of the file starting at {@link #windowStart}. */
+    private ByteBuffer window;
+
+
+    /** The file offset of the first byte in the window. */
+    private int windowStart;
+
+
+    /** The file offset just past the last valid byte in the window. */
+    private int windowEnd;
+
+
+    WALReader(DBFile walFile) {
+        this.walFile = walFile;
+        channel = walFile.getFileContents().getChannel();
+        window = ByteBuffer.allocate(WINDOW_SIZE);
+    }
+
+
+    public DBFile getDBFile() {
+        return walFile;
+    }
+
+
+    public int getPosition() {
+        return position;
+    }
+
+
+    public void setPosition(int position) {
+        if (position < 0)
+            throw new IllegalArgumentException("position must be >= 0");
+
+        this.position = position;
+    }
+
+
+    public void movePosition(int delta) {
+        setPosition(position + delta);
+    }
+
+
+    /**
+     * Makes sure that the window holds the specified number of bytes at the
+     * current position, reading from the file if necessary.  When the
+     * position moves backward, the window is positioned to end at the
+     * requested bytes, since the log is then usually being scanned backward.
+     */
+    private int ensureAvailable(int length) throws IOException {
+        if (position >= windowStart && position + length <= windowEnd)
+            return position - windowStart;
+
+        if (length > window.capacity())
+            window = ByteBuffer.allocate(length);
+
+        int start = position;
+        if (position < windowStart)
+            start = Math.max(0, position + length - window.capacity());
+
+        window.clear();
+        while (window.hasRemaining()) {
+            if (channel.read(window, start + window.position()) < 0)
+                break;
+        }
+
+        windowStart = start;
+        windowEnd = start + window.position();
+
+        if (position + length > windowEnd) {
+            throw new EOFException(String.format("Couldn't read %d bytes at " +
+                "offset %d of WAL file %s", length, position, walFile));
+        }
+
+        return position - windowStart;
+    }
+
+
+    public void read(byte[] b) throws IOException {
+        int index = ensureAvailable(b.length);
+        System.arraycopy(window.array(), index, b, 0, b.length);
+        position += b.length;
+    }
+
+
+    public byte readByte() throws IOException {
+        int index = ensureAvailable(1);
+        position++;
+        return window.get(index);
+    }
+
+
+    public int readUnsignedByte() throws IOException {
+        return readByte() & 0xFF;
+    }
+
+
+    public short readShort() throws IOException {
+        int index = ensureAvailable(2);
+        position += 2;
+        return window.getShort(index);
+    }
+
+
+    public int readUnsignedShort() throws IOException {
+        return readShort() & 0xFFFF;
+    }
+
+
+    public int readInt() throws IOException {
+        int index = ensureAvailable(4);
+        position += 4;
+        return window.getInt(index);
+    }
+
+
+    public String readVarString255() throws IOException {
+        int len = readUnsignedByte();
+        byte[] strBytes = new byte[len];
+        read(strBytes);
+
+        try {
+            return new String(strBytes, 0, len, "US-ASCII");
+        }
+        catch (UnsupportedEncodingException e) {
+            // According to the Java docs, the US-ASCII character-encoding is
+            // required to be supported by all JVMs.
+            throw new RuntimeException("Couldn't decode US-ASCII string", e);
+        }
+    }
+}
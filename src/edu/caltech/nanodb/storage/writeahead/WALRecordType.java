@@ -35,7 +35,14 @@ public enum WALRecordType {
      * The record represents a "&lt;<i>T<sub>i</sub></i>:  abort
      * transaction&gt;" record.
      */
-    ABORT_TXN(11);
+    ABORT_TXN(11),
+
+    /**
+     * The record represents a fuzzy checkpoint, listing the transactions that
+     * were in progress and the data pages that were dirty when the checkpoint
+     * was taken.
+     */
+    CHECKPOINT(20);
 
 
     private int id;
@@ -0,0 +1,65 @@
+package edu.caltech.nanodb.transactions;
+
+
+/**
+ * This class starts and stops the background threads that the transaction
+ * manager uses, such as the {@link GroupCommitter}'s flusher thread and the
+ * {@link Checkpointer}'s checkpoint thread.
+ *
+ * @design These threads are never interrupted, since interrupting a thread
+ *         that is writing to a {@code FileChannel} closes the channel.
+ *         Instead, the owner of a thread stops it by setting a flag that the
+ *         thread checks between units of work, and then calls
+ *         {@link #join} to wait for the work in progress to finish.
+ */
+final class BackgroundThreads {
+
+    private BackgroundThreads() {
+        // This class only has static methods.
+    }
+
+
+    /**
+     * Starts a daemon thread, so that a thread that is never stopped doesn't
+     * keep the JVM running.
+     *
+     * @param name the name of the thread
+     *
+     * @param task the code for the thread to run
+     *
+     * @return the thread, which has been started
+     */
+    static Thread start(String name, Runnable task) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+
+    /**
+     * Waits for a thread that has been told to stop.  If the calling thread
+     * is interrupted, it keeps waiting, and its interrupt status is restored
+     * afterward.
+     *
+     * @param thread the thread to wait for, or {@code null} if the thread
+     *        was never started
+     */
+    static void join(Thread thread) {
+        if (thread == null)
+            return;
+
+        boolean interrupted = false;
+        while (thread.isAlive()) {
+            try {
+                thread.join();
+            }
+            catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+}
@@ -0,0 +1,125 @@
+package edu.caltech.nanodb.transactions;
+
+
+import java.io.IOException;
+
+import org.apache.log4j.Logger;
+
+
+/**
+ * This class takes fuzzy checkpoints in the background for the
+ * {@link TransactionManager}, every
+ * {@link TransactionManager#getCheckpointInterval} seconds.  The interval is
+ * read again after each wait, so that checkpoints can be turned on, turned
+ * off, or made more or less frequent while the server is running.  The
+ * thread is stopped as described in {@link BackgroundThreads}.
+ */
+class Checkpointer {
+    /** A logging object for reporting anything interesting that happens. */
+    private static Logger logger = Logger.getLogger(Checkpointer.class);
+
+
+    /**
+     * How long the checkpoint thread waits before checking the interval
+     * again, when background checkpoints are turned off.
+     */
+    private static final long POLL_MILLIS = 1000;
+
+
+    private TransactionManager transactionManager;
+
+
+    /** The background thread that takes the checkpoints. */
+    private Thread checkpointThread;
+
+
+    /** Set when the checkpointer is shut down. */
+    private boolean shutDown;
+
+
+    Checkpointer(TransactionManager transactionManager) {
+        this.transactionManager = transactionManager;
+    }
+
+
+    /** Starts the checkpoint thread. */
+    public synchronized void start() {
+        if (checkpointThread != null || shutDown)
+            return;
+
+        checkpointThread = BackgroundThreads.start("nanodb-checkpoint",
+            new Runnable() {
+                @Override
+                public void run() {
+                    runCheckpointThread();
+                }
+            });
+    }
+
+
+    private void runCheckpointThread() {
+        long lastCheckpoint = System.currentTimeMillis();
+        while (waitForNextCheckpoint(lastCheckpoint)) {
+            try {
+                transactionManager.checkpoint();
+            }
+            catch (IOException | RuntimeException e) {
+                logger.error("Couldn't take a checkpoint", e);
+            }
+
+            lastCheckpoint = System.currentTimeMillis();
+        }
+    }
+
+
+    /**
+     * Waits until the checkpoint interval has passed since the last
+     * checkpoint.
+     *
+     * @param lastCheckpoint the time that the last checkpoint finished
+     *
+     * @return {@code true} if a checkpoint should be taken now, or
+     *         {@code false} if the checkpointer was shut down
+     */
+    private synchronized boolean waitForNextCheckpoint(long lastCheckpoint) {
+        while (!shutDown) {
+            int interval = TransactionManager.getCheckpointInterval();
+
+            long remaining;
+            if (interval == 0) {
+                remaining = POLL_MILLIS;
+            }
+            else {
+                remaining = lastCheckpoint + interval * 1000L -
+                    System.currentTimeMillis();
+                if (remaining <= 0)
+                    return true;
+            }
+
+            try {
+                wait(remaining);
+            }
+            catch (InterruptedException e) {
+                // Just check the shutdown flag again.
+            }
+        }
+
+        return false;
+    }
+
+
+    /**
+     * Stops the checkpoint thread, after waiting for any checkpoint that is
+     * in progress to finish.
+     */
+    public void shutdown() {
+        Thread thread;
+        synchronized (this) {
+            shutDown = true;
+            thread = checkpointThread;
+            notifyAll();
+        }
+
+        BackgroundThreads.join(thread);
+    }
+}
@@ -0,0 +1,29 @@
+package edu.caltech.nanodb.transactions;
+
+
+/**
+ * This exception is thrown by the {@link LockManager} when a transaction's
+ * lock request would complete a cycle of transactions waiting for each
+ * other.  The requesting transaction is chosen as the victim, and must be
+ * rolled back so that the other transactions can proceed.
+ */
+public class DeadlockException extends TransactionException {
+    public DeadlockException() {
+        super();
+    }
+
+
+    public DeadlockException(String msg) {
+        super(msg);
+    }
+
+
+    public DeadlockException(Throwable cause) {
+        super(cause);
+    }
+
+
+    public DeadlockException(String msg, Throwable cause) {
+        super(msg, cause);
+    }
+}
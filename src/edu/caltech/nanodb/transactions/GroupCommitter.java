@@ -0,0 +1,270 @@
+package edu.caltech.nanodb.transactions;
+
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import edu.caltech.nanodb.server.performance.PerformanceCounters;
+import edu.caltech.nanodb.storage.writeahead.LogSequenceNumber;
+
+
+/**
+ * This class implements group commit for the {@link TransactionManager}.
+ * When group commit is enabled, a committing transaction writes its
+ * commit record to the write-ahead log and then waits on a commit queue,
+ * instead of forcing the log itself.  A single flusher thread collects the
+ * waiting commits into a batch, forces the write-ahead log once for the
+ * whole batch, and then releases all of the batch's committers together.
+ * This turns the two syncs per commit (the log and the transaction-state
+ * file) into two syncs per batch.
+ * <p>
+ * A batch is closed when it holds
+ * {@link TransactionManager#getGroupCommitSize} commits, or when
+ * {@link TransactionManager#getGroupCommitDelay} milliseconds have passed
+ * since its first commit was queued, whichever happens first.
+ *
+ * @design The flusher thread is stopped as described in
+ *         {@link BackgroundThreads}.  It polls the queue so that it notices
+ *         the shutdown flag, and forces any commits still in the queue
+ *         before it exits.
+ */
+class GroupCommitter {
+    /** A logging object for reporting anything interesting that happens. */
+    private static Logger logger = Logger.getLogger(GroupCommitter.class);
+
+
+    /** How long the flusher thread waits for a commit before checking again. */
+    private static final long POLL_MILLIS = 100;
+
+
+    /** A committed transaction that is waiting for the log to be forced. */
+    private static class CommitRequest {
+        /** The LSN of the transaction's commit record. */
+        LogSequenceNumber lsn;
+
+        /** Set once the log has been forced past the commit record. */
+        boolean done;
+
+        /** The error that occurred while forcing the log, if any. */
+        IOException failure;
+
+        CommitRequest(LogSequenceNumber lsn) {
+            this.lsn = lsn;
+        }
+    }
+
+
+    private TransactionManager transactionManager;
+
+
+    /** Commits that are waiting for the flusher thread. */
+    private LinkedBlockingQueue<CommitRequest> queue;
+
+
+    /**
+     * The background thread that forces the log for each batch of commits,
+     * or {@code null} if it hasn't been started yet.
+     */
+    private Thread flusherThread;
+
+
+    /**
+     * Set when the group committer is shut down.  This is only changed while
+     * holding the object's monitor, so that no commits are queued after the
+     * flusher thread has exited.
+     */
+    private volatile boolean shutDown;
+
+
+    GroupCommitter(TransactionManager transactionManager) {
+        this.transactionManager = transactionManager;
+        queue = new LinkedBlockingQueue<>();
+    }
+
+
+    /**
+     * Waits until the write-ahead log has been forced past the specified
+     * commit record.  The commit record must already have been written to
+     * the log.
+     *
+     * @param lsn the LSN of the transaction's commit record
+     *
+     * @throws IOException if the write-ahead log couldn't be forced
+     */
+    public void commit(LogSequenceNumber lsn) throws IOException {
+        CommitRequest request = new CommitRequest(lsn);
+
+        boolean queued = false;
+        synchronized (this) {
+            if (!shutDown) {
+                startFlusherThread();
+                queue.add(request);
+                queued = true;
+            }
+        }
+
+        if (!queued) {
+            // The flusher thread is gone, so just force the log directly.
+            transactionManager.forceWAL(lsn);
+            return;
+        }
+
+        boolean interrupted = false;
+        synchronized (request) {
+            while (!request.done) {
+                try {
+                    request.wait();
+                }
+                catch (InterruptedException e) {
+                    // The commit record is already in the log, so the
+                    // transaction can't give up now.  Keep waiting.
+                    interrupted = true;
+                }
+            }
+        }
+
+        if (interrupted)
+            Thread.currentThread().interrupt();
+
+        if (request.failure != null) {
+            throw new IOException("Couldn't force the write-ahead log for " +
+                "commit record " + lsn, request.failure);
+        }
+    }
+
+
+    /** Starts the flusher thread if it isn't already running. */
+    private void startFlusherThread() {
+        if (flusherThread != null)
+            return;
+
+        flusherThread = BackgroundThreads.start("nanodb-groupcommit",
+            new Runnable() {
+                @Override
+                public void run() {
+                    runFlusherThread();
+                }
+            });
+    }
+
+
+    private void runFlusherThread() {
+        List<CommitRequest> batch = new ArrayList<>();
+        while (!shutDown || !queue.isEmpty()) {
+            CommitRequest first;
+            try {
+                first = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+            }
+            catch (InterruptedException e) {
+                continue;
+            }
+
+            if (first == null)
+                continue;
+
+            batch.add(first);
+            collectBatch(batch);
+            flushBatch(batch);
+            batch.clear();
+        }
+    }
+
+
+    /**
+     * Adds more commits to a batch, until the batch is full or the group
+     * commit delay has passed since the batch was started.  Commits that are
+     * already waiting are always added, up to the batch size, even after the
+     * delay has passed.
+     */
+    private void collectBatch(List<CommitRequest> batch) {
+        int maxSize = TransactionManager.getGroupCommitSize();
+        long delay = shutDown ? 0 : TransactionManager.getGroupCommitDelay();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay);
+
+        while (batch.size() < maxSize) {
+            CommitRequest request;
+            long remaining = deadline - System.nanoTime();
+            if (remaining > 0) {
+                try {
+                    request = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                }
+                catch (InterruptedException e) {
+                    request = queue.poll();
+                }
+            }
+            else {
+                request = queue.poll();
+            }
+
+            if (request == null)
+                break;
+
+            batch.add(request);
+        }
+    }
+
+
+    /**
+     * Forces the write-ahead log past the last commit record in the batch,
+     * and then releases all of the batch's committers.
+     */
+    private void flushBatch(List<CommitRequest> batch) {
+        LogSequenceNumber maxLSN = null;
+        for (CommitRequest request : batch) {
+            if (maxLSN == null || maxLSN.compareTo(request.lsn) < 0)
+                maxLSN = request.lsn;
+        }
+
+        logger.debug(String.format("Forcing WAL to %s for a batch of %d " +
+            "commits.", maxLSN, batch.size()));
+
+        IOException failure = null;
+        try {
+            transactionManager.forceWAL(maxLSN);
+        }
+        catch (IOException e) {
+            failure = e;
+        }
+        catch (RuntimeException e) {
+            failure = new IOException(e);
+        }
+
+        if (failure != null) {
+            logger.error("Couldn't force the WAL for a batch of " +
+                batch.size() + " commits", failure);
+        }
+
+        PerformanceCounters.inc(PerformanceCounters.TXNS_GROUP_COMMIT_BATCHES);
+        PerformanceCounters.add(PerformanceCounters.TXNS_GROUP_COMMITS,
+            batch.size());
+
+        for (CommitRequest request : batch) {
+            synchronized (request) {
+                request.failure = failure;
+                request.done = true;
+                request.notifyAll();
+            }
+        }
+    }
+
+
+    /**
+     * Stops the flusher thread, after it has forced the log for all commits
+     * that are still queued.  Commits made after this method is called force
+     * the log themselves.
+     */
+    public void shutdown() {
+        Thread thread;
+        synchronized (this) {
+            shutDown = true;
+            thread = flusherThread;
+        }
+
+        BackgroundThreads.join(thread);
+    }
+}
@@ -0,0 +1,484 @@
+package edu.caltech.nanodb.transactions;
+
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+import edu.caltech.nanodb.server.performance.PerformanceCounters;
+import edu.caltech.nanodb.storage.FilePointer;
+
+
+/**
+ * This class implements hierarchical two-phase locking for transactions.
+ * Locks may be taken on whole tables, or on individual rows of a table,
+ * identified by the {@link FilePointer} of the row.  Before a row is
+ * locked, the table is locked in the corresponding intention mode
+ * ({@link LockMode#IS} or {@link LockMode#IX}), so that a lock on the whole
+ * table conflicts with locks on its rows.
+ * <p>
+ * Locks are held until the transaction commits or rolls back, when the
+ * {@link TransactionManager} calls {@link #releaseAll}; that is, locking is
+ * strict two-phase.  A request that conflicts with locks held by other
+ * transactions waits until it can be granted.  Requests for a resource are
+ * granted in the order they were made, except that a transaction upgrading
+ * a lock it already holds goes ahead of transactions that don't hold the
+ * lock yet.
+ * <p>
+ * Whenever a request has to wait, the waits-for graph is searched for a
+ * cycle that passes through the requesting transaction.  If there is one,
+ * the request is cancelled and a {@link DeadlockException} is thrown, and
+ * the transaction must be rolled back so that the others can proceed.
+ *
+ * @design All lock state is guarded by this object's monitor, and waiting
+ *         transactions wait on it.  Lock requests are short compared to the
+ *         commands that make them, so a single monitor is simpler than
+ *         latching each lock queue, and it lets deadlock detection see a
+ *         consistent waits-for graph.
+ */
+public class LockManager {
+    /** A logging object for reporting anything interesting that happens. */
+    private static Logger logger = Logger.getLogger(LockManager.class);
+
+
+    /** A lockable resource:  either a table, or a row in a table. */
+    private static class Resource {
+        String tableName;
+
+        /** The location of the row, or {@code null} for the whole table. */
+        FilePointer rowPointer;
+
+        Resource(String tableName, FilePointer rowPointer) {
+            this.tableName = tableName;
+            this.rowPointer = rowPointer;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (obj instanceof Resource) {
+                Resource other = (Resource) obj;
+                return tableName.equals(other.tableName) &&
+                    (rowPointer == null ? other.rowPointer == null :
+                     rowPointer.equals(other.rowPointer));
+            }
+            return false;
+        }
+
+        @Override
+        public int hashCode() {
+            int hashCode = tableName.hashCode();
+            if (rowPointer != null)
+                hashCode = 41 * hashCode + rowPointer.hashCode();
+            return hashCode;
+        }
+
+        @Override
+        public String toString() {
+            if (rowPointer == null)
+                return "table " + tableName;
+
+            return "row " + rowPointer + " of table " + tableName;
+        }
+    }
+
+
+    /** A lock request that is waiting to be granted. */
+    private static class LockRequest {
+        int txnID;
+
+        LockMode mode;
+
+        /** True if the transaction already holds a weaker lock. */
+        boolean upgrade;
+
+        boolean granted;
+
+        LockRequest(int txnID, LockMode mode, boolean upgrade) {
+            this.txnID = txnID;
+            this.mode = mode;
+            this.upgrade = upgrade;
+        }
+    }
+
+
+    /** The locks held on one resource, and the requests waiting for it. */
+    private static class LockQueue {
+        /** The transactions holding the lock, and the mode each holds. */
+        LinkedHashMap<Integer, LockMode> holders = new LinkedHashMap<>();
+
+        /** The requests waiting for the lock, in the order to grant them. */
+        LinkedList<LockRequest> waiters = new LinkedList<>();
+
+        /**
+         * Returns true if a lock in the specified mode is compatible with
+         * the locks held by all transactions other than the requester.
+         */
+        boolean isCompatible(int txnID, LockMode mode) {
+            for (Map.Entry<Integer, LockMode> entry : holders.entrySet()) {
+                if (entry.getKey() != txnID &&
+                    !mode.isCompatibleWith(entry.getValue())) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+
+    /** The lock queue of each resource that is locked or waited for. */
+    private HashMap<Resource, LockQueue> lockTable = new HashMap<>();
+
+
+    /** The resources each transaction holds locks on, by transaction ID. */
+    private HashMap<Integer, HashSet<Resource>> txnLocks = new HashMap<>();
+
+
+    /** The resource each waiting transaction is waiting for. */
+    private HashMap<Integer, Resource> waitingFor = new HashMap<>();
+
+
+    /**
+     * Locks a table in the specified mode for the transaction, waiting until
+     * the lock can be granted.
+     *
+     * @param txnState the transaction requesting the lock
+     *
+     * @param tableName the name of the table to lock
+     *
+     * @param mode the mode to lock the table in
+     *
+     * @throws DeadlockException if the transaction would deadlock waiting
+     *         for the lock, and must be rolled back
+     *
+     * @throws TransactionException if the transaction was interrupted while
+     *         waiting for the lock
+     */
+    public void lockTable(TransactionState txnState, String tableName,
+                          LockMode mode) throws TransactionException {
+        acquire(txnState, new Resource(tableName, null), mode);
+    }
+
+
+    /**
+     * Locks a row of a table in the specified mode for the transaction,
+     * waiting until the lock can be granted.  The table is first locked in
+     * the corresponding intention mode.
+     *
+     * @param txnState the transaction requesting the lock
+     *
+     * @param tableName the name of the table that holds the row
+     *
+     * @param rowPointer the location of the row in the table's file
+     *
+     * @param mode the mode to lock the row in; this must be
+     *        {@link LockMode#S} or {@link LockMode#X}
+     *
+     * @throws DeadlockException if the transaction would deadlock waiting
+     *         for a lock, and must be rolled back
+     *
+     * @throws TransactionException if the transaction was interrupted while
+     *         waiting for a lock
+     */
+    public void lockRow(TransactionState txnState, String tableName,
+                        FilePointer rowPointer, LockMode mode)
+        throws TransactionException {
+
+        if (rowPointer == null)
+            throw new IllegalArgumentException("rowPointer cannot be null");
+
+        LockMode intentionMode;
+        if (mode == LockMode.S)
+            intentionMode = LockMode.IS;
+        else if (mode == LockMode.X)
+            intentionMode = LockMode.IX;
+        else
+            throw new IllegalArgumentException("Rows can only be locked in " +
+                "S or X mode; got " + mode);
+
+        acquire(txnState, new Resource(tableName, null), intentionMode);
+        acquire(txnState, new Resource(tableName, rowPointer), mode);
+    }
+
+
+    /**
+     * Returns the mode that the transaction holds the table's lock in, or
+     * {@code null} if the transaction doesn't hold a lock on the table.
+     *
+     * @param txnState the transaction to check
+     *
+     * @param tableName the name of the table
+     *
+     * @return the mode of the transaction's lock on the table
+     */
+    public synchronized LockMode getTableLockMode(TransactionState txnState,
+                                                  String tableName) {
+        LockQueue queue = lockTable.get(new Resource(tableName, null));
+        if (queue == null)
+            return null;
+
+        return queue.holders.get(txnState.getTransactionID());
+    }
+
+
+    private synchronized void acquire(TransactionState txnState,
+        Resource resource, LockMode mode) throws TransactionException {
+
+        if (!txnState.isTxnInProgress()) {
+            throw new IllegalStateException(
+                "Locks can only be acquired within a transaction");
+        }
+
+        int txnID = txnState.getTransactionID();
+
+        LockQueue queue = lockTable.get(resource);
+        if (queue == null) {
+            queue = new LockQueue();
+            lockTable.put(resource, queue);
+        }
+
+        LockMode heldMode = queue.holders.get(txnID);
+        if (heldMode != null && heldMode.covers(mode))
+            return;
+
+        LockMode newMode = (heldMode == null ? mode : heldMode.combineWith(mode));
+        boolean upgrade = (heldMode != null);
+
+        // Grant the lock right away if it doesn't conflict with other
+        // holders, unless other transactions are already waiting for it.
+        // Upgrades don't wait behind the waiters, since the waiters are
+        // waiting for this transaction anyway.
+        if ((upgrade || queue.waiters.isEmpty()) &&
+            queue.isCompatible(txnID, newMode)) {
+            grant(queue, resource, txnID, newMode);
+            return;
+        }
+
+        LockRequest request = new LockRequest(txnID, newMode, upgrade);
+        if (upgrade) {
+            // Upgrades go ahead of the requests that aren't upgrades.
+            int i = 0;
+            while (i < queue.waiters.size() && queue.waiters.get(i).upgrade)
+                i++;
+            queue.waiters.add(i, request);
+        }
+        else {
+            queue.waiters.add(request);
+        }
+        waitingFor.put(txnID, resource);
+
+        if (findCycle(txnID)) {
+            cancel(queue, resource, request);
+            PerformanceCounters.inc(PerformanceCounters.LOCK_DEADLOCKS);
+
+            logger.info(String.format("Transaction %d would deadlock " +
+                "waiting for %s lock on %s; aborting it.", txnID, newMode,
+                resource));
+
+            throw new DeadlockException(String.format("Transaction %d was " +
+                "chosen as a deadlock victim while waiting for a %s lock " +
+                "on %s", txnID, newMode, resource));
+        }
+
+        PerformanceCounters.inc(PerformanceCounters.LOCK_WAITS);
+        logger.debug(String.format("Transaction %d is waiting for %s lock " +
+            "on %s.", txnID, newMode, resource));
+
+        try {
+            while (!request.granted)
+                wait();
+        }
+        catch (InterruptedException e) {
+            if (!request.granted) {
+                cancel(queue, resource, request);
+                throw new TransactionException(String.format("Transaction %d " +
+                    "was interrupted while waiting for a lock on %s", txnID,
+                    resource), e);
+            }
+
+            // The lock was granted anyway; leave the interrupt for the caller.
+            Thread.currentThread().interrupt();
+        }
+    }
+
+
+    private void grant(LockQueue queue, Resource resource, int txnID,
+                       LockMode mode) {
+        queue.holders.put(txnID, mode);
+
+        HashSet<Resource> resources = txnLocks.get(txnID);
+        if (resources == null) {
+            resources = new HashSet<>();
+            txnLocks.put(txnID, resources);
+        }
+        resources.add(resource);
+
+        PerformanceCounters.inc(PerformanceCounters.LOCKS_ACQUIRED);
+    }
+
+
+    /**
+     * Grants waiting requests on a resource in order, until one of them
+     * can't be granted.  Waiting transactions are woken up if any request
+     * is granted.
+     */
+    private void grantWaiters(LockQueue queue, Resource resource) {
+        boolean grantedAny = false;
+
+        Iterator<LockRequest> iter = queue.waiters.iterator();
+        while (iter.hasNext()) {
+            LockRequest request = iter.next();
+            if (!queue.isCompatible(request.txnID, request.mode))
+                break;
+
+            iter.remove();
+            waitingFor.remove(request.txnID);
+            grant(queue, resource, request.txnID, request.mode);
+            request.granted = true;
+            grantedAny = true;
+        }
+
+        if (grantedAny)
+            notifyAll();
+    }
+
+
+    /** Removes a waiting request, and lets the requests behind it proceed. */
+    private void cancel(LockQueue queue, Resource resource,
+                        LockRequest request) {
+        queue.waiters.remove(request);
+        waitingFor.remove(request.txnID);
+
+        grantWaiters(queue, resource);
+        if (queue.holders.isEmpty() && queue.waiters.isEmpty())
+            lockTable.remove(resource);
+    }
+
+
+    /**
+     * Returns the transactions that a waiting transaction is waiting for:
+     * the holders of the resource whose locks conflict with the request,
+     * and the transactions whose requests will be granted before it.
+     */
+    private ArrayList<Integer> getWaitedForTxns(int txnID) {
+        ArrayList<Integer> result = new ArrayList<>();
+
+        Resource resource = waitingFor.get(txnID);
+        if (resource == null)
+            return result;
+
+        LockQueue queue = lockTable.get(resource);
+
+        LockMode mode = null;
+        for (LockRequest request : queue.waiters) {
+            if (request.txnID == txnID) {
+                mode = request.mode;
+                break;
+            }
+            result.add(request.txnID);
+        }
+
+        for (Map.Entry<Integer, LockMode> entry : queue.holders.entrySet()) {
+            if (entry.getKey() != txnID &&
+                !mode.isCompatibleWith(entry.getValue())) {
+                result.add(entry.getKey());
+            }
+        }
+
+        return result;
+    }
+
+
+    /**
+     * Searches the waits-for graph for a cycle that returns to the specified
+     * transaction.  Since the graph is checked every time a transaction
+     * starts waiting, any cycle must pass through the transaction that just
+     * started waiting.
+     */
+    private boolean findCycle(int txnID) {
+        HashSet<Integer> visited = new HashSet<>();
+        LinkedList<Integer> toVisit = new LinkedList<>();
+        toVisit.addAll(getWaitedForTxns(txnID));
+
+        while (!toVisit.isEmpty()) {
+            int next = toVisit.removeFirst();
+            if (next == txnID)
+                return true;
+
+            if (visited.add(next))
+                toVisit.addAll(0, getWaitedForTxns(next));
+        }
+
+        return false;
+    }
+
+
+    /**
+     * Releases all locks held by the transaction, and grants the requests
+     * that were waiting for them.  This is called when the transaction
+     * commits or rolls back.
+     *
+     * @param txnState the transaction whose locks are released
+     */
+    public synchronized void releaseAll(TransactionState txnState) {
+        int txnID = txnState.getTransactionID();
+
+        HashSet<Resource> resources = txnLocks.remove(txnID);
+        if (resources == null)
+            return;
+
+        logger.debug(String.format("Releasing %d locks held by transaction %d.",
+            resources.size(), txnID));
+
+        for (Resource resource : resources) {
+            LockQueue queue = lockTable.get(resource);
+            queue.holders.remove(txnID);
+
+            grantWaiters(queue, resource);
+            if (queue.holders.isEmpty() && queue.waiters.isEmpty())
+                lockTable.remove(resource);
+        }
+    }
+
+
+    /**
+     * Returns the number of resources that are currently locked or waited
+     * for.
+     *
+     * @return the number of entries in the lock table
+     */
+    public synchronized int getNumLockedResources() {
+        return lockTable.size();
+    }
+
+
+    /**
+     * Returns the number of locks currently held, over all transactions and
+     * resources.
+     *
+     * @return the number of locks currently held
+     */
+    public synchronized int getNumLocksHeld() {
+        int numLocks = 0;
+        for (HashSet<Resource> resources : txnLocks.values())
+            numLocks += resources.size();
+
+        return numLocks;
+    }
+
+
+    /**
+     * Returns the number of transactions that are currently waiting for a
+     * lock.
+     *
+     * @return the number of waiting transactions
+     */
+    public synchronized int getNumWaitingTxns() {
+        return waitingFor.size();
+    }
+}
@@ -0,0 +1,97 @@
+package edu.caltech.nanodb.transactions;
+
+
+/**
+ * The modes that a lock can be held in by the {@link LockManager}.  The
+ * intention modes are taken on a table before rows in the table are locked,
+ * so that a lock on the whole table can be checked against the row locks
+ * without looking at every row.
+ */
+public enum LockMode {
+    /** Intention-shared:  rows in the table will be locked in shared mode. */
+    IS,
+
+    /** Intention-exclusive:  rows in the table will be locked exclusively. */
+    IX,
+
+    /** Shared:  the resource is read, and may not be changed by others. */
+    S,
+
+    /**
+     * Shared and intention-exclusive:  the whole table is read, and some of
+     * its rows will be locked exclusively.
+     */
+    SIX,
+
+    /** Exclusive:  the resource is changed, and may not be used by others. */
+    X;
+
+
+    /**
+     * The compatibility matrix for lock modes, indexed by the ordinals of
+     * the two modes.
+     */
+    private static final boolean[][] COMPATIBLE = {
+        //             IS     IX     S      SIX    X
+        /* IS  */    { true,  true,  true,  true,  false },
+        /* IX  */    { true,  true,  false, false, false },
+        /* S   */    { true,  false, true,  false, false },
+        /* SIX */    { true,  false, false, false, false },
+        /* X   */    { false, false, false, false, false }
+    };
+
+
+    /**
+     * Returns true if a lock in this mode may be held on a resource at the
+     * same time as another transaction's lock in the specified mode.
+     *
+     * @param other the mode of the other transaction's lock
+     *
+     * @return true if the two modes are compatible
+     */
+    public boolean isCompatibleWith(LockMode other) {
+        return COMPATIBLE[ordinal()][other.ordinal()];
+    }
+
+
+    /**
+     * Returns the weakest mode that grants everything that this mode and
+     * the specified mode grant.  This is the mode that a lock is upgraded to
+     * when a transaction requests a lock that it already holds in another
+     * mode.
+     *
+     * @param other the other lock mode
+     *
+     * @return the weakest mode that covers both modes
+     */
+    public LockMode combineWith(LockMode other) {
+        if (this == other)
+            return this;
+
+        if (this == X || other == X)
+            return X;
+
+        if (this == IS)
+            return other;
+
+        if (other == IS)
+            return this;
+
+        // The remaining combinations are IX, S and SIX, with two different
+        // modes; all of them combine to SIX.
+        return SIX;
+    }
+
+
+    /**
+     * Returns true if a lock in this mode grants everything that a lock in
+     * the specified mode grants.
+     *
+     * @param other the other lock mode
+     *
+     * @return true if this mode is at least as strong as the other mode
+     */
+    public boolean covers(LockMode other) {
+        return combineWith(other) == this;
+    }
+}
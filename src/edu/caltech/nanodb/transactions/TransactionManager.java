@@ -4,7 +4,9 @@ package edu.caltech.nanodb.transactions;
 import java.awt.*;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.log4j.Logger;
@@ -12,11 +14,13 @@ import org.apache.log4j.Logger;
 import edu.caltech.nanodb.client.SessionState;
 
 import edu.caltech.nanodb.expressions.TypeCastException;
+import edu.caltech.nanodb.expressions.TypeConverter;
 
 import edu.caltech.nanodb.server.NanoDBServer;
 import edu.caltech.nanodb.server.properties.PropertyHandler;
 import edu.caltech.nanodb.server.properties.ReadOnlyPropertyException;
 import edu.caltech.nanodb.server.properties.UnrecognizedPropertyException;
+import edu.caltech.nanodb.server.performance.PerformanceCounters;
 
 import edu.caltech.nanodb.storage.BufferManager;
 import edu.caltech.nanodb.storage.BufferManagerObserver;
@@ -45,6 +49,80 @@ public class TransactionManager implements BufferManagerObserver {
     public static final String PROP_TXNS = "nanodb.txns";
 
 
+    /**
+     * The system property that can be used to turn on or off group commit.
+     * When group commit is on, the write-ahead log is forced once for each
+     * batch of concurrent commits, rather than once for every commit.
+     *
+     * @see GroupCommitter
+     */
+    public static final String PROP_GROUP_COMMIT = "nanodb.txns.groupcommit";
+
+
+    /**
+     * The system property that specifies how many milliseconds a group
+     * commit batch may wait for more commits to join it before the
+     * write-ahead log is forced.
+     */
+    public static final String PROP_GROUP_COMMIT_DELAY =
+        "nanodb.txns.groupcommit.delay";
+
+
+    /** The default group commit delay, in milliseconds. */
+    public static final int DEFAULT_GROUP_COMMIT_DELAY = 2;
+
+
+    /** The maximum group commit delay, in milliseconds. */
+    public static final int MAX_GROUP_COMMIT_DELAY = 1000;
+
+
+    /**
+     * The system property that specifies the largest number of commits that
+     * are forced to the write-ahead log together.
+     */
+    public static final String PROP_GROUP_COMMIT_SIZE =
+        "nanodb.txns.groupcommit.size";
+
+
+    /** The default maximum number of commits in a group commit batch. */
+    public static final int DEFAULT_GROUP_COMMIT_SIZE = 64;
+
+
+    /** The largest allowed maximum number of commits in a batch. */
+    public static final int MAX_GROUP_COMMIT_SIZE = 4096;
+
+
+    /**
+     * The system property that specifies how many seconds pass between the
+     * fuzzy checkpoints taken in the background.  A value of 0 turns off
+     * background checkpoints.
+     *
+     * @see Checkpointer
+     */
+    public static final String PROP_CHECKPOINT_INTERVAL =
+        "nanodb.txns.checkpoint.interval";
+
+
+    /** The default checkpoint interval, in seconds. */
+    public static final int DEFAULT_CHECKPOINT_INTERVAL = 60;
+
+
+    /** The maximum checkpoint interval, in seconds. */
+    public static final int MAX_CHECKPOINT_INTERVAL = 24 * 60 * 60;
+
+
+    /**
+     * The system property that specifies how many threads apply the changes
+     * in the write-ahead log during redo processing.  A value of 1 applies
+     * the changes on the thread that reads the log.
+     */
+    public static final String PROP_REDO_THREADS = "nanodb.txns.redo.threads";
+
+
+    /** The largest allowed number of redo threads. */
+    public static final int MAX_REDO_THREADS = 64;
+
+
     /**
      * This is the name of the file that the Transaction Manager uses to keep
      * track of overall transaction state.
@@ -66,6 +144,168 @@ public class TransactionManager implements BufferManagerObserver {
     }
 
 
+    /**
+     * Returns true if group commit is enabled, or false otherwise.
+     *
+     * @return true if group commit is enabled, or false otherwise.
+     */
+    public static boolean isGroupCommitEnabled() {
+        return "on".equalsIgnoreCase(
+            System.getProperty(PROP_GROUP_COMMIT, "off"));
+    }
+
+
+    /**
+     * Returns the group commit delay specified by the
+     * <tt>nanodb.txns.groupcommit.delay</tt> system property.  If the
+     * property is unset or invalid then {@link #DEFAULT_GROUP_COMMIT_DELAY}
+     * is returned.
+     *
+     * @return the group commit delay, in milliseconds
+     */
+    public static int getGroupCommitDelay() {
+        return getIntProperty(PROP_GROUP_COMMIT_DELAY, 0,
+            MAX_GROUP_COMMIT_DELAY, DEFAULT_GROUP_COMMIT_DELAY);
+    }
+
+
+    /**
+     * Sets how many milliseconds a group commit batch may wait for more
+     * commits to join it.
+     *
+     * @param delay the group commit delay, in milliseconds
+     *
+     * @throws IllegalArgumentException if the delay is not in the range
+     *         [0, {@link #MAX_GROUP_COMMIT_DELAY}]
+     */
+    public static void setGroupCommitDelay(int delay) {
+        if (delay < 0 || delay > MAX_GROUP_COMMIT_DELAY) {
+            throw new IllegalArgumentException(PROP_GROUP_COMMIT_DELAY +
+                " must be in the range [0, " + MAX_GROUP_COMMIT_DELAY +
+                "], got " + delay);
+        }
+
+        System.setProperty(PROP_GROUP_COMMIT_DELAY, Integer.toString(delay));
+    }
+
+
+    /**
+     * Returns the group commit batch size specified by the
+     * <tt>nanodb.txns.groupcommit.size</tt> system property.  If the
+     * property is unset or invalid then {@link #DEFAULT_GROUP_COMMIT_SIZE}
+     * is returned.
+     *
+     * @return the largest number of commits in a group commit batch
+     */
+    public static int getGroupCommitSize() {
+        return getIntProperty(PROP_GROUP_COMMIT_SIZE, 1,
+            MAX_GROUP_COMMIT_SIZE, DEFAULT_GROUP_COMMIT_SIZE);
+    }
+
+
+    /**
+     * Sets the largest number of commits that are forced to the write-ahead
+     * log together.
+     *
+     * @param size the largest number of commits in a group commit batch
+     *
+     * @throws IllegalArgumentException if the size is not in the range
+     *         [1, {@link #MAX_GROUP_COMMIT_SIZE}]
+     */
+    public static void setGroupCommitSize(int size) {
+        if (size < 1 || size > MAX_GROUP_COMMIT_SIZE) {
+            throw new IllegalArgumentException(PROP_GROUP_COMMIT_SIZE +
+                " must be in the range [1, " + MAX_GROUP_COMMIT_SIZE +
+                "], got " + size);
+        }
+
+        System.setProperty(PROP_GROUP_COMMIT_SIZE, Integer.toString(size));
+    }
+
+
+    /**
+     * Returns the number of seconds between background checkpoints, or 0 if
+     * background checkpoints are turned off.
+     *
+     * @return the checkpoint interval, in seconds
+     */
+    public static int getCheckpointInterval() {
+        return getIntProperty(PROP_CHECKPOINT_INTERVAL, 0,
+            MAX_CHECKPOINT_INTERVAL, DEFAULT_CHECKPOINT_INTERVAL);
+    }
+
+
+    /**
+     * Sets the number of seconds between background checkpoints.  A value of
+     * 0 turns off background checkpoints.
+     *
+     * @param interval the checkpoint interval, in seconds
+     */
+    public static void setCheckpointInterval(int interval) {
+        if (interval < 0 || interval > MAX_CHECKPOINT_INTERVAL) {
+            throw new IllegalArgumentException(PROP_CHECKPOINT_INTERVAL +
+                " must be in the range [0, " + MAX_CHECKPOINT_INTERVAL +
+                "]; got " + interval);
+        }
+
+        System.setProperty(PROP_CHECKPOINT_INTERVAL, Integer.toString(interval));
+    }
+
+
+    /**
+     * Returns the number of threads that apply changes during redo
+     * processing.  The default is the number of processors, up to 4.
+     *
+     * @return the number of redo threads
+     */
+    public static int getRedoThreads() {
+        int defaultThreads =
+            Math.min(4, Runtime.getRuntime().availableProcessors());
+
+        return getIntProperty(PROP_REDO_THREADS, 1, MAX_REDO_THREADS,
+            defaultThreads);
+    }
+
+
+    /**
+     * Sets the number of threads that apply changes during redo processing.
+     * This only affects recovery that is performed after it is set.
+     *
+     * @param threads the number of redo threads
+     */
+    public static void setRedoThreads(int threads) {
+        if (threads < 1 || threads > MAX_REDO_THREADS) {
+            throw new IllegalArgumentException(PROP_REDO_THREADS +
+                " must be in the range [1, " + MAX_REDO_THREADS + "]; got " +
+                threads);
+        }
+
+        System.setProperty(PROP_REDO_THREADS, Integer.toString(threads));
+    }
+
+
+    private static int getIntProperty(String name, int min, int max,
+                                      int defaultValue) {
+        String str = System.getProperty(name);
+        if (str == null)
+            return defaultValue;
+
+        try {
+            int value = Integer.parseInt(str.trim());
+            if (value >= min && value <= max)
+                return value;
+        }
+        catch (NumberFormatException e) {
+            // Fall through to the warning below.
+        }
+
+        logger.warn(String.format("Invalid value \"%s\" for %s; using " +
+            "default value of %d.", str, name, defaultValue));
+
+        return defaultValue;
+    }
+
+
     private static class TransactionPropertyHandler implements PropertyHandler {
 
         @Override
@@ -75,6 +315,21 @@ public class TransactionManager implements BufferManagerObserver {
             if (PROP_TXNS.equals(propertyName)) {
                 return isEnabled();
             }
+            else if (PROP_GROUP_COMMIT.equals(propertyName)) {
+                return isGroupCommitEnabled();
+            }
+            else if (PROP_GROUP_COMMIT_DELAY.equals(propertyName)) {
+                return getGroupCommitDelay();
+            }
+            else if (PROP_GROUP_COMMIT_SIZE.equals(propertyName)) {
+                return getGroupCommitSize();
+            }
+            else if (PROP_CHECKPOINT_INTERVAL.equals(propertyName)) {
+                return getCheckpointInterval();
+            }
+            else if (PROP_REDO_THREADS.equals(propertyName)) {
+                return getRedoThreads();
+            }
             else {
                 throw new UnrecognizedPropertyException("No property named " +
                         propertyName);
@@ -86,10 +341,23 @@ public class TransactionManager implements BufferManagerObserver {
                 throws UnrecognizedPropertyException, ReadOnlyPropertyException,
                 TypeCastException {
 
-            if (PROP_TXNS.equals(propertyName)) {
+            if (PROP_TXNS.equals(propertyName) ||
+                PROP_GROUP_COMMIT.equals(propertyName)) {
                 throw new ReadOnlyPropertyException(propertyName +
                         " is read-only");
             }
+            else if (PROP_GROUP_COMMIT_DELAY.equals(propertyName)) {
+                setGroupCommitDelay(TypeConverter.getIntegerValue(value));
+            }
+            else if (PROP_GROUP_COMMIT_SIZE.equals(propertyName)) {
+                setGroupCommitSize(TypeConverter.getIntegerValue(value));
+            }
+            else if (PROP_CHECKPOINT_INTERVAL.equals(propertyName)) {
+                setCheckpointInterval(TypeConverter.getIntegerValue(value));
+            }
+            else if (PROP_REDO_THREADS.equals(propertyName)) {
+                setRedoThreads(TypeConverter.getIntegerValue(value));
+            }
             else {
                 throw new UnrecognizedPropertyException("No property named " +
                         propertyName);
@@ -117,8 +385,50 @@ public class TransactionManager implements BufferManagerObserver {
 
     /**
      * This is the last value of nextLSN saved to the transaction-state file.
+     * It is only changed while holding the transaction manager's monitor,
+     * but it may be read without it.
+     */
+    private volatile LogSequenceNumber txnStateNextLSN;
+
+
+    /**
+     * If group commit is enabled, this object forces the write-ahead log for
+     * batches of commits.  Otherwise, it is {@code null} and each commit
+     * forces the log itself.
+     */
+    private GroupCommitter groupCommitter;
+
+
+    /**
+     * The transactions that have written to the write-ahead log and haven't
+     * completed yet, keyed by transaction ID.  Transactions are only added
+     * and removed while holding the transaction manager's monitor, so that
+     * checkpoints see a consistent set of transactions.
+     */
+    private ConcurrentHashMap<Integer, TransactionState> activeTxns;
+
+
+    /**
+     * The LSN just past the most recent checkpoint record, or {@code null}
+     * if no checkpoint has been taken.  If nothing has been logged since
+     * then, there is no need to take another checkpoint.
      */
-    private LogSequenceNumber txnStateNextLSN;
+    private LogSequenceNumber checkpointNextLSN;
+
+
+    /** Takes checkpoints in the background. */
+    private Checkpointer checkpointer;
+
+
+    /**
+     * Serializes checkpoints, so that a background checkpoint and one that
+     * is requested explicitly don't run at the same time.
+     */
+    private final Object checkpointLock = new Object();
+
+
+    /** Manages the locks that transactions take on tables and rows. */
+    private LockManager lockManager;
 
 
     public TransactionManager(NanoDBServer server) {
@@ -133,12 +443,21 @@ public class TransactionManager implements BufferManagerObserver {
         bufferManager.addObserver(this);
 
         this.nextTxnID = new AtomicInteger();
+        activeTxns = new ConcurrentHashMap<>();
+        lockManager = new LockManager();
 
         walManager = new WALManager(storageManager, bufferManager);
 
+        if (isGroupCommitEnabled()) {
+            logger.info("Group commit is enabled.");
+            groupCommitter = new GroupCommitter(this);
+        }
+
         // Register properties that the Transaction Manager exposes.
         server.getPropertyRegistry().registerProperties(
-            new TransactionPropertyHandler(), PROP_TXNS);
+            new TransactionPropertyHandler(), PROP_TXNS, PROP_GROUP_COMMIT,
+            PROP_GROUP_COMMIT_DELAY, PROP_GROUP_COMMIT_SIZE,
+            PROP_CHECKPOINT_INTERVAL, PROP_REDO_THREADS);
 
     }
 
@@ -175,6 +494,7 @@ public class TransactionManager implements BufferManagerObserver {
 
         txnState.setFirstLSN(lsn);
         txnState.setNextLSN(lsn);
+        txnState.setCheckpointLSN(new LogSequenceNumber(0, 0));
         txnStateNextLSN = lsn;
 
         storageManager.getBufferManager().writeDBFile(dbfTxnState, /* sync */ true);
@@ -204,11 +524,24 @@ public class TransactionManager implements BufferManagerObserver {
         DBPage dbpTxnState = storageManager.loadDBPage(dbfTxnState, 0);
         TransactionStatePage txnState = new TransactionStatePage(dbpTxnState);
 
-        txnState.setNextTransactionID(nextTxnID.get());
-        txnState.setFirstLSN(walManager.getFirstLSN());
-        txnState.setNextLSN(txnStateNextLSN);
+        try {
+            txnState.setNextTransactionID(nextTxnID.get());
+            txnState.setFirstLSN(walManager.getFirstLSN());
+            txnState.setNextLSN(txnStateNextLSN);
 
-        storageManager.getBufferManager().writeDBFile(dbfTxnState, /* sync */ true);
+            LogSequenceNumber checkpointLSN = walManager.getCheckpointLSN();
+            if (checkpointLSN == null)
+                checkpointLSN = new LogSequenceNumber(0, 0);
+            txnState.setCheckpointLSN(checkpointLSN);
+
+            storageManager.getBufferManager().writeDBFile(dbfTxnState,
+                /* sync */ true);
+        }
+        finally {
+            // The state may be stored by the group commit thread, which
+            // never ends a command, so release the page here.
+            dbpTxnState.unpin();
+        }
     }
 
 
@@ -237,11 +570,14 @@ public class TransactionManager implements BufferManagerObserver {
         // Perform recovery, and get the new "first LSN" value
 
         LogSequenceNumber firstLSN = txnState.getFirstLSN();
+        LogSequenceNumber checkpointLSN = txnState.getCheckpointLSN();
         LogSequenceNumber nextLSN = txnState.getNextLSN();
-        logger.debug(String.format("Txn State has FirstLSN = %s, NextLSN = %s",
-            firstLSN, nextLSN));
+        logger.debug(String.format("Txn State has FirstLSN = %s, " +
+            "CheckpointLSN = %s, NextLSN = %s", firstLSN, checkpointLSN,
+            nextLSN));
 
-        RecoveryInfo recoveryInfo = walManager.doRecovery(firstLSN, nextLSN);
+        RecoveryInfo recoveryInfo =
+            walManager.doRecovery(firstLSN, checkpointLSN, nextLSN);
 
         // Set the "next transaction ID" value based on what recovery found
         int recNextTxnID = recoveryInfo.maxTransactionID + 1;
@@ -254,12 +590,35 @@ public class TransactionManager implements BufferManagerObserver {
         // Update and sync the transaction state if any changes were made.
         storeTxnStateToFile();
 
+        // WAL files from before the new "first LSN" are no longer needed.
+        walManager.deleteOldWALFiles(firstLSN.getLogFileNo());
+
+        checkpointer = new Checkpointer(this);
+        checkpointer.start();
+
         // Register the component that manages indexes when tables are modified.
         server.getEventDispatcher().addCommandEventListener(
             new TransactionStateUpdater(this));
     }
 
 
+    /**
+     * Shuts down the transaction manager, forcing the write-ahead log for any
+     * commits that are still waiting for group commit.
+     */
+    public void shutdown() {
+        if (checkpointer != null)
+            checkpointer.shutdown();
+
+        if (groupCommitter != null)
+            groupCommitter.shutdown();
+
+        server.getPropertyRegistry().unregisterProperties(PROP_TXNS,
+            PROP_GROUP_COMMIT, PROP_GROUP_COMMIT_DELAY, PROP_GROUP_COMMIT_SIZE,
+            PROP_CHECKPOINT_INTERVAL, PROP_REDO_THREADS);
+    }
+
+
     /**
      * Returns the "next transaction ID" value without incrementing it.
      * This operation is thread-safe.
@@ -282,6 +641,39 @@ public class TransactionManager implements BufferManagerObserver {
     }
 
 
+    public LockManager getLockManager() {
+        return lockManager;
+    }
+
+
+    /**
+     * Locks a table for the current session's transaction, waiting until
+     * the lock can be granted.  The lock is held until the transaction
+     * commits or rolls back.
+     *
+     * @param tableName the name of the table to lock
+     *
+     * @param mode the mode to lock the table in
+     *
+     * @throws DeadlockException if the transaction would deadlock waiting
+     *         for the lock, and must be rolled back
+     *
+     * @throws TransactionException if the lock couldn't be acquired for some
+     *         other reason
+     */
+    public void lockTable(String tableName, LockMode mode)
+        throws TransactionException {
+
+        TransactionState txnState = SessionState.get().getTxnState();
+        if (!txnState.isTxnInProgress()) {
+            throw new IllegalStateException(
+                "No transaction is currently in progress.");
+        }
+
+        lockManager.lockTable(txnState, tableName, mode);
+    }
+
+
     public void startTransaction(boolean userStarted) throws TransactionException {
         SessionState state = SessionState.get();
         TransactionState txnState = state.getTxnState();
@@ -301,7 +693,8 @@ public class TransactionManager implements BufferManagerObserver {
     }
 
 
-    public void recordPageUpdate(DBPage dbPage) throws IOException {
+    public synchronized void recordPageUpdate(DBPage dbPage)
+        throws IOException {
         if (!dbPage.isDirty()) {
             logger.debug("Page reports it is not dirty; not logging update.");
             return;
@@ -312,8 +705,11 @@ public class TransactionManager implements BufferManagerObserver {
 
         TransactionState txnState = SessionState.get().getTxnState();
         if (!txnState.hasLoggedTxnStart()) {
-            walManager.writeTxnRecord(WALRecordType.START_TXN);
+            LogSequenceNumber startLSN =
+                walManager.writeTxnRecord(WALRecordType.START_TXN);
             txnState.setLoggedTxnStart(true);
+            txnState.setFirstLSN(startLSN);
+            activeTxns.put(txnState.getTransactionID(), txnState);
         }
 
         walManager.writeUpdatePageRecord(dbPage);
@@ -338,10 +734,21 @@ public class TransactionManager implements BufferManagerObserver {
 
         if (txnState.hasLoggedTxnStart()) {
             // Must record the transaction as committed to the write-ahead log.
-            // Then, we must force the WAL to include this commit record.
+            // Then, we must force the WAL to include this commit record.  With
+            // group commit, the flusher thread forces the WAL for us, along
+            // with the commit records of other transactions.
             try {
-                walManager.writeTxnRecord(WALRecordType.COMMIT_TXN);
-                forceWAL(walManager.getNextLSN());
+                LogSequenceNumber commitLSN;
+                synchronized (this) {
+                    commitLSN = walManager.writeTxnRecord(
+                        WALRecordType.COMMIT_TXN);
+                    activeTxns.remove(txnID);
+                }
+
+                if (groupCommitter != null)
+                    groupCommitter.commit(commitLSN);
+                else
+                    forceWAL(commitLSN);
             }
             catch (IOException e) {
                 throw new TransactionException("Couldn't commit transaction " +
@@ -353,9 +760,10 @@ public class TransactionManager implements BufferManagerObserver {
                 "recording transaction-commit to WAL.");
         }
 
-        // Now that the transaction is successfully committed, clear the current
-        // transaction state.
+        // Now that the transaction is successfully committed, its locks can be
+        // released, and the current transaction state cleared.
         logger.debug("Transaction completed, resetting transaction state.");
+        lockManager.releaseAll(txnState);
         txnState.clear();
     }
 
@@ -378,7 +786,10 @@ public class TransactionManager implements BufferManagerObserver {
         if (txnState.hasLoggedTxnStart()) {
             // Must rollback the transaction using the write-ahead log.
             try {
-                walManager.rollbackTransaction();
+                synchronized (this) {
+                    walManager.rollbackTransaction();
+                    activeTxns.remove(txnID);
+                }
             }
             catch (IOException e) {
                 throw new TransactionException(
@@ -390,9 +801,10 @@ public class TransactionManager implements BufferManagerObserver {
                 "recording transaction-rollback to WAL.");
         }
 
-        // Now that the transaction is successfully rolled back, clear the
-        // current transaction state.
+        // Now that the transaction is successfully rolled back, its locks can
+        // be released, and the current transaction state cleared.
         logger.debug("Transaction completed, resetting transaction state.");
+        lockManager.releaseAll(txnState);
         txnState.clear();
     }
 
@@ -436,9 +848,11 @@ public class TransactionManager implements BufferManagerObserver {
         LogSequenceNumber maxLSN = null;
         for (int i = 0; i < pages.size(); i++ ){
             DBPage curPage = pages.get(i);
-            // If it is WRITE_AHEAD_LOG_FILE or TXNSTATE_FILE, then ignore the page.
+            // If it is WRITE_AHEAD_LOG_FILE, TXNSTATE_FILE or TEMP_FILE, then
+            // ignore the page.
             if (curPage.getDBFile().getType() == DBFileType.WRITE_AHEAD_LOG_FILE ||
-                    curPage.getDBFile().getType() == DBFileType.TXNSTATE_FILE){
+                    curPage.getDBFile().getType() == DBFileType.TXNSTATE_FILE ||
+                    curPage.getDBFile().getType() == DBFileType.TEMP_FILE){
                 continue;
             }
 
@@ -471,7 +885,8 @@ public class TransactionManager implements BufferManagerObserver {
      *         WAL file to disk.  If a failure occurs, the database is probably
      *         going to be broken.
      */
-    public void forceWAL(LogSequenceNumber lsn) throws IOException {
+    public synchronized void forceWAL(LogSequenceNumber lsn)
+        throws IOException {
         /* This operation is durable because we are storing the data from the transaction
          * (everything in between the txnStateNextLSN and the WAL-lsn) on the
          * disk. It is also atomic because we do not officially record that the data has
@@ -483,34 +898,21 @@ public class TransactionManager implements BufferManagerObserver {
         if (lsn.compareTo(txnStateNextLSN) <= 0){
             return;
         }
-        int firstFileNo = txnStateNextLSN.getLogFileNo();
-        int lastFileNo = lsn.getLogFileNo();
-
-        // Iteratively add each file, starting with the first one and ending with the last one,
-        // to disk if necessary
-            for (int fileNo = firstFileNo; fileNo <= lastFileNo; fileNo++) {
-                String fileName = WALManager.getWALFileName(fileNo);
-                BufferManager bufferManager = storageManager.getBufferManager();
-                DBFile file = bufferManager.getFile(fileName);
-                if (file == null) { // File is not currently open, can skip
-                    continue;
-                }
-                if (fileNo == lastFileNo) {
-                    // Must only write pages up to and including the WAL-lsn.
-                    int lastPageNo = lsn.getFileOffset() / file.getPageSize();
-                    bufferManager.writeDBFile(file, 0, lastPageNo, true);
-
-                } else { // If not the last file, we must write all the dirty pages of the file
-                    bufferManager.writeDBFile(file, true);
-                }
-            }
-
+        // Write out everything in the WAL buffer, which includes the record
+        // at the specified LSN, and sync the WAL files that were written.
+        LogSequenceNumber flushedLSN = walManager.flushWAL(/* sync */ true);
 
         // Note that the "next LSN" value must be determined from both the
         // current LSN *and* its record size; otherwise we lose the last log
         // record in the WAL file.
         int lastPosition = lsn.getFileOffset() + lsn.getRecordSize();
         txnStateNextLSN = WALManager.computeNextLSN(lsn.getLogFileNo(), lastPosition);
+
+        // Records after the specified LSN may also have been written, so
+        // they don't need to be forced again.
+        if (flushedLSN.compareTo(txnStateNextLSN) > 0)
+            txnStateNextLSN = flushedLSN;
+
         // Updates transaction state after correct files are written
         storeTxnStateToFile();
     }
@@ -528,4 +930,109 @@ public class TransactionManager implements BufferManagerObserver {
     public void forceWAL() throws IOException {
         forceWAL(walManager.getNextLSN());
     }
+
+
+    /**
+     * Takes a fuzzy checkpoint, so that recovery can start from a later
+     * point in the write-ahead log, and so that WAL files from before that
+     * point can be deleted.  Transactions continue to run while the
+     * checkpoint is taken; they are only held up while the checkpoint record
+     * itself is written.
+     * <p>
+     * A checkpoint proceeds as follows:
+     * <ol>
+     * <li>Dirty pages that were already dirty at the previous checkpoint are
+     *     written out, so that the start of recovery keeps moving forward
+     *     even for pages that are changed all the time.</li>
+     * <li>A checkpoint record is written, listing the transactions that are
+     *     in progress and the dirty pages in the Buffer Manager, along with
+     *     the LSN of the first unwritten change to each page.</li>
+     * <li>The table files are synced, since pages evicted from the Buffer
+     *     Manager are written without syncing, and the WAL is forced past
+     *     the checkpoint record.</li>
+     * <li>The "first LSN" is advanced to the earliest LSN that recovery still
+     *     needs, which is the checkpoint record itself, the first unwritten
+     *     change to a dirty page, or the start of an active transaction.
+     *     This value and the checkpoint's LSN are stored into the
+     *     transaction-state file, and older WAL files are deleted.</li>
+     * </ol>
+     *
+     * @throws IOException if an IO error occurs while writing pages, or while
+     *         updating the write-ahead log or the transaction-state file
+     */
+    public void checkpoint() throws IOException {
+        synchronized (checkpointLock) {
+            LogSequenceNumber prevCheckpointLSN;
+            synchronized (this) {
+                LogSequenceNumber nextLSN = walManager.getNextLSN();
+                if (nextLSN.equals(checkpointNextLSN) ||
+                    nextLSN.equals(walManager.getFirstLSN())) {
+                    logger.debug("Nothing has been logged since the last " +
+                        "checkpoint; skipping checkpoint.");
+                    return;
+                }
+
+                prevCheckpointLSN = walManager.getCheckpointLSN();
+            }
+
+            BufferManager bufferManager = storageManager.getBufferManager();
+            if (prevCheckpointLSN != null)
+                bufferManager.writeDirtyPagesBefore(prevCheckpointLSN);
+
+            // No WAL records may be written while the dirty-page table and
+            // the active transactions are recorded.
+            LogSequenceNumber checkpointLSN;
+            LogSequenceNumber newFirstLSN;
+            synchronized (this) {
+                List<DBPage> dirtyPages = bufferManager.getDirtyPages();
+                ArrayList<TransactionState> txns =
+                    new ArrayList<>(activeTxns.values());
+
+                checkpointLSN = walManager.writeCheckpointRecord(txns,
+                    dirtyPages);
+                checkpointNextLSN = walManager.getNextLSN();
+
+                newFirstLSN = checkpointLSN;
+                for (TransactionState txnState : txns) {
+                    if (txnState.getFirstLSN().compareTo(newFirstLSN) < 0)
+                        newFirstLSN = txnState.getFirstLSN();
+                }
+
+                for (DBPage dbPage : dirtyPages) {
+                    DBFileType type = dbPage.getDBFile().getType();
+                    if (type == DBFileType.WRITE_AHEAD_LOG_FILE ||
+                        type == DBFileType.TXNSTATE_FILE ||
+                        type == DBFileType.TEMP_FILE) {
+                        continue;
+                    }
+
+                    LogSequenceNumber recoveryLSN = dbPage.getRecoveryLSN();
+                    if (recoveryLSN != null &&
+                        recoveryLSN.compareTo(newFirstLSN) < 0) {
+                        newFirstLSN = recoveryLSN;
+                    }
+                }
+            }
+
+            bufferManager.syncDataFiles();
+            forceWAL(checkpointLSN);
+
+            synchronized (this) {
+                LogSequenceNumber oldFirstLSN = walManager.getFirstLSN();
+                if (newFirstLSN.compareTo(oldFirstLSN) < 0)
+                    newFirstLSN = oldFirstLSN;
+
+                walManager.setFirstLSN(newFirstLSN);
+                walManager.setCheckpointLSN(checkpointLSN);
+                storeTxnStateToFile();
+
+                walManager.deleteOldWALFiles(oldFirstLSN.getLogFileNo());
+            }
+
+            logger.info(String.format("Took checkpoint at LSN %s; recovery " +
+                "will start from LSN %s.", checkpointLSN, newFirstLSN));
+
+            PerformanceCounters.inc(PerformanceCounters.TXNS_CHECKPOINTS);
+        }
+    }
 }
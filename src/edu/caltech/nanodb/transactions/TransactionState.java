@@ -39,6 +39,14 @@ public class TransactionState {
     private boolean loggedTxnStart = false;
 
 
+    /**
+     * The log sequence number of the transaction's "T<sub>i</sub>:  start"
+     * record, or {@code null} if it hasn't been logged yet.  Recovery must
+     * start no later than this point while the transaction is in progress.
+     */
+    private LogSequenceNumber firstLSN = null;
+
+
     private LogSequenceNumber lastLSN = null;
 
 
@@ -82,6 +90,16 @@ public class TransactionState {
     }
 
 
+    public LogSequenceNumber getFirstLSN() {
+        return firstLSN;
+    }
+
+
+    public void setFirstLSN(LogSequenceNumber lsn) {
+        firstLSN = lsn;
+    }
+
+
     public LogSequenceNumber getLastLSN() {
         return lastLSN;
     }
@@ -94,6 +112,7 @@ public class TransactionState {
 
     public void clear() {
         transactionID = NO_TRANSACTION;
+        firstLSN = null;
         lastLSN = null;
         userStartedTxn = false;
         performedWrites = false;
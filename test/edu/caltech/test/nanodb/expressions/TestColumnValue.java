@@ -0,0 +1,121 @@
+package edu.caltech.test.nanodb.expressions;
+
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import edu.caltech.nanodb.expressions.ColumnName;
+import edu.caltech.nanodb.expressions.ColumnValue;
+import edu.caltech.nanodb.expressions.Environment;
+import edu.caltech.nanodb.expressions.ExpressionException;
+import edu.caltech.nanodb.expressions.TupleLiteral;
+import edu.caltech.nanodb.relations.ColumnInfo;
+import edu.caltech.nanodb.relations.ColumnType;
+import edu.caltech.nanodb.relations.SQLDataType;
+import edu.caltech.nanodb.relations.Schema;
+
+
+/**
+ * This test class exercises the evaluation of {@link ColumnValue}
+ * expressions, both when the column is resolved by name and when the
+ * column reference has been bound to a tuple position and column index.
+ */
+@Test
+public class TestColumnValue {
+
+    private Schema schemaT;
+
+    private Schema schemaU;
+
+    private TupleLiteral tupleT;
+
+    private TupleLiteral tupleU;
+
+
+    @BeforeMethod
+    public void setUp() {
+        ColumnType intType = new ColumnType(SQLDataType.INTEGER);
+
+        schemaT = new Schema();
+        schemaT.addColumnInfo(new ColumnInfo("a", "t", intType));
+        schemaT.addColumnInfo(new ColumnInfo("b", "t", intType));
+
+        schemaU = new Schema();
+        schemaU.addColumnInfo(new ColumnInfo("b", "u", intType));
+        schemaU.addColumnInfo(new ColumnInfo("c", "u", intType));
+
+        tupleT = new TupleLiteral(1, 2);
+        tupleU = new TupleLiteral(3, 4);
+    }
+
+
+    private Environment makeEnvironment(Schema... schemas) {
+        Environment env = new Environment();
+        for (Schema schema : schemas)
+            env.addTuple(schema, schema == schemaT ? tupleT : tupleU);
+
+        return env;
+    }
+
+
+    public void testBoundEvaluation() {
+        ColumnValue a = new ColumnValue(new ColumnName("a"));
+        ColumnValue ub = new ColumnValue(new ColumnName("u", "b"));
+        ColumnValue c = new ColumnValue(new ColumnName("c"));
+
+        assert a.bind(schemaT, schemaU);
+        assert ub.bind(schemaT, schemaU);
+        assert c.bind(schemaT, schemaU);
+
+        Environment env = makeEnvironment(schemaT, schemaU);
+        assert a.evaluate(env).equals(1);
+        assert ub.evaluate(env).equals(3);
+        assert c.evaluate(env).equals(4);
+    }
+
+
+    public void testUnboundColumns() {
+        // Ambiguous, unknown and wildcard columns are left unbound.
+        ColumnValue b = new ColumnValue(new ColumnName("b"));
+        ColumnValue d = new ColumnValue(new ColumnName("d"));
+        ColumnValue star = new ColumnValue(new ColumnName());
+
+        assert !b.bind(schemaT, schemaU);
+        assert !b.isBound();
+        assert !d.bind(schemaT, schemaU);
+        assert !star.bind(schemaT);
+
+        // Unbound columns still report errors during evaluation.
+        Environment env = makeEnvironment(schemaT, schemaU);
+        try {
+            b.evaluate(env);
+            assert false : "Expected ambiguous column to be reported";
+        }
+        catch (ExpressionException e) {
+            // Success.
+        }
+
+        // Unbound columns can still be resolved from a parent environment.
+        Environment child = makeEnvironment(schemaT);
+        child.addParentEnvironment(makeEnvironment(schemaU));
+        ColumnValue c = new ColumnValue(new ColumnName("c"));
+        assert !c.bind(schemaT);
+        assert c.evaluate(child).equals(4);
+    }
+
+
+    public void testMismatchedEnvironment() {
+        // A column bound against one arrangement of schemas must still be
+        // resolved correctly in an environment with different schemas.
+        ColumnValue b = new ColumnValue(new ColumnName("b"));
+        assert b.bind(schemaT);
+
+        assert b.evaluate(makeEnvironment(schemaT)).equals(2);
+        assert b.evaluate(makeEnvironment(schemaU)).equals(3);
+
+        ColumnValue a = new ColumnValue(new ColumnName("a"));
+        assert a.bind(schemaT, schemaU);
+        assert a.evaluate(makeEnvironment(schemaU, schemaT)).equals(1);
+        assert a.evaluate(makeEnvironment(schemaT)).equals(1);
+    }
+}
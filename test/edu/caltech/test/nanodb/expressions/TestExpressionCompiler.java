@@ -0,0 +1,198 @@
+package edu.caltech.test.nanodb.expressions;
+
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import edu.caltech.nanodb.expressions.ArithmeticOperator;
+import edu.caltech.nanodb.expressions.BooleanOperator;
+import edu.caltech.nanodb.expressions.ColumnBinder;
+import edu.caltech.nanodb.expressions.ColumnName;
+import edu.caltech.nanodb.expressions.ColumnValue;
+import edu.caltech.nanodb.expressions.CompareOperator;
+import edu.caltech.nanodb.expressions.CompiledExpression;
+import edu.caltech.nanodb.expressions.Environment;
+import edu.caltech.nanodb.expressions.Expression;
+import edu.caltech.nanodb.expressions.ExpressionCompiler;
+import edu.caltech.nanodb.expressions.IsNullOperator;
+import edu.caltech.nanodb.expressions.LiteralValue;
+import edu.caltech.nanodb.expressions.TupleLiteral;
+import edu.caltech.nanodb.relations.ColumnInfo;
+import edu.caltech.nanodb.relations.ColumnType;
+import edu.caltech.nanodb.relations.SQLDataType;
+import edu.caltech.nanodb.relations.Schema;
+
+
+/**
+ * This test class verifies that expressions compiled by the
+ * {@link ExpressionCompiler} produce the same results as the expression
+ * interpreter, for a variety of operators, value types, and <tt>NULL</tt>
+ * values.
+ */
+@Test
+public class TestExpressionCompiler {
+
+    private Schema schema;
+
+    /** The tuples that each expression is evaluated against. */
+    private List<TupleLiteral> tuples;
+
+
+    @BeforeMethod
+    public void setUp() {
+        schema = new Schema();
+        schema.addColumnInfo(new ColumnInfo("i", "t",
+            new ColumnType(SQLDataType.INTEGER)));
+        schema.addColumnInfo(new ColumnInfo("j", "t",
+            new ColumnType(SQLDataType.INTEGER)));
+        schema.addColumnInfo(new ColumnInfo("l", "t",
+            new ColumnType(SQLDataType.BIGINT)));
+        schema.addColumnInfo(new ColumnInfo("d", "t",
+            new ColumnType(SQLDataType.DOUBLE)));
+        schema.addColumnInfo(new ColumnInfo("s", "t",
+            new ColumnType(SQLDataType.VARCHAR)));
+
+        Integer[] ints = { null, -3, 0, 2, 5 };
+        String[] strs = { null, "", "abc", "abd" };
+
+        tuples = new ArrayList<>();
+        for (Integer i : ints) {
+            for (Integer j : ints) {
+                for (String s : strs) {
+                    Long l = (j != null) ? Long.valueOf(j * 1000L) : null;
+                    Double d = (i != null) ? Double.valueOf(i / 2.0) : null;
+                    tuples.add(new TupleLiteral(i, j, l, d, s));
+                }
+            }
+        }
+    }
+
+
+    private static ColumnValue col(String name) {
+        return new ColumnValue(new ColumnName(name));
+    }
+
+
+    private static LiteralValue lit(Object value) {
+        return new LiteralValue(value);
+    }
+
+
+    private static Expression cmp(CompareOperator.Type type, Expression lhs,
+                                  Expression rhs) {
+        return new CompareOperator(type, lhs, rhs);
+    }
+
+
+    private static Expression bool(BooleanOperator.Type type,
+                                   Expression... terms) {
+        return new BooleanOperator(type, Arrays.asList(terms));
+    }
+
+
+    private static Expression arith(ArithmeticOperator.Type type,
+                                     Expression lhs, Expression rhs) {
+        return new ArithmeticOperator(type, lhs, rhs);
+    }
+
+
+    /**
+     * Binds and compiles the expression, then checks that the compiled
+     * expression produces the same value and predicate result as the
+     * interpreter for every test tuple.
+     */
+    private void checkExpression(Expression expr) {
+        ColumnBinder.bindColumns(expr, schema);
+        CompiledExpression compiled = ExpressionCompiler.compile(expr);
+
+        Environment env = new Environment();
+        for (TupleLiteral tuple : tuples) {
+            env.clear();
+            env.addTuple(schema, tuple);
+
+            Object expected = expr.evaluate(env);
+            Object actual = compiled.evaluate(env);
+            assert (expected == null) ? actual == null : expected.equals(actual) :
+                expr + " on " + tuple + ":  expected " + expected +
+                ", got " + actual;
+
+            if (expected == null || expected instanceof Boolean) {
+                assert expr.evaluatePredicate(env) ==
+                    compiled.evaluatePredicate(env) : expr + " on " + tuple;
+            }
+        }
+    }
+
+
+    public void testComparisons() {
+        for (CompareOperator.Type type : CompareOperator.Type.values()) {
+            // Column types that match each other or the literal.
+            checkExpression(cmp(type, col("i"), col("j")));
+            checkExpression(cmp(type, col("i"), lit(2)));
+            checkExpression(cmp(type, lit(0), col("j")));
+            checkExpression(cmp(type, col("l"), col("l")));
+            checkExpression(cmp(type, col("d"), lit(1.0)));
+            checkExpression(cmp(type, col("s"), lit("abc")));
+
+            // Literals that are widened to the column's type.
+            checkExpression(cmp(type, col("l"), lit(2000)));
+            checkExpression(cmp(type, lit(-3), col("d")));
+            checkExpression(cmp(type, col("d"), lit(2000L)));
+
+            // Mixed types, compared with the interpreter's coercion.
+            checkExpression(cmp(type, col("i"), col("l")));
+            checkExpression(cmp(type, col("i"), col("d")));
+            checkExpression(cmp(type, col("i"), lit(2.5)));
+            checkExpression(cmp(type, col("s"), lit(null)));
+        }
+    }
+
+
+    public void testBooleanOperators() {
+        Expression iPositive = cmp(CompareOperator.Type.GREATER_THAN,
+            col("i"), lit(0));
+        Expression jSmall = cmp(CompareOperator.Type.LESS_OR_EQUAL,
+            col("j"), lit(2));
+        Expression sMatch = cmp(CompareOperator.Type.EQUALS,
+            col("s"), lit("abd"));
+
+        checkExpression(bool(BooleanOperator.Type.AND_EXPR,
+            iPositive, jSmall));
+        checkExpression(bool(BooleanOperator.Type.OR_EXPR,
+            iPositive, jSmall, sMatch));
+        checkExpression(bool(BooleanOperator.Type.NOT_EXPR, iPositive));
+        checkExpression(bool(BooleanOperator.Type.NOT_EXPR,
+            bool(BooleanOperator.Type.OR_EXPR, jSmall, sMatch)));
+
+        // Nodes that aren't compiled are still evaluated correctly.
+        checkExpression(bool(BooleanOperator.Type.AND_EXPR,
+            new IsNullOperator(col("s"), true), iPositive));
+    }
+
+
+    public void testArithmetic() {
+        for (ArithmeticOperator.Type type : ArithmeticOperator.Type.values()) {
+            if (type == ArithmeticOperator.Type.DIVIDE ||
+                type == ArithmeticOperator.Type.REMAINDER) {
+                // Only divide integers by a nonzero value, since integer
+                // remainders by zero throw an exception.
+                checkExpression(arith(type, col("j"), lit(3)));
+                checkExpression(arith(type, col("d"), col("d")));
+                continue;
+            }
+
+            checkExpression(arith(type, col("i"), col("j")));
+            checkExpression(arith(type, col("l"), col("l")));
+            checkExpression(arith(type, col("d"), lit(1.5)));
+            checkExpression(arith(type, col("i"), col("l")));
+            checkExpression(arith(type, col("j"), col("d")));
+        }
+
+        checkExpression(cmp(CompareOperator.Type.GREATER_THAN,
+            arith(ArithmeticOperator.Type.ADD, col("i"), col("j")), lit(3)));
+    }
+}
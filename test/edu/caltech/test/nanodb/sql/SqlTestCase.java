@@ -7,6 +7,7 @@ import java.io.InputStream;
 
 import java.util.Collections;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Properties;
@@ -59,6 +60,16 @@ public class SqlTestCase {
     private String setupSQLPropName;
 
 
+    /**
+     * The original values of the system properties that this test case has
+     * changed with {@link #setTestProperty}, so that they can be restored
+     * when the test case is done.  A {@code null} value means the property
+     * was not set.
+     */
+    private LinkedHashMap<String, String> savedProperties =
+        new LinkedHashMap<>();
+
+
 
     public SqlTestCase(String setupSQLPropName) {
         this.setupSQLPropName = setupSQLPropName;
@@ -140,6 +151,10 @@ public class SqlTestCase {
         // Shut down the database server and clean up the testing base-directory.
         server.shutdown();
 
+        // Don't let settings such as a tiny working memory leak into the
+        // test cases that run after this one.
+        restoreProperties();
+
         // Try to clean up the testing directory.
         /*try {
             //FileUtils.cleanDirectory(testBaseDir);
@@ -151,6 +166,39 @@ public class SqlTestCase {
     }
 
 
+    /**
+     * Sets a system property for this test case.  The property's original
+     * value is recorded the first time it is set, and is restored by
+     * {@link #restoreProperties}, which is called after the test case runs.
+     *
+     * @param name the name of the property to set
+     *
+     * @param value the value to set the property to
+     */
+    protected void setTestProperty(String name, String value) {
+        if (!savedProperties.containsKey(name))
+            savedProperties.put(name, System.getProperty(name));
+
+        System.setProperty(name, value);
+    }
+
+
+    /**
+     * Restores all system properties set with {@link #setTestProperty} to
+     * their original values, clearing the ones that were not set before.
+     */
+    protected void restoreProperties() {
+        for (String name : savedProperties.keySet()) {
+            String value = savedProperties.get(name);
+            if (value != null)
+                System.setProperty(name, value);
+            else
+                System.clearProperty(name);
+        }
+        savedProperties.clear();
+    }
+
+
     public CommandResult tryDoCommand(String command, boolean includeTuples)
         throws Exception {
         CommandResult result = server.doCommand(command, includeTuples);
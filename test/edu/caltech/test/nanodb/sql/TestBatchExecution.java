@@ -0,0 +1,89 @@
+package edu.caltech.test.nanodb.sql;
+
+
+import java.util.List;
+
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import edu.caltech.nanodb.expressions.TupleLiteral;
+import edu.caltech.nanodb.queryeval.ExecutionProperties;
+
+
+/**
+ * This class verifies that queries executed a batch of tuples at a time
+ * produce exactly the same results, in the same order, as queries executed
+ * a tuple at a time.  The table spans several batches, and includes
+ * <tt>NULL</tt> values in every column.
+ */
+@Test
+public class TestBatchExecution extends SqlTestCase {
+
+    /** The number of rows in the test table. */
+    private static final int NUM_ROWS = 2500;
+
+
+    @BeforeClass
+    @Override
+    public void beforeClass() throws Exception {
+        super.beforeClass();
+
+        server.doCommand("CREATE TABLE test_batch (id INTEGER, k INTEGER, " +
+            "b BIGINT, d DOUBLE, s VARCHAR(20))", false);
+
+        for (int i = 0; i < NUM_ROWS; i++) {
+            server.doCommand(String.format("INSERT INTO test_batch VALUES " +
+                "(%d, %s, %s, %s, %s)", i,
+                (i % 13 == 0) ? "NULL" : Integer.toString(i % 50),
+                (i % 17 == 0) ? "NULL" : Long.toString(i * 100000L),
+                (i % 19 == 0) ? "NULL" : Double.toString(i / 4.0),
+                (i % 23 == 0) ? "NULL" : "'str" + (i % 7) + "'"), false);
+        }
+    }
+
+
+    /**
+     * Runs the query with and without batch execution, and checks that the
+     * two results are identical.
+     */
+    private void checkQuery(String query) throws Exception {
+        setTestProperty(ExecutionProperties.PROP_VECTORIZED, "false");
+        List<TupleLiteral> expected = getResultTuples(query);
+
+        setTestProperty(ExecutionProperties.PROP_VECTORIZED, "true");
+        List<TupleLiteral> actual = getResultTuples(query);
+
+        TupleLiteral[] expectedArray =
+            expected.toArray(new TupleLiteral[expected.size()]);
+        assert sameResultsOrdered(expectedArray, actual) : query;
+    }
+
+
+    public void testScansAndFilters() throws Exception {
+        checkQuery("SELECT * FROM test_batch");
+        checkQuery("SELECT * FROM test_batch WHERE k < 20");
+        checkQuery("SELECT * FROM test_batch WHERE 30 <= k AND b > 5000000");
+        checkQuery("SELECT * FROM test_batch WHERE k <> 7 AND d >= 100.5");
+        checkQuery("SELECT * FROM test_batch WHERE b = 12300000 OR k = 3");
+        checkQuery("SELECT * FROM test_batch WHERE k > 10 AND s = 'str3'");
+        checkQuery("SELECT * FROM test_batch WHERE k > 2.5 AND d < 300");
+        checkQuery("SELECT * FROM test_batch WHERE k = 1000");
+    }
+
+
+    public void testProjections() throws Exception {
+        checkQuery("SELECT s, id, d FROM test_batch");
+        checkQuery("SELECT id, k + 1 AS k1, b * 2 AS b2, d / 2 AS d2 " +
+            "FROM test_batch WHERE id >= 1000");
+        checkQuery("SELECT k / 3 AS q, s FROM test_batch WHERE k IS NOT NULL");
+    }
+
+
+    public void testGroupBy() throws Exception {
+        checkQuery("SELECT k, COUNT(*), SUM(b), MIN(d), MAX(s) " +
+            "FROM test_batch GROUP BY k");
+        checkQuery("SELECT s, AVG(k) FROM test_batch WHERE id < 2000 " +
+            "GROUP BY s");
+        checkQuery("SELECT COUNT(k), COUNT(s) FROM test_batch");
+    }
+}
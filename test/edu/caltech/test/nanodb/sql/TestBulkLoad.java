@@ -0,0 +1,171 @@
+package edu.caltech.test.nanodb.sql;
+
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import edu.caltech.nanodb.expressions.TupleLiteral;
+import edu.caltech.nanodb.indexes.IndexInfo;
+import edu.caltech.nanodb.indexes.IndexUtils;
+import edu.caltech.nanodb.relations.TableInfo;
+import edu.caltech.nanodb.server.CommandResult;
+import edu.caltech.nanodb.storage.StorageManager;
+
+
+/**
+ * This class exercises indexes that are built with the B<sup>+</sup> tree
+ * bulk-loader, either by creating an index on a table that already holds
+ * data, or by optimizing an existing index.  The tables are large enough
+ * that the indexes have several levels, and the index keys include
+ * duplicates and <tt>NULL</tt>s.  After each index is built, its structure
+ * is verified, and it is checked against the table's contents.
+ */
+@Test
+public class TestBulkLoad extends SqlTestCase {
+
+    /** The number of rows in each table. */
+    private static final int NUM_ROWS = 3000;
+
+
+    @BeforeClass
+    @Override
+    public void beforeClass() throws Exception {
+        super.beforeClass();
+
+        StringBuilder padding = new StringBuilder();
+        for (int i = 0; i < 80; i++)
+            padding.append('x');
+
+        for (String table : new String[] {"test_bl", "test_bl_mod"}) {
+            server.doCommand("CREATE TABLE " + table + " (id INTEGER, " +
+                "k INTEGER, s VARCHAR(100))", false);
+
+            for (int i = 0; i < NUM_ROWS; i++) {
+                server.doCommand(String.format("INSERT INTO %s VALUES " +
+                    "(%d, %s, '%s')", table, i, key(i), padding), false);
+            }
+        }
+
+        server.doCommand("CREATE TABLE test_bl_opt (id INTEGER, k INTEGER)",
+            false);
+        server.doCommand("CREATE INDEX idx_bl_opt ON test_bl_opt (k)", false);
+        for (int i = 0; i < NUM_ROWS; i++) {
+            server.doCommand(String.format("INSERT INTO test_bl_opt VALUES " +
+                "(%d, %s)", i, key(i)), false);
+        }
+    }
+
+
+    private static Integer key(int i) {
+        return (i % 40 == 0) ? null : (i * 13) % 700;
+    }
+
+
+    public void testCreateIndex() throws Throwable {
+        tryDoCommand("CREATE INDEX idx_bl_k ON test_bl (k)");
+        checkIndex("test_bl", "idx_bl_k");
+
+        checkQuery("SELECT id FROM test_bl WHERE k = 13", 13, 13, 0, NUM_ROWS);
+        checkQuery("SELECT id FROM test_bl WHERE k = 699", 699, 699, 0, NUM_ROWS);
+        checkQuery("SELECT id FROM test_bl WHERE k >= 100 AND k < 120",
+            100, 119, 0, NUM_ROWS);
+    }
+
+
+    public void testCreateUniqueIndex() throws Throwable {
+        // The id column is unique, so the index can be created.
+        tryDoCommand("CREATE UNIQUE INDEX idx_bl_id ON test_bl (id)");
+        checkIndex("test_bl", "idx_bl_id");
+
+        CommandResult result = server.doCommand(
+            "SELECT k FROM test_bl WHERE id = 1234", true);
+        assert checkUnorderedResults(
+            new TupleLiteral[] { new TupleLiteral((Object) key(1234)) }, result);
+
+        // The b column has duplicates, so the index can't be created.  A
+        // separate table is used, since the failed index isn't removed.
+        tryDoCommand("CREATE TABLE test_bl_dup (a INTEGER, b INTEGER)");
+        for (int i = 0; i < 500; i++) {
+            tryDoCommand(String.format("INSERT INTO test_bl_dup VALUES " +
+                "(%d, %d)", i, (i == 321) ? 17 : i));
+        }
+
+        result = server.doCommand(
+            "CREATE UNIQUE INDEX idx_bl_dup ON test_bl_dup (b)", false);
+        assert result.failed();
+    }
+
+
+    public void testModifyAfterCreateIndex() throws Throwable {
+        tryDoCommand("CREATE INDEX idx_bl_mod ON test_bl_mod (k)");
+
+        // Insertions into the packed pages will split them.
+        for (int i = NUM_ROWS; i < NUM_ROWS + 500; i++) {
+            tryDoCommand(String.format("INSERT INTO test_bl_mod VALUES " +
+                "(%d, %s, 'new')", i, key(i)));
+        }
+        tryDoCommand("DELETE FROM test_bl_mod WHERE id < 1000");
+
+        checkIndex("test_bl_mod", "idx_bl_mod");
+        checkQuery("SELECT id FROM test_bl_mod WHERE k = 52", 52, 52,
+            1000, NUM_ROWS + 500);
+    }
+
+
+    public void testOptimize() throws Throwable {
+        tryDoCommand("OPTIMIZE test_bl_opt");
+        checkIndex("test_bl_opt", "idx_bl_opt");
+
+        checkQuery("SELECT id FROM test_bl_opt WHERE k = 91", 91, 91,
+            0, NUM_ROWS);
+
+        tryDoCommand("INSERT INTO test_bl_opt VALUES (-1, 91)");
+        checkIndex("test_bl_opt", "idx_bl_opt");
+    }
+
+
+    /**
+     * Verifies the structure of the specified index, and that it holds
+     * exactly one entry for each row of the table.  The names are
+     * upper-cased, since the SQL lexer upper-cases identifiers.
+     */
+    private void checkIndex(String tableName, String indexName)
+        throws Exception {
+
+        StorageManager storageManager = server.getStorageManager();
+        TableInfo tableInfo =
+            storageManager.getTableManager().openTable(tableName.toUpperCase());
+        IndexInfo indexInfo =
+            storageManager.getIndexManager().openIndex(tableInfo,
+            indexName.toUpperCase());
+
+        List<String> errors = indexInfo.getTupleFile().verify();
+        assert errors.isEmpty() : errors;
+
+        errors = IndexUtils.verifyIndex(tableInfo.getTupleFile(),
+            indexInfo.getTupleFile());
+        assert errors.isEmpty() : errors;
+    }
+
+
+    /**
+     * Checks that a query returns the IDs of the rows in the specified ID
+     * range whose keys are in the specified key range.
+     */
+    private void checkQuery(String query, int lowKey, int highKey,
+                            int lowId, int highId) throws Throwable {
+        ArrayList<TupleLiteral> expected = new ArrayList<>();
+        for (int i = lowId; i < highId; i++) {
+            Integer k = key(i);
+            if (k != null && k >= lowKey && k <= highKey)
+                expected.add(new TupleLiteral((Object) i));
+        }
+
+        CommandResult result = server.doCommand(query, true);
+        assert checkUnorderedResults(
+            expected.toArray(new TupleLiteral[expected.size()]), result) : query;
+    }
+}
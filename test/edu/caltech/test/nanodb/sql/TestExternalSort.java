@@ -0,0 +1,95 @@
+package edu.caltech.test.nanodb.sql;
+
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import edu.caltech.nanodb.expressions.TupleLiteral;
+import edu.caltech.nanodb.queryeval.ExecutionProperties;
+import edu.caltech.nanodb.server.CommandResult;
+
+
+/**
+ * This class exercises ORDER BY queries that are large enough, relative to
+ * the configured working memory, that the sort must write out sorted runs
+ * and merge them, in more than one pass.  The expected results are computed
+ * directly from the generated data.
+ */
+@Test
+public class TestExternalSort extends SqlTestCase {
+
+    /** The number of rows in the table. */
+    private static final int NUM_ROWS = 6000;
+
+
+    @BeforeClass
+    @Override
+    public void beforeClass() throws Exception {
+        super.beforeClass();
+
+        setTestProperty(ExecutionProperties.PROP_WORK_MEM,
+            Long.toString(ExecutionProperties.MIN_WORK_MEM));
+
+        server.doCommand("CREATE TABLE test_ext_sort (id INTEGER, k INTEGER, " +
+            "s VARCHAR(40))", false);
+
+        for (int i = 0; i < NUM_ROWS; i++) {
+            server.doCommand(String.format("INSERT INTO test_ext_sort VALUES " +
+                "(%d, %d, 'row %d padding')", i, key(i), i), false);
+        }
+    }
+
+
+    private static int key(int i) {
+        return (i * 7919) % 1013;
+    }
+
+
+    public void testSortAscending() throws Throwable {
+        checkSorted("SELECT k, id, s FROM test_ext_sort ORDER BY k, id",
+            new Comparator<int[]>() {
+                public int compare(int[] a, int[] b) {
+                    if (a[0] != b[0])
+                        return Integer.compare(a[0], b[0]);
+                    return Integer.compare(a[1], b[1]);
+                }
+            });
+    }
+
+
+    public void testSortMixedDirections() throws Throwable {
+        checkSorted("SELECT k, id, s FROM test_ext_sort ORDER BY k DESC, id",
+            new Comparator<int[]>() {
+                public int compare(int[] a, int[] b) {
+                    if (a[0] != b[0])
+                        return Integer.compare(b[0], a[0]);
+                    return Integer.compare(a[1], b[1]);
+                }
+            });
+    }
+
+
+    private void checkSorted(String query, Comparator<int[]> order)
+        throws Throwable {
+
+        ArrayList<int[]> rows = new ArrayList<>();
+        for (int i = 0; i < NUM_ROWS; i++)
+            rows.add(new int[] { key(i), i });
+
+        Collections.sort(rows, order);
+
+        TupleLiteral[] expected = new TupleLiteral[NUM_ROWS];
+        for (int i = 0; i < NUM_ROWS; i++) {
+            int[] row = rows.get(i);
+            expected[i] = new TupleLiteral(row[0], row[1],
+                String.format("row %d padding", row[1]));
+        }
+
+        CommandResult result = server.doCommand(query, true);
+        assert checkOrderedResults(expected, result) : query;
+    }
+}
@@ -0,0 +1,154 @@
+package edu.caltech.test.nanodb.sql;
+
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import edu.caltech.nanodb.expressions.TupleLiteral;
+import edu.caltech.nanodb.queryeval.ExecutionProperties;
+
+
+/**
+ * This class exercises hashed grouping and aggregation with enough groups,
+ * relative to the configured working memory, that the groups must be
+ * partitioned into spill files.  The results are checked against results
+ * computed directly from the generated data, or against the results of the
+ * same query with the default working memory.
+ */
+@Test
+public class TestHashAggregation extends SqlTestCase {
+
+    /** The number of rows in the test table. */
+    private static final int NUM_ROWS = 3000;
+
+
+    /** The number of distinct non-<tt>NULL</tt> values of the group column. */
+    private static final int NUM_GROUPS = 1500;
+
+
+    @BeforeClass
+    @Override
+    public void beforeClass() throws Exception {
+        super.beforeClass();
+
+        server.doCommand("CREATE TABLE test_hash_agg (g INTEGER, " +
+            "s VARCHAR(20), v INTEGER, d DOUBLE)", false);
+
+        for (int i = 0; i < NUM_ROWS; i++) {
+            server.doCommand(String.format("INSERT INTO test_hash_agg VALUES " +
+                "(%s, 'grp%d', %s, %s)", groupOf(i), i % 40, valueOf(i),
+                Double.toString(i / 8.0)), false);
+        }
+    }
+
+
+    private static Integer groupOf(int i) {
+        return (i % 97 == 0) ? null : i % NUM_GROUPS;
+    }
+
+
+    private static Integer valueOf(int i) {
+        return (i % 11 == 0) ? null : i % 17;
+    }
+
+
+    /**
+     * Runs the query with the default and the minimum working memory, and
+     * checks that the two results contain the same tuples.
+     */
+    private void checkQuery(String query) throws Exception {
+        restoreProperties();
+        List<TupleLiteral> expected = getResultTuples(query);
+
+        setTestProperty(ExecutionProperties.PROP_WORK_MEM,
+            Long.toString(ExecutionProperties.MIN_WORK_MEM));
+        List<TupleLiteral> actual = getResultTuples(query);
+
+        assert sameResultsUnordered(
+            expected.toArray(new TupleLiteral[expected.size()]), actual) : query;
+    }
+
+
+    public void testSpilledGroups() throws Exception {
+        // Compute the expected results for each group, including the group
+        // of NULLs.
+        List<TupleLiteral> expected = new ArrayList<>();
+        for (int g = -1; g < NUM_GROUPS; g++) {
+            int count = 0;
+            int countV = 0;
+            int sum = 0;
+            double min = Double.MAX_VALUE;
+            double max = -1;
+
+            for (int i = 0; i < NUM_ROWS; i++) {
+                Integer group = groupOf(i);
+                if (g == -1 ? group != null : group == null || group != g)
+                    continue;
+
+                count++;
+                if (valueOf(i) != null) {
+                    countV++;
+                    sum += valueOf(i);
+                }
+                min = Math.min(min, i / 8.0);
+                max = Math.max(max, i / 8.0);
+            }
+
+            TupleLiteral tuple = new TupleLiteral();
+            tuple.addValue(g == -1 ? null : g);
+            tuple.addValue(count);
+            tuple.addValue(countV);
+            tuple.addValue(countV == 0 ? null : sum);
+            tuple.addValue(min);
+            tuple.addValue(max);
+            expected.add(tuple);
+        }
+
+        String query = "SELECT g, COUNT(*), COUNT(v), SUM(v), MIN(d), " +
+            "MAX(d) FROM test_hash_agg GROUP BY g";
+
+        setTestProperty(ExecutionProperties.PROP_WORK_MEM,
+            Long.toString(ExecutionProperties.MIN_WORK_MEM));
+        assert sameResultsUnordered(
+            expected.toArray(new TupleLiteral[expected.size()]),
+            getResultTuples(query)) : query;
+    }
+
+
+    public void testDistinctAggregates() throws Exception {
+        // Each group must count its own distinct values.
+        List<TupleLiteral> expected = new ArrayList<>();
+        for (int s = 0; s < 40; s++) {
+            HashSet<Integer> values = new HashSet<>();
+            for (int i = s; i < NUM_ROWS; i += 40) {
+                if (valueOf(i) != null)
+                    values.add(valueOf(i));
+            }
+            expected.add(new TupleLiteral("grp" + s, values.size()));
+        }
+
+        String query = "SELECT s, COUNT(DISTINCT v) FROM test_hash_agg " +
+            "GROUP BY s";
+
+        setTestProperty(ExecutionProperties.PROP_WORK_MEM,
+            Long.toString(ExecutionProperties.MIN_WORK_MEM));
+        assert sameResultsUnordered(
+            expected.toArray(new TupleLiteral[expected.size()]),
+            getResultTuples(query)) : query;
+    }
+
+
+    public void testCompareWithDefaultMemory() throws Exception {
+        checkQuery("SELECT g, AVG(v), AVG(d), SUM(d) FROM test_hash_agg " +
+            "GROUP BY g");
+        checkQuery("SELECT s, v, COUNT(*), MIN(g), MAX(g) FROM test_hash_agg " +
+            "GROUP BY s, v");
+        checkQuery("SELECT g, v, COUNT(DISTINCT s) FROM test_hash_agg " +
+            "WHERE d < 300 GROUP BY g, v");
+        checkQuery("SELECT COUNT(*), SUM(v), AVG(v) FROM test_hash_agg");
+    }
+}
@@ -0,0 +1,123 @@
+package edu.caltech.test.nanodb.sql;
+
+
+import java.util.HashMap;
+
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import edu.caltech.nanodb.expressions.TupleLiteral;
+import edu.caltech.nanodb.queryeval.ExecutionProperties;
+import edu.caltech.nanodb.server.CommandResult;
+
+
+/**
+ * This class exercises equijoins that are large enough, relative to the
+ * configured working memory, that the hash join must partition its inputs
+ * into spill files.  The expected results are computed directly from the
+ * generated data.
+ */
+@Test
+public class TestHashJoin extends SqlTestCase {
+
+    /** The number of rows in the left table. */
+    private static final int LEFT_ROWS = 3000;
+
+
+    /** The number of rows in the right table. */
+    private static final int RIGHT_ROWS = 2000;
+
+
+    @BeforeClass
+    @Override
+    public void beforeClass() throws Exception {
+        super.beforeClass();
+
+        setTestProperty(ExecutionProperties.PROP_WORK_MEM,
+            Long.toString(ExecutionProperties.MIN_WORK_MEM));
+
+        server.doCommand("CREATE TABLE test_hj_left (id INTEGER, k INTEGER, " +
+            "s VARCHAR(40))", false);
+        server.doCommand("CREATE TABLE test_hj_right (id INTEGER, k INTEGER, " +
+            "s VARCHAR(40))", false);
+
+        for (int i = 0; i < LEFT_ROWS; i++) {
+            server.doCommand(String.format("INSERT INTO test_hj_left VALUES " +
+                "(%d, %s, 'left row %d padding')", i, leftKey(i), i), false);
+        }
+
+        for (int i = 0; i < RIGHT_ROWS; i++) {
+            server.doCommand(String.format("INSERT INTO test_hj_right VALUES " +
+                "(%d, %s, 'right row %d padding')", i, rightKey(i), i), false);
+        }
+    }
+
+
+    private static Integer leftKey(int i) {
+        return (i % 37 == 0) ? null : (i * 7) % 1100;
+    }
+
+
+    private static Integer rightKey(int i) {
+        return (i % 41 == 0) ? null : (i * 3) % 1500;
+    }
+
+
+    public void testSpilledJoins() throws Throwable {
+        HashMap<Integer, Integer> leftCounts = new HashMap<>();
+        HashMap<Integer, Integer> rightCounts = new HashMap<>();
+
+        for (int i = 0; i < LEFT_ROWS; i++)
+            increment(leftCounts, leftKey(i));
+
+        for (int i = 0; i < RIGHT_ROWS; i++)
+            increment(rightCounts, rightKey(i));
+
+        long inner = 0;
+        long unmatchedLeft = 0;
+        for (int i = 0; i < LEFT_ROWS; i++) {
+            Integer count = (leftKey(i) == null) ? null :
+                rightCounts.get(leftKey(i));
+            if (count == null)
+                unmatchedLeft++;
+            else
+                inner += count;
+        }
+
+        long unmatchedRight = 0;
+        for (int i = 0; i < RIGHT_ROWS; i++) {
+            if (rightKey(i) == null || !leftCounts.containsKey(rightKey(i)))
+                unmatchedRight++;
+        }
+
+        checkCount("SELECT COUNT(*) FROM test_hj_left l JOIN test_hj_right r " +
+            "ON l.k = r.k", inner);
+
+        checkCount("SELECT COUNT(*) FROM test_hj_left l LEFT OUTER JOIN " +
+            "test_hj_right r ON l.k = r.k", inner + unmatchedLeft);
+
+        checkCount("SELECT COUNT(*) FROM test_hj_left l RIGHT OUTER JOIN " +
+            "test_hj_right r ON l.k = r.k", inner + unmatchedRight);
+
+        checkCount("SELECT COUNT(*) FROM test_hj_left l FULL OUTER JOIN " +
+            "test_hj_right r ON l.k = r.k",
+            inner + unmatchedLeft + unmatchedRight);
+    }
+
+
+    private static void increment(HashMap<Integer, Integer> counts,
+                                  Integer key) {
+        if (key == null)
+            return;
+
+        Integer count = counts.get(key);
+        counts.put(key, (count == null) ? 1 : count + 1);
+    }
+
+
+    private void checkCount(String query, long expected) throws Throwable {
+        CommandResult result = server.doCommand(query, true);
+        TupleLiteral[] expectedTuples = { new TupleLiteral(expected) };
+        assert checkUnorderedResults(expectedTuples, result) : query;
+    }
+}
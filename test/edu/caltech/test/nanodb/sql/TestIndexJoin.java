@@ -0,0 +1,128 @@
+package edu.caltech.test.nanodb.sql;
+
+
+import java.util.ArrayList;
+
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import edu.caltech.nanodb.expressions.TupleLiteral;
+import edu.caltech.nanodb.server.CommandResult;
+
+
+/**
+ * This class exercises joins of a small table with a large indexed table,
+ * which the planner may evaluate by probing the large table's index for
+ * each row of the small table.  Both tables are analyzed, so that the index
+ * join is estimated to be cheaper than the other join plans.  Some keys are
+ * <tt>NULL</tt>, and keys of the large table are duplicated.  The expected
+ * results are computed directly from the generated data.
+ */
+@Test
+public class TestIndexJoin extends SqlTestCase {
+
+    /** The number of rows in the indexed table. */
+    private static final int NUM_ROWS = 4000;
+
+
+    /** The join column values of the small table. */
+    private static final Integer[] OUTER_KEYS =
+        { 3, null, 17, 998, 2500, 3999, 5000, 17 };
+
+
+    @BeforeClass
+    @Override
+    public void beforeClass() throws Exception {
+        super.beforeClass();
+
+        server.doCommand("CREATE TABLE test_ij_outer (a INTEGER, b VARCHAR(20))",
+            false);
+        server.doCommand("CREATE TABLE test_ij_inner (id INTEGER PRIMARY KEY, " +
+            "k INTEGER, s VARCHAR(200))", false);
+        server.doCommand("CREATE INDEX idx_ij_k ON test_ij_inner (k)", false);
+
+        for (int i = 0; i < OUTER_KEYS.length; i++) {
+            server.doCommand(String.format("INSERT INTO test_ij_outer VALUES " +
+                "(%s, 'o%d')", OUTER_KEYS[i], i), false);
+        }
+
+        StringBuilder padding = new StringBuilder();
+        for (int i = 0; i < 150; i++)
+            padding.append('x');
+
+        for (int i = 0; i < NUM_ROWS; i++) {
+            server.doCommand(String.format("INSERT INTO test_ij_inner VALUES " +
+                "(%d, %s, '%s')", i, key(i), padding), false);
+        }
+
+        server.doCommand("ANALYZE test_ij_outer, test_ij_inner", false);
+    }
+
+
+    private static Integer key(int i) {
+        return (i % 50 == 0) ? null : (i * 7) % 1000;
+    }
+
+
+    public void testPrimaryKeyJoin() throws Throwable {
+        ArrayList<TupleLiteral> expected = new ArrayList<>();
+        for (int o = 0; o < OUTER_KEYS.length; o++) {
+            Integer a = OUTER_KEYS[o];
+            if (a != null && a >= 0 && a < NUM_ROWS)
+                expected.add(new TupleLiteral("o" + o, a));
+        }
+
+        checkJoin("SELECT b, id FROM test_ij_outer, test_ij_inner " +
+            "WHERE a = id", expected);
+    }
+
+
+    public void testInnerJoin() throws Throwable {
+        checkJoin("SELECT b, id FROM test_ij_outer JOIN test_ij_inner " +
+            "ON a = k", joinOnKey(0, NUM_ROWS, false));
+
+        checkJoin("SELECT o.b, t.id FROM test_ij_outer o, test_ij_inner t " +
+            "WHERE o.a = t.k AND t.id > 2000", joinOnKey(2001, NUM_ROWS, false));
+    }
+
+
+    public void testLeftOuterJoin() throws Throwable {
+        checkJoin("SELECT o.b, t.id FROM test_ij_outer o LEFT OUTER JOIN " +
+            "test_ij_inner t ON o.a = t.k AND t.id < 2000",
+            joinOnKey(0, 2000, true));
+    }
+
+
+    /**
+     * Computes the result of joining the small table with the rows of the
+     * large table whose IDs are in the specified range, on the key column.
+     */
+    private static ArrayList<TupleLiteral> joinOnKey(int lowId, int highId,
+                                                     boolean outer) {
+        ArrayList<TupleLiteral> expected = new ArrayList<>();
+        for (int o = 0; o < OUTER_KEYS.length; o++) {
+            Integer a = OUTER_KEYS[o];
+
+            boolean matched = false;
+            for (int i = lowId; i < highId && a != null; i++) {
+                if (a.equals(key(i))) {
+                    expected.add(new TupleLiteral("o" + o, i));
+                    matched = true;
+                }
+            }
+
+            if (outer && !matched)
+                expected.add(new TupleLiteral("o" + o, null));
+        }
+        return expected;
+    }
+
+
+    private void checkJoin(String query, ArrayList<TupleLiteral> expected)
+        throws Throwable {
+
+        CommandResult result = server.doCommand(query, true);
+        assert checkUnorderedResults(
+            expected.toArray(new TupleLiteral[expected.size()]), result) : query;
+    }
+}
@@ -0,0 +1,123 @@
+package edu.caltech.test.nanodb.sql;
+
+
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import edu.caltech.nanodb.expressions.TupleLiteral;
+import edu.caltech.nanodb.server.CommandResult;
+
+
+/**
+ * This class exercises selections on indexed columns, which the planner may
+ * evaluate with index scans.  The table's rows are wide enough that the
+ * index is cheaper than a file scan for selective predicates once the table
+ * has been analyzed.  Some keys are <tt>NULL</tt>, and many keys are
+ * duplicated, so that equal keys span leaf pages of the index.  The expected
+ * results are computed directly from the generated data.
+ */
+@Test
+public class TestIndexScan extends SqlTestCase {
+
+    /** The number of rows in the table. */
+    private static final int NUM_ROWS = 3000;
+
+
+    @BeforeClass
+    @Override
+    public void beforeClass() throws Exception {
+        super.beforeClass();
+
+        server.doCommand("CREATE TABLE test_idx_scan (id INTEGER PRIMARY KEY, " +
+            "k INTEGER, s VARCHAR(200))", false);
+        server.doCommand("CREATE INDEX idx_scan_k ON test_idx_scan (k)", false);
+
+        StringBuilder padding = new StringBuilder();
+        for (int i = 0; i < 150; i++)
+            padding.append('x');
+
+        for (int i = 0; i < NUM_ROWS; i++) {
+            server.doCommand(String.format("INSERT INTO test_idx_scan VALUES " +
+                "(%d, %s, '%s')", i, key(i), padding), false);
+        }
+    }
+
+
+    private static Integer key(int i) {
+        return (i % 50 == 0) ? null : (i * 7) % 300;
+    }
+
+
+    /** Counts the rows whose key is in the specified range. */
+    private static long countKeys(int low, boolean lowInclusive, int high,
+                                  boolean highInclusive) {
+        long count = 0;
+        for (int i = 0; i < NUM_ROWS; i++) {
+            Integer k = key(i);
+            if (k == null)
+                continue;
+
+            if (k < low || (k == low && !lowInclusive))
+                continue;
+
+            if (k > high || (k == high && !highInclusive))
+                continue;
+
+            count++;
+        }
+        return count;
+    }
+
+
+    public void testLookupsWithoutStats() throws Throwable {
+        CommandResult result = server.doCommand(
+            "SELECT id, k FROM test_idx_scan WHERE id = 1234", true);
+        TupleLiteral[] expected = { new TupleLiteral(1234, key(1234)) };
+        assert checkUnorderedResults(expected, result);
+
+        checkCount("SELECT COUNT(*) FROM test_idx_scan WHERE k = 42",
+            countKeys(42, true, 42, true));
+
+        result = server.doCommand(
+            "SELECT id FROM test_idx_scan WHERE k = 1000", true);
+        assert result.getTuples().isEmpty();
+    }
+
+
+    public void testScansWithStats() throws Throwable {
+        server.doCommand("ANALYZE test_idx_scan", false);
+
+        checkCount("SELECT COUNT(*) FROM test_idx_scan WHERE k = 42",
+            countKeys(42, true, 42, true));
+
+        checkCount("SELECT COUNT(*) FROM test_idx_scan WHERE 42 = k",
+            countKeys(42, true, 42, true));
+
+        checkCount("SELECT COUNT(*) FROM test_idx_scan WHERE k < 3",
+            countKeys(Integer.MIN_VALUE, true, 3, false));
+
+        checkCount("SELECT COUNT(*) FROM test_idx_scan WHERE k > 1 AND k <= 3",
+            countKeys(1, false, 3, true));
+
+        checkCount("SELECT COUNT(*) FROM test_idx_scan WHERE k >= 297",
+            countKeys(297, true, Integer.MAX_VALUE, true));
+
+        checkCount("SELECT COUNT(*) FROM test_idx_scan WHERE k > 100",
+            countKeys(100, false, Integer.MAX_VALUE, true));
+
+        long expected = 0;
+        for (int i = 1001; i < NUM_ROWS; i++) {
+            if (key(i) != null && key(i) == 42)
+                expected++;
+        }
+        checkCount("SELECT COUNT(*) FROM test_idx_scan t " +
+            "WHERE t.k = 42 AND t.id > 1000", expected);
+    }
+
+
+    private void checkCount(String query, long expected) throws Throwable {
+        CommandResult result = server.doCommand(query, true);
+        TupleLiteral[] expectedTuples = { new TupleLiteral(expected) };
+        assert checkUnorderedResults(expectedTuples, result) : query;
+    }
+}
@@ -0,0 +1,99 @@
+package edu.caltech.test.nanodb.sql;
+
+
+import java.util.List;
+
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import edu.caltech.nanodb.expressions.TupleLiteral;
+
+
+/**
+ * This class exercises the <tt>LIMIT</tt> and <tt>OFFSET</tt> clauses, both
+ * on their own and combined with <tt>ORDER BY</tt>, where the sort only
+ * keeps the tuples that can appear in the results.  The sort key has many
+ * duplicates, so the tests also check that equal tuples are produced in the
+ * same order as by a full sort.
+ */
+@Test
+public class TestLimitOffset extends SqlTestCase {
+
+    /** The number of rows in the test table. */
+    private static final int NUM_ROWS = 300;
+
+
+    @BeforeClass
+    @Override
+    public void beforeClass() throws Exception {
+        super.beforeClass();
+
+        server.doCommand("CREATE TABLE test_limit (id INTEGER, k INTEGER)",
+            false);
+
+        for (int i = 0; i < NUM_ROWS; i++) {
+            server.doCommand(String.format("INSERT INTO test_limit VALUES " +
+                "(%d, %s)", i, (i % 11 == 0) ? "NULL" :
+                Integer.toString((i * 7) % 20)), false);
+        }
+    }
+
+
+    /**
+     * Checks that a query with the specified limit and offset produces the
+     * corresponding slice of the query's results without them.
+     */
+    private void checkSlice(String query, int limit, int offset)
+        throws Exception {
+
+        List<TupleLiteral> all = getResultTuples(query);
+
+        int from = Math.min(offset, all.size());
+        int to = (limit > 0) ? Math.min(from + limit, all.size()) : all.size();
+        List<TupleLiteral> slice = all.subList(from, to);
+
+        String limitQuery = query;
+        if (limit > 0)
+            limitQuery += " LIMIT " + limit;
+        if (offset > 0)
+            limitQuery += " OFFSET " + offset;
+
+        List<TupleLiteral> actual = getResultTuples(limitQuery);
+        assert sameResultsOrdered(
+            slice.toArray(new TupleLiteral[slice.size()]), actual) : limitQuery;
+    }
+
+
+    public void testLimitOffset() throws Exception {
+        String query = "SELECT * FROM test_limit";
+        checkSlice(query, 10, 0);
+        checkSlice(query, 10, 25);
+        checkSlice(query, 0, 290);
+        checkSlice(query, 5, NUM_ROWS);
+        checkSlice(query, NUM_ROWS + 10, 0);
+    }
+
+
+    public void testOrderByLimit() throws Exception {
+        String query = "SELECT * FROM test_limit ORDER BY k";
+        checkSlice(query, 1, 0);
+        checkSlice(query, 10, 0);
+        checkSlice(query, 17, 40);
+        checkSlice(query, 0, 250);
+        checkSlice(query, 50, 280);
+        checkSlice(query, NUM_ROWS, 0);
+
+        query = "SELECT k, id FROM test_limit WHERE id > 20 " +
+            "ORDER BY k DESC, id";
+        checkSlice(query, 7, 0);
+        checkSlice(query, 7, 100);
+    }
+
+
+    public void testGroupByLimit() throws Exception {
+        String query = "SELECT k, COUNT(*) FROM test_limit GROUP BY k " +
+            "ORDER BY k DESC";
+        checkSlice(query, 3, 0);
+        checkSlice(query, 3, 5);
+    }
+}
@@ -0,0 +1,103 @@
+package edu.caltech.test.nanodb.sql;
+
+
+import java.util.List;
+
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import edu.caltech.nanodb.expressions.TupleLiteral;
+import edu.caltech.nanodb.queryeval.ExecutionProperties;
+
+
+/**
+ * This class verifies that queries over a table scanned by several workers
+ * in parallel produce the same results as queries scanned by a single
+ * thread.  The table spans many more pages than each worker claims at a
+ * time, so every worker scans several ranges of pages.
+ */
+@Test
+public class TestParallelScan extends SqlTestCase {
+
+    /** The number of rows in the test table. */
+    private static final int NUM_ROWS = 6000;
+
+
+    @BeforeClass
+    @Override
+    public void beforeClass() throws Exception {
+        super.beforeClass();
+
+        server.doCommand("CREATE TABLE test_parallel (id INTEGER, k INTEGER, " +
+            "v INTEGER, s VARCHAR(40))", false);
+
+        for (int i = 0; i < NUM_ROWS; i++) {
+            server.doCommand(String.format("INSERT INTO test_parallel VALUES " +
+                "(%d, %s, %s, 'row %d with some padding')", i,
+                (i % 29 == 0) ? "NULL" : Integer.toString(i % 40),
+                (i % 31 == 0) ? "NULL" : Integer.toString(i % 1000), i), false);
+        }
+    }
+
+
+    /**
+     * Runs the query with a single thread and with four workers, both a
+     * tuple at a time and a batch at a time, and checks that the results
+     * contain the same tuples.
+     */
+    private void checkQuery(String query, boolean ordered) throws Exception {
+        setTestProperty(ExecutionProperties.PROP_PARALLELISM, "1");
+        List<TupleLiteral> expected = getResultTuples(query);
+        TupleLiteral[] expectedArray =
+            expected.toArray(new TupleLiteral[expected.size()]);
+
+        setTestProperty(ExecutionProperties.PROP_PARALLELISM, "4");
+        for (boolean vectorized : new boolean[] { false, true }) {
+            setTestProperty(ExecutionProperties.PROP_VECTORIZED,
+                Boolean.toString(vectorized));
+            List<TupleLiteral> actual = getResultTuples(query);
+
+            if (ordered)
+                assert sameResultsOrdered(expectedArray, actual) : query;
+            else
+                assert sameResultsUnordered(expectedArray, actual) : query;
+        }
+    }
+
+
+    public void testFiltersAndProjections() throws Exception {
+        checkQuery("SELECT * FROM test_parallel", false);
+        checkQuery("SELECT * FROM test_parallel WHERE k < 10", false);
+        checkQuery("SELECT id, v + 1 AS v1 FROM test_parallel " +
+            "WHERE v > 500 AND s <> 'row 17 with some padding'", false);
+        checkQuery("SELECT s FROM test_parallel WHERE id = 4321", false);
+        checkQuery("SELECT * FROM test_parallel WHERE id > " + NUM_ROWS, false);
+    }
+
+
+    public void testPartialAggregates() throws Exception {
+        checkQuery("SELECT k, COUNT(*), COUNT(v), SUM(v), MIN(s), MAX(v) " +
+            "FROM test_parallel GROUP BY k", false);
+        checkQuery("SELECT COUNT(*), SUM(id), MIN(v), MAX(k) " +
+            "FROM test_parallel WHERE v < 300", false);
+        checkQuery("SELECT k, COUNT(*) AS c FROM test_parallel GROUP BY k " +
+            "HAVING COUNT(*) > 140", false);
+
+        // These aggregates can't be combined from partial aggregates.
+        checkQuery("SELECT k, AVG(v), COUNT(DISTINCT v) FROM test_parallel " +
+            "GROUP BY k", false);
+    }
+
+
+    public void testOrderByAndLimit() throws Exception {
+        checkQuery("SELECT id, k FROM test_parallel WHERE v < 100 " +
+            "ORDER BY id", true);
+        checkQuery("SELECT k, SUM(v) FROM test_parallel GROUP BY k " +
+            "ORDER BY k", true);
+
+        setTestProperty(ExecutionProperties.PROP_PARALLELISM, "4");
+        List<TupleLiteral> limited =
+            getResultTuples("SELECT * FROM test_parallel LIMIT 25");
+        assert limited.size() == 25;
+    }
+}
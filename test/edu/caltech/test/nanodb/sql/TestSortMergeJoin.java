@@ -0,0 +1,315 @@
+package edu.caltech.test.nanodb.sql;
+
+
+import java.util.HashMap;
+
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import edu.caltech.nanodb.commands.SelectCommand;
+import edu.caltech.nanodb.expressions.TupleLiteral;
+import edu.caltech.nanodb.plannodes.PlanNode;
+import edu.caltech.nanodb.plannodes.SortMergeJoinNode;
+import edu.caltech.nanodb.queryast.SelectClause;
+import edu.caltech.nanodb.queryeval.PlannerFactory;
+import edu.caltech.nanodb.server.CommandResult;
+import edu.caltech.nanodb.storage.StorageManager;
+
+
+/**
+ * This class exercises sort-merge joins of B<sup>+</sup> tree tables.  Scans
+ * of these tables produce tuples ordered by all of their columns, so the
+ * planner can merge them without sorting.  A small pair of tables is joined
+ * on a two-column key; keys with a <tt>NULL</tt> column sort between the
+ * other keys, and never match, so they end runs of matching tuples.  A
+ * larger pair of generated tables has many duplicate join keys, so that long
+ * runs of matching tuples must be rescanned; the expected results for these
+ * are computed directly from the generated data.  Each query first checks
+ * that the planner actually chose a sort-merge join.
+ */
+@Test
+public class TestSortMergeJoin extends SqlTestCase {
+
+    /** The number of rows in the larger left table. */
+    private static final int LEFT_ROWS = 600;
+
+
+    /** The number of rows in the larger right table. */
+    private static final int RIGHT_ROWS = 400;
+
+
+    @BeforeClass
+    @Override
+    public void beforeClass() throws Exception {
+        super.beforeClass();
+
+        server.doCommand("CREATE TABLE test_smj_l (a INTEGER, b INTEGER, " +
+            "id INTEGER) PROPERTIES (storage = 'btree')", false);
+        server.doCommand("CREATE TABLE test_smj_r (a INTEGER, b INTEGER, " +
+            "id INTEGER) PROPERTIES (storage = 'btree')", false);
+
+        server.doCommands(
+            "INSERT INTO test_smj_l VALUES (1, 5, 1);" +
+            "INSERT INTO test_smj_l VALUES (1, 5, 2);" +
+            "INSERT INTO test_smj_l VALUES (2, NULL, 3);" +
+            "INSERT INTO test_smj_l VALUES (2, 7, 4);" +
+            "INSERT INTO test_smj_l VALUES (3, 1, 5);" +
+            "INSERT INTO test_smj_l VALUES (NULL, 4, 6);" +
+
+            // The run of (1, 5) keys ends at a key with a NULL column.
+            "INSERT INTO test_smj_r VALUES (1, 5, 10);" +
+            "INSERT INTO test_smj_r VALUES (1, 5, 11);" +
+            "INSERT INTO test_smj_r VALUES (2, NULL, 12);" +
+            "INSERT INTO test_smj_r VALUES (2, 7, 13);" +
+            "INSERT INTO test_smj_r VALUES (2, 7, 14);" +
+            "INSERT INTO test_smj_r VALUES (4, 4, 15);", false);
+
+        server.doCommand("CREATE TABLE test_smj_left (k INTEGER, id INTEGER) " +
+            "PROPERTIES (storage = 'btree')", false);
+        server.doCommand("CREATE TABLE test_smj_right (k INTEGER, id INTEGER) " +
+            "PROPERTIES (storage = 'btree')", false);
+
+        for (int i = 0; i < LEFT_ROWS; i++) {
+            server.doCommand(String.format("INSERT INTO test_smj_left " +
+                "VALUES (%s, %d)", leftKey(i), i), false);
+        }
+
+        for (int i = 0; i < RIGHT_ROWS; i++) {
+            server.doCommand(String.format("INSERT INTO test_smj_right " +
+                "VALUES (%s, %d)", rightKey(i), i), false);
+        }
+
+        server.doCommand("ANALYZE test_smj_l, test_smj_r, test_smj_left, " +
+            "test_smj_right", false);
+    }
+
+
+    private static Integer leftKey(int i) {
+        return (i % 29 == 0) ? null : (i * 7) % 90;
+    }
+
+
+    private static Integer rightKey(int i) {
+        return (i % 31 == 0) ? null : (i * 3) % 120;
+    }
+
+
+    /** Returns true if the plan or any of its children is a merge join. */
+    private static boolean hasMergeJoin(PlanNode plan) {
+        if (plan == null)
+            return false;
+
+        if (plan instanceof SortMergeJoinNode)
+            return true;
+
+        return hasMergeJoin(plan.getLeftChild()) ||
+               hasMergeJoin(plan.getRightChild());
+    }
+
+
+    /**
+     * Plans the query to check that it uses a sort-merge join, and then
+     * runs it and checks its results.
+     */
+    private void checkMergeJoin(String query, TupleLiteral[] expected)
+        throws Throwable {
+
+        SelectCommand cmd = (SelectCommand) server.parseCommand(query);
+        SelectClause selClause = cmd.getSelectClause();
+
+        StorageManager storageManager = server.getStorageManager();
+        selClause.computeSchema(storageManager.getTableManager(), null);
+        PlanNode plan =
+            PlannerFactory.getPlanner(storageManager).makePlan(selClause, null);
+
+        assert hasMergeJoin(plan) : "Expected a sort-merge join for " + query +
+            ":\n" + PlanNode.printNodeTreeToString(plan, true);
+
+        CommandResult result = server.doCommand(query, true);
+        if (result.failed())
+            throw result.getFailure();
+
+        assert checkUnorderedResults(expected, result) : query;
+    }
+
+
+    public void testMultiColumnKeys() throws Throwable {
+        TupleLiteral[] expected = {
+            new TupleLiteral(1, 10),
+            new TupleLiteral(1, 11),
+            new TupleLiteral(2, 10),
+            new TupleLiteral(2, 11),
+            new TupleLiteral(4, 13),
+            new TupleLiteral(4, 14)
+        };
+        checkMergeJoin("SELECT l.id, r.id FROM test_smj_l l JOIN test_smj_r r " +
+            "ON l.a = r.a AND l.b = r.b", expected);
+
+        // Keys with a NULL column don't match, even the same key.
+        TupleLiteral[] expectedOuter = {
+            new TupleLiteral(1, 10),
+            new TupleLiteral(1, 11),
+            new TupleLiteral(2, 10),
+            new TupleLiteral(2, 11),
+            new TupleLiteral(3, null),
+            new TupleLiteral(4, 13),
+            new TupleLiteral(4, 14),
+            new TupleLiteral(5, null),
+            new TupleLiteral(6, null)
+        };
+        checkMergeJoin("SELECT l.id, r.id FROM test_smj_l l LEFT OUTER JOIN " +
+            "test_smj_r r ON l.a = r.a AND l.b = r.b", expectedOuter);
+
+        TupleLiteral[] expectedRightOuter = {
+            new TupleLiteral(1, 10),
+            new TupleLiteral(1, 11),
+            new TupleLiteral(2, 10),
+            new TupleLiteral(2, 11),
+            new TupleLiteral(4, 13),
+            new TupleLiteral(4, 14),
+            new TupleLiteral(null, 12),
+            new TupleLiteral(null, 15)
+        };
+        checkMergeJoin("SELECT l.id, r.id FROM test_smj_l l RIGHT OUTER JOIN " +
+            "test_smj_r r ON l.a = r.a AND l.b = r.b", expectedRightOuter);
+    }
+
+
+    public void testResidualOnRewoundRun() throws Throwable {
+        // The second (1, 5) tuple on the left rewinds the right run, and
+        // matches a right tuple that the first one didn't.
+        TupleLiteral[] expected = {
+            new TupleLiteral(1, 11),
+            new TupleLiteral(2, 10),
+            new TupleLiteral(2, 11),
+            new TupleLiteral(4, 13),
+            new TupleLiteral(4, 14)
+        };
+        checkMergeJoin("SELECT l.id, r.id FROM test_smj_l l JOIN test_smj_r r " +
+            "ON l.a = r.a AND l.b = r.b AND l.id + r.id > 11", expected);
+
+        // Here the first (1, 5) tuple matches nothing in its run, so the
+        // outer join pads it with NULLs, but the rewound run still matches
+        // the second one.
+        TupleLiteral[] expectedOuter = {
+            new TupleLiteral(1, null),
+            new TupleLiteral(2, 11),
+            new TupleLiteral(3, null),
+            new TupleLiteral(4, 13),
+            new TupleLiteral(4, 14),
+            new TupleLiteral(5, null),
+            new TupleLiteral(6, null)
+        };
+        checkMergeJoin("SELECT l.id, r.id FROM test_smj_l l LEFT OUTER JOIN " +
+            "test_smj_r r ON l.a = r.a AND l.b = r.b AND l.id + r.id > 12",
+            expectedOuter);
+
+        // The right outer join pads the right tuple 10 with NULLs, since
+        // neither left tuple in its run passes the residual.
+        TupleLiteral[] expectedRightOuter = {
+            new TupleLiteral(2, 11),
+            new TupleLiteral(4, 13),
+            new TupleLiteral(4, 14),
+            new TupleLiteral(null, 10),
+            new TupleLiteral(null, 12),
+            new TupleLiteral(null, 15)
+        };
+        checkMergeJoin("SELECT l.id, r.id FROM test_smj_l l RIGHT OUTER JOIN " +
+            "test_smj_r r ON l.a = r.a AND l.b = r.b AND l.id + r.id > 12",
+            expectedRightOuter);
+    }
+
+
+    public void testLongDuplicateRuns() throws Throwable {
+        HashMap<Integer, Integer> leftCounts = new HashMap<>();
+        HashMap<Integer, Integer> rightCounts = new HashMap<>();
+
+        for (int i = 0; i < LEFT_ROWS; i++)
+            increment(leftCounts, leftKey(i));
+
+        for (int i = 0; i < RIGHT_ROWS; i++)
+            increment(rightCounts, rightKey(i));
+
+        long inner = 0;
+        long unmatchedLeft = 0;
+        for (int i = 0; i < LEFT_ROWS; i++) {
+            Integer count = (leftKey(i) == null) ? null :
+                rightCounts.get(leftKey(i));
+            if (count == null)
+                unmatchedLeft++;
+            else
+                inner += count;
+        }
+
+        long unmatchedRight = 0;
+        for (int i = 0; i < RIGHT_ROWS; i++) {
+            if (rightKey(i) == null || !leftCounts.containsKey(rightKey(i)))
+                unmatchedRight++;
+        }
+
+        checkCount("SELECT COUNT(*) FROM test_smj_left l JOIN test_smj_right r " +
+            "ON l.k = r.k", inner);
+
+        checkCount("SELECT COUNT(*) FROM test_smj_left l LEFT OUTER JOIN " +
+            "test_smj_right r ON l.k = r.k", inner + unmatchedLeft);
+
+        checkCount("SELECT COUNT(*) FROM test_smj_left l RIGHT OUTER JOIN " +
+            "test_smj_right r ON l.k = r.k", inner + unmatchedRight);
+    }
+
+
+    public void testLongDuplicateRunsWithResidual() throws Throwable {
+        long inner = 0;
+        long unmatchedLeft = 0;
+        for (int i = 0; i < LEFT_ROWS; i++) {
+            int matches = 0;
+            for (int j = 0; j < RIGHT_ROWS; j++) {
+                if (leftKey(i) != null && leftKey(i).equals(rightKey(j)) && i < j)
+                    matches++;
+            }
+
+            inner += matches;
+            if (matches == 0)
+                unmatchedLeft++;
+        }
+
+        long unmatchedRight = 0;
+        for (int j = 0; j < RIGHT_ROWS; j++) {
+            boolean matched = false;
+            for (int i = 0; i < j && !matched; i++) {
+                if (rightKey(j) != null && rightKey(j).equals(leftKey(i)))
+                    matched = true;
+            }
+
+            if (!matched)
+                unmatchedRight++;
+        }
+
+        checkCount("SELECT COUNT(*) FROM test_smj_left l JOIN test_smj_right r " +
+            "ON l.k = r.k AND l.id < r.id", inner);
+
+        checkCount("SELECT COUNT(*) FROM test_smj_left l LEFT OUTER JOIN " +
+            "test_smj_right r ON l.k = r.k AND l.id < r.id",
+            inner + unmatchedLeft);
+
+        checkCount("SELECT COUNT(*) FROM test_smj_left l RIGHT OUTER JOIN " +
+            "test_smj_right r ON l.k = r.k AND l.id < r.id",
+            inner + unmatchedRight);
+    }
+
+
+    private static void increment(HashMap<Integer, Integer> counts,
+                                  Integer key) {
+        if (key == null)
+            return;
+
+        Integer count = counts.get(key);
+        counts.put(key, (count == null) ? 1 : count + 1);
+    }
+
+
+    private void checkCount(String query, long expected) throws Throwable {
+        TupleLiteral[] expectedTuples = { new TupleLiteral(expected) };
+        checkMergeJoin(query, expectedTuples);
+    }
+}
@@ -0,0 +1,200 @@
+package edu.caltech.test.nanodb.sql;
+
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import edu.caltech.nanodb.expressions.TupleLiteral;
+
+
+/**
+ * This class exercises <tt>EXISTS</tt>, <tt>IN</tt> and scalar subqueries
+ * that are rewritten into semijoins and antijoins, or whose results are
+ * cached, and checks their results against the results computed directly
+ * from the test data.  Both tables have duplicate and <tt>NULL</tt> values
+ * in the correlated columns.
+ */
+@Test
+public class TestSubqueryDecorrelation extends SqlTestCase {
+
+    /** The number of rows in the outer table. */
+    private static final int NUM_OUTER = 60;
+
+    /** The number of rows in the inner table. */
+    private static final int NUM_INNER = 40;
+
+
+    private static Integer outerK(int id) {
+        return (id % 10 == 0) ? null : id % 7;
+    }
+
+
+    private static Integer outerV(int id) {
+        return (id % 13 == 0) ? null : id % 5;
+    }
+
+
+    private static Integer innerK(int i) {
+        return (i % 11 == 0) ? null : i % 9;
+    }
+
+
+    private static int innerW(int i) {
+        return i % 6;
+    }
+
+
+    @BeforeClass
+    @Override
+    public void beforeClass() throws Exception {
+        super.beforeClass();
+
+        server.doCommand("CREATE TABLE test_decor_outer (id INTEGER, " +
+            "k INTEGER, v INTEGER)", false);
+        server.doCommand("CREATE TABLE test_decor_inner (k INTEGER, " +
+            "w INTEGER)", false);
+
+        for (int id = 0; id < NUM_OUTER; id++) {
+            server.doCommand(String.format("INSERT INTO test_decor_outer " +
+                "VALUES (%d, %s, %s)", id, outerK(id), outerV(id)), false);
+        }
+
+        for (int i = 0; i < NUM_INNER; i++) {
+            server.doCommand(String.format("INSERT INTO test_decor_inner " +
+                "VALUES (%s, %d)", innerK(i), innerW(i)), false);
+        }
+    }
+
+
+    /** Returns true if an inner row has key k and a value above minW. */
+    private static boolean innerMatch(Integer k, int minW) {
+        if (k == null)
+            return false;
+
+        for (int i = 0; i < NUM_INNER; i++) {
+            if (k.equals(innerK(i)) && innerW(i) > minW)
+                return true;
+        }
+        return false;
+    }
+
+
+    private void checkIds(String query, List<Integer> expectedIds)
+        throws Exception {
+
+        TupleLiteral[] expected = new TupleLiteral[expectedIds.size()];
+        for (int i = 0; i < expected.length; i++)
+            expected[i] = createTupleFromNum(expectedIds.get(i));
+
+        assert sameResultsUnordered(expected, getResultTuples(query)) : query;
+    }
+
+
+    public void testExistsAndNotExists() throws Exception {
+        List<Integer> exists = new ArrayList<>();
+        List<Integer> notExists = new ArrayList<>();
+        for (int id = 0; id < NUM_OUTER; id++) {
+            if (innerMatch(outerK(id), 3))
+                exists.add(id);
+            else
+                notExists.add(id);
+        }
+
+        checkIds("SELECT id FROM test_decor_outer o WHERE EXISTS " +
+            "(SELECT * FROM test_decor_inner i WHERE i.k = o.k AND i.w > 3)",
+            exists);
+        checkIds("SELECT id FROM test_decor_outer o WHERE NOT EXISTS " +
+            "(SELECT * FROM test_decor_inner i WHERE i.k = o.k AND i.w > 3)",
+            notExists);
+
+        // The subquery isn't a top-level conjunct, so it isn't rewritten.
+        List<Integer> existsOr = new ArrayList<>();
+        for (int id = 0; id < NUM_OUTER; id++) {
+            if (id < 3 || innerMatch(outerK(id), 3))
+                existsOr.add(id);
+        }
+        checkIds("SELECT id FROM test_decor_outer o WHERE id < 3 OR EXISTS " +
+            "(SELECT * FROM test_decor_inner i WHERE i.k = o.k AND i.w > 3)",
+            existsOr);
+    }
+
+
+    public void testExistsSameTable() throws Exception {
+        List<Integer> expected = new ArrayList<>();
+        for (int id = 1; id < NUM_OUTER; id++) {
+            Integer k = outerK(id);
+            for (int other = 0; k != null && other < NUM_OUTER; other++) {
+                if (other != id && k.equals(outerK(other))) {
+                    expected.add(id);
+                    break;
+                }
+            }
+        }
+
+        checkIds("SELECT id FROM test_decor_outer o WHERE EXISTS " +
+            "(SELECT * FROM test_decor_outer o2 WHERE o2.k = o.k AND " +
+            "o2.id <> o.id) AND id > 0", expected);
+    }
+
+
+    public void testInSubquery() throws Exception {
+        List<Integer> correlated = new ArrayList<>();
+        List<Integer> uncorrelated = new ArrayList<>();
+        for (int id = 0; id < NUM_OUTER; id++) {
+            Integer k = outerK(id);
+            Integer v = outerV(id);
+            if (v == null)
+                continue;
+
+            for (int i = 0; k != null && i < NUM_INNER; i++) {
+                if (k.equals(innerK(i)) && v == innerW(i)) {
+                    if (id > 5)
+                        correlated.add(id);
+                    break;
+                }
+            }
+
+            if (v < 3)
+                uncorrelated.add(id);
+        }
+
+        checkIds("SELECT id FROM test_decor_outer o WHERE v IN " +
+            "(SELECT w FROM test_decor_inner i WHERE i.k = o.k) AND id > 5",
+            correlated);
+        checkIds("SELECT id FROM test_decor_outer WHERE v IN " +
+            "(SELECT w FROM test_decor_inner WHERE w < 3)", uncorrelated);
+
+        // The probe values are doubles, so they must be coerced to compare
+        // them to the subquery's integers.
+        checkIds("SELECT id FROM test_decor_outer WHERE v * 1.0 IN " +
+            "(SELECT w FROM test_decor_inner WHERE w < 3)", uncorrelated);
+    }
+
+
+    public void testScalarSubquery() throws Exception {
+        // Every non-NULL key of the outer table appears in the inner table,
+        // so the subquery always produces a row.
+        List<TupleLiteral> expected = new ArrayList<>();
+        for (int id = 0; id < NUM_OUTER; id++) {
+            Integer k = outerK(id);
+            if (k == null)
+                continue;
+
+            int max = -1;
+            for (int i = 0; i < NUM_INNER; i++) {
+                if (k.equals(innerK(i)))
+                    max = Math.max(max, innerW(i));
+            }
+            expected.add(new TupleLiteral(id, max));
+        }
+
+        String query = "SELECT id, (SELECT MAX(w) FROM test_decor_inner i " +
+            "WHERE i.k = o.k) FROM test_decor_outer o WHERE k IS NOT NULL";
+        assert sameResultsUnordered(
+            expected.toArray(new TupleLiteral[expected.size()]),
+            getResultTuples(query)) : query;
+    }
+}
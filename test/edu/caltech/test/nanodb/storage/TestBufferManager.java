@@ -0,0 +1,325 @@
+package edu.caltech.test.nanodb.storage;
+
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import edu.caltech.nanodb.storage.BufferManager;
+import edu.caltech.nanodb.storage.DBFile;
+import edu.caltech.nanodb.storage.DBFileType;
+import edu.caltech.nanodb.storage.DBPage;
+import edu.caltech.nanodb.storage.FileManager;
+import edu.caltech.nanodb.storage.FileManagerImpl;
+import edu.caltech.nanodb.storage.PagePrefetcher;
+
+
+/**
+ * This test class exercises the {@link BufferManager} when it is used from
+ * several threads at once, with a page cache small enough that pages are
+ * constantly being evicted.  The eviction tests are run against each of the
+ * supported page replacement policies.
+ */
+@Test
+public class TestBufferManager extends StorageTestCase {
+
+    /** This is the filename used for the tests in this class. */
+    private static final String TEST_FILE_NAME = "TestBufferManager_TestFile";
+
+
+    /** The number of pages in the test file. */
+    private static final int NUM_PAGES = 64;
+
+
+    /** The page size of the test file. */
+    private static final int PAGE_SIZE = 4096;
+
+
+    /** The page replacement policies that the tests are run against. */
+    private static final String[] POLICIES = { "lru", "fifo", "clock", "2q" };
+
+
+    private FileManager fileMgr;
+
+
+    private DBFile dbFile;
+
+
+    @BeforeClass
+    public void beforeClass() throws IOException {
+        fileMgr = new FileManagerImpl(testBaseDir);
+
+        if (fileMgr.fileExists(TEST_FILE_NAME))
+            fileMgr.deleteDBFile(TEST_FILE_NAME);
+
+        dbFile = fileMgr.createDBFile(TEST_FILE_NAME,
+            DBFileType.HEAP_TUPLE_FILE, PAGE_SIZE);
+
+        // Stamp each page with its own page number so that readers can tell
+        // whether they got the right page.
+        byte[] buffer = new byte[PAGE_SIZE];
+        for (int pageNo = 1; pageNo < NUM_PAGES; pageNo++) {
+            buffer[100] = (byte) (pageNo >> 8);
+            buffer[101] = (byte) pageNo;
+            fileMgr.savePage(dbFile, pageNo, buffer);
+        }
+    }
+
+
+    @AfterClass
+    public void afterClass() throws IOException {
+        fileMgr.closeDBFile(dbFile);
+        fileMgr.deleteDBFile(dbFile);
+    }
+
+
+    /**
+     * Creates a buffer manager whose page cache can only hold the specified
+     * number of test-file pages, using the default replacement policy.
+     */
+    private BufferManager makeBufferManager(int numPages) {
+        return makeBufferManager(numPages, null);
+    }
+
+
+    /**
+     * Creates a buffer manager whose page cache can only hold the specified
+     * number of test-file pages, using the specified replacement policy.  If
+     * the policy is {@code null} then the default policy is used.
+     */
+    private BufferManager makeBufferManager(int numPages, String policy) {
+        String oldSize = System.getProperty(BufferManager.PROP_PAGECACHE_SIZE);
+        String oldPolicy = System.getProperty(BufferManager.PROP_PAGECACHE_POLICY);
+
+        System.setProperty(BufferManager.PROP_PAGECACHE_SIZE,
+            Integer.toString(numPages * PAGE_SIZE));
+        if (policy != null)
+            System.setProperty(BufferManager.PROP_PAGECACHE_POLICY, policy);
+
+        try {
+            return new BufferManager(null, fileMgr);
+        }
+        finally {
+            restoreProperty(BufferManager.PROP_PAGECACHE_SIZE, oldSize);
+            restoreProperty(BufferManager.PROP_PAGECACHE_POLICY, oldPolicy);
+        }
+    }
+
+
+    private void restoreProperty(String name, String oldValue) {
+        if (oldValue != null)
+            System.setProperty(name, oldValue);
+        else
+            System.clearProperty(name);
+    }
+
+
+    /**
+     * This helper mirrors what the Storage Manager does to load a page
+     * through the buffer manager.
+     */
+    private DBPage loadPage(BufferManager bufMgr, int pageNo)
+        throws IOException {
+
+        DBPage dbPage = bufMgr.getPage(dbFile, pageNo);
+        if (dbPage == null) {
+            dbPage = new DBPage(bufMgr, dbFile, pageNo);
+            fileMgr.loadPage(dbFile, pageNo, dbPage.getPageData());
+
+            DBPage existing = bufMgr.addPageIfAbsent(dbPage);
+            if (existing != null) {
+                dbPage.invalidate();
+                dbPage = existing;
+            }
+        }
+
+        return dbPage;
+    }
+
+
+    public void testRepeatedLookupReturnsCachedPage() throws IOException {
+        BufferManager bufMgr = makeBufferManager(8);
+
+        DBPage page1 = loadPage(bufMgr, 5);
+        DBPage page2 = loadPage(bufMgr, 5);
+
+        assert page1 == page2;
+        assert page1.getPinCount() == 2;
+
+        page1.unpin();
+        page2.unpin();
+        assert !page1.isPinned();
+
+        bufMgr.flushAll();
+    }
+
+
+    public void testDoubleAddPage() throws IOException {
+        BufferManager bufMgr = makeBufferManager(8);
+
+        DBPage page = loadPage(bufMgr, 3);
+
+        DBPage dup = new DBPage(bufMgr, dbFile, 3);
+        try {
+            bufMgr.addPage(dup);
+            assert false : "Adding the same page twice should fail";
+        }
+        catch (IllegalStateException e) {
+            // Success.
+        }
+
+        dup.invalidate();
+        page.unpin();
+        bufMgr.flushAll();
+    }
+
+
+    public void testSequentialReadAhead() throws Exception {
+        BufferManager bufMgr = makeBufferManager(32);
+        PagePrefetcher prefetcher = bufMgr.getPrefetcher();
+
+        try {
+            // Read the first few pages in order, reporting each access to
+            // the prefetcher the way the Storage Manager does.
+            for (int pageNo = 1; pageNo <= 3; pageNo++) {
+                DBPage dbPage = loadPage(bufMgr, pageNo);
+                prefetcher.recordAccess(dbFile, pageNo);
+                dbPage.unpin();
+            }
+
+            // Read-ahead is limited to a quarter of the cache, so the next
+            // eight pages should arrive without being requested.
+            int lastPageNo = 3 + Math.min(prefetcher.getReadAheadPages(), 8);
+            long deadline = System.currentTimeMillis() + 5000;
+            while (!bufMgr.containsPage(dbFile, lastPageNo) &&
+                   System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+
+            for (int pageNo = 4; pageNo <= lastPageNo; pageNo++) {
+                DBPage dbPage = bufMgr.getPage(dbFile, pageNo);
+                assert dbPage != null : "Page " + pageNo + " wasn't read ahead";
+                assert dbPage.readUnsignedShort(100) == pageNo;
+                assert dbPage.getPinCount() == 1;
+                dbPage.unpin();
+            }
+
+            assert !bufMgr.containsPage(dbFile, lastPageNo + 1);
+        }
+        finally {
+            prefetcher.shutdown();
+        }
+
+        bufMgr.flushAll();
+    }
+
+
+    public void testEvictionKeepsPinnedPages() throws IOException {
+        for (String policy : POLICIES)
+            checkEvictionKeepsPinnedPages(makeBufferManager(4, policy));
+    }
+
+
+    private void checkEvictionKeepsPinnedPages(BufferManager bufMgr)
+        throws IOException {
+
+        DBPage pinned = loadPage(bufMgr, 1);
+
+        // Cycle many more pages than the cache can hold through it, several
+        // times over so that the policies' access history comes into play.
+        for (int pass = 0; pass < 3; pass++) {
+            for (int pageNo = 2; pageNo < NUM_PAGES; pageNo++) {
+                DBPage dbPage = loadPage(bufMgr, pageNo);
+                assert dbPage.readUnsignedShort(100) == pageNo;
+                dbPage.unpin();
+            }
+        }
+
+        // The pinned page must not have been evicted.
+        DBPage again = bufMgr.getPage(dbFile, 1);
+        assert again == pinned;
+        assert pinned.readUnsignedShort(100) == 1;
+
+        again.unpin();
+        pinned.unpin();
+        bufMgr.flushAll();
+    }
+
+
+    public void testEvictedFramesAreReused() throws IOException {
+        BufferManager bufMgr = makeBufferManager(4);
+
+        Set<byte[]> frames =
+            Collections.newSetFromMap(new IdentityHashMap<byte[], Boolean>());
+
+        for (int pageNo = 1; pageNo < NUM_PAGES; pageNo++) {
+            DBPage dbPage = loadPage(bufMgr, pageNo);
+            assert dbPage.readUnsignedShort(100) == pageNo;
+            frames.add(dbPage.getPageData());
+            dbPage.unpin();
+        }
+
+        // Once the cache is full, pages should be loaded into the frames of
+        // evicted pages instead of newly allocated buffers.
+        assert frames.size() <= 4 : "Used " + frames.size() + " frames";
+
+        bufMgr.flushAll();
+    }
+
+
+    public void testConcurrentReaders() throws Exception {
+        for (String policy : POLICIES)
+            checkConcurrentReaders(makeBufferManager(24, policy));
+    }
+
+
+    private void checkConcurrentReaders(final BufferManager bufMgr)
+        throws Exception {
+
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+        ArrayList<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            final long seed = t;
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Random rand = new Random(seed);
+                    try {
+                        for (int i = 0; i < 2000; i++) {
+                            int pageNo = 1 + rand.nextInt(NUM_PAGES - 1);
+                            DBPage dbPage = loadPage(bufMgr, pageNo);
+                            if (dbPage.readUnsignedShort(100) != pageNo) {
+                                throw new IllegalStateException(
+                                    "Read the wrong contents for page " + pageNo);
+                            }
+                            dbPage.unpin();
+                        }
+                    }
+                    catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            }));
+        }
+
+        for (Thread t : threads)
+            t.start();
+
+        for (Thread t : threads)
+            t.join();
+
+        if (failure.get() != null)
+            throw new AssertionError(failure.get());
+
+        bufMgr.flushAll();
+    }
+}
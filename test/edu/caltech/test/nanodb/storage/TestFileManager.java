@@ -1,8 +1,10 @@
 package edu.caltech.test.nanodb.storage;
 
 
+import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 import org.testng.annotations.BeforeClass;
 import org.testng.annotations.Test;
@@ -10,11 +12,13 @@ import org.testng.annotations.Test;
 import edu.caltech.nanodb.server.properties.PropertyRegistry;
 
 import edu.caltech.nanodb.storage.BufferManager;
+import edu.caltech.nanodb.storage.ChannelFileManager;
 import edu.caltech.nanodb.storage.DBFile;
 import edu.caltech.nanodb.storage.DBFileType;
 import edu.caltech.nanodb.storage.DBPage;
 import edu.caltech.nanodb.storage.FileManager;
 import edu.caltech.nanodb.storage.FileManagerImpl;
+import edu.caltech.nanodb.storage.MappedFileManager;
 
 
 /**
@@ -25,12 +29,18 @@ public class TestFileManager extends StorageTestCase {
 
     private FileManager fileMgr;
 
+    private FileManager channelFileMgr;
+
+    private FileManager mappedFileMgr;
+
     private BufferManager bufMgr;
 
 
     @BeforeClass
     public void beforeClass() {
         fileMgr = new FileManagerImpl(testBaseDir);
+        channelFileMgr = new ChannelFileManager(testBaseDir);
+        mappedFileMgr = new MappedFileManager(testBaseDir);
         bufMgr = new BufferManager(null, fileMgr);
     }
 
@@ -87,4 +97,155 @@ public class TestFileManager extends StorageTestCase {
         fileMgr.deleteDBFile(dbf);
         assert !f.exists();
     }
+
+
+    public void testLoadPages() throws IOException {
+        checkLoadPages(fileMgr);
+        checkLoadPages(channelFileMgr);
+        checkLoadPages(mappedFileMgr);
+    }
+
+
+    private void checkLoadPages(FileManager fileMgr) throws IOException {
+        String filename = "TestFileManager_testLoadPages";
+        File f = new File(testBaseDir, filename);
+        if (f.exists())
+            f.delete();
+
+        int pageSize = 512;
+        DBFile dbf = fileMgr.createDBFile(filename, DBFileType.HEAP_TUPLE_FILE,
+            pageSize);
+
+        byte[] buffer = new byte[pageSize];
+        for (int pageNo = 1; pageNo < 6; pageNo++) {
+            buffer[10] = (byte) pageNo;
+            fileMgr.savePage(dbf, pageNo, buffer);
+        }
+
+        byte[][] buffers = new byte[3][pageSize];
+        assert fileMgr.loadPages(dbf, 2, buffers) == 3;
+        for (int i = 0; i < buffers.length; i++)
+            assert buffers[i][10] == 2 + i;
+
+        // Loading past the end of the file only loads the pages that exist.
+        buffers = new byte[4][pageSize];
+        assert fileMgr.loadPages(dbf, 4, buffers) == 2;
+        assert buffers[0][10] == 4;
+        assert buffers[1][10] == 5;
+        assert buffers[2][10] == 0;
+
+        assert fileMgr.loadPages(dbf, 10, buffers) == 0;
+
+        fileMgr.closeDBFile(dbf);
+        fileMgr.deleteDBFile(dbf);
+        assert !f.exists();
+    }
+
+
+    public void testSavePages() throws IOException {
+        checkSavePages(fileMgr);
+        checkSavePages(channelFileMgr);
+        checkSavePages(mappedFileMgr);
+    }
+
+
+    private void checkSavePages(FileManager fileMgr) throws IOException {
+        String filename = "TestFileManager_testSavePages";
+        File f = new File(testBaseDir, filename);
+        if (f.exists())
+            f.delete();
+
+        int pageSize = 512;
+        DBFile dbf = fileMgr.createDBFile(filename, DBFileType.HEAP_TUPLE_FILE,
+            pageSize);
+
+        // Write a run of pages that extends the file.
+        byte[][] buffers = new byte[4][pageSize];
+        for (int i = 0; i < buffers.length; i++)
+            buffers[i][20] = (byte) (i + 1);
+        fileMgr.savePages(dbf, 1, buffers);
+        assert f.length() == 5 * pageSize;
+
+        byte[] buffer = new byte[pageSize];
+        for (int pageNo = 1; pageNo < 5; pageNo++) {
+            fileMgr.loadPage(dbf, pageNo, buffer);
+            assert buffer[20] == pageNo;
+        }
+
+        // Loading a page past the end of the file creates it if requested.
+        fileMgr.loadPage(dbf, 5, buffer, /* create */ true);
+        assert buffer[20] == 0;
+        assert f.length() == 6 * pageSize;
+
+        try {
+            fileMgr.loadPage(dbf, 7, buffer);
+            assert false : "Loading a page past the end of the file should fail";
+        }
+        catch (EOFException e) {
+            // Success.
+        }
+
+        fileMgr.closeDBFile(dbf);
+        fileMgr.deleteDBFile(dbf);
+        assert !f.exists();
+    }
+
+
+    public void testMapPage() throws IOException {
+        String filename = "TestFileManager_testMapPage";
+        File f = new File(testBaseDir, filename);
+        if (f.exists())
+            f.delete();
+
+        int pageSize = 512;
+        DBFile dbf = mappedFileMgr.createDBFile(filename,
+            DBFileType.HEAP_TUPLE_FILE, pageSize);
+
+        byte[] buffer = new byte[pageSize];
+        for (int pageNo = 1; pageNo < 4; pageNo++) {
+            buffer[30] = (byte) pageNo;
+            mappedFileMgr.savePage(dbf, pageNo, buffer);
+        }
+
+        // Only the mapped file manager maps pages.
+        assert fileMgr.mapPage(dbf, 1) == null;
+
+        ByteBuffer mapped = mappedFileMgr.mapPage(dbf, 2);
+        assert mapped != null;
+        assert mapped.remaining() == pageSize;
+        assert mapped.get(30) == 2;
+        assert mappedFileMgr.mapPage(dbf, 4) == null;
+
+        // Pages written after the file was mapped are visible once mapped.
+        buffer[30] = 4;
+        mappedFileMgr.savePage(dbf, 4, buffer);
+        mapped = mappedFileMgr.mapPage(dbf, 4);
+        assert mapped != null && mapped.get(30) == 4;
+
+        // Changing a mapped page copies it, and leaves the file unchanged.
+        DBPage page = new DBPage(bufMgr, dbf, 3, mappedFileMgr.mapPage(dbf, 3));
+        assert page.isMapped();
+        assert page.readByte(30) == 3;
+        page.writeByte(30, 33);
+        assert !page.isMapped();
+        assert page.readByte(30) == 33;
+        assert mappedFileMgr.mapPage(dbf, 3).get(30) == 3;
+
+        mappedFileMgr.savePage(dbf, 3, page.getPageData());
+        assert mappedFileMgr.mapPage(dbf, 3).get(30) == 33;
+        page.invalidate();
+
+        mappedFileMgr.closeDBFile(dbf);
+        mappedFileMgr.deleteDBFile(dbf);
+        assert !f.exists();
+
+        // Files other than tuple files aren't mapped.
+        dbf = mappedFileMgr.createDBFile(filename, DBFileType.TEMP_FILE,
+            pageSize);
+        assert mappedFileMgr.mapPage(dbf, 0) == null;
+
+        mappedFileMgr.closeDBFile(dbf);
+        mappedFileMgr.deleteDBFile(dbf);
+        assert !f.exists();
+    }
 }
@@ -0,0 +1,245 @@
+package edu.caltech.test.nanodb.transactions;
+
+
+import java.io.File;
+
+import org.apache.commons.io.FileUtils;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import edu.caltech.nanodb.expressions.TupleLiteral;
+import edu.caltech.nanodb.server.CommandResult;
+import edu.caltech.nanodb.server.NanoDBServer;
+import edu.caltech.nanodb.server.performance.PerformanceCounters;
+import edu.caltech.nanodb.transactions.TransactionManager;
+
+
+/**
+ * This class verifies that recovery works from a fuzzy checkpoint:  changes
+ * committed before and after the checkpoints must survive a crash, and
+ * changes made by a transaction that was in progress must be rolled back.
+ */
+@Test(sequential=true)
+public class TestCheckpoint {
+
+    private static final String[] PROPERTIES = {
+        TransactionManager.PROP_TXNS,
+        TransactionManager.PROP_CHECKPOINT_INTERVAL
+    };
+
+
+    private String[] oldValues = new String[PROPERTIES.length];
+
+
+    private File baseDir;
+
+
+    @BeforeMethod
+    public void beforeMethod() throws Exception {
+        for (int i = 0; i < PROPERTIES.length; i++)
+            oldValues[i] = System.getProperty(PROPERTIES[i]);
+
+        // Checkpoints are only taken when the test asks for them.
+        System.setProperty(TransactionManager.PROP_TXNS, "on");
+        TransactionManager.setCheckpointInterval(0);
+
+        baseDir = new File("test_datafiles", "checkpoint");
+        if (baseDir.exists())
+            FileUtils.deleteDirectory(baseDir);
+        baseDir.mkdirs();
+    }
+
+
+    @AfterMethod
+    public void afterMethod() {
+        for (int i = 0; i < PROPERTIES.length; i++) {
+            if (oldValues[i] != null)
+                System.setProperty(PROPERTIES[i], oldValues[i]);
+            else
+                System.clearProperty(PROPERTIES[i]);
+        }
+    }
+
+
+    private static void doCommand(NanoDBServer server, String command)
+        throws Exception {
+        CommandResult result = server.doCommand(command, false);
+        if (result.failed())
+            throw result.getFailure();
+    }
+
+
+    private static void insertRows(NanoDBServer server, int start, int end)
+        throws Exception {
+        for (int i = start; i < end; i++)
+            doCommand(server, "INSERT INTO test_ckpt VALUES (" + i + ")");
+    }
+
+
+    private static void checkRows(NanoDBServer server, int numRows)
+        throws Exception {
+        CommandResult result =
+            server.doCommand("SELECT COUNT(*), SUM(a) FROM test_ckpt", true);
+        if (result.failed())
+            throw result.getFailure();
+
+        TupleLiteral tup = result.getTuples().get(0);
+        assert ((Number) tup.getColumnValue(0)).intValue() == numRows;
+        assert ((Number) tup.getColumnValue(1)).intValue() ==
+            numRows * (numRows - 1) / 2;
+    }
+
+
+    public void testRecoveryFromCheckpoint() throws Throwable {
+        final NanoDBServer server = new NanoDBServer();
+        server.startup(baseDir);
+        TransactionManager txnMgr =
+            server.getStorageManager().getTransactionManager();
+
+        long checkpoints =
+            PerformanceCounters.get(PerformanceCounters.TXNS_CHECKPOINTS);
+
+        doCommand(server, "CREATE TABLE test_ckpt (a INTEGER)");
+        insertRows(server, 0, 50);
+        txnMgr.checkpoint();
+
+        // The second checkpoint writes out the pages that were dirty at the
+        // first one, so recovery starts after the first batch of inserts.
+        insertRows(server, 50, 100);
+        txnMgr.checkpoint();
+
+        // Nothing has been logged, so this checkpoint is skipped.
+        txnMgr.checkpoint();
+
+        assert PerformanceCounters.get(PerformanceCounters.TXNS_CHECKPOINTS) -
+            checkpoints == 2;
+
+        // This checkpoint lists the table's dirty page, so recovery starts
+        // before the checkpoint, and uses its dirty-page table.
+        insertRows(server, 100, 120);
+        txnMgr.checkpoint();
+        insertRows(server, 120, 130);
+
+        // Leave a transaction in progress, with its changes in the WAL and
+        // in the table file.  This is done on another thread, since the
+        // transaction state belongs to the session.
+        final Throwable[] failure = new Throwable[1];
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    doCommand(server, "BEGIN");
+                    insertRows(server, 1000, 1010);
+                    server.getStorageManager().getBufferManager().writeAll(true);
+                }
+                catch (Throwable t) {
+                    failure[0] = t;
+                }
+            }
+        });
+        thread.start();
+        thread.join();
+
+        if (failure[0] != null)
+            throw failure[0];
+
+        // Simulate a crash by starting another server on the same files,
+        // without shutting down the first one.
+        NanoDBServer server2 = new NanoDBServer();
+        server2.startup(baseDir);
+        try {
+            checkRows(server2, 130);
+        }
+        finally {
+            server2.shutdown();
+        }
+
+        // Recovery must also work after a clean restart.
+        NanoDBServer server3 = new NanoDBServer();
+        server3.startup(baseDir);
+        try {
+            checkRows(server3, 130);
+        }
+        finally {
+            server3.shutdown();
+        }
+    }
+
+
+    public void testCheckpointDuringChanges() throws Throwable {
+        NanoDBServer server = new NanoDBServer();
+        server.startup(baseDir);
+        final TransactionManager txnMgr =
+            server.getStorageManager().getTransactionManager();
+
+        long checkpoints =
+            PerformanceCounters.get(PerformanceCounters.TXNS_CHECKPOINTS);
+
+        doCommand(server, "CREATE TABLE test_ckpt (a INTEGER)");
+        insertRows(server, 0, 20);
+
+        // Take checkpoints continuously while transactions change the
+        // table's pages, so that checkpoints write pages that are being
+        // changed.
+        final boolean[] done = new boolean[1];
+        final Throwable[] failure = new Throwable[1];
+        Thread checkpointThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        synchronized (done) {
+                            if (done[0])
+                                break;
+                        }
+                        txnMgr.checkpoint();
+                    }
+                }
+                catch (Throwable t) {
+                    failure[0] = t;
+                }
+            }
+        });
+        checkpointThread.start();
+
+        try {
+            doCommand(server, "BEGIN");
+            insertRows(server, 20, 300);
+            doCommand(server, "COMMIT");
+
+            // Rolling back needs the old data of every changed page, which
+            // must not be discarded by a checkpoint.
+            doCommand(server, "BEGIN");
+            for (int i = 1000; i < 1100; i++)
+                doCommand(server, "INSERT INTO test_ckpt VALUES (" + i + ")");
+            doCommand(server, "UPDATE test_ckpt SET a = a + 1 WHERE a < 1000");
+            doCommand(server, "ROLLBACK");
+        }
+        finally {
+            synchronized (done) {
+                done[0] = true;
+            }
+            checkpointThread.join();
+        }
+
+        if (failure[0] != null)
+            throw failure[0];
+
+        assert PerformanceCounters.get(PerformanceCounters.TXNS_CHECKPOINTS) >
+            checkpoints;
+
+        checkRows(server, 300);
+
+        // Simulate a crash by starting another server on the same files,
+        // without shutting down the first one.
+        NanoDBServer server2 = new NanoDBServer();
+        server2.startup(baseDir);
+        try {
+            checkRows(server2, 300);
+        }
+        finally {
+            server2.shutdown();
+        }
+    }
+}
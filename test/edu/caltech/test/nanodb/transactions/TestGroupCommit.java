@@ -0,0 +1,162 @@
+package edu.caltech.test.nanodb.transactions;
+
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import edu.caltech.nanodb.expressions.TupleLiteral;
+import edu.caltech.nanodb.server.CommandResult;
+import edu.caltech.nanodb.server.NanoDBServer;
+import edu.caltech.nanodb.server.performance.PerformanceCounters;
+import edu.caltech.nanodb.transactions.TransactionManager;
+
+
+/**
+ * This class verifies that commits made by several sessions at once are
+ * forced to the write-ahead log in batches when group commit is enabled,
+ * and that the committed data survives a restart.
+ */
+@Test(sequential=true)
+public class TestGroupCommit {
+
+    /** The number of sessions that commit at the same time. */
+    private static final int NUM_SESSIONS = 4;
+
+
+    /** The number of rows each session inserts, one commit per row. */
+    private static final int ROWS_PER_SESSION = 25;
+
+
+    private static final String[] PROPERTIES = {
+        TransactionManager.PROP_TXNS,
+        TransactionManager.PROP_GROUP_COMMIT,
+        TransactionManager.PROP_GROUP_COMMIT_DELAY,
+        TransactionManager.PROP_GROUP_COMMIT_SIZE
+    };
+
+
+    private String[] oldValues = new String[PROPERTIES.length];
+
+
+    private File baseDir;
+
+
+    @BeforeMethod
+    public void beforeMethod() throws Exception {
+        for (int i = 0; i < PROPERTIES.length; i++)
+            oldValues[i] = System.getProperty(PROPERTIES[i]);
+
+        System.setProperty(TransactionManager.PROP_TXNS, "on");
+        System.setProperty(TransactionManager.PROP_GROUP_COMMIT, "on");
+        TransactionManager.setGroupCommitDelay(20);
+        TransactionManager.setGroupCommitSize(NUM_SESSIONS);
+
+        baseDir = new File("test_datafiles", "groupcommit");
+        if (baseDir.exists())
+            FileUtils.deleteDirectory(baseDir);
+        baseDir.mkdirs();
+    }
+
+
+    @AfterMethod
+    public void afterMethod() {
+        for (int i = 0; i < PROPERTIES.length; i++) {
+            if (oldValues[i] != null)
+                System.setProperty(PROPERTIES[i], oldValues[i]);
+            else
+                System.clearProperty(PROPERTIES[i]);
+        }
+    }
+
+
+    private static void doCommand(NanoDBServer server, String command)
+        throws Exception {
+        CommandResult result = server.doCommand(command, false);
+        if (result.failed())
+            throw result.getFailure();
+    }
+
+
+    public void testConcurrentCommits() throws Throwable {
+        final NanoDBServer server = new NanoDBServer();
+        server.startup(baseDir);
+
+        for (int i = 0; i < NUM_SESSIONS; i++)
+            doCommand(server, "CREATE TABLE test_gc" + i + " (a INTEGER)");
+
+        long commits = PerformanceCounters.get(
+            PerformanceCounters.TXNS_GROUP_COMMITS);
+        long batches = PerformanceCounters.get(
+            PerformanceCounters.TXNS_GROUP_COMMIT_BATCHES);
+
+        // Each session auto-commits its own inserts into its own table.
+        final List<Throwable> failures = new ArrayList<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < NUM_SESSIONS; i++) {
+            final int sessionNo = i;
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int row = 0; row < ROWS_PER_SESSION; row++) {
+                            doCommand(server, "INSERT INTO test_gc" +
+                                sessionNo + " VALUES (" + row + ")");
+                        }
+                    }
+                    catch (Throwable t) {
+                        synchronized (failures) {
+                            failures.add(t);
+                        }
+                    }
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+
+        for (Thread thread : threads)
+            thread.join();
+
+        if (!failures.isEmpty())
+            throw failures.get(0);
+
+        commits = PerformanceCounters.get(
+            PerformanceCounters.TXNS_GROUP_COMMITS) - commits;
+        batches = PerformanceCounters.get(
+            PerformanceCounters.TXNS_GROUP_COMMIT_BATCHES) - batches;
+
+        assert commits == NUM_SESSIONS * ROWS_PER_SESSION : commits;
+        assert batches < commits :
+            "Expected commits to be batched, but got " + batches +
+            " batches for " + commits + " commits";
+
+        server.shutdown();
+
+        // Everything that was committed must still be there after a restart.
+        NanoDBServer server2 = new NanoDBServer();
+        server2.startup(baseDir);
+        try {
+            for (int i = 0; i < NUM_SESSIONS; i++) {
+                CommandResult result = server2.doCommand(
+                    "SELECT COUNT(*), SUM(a) FROM test_gc" + i, true);
+                if (result.failed())
+                    throw result.getFailure();
+
+                TupleLiteral tup = result.getTuples().get(0);
+                assert ((Number) tup.getColumnValue(0)).intValue() ==
+                    ROWS_PER_SESSION;
+                assert ((Number) tup.getColumnValue(1)).intValue() ==
+                    ROWS_PER_SESSION * (ROWS_PER_SESSION - 1) / 2;
+            }
+        }
+        finally {
+            server2.shutdown();
+        }
+    }
+}
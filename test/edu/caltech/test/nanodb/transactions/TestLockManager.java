@@ -0,0 +1,317 @@
+package edu.caltech.test.nanodb.transactions;
+
+
+import java.io.File;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.io.FileUtils;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import edu.caltech.nanodb.expressions.TupleLiteral;
+import edu.caltech.nanodb.server.CommandResult;
+import edu.caltech.nanodb.server.NanoDBServer;
+import edu.caltech.nanodb.storage.FilePointer;
+import edu.caltech.nanodb.transactions.DeadlockException;
+import edu.caltech.nanodb.transactions.LockManager;
+import edu.caltech.nanodb.transactions.LockMode;
+import edu.caltech.nanodb.transactions.TransactionManager;
+import edu.caltech.nanodb.transactions.TransactionState;
+
+
+/**
+ * This class exercises the lock manager:  lock compatibility and upgrades,
+ * waiting for conflicting locks, deadlock detection, and the table locks
+ * taken by sessions running transactions against the same server.
+ */
+@Test(sequential=true)
+public class TestLockManager {
+
+    /** How long to wait for another thread to reach a lock wait. */
+    private static final long WAIT_TIMEOUT_MILLIS = 10000;
+
+
+    private static final String[] PROPERTIES = {
+        TransactionManager.PROP_TXNS,
+        TransactionManager.PROP_GROUP_COMMIT,
+        TransactionManager.PROP_CHECKPOINT_INTERVAL
+    };
+
+
+    private String[] oldValues = new String[PROPERTIES.length];
+
+
+    private File baseDir;
+
+
+    private ExecutorService otherSession;
+
+
+    @BeforeMethod
+    public void beforeMethod() throws Exception {
+        for (int i = 0; i < PROPERTIES.length; i++)
+            oldValues[i] = System.getProperty(PROPERTIES[i]);
+
+        System.setProperty(TransactionManager.PROP_TXNS, "on");
+        System.setProperty(TransactionManager.PROP_GROUP_COMMIT, "off");
+        TransactionManager.setCheckpointInterval(0);
+
+        baseDir = new File("test_datafiles", "lockmanager");
+        if (baseDir.exists())
+            FileUtils.deleteDirectory(baseDir);
+        baseDir.mkdirs();
+
+        // Each session's state is kept per-thread, so the second session's
+        // work is all done on a single thread of its own.
+        otherSession = Executors.newSingleThreadExecutor();
+    }
+
+
+    @AfterMethod
+    public void afterMethod() {
+        otherSession.shutdownNow();
+
+        for (int i = 0; i < PROPERTIES.length; i++) {
+            if (oldValues[i] != null)
+                System.setProperty(PROPERTIES[i], oldValues[i]);
+            else
+                System.clearProperty(PROPERTIES[i]);
+        }
+    }
+
+
+    private static TransactionState makeTxn(int txnID) {
+        TransactionState txnState = new TransactionState();
+        txnState.setTransactionID(txnID);
+        return txnState;
+    }
+
+
+    /** Waits until the specified number of transactions are waiting. */
+    private static void awaitWaitingTxns(LockManager lockManager,
+                                         int numWaiting) throws Exception {
+        long deadline = System.currentTimeMillis() + WAIT_TIMEOUT_MILLIS;
+        while (lockManager.getNumWaitingTxns() != numWaiting) {
+            assert System.currentTimeMillis() < deadline :
+                "Timed out waiting for " + numWaiting + " lock waits";
+            Thread.sleep(10);
+        }
+    }
+
+
+    private Future<?> lockTableLater(final LockManager lockManager,
+        final TransactionState txnState, final String tableName,
+        final LockMode mode) {
+
+        return otherSession.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                lockManager.lockTable(txnState, tableName, mode);
+                return null;
+            }
+        });
+    }
+
+
+    public void testLockModes() {
+        assert LockMode.IS.isCompatibleWith(LockMode.IX);
+        assert LockMode.IS.isCompatibleWith(LockMode.SIX);
+        assert LockMode.IX.isCompatibleWith(LockMode.IX);
+        assert LockMode.S.isCompatibleWith(LockMode.S);
+        assert !LockMode.S.isCompatibleWith(LockMode.IX);
+        assert !LockMode.SIX.isCompatibleWith(LockMode.S);
+        assert !LockMode.X.isCompatibleWith(LockMode.IS);
+
+        assert LockMode.S.combineWith(LockMode.IX) == LockMode.SIX;
+        assert LockMode.IS.combineWith(LockMode.S) == LockMode.S;
+        assert LockMode.SIX.combineWith(LockMode.X) == LockMode.X;
+
+        assert LockMode.X.covers(LockMode.S);
+        assert LockMode.SIX.covers(LockMode.IX);
+        assert !LockMode.S.covers(LockMode.IX);
+    }
+
+
+    public void testWaitForConflictingLock() throws Exception {
+        LockManager lockManager = new LockManager();
+        TransactionState txn1 = makeTxn(1);
+        TransactionState txn2 = makeTxn(2);
+
+        lockManager.lockTable(txn1, "t", LockMode.S);
+        lockManager.lockTable(txn2, "t", LockMode.S);
+        assert lockManager.getNumLocksHeld() == 2;
+
+        // Upgrading txn1's lock must wait for txn2's shared lock.
+        Future<?> upgrade = lockTableLater(lockManager, txn1, "t", LockMode.X);
+        awaitWaitingTxns(lockManager, 1);
+        assert !upgrade.isDone();
+
+        lockManager.releaseAll(txn2);
+        upgrade.get();
+
+        assert lockManager.getTableLockMode(txn1, "t") == LockMode.X;
+        assert lockManager.getNumWaitingTxns() == 0;
+
+        lockManager.releaseAll(txn1);
+        assert lockManager.getNumLockedResources() == 0;
+        assert lockManager.getNumLocksHeld() == 0;
+    }
+
+
+    public void testRowLocks() throws Exception {
+        LockManager lockManager = new LockManager();
+        TransactionState txn1 = makeTxn(1);
+        TransactionState txn2 = makeTxn(2);
+
+        // Exclusive locks on different rows of the same table don't
+        // conflict, but both transactions hold intention locks on the table.
+        lockManager.lockRow(txn1, "t", new FilePointer(1, 10), LockMode.X);
+        lockManager.lockRow(txn2, "t", new FilePointer(1, 20), LockMode.X);
+        assert lockManager.getTableLockMode(txn1, "t") == LockMode.IX;
+        assert lockManager.getTableLockMode(txn2, "t") == LockMode.IX;
+        assert lockManager.getNumLockedResources() == 3;
+
+        // Reading the whole table conflicts with txn1's row lock.
+        Future<?> scan = lockTableLater(lockManager, txn2, "t", LockMode.S);
+        awaitWaitingTxns(lockManager, 1);
+
+        lockManager.releaseAll(txn1);
+        scan.get();
+        assert lockManager.getTableLockMode(txn2, "t") == LockMode.SIX;
+
+        lockManager.releaseAll(txn2);
+        assert lockManager.getNumLockedResources() == 0;
+    }
+
+
+    public void testDeadlockDetection() throws Exception {
+        LockManager lockManager = new LockManager();
+        TransactionState txn1 = makeTxn(1);
+        TransactionState txn2 = makeTxn(2);
+
+        lockManager.lockTable(txn1, "a", LockMode.X);
+        lockManager.lockTable(txn2, "b", LockMode.X);
+
+        Future<?> txn1Wait =
+            lockTableLater(lockManager, txn1, "b", LockMode.S);
+        awaitWaitingTxns(lockManager, 1);
+
+        // txn2 completes the cycle, so it is the victim.
+        try {
+            lockManager.lockTable(txn2, "a", LockMode.S);
+            assert false : "Expected a deadlock to be detected";
+        }
+        catch (DeadlockException e) {
+            // Success.
+        }
+
+        assert lockManager.getNumWaitingTxns() == 1;
+
+        lockManager.releaseAll(txn2);
+        txn1Wait.get();
+        assert lockManager.getTableLockMode(txn1, "b") == LockMode.S;
+
+        lockManager.releaseAll(txn1);
+        assert lockManager.getNumLockedResources() == 0;
+    }
+
+
+    private static void doCommand(NanoDBServer server, String command)
+        throws Exception {
+        CommandResult result = server.doCommand(command, false);
+        if (result.failed())
+            throw result.getFailure();
+    }
+
+
+    private Future<CommandResult> doCommandLater(final NanoDBServer server,
+                                                 final String command) {
+        return otherSession.submit(new Callable<CommandResult>() {
+            @Override
+            public CommandResult call() throws Exception {
+                return server.doCommand(command, false);
+            }
+        });
+    }
+
+
+    private static int countRows(NanoDBServer server, String tableName)
+        throws Exception {
+        CommandResult result =
+            server.doCommand("SELECT COUNT(*) FROM " + tableName, true);
+        if (result.failed())
+            throw result.getFailure();
+
+        TupleLiteral tup = result.getTuples().get(0);
+        return ((Number) tup.getColumnValue(0)).intValue();
+    }
+
+
+    public void testConcurrentSessions() throws Throwable {
+        NanoDBServer server = new NanoDBServer();
+        server.startup(baseDir);
+        try {
+            LockManager lockManager =
+                server.getStorageManager().getTransactionManager().getLockManager();
+
+            doCommand(server, "CREATE TABLE test_locks1 (a INTEGER)");
+            doCommand(server, "CREATE TABLE test_locks2 (a INTEGER)");
+
+            // A writer on another table proceeds, but a writer on the same
+            // table waits until this session's transaction commits.
+            doCommand(server, "BEGIN");
+            doCommand(server, "INSERT INTO test_locks1 VALUES (1)");
+
+            CommandResult result =
+                doCommandLater(server, "INSERT INTO test_locks2 VALUES (1)").get();
+            assert !result.failed();
+
+            Future<CommandResult> insert =
+                doCommandLater(server, "INSERT INTO test_locks1 VALUES (2)");
+            awaitWaitingTxns(lockManager, 1);
+
+            doCommand(server, "COMMIT");
+            assert !insert.get().failed();
+            assert countRows(server, "test_locks1") == 2;
+
+            // Each session reads one table, then writes the other.  This
+            // session completes the cycle, so its transaction is rolled back,
+            // and the other session's transaction can proceed.
+            doCommand(server, "BEGIN");
+            doCommand(server, "SELECT * FROM test_locks1");
+
+            assert !doCommandLater(server, "BEGIN").get().failed();
+            assert !doCommandLater(server,
+                "SELECT * FROM test_locks2").get().failed();
+            Future<CommandResult> otherWrite =
+                doCommandLater(server, "INSERT INTO test_locks1 VALUES (3)");
+            awaitWaitingTxns(lockManager, 1);
+
+            result = server.doCommand("INSERT INTO test_locks2 VALUES (2)",
+                false);
+            assert result.failed();
+
+            boolean deadlock = false;
+            for (Throwable t = result.getFailure(); t != null;
+                 t = t.getCause()) {
+                if (t instanceof DeadlockException)
+                    deadlock = true;
+            }
+            assert deadlock;
+
+            assert !otherWrite.get().failed();
+            assert !doCommandLater(server, "COMMIT").get().failed();
+
+            assert countRows(server, "test_locks1") == 3;
+            assert countRows(server, "test_locks2") == 1;
+            assert lockManager.getNumLocksHeld() == 0;
+        }
+        finally {
+            server.shutdown();
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package edu.caltech.test.nanodb.transactions;
+
+
+import java.io.File;
+
+import org.apache.commons.io.FileUtils;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import edu.caltech.nanodb.expressions.TupleLiteral;
+import edu.caltech.nanodb.server.CommandResult;
+import edu.caltech.nanodb.server.NanoDBServer;
+import edu.caltech.nanodb.transactions.TransactionManager;
+
+
+/**
+ * This class verifies that recovery applies the write-ahead log correctly
+ * when redo processing is spread across several threads.  The changes are
+ * made to several tables, with several changes to each page, so that each
+ * worker thread has to apply changes to each of its pages in order.
+ */
+@Test(sequential=true)
+public class TestParallelRedo {
+
+    /** The number of tables that are changed before the crash. */
+    private static final int NUM_TABLES = 4;
+
+
+    /** The number of rows inserted into each table. */
+    private static final int NUM_ROWS = 200;
+
+
+    private static final String[] PROPERTIES = {
+        TransactionManager.PROP_TXNS,
+        TransactionManager.PROP_CHECKPOINT_INTERVAL,
+        TransactionManager.PROP_REDO_THREADS
+    };
+
+
+    private String[] oldValues = new String[PROPERTIES.length];
+
+
+    private File baseDir;
+
+
+    @BeforeMethod
+    public void beforeMethod() throws Exception {
+        for (int i = 0; i < PROPERTIES.length; i++)
+            oldValues[i] = System.getProperty(PROPERTIES[i]);
+
+        System.setProperty(TransactionManager.PROP_TXNS, "on");
+        TransactionManager.setCheckpointInterval(0);
+        TransactionManager.setRedoThreads(NUM_TABLES);
+
+        baseDir = new File("test_datafiles", "parallelredo");
+        if (baseDir.exists())
+            FileUtils.deleteDirectory(baseDir);
+        baseDir.mkdirs();
+    }
+
+
+    @AfterMethod
+    public void afterMethod() {
+        for (int i = 0; i < PROPERTIES.length; i++) {
+            if (oldValues[i] != null)
+                System.setProperty(PROPERTIES[i], oldValues[i]);
+            else
+                System.clearProperty(PROPERTIES[i]);
+        }
+    }
+
+
+    private static void doCommand(NanoDBServer server, String command)
+        throws Exception {
+        CommandResult result = server.doCommand(command, false);
+        if (result.failed())
+            throw result.getFailure();
+    }
+
+
+    public void testParallelRedo() throws Throwable {
+        NanoDBServer server = new NanoDBServer();
+        server.startup(baseDir);
+
+        for (int i = 0; i < NUM_TABLES; i++)
+            doCommand(server, "CREATE TABLE test_redo" + i + " (a INTEGER)");
+
+        // Interleave the inserts into the tables, and update some of the
+        // rows, so the log has many changes to each page in no particular
+        // order.
+        for (int row = 0; row < NUM_ROWS; row++) {
+            for (int i = 0; i < NUM_TABLES; i++) {
+                doCommand(server,
+                    "INSERT INTO test_redo" + i + " VALUES (" + row + ")");
+            }
+        }
+
+        for (int i = 0; i < NUM_TABLES; i++) {
+            doCommand(server, "UPDATE test_redo" + i + " SET a = a + " + i +
+                " WHERE a < 50");
+        }
+
+        // Every commit forced the log, but none of the table pages have been
+        // written, so all of the changes must be redone.  Simulate a crash by
+        // starting another server on the same files, without shutting down
+        // the first one.
+        NanoDBServer server2 = new NanoDBServer();
+        server2.startup(baseDir);
+        try {
+            for (int i = 0; i < NUM_TABLES; i++) {
+                CommandResult result = server2.doCommand(
+                    "SELECT COUNT(*), SUM(a) FROM test_redo" + i, true);
+                if (result.failed())
+                    throw result.getFailure();
+
+                TupleLiteral tup = result.getTuples().get(0);
+                assert ((Number) tup.getColumnValue(0)).intValue() == NUM_ROWS;
+                assert ((Number) tup.getColumnValue(1)).intValue() ==
+                    NUM_ROWS * (NUM_ROWS - 1) / 2 + 50 * i;
+            }
+        }
+        finally {
+            server2.shutdown();
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package edu.caltech.test.nanodb.transactions;
+
+
+import java.io.File;
+
+import org.apache.commons.io.FileUtils;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import edu.caltech.nanodb.expressions.TupleLiteral;
+import edu.caltech.nanodb.server.CommandResult;
+import edu.caltech.nanodb.server.NanoDBServer;
+import edu.caltech.nanodb.server.performance.PerformanceCounters;
+import edu.caltech.nanodb.transactions.TransactionManager;
+
+
+/**
+ * This class verifies that write-ahead log records are held in the WAL
+ * buffer until the log is forced, that a transaction can be rolled back
+ * while its records are still buffered, and that the records that were
+ * written out can be used for recovery.
+ */
+@Test(sequential=true)
+public class TestWALBuffer {
+
+    private static final String[] PROPERTIES = {
+        TransactionManager.PROP_TXNS,
+        TransactionManager.PROP_GROUP_COMMIT,
+        TransactionManager.PROP_CHECKPOINT_INTERVAL
+    };
+
+
+    private String[] oldValues = new String[PROPERTIES.length];
+
+
+    private File baseDir;
+
+
+    @BeforeMethod
+    public void beforeMethod() throws Exception {
+        for (int i = 0; i < PROPERTIES.length; i++)
+            oldValues[i] = System.getProperty(PROPERTIES[i]);
+
+        // Only commits may write out the log during this test.
+        System.setProperty(TransactionManager.PROP_TXNS, "on");
+        System.setProperty(TransactionManager.PROP_GROUP_COMMIT, "off");
+        TransactionManager.setCheckpointInterval(0);
+
+        baseDir = new File("test_datafiles", "walbuffer");
+        if (baseDir.exists())
+            FileUtils.deleteDirectory(baseDir);
+        baseDir.mkdirs();
+    }
+
+
+    @AfterMethod
+    public void afterMethod() {
+        for (int i = 0; i < PROPERTIES.length; i++) {
+            if (oldValues[i] != null)
+                System.setProperty(PROPERTIES[i], oldValues[i]);
+            else
+                System.clearProperty(PROPERTIES[i]);
+        }
+    }
+
+
+    private static void doCommand(NanoDBServer server, String command)
+        throws Exception {
+        CommandResult result = server.doCommand(command, false);
+        if (result.failed())
+            throw result.getFailure();
+    }
+
+
+    private static void checkRows(NanoDBServer server, int numRows)
+        throws Exception {
+        CommandResult result =
+            server.doCommand("SELECT COUNT(*), SUM(a) FROM test_walbuf", true);
+        if (result.failed())
+            throw result.getFailure();
+
+        TupleLiteral tup = result.getTuples().get(0);
+        assert ((Number) tup.getColumnValue(0)).intValue() == numRows;
+        if (numRows > 0) {
+            assert ((Number) tup.getColumnValue(1)).intValue() ==
+                numRows * (numRows - 1) / 2;
+        }
+    }
+
+
+    public void testBufferedCommitAndRollback() throws Throwable {
+        NanoDBServer server = new NanoDBServer();
+        server.startup(baseDir);
+
+        doCommand(server, "CREATE TABLE test_walbuf (a INTEGER)");
+
+        // All of the transaction's records are written out by the commit,
+        // with one flush of the WAL buffer.
+        long flushes = PerformanceCounters.get(PerformanceCounters.WAL_FLUSHES);
+
+        doCommand(server, "BEGIN");
+        for (int i = 0; i < 200; i++)
+            doCommand(server, "INSERT INTO test_walbuf VALUES (" + i + ")");
+
+        assert PerformanceCounters.get(PerformanceCounters.WAL_FLUSHES) ==
+            flushes;
+
+        doCommand(server, "COMMIT");
+
+        assert PerformanceCounters.get(PerformanceCounters.WAL_FLUSHES) -
+            flushes == 1;
+
+        // Roll back a transaction whose records are only in the buffer.
+        doCommand(server, "BEGIN");
+        for (int i = 1000; i < 1050; i++)
+            doCommand(server, "INSERT INTO test_walbuf VALUES (" + i + ")");
+        doCommand(server, "ROLLBACK");
+
+        checkRows(server, 200);
+
+        // Simulate a crash by starting another server on the same files,
+        // without shutting down the first one.
+        NanoDBServer server2 = new NanoDBServer();
+        server2.startup(baseDir);
+        try {
+            checkRows(server2, 200);
+        }
+        finally {
+            server2.shutdown();
+        }
+    }
+}